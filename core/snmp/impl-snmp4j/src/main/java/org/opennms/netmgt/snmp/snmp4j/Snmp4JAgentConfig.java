@@ -338,16 +338,7 @@ public class Snmp4JAgentConfig {
             // Make a new USM
             USM usm = new USM(SecurityProtocols.getInstance(), new OctetString(MPv3.createLocalEngineID()), 0);
             // Add the specified user to the USM
-            usm.addUser(
-                getSecurityName(),
-                new UsmUser(
-                    getSecurityName(),
-                    getAuthProtocol(),
-                    getAuthPassPhrase(),
-                    getPrivProtocol(),
-                    getPrivPassPhrase()
-                )
-            );
+            usm.addUser(getSecurityName(), createUsmUser());
             // Remove the old SNMPv3 MessageProcessingModel. If you don't do this, you'll end up with
             // two SNMPv3 MessageProcessingModel instances in the dispatcher and connections will fail.
             MessageProcessingModel oldModel = session.getMessageDispatcher().getMessageProcessingModel(MessageProcessingModel.MPv3);
@@ -361,6 +352,21 @@ public class Snmp4JAgentConfig {
         return session;
     }
 
+    /**
+     * Creates the SNMPv3 user for the security name and passphrases of this agent.
+     * 
+     * @return
+     */
+    UsmUser createUsmUser() {
+        return new UsmUser(
+            getSecurityName(),
+            getAuthProtocol(),
+            getAuthPassPhrase(),
+            getPrivProtocol(),
+            getPrivPassPhrase()
+        );
+    }
+
     /**
      * Creates an SNMP4J PDU based on the SNMP4J version constants.
      * A v3 request requires a ScopedPDU.
@@ -0,0 +1,502 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp.snmp4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.USM;
+import org.snmp4j.security.UsmUser;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.snmp4j.util.MultiThreadedMessageDispatcher;
+import org.snmp4j.util.ThreadPool;
+
+/**
+ * A small, fixed set of UDP transports shared by the walkers and the
+ * get/set requests of the {@link Snmp4JStrategy}, instead of a new socket
+ * and listener thread for each one of them.
+ *
+ * The transports belong to a single {@link Snmp} session, which matches
+ * the responses to the pending requests by request ID, so any number of
+ * agents can be queried over the same socket. Each agent is always queried
+ * over the same transport. Incoming messages are processed by a pool of
+ * dispatcher threads, so that a slow tracker doesn't hold up the responses
+ * of the other agents. The SNMPv3 users are registered with a single USM,
+ * and engines are only discovered once.
+ *
+ * The number of requests in flight to any one agent is limited: further
+ * requests are queued, without blocking the caller, and sent as the earlier
+ * ones complete.
+ *
+ * The pool is configured with the following system properties:
+ * <ul>
+ * <li>org.opennms.snmp.snmp4j.transports: the number of transports, 0 to
+ * use a new session for every walker and request (default: 4)</li>
+ * <li>org.opennms.snmp.snmp4j.dispatcherThreads: the number of threads
+ * processing the responses (default: 8)</li>
+ * <li>org.opennms.snmp.snmp4j.maxRequestsPerAgent: the number of requests
+ * in flight to an agent (default: 8)</li>
+ * </ul>
+ */
+public class Snmp4JSessionPool implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Snmp4JSessionPool.class);
+
+    public static final String TRANSPORTS_PROPERTY = "org.opennms.snmp.snmp4j.transports";
+    public static final String DISPATCHER_THREADS_PROPERTY = "org.opennms.snmp.snmp4j.dispatcherThreads";
+    public static final String MAX_REQUESTS_PER_AGENT_PROPERTY = "org.opennms.snmp.snmp4j.maxRequestsPerAgent";
+
+    private static Snmp4JSessionPool s_instance = null;
+    private static boolean s_initialized = false;
+
+    private final Snmp m_session;
+    private final ThreadPool m_dispatcherThreads;
+    private final List<TransportMapping<UdpAddress>> m_transports = new ArrayList<TransportMapping<UdpAddress>>();
+    private final USM m_usm;
+    private final int m_maxRequestsPerAgent;
+
+    /**
+     * The users registered with the USM, by security name.
+     */
+    private final Map<OctetString, UsmUser> m_users = new HashMap<OctetString, UsmUser>();
+
+    /**
+     * The agents to which requests are in flight.
+     */
+    private final ConcurrentMap<Address, AgentRequests> m_agents = new ConcurrentHashMap<Address, AgentRequests>();
+
+    private final AtomicLong m_requestsSent = new AtomicLong();
+    private final AtomicLong m_requestsQueued = new AtomicLong();
+
+    private volatile boolean m_closed = false;
+
+    /**
+     * <p>getInstance</p>
+     *
+     * @return the pool shared by the strategy, or null if the pool is disabled
+     */
+    public static synchronized Snmp4JSessionPool getInstance() {
+        if (!s_initialized) {
+            s_initialized = true;
+            final int numTransports = Integer.getInteger(TRANSPORTS_PROPERTY, 4);
+            if (numTransports > 0) {
+                try {
+                    s_instance = new Snmp4JSessionPool(numTransports, Integer.getInteger(DISPATCHER_THREADS_PROPERTY, 8), Integer.getInteger(MAX_REQUESTS_PER_AGENT_PROPERTY, 8));
+                } catch (IOException e) {
+                    LOG.error("Failed to open the shared SNMP transports. Using a new session for every request.", e);
+                }
+            }
+        }
+        return s_instance;
+    }
+
+    /**
+     * Closes the pool shared by the strategy, if it was opened. The next
+     * call to {@link #getInstance()} opens a new one.
+     */
+    public static synchronized void shutdown() {
+        if (s_instance != null) {
+            LOG.info("Closing the shared SNMP transports.");
+            s_instance.close();
+            s_instance = null;
+        }
+        s_initialized = false;
+    }
+
+    Snmp4JSessionPool(int numTransports, int numDispatcherThreads, int maxRequestsPerAgent) throws IOException {
+        m_maxRequestsPerAgent = maxRequestsPerAgent;
+        m_usm = new USM(SecurityProtocols.getInstance(), new OctetString(MPv3.createLocalEngineID()), 0);
+        m_dispatcherThreads = ThreadPool.create("Snmp4JSessionPool", numDispatcherThreads);
+
+        final MessageDispatcher dispatcher = new MultiThreadedMessageDispatcher(m_dispatcherThreads, new MessageDispatcherImpl());
+        dispatcher.addMessageProcessingModel(new MPv1());
+        dispatcher.addMessageProcessingModel(new MPv2c());
+        dispatcher.addMessageProcessingModel(new MPv3(m_usm));
+        m_session = new Snmp(dispatcher);
+
+        try {
+            for (int i = 0; i < numTransports; i++) {
+                final TransportMapping<UdpAddress> transport = new DefaultUdpTransportMapping();
+                m_transports.add(transport);
+                m_session.addTransportMapping(transport);
+            }
+            m_session.listen();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        LOG.info("Sending SNMP requests over {} shared transports, with at most {} requests in flight per agent.", numTransports, maxRequestsPerAgent);
+    }
+
+    /**
+     * Checks whether requests to the agent can be sent over the shared
+     * transports. This is the case unless the agent uses SNMPv3 with a
+     * security name that is already registered with different passphrases
+     * or protocols for another agent.
+     *
+     * @param config the agent
+     * @return true if the requests can be sent with {@link #send(Snmp4JAgentConfig, PDU, ResponseListener)}
+     */
+    public boolean canShare(Snmp4JAgentConfig config) {
+        if (m_closed) {
+            return false;
+        } else if (!config.isSnmpV3()) {
+            return true;
+        }
+
+        final OctetString securityName = config.getSecurityName();
+        final UsmUser user = config.createUsmUser();
+        synchronized (m_users) {
+            final UsmUser registered = m_users.get(securityName);
+            if (registered == null) {
+                m_usm.addUser(securityName, user);
+                m_users.put(securityName, user);
+                return true;
+            }
+            return Objects.equals(registered.getAuthenticationProtocol(), user.getAuthenticationProtocol())
+                    && Objects.equals(registered.getAuthenticationPassphrase(), user.getAuthenticationPassphrase())
+                    && Objects.equals(registered.getPrivacyProtocol(), user.getPrivacyProtocol())
+                    && Objects.equals(registered.getPrivacyPassphrase(), user.getPrivacyPassphrase());
+        }
+    }
+
+    /**
+     * Sends a request to the agent, or queues it if too many requests to the
+     * agent are already in flight. The listener is called once, with the
+     * response, a timeout or an error, unless the request is cancelled.
+     *
+     * @param config the agent, for which {@link #canShare(Snmp4JAgentConfig)} returned true
+     * @param pdu the request
+     * @param listener the listener
+     * @return the request, which can be cancelled
+     * @throws IOException if the request could not be sent
+     */
+    public Request send(Snmp4JAgentConfig config, PDU pdu, ResponseListener listener) throws IOException {
+        final Target target = config.getTarget();
+        final Request request = new Request(target, pdu, listener);
+        if (acquire(request)) {
+            request.send(false);
+        }
+        return request;
+    }
+
+    /**
+     * Sends a request to the agent and waits for the response.
+     *
+     * @param config the agent, for which {@link #canShare(Snmp4JAgentConfig)} returned true
+     * @param pdu the request
+     * @return the response event, whose response is null if the request timed out
+     * @throws IOException if the request could not be sent
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public ResponseEvent send(Snmp4JAgentConfig config, PDU pdu) throws IOException, InterruptedException {
+        final ResponseEvent[] event = new ResponseEvent[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Request request = send(config, pdu, new ResponseListener() {
+            @Override
+            public void onResponse(ResponseEvent responseEvent) {
+                event[0] = responseEvent;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            request.cancel();
+            throw e;
+        }
+        return event[0];
+    }
+
+    /**
+     * <p>getNumTransports</p>
+     *
+     * @return the number of UDP transports
+     */
+    public int getNumTransports() {
+        return m_transports.size();
+    }
+
+    /**
+     * <p>getRequestsSent</p>
+     *
+     * @return the number of requests sent since the pool was created
+     */
+    public long getRequestsSent() {
+        return m_requestsSent.get();
+    }
+
+    /**
+     * <p>getRequestsQueued</p>
+     *
+     * @return the number of requests that had to wait for an earlier request to the same agent
+     */
+    public long getRequestsQueued() {
+        return m_requestsQueued.get();
+    }
+
+    /**
+     * <p>getActiveAgents</p>
+     *
+     * @return the number of agents to which requests are in flight
+     */
+    public int getActiveAgents() {
+        return m_agents.size();
+    }
+
+    /**
+     * <p>getRequestsInFlight</p>
+     *
+     * @param address the address of the agent
+     * @return the number of requests in flight to the agent, which is never
+     * more than the maximum number of requests per agent
+     */
+    int getRequestsInFlight(Address address) {
+        final AgentRequests agent = m_agents.get(address);
+        if (agent == null) {
+            return 0;
+        }
+        synchronized (agent) {
+            return agent.m_inFlight;
+        }
+    }
+
+    /**
+     * Closes the transports. The listeners of the requests in flight, and
+     * of the queued requests, are called with an error.
+     */
+    @Override
+    public void close() {
+        m_closed = true;
+        try {
+            m_session.close();
+        } catch (IOException e) {
+            LOG.error("Error closing the shared SNMP transports", e);
+        }
+        for (final AgentRequests agent : m_agents.values()) {
+            final List<Request> requests;
+            synchronized (agent) {
+                requests = new ArrayList<Request>(agent.m_sent);
+                requests.addAll(agent.m_queued);
+            }
+            for (final Request request : requests) {
+                request.fail(new IOException("The shared SNMP transports are closed"));
+            }
+        }
+        m_dispatcherThreads.stop();
+    }
+
+    /**
+     * Reserves one of the requests that can be in flight to the agent.
+     *
+     * @return true if the request can be sent, false if it was queued
+     */
+    private boolean acquire(final Request request) {
+        final Address address = request.m_target.getAddress();
+        while (true) {
+            final AgentRequests agent = m_agents.computeIfAbsent(address, a -> new AgentRequests());
+            synchronized (agent) {
+                if (agent.m_removed) {
+                    continue;
+                }
+                request.m_agent = agent;
+                if (agent.m_inFlight < m_maxRequestsPerAgent) {
+                    agent.m_inFlight++;
+                    return true;
+                }
+                agent.m_queued.add(request);
+                m_requestsQueued.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Releases the reservation of a request that is no longer in flight, by
+     * sending the next request queued for the same agent, if any.
+     */
+    private void release(final Request request) {
+        final AgentRequests agent = request.m_agent;
+        final Request next;
+        synchronized (agent) {
+            agent.m_sent.remove(request);
+            // Once closed, the queued requests are failed instead
+            next = m_closed ? null : agent.m_queued.poll();
+            if (next == null && --agent.m_inFlight == 0) {
+                agent.m_removed = true;
+                m_agents.remove(request.m_target.getAddress(), agent);
+            }
+        }
+        if (next != null) {
+            try {
+                next.send(true);
+            } catch (IOException e) {
+                // passed to the listener of the queued request
+            }
+        }
+    }
+
+    private TransportMapping<UdpAddress> getTransport(final Address address) {
+        return m_transports.get((address.hashCode() & Integer.MAX_VALUE) % m_transports.size());
+    }
+
+    /**
+     * The requests in flight to an agent, and the ones waiting for them.
+     */
+    private static final class AgentRequests {
+        private int m_inFlight = 0;
+        private final Queue<Request> m_queued = new ArrayDeque<Request>();
+        private final Set<Request> m_sent = new HashSet<Request>();
+        private boolean m_removed = false;
+    }
+
+    /**
+     * A request sent, or to be sent, over the shared transports.
+     */
+    public final class Request implements ResponseListener {
+        private static final int QUEUED = 0;
+        private static final int SENT = 1;
+        private static final int DONE = 2;
+
+        private final Target m_target;
+        private final PDU m_pdu;
+        private final ResponseListener m_listener;
+        private final AtomicInteger m_state = new AtomicInteger(QUEUED);
+        private AgentRequests m_agent;
+
+        private Request(Target target, PDU pdu, ResponseListener listener) {
+            m_target = target;
+            m_pdu = pdu;
+            m_listener = listener;
+        }
+
+        /**
+         * Sends the request. If it can't be sent, the error is either passed
+         * to the listener, for a request that was queued, or thrown.
+         */
+        private void send(boolean queued) throws IOException {
+            if (!m_state.compareAndSet(QUEUED, SENT)) {
+                // Cancelled after being taken off the queue
+                release(this);
+                return;
+            }
+            synchronized (m_agent) {
+                m_agent.m_sent.add(this);
+            }
+            try {
+                m_session.send(m_pdu, m_target, getTransport(m_target.getAddress()), null, this);
+                m_requestsSent.incrementAndGet();
+            } catch (IOException e) {
+                if (queued) {
+                    fail(e);
+                } else {
+                    m_state.set(DONE);
+                    release(this);
+                    throw e;
+                }
+            }
+        }
+
+        private void fail(Exception e) {
+            if (m_state.get() == QUEUED) {
+                synchronized (m_agent) {
+                    if (!m_agent.m_queued.remove(this)) {
+                        return;
+                    }
+                }
+                m_state.set(DONE);
+            } else if (m_state.compareAndSet(SENT, DONE)) {
+                release(this);
+            } else {
+                return;
+            }
+            m_listener.onResponse(new ResponseEvent(m_session, m_target.getAddress(), m_pdu, null, null, e));
+        }
+
+        @Override
+        public void onResponse(ResponseEvent event) {
+            // The request is kept around until it is cancelled
+            m_session.cancel(event.getRequest(), this);
+
+            if (m_state.compareAndSet(SENT, DONE)) {
+                release(this);
+                m_listener.onResponse(event);
+            }
+        }
+
+        /**
+         * Cancels the request. Its listener won't be called.
+         */
+        public void cancel() {
+            synchronized (m_agent) {
+                if (m_state.get() == QUEUED && m_agent.m_queued.remove(this)) {
+                    m_state.set(DONE);
+                    return;
+                }
+            }
+            if (m_state.compareAndSet(SENT, DONE)) {
+                m_session.cancel(m_pdu, this);
+                release(this);
+            } else {
+                m_state.set(DONE);
+            }
+        }
+    }
+}
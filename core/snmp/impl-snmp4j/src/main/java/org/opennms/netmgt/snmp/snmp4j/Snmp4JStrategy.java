@@ -120,6 +120,14 @@ public class Snmp4JStrategy implements SnmpStrategy {
     public Snmp4JStrategy() {
         initialize();
     }
+
+    /**
+     * Closes the transports shared by the walkers and requests, see
+     * {@link Snmp4JSessionPool#shutdown()}.
+     */
+    public void shutdown() {
+        Snmp4JSessionPool.shutdown();
+    }
     
     /**
      * SNMP4J createWalker implemenetation.
@@ -242,6 +250,13 @@ public class Snmp4JStrategy implements SnmpStrategy {
      * adapted from default SnmpAgentConfig values to those compatible with the SNMP4J library.
      */
     protected SnmpValue[] send(Snmp4JAgentConfig agentConfig, PDU pdu, boolean expectResponse) {
+        if (expectResponse) {
+            final Snmp4JSessionPool pool = Snmp4JSessionPool.getInstance();
+            if (pool != null && pool.canShare(agentConfig)) {
+                return send(pool, agentConfig, pdu);
+            }
+        }
+
         Snmp session;
 
         try {
@@ -281,6 +296,24 @@ public class Snmp4JStrategy implements SnmpStrategy {
         }
     }
     
+    /**
+     * Sends an SNMP4J request PDU over the shared transports and waits for the response.
+     */
+    private static SnmpValue[] send(Snmp4JSessionPool pool, Snmp4JAgentConfig agentConfig, PDU pdu) {
+        try {
+            return processResponse(agentConfig, pool.send(agentConfig, pdu));
+        } catch (final InterruptedException e) {
+            LOG.warn("send: interrupted while waiting for a response from {}", agentConfig);
+            Thread.currentThread().interrupt();
+            return new SnmpValue[] { null };
+        } catch (final IOException e) {
+            LOG.error("send: error during SNMP operation", e);
+            return new SnmpValue[] { null };
+        } catch (final RuntimeException e) {
+            LOG.error("send: unexpected error during SNMP operation", e);
+            return new SnmpValue[] { null };
+        }
+    }
 
     protected PDU buildPdu(Snmp4JAgentConfig agentConfig, int pduType, SnmpObjId[] oids, SnmpValue[] values) {
         PDU pdu = agentConfig.createPdu(pduType);
@@ -441,7 +474,13 @@ public class Snmp4JStrategy implements SnmpStrategy {
         } else {
         	udpAddress = new UdpAddress(address, snmpTrapPort);
         }
-        final TransportMapping<UdpAddress> transport = new DefaultUdpTransportMapping(udpAddress);
+        final int decoderThreads = Integer.getInteger(Snmp4JTrapTransportMapping.DECODER_THREADS_PROPERTY, 0);
+        final TransportMapping<UdpAddress> transport;
+        if (decoderThreads > 0) {
+            transport = new Snmp4JTrapTransportMapping(udpAddress, decoderThreads, Integer.getInteger(Snmp4JTrapTransportMapping.RECEIVE_BUFFER_SIZE_PROPERTY, 0));
+        } else {
+            transport = new DefaultUdpTransportMapping(udpAddress);
+        }
         info.setTransportMapping(transport);
         Snmp snmp = new Snmp(transport);
         snmp.addCommandResponder(m_trapHandler);
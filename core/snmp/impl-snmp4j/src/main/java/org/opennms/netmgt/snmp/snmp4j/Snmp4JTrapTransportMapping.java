@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp.snmp4j;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.UdpTransportMapping;
+
+/**
+ * A UDP transport for receiving traps that decodes the messages on several
+ * threads, instead of on the single listener thread of the
+ * {@link org.snmp4j.transport.DefaultUdpTransportMapping}.
+ *
+ * A single thread reads the datagrams from the socket, which is all it
+ * does, and hands each one of them to one of the decoder threads, chosen by
+ * the address of the sender. The messages of any one agent are therefore
+ * always decoded by the same thread, in the order in which they were
+ * received, while the messages of different agents are decoded in parallel.
+ * When the queue of a decoder is full the reader waits, and further
+ * datagrams wait in the receive buffer of the socket.
+ *
+ * The transport is used by the {@link Snmp4JStrategy} when the
+ * org.opennms.snmp.snmp4j.trapDecoderThreads system property is set to a
+ * positive number of decoder threads. The size of the receive buffer of the
+ * socket can be set with org.opennms.snmp.snmp4j.trapReceiveBufferSize.
+ */
+public class Snmp4JTrapTransportMapping extends UdpTransportMapping {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Snmp4JTrapTransportMapping.class);
+
+    public static final String DECODER_THREADS_PROPERTY = "org.opennms.snmp.snmp4j.trapDecoderThreads";
+    public static final String RECEIVE_BUFFER_SIZE_PROPERTY = "org.opennms.snmp.snmp4j.trapReceiveBufferSize";
+
+    /**
+     * The number of datagrams that can wait for each decoder thread.
+     */
+    private static final int DECODER_QUEUE_SIZE = 1000;
+
+    /**
+     * Tells a decoder thread to exit.
+     */
+    private static final Datagram CLOSED = new Datagram(null, null);
+
+    private static class Datagram {
+        private final UdpAddress m_source;
+        private final byte[] m_message;
+
+        public Datagram(UdpAddress source, byte[] message) {
+            m_source = source;
+            m_message = message;
+        }
+    }
+
+    private final List<BlockingQueue<Datagram>> m_queues;
+    private final int m_receiveBufferSize;
+
+    private final AtomicLong m_messagesReceived = new AtomicLong();
+    private final AtomicLong m_messagesDecoded = new AtomicLong();
+
+    private volatile DatagramSocket m_socket;
+    private Thread m_reader;
+    private final List<Thread> m_decoders = new ArrayList<Thread>();
+
+    /**
+     * <p>Constructor for Snmp4JTrapTransportMapping.</p>
+     *
+     * @param address the address to listen on
+     * @param numDecoderThreads the number of threads decoding the messages
+     * @param receiveBufferSize the size of the receive buffer of the socket,
+     *        0 to leave the default size of the operating system
+     */
+    public Snmp4JTrapTransportMapping(UdpAddress address, int numDecoderThreads, int receiveBufferSize) {
+        super(address);
+        if (numDecoderThreads < 1) {
+            throw new IllegalArgumentException("At least one decoder thread is needed, got " + numDecoderThreads);
+        }
+        m_queues = new ArrayList<BlockingQueue<Datagram>>(numDecoderThreads);
+        for (int i = 0; i < numDecoderThreads; i++) {
+            m_queues.add(new ArrayBlockingQueue<Datagram>(DECODER_QUEUE_SIZE));
+        }
+        m_receiveBufferSize = receiveBufferSize;
+    }
+
+    @Override
+    public synchronized void listen() throws IOException {
+        if (m_reader != null) {
+            throw new SocketException("Port already listening");
+        }
+
+        final DatagramSocket socket = new DatagramSocket(null);
+        try {
+            if (m_receiveBufferSize > 0) {
+                socket.setReceiveBufferSize(m_receiveBufferSize);
+            }
+            socket.bind(new InetSocketAddress(udpAddress.getInetAddress(), udpAddress.getPort()));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        LOG.debug("Listening for traps on {} with {} decoder threads and a receive buffer of {} bytes", udpAddress, m_queues.size(), socket.getReceiveBufferSize());
+        m_socket = socket;
+
+        for (int i = 0; i < m_queues.size(); i++) {
+            final BlockingQueue<Datagram> queue = m_queues.get(i);
+            final Thread decoder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    decode(queue);
+                }
+            }, "Snmp4JTrapDecoder-" + udpAddress.getPort() + "-" + i);
+            decoder.setDaemon(true);
+            decoder.start();
+            m_decoders.add(decoder);
+        }
+
+        m_reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive(socket);
+            }
+        }, "Snmp4JTrapReceiver-" + udpAddress.getPort());
+        m_reader.setDaemon(true);
+        m_reader.start();
+    }
+
+    /**
+     * Reads the datagrams from the socket until it is closed.
+     */
+    private void receive(DatagramSocket socket) {
+        final byte[] buffer = new byte[getMaxInboundMessageSize()];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setData(buffer);
+                socket.receive(packet);
+                m_messagesReceived.incrementAndGet();
+
+                final UdpAddress source = new UdpAddress(packet.getAddress(), packet.getPort());
+                final int decoder = (packet.getAddress().hashCode() & Integer.MAX_VALUE) % m_queues.size();
+                m_queues.get(decoder).put(new Datagram(source, Arrays.copyOf(buffer, packet.getLength())));
+            } catch (InterruptedException e) {
+                LOG.debug("Interrupted while waiting for a decoder, exiting");
+                break;
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    LOG.warn("Failed to receive a trap on {}", udpAddress, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes and dispatches the datagrams of the queue until the transport
+     * is closed.
+     */
+    private void decode(BlockingQueue<Datagram> queue) {
+        while (true) {
+            final Datagram datagram;
+            try {
+                datagram = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (datagram == CLOSED) {
+                break;
+            }
+
+            try {
+                final TransportStateReference stateReference = new TransportStateReference(this, udpAddress, null, SecurityLevel.undefined, SecurityLevel.undefined, false, m_socket);
+                fireProcessMessage(datagram.m_source, ByteBuffer.wrap(datagram.m_message), stateReference);
+                m_messagesDecoded.incrementAndGet();
+            } catch (Throwable e) {
+                LOG.warn("Failed to process a trap from {}", datagram.m_source, e);
+            }
+        }
+    }
+
+    @Override
+    public void sendMessage(UdpAddress targetAddress, byte[] message, TransportStateReference tmStateReference) throws IOException {
+        final DatagramSocket socket = m_socket;
+        if (socket == null) {
+            throw new SocketException("Not listening on " + udpAddress);
+        }
+        socket.send(new DatagramPacket(message, message.length, targetAddress.getInetAddress(), targetAddress.getPort()));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (m_socket != null) {
+            m_socket.close();
+        }
+
+        if (m_reader != null) {
+            m_reader.interrupt();
+            joinQuietly(m_reader);
+            m_reader = null;
+        }
+
+        // Let the decoders finish what was received
+        for (BlockingQueue<Datagram> queue : m_queues) {
+            try {
+                queue.put(CLOSED);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Thread decoder : m_decoders) {
+            joinQuietly(decoder);
+        }
+        m_decoders.clear();
+        for (BlockingQueue<Datagram> queue : m_queues) {
+            queue.clear();
+        }
+        m_socket = null;
+    }
+
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isListening() {
+        return m_socket != null;
+    }
+
+    /**
+     * @return the number of datagrams received since the transport was created
+     */
+    public long getMessagesReceived() {
+        return m_messagesReceived.get();
+    }
+
+    /**
+     * @return the number of datagrams decoded since the transport was created
+     */
+    public long getMessagesDecoded() {
+        return m_messagesDecoded.get();
+    }
+
+    /**
+     * @return the number of datagrams waiting to be decoded
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (BlockingQueue<Datagram> queue : m_queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+}
@@ -164,7 +164,11 @@ public class Snmp4JWalker extends SnmpWalker {
         @Override
         public void onResponse(ResponseEvent responseEvent) {
             // need to cancel the request here otherwise SNMP4J Keeps it around forever... go figure
-            m_session.cancel(responseEvent.getRequest(), this);
+            // (the pool takes care of that for the requests it sends)
+            final Snmp session = m_session;
+            if (session != null) {
+                session.cancel(responseEvent.getRequest(), this);
+            }
 
             // Check to see if we got an interrupted exception
             if (responseEvent.getError() instanceof InterruptedException) {
@@ -186,6 +190,8 @@ public class Snmp4JWalker extends SnmpWalker {
     }
     
     private Snmp m_session;
+    private Snmp4JSessionPool m_pool;
+    private volatile Snmp4JSessionPool.Request m_request;
     private final Target m_tgt;
     private final ResponseListener m_listener;
     private final Snmp4JAgentConfig m_agentConfig;
@@ -217,13 +223,22 @@ public class Snmp4JWalker extends SnmpWalker {
         @Override
     protected void sendNextPdu(WalkerPduBuilder pduBuilder) throws IOException {
         Snmp4JPduBuilder snmp4JPduBuilder = (Snmp4JPduBuilder)pduBuilder;
-        if (m_session == null) {
-            m_session = m_agentConfig.createSnmpSession();
-            m_session.listen();
+        if (m_session == null && m_pool == null) {
+            final Snmp4JSessionPool pool = Snmp4JSessionPool.getInstance();
+            if (pool != null && pool.canShare(m_agentConfig)) {
+                m_pool = pool;
+            } else {
+                m_session = m_agentConfig.createSnmpSession();
+                m_session.listen();
+            }
         }
         
         LOG.debug("Sending tracker pdu of size {}", snmp4JPduBuilder.getPdu().size());
-        m_session.send(snmp4JPduBuilder.getPdu(), m_tgt, null, m_listener);
+        if (m_pool != null) {
+            m_request = m_pool.send(m_agentConfig, snmp4JPduBuilder.getPdu(), m_listener);
+        } else {
+            m_session.send(snmp4JPduBuilder.getPdu(), m_tgt, null, m_listener);
+        }
     }
     
     protected int getVersion() {
@@ -232,6 +247,11 @@ public class Snmp4JWalker extends SnmpWalker {
 
     @Override
     public void close() throws IOException {
+        final Snmp4JSessionPool.Request request = m_request;
+        if (request != null) {
+            request.cancel();
+            m_request = null;
+        }
         if (m_session != null) {
             m_session.close();
             m_session = null;
@@ -0,0 +1,353 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp.snmp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.mock.snmp.MockSnmpAgent;
+import org.opennms.netmgt.snmp.ColumnTracker;
+import org.opennms.netmgt.snmp.SnmpAgentConfig;
+import org.opennms.netmgt.snmp.SnmpObjId;
+import org.opennms.netmgt.snmp.SnmpResult;
+import org.opennms.netmgt.snmp.SnmpValue;
+import org.snmp4j.PDU;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Tests for the UDP transports shared by the SNMP4J walkers and requests.
+ *
+ * The requests are spread over several agents, each one listening on its
+ * own port and answering with its own value for .1.3.5.1.1.3.0, so that
+ * every response can be matched with the agent it was meant for.
+ */
+public class Snmp4JSessionPoolIT extends MockSnmpAgentITCase {
+
+    private static final int NUM_AGENTS = 8;
+
+    private static final String AGENT_OID = ".1.3.5.1.1.3.0";
+
+    private final List<MockSnmpAgent> m_agents = new ArrayList<MockSnmpAgent>();
+
+    private Snmp4JSessionPool m_pool;
+
+    @Override
+    protected boolean usingMockStrategy() {
+        return false;
+    }
+
+    /**
+     * Starts more agents next to the one of {@link MockSnmpAgentITCase}.
+     * Agent n answers n + 42, the first one keeps the 42 of the properties.
+     */
+    @Before
+    public void startAgents() throws Exception {
+        m_agents.add(getAgent());
+        for (int i = 1; i < NUM_AGENTS; i++) {
+            final MockSnmpAgent agent = MockSnmpAgent.createAgentAndRun(getPropertiesResource().getURL(), getAgentAddress().getHostAddress() + "/0");
+            agent.updateIntValue(AGENT_OID, getAgentValue(i));
+            m_agents.add(agent);
+        }
+    }
+
+    @After
+    public void closePool() throws Exception {
+        if (m_pool != null) {
+            m_pool.close();
+        }
+        for (int i = 1; i < m_agents.size(); i++) {
+            m_agents.get(i).shutDownAndWait();
+        }
+    }
+
+    private static int getAgentValue(int agent) {
+        return agent + 42;
+    }
+
+    private SnmpAgentConfig getAgentConfig(int agent) {
+        final SnmpAgentConfig config = getAgentConfig();
+        config.setAddress(m_agents.get(agent).getInetAddress());
+        config.setPort(m_agents.get(agent).getPort());
+        return config;
+    }
+
+    /**
+     * Collects the responses to the requests sent to the agents.
+     */
+    private static class Responses {
+        private final CountDownLatch m_latch;
+        private final ConcurrentLinkedQueue<ResponseEvent> m_events = new ConcurrentLinkedQueue<ResponseEvent>();
+        private final ConcurrentLinkedQueue<String> m_misrouted = new ConcurrentLinkedQueue<String>();
+
+        public Responses(int count) {
+            m_latch = new CountDownLatch(count);
+        }
+
+        /**
+         * Returns a listener that checks that the response comes from the
+         * given agent and carries its value.
+         */
+        public ResponseListener forAgent(final int agent, final Address address) {
+            return new ResponseListener() {
+                @Override
+                public void onResponse(ResponseEvent event) {
+                    if (event.getResponse() != null) {
+                        final int value = event.getResponse().get(0).getVariable().toInt();
+                        if (value != getAgentValue(agent) || !address.equals(event.getPeerAddress())) {
+                            m_misrouted.add("agent " + agent + " at " + address + " got " + value + " from " + event.getPeerAddress());
+                        }
+                    }
+                    m_events.add(event);
+                    m_latch.countDown();
+                }
+            };
+        }
+
+        public void await() throws InterruptedException {
+            assertTrue("timed out waiting for " + m_latch.getCount() + " responses", m_latch.await(60, TimeUnit.SECONDS));
+            assertTrue("misrouted responses: " + m_misrouted, m_misrouted.isEmpty());
+        }
+    }
+
+    private PDU createGetPdu(Snmp4JAgentConfig agentConfig) {
+        final PDU pdu = agentConfig.createPdu(PDU.GET);
+        pdu.add(new VariableBinding(new OID(AGENT_OID)));
+        return pdu;
+    }
+
+    private static int countTransportThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("DefaultUDPTransportMapping")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void assertRequestsInFlight(int maxRequestsPerAgent) {
+        for (int agent = 0; agent < NUM_AGENTS; agent++) {
+            final Address address = new Snmp4JAgentConfig(getAgentConfig(agent)).getTarget().getAddress();
+            final int inFlight = m_pool.getRequestsInFlight(address);
+            assertTrue("agent " + agent + " has " + inFlight + " requests in flight", inFlight <= maxRequestsPerAgent);
+        }
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        m_pool = new Snmp4JSessionPool(2, 4, 16);
+        final int transportThreads = countTransportThreads();
+
+        final int numRequests = 2000;
+        final Responses responses = new Responses(numRequests);
+        for (int i = 0; i < numRequests; i++) {
+            final int agent = i % NUM_AGENTS;
+            final Snmp4JAgentConfig agentConfig = new Snmp4JAgentConfig(getAgentConfig(agent));
+            assertTrue(m_pool.canShare(agentConfig));
+            m_pool.send(agentConfig, createGetPdu(agentConfig), responses.forAgent(agent, agentConfig.getTarget().getAddress()));
+            assertRequestsInFlight(16);
+        }
+        assertEquals(transportThreads, countTransportThreads());
+        responses.await();
+
+        final Set<Address> peers = new HashSet<Address>();
+        for (ResponseEvent event : responses.m_events) {
+            assertNull(event.getError());
+            assertNotNull("timed out", event.getResponse());
+            peers.add(event.getPeerAddress());
+        }
+        assertEquals(NUM_AGENTS, peers.size());
+        assertEquals(numRequests, m_pool.getRequestsSent());
+        assertEquals(0, m_pool.getActiveAgents());
+    }
+
+    @Test
+    public void testQueuesRequestsPerAgent() throws Exception {
+        m_pool = new Snmp4JSessionPool(1, 1, 1);
+
+        final int numRequests = 200;
+        final Responses responses = new Responses(numRequests);
+        for (int i = 0; i < numRequests; i++) {
+            final int agent = i % NUM_AGENTS;
+            final Snmp4JAgentConfig agentConfig = new Snmp4JAgentConfig(getAgentConfig(agent));
+            m_pool.send(agentConfig, createGetPdu(agentConfig), responses.forAgent(agent, agentConfig.getTarget().getAddress()));
+            assertRequestsInFlight(1);
+        }
+        responses.await();
+
+        for (ResponseEvent event : responses.m_events) {
+            assertNotNull("timed out", event.getResponse());
+        }
+        assertEquals(numRequests, m_pool.getRequestsSent());
+        assertTrue(m_pool.getRequestsQueued() > 0);
+        assertEquals(0, m_pool.getActiveAgents());
+    }
+
+    @Test
+    public void testCancelQueuedRequest() throws Exception {
+        m_pool = new Snmp4JSessionPool(1, 1, 1);
+        final Snmp4JAgentConfig agentConfig = new Snmp4JAgentConfig(getAgentConfig(0));
+        final Snmp4JAgentConfig otherAgentConfig = new Snmp4JAgentConfig(getAgentConfig(1));
+        final Address address = agentConfig.getTarget().getAddress();
+
+        final Responses first = new Responses(1);
+        final Responses second = new Responses(1);
+        final Responses third = new Responses(1);
+        final Responses other = new Responses(1);
+        m_pool.send(agentConfig, createGetPdu(agentConfig), first.forAgent(0, address));
+        m_pool.send(agentConfig, createGetPdu(agentConfig), second.forAgent(0, address)).cancel();
+        m_pool.send(agentConfig, createGetPdu(agentConfig), third.forAgent(0, address));
+        // the requests queued for the first agent don't hold up the other one
+        m_pool.send(otherAgentConfig, createGetPdu(otherAgentConfig), other.forAgent(1, otherAgentConfig.getTarget().getAddress()));
+
+        first.await();
+        third.await();
+        other.await();
+        assertFalse(second.m_latch.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(3, m_pool.getRequestsSent());
+        assertEquals(0, m_pool.getActiveAgents());
+    }
+
+    @Test
+    public void testSynchronousSend() throws Exception {
+        m_pool = new Snmp4JSessionPool(2, 1, 1);
+
+        for (int agent = 0; agent < NUM_AGENTS; agent++) {
+            final Snmp4JAgentConfig agentConfig = new Snmp4JAgentConfig(getAgentConfig(agent));
+            final ResponseEvent event = m_pool.send(agentConfig, createGetPdu(agentConfig));
+            assertNotNull(event.getResponse());
+            assertEquals(agentConfig.getTarget().getAddress(), event.getPeerAddress());
+            assertEquals(getAgentValue(agent), event.getResponse().get(0).getVariable().toInt());
+        }
+    }
+
+    @Test
+    public void testCloseFailsQueuedRequests() throws Exception {
+        m_pool = new Snmp4JSessionPool(1, 1, 1);
+
+        final Responses responses = new Responses(10 * NUM_AGENTS);
+        for (int i = 0; i < 10 * NUM_AGENTS; i++) {
+            final int agent = i % NUM_AGENTS;
+            final Snmp4JAgentConfig agentConfig = new Snmp4JAgentConfig(getAgentConfig(agent));
+            m_pool.send(agentConfig, createGetPdu(agentConfig), responses.forAgent(agent, agentConfig.getTarget().getAddress()));
+        }
+        m_pool.close();
+        responses.await();
+        assertFalse(m_pool.canShare(new Snmp4JAgentConfig(getAgentConfig())));
+    }
+
+    /**
+     * Walks the agents with a thousand walkers at once, each with its own
+     * agent configuration, and checks that none of them opened a socket
+     * of its own, or got the values of another agent.
+     */
+    @Test
+    public void testConcurrentWalkers() throws Exception {
+        assertNotNull(Snmp4JSessionPool.getInstance());
+        final int transportThreads = countTransportThreads();
+        final long requestsSent = Snmp4JSessionPool.getInstance().getRequestsSent();
+
+        final int numWalkers = 1000;
+        final AtomicInteger results = new AtomicInteger();
+        final ConcurrentLinkedQueue<String> misrouted = new ConcurrentLinkedQueue<String>();
+        final List<Snmp4JWalker> walkers = new ArrayList<Snmp4JWalker>(numWalkers);
+        for (int i = 0; i < numWalkers; i++) {
+            final int agent = i % NUM_AGENTS;
+            final String name = "walker" + i;
+            final ColumnTracker tracker = new ColumnTracker(SnmpObjId.get(".1.3.5.1.1")) {
+                @Override
+                protected void storeResult(SnmpResult res) {
+                    if (SnmpObjId.get(AGENT_OID).equals(res.getAbsoluteInstance()) && res.getValue().toInt() != getAgentValue(agent)) {
+                        misrouted.add(name + " of agent " + agent + " got " + res.getValue());
+                    }
+                    results.incrementAndGet();
+                }
+            };
+            final Snmp4JWalker walker = new Snmp4JWalker(new Snmp4JAgentConfig(getAgentConfig(agent)), name, tracker);
+            walkers.add(walker);
+            walker.start();
+        }
+        assertEquals(transportThreads, countTransportThreads());
+
+        for (Snmp4JWalker walker : walkers) {
+            assertTrue(walker.waitFor(60000));
+            assertFalse(walker.getErrorMessage(), walker.failed());
+        }
+        assertTrue("misrouted results: " + misrouted, misrouted.isEmpty());
+        // SNMPv1 can't carry the Counter64
+        assertEquals(numWalkers * 8, results.get());
+        assertTrue(Snmp4JSessionPool.getInstance().getRequestsSent() >= requestsSent + numWalkers);
+    }
+
+    @Test
+    public void testStrategyUsesPool() throws Exception {
+        final Snmp4JStrategy strategy = new Snmp4JStrategy();
+        final long requestsSent = Snmp4JSessionPool.getInstance().getRequestsSent();
+
+        for (int agent = 0; agent < NUM_AGENTS; agent++) {
+            final SnmpValue value = strategy.get(getAgentConfig(agent), SnmpObjId.get(AGENT_OID));
+            assertEquals(getAgentValue(agent), value.toInt());
+        }
+        assertEquals(requestsSent + NUM_AGENTS, Snmp4JSessionPool.getInstance().getRequestsSent());
+    }
+
+    @Test
+    public void testStrategyShutdownClosesPool() throws Exception {
+        final Snmp4JSessionPool pool = Snmp4JSessionPool.getInstance();
+        assertNotNull(pool);
+        new Snmp4JStrategy().shutdown();
+        assertFalse(pool.canShare(new Snmp4JAgentConfig(getAgentConfig())));
+
+        // the next request opens the shared transports again
+        final Snmp4JStrategy strategy = new Snmp4JStrategy();
+        assertEquals(getAgentValue(1), strategy.get(getAgentConfig(1), SnmpObjId.get(AGENT_OID)).toInt());
+        assertNotSame(pool, Snmp4JSessionPool.getInstance());
+        assertEquals(1, Snmp4JSessionPool.getInstance().getRequestsSent());
+    }
+}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp.snmp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * Tests for the trap transport that decodes the messages on several threads.
+ */
+public class Snmp4JTrapTransportMappingIT {
+
+    private static final int TRAP_PORT = 9163;
+
+    private static final OID SEQUENCE_OID = new OID(".1.3.6.1.4.1.5813.99.1");
+
+    private final List<Snmp> m_sessions = new ArrayList<Snmp>();
+
+    @After
+    public void closeSessions() throws IOException {
+        for (Snmp session : m_sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * Records the sequence numbers of the traps of each agent, and the
+     * threads on which they were processed.
+     */
+    private static class TrapRecorder implements CommandResponder {
+        private final Map<InetAddress, List<Integer>> m_sequences = new HashMap<InetAddress, List<Integer>>();
+        private final Set<String> m_threads = new HashSet<String>();
+        private final CountDownLatch m_latch;
+        private volatile long m_lastReceived;
+
+        public TrapRecorder(int numTraps) {
+            m_latch = new CountDownLatch(numTraps);
+        }
+
+        @Override
+        public void processPdu(CommandResponderEvent event) {
+            final InetAddress agent = ((UdpAddress)event.getPeerAddress()).getInetAddress();
+            final int sequence = event.getPDU().getVariable(SEQUENCE_OID).toInt();
+            synchronized (this) {
+                if (!m_sequences.containsKey(agent)) {
+                    m_sequences.put(agent, new ArrayList<Integer>());
+                }
+                m_sequences.get(agent).add(sequence);
+                m_threads.add(Thread.currentThread().getName());
+            }
+            m_lastReceived = System.currentTimeMillis();
+            m_latch.countDown();
+        }
+    }
+
+    private Snmp listen(TransportMapping<UdpAddress> transport, TrapRecorder recorder) throws IOException {
+        final Snmp session = new Snmp(transport);
+        m_sessions.add(session);
+        session.addCommandResponder(recorder);
+        session.listen();
+        return session;
+    }
+
+    /**
+     * Sends traps from the agents, round-robin, numbering the traps of each
+     * agent from 0.
+     */
+    private void sendTraps(List<InetAddress> agents, int numTrapsPerAgent) throws IOException {
+        final List<Snmp> senders = new ArrayList<Snmp>();
+        for (InetAddress agent : agents) {
+            final Snmp sender = new Snmp(new DefaultUdpTransportMapping(new UdpAddress(agent, 0)));
+            m_sessions.add(sender);
+            senders.add(sender);
+        }
+
+        final CommunityTarget target = new CommunityTarget(new UdpAddress(InetAddress.getLoopbackAddress(), TRAP_PORT), new OctetString("public"));
+        target.setVersion(SnmpConstants.version2c);
+        for (int i = 0; i < numTrapsPerAgent; i++) {
+            for (Snmp sender : senders) {
+                final PDU pdu = new PDU();
+                pdu.setType(PDU.TRAP);
+                pdu.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(i)));
+                pdu.add(new VariableBinding(SnmpConstants.snmpTrapOID, new OID(".1.3.6.1.4.1.5813.99.0.1")));
+                pdu.add(new VariableBinding(SEQUENCE_OID, new Integer32(i)));
+                sender.send(pdu, target);
+            }
+            if (i % 50 == 49) {
+                // don't overrun the default receive buffer
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static List<InetAddress> getAgents(int numAgents) throws IOException {
+        final List<InetAddress> agents = new ArrayList<InetAddress>();
+        for (int i = 1; i <= numAgents; i++) {
+            // the whole 127.0.0.0/8 block is on the loopback interface on Linux
+            agents.add(InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte)i }));
+        }
+        return agents;
+    }
+
+    @Test
+    public void testDecodesInParallelAndInOrderPerAgent() throws Exception {
+        final int numAgents = 4;
+        final int numTrapsPerAgent = 500;
+        final List<InetAddress> agents = getAgents(numAgents);
+
+        final TrapRecorder recorder = new TrapRecorder(numAgents * numTrapsPerAgent);
+        final Snmp4JTrapTransportMapping transport = new Snmp4JTrapTransportMapping(new UdpAddress(InetAddress.getLoopbackAddress(), TRAP_PORT), numAgents, 0);
+        listen(transport, recorder);
+
+        sendTraps(agents, numTrapsPerAgent);
+        assertTrue("received " + transport.getMessagesReceived() + " traps", recorder.m_latch.await(30, TimeUnit.SECONDS));
+
+        final List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < numTrapsPerAgent; i++) {
+            expected.add(i);
+        }
+        synchronized (recorder) {
+            assertEquals(new HashSet<InetAddress>(agents), recorder.m_sequences.keySet());
+            for (InetAddress agent : agents) {
+                assertEquals(agent.toString(), expected, recorder.m_sequences.get(agent));
+            }
+            // consecutive addresses end up on different decoders
+            assertEquals(recorder.m_threads.toString(), numAgents, recorder.m_threads.size());
+        }
+        assertEquals(numAgents * numTrapsPerAgent, transport.getMessagesReceived());
+        assertEquals(numAgents * numTrapsPerAgent, transport.getMessagesDecoded());
+        assertEquals(0, transport.getQueueSize());
+    }
+
+    @Test
+    public void testCloseAndListenAgain() throws Exception {
+        final Snmp4JTrapTransportMapping transport = new Snmp4JTrapTransportMapping(new UdpAddress(InetAddress.getLoopbackAddress(), TRAP_PORT), 2, 0);
+        transport.listen();
+        assertTrue(transport.isListening());
+        transport.close();
+        assertTrue(!transport.isListening());
+
+        // the port is free again
+        final TrapRecorder recorder = new TrapRecorder(10);
+        listen(new Snmp4JTrapTransportMapping(new UdpAddress(InetAddress.getLoopbackAddress(), TRAP_PORT), 2, 0), recorder);
+        sendTraps(Collections.singletonList(InetAddress.getLoopbackAddress()), 10);
+        assertTrue(recorder.m_latch.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Sends a burst of traps from many agents to the default transport and
+     * to the parallel one, and prints how many were received and how long
+     * it took to process them.
+     */
+    @Test
+    @Ignore
+    public void trapReceiverPerfTest() throws Exception {
+        final int numAgents = 64;
+        final int numTrapsPerAgent = 2000;
+        final List<InetAddress> agents = getAgents(numAgents);
+
+        for (int decoders : new int[] { 0, 4 }) {
+            final TrapRecorder recorder = new TrapRecorder(numAgents * numTrapsPerAgent);
+            final UdpAddress address = new UdpAddress(InetAddress.getLoopbackAddress(), TRAP_PORT);
+            final Snmp session = listen(decoders == 0 ? new DefaultUdpTransportMapping(address) : new Snmp4JTrapTransportMapping(address, decoders, 0), recorder);
+
+            final long start = System.currentTimeMillis();
+            sendTraps(agents, numTrapsPerAgent);
+            recorder.m_latch.await(30, TimeUnit.SECONDS);
+            final long elapsed = Math.max(1, recorder.m_lastReceived - start);
+
+            final long received = numAgents * numTrapsPerAgent - recorder.m_latch.getCount();
+            System.err.printf("decoders: %d, received %d of %d traps in %dms (%d traps/s)%n", decoders, received, numAgents * numTrapsPerAgent, elapsed, received * 1000 / elapsed);
+            session.close();
+            m_sessions.remove(session);
+        }
+    }
+}
@@ -39,6 +39,7 @@ import org.opennms.netmgt.collection.api.PersistException;
 import org.opennms.netmgt.collection.api.ServiceParameters;
 import org.opennms.netmgt.dao.api.ResourceStorageDao;
 import org.opennms.netmgt.model.ResourcePath;
+import org.opennms.netmgt.model.ResourceTypeUtils;
 import org.opennms.netmgt.rrd.RrdRepository;
 import org.opennms.netmgt.rrd.RrdStrategy;
 import org.slf4j.Logger;
@@ -82,6 +83,9 @@ public class BasePersister extends AbstractPersister {
         if (resource.getTimeKeeper() != null) {
             builder.setTimeKeeper(resource.getTimeKeeper());
         }
+        if (m_resourceStorageDao != null) {
+            builder.setResourceStorageDao(m_resourceStorageDao, ResourceTypeUtils.getResourcePathWithRepository(getRepository(), resource.getPath()));
+        }
         for (Iterator<CollectionAttributeType> iter = attributeTypes.iterator(); iter.hasNext();) {
             CollectionAttributeType attrType = iter.next();
             if (attrType instanceof NumericCollectionAttributeType) {
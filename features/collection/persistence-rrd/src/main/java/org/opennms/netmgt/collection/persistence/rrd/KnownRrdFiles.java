@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.collection.persistence.rrd;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the RRD files that were created by the persisters, or that
+ * already existed, so that they don't ask the strategy to create them again
+ * on every update, which means looking for them on the disk.
+ *
+ * The strategy may write the updates asynchronously, in which case a failed
+ * update of a file that was removed behind the persisters' back goes
+ * unnoticed. So the files are still looked for every checkInterval
+ * milliseconds, and entries expire after maxAge milliseconds. Once there are
+ * maxSize entries, all of them are forgotten.
+ */
+class KnownRrdFiles {
+
+    private static final class Entry {
+        private final long m_expiration;
+        private volatile long m_nextCheck;
+
+        private Entry(long expiration, long nextCheck) {
+            m_expiration = expiration;
+            m_nextCheck = nextCheck;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> m_entries = new ConcurrentHashMap<String, Entry>();
+
+    private final long m_maxAge;
+
+    private final int m_maxSize;
+
+    private final long m_checkInterval;
+
+    /**
+     * @param maxAge the number of milliseconds after which a file is checked
+     * again, or 0 to check it on every update
+     * @param maxSize the number of files that are remembered
+     * @param checkInterval the number of milliseconds after which a file is
+     * looked for on the disk again, or 0 to look for it on every update
+     */
+    public KnownRrdFiles(long maxAge, int maxSize, long checkInterval) {
+        m_maxAge = maxAge;
+        m_maxSize = maxSize;
+        m_checkInterval = checkInterval;
+    }
+
+    public boolean contains(String fileName) {
+        final Entry entry = m_entries.get(fileName);
+        if (entry == null) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        if (entry.m_expiration < now) {
+            m_entries.remove(fileName, entry);
+            return false;
+        }
+        if (entry.m_nextCheck <= now) {
+            if (!new File(fileName).exists()) {
+                m_entries.remove(fileName, entry);
+                return false;
+            }
+            entry.m_nextCheck = now + m_checkInterval;
+        }
+        return true;
+    }
+
+    public void add(String fileName) {
+        if (m_maxAge <= 0 || m_maxSize <= 0) {
+            return;
+        }
+        if (m_entries.size() >= m_maxSize) {
+            m_entries.clear();
+        }
+        // give an asynchronous strategy time to create the file
+        final long now = System.currentTimeMillis();
+        m_entries.put(fileName, new Entry(now + m_maxAge, now + m_checkInterval));
+    }
+
+    public void remove(String fileName) {
+        m_entries.remove(fileName);
+    }
+
+    public int size() {
+        return m_entries.size();
+    }
+}
@@ -39,6 +39,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.function.Supplier;
 
 import org.opennms.core.utils.StringUtils;
 import org.opennms.netmgt.collection.api.ByNameComparator;
@@ -49,10 +50,13 @@ import org.opennms.netmgt.collection.api.PersistOperationBuilder;
 import org.opennms.netmgt.collection.api.ResourceIdentifier;
 import org.opennms.netmgt.collection.api.TimeKeeper;
 import org.opennms.netmgt.collection.support.DefaultTimeKeeper;
+import org.opennms.netmgt.dao.api.ResourceStorageDao;
+import org.opennms.netmgt.model.ResourcePath;
 import org.opennms.netmgt.rrd.RrdDataSource;
 import org.opennms.netmgt.rrd.RrdException;
 import org.opennms.netmgt.rrd.RrdRepository;
 import org.opennms.netmgt.rrd.RrdStrategy;
+import org.opennms.netmgt.rrd.RrdUpdates;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
@@ -73,6 +77,8 @@ public class RrdPersistOperationBuilder implements PersistOperationBuilder {
     private final Map<CollectionAttributeType, Number> m_declarations;
     private final Map<String, String> m_metaData = new LinkedHashMap<String, String>();
     private TimeKeeper m_timeKeeper = new DefaultTimeKeeper();
+    private ResourceStorageDao m_resourceStorageDao;
+    private ResourcePath m_resourcePath;
 
     /**
      * RRDTool defined Data Source Types NOTE: "DERIVE" and "ABSOLUTE" not
@@ -83,6 +89,24 @@ public class RrdPersistOperationBuilder implements PersistOperationBuilder {
     /** Constant <code>MAX_DS_NAME_LENGTH=19</code> */
     public static final int MAX_DS_NAME_LENGTH = 19;
 
+    /**
+     * Values of a larger magnitude than this may not be integers when they
+     * are converted to a double, which breaks 64-bit counters.
+     */
+    private static final double MAX_EXACT_INTEGER = 9007199254740992.0;
+
+    private static final String KNOWN_FILES_MAX_AGE_PROPERTY = "org.opennms.rrd.knownFiles.maxAge";
+    private static final String KNOWN_FILES_MAX_SIZE_PROPERTY = "org.opennms.rrd.knownFiles.maxSize";
+    private static final String KNOWN_FILES_CHECK_INTERVAL_PROPERTY = "org.opennms.rrd.knownFiles.checkInterval";
+
+    /**
+     * The files that don't have to be created before they are updated.
+     */
+    private static final KnownRrdFiles s_knownFiles = new KnownRrdFiles(
+            Long.getLong(KNOWN_FILES_MAX_AGE_PROPERTY, 3600000L),
+            Integer.getInteger(KNOWN_FILES_MAX_SIZE_PROPERTY, 1000000),
+            Long.getLong(KNOWN_FILES_CHECK_INTERVAL_PROPERTY, 300000L));
+
     /**
      * <p>Constructor for PersistOperationBuilder.</p>
      *
@@ -107,6 +131,18 @@ public class RrdPersistOperationBuilder implements PersistOperationBuilder {
         return m_rrdStrategy;
     }
 
+    /**
+     * Sets the DAO that is notified once the RRD file was created, and the
+     * path of the resource relative to the RRD directory.
+     *
+     * @param resourceStorageDao a {@link org.opennms.netmgt.dao.api.ResourceStorageDao} object.
+     * @param resourcePath a {@link org.opennms.netmgt.model.ResourcePath} object.
+     */
+    public void setResourceStorageDao(ResourceStorageDao resourceStorageDao, ResourcePath resourcePath) {
+        m_resourceStorageDao = resourceStorageDao;
+        m_resourcePath = resourcePath;
+    }
+
     /**
      * <p>getRepository</p>
      *
@@ -208,10 +244,30 @@ public class RrdPersistOperationBuilder implements PersistOperationBuilder {
         try {
             final String ownerName = m_resource.getOwnerName();
             final String absolutePath = getResourceDir(m_resource).getAbsolutePath();
+            final String rrdFile = absolutePath + File.separator + m_rrdName + m_rrdStrategy.getDefaultFileExtension();
+            final long timestamp = (m_timeKeeper.getCurrentTime() + 500L) / 1000L;
+
+            if (s_knownFiles.contains(rrdFile)) {
+                try {
+                    updateRRD(m_rrdStrategy, ownerName, rrdFile, timestamp, getValues(), this::getValuesAsString);
+                    return;
+                } catch (RrdException e) {
+                    if (new File(rrdFile).exists()) {
+                        throw e;
+                    }
+                    LOG.debug("commit: RRD file {} was removed, creating it again", rrdFile);
+                    s_knownFiles.remove(rrdFile);
+                }
+            }
+
             List<RrdDataSource> dataSources = getDataSources();
             if (dataSources != null && dataSources.size() > 0) {
                 createRRD(m_rrdStrategy, ownerName, absolutePath, m_rrdName, getRepository().getStep(), dataSources, getRepository().getRraList(), m_metaData);
-                updateRRD(m_rrdStrategy, ownerName, absolutePath, m_rrdName, m_timeKeeper.getCurrentTime(), getValues());
+                s_knownFiles.add(rrdFile);
+                if (m_resourceStorageDao != null) {
+                    m_resourceStorageDao.metricsPersisted(m_resourcePath, m_rrdName);
+                }
+                updateRRD(m_rrdStrategy, ownerName, rrdFile, timestamp, getValues(), this::getValuesAsString);
             }
         } catch (FileNotFoundException e) {
             LoggerFactory.getLogger(getClass()).warn("Could not get resource directory: " + e.getMessage(), e);
@@ -221,7 +277,29 @@ public class RrdPersistOperationBuilder implements PersistOperationBuilder {
         }
     }
 
-    private String getValues() {
+    /**
+     * Returns the values in the order of the data sources, or null if one of
+     * them can't be converted to a double without changing it, i.e. a 64-bit
+     * counter above 2^53.
+     */
+    private double[] getValues() {
+        final double[] values = new double[m_declarations.size()];
+        int i = 0;
+        for (final Number value : m_declarations.values()) {
+            if (value == null) {
+                values[i++] = Double.NaN;
+                continue;
+            }
+            final double doubleValue = value.doubleValue();
+            if (!(value instanceof Double || value instanceof Float) && Math.abs(doubleValue) > MAX_EXACT_INTEGER) {
+                return null;
+            }
+            values[i++] = Double.isFinite(doubleValue) ? doubleValue : Double.NaN;
+        }
+        return values;
+    }
+
+    private String getValuesAsString() {
         boolean first = true;
         StringBuffer values = new StringBuffer();
         for (Iterator<CollectionAttributeType> iter = m_declarations.keySet().iterator(); iter.hasNext();) {
@@ -295,31 +373,35 @@ public class RrdPersistOperationBuilder implements PersistOperationBuilder {
      * Add datapoints to a round robin database.
      *
      * @param owner the owner of the file. This is used in log messages
-     * @param repositoryDir the directory the file resides in
-     * @param rrdName the name for the rrd file.
-     * @param timestamp the timestamp in millis to use for the rrd update (this
-     * gets rounded to the nearest second)
-     * @param val a colon separated list of values representing the updates for
-     * datasources for this rrd
+     * @param rrdFile the absolute path of the file
+     * @param timestamp the timestamp in seconds to use for the rrd update
+     * @param values the values for the datasources of this rrd, or null if
+     * they must be passed on as a string
+     * @param valuesAsString supplies a colon separated list of the values
+     * when values is null
      * @throws org.opennms.netmgt.rrd.RrdException if any.
      */
-    private static void updateRRD(RrdStrategy<?, ?> rrdStrategy, String owner, String repositoryDir, String rrdName, long timestamp, String val) throws RrdException {
+    private static void updateRRD(RrdStrategy<?, ?> rrdStrategy, String owner, String rrdFile, long timestamp, double[] values, Supplier<String> valuesAsString) throws RrdException {
         // Issue the RRD update
-        String rrdFile = repositoryDir + File.separator + rrdName + rrdStrategy.getDefaultFileExtension();
-        long time = (timestamp + 500L) / 1000L;
-
-        String updateVal = Long.toString(time) + ":" + val;
+        final String updateVal = values == null ? Long.toString(timestamp) + ":" + valuesAsString.get() : null;
 
-        LOG.info("updateRRD: updating RRD file {} with values '{}'", rrdFile, updateVal);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("updateRRD: updating RRD file {} with values '{}'", rrdFile, updateVal != null ? updateVal : RrdUpdates.format(timestamp, values));
+        }
 
         RrdStrategy<Object, Object> strategy = toGenericType(rrdStrategy);
         Object rrd = null;
         try {
             rrd = strategy.openFile(rrdFile);
-            strategy.updateFile(rrd, owner, updateVal);
+            if (updateVal != null) {
+                strategy.updateFile(rrd, owner, updateVal);
+            } else {
+                strategy.updateFile(rrd, owner, timestamp, values);
+            }
         } catch (Throwable e) {
-            LOG.error("updateRRD: Error updating RRD file {} with values '{}'", rrdFile, updateVal, e);
-            throw new org.opennms.netmgt.rrd.RrdException("Error updating RRD file " + rrdFile + " with values '" + updateVal + "': " + e, e);
+            // the persister logs the error, unless the file is created again
+            final String update = updateVal != null ? updateVal : RrdUpdates.format(timestamp, values);
+            throw new org.opennms.netmgt.rrd.RrdException("Error updating RRD file " + rrdFile + " with values '" + update + "': " + e, e);
         } finally {
             try {
                 if (rrd != null) {
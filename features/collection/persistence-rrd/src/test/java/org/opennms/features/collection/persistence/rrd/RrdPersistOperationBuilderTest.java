@@ -29,15 +29,247 @@
 package org.opennms.features.collection.persistence.rrd;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
 
+import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.netmgt.collection.api.AttributeGroupType;
+import org.opennms.netmgt.collection.api.CollectionAttribute;
+import org.opennms.netmgt.collection.api.CollectionAttributeType;
+import org.opennms.netmgt.collection.api.Persister;
+import org.opennms.netmgt.collection.api.ResourceIdentifier;
+import org.opennms.netmgt.collection.api.TimeKeeper;
 import org.opennms.netmgt.collection.persistence.rrd.RrdPersistOperationBuilder;
+import org.opennms.netmgt.rrd.NullRrdStrategy;
+import org.opennms.netmgt.rrd.RrdDataSource;
+import org.opennms.netmgt.rrd.RrdRepository;
+import org.opennms.netmgt.rrd.RrdStrategy;
+import org.opennms.netmgt.rrd.RrdUpdates;
 
 public class RrdPersistOperationBuilderTest {
 
+    static {
+        // look for the known files on every update, before the builder reads the property
+        System.setProperty("org.opennms.rrd.knownFiles.checkInterval", "0");
+    }
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Creates empty files, and fails to update the files that don't exist.
+     */
+    private static class RecordingRrdStrategy extends NullRrdStrategy {
+        private final List<String> m_created = new ArrayList<String>();
+        private final List<String> m_updates = new ArrayList<String>();
+
+        @Override
+        public Object createDefinition(String creator, String directory, String rrdName, int step, List<RrdDataSource> dataSources, List<String> rraList) {
+            final File file = new File(directory, rrdName + getDefaultFileExtension());
+            return file.exists() ? null : file;
+        }
+
+        @Override
+        public void createFile(Object rrdDef, Map<String, String> attrMapping) {
+            if (rrdDef == null) {
+                return;
+            }
+            final File file = (File) rrdDef;
+            file.getParentFile().mkdirs();
+            try {
+                file.createNewFile();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            m_created.add(file.getName());
+        }
+
+        @Override
+        public Object openFile(String fileName) {
+            return fileName;
+        }
+
+        @Override
+        public void updateFile(Object rrd, String owner, String data) {
+            assertExists(rrd);
+            m_updates.add(data);
+        }
+
+        @Override
+        public void updateFile(Object rrd, String owner, long timestamp, double[] values) {
+            assertExists(rrd);
+            m_updates.add("values " + RrdUpdates.format(timestamp, values));
+        }
+
+        private static void assertExists(Object rrd) {
+            if (!new File((String) rrd).exists()) {
+                throw new IllegalStateException(rrd + " doesn't exist");
+            }
+        }
+    }
+
+    private static class FixedTimeKeeper implements TimeKeeper {
+        private final long m_time;
+
+        public FixedTimeKeeper(long time) {
+            m_time = time;
+        }
+
+        @Override
+        public long getCurrentTime() {
+            return m_time;
+        }
+
+        @Override
+        public Date getCurrentDate() {
+            return new Date(m_time);
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return TimeZone.getDefault();
+        }
+    }
+
+    private static CollectionAttributeType createAttributeType(final String name, final String type) {
+        return new CollectionAttributeType() {
+            @Override
+            public String getType() {
+                return type;
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public AttributeGroupType getGroupType() {
+                return null;
+            }
+
+            @Override
+            public void storeAttribute(CollectionAttribute attribute, Persister persister) {
+                // pass
+            }
+        };
+    }
+
+    private static ResourceIdentifier createResource(final String path) {
+        return new ResourceIdentifier() {
+            @Override
+            public String getOwnerName() {
+                return "test";
+            }
+
+            @Override
+            public Path getPath() {
+                return Paths.get(path);
+            }
+        };
+    }
+
+    private RrdRepository createRrdRepository() throws IOException {
+        RrdRepository repository = new RrdRepository();
+        repository.setRrdBaseDir(tempFolder.newFolder("snmp"));
+        repository.setHeartBeat(600);
+        repository.setStep(300);
+        repository.setRraList(Collections.singletonList("RRA:AVERAGE:0.5:1:100"));
+        return repository;
+    }
+
+    private static void commit(RrdStrategy<?, ?> strategy, RrdRepository repository, long time, Number... values) throws Exception {
+        final RrdPersistOperationBuilder builder = new RrdPersistOperationBuilder(strategy, repository, createResource("1"), "rrdName", true);
+        builder.setTimeKeeper(new FixedTimeKeeper(time));
+        for (int i = 0; i < values.length; i++) {
+            builder.setAttributeValue(createAttributeType("ds" + i, "counter"), values[i]);
+        }
+        builder.commit();
+    }
+
+    @Test
+    public void canUpdateWithoutFormatting() throws Exception {
+        final RecordingRrdStrategy strategy = new RecordingRrdStrategy();
+        final RrdRepository repository = createRrdRepository();
+
+        commit(strategy, repository, 300000, 1, 2.5d, null, Double.POSITIVE_INFINITY);
+        // 64-bit counters that don't fit into a double are passed on as strings
+        commit(strategy, repository, 600000, 1, Long.MAX_VALUE, null, 3);
+
+        assertEquals(Arrays.asList("values 300:1:2.5:U:U", "600:1:9223372036854775807:U:3"), strategy.m_updates);
+    }
+
+    @Test
+    public void createsFilesOnce() throws Exception {
+        final RecordingRrdStrategy strategy = new RecordingRrdStrategy();
+        final RrdRepository repository = createRrdRepository();
+
+        commit(strategy, repository, 300000, 1);
+        commit(strategy, repository, 600000, 2);
+        assertEquals(1, strategy.m_created.size());
+
+        // The file is created again when it was removed
+        final File file = new File(repository.getRrdBaseDir(), "1" + File.separator + "rrdName" + strategy.getDefaultFileExtension());
+        assertTrue(file.delete());
+        commit(strategy, repository, 900000, 3);
+        assertEquals(2, strategy.m_created.size());
+        assertEquals(Arrays.asList("values 300:1", "values 600:2", "values 900:3"), strategy.m_updates);
+    }
+
+    @Test
+    public void createsFilesRemovedBehindAQueueAgain() throws Exception {
+        final RecordingRrdStrategy strategy = new RecordingRrdStrategy() {
+            @Override
+            public void updateFile(Object rrd, String owner, long timestamp, double[] values) {
+                // like a queuing strategy, which doesn't report failed updates
+                try {
+                    super.updateFile(rrd, owner, timestamp, values);
+                } catch (IllegalStateException e) {
+                    // lost
+                }
+            }
+        };
+        final RrdRepository repository = createRrdRepository();
+
+        commit(strategy, repository, 300000, 1);
+        final File file = new File(repository.getRrdBaseDir(), "1" + File.separator + "rrdName" + strategy.getDefaultFileExtension());
+        assertTrue(file.delete());
+        commit(strategy, repository, 600000, 2);
+        assertEquals(2, strategy.m_created.size());
+        assertEquals(Arrays.asList("values 300:1", "values 600:2"), strategy.m_updates);
+    }
+
+    @Test
+    public void formatsValuesLikeMapValue() {
+        final double[] interesting = { 0.0, 1.0, -1.0, 0.1, 2.0001, 1e-5, 1e7, 6.022E23d, 9007199254740993.0, Long.MAX_VALUE, Double.MAX_VALUE, Double.MIN_VALUE };
+        for (final double value : interesting) {
+            assertEquals(Double.toString(value), "1:" + RrdPersistOperationBuilder.mapValue(value), RrdUpdates.format(1, new double[] { value }));
+        }
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            final double value = random.nextBoolean() ? random.nextLong() / Math.pow(10, random.nextInt(20)) : random.nextGaussian();
+            assertEquals(Double.toString(value), "1:" + RrdPersistOperationBuilder.mapValue(value), RrdUpdates.format(1, new double[] { value }));
+        }
+    }
+
     @Test
     public void canFormatNumbers() {
         assertEquals("2147483647", RrdPersistOperationBuilder.mapValue(Integer.MAX_VALUE));
@@ -65,4 +297,90 @@ public class RrdPersistOperationBuilderTest {
 
         Locale.setDefault(defaultLocale);
     }
+
+    /**
+     * Persists a few values for many resources, like a large Collectd does
+     * every interval, first the way the builder used to, by formatting the
+     * values, creating the file and parsing the values in the strategy, and
+     * then with the builder.
+     */
+    @Test
+    @Ignore
+    public void persistPerfTest() throws Exception {
+        final int numResources = 20000;
+        final int numIntervals = 20;
+        final int numValues = 8;
+
+        // Counts the files like a strategy that writes to the disk would
+        final RrdStrategy<Object, Object> strategy = new NullRrdStrategy() {
+            private double m_sum;
+
+            @Override
+            public Object createDefinition(String creator, String directory, String rrdName, int step, List<RrdDataSource> dataSources, List<String> rraList) {
+                final File file = new File(directory, rrdName + getDefaultFileExtension());
+                if (!file.exists()) {
+                    file.getParentFile().mkdirs();
+                    try {
+                        file.createNewFile();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void updateFile(Object rrd, String owner, String data) {
+                final String[] tokens = data.split(":");
+                for (int i = 1; i < tokens.length; i++) {
+                    m_sum += "U".equals(tokens[i]) ? 0 : Double.parseDouble(tokens[i]);
+                }
+            }
+
+            @Override
+            public void updateFile(Object rrd, String owner, long timestamp, double[] values) {
+                for (final double value : values) {
+                    m_sum += Double.isNaN(value) ? 0 : value;
+                }
+            }
+        };
+        final RrdRepository repository = createRrdRepository();
+        final List<CollectionAttributeType> attributeTypes = new ArrayList<CollectionAttributeType>();
+        for (int i = 0; i < numValues; i++) {
+            attributeTypes.add(createAttributeType("ifHCInOctets" + i, "counter"));
+        }
+        final Random random = new Random(0);
+
+        for (final boolean legacy : new boolean[] { true, false, true, false }) {
+            final long start = System.currentTimeMillis();
+            for (int interval = 0; interval < numIntervals; interval++) {
+                for (int resource = 0; resource < numResources; resource++) {
+                    final ResourceIdentifier resourceIdentifier = createResource(Integer.toString(resource % 1000) + File.separator + resource);
+                    final long[] values = new long[numValues];
+                    final RrdPersistOperationBuilder builder = new RrdPersistOperationBuilder(strategy, repository, resourceIdentifier, legacy ? "legacy" : "rrdName", false);
+                    for (int i = 0; i < numValues; i++) {
+                        values[i] = (long) random.nextInt(Integer.MAX_VALUE) * 1000;
+                        builder.setAttributeValue(attributeTypes.get(i), values[i]);
+                    }
+                    if (!legacy) {
+                        builder.commit();
+                        continue;
+                    }
+
+                    final String directory = repository.getRrdBaseDir().toPath().resolve(resourceIdentifier.getPath()).toString();
+                    strategy.createFile(strategy.createDefinition("test", directory, "legacy", 300, Collections.<RrdDataSource>emptyList(), repository.getRraList()), null);
+                    final StringBuilder update = new StringBuilder(Long.toString(interval * 300L));
+                    for (int i = 0; i < numValues; i++) {
+                        update.append(':').append(RrdPersistOperationBuilder.mapValue(values[i]));
+                    }
+                    final Object rrd = strategy.openFile(directory + File.separator + "legacy" + strategy.getDefaultFileExtension());
+                    strategy.updateFile(rrd, "test", update.toString());
+                    strategy.closeFile(rrd);
+                }
+            }
+            final long elapsed = System.currentTimeMillis() - start;
+            System.err.printf("%s: %d updates in %dms (%.0f updates/s)%n", legacy ? "legacy" : "builder",
+                    numResources * numIntervals, elapsed, numResources * numIntervals * 1000.0 / elapsed);
+        }
+    }
 }
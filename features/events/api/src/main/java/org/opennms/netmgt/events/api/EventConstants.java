@@ -604,6 +604,9 @@ public abstract class EventConstants {
     public static final String PARM_IMPORT_RESOURCE = "importResource";
 
     public static final String PARM_IMPORT_RESCAN_EXISTING = "importRescanExisting";
+
+    /** Constant <code>PARM_IMPORT_FORCE_FULL="importForceFull"</code> */
+    public static final String PARM_IMPORT_FORCE_FULL = "importForceFull";
     
     /** Constant <code>PARM_ALARM_ID="alarmId"</code> */
     public static final String PARM_ALARM_ID = "alarmId";
@@ -28,6 +28,8 @@
 
 package org.opennms.netmgt.events.api;
 
+import java.util.List;
+
 // castor generated event class
 import org.opennms.netmgt.xml.event.Event;
 
@@ -51,4 +53,20 @@ public interface EventListener {
      * @param e a {@link org.opennms.netmgt.xml.event.Event} object.
      */
     public void onEvent(Event e);
+
+    /**
+     * Process a batch of sent events, in the order they were broadcast. This
+     * is only called when Eventd is configured to dispatch events to its
+     * listeners in batches. Listeners that can handle several events more
+     * efficiently than one at a time (i.e. in a single transaction) may
+     * override this; the default simply calls {@link #onEvent(Event)} for
+     * each event.
+     *
+     * @param events a {@link java.util.List} of {@link org.opennms.netmgt.xml.event.Event} objects.
+     */
+    public default void onEvents(List<Event> events) {
+        for (Event e : events) {
+            onEvent(e);
+        }
+    }
 }
@@ -0,0 +1,535 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.eventd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.core.logging.Logging;
+import org.opennms.core.xml.JaxbUtils;
+import org.opennms.netmgt.events.api.EventListener;
+import org.opennms.netmgt.xml.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link EventListenerExecutor} that buffers the events for a listener in
+ * a bounded ring buffer and hands them to
+ * {@link EventListener#onEvents(List)} in batches from a dedicated thread.
+ *
+ * What happens when the buffer is full is controlled by the
+ * {@link OverflowPolicy}. Queue depth, drain latency and drop counters are
+ * exposed over JMX through {@link BatchingEventListenerExecutorMBean}.
+ */
+public class BatchingEventListenerExecutor implements EventListenerExecutor, BatchingEventListenerExecutorMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingEventListenerExecutor.class);
+
+    /**
+     * How long the drain thread waits for new events before checking whether
+     * it has been stopped.
+     */
+    private static final long POLL_INTERVAL_MS = 500;
+
+    /**
+     * What to do with a new event when the listener's buffer is full.
+     */
+    public static enum OverflowPolicy {
+        /** Block the broadcasting thread until there is room in the buffer. */
+        BLOCK,
+        /** Discard the oldest buffered event to make room for the new one. */
+        DROP_OLDEST,
+        /**
+         * Append the event to a spill file on disk. Events are read back, in
+         * order, once the in-memory buffer has drained.
+         */
+        SPILL_TO_DISK
+    }
+
+    private final EventListener m_listener;
+
+    private final ArrayBlockingQueue<Event> m_queue;
+
+    private final int m_queueCapacity;
+
+    private final int m_maxBatchSize;
+
+    private final OverflowPolicy m_overflowPolicy;
+
+    private final File m_spillFile;
+
+    private final Thread m_thread;
+
+    private volatile boolean m_running = true;
+
+    private ObjectName m_objectName;
+
+    /**
+     * Guards the spill file streams. Producers spill while holding this lock
+     * so that no event can overtake an event that is already on disk.
+     */
+    private final Object m_spillLock = new Object();
+
+    private DataOutputStream m_spillOut;
+
+    private DataInputStream m_spillIn;
+
+    private volatile long m_spillDepth = 0;
+
+    private final AtomicLong m_eventsQueued = new AtomicLong();
+    private final AtomicLong m_eventsDelivered = new AtomicLong();
+    private final AtomicLong m_eventsDropped = new AtomicLong();
+    private final AtomicLong m_eventsSpilled = new AtomicLong();
+
+    // Only written by the drain thread
+    private volatile long m_batchesDelivered = 0;
+    private volatile long m_lastDrainNanos = 0;
+    private volatile long m_totalDrainNanos = 0;
+    private volatile long m_maxDrainNanos = 0;
+
+    /**
+     * <p>Constructor for BatchingEventListenerExecutor.</p>
+     *
+     * @param listener the listener to deliver events to
+     * @param queueCapacity the maximum number of events buffered in memory
+     * @param maxBatchSize the maximum number of events passed to a single {@link EventListener#onEvents(List)} call
+     * @param overflowPolicy what to do when the buffer is full
+     * @param spillDirectory the directory for the spill file, only used with {@link OverflowPolicy#SPILL_TO_DISK}
+     */
+    public BatchingEventListenerExecutor(EventListener listener, int queueCapacity, int maxBatchSize, OverflowPolicy overflowPolicy, File spillDirectory) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be greater than zero");
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be greater than zero");
+        }
+        m_listener = listener;
+        m_queueCapacity = queueCapacity;
+        m_queue = new ArrayBlockingQueue<Event>(queueCapacity);
+        m_maxBatchSize = maxBatchSize;
+        m_overflowPolicy = overflowPolicy == null ? OverflowPolicy.DROP_OLDEST : overflowPolicy;
+
+        if (m_overflowPolicy == OverflowPolicy.SPILL_TO_DISK) {
+            if (spillDirectory == null) {
+                throw new IllegalArgumentException("spillDirectory must be set when using the " + OverflowPolicy.SPILL_TO_DISK + " overflow policy");
+            }
+            m_spillFile = new File(spillDirectory, m_listener.getName().replaceAll("[^A-Za-z0-9_.-]", "_") + ".spill");
+            // Deliver the events that were left on disk by an earlier run
+            // before any new ones
+            recoverSpillFile();
+        } else {
+            m_spillFile = null;
+        }
+
+        // This ThreadFactory will ensure that the log prefix of the calling thread
+        // is used for all events that this listener handles.
+        m_thread = new LogPreservingThreadFactory(m_listener.getName(), 1).newThread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+        m_thread.start();
+
+        registerMBean();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void addEvent(final Event event) {
+        if (!m_running) {
+            LOG.warn("Listener {} has been stopped, discarding event", m_listener.getName());
+            m_eventsDropped.incrementAndGet();
+            return;
+        }
+        m_eventsQueued.incrementAndGet();
+
+        switch (m_overflowPolicy) {
+        case BLOCK:
+            try {
+                m_queue.put(event);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while waiting for room in listener {}'s event queue, discarding event", m_listener.getName());
+                m_eventsDropped.incrementAndGet();
+            }
+            break;
+
+        case SPILL_TO_DISK:
+            synchronized (m_spillLock) {
+                // Once we have started spilling, keep spilling until the
+                // drain thread has caught up so that ordering is preserved
+                if (m_spillDepth == 0 && m_queue.offer(event)) {
+                    break;
+                }
+                spill(event);
+            }
+            break;
+
+        case DROP_OLDEST:
+        default:
+            while (!m_queue.offer(event)) {
+                if (m_queue.poll() != null) {
+                    LOG.warn("Listener {}'s event queue is full, discarding oldest event", m_listener.getName());
+                    m_eventsDropped.incrementAndGet();
+                }
+            }
+            break;
+        }
+    }
+
+    /**
+     * Stops the execution of this listener. Events that are already buffered
+     * in memory or spilled to disk are still delivered.
+     */
+    @Override
+    public void stop() {
+        m_running = false;
+        unregisterMBean();
+    }
+
+    private void drain() {
+        final List<Event> batch = new ArrayList<Event>(m_maxBatchSize);
+        final List<Event> unmodifiableBatch = Collections.unmodifiableList(batch);
+
+        while (m_running || !m_queue.isEmpty() || m_spillDepth > 0) {
+            try {
+                batch.clear();
+                // Don't wait on the queue if there are spilled events to catch up on
+                final Event first = m_spillDepth > 0 ? m_queue.poll() : m_queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    m_queue.drainTo(batch, m_maxBatchSize - 1);
+                } else if (m_spillDepth > 0) {
+                    unspill(batch);
+                }
+
+                if (!batch.isEmpty()) {
+                    deliver(unmodifiableBatch);
+                }
+            } catch (final InterruptedException e) {
+                LOG.warn("Listener {}'s drain thread was interrupted", m_listener.getName());
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (m_overflowPolicy == OverflowPolicy.SPILL_TO_DISK) {
+            synchronized (m_spillLock) {
+                if (m_spillDepth > 0) {
+                    LOG.warn("Listener {} stopped with {} events left in {}, they will be delivered when it is started again", m_listener.getName(), m_spillDepth, m_spillFile);
+                }
+                closeSpillFile(m_spillDepth == 0);
+            }
+        }
+    }
+
+    private void deliver(final List<Event> batch) {
+        LOG.debug("run: calling onEvents on {} for {} events", m_listener.getName(), batch.size());
+
+        final long start = System.nanoTime();
+        // Make sure we restore our log4j logging prefix after onEvents is called
+        final Map<String,String> mdc = Logging.getCopyOfContextMap();
+        try {
+            m_listener.onEvents(batch);
+        } catch (final Throwable t) {
+            LOG.warn("run: an unexpected error occured during ListenerThread {}", m_listener.getName(), t);
+        } finally {
+            Logging.setContextMap(mdc);
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        m_eventsDelivered.addAndGet(batch.size());
+        m_batchesDelivered++;
+        m_lastDrainNanos = elapsed;
+        m_totalDrainNanos += elapsed;
+        if (elapsed > m_maxDrainNanos) {
+            m_maxDrainNanos = elapsed;
+        }
+    }
+
+    /**
+     * Reopens a spill file that was left behind when the listener was last
+     * stopped, so that its events are read back before any new event. A
+     * record that was only partially written is cut off.
+     */
+    private void recoverSpillFile() {
+        if (!m_spillFile.isFile() || m_spillFile.length() == 0) {
+            return;
+        }
+        long records = 0;
+        long validLength = 0;
+        try {
+            try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_spillFile)))) {
+                final long fileLength = m_spillFile.length();
+                while (validLength + 4 <= fileLength) {
+                    final int length = in.readInt();
+                    if (length < 0 || validLength + 4 + length > fileLength) {
+                        break;
+                    }
+                    in.readFully(new byte[length]);
+                    validLength += 4 + length;
+                    records++;
+                }
+            }
+            if (validLength < m_spillFile.length()) {
+                LOG.warn("Discarding a partially written event at the end of {}", m_spillFile);
+                try (final RandomAccessFile file = new RandomAccessFile(m_spillFile, "rw")) {
+                    file.setLength(validLength);
+                }
+            }
+            synchronized (m_spillLock) {
+                if (records == 0) {
+                    closeSpillFile(true);
+                    return;
+                }
+                m_spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_spillFile, true)));
+                m_spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(m_spillFile)));
+                m_spillDepth = records;
+            }
+            LOG.info("Listener {} has {} events left in {} from an earlier run, delivering them first", m_listener.getName(), records, m_spillFile);
+        } catch (final IOException e) {
+            LOG.error("Unable to read the spilled events of listener {} from {}, discarding them", m_listener.getName(), m_spillFile, e);
+            synchronized (m_spillLock) {
+                m_spillDepth = 0;
+                closeSpillFile(true);
+            }
+        }
+    }
+
+    /**
+     * Appends an event to the spill file. Must hold {@link #m_spillLock}.
+     */
+    private void spill(final Event event) {
+        try {
+            if (m_spillOut == null) {
+                m_spillFile.getParentFile().mkdirs();
+                m_spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_spillFile, false)));
+                m_spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(m_spillFile)));
+                LOG.warn("Listener {}'s event queue is full, spilling events to {}", m_listener.getName(), m_spillFile);
+            }
+            final byte[] bytes = JaxbUtils.marshal(event).getBytes(StandardCharsets.UTF_8);
+            m_spillOut.writeInt(bytes.length);
+            m_spillOut.write(bytes);
+            // make sure the drain thread can read what we wrote
+            m_spillOut.flush();
+            m_spillDepth++;
+            m_eventsSpilled.incrementAndGet();
+        } catch (final IOException e) {
+            LOG.warn("Unable to spill event for listener {} to {}, discarding event", m_listener.getName(), m_spillFile, e);
+            m_eventsDropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads up to a batch of events back from the spill file, and removes the
+     * file once all spilled events have been read. Only the reads hold
+     * {@link #m_spillLock}, the events are unmarshalled after releasing it.
+     */
+    private void unspill(final List<Event> batch) {
+        final List<byte[]> records = new ArrayList<byte[]>(m_maxBatchSize);
+        synchronized (m_spillLock) {
+            try {
+                while (m_spillDepth > 0 && records.size() < m_maxBatchSize) {
+                    final byte[] bytes = new byte[m_spillIn.readInt()];
+                    m_spillIn.readFully(bytes);
+                    m_spillDepth--;
+                    records.add(bytes);
+                }
+            } catch (final IOException e) {
+                LOG.error("Unable to read spilled events for listener {} from {}, discarding {} events", m_listener.getName(), m_spillFile, m_spillDepth, e);
+                m_eventsDropped.addAndGet(m_spillDepth);
+                m_spillDepth = 0;
+            }
+
+            if (m_spillDepth == 0) {
+                closeSpillFile(true);
+            }
+        }
+
+        for (final byte[] bytes : records) {
+            try {
+                batch.add(JaxbUtils.unmarshal(Event.class, new String(bytes, StandardCharsets.UTF_8)));
+            } catch (final RuntimeException e) {
+                LOG.error("Unable to unmarshal a spilled event for listener {}, discarding it", m_listener.getName(), e);
+                m_eventsDropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Must hold {@link #m_spillLock}.
+     */
+    private void closeSpillFile(final boolean delete) {
+        closeQuietly(m_spillOut);
+        closeQuietly(m_spillIn);
+        m_spillOut = null;
+        m_spillIn = null;
+        if (delete && m_spillFile != null && m_spillFile.exists() && !m_spillFile.delete()) {
+            LOG.warn("Unable to remove spill file {}", m_spillFile);
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (final IOException e) {
+            LOG.debug("Failed to close spill file stream", e);
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName("OpenNMS:Name=Eventd,Type=Listener,Listener=" + ObjectName.quote(m_listener.getName()));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+                m_objectName = objectName;
+            }
+        } catch (final JMException e) {
+            LOG.warn("Unable to register queue statistics MBean for listener {}", m_listener.getName(), e);
+        }
+    }
+
+    private void unregisterMBean() {
+        if (m_objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_objectName);
+        } catch (final JMException e) {
+            LOG.debug("Unable to unregister queue statistics MBean {}", m_objectName, e);
+        }
+        m_objectName = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getListenerName() {
+        return m_listener.getName();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getOverflowPolicy() {
+        return m_overflowPolicy.name();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getQueueCapacity() {
+        return m_queueCapacity;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getQueueDepth() {
+        return m_queue.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSpillDepth() {
+        return m_spillDepth;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getEventsQueued() {
+        return m_eventsQueued.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getEventsDelivered() {
+        return m_eventsDelivered.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getEventsDropped() {
+        return m_eventsDropped.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getEventsSpilled() {
+        return m_eventsSpilled.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getBatchesDelivered() {
+        return m_batchesDelivered;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getLastDrainLatency() {
+        return m_lastDrainNanos / 1000000.0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getAverageDrainLatency() {
+        final long batches = m_batchesDelivered;
+        return batches == 0 ? 0.0 : m_totalDrainNanos / 1000000.0 / batches;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getMaxDrainLatency() {
+        return m_maxDrainNanos / 1000000.0;
+    }
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.eventd;
+
+/**
+ * Per-listener queue statistics of a {@link BatchingEventListenerExecutor},
+ * registered as <code>OpenNMS:Name=Eventd,Type=Listener,Listener=&lt;name&gt;</code>.
+ */
+public interface BatchingEventListenerExecutorMBean {
+
+    /** @return The name of the listener this queue delivers to */
+    public String getListenerName();
+
+    /** @return The name of the overflow policy applied when the queue is full */
+    public String getOverflowPolicy();
+
+    /** @return The maximum number of events held in memory */
+    public int getQueueCapacity();
+
+    /** @return The number of events currently waiting in memory */
+    public int getQueueDepth();
+
+    /** @return The number of events currently waiting in the spill file */
+    public long getSpillDepth();
+
+    /** @return The number of events queued for this listener since it was registered */
+    public long getEventsQueued();
+
+    /** @return The number of events handed to the listener since it was registered */
+    public long getEventsDelivered();
+
+    /** @return The number of events discarded because the queue was full */
+    public long getEventsDropped();
+
+    /** @return The number of events written to the spill file because the queue was full */
+    public long getEventsSpilled();
+
+    /** @return The number of batches handed to the listener */
+    public long getBatchesDelivered();
+
+    /** @return The time, in milliseconds, the listener took to process the last batch */
+    public double getLastDrainLatency();
+
+    /** @return The average time, in milliseconds, the listener took to process a batch */
+    public double getAverageDrainLatency();
+
+    /** @return The longest time, in milliseconds, the listener took to process a batch */
+    public double getMaxDrainLatency();
+}
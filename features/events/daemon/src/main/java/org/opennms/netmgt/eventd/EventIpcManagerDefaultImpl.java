@@ -28,14 +28,14 @@
 
 package org.opennms.netmgt.eventd;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
@@ -71,6 +71,12 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     
     private static final Logger LOG = LoggerFactory.getLogger(EventIpcManagerDefaultImpl.class);
 
+    /**
+     * Per-listener buffer size used for batched dispatch when no handler
+     * queue length is configured
+     */
+    private static final int DEFAULT_BATCHED_QUEUE_LENGTH = 10000;
+
     public static class DiscardTrapsAndSyslogEvents implements RejectedExecutionHandler {
         /**
          * Creates a <tt>DiscardOldestPolicy</tt> for the given executor.
@@ -104,10 +110,22 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
      */
     private List<EventListener> m_listeners = new ArrayList<EventListener>();
 
+    /**
+     * Copy-on-write snapshot of {@link #m_listeners}, read by broadcastNow()
+     * without holding a lock
+     */
+    private volatile EventListener[] m_matchAllListeners = UeiRoutingTrie.NO_LISTENERS;
+
+    /**
+     * Copy-on-write compiled form of {@link #m_ueiListeners}, rebuilt whenever
+     * the registrations change and read by broadcastNow() without holding a lock
+     */
+    private volatile UeiRoutingTrie m_ueiRoutes = UeiRoutingTrie.EMPTY;
+
     /**
      * Hash table of event listener threads keyed by the listener's id
      */
-    private Map<String, EventListenerExecutor> m_listenerThreads = new HashMap<String, EventListenerExecutor>();
+    private Map<String, EventListenerExecutor> m_listenerThreads = new ConcurrentHashMap<String, EventListenerExecutor>();
 
     /**
      * The thread pool handling the events
@@ -120,13 +138,27 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     
     private Integer m_handlerQueueLength;
 
+    /**
+     * Whether events are dispatched to listeners in batches through a
+     * {@link BatchingEventListenerExecutor} instead of one task per event
+     */
+    private boolean m_batchedDispatch = Boolean.getBoolean("org.opennms.eventd.listeners.batchedDispatch");
+
+    private int m_listenerMaxBatchSize = Integer.getInteger("org.opennms.eventd.listeners.maxBatchSize", 100);
+
+    private BatchingEventListenerExecutor.OverflowPolicy m_listenerOverflowPolicy = BatchingEventListenerExecutor.OverflowPolicy.valueOf(
+            System.getProperty("org.opennms.eventd.listeners.overflowPolicy", BatchingEventListenerExecutor.OverflowPolicy.DROP_OLDEST.name()));
+
+    private File m_listenerSpillDirectory = new File(System.getProperty("org.opennms.eventd.listeners.spillDirectory",
+            System.getProperty("opennms.home", System.getProperty("java.io.tmpdir")) + File.separator + "share" + File.separator + "eventd"));
+
     /**
      * A thread dedicated to each listener. The events meant for each listener
      * is added to an execution queue when the 'sendNow()' is called. The
      * ListenerThread reads events off of this queue and sends them to the
      * appropriate listener.
      */
-    private static class EventListenerExecutor {
+    private static class ThreadPoolEventListenerExecutor implements EventListenerExecutor {
         /**
          * Listener to which this thread is dedicated
          */
@@ -140,7 +172,7 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         /**
          * Constructor
          */
-        EventListenerExecutor(EventListener listener, Integer handlerQueueLength) {
+        ThreadPoolEventListenerExecutor(EventListener listener, Integer handlerQueueLength) {
             m_listener = listener;
             // You could also do Executors.newSingleThreadExecutor() here
             m_delegateThread = new ThreadPoolExecutor(
@@ -163,6 +195,7 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
             );
         }
 
+        @Override
         public void addEvent(final Event event) {
             m_delegateThread.execute(new Runnable() {
                 @Override
@@ -187,6 +220,7 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         /**
          * Stops the execution of this listener.
          */
+        @Override
         public void stop() {
             m_delegateThread.shutdown();
         }
@@ -262,13 +296,14 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     public void broadcastNow(Event event) {
         LOG.debug("Event ID {} to be broadcasted: {}", event.getDbid(), event.getUei());
 
-        if (m_listeners.isEmpty()) {
+        final EventListener[] matchAllListeners = m_matchAllListeners;
+        if (matchAllListeners.length == 0) {
             LOG.debug("No listeners interested in all events");
         }
 
         // Send to listeners interested in receiving all events
-        for (EventListener listener : m_listeners) {
-            queueEventToListener(event, listener);
+        for (int i = 0; i < matchAllListeners.length; i++) {
+            queueEventToListener(event, matchAllListeners[i]);
         }
 
         if (event.getUei() == null) {
@@ -277,38 +312,28 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         }
 
         /*
-         * Send to listeners who are interested in this event UEI.
-         * Loop to attempt partial wild card "directory" matches.
+         * Send to listeners who are interested in this event UEI, including
+         * partial wild card "directory" matches. The trie has already merged
+         * and de-duplicated the listeners for every UEI prefix.
          */
-        Set<EventListener> sentToListeners = new HashSet<EventListener>();
-        for (String uei = event.getUei(); uei.length() > 0; ) {
-            if (m_ueiListeners.containsKey(uei)) {
-                for (EventListener listener : m_ueiListeners.get(uei)) {
-                    if (!sentToListeners.contains(listener)) {
-                        queueEventToListener(event, listener);
-                        sentToListeners.add(listener);
-                    }
-                }
-            }
-            
-            // Try wild cards: Find / before last character
-            int i = uei.lastIndexOf("/", uei.length() - 2);
-            if (i > 0) {
-                // Split at "/", including the /
-                uei = uei.substring (0, i + 1);
-            } else {
-                // No more wild cards to match
-                break;
-            }
+        final EventListener[] ueiListeners = m_ueiRoutes.getListeners(event.getUei());
+        for (int i = 0; i < ueiListeners.length; i++) {
+            queueEventToListener(event, ueiListeners[i]);
         }
-        
-        if (sentToListeners.isEmpty()) {
+
+        if (ueiListeners.length == 0) {
             LOG.debug("No listener interested in event ID {}: {}", event.getDbid(), event.getUei());
         }
     }
 
     private void queueEventToListener(Event event, EventListener listener) {
-        m_listenerThreads.get(listener.getName()).addEvent(event);
+        final EventListenerExecutor listenerThread = m_listenerThreads.get(listener.getName());
+        if (listenerThread == null) {
+            // The listener was removed after the routes were read
+            LOG.debug("Listener {} is no longer registered, not queueing event ID {}", listener.getName(), event.getDbid());
+            return;
+        }
+        listenerThread.addEvent(event);
     }
 
     /**
@@ -329,6 +354,8 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         for (String uei : m_ueiListeners.keySet()) {
             removeUeiForListener(uei, listener);
         }
+
+        rebuildRoutes();
     }
 
     /**
@@ -356,6 +383,8 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
 
         // Since we have a UEI-specific listener, remove the match-all listener
         removeMatchAllForListener(listener);
+
+        rebuildRoutes();
     }
 
     /**
@@ -390,6 +419,8 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         for (String uei : ueis) {
             removeUeiForListener(uei, listener);
         }
+
+        rebuildRoutes();
     }
 
     /**
@@ -409,6 +440,8 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         Assert.notNull(uei, "uei argument cannot be null");
 
         removeUeiForListener(uei, listener);
+
+        rebuildRoutes();
     }
 
     /**
@@ -429,6 +462,8 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
             removeUeiForListener(uei, listener);
         }
 
+        rebuildRoutes();
+
         // stop and remove the listener thread for this listener
         if (m_listenerThreads.containsKey(listener.getName())) {
             m_listenerThreads.get(listener.getName()).stop();
@@ -446,10 +481,30 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
             return;
         }
         
-        EventListenerExecutor listenerThread = new EventListenerExecutor(listener, m_handlerQueueLength);
+        final EventListenerExecutor listenerThread;
+        if (m_batchedDispatch) {
+            listenerThread = new BatchingEventListenerExecutor(
+                listener,
+                m_handlerQueueLength == null ? DEFAULT_BATCHED_QUEUE_LENGTH : m_handlerQueueLength,
+                m_listenerMaxBatchSize,
+                m_listenerOverflowPolicy,
+                m_listenerSpillDirectory
+            );
+        } else {
+            listenerThread = new ThreadPoolEventListenerExecutor(listener, m_handlerQueueLength);
+        }
         m_listenerThreads.put(listener.getName(), listenerThread);
     }
 
+    /**
+     * Publish new copy-on-write snapshots of the listener registrations for
+     * broadcastNow(). Must be called while holding the lock on this object.
+     */
+    private void rebuildRoutes() {
+        m_matchAllListeners = m_listeners.toArray(new EventListener[m_listeners.size()]);
+        m_ueiRoutes = UeiRoutingTrie.compile(m_ueiListeners);
+    }
+
     /**
      * Add to uei listeners.
      */
@@ -576,4 +631,78 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         Assert.state(m_eventHandlerPool == null, "handlerQueueLength property cannot be set after afterPropertiesSet() is called");
         m_handlerQueueLength = size;
     }
+
+    /**
+     * <p>isBatchedDispatch</p>
+     *
+     * @return a boolean.
+     */
+    public boolean isBatchedDispatch() {
+        return m_batchedDispatch;
+    }
+
+    /**
+     * Dispatch events to each listener in batches, using
+     * {@link EventListener#onEvents(List)}, from a bounded per-listener
+     * buffer. Only applies to listeners added after this is set.
+     *
+     * @param batchedDispatch a boolean.
+     */
+    public void setBatchedDispatch(boolean batchedDispatch) {
+        m_batchedDispatch = batchedDispatch;
+    }
+
+    /**
+     * <p>getListenerMaxBatchSize</p>
+     *
+     * @return a int.
+     */
+    public int getListenerMaxBatchSize() {
+        return m_listenerMaxBatchSize;
+    }
+
+    /**
+     * <p>setListenerMaxBatchSize</p>
+     *
+     * @param maxBatchSize a int.
+     */
+    public void setListenerMaxBatchSize(int maxBatchSize) {
+        m_listenerMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * <p>getListenerOverflowPolicy</p>
+     *
+     * @return a {@link org.opennms.netmgt.eventd.BatchingEventListenerExecutor.OverflowPolicy} object.
+     */
+    public BatchingEventListenerExecutor.OverflowPolicy getListenerOverflowPolicy() {
+        return m_listenerOverflowPolicy;
+    }
+
+    /**
+     * <p>setListenerOverflowPolicy</p>
+     *
+     * @param overflowPolicy a {@link org.opennms.netmgt.eventd.BatchingEventListenerExecutor.OverflowPolicy} object.
+     */
+    public void setListenerOverflowPolicy(BatchingEventListenerExecutor.OverflowPolicy overflowPolicy) {
+        m_listenerOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * <p>getListenerSpillDirectory</p>
+     *
+     * @return a {@link java.io.File} object.
+     */
+    public File getListenerSpillDirectory() {
+        return m_listenerSpillDirectory;
+    }
+
+    /**
+     * <p>setListenerSpillDirectory</p>
+     *
+     * @param spillDirectory a {@link java.io.File} object.
+     */
+    public void setListenerSpillDirectory(File spillDirectory) {
+        m_listenerSpillDirectory = spillDirectory;
+    }
 }
@@ -50,6 +50,12 @@ public abstract class EventdConstants {
     		"eventForward, eventMouseOverText, eventAckUser, eventAckTime, eventSource, ifIndex) " +
     		"values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
+    /**
+     * The SQL statement used to reserve a block of event IDs from the event
+     * sequence with a single round trip.
+     */
+    public static final String SQL_DB_NEXT_EVENT_IDS = "SELECT nextval('eventsNxtId') FROM generate_series(1, ?)";
+
     /**
      * The SQL statement necessary to convert the service name into a service id
      * using the distributed poller database.
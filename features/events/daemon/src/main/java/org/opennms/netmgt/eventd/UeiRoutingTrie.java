@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.eventd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.opennms.netmgt.events.api.EventListener;
+
+/**
+ * An immutable, precompiled routing table that resolves the complete set of
+ * {@link EventListener}s interested in a UEI with a single walk over the UEI
+ * characters.
+ *
+ * A listener registered for a UEI receives events with exactly that UEI. A
+ * listener registered for a UEI that ends with a <code>/</code> (i.e.
+ * <code>uei.opennms.org/nodes/</code>) additionally receives every event whose
+ * UEI is a longer string starting with that prefix. This matches the
+ * "directory" wild card matching historically done in
+ * {@link EventIpcManagerDefaultImpl#broadcastNow(org.opennms.netmgt.xml.event.Event)}.
+ *
+ * Every node in the trie carries the de-duplicated union of its own listeners
+ * and the listeners of all matching parent prefixes, so a lookup never
+ * allocates. Instances are never modified once built; callers that need to
+ * change the registrations build a new instance and swap it in.
+ */
+public final class UeiRoutingTrie {
+
+    /** Shared empty result, never modified. */
+    public static final EventListener[] NO_LISTENERS = new EventListener[0];
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    /** An empty trie that does not route any UEI. */
+    public static final UeiRoutingTrie EMPTY = new UeiRoutingTrie(new Node(), 0);
+
+    private final Node m_root;
+
+    private final int m_size;
+
+    private static final class Node {
+        /** Sorted child characters, parallel to {@link #m_children}. */
+        private char[] m_keys = NO_KEYS;
+        private Node[] m_children = NO_CHILDREN;
+
+        /** Listeners registered for exactly the path ending at this node (build time only). */
+        private List<EventListener> m_registered;
+
+        /**
+         * Listeners to deliver to when a UEI ends exactly at this node,
+         * including those inherited from matching parent prefixes.
+         */
+        private EventListener[] m_exact = NO_LISTENERS;
+
+        /**
+         * Listeners to deliver to when a UEI continues past this node, or
+         * null if this node does not terminate a registered prefix.
+         */
+        private EventListener[] m_prefix;
+
+        private Node child(char c) {
+            final int i = Arrays.binarySearch(m_keys, c);
+            return i < 0 ? null : m_children[i];
+        }
+
+        private Node getOrCreateChild(char c) {
+            int i = Arrays.binarySearch(m_keys, c);
+            if (i >= 0) {
+                return m_children[i];
+            }
+            i = -(i + 1);
+            final Node node = new Node();
+
+            final char[] keys = new char[m_keys.length + 1];
+            System.arraycopy(m_keys, 0, keys, 0, i);
+            keys[i] = c;
+            System.arraycopy(m_keys, i, keys, i + 1, m_keys.length - i);
+
+            final Node[] children = new Node[m_children.length + 1];
+            System.arraycopy(m_children, 0, children, 0, i);
+            children[i] = node;
+            System.arraycopy(m_children, i, children, i + 1, m_children.length - i);
+
+            m_keys = keys;
+            m_children = children;
+            return node;
+        }
+    }
+
+    private UeiRoutingTrie(Node root, int size) {
+        m_root = root;
+        m_size = size;
+    }
+
+    /**
+     * Compiles a routing trie from a map of UEIs (or UEI prefixes ending with
+     * <code>/</code>) to the listeners registered for them.
+     *
+     * @param ueiListeners the current registrations, which are copied
+     * @return a new trie
+     */
+    public static UeiRoutingTrie compile(Map<String, ? extends Collection<EventListener>> ueiListeners) {
+        final Node root = new Node();
+        int size = 0;
+
+        // Insert in sorted order so that the child arrays are built predictably
+        for (Map.Entry<String, ? extends Collection<EventListener>> entry : new TreeMap<String, Collection<EventListener>>(ueiListeners).entrySet()) {
+            final String uei = entry.getKey();
+            if (uei == null || uei.isEmpty() || entry.getValue() == null || entry.getValue().isEmpty()) {
+                continue;
+            }
+            Node node = root;
+            for (int i = 0; i < uei.length(); i++) {
+                node = node.getOrCreateChild(uei.charAt(i));
+            }
+            if (node.m_registered == null) {
+                node.m_registered = new ArrayList<EventListener>();
+                size++;
+            }
+            node.m_registered.addAll(entry.getValue());
+        }
+
+        resolve(root, 0, '\0', NO_LISTENERS);
+        return new UeiRoutingTrie(root, size);
+    }
+
+    /**
+     * Computes the merged listener sets for the given node and its children.
+     *
+     * @param node the node to resolve
+     * @param depth the number of UEI characters leading up to this node
+     * @param c the character leading to this node
+     * @param inherited the listeners of the closest matching parent prefix
+     */
+    private static void resolve(Node node, int depth, char c, EventListener[] inherited) {
+        node.m_exact = merge(node.m_registered, inherited);
+
+        // Only a '/' that is not the first character opens up a "directory" match
+        EventListener[] passDown = inherited;
+        if (c == '/' && depth > 1 && node.m_registered != null) {
+            node.m_prefix = node.m_exact;
+            passDown = node.m_exact;
+        }
+        node.m_registered = null;
+
+        for (int i = 0; i < node.m_children.length; i++) {
+            resolve(node.m_children[i], depth + 1, node.m_keys[i], passDown);
+        }
+    }
+
+    private static EventListener[] merge(List<EventListener> own, EventListener[] inherited) {
+        if (own == null || own.isEmpty()) {
+            return inherited;
+        }
+        final Set<EventListener> merged = new LinkedHashSet<EventListener>(own);
+        merged.addAll(Arrays.asList(inherited));
+        if (merged.size() == inherited.length) {
+            // nothing new, share the parent's array
+            return inherited;
+        }
+        return merged.toArray(new EventListener[merged.size()]);
+    }
+
+    /**
+     * Returns the de-duplicated listeners interested in the given UEI.
+     *
+     * The returned array is shared between callers and <strong>must not be
+     * modified</strong>.
+     *
+     * @param uei the event UEI
+     * @return the interested listeners, never null
+     */
+    public EventListener[] getListeners(final String uei) {
+        if (uei == null) {
+            return NO_LISTENERS;
+        }
+
+        EventListener[] deepestPrefix = NO_LISTENERS;
+        Node node = m_root;
+        final int length = uei.length();
+        for (int i = 0; i < length; i++) {
+            node = node.child(uei.charAt(i));
+            if (node == null) {
+                return deepestPrefix;
+            }
+            if (node.m_prefix != null) {
+                deepestPrefix = node.m_prefix;
+            }
+        }
+        return node.m_exact;
+    }
+
+    /**
+     * <p>size</p>
+     *
+     * @return the number of distinct UEIs and UEI prefixes in this trie
+     */
+    public int size() {
+        return m_size;
+    }
+}
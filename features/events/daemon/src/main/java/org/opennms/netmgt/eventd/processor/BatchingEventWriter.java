@@ -0,0 +1,618 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.eventd.processor;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.core.utils.DBUtils;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.eventd.EventdConstants;
+import org.opennms.netmgt.events.api.EventProcessorException;
+import org.opennms.netmgt.model.OnmsEvent;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * An {@link EventWriter} that groups the events arriving from all of the
+ * Eventd handler threads into JDBC batches.
+ *
+ * Events that arrive within {@link #getMaxBatchDelay()} milliseconds of each
+ * other, up to {@link #getMaxBatchSize()} of them, are inserted into the
+ * EVENTS table in a single transaction by a dedicated writer thread. Event IDs
+ * are handed out from a block reserved from the event sequence ahead of time,
+ * so the writer never has to read back a generated key. The handler thread
+ * waits until its event has been committed, so processors that run after this
+ * one (like the broadcast to the event listeners) always see a valid
+ * {@link Event#getDbid()}.
+ *
+ * IDs are assigned and events are queued atomically and every batch is
+ * written in queue order by a single thread, so the events of a node are
+ * stored, and released to the following processors, in the order they were
+ * handed to the writer.
+ *
+ * When batching is disabled (the default) this behaves exactly like the
+ * {@link HibernateEventWriter}.
+ */
+public class BatchingEventWriter extends HibernateEventWriter implements BatchingEventWriterMBean, InitializingBean, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingEventWriter.class);
+
+    /** Upper bounds of the batch size histogram buckets. */
+    private static final long[] BATCH_SIZE_BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+    /** Upper bounds of the commit latency histogram buckets, in milliseconds. */
+    private static final long[] COMMIT_LATENCY_BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 5000 };
+
+    private DataSource m_dataSource;
+
+    private boolean m_batched = Boolean.getBoolean("org.opennms.eventd.writer.batched");
+
+    private int m_maxBatchSize = Integer.getInteger("org.opennms.eventd.writer.maxBatchSize", 100);
+
+    private long m_maxBatchDelay = Long.getLong("org.opennms.eventd.writer.maxBatchDelay", 5);
+
+    private int m_idBlockSize = Integer.getInteger("org.opennms.eventd.writer.idBlockSize", 100);
+
+    /** Guards {@link #m_queue}, the reserved IDs and {@link #m_running}. */
+    private final Object m_lock = new Object();
+
+    private final List<PendingEvent> m_queue = new ArrayList<PendingEvent>();
+
+    private int[] m_reservedIds = new int[0];
+
+    private int m_nextReservedId = 0;
+
+    private boolean m_running = false;
+
+    private Thread m_thread;
+
+    private ObjectName m_objectName;
+
+    private final AtomicLong m_eventsWritten = new AtomicLong();
+    private final AtomicLong m_eventsFailed = new AtomicLong();
+    private final AtomicLong m_batchesWritten = new AtomicLong();
+    private final AtomicLong m_batchFailures = new AtomicLong();
+
+    private final Histogram m_batchSizes = new Histogram(BATCH_SIZE_BUCKETS);
+    private final Histogram m_commitLatencies = new Histogram(COMMIT_LATENCY_BUCKETS);
+
+    /**
+     * An event waiting for its batch to be committed.
+     */
+    private static final class PendingEvent {
+        private final OnmsEvent m_row;
+        private final long m_queuedAt = System.nanoTime();
+        private final CountDownLatch m_done = new CountDownLatch(1);
+        private volatile Throwable m_failure;
+
+        private PendingEvent(OnmsEvent row) {
+            m_row = row;
+        }
+
+        private void succeeded() {
+            m_done.countDown();
+        }
+
+        private void failed(Throwable t) {
+            m_failure = t;
+            m_done.countDown();
+        }
+    }
+
+    /**
+     * A fixed-bucket histogram. Bucket <code>i</code> counts the values that
+     * are less than or equal to <code>bounds[i]</code> and greater than the
+     * previous bound; the last bucket counts everything larger.
+     */
+    static final class Histogram {
+        private final long[] m_bounds;
+        private final AtomicLongArray m_counts;
+
+        Histogram(long[] bounds) {
+            m_bounds = bounds;
+            m_counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void record(long value) {
+            int i = Arrays.binarySearch(m_bounds, value);
+            if (i < 0) {
+                i = -(i + 1);
+            }
+            m_counts.incrementAndGet(i);
+        }
+
+        long getCount(int bucket) {
+            return m_counts.get(bucket);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < m_bounds.length; i++) {
+                sb.append("<=").append(m_bounds[i]).append(": ").append(m_counts.get(i)).append(", ");
+            }
+            sb.append('>').append(m_bounds[m_bounds.length - 1]).append(": ").append(m_counts.get(m_bounds.length));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * <p>afterPropertiesSet</p>
+     */
+    @Override
+    public void afterPropertiesSet() {
+        if (!m_batched) {
+            return;
+        }
+        Assert.state(m_dataSource != null, "property dataSource must be set");
+        Assert.state(m_maxBatchSize > 0, "property maxBatchSize must be greater than zero");
+        Assert.state(m_maxBatchDelay >= 0, "property maxBatchDelay must not be negative");
+        Assert.state(m_idBlockSize > 0, "property idBlockSize must be greater than zero");
+
+        synchronized (m_lock) {
+            Assert.state(m_thread == null, "afterPropertiesSet() has already been called");
+            m_running = true;
+            m_thread = new LogPreservingThreadFactory(BatchingEventWriter.class.getSimpleName(), 1).newThread(new Runnable() {
+                @Override
+                public void run() {
+                    writeBatches();
+                }
+            });
+        }
+        m_thread.start();
+
+        registerMBean();
+    }
+
+    /**
+     * Writes the events that are still queued and stops the writer thread.
+     *
+     * @throws InterruptedException if interrupted while waiting for the writer thread
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        final Thread thread;
+        synchronized (m_lock) {
+            m_running = false;
+            m_lock.notifyAll();
+            thread = m_thread;
+            m_thread = null;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+        unregisterMBean();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Queues the event for the next batch and waits until it has been committed.
+     */
+    @Override
+    public void process(final Header eventHeader, final Event event) throws EventProcessorException {
+        if (!m_batched) {
+            super.process(eventHeader, event);
+            return;
+        }
+        if (!checkEventSanityAndDoWeProcess(event, "BatchingEventWriter")) {
+            return;
+        }
+
+        final PendingEvent pending = new PendingEvent(createOnmsEvent(eventHeader, event));
+        synchronized (m_lock) {
+            if (!m_running) {
+                throw new EventProcessorException("The event writer has been stopped, not persisting event " + event.getUei());
+            }
+            try {
+                pending.m_row.setId(nextReservedId());
+            } catch (final DataAccessException e) {
+                throw new EventProcessorException("Unable to reserve an ID for event " + event.getUei(), e);
+            }
+            m_queue.add(pending);
+            if (m_queue.size() == 1 || m_queue.size() >= m_maxBatchSize) {
+                m_lock.notifyAll();
+            }
+        }
+
+        try {
+            pending.m_done.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EventProcessorException("Interrupted while waiting for event " + event.getUei() + " to be persisted", e);
+        }
+        if (pending.m_failure != null) {
+            throw new EventProcessorException("Unable to persist event " + event.getUei(), pending.m_failure);
+        }
+
+        // Update the event with the database ID of the event stored in the database
+        event.setDbid(pending.m_row.getId());
+    }
+
+    /**
+     * Returns the next ID from the reserved block, reserving a new block from
+     * the sequence when it has been used up. Must be called with
+     * {@link #m_lock} held.
+     */
+    private int nextReservedId() {
+        if (m_nextReservedId >= m_reservedIds.length) {
+            final List<Integer> ids = new JdbcTemplate(m_dataSource).queryForList(EventdConstants.SQL_DB_NEXT_EVENT_IDS, Integer.class, m_idBlockSize);
+            final int[] reserved = new int[ids.size()];
+            for (int i = 0; i < reserved.length; i++) {
+                reserved[i] = ids.get(i);
+            }
+            Arrays.sort(reserved);
+            m_reservedIds = reserved;
+            m_nextReservedId = 0;
+        }
+        return m_reservedIds[m_nextReservedId++];
+    }
+
+    private void writeBatches() {
+        while (true) {
+            final List<PendingEvent> batch;
+            synchronized (m_lock) {
+                try {
+                    while (m_queue.isEmpty()) {
+                        if (!m_running) {
+                            return;
+                        }
+                        m_lock.wait();
+                    }
+                    // Give the other handler threads a chance to add to the batch
+                    final long deadline = m_queue.get(0).m_queuedAt + TimeUnit.MILLISECONDS.toNanos(m_maxBatchDelay);
+                    while (m_running && m_queue.size() < m_maxBatchSize) {
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(m_lock, remaining);
+                    }
+                } catch (final InterruptedException e) {
+                    LOG.warn("Event writer thread interrupted, failing {} queued events", m_queue.size());
+                    m_running = false;
+                    for (final PendingEvent pending : m_queue) {
+                        pending.failed(e);
+                        m_eventsFailed.incrementAndGet();
+                    }
+                    m_queue.clear();
+                    return;
+                }
+
+                final List<PendingEvent> head = m_queue.subList(0, Math.min(m_queue.size(), m_maxBatchSize));
+                batch = new ArrayList<PendingEvent>(head);
+                head.clear();
+            }
+            writeBatch(batch);
+        }
+    }
+
+    private void writeBatch(final List<PendingEvent> batch) {
+        final long start = System.nanoTime();
+        try {
+            insertEvents(batch);
+            for (final PendingEvent pending : batch) {
+                pending.succeeded();
+            }
+            m_eventsWritten.addAndGet(batch.size());
+        } catch (final SQLException | DataAccessException e) {
+            m_batchFailures.incrementAndGet();
+            if (batch.size() == 1) {
+                LOG.warn("Error inserting event into the datastore.", e);
+                batch.get(0).failed(e);
+                m_eventsFailed.incrementAndGet();
+            } else {
+                // Don't let a single bad event fail the whole batch
+                LOG.warn("Error inserting a batch of {} events into the datastore, retrying them one at a time.", batch.size(), e);
+                for (final PendingEvent pending : batch) {
+                    try {
+                        insertEvents(Collections.singletonList(pending));
+                        pending.succeeded();
+                        m_eventsWritten.incrementAndGet();
+                    } catch (final SQLException | DataAccessException e2) {
+                        LOG.warn("Error inserting event into the datastore.", e2);
+                        pending.failed(e2);
+                        m_eventsFailed.incrementAndGet();
+                    }
+                }
+            }
+        }
+        m_batchesWritten.incrementAndGet();
+        m_batchSizes.record(batch.size());
+        m_commitLatencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void insertEvents(final List<PendingEvent> batch) throws SQLException {
+        final DBUtils d = new DBUtils(getClass());
+        try {
+            final Connection connection = m_dataSource.getConnection();
+            d.watch(connection);
+            connection.setAutoCommit(false);
+            try {
+                final PreparedStatement insStmt = connection.prepareStatement(EventdConstants.SQL_DB_INS_EVENT);
+                d.watch(insStmt);
+                for (final PendingEvent pending : batch) {
+                    bind(insStmt, pending.m_row);
+                    insStmt.addBatch();
+                }
+                insStmt.executeBatch();
+                connection.commit();
+            } catch (final SQLException e) {
+                try {
+                    connection.rollback();
+                } catch (final Throwable e2) {
+                    LOG.warn("Rollback of transaction failed.", e2);
+                }
+                throw e;
+            }
+        } finally {
+            d.cleanUp();
+        }
+    }
+
+    /**
+     * Binds the columns of {@link EventdConstants#SQL_DB_INS_EVENT}.
+     */
+    private static void bind(final PreparedStatement insStmt, final OnmsEvent ovent) throws SQLException {
+        insStmt.setInt(1, ovent.getId());
+        setString(insStmt, 2, ovent.getEventUei());
+        setInteger(insStmt, 3, ovent.getNodeId());
+        setTimestamp(insStmt, 4, ovent.getEventTime());
+        setString(insStmt, 5, ovent.getEventHost());
+        setString(insStmt, 6, ovent.getIpAddr() == null ? null : InetAddressUtils.str(ovent.getIpAddr()));
+        setString(insStmt, 7, ovent.getDistPoller() == null ? null : ovent.getDistPoller().getId());
+        setString(insStmt, 8, ovent.getEventSnmpHost());
+        setInteger(insStmt, 9, ovent.getServiceType() == null ? null : ovent.getServiceType().getId());
+        setString(insStmt, 10, ovent.getEventSnmp());
+        setString(insStmt, 11, ovent.getEventParms());
+        setTimestamp(insStmt, 12, ovent.getEventCreateTime());
+        setString(insStmt, 13, ovent.getEventDescr());
+        setString(insStmt, 14, ovent.getEventLogGroup());
+        setString(insStmt, 15, ovent.getEventLogMsg());
+        setString(insStmt, 16, ovent.getEventLog());
+        setString(insStmt, 17, ovent.getEventDisplay());
+        setInteger(insStmt, 18, ovent.getEventSeverity());
+        setString(insStmt, 19, ovent.getEventPathOutage());
+        setString(insStmt, 20, ovent.getEventCorrelation());
+        setInteger(insStmt, 21, ovent.getEventSuppressedCount());
+        setString(insStmt, 22, ovent.getEventOperInstruct());
+        setString(insStmt, 23, ovent.getEventAutoAction());
+        setString(insStmt, 24, ovent.getEventOperAction());
+        setString(insStmt, 25, ovent.getEventOperActionMenuText());
+        setString(insStmt, 26, ovent.getEventNotification());
+        setString(insStmt, 27, ovent.getEventTTicket());
+        setInteger(insStmt, 28, ovent.getEventTTicketState());
+        setString(insStmt, 29, ovent.getEventForward());
+        setString(insStmt, 30, ovent.getEventMouseOverText());
+        setString(insStmt, 31, ovent.getEventAckUser());
+        setTimestamp(insStmt, 32, ovent.getEventAckTime());
+        setString(insStmt, 33, ovent.getEventSource());
+        setInteger(insStmt, 34, ovent.getIfIndex());
+    }
+
+    private static void setString(final PreparedStatement stmt, final int ndx, final String value) throws SQLException {
+        if (value == null) {
+            stmt.setNull(ndx, Types.VARCHAR);
+        } else {
+            stmt.setString(ndx, value);
+        }
+    }
+
+    private static void setInteger(final PreparedStatement stmt, final int ndx, final Integer value) throws SQLException {
+        if (value == null) {
+            stmt.setNull(ndx, Types.INTEGER);
+        } else {
+            stmt.setInt(ndx, value);
+        }
+    }
+
+    private static void setTimestamp(final PreparedStatement stmt, final int ndx, final Date value) throws SQLException {
+        if (value == null) {
+            stmt.setNull(ndx, Types.TIMESTAMP);
+        } else {
+            stmt.setTimestamp(ndx, new Timestamp(value.getTime()));
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName("OpenNMS:Name=Eventd,Type=EventWriter");
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+                m_objectName = objectName;
+            }
+        } catch (final JMException e) {
+            LOG.warn("Unable to register event writer statistics MBean", e);
+        }
+    }
+
+    private void unregisterMBean() {
+        if (m_objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_objectName);
+        } catch (final JMException e) {
+            LOG.debug("Unable to unregister event writer statistics MBean {}", m_objectName, e);
+        }
+        m_objectName = null;
+    }
+
+    /**
+     * <p>getDataSource</p>
+     *
+     * @return a {@link javax.sql.DataSource} object.
+     */
+    public DataSource getDataSource() {
+        return m_dataSource;
+    }
+
+    /**
+     * <p>setDataSource</p>
+     *
+     * @param dataSource a {@link javax.sql.DataSource} object.
+     */
+    public void setDataSource(DataSource dataSource) {
+        m_dataSource = dataSource;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isBatched() {
+        return m_batched;
+    }
+
+    /**
+     * <p>setBatched</p>
+     *
+     * @param batched true to write events in batches
+     */
+    public void setBatched(boolean batched) {
+        Assert.state(m_thread == null, "batched property cannot be set after afterPropertiesSet() is called");
+        m_batched = batched;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getMaxBatchSize() {
+        return m_maxBatchSize;
+    }
+
+    /**
+     * <p>setMaxBatchSize</p>
+     *
+     * @param maxBatchSize the maximum number of events written in a single transaction
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        m_maxBatchSize = maxBatchSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getMaxBatchDelay() {
+        return m_maxBatchDelay;
+    }
+
+    /**
+     * <p>setMaxBatchDelay</p>
+     *
+     * @param maxBatchDelay the number of milliseconds to wait for more events before writing a partial batch
+     */
+    public void setMaxBatchDelay(long maxBatchDelay) {
+        m_maxBatchDelay = maxBatchDelay;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getIdBlockSize() {
+        return m_idBlockSize;
+    }
+
+    /**
+     * <p>setIdBlockSize</p>
+     *
+     * @param idBlockSize the number of event IDs to reserve from the sequence at once
+     */
+    public void setIdBlockSize(int idBlockSize) {
+        m_idBlockSize = idBlockSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getQueueDepth() {
+        synchronized (m_lock) {
+            return m_queue.size();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getEventsWritten() {
+        return m_eventsWritten.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getEventsFailed() {
+        return m_eventsFailed.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getBatchesWritten() {
+        return m_batchesWritten.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getBatchFailures() {
+        return m_batchFailures.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getBatchSizeHistogram() {
+        return m_batchSizes.toString();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getCommitLatencyHistogram() {
+        return m_commitLatencies.toString();
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.eventd.processor;
+
+/**
+ * Statistics for the {@link BatchingEventWriter}.
+ */
+public interface BatchingEventWriterMBean {
+
+    /**
+     * @return true if events are written in batches from a dedicated thread
+     */
+    boolean isBatched();
+
+    /**
+     * @return the maximum number of events written in a single transaction
+     */
+    int getMaxBatchSize();
+
+    /**
+     * @return the number of milliseconds the writer waits for more events before writing a partial batch
+     */
+    long getMaxBatchDelay();
+
+    /**
+     * @return the number of event IDs reserved from the sequence at once
+     */
+    int getIdBlockSize();
+
+    /**
+     * @return the number of events waiting to be written
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of events successfully written
+     */
+    long getEventsWritten();
+
+    /**
+     * @return the number of events that could not be written
+     */
+    long getEventsFailed();
+
+    /**
+     * @return the number of transactions committed
+     */
+    long getBatchesWritten();
+
+    /**
+     * @return the number of batches that failed and were retried one event at a time
+     */
+    long getBatchFailures();
+
+    /**
+     * @return the number of batches per batch size bucket
+     */
+    String getBatchSizeHistogram();
+
+    /**
+     * @return the number of batches per commit latency bucket, in milliseconds
+     */
+    String getCommitLatencyHistogram();
+}
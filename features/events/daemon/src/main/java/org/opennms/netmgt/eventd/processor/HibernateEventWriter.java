@@ -111,7 +111,7 @@ public class HibernateEventWriter implements EventWriter {
      * @param logPrefix a {@link java.lang.String} object.
      * @return a boolean.
      */
-    private static boolean checkEventSanityAndDoWeProcess(Event event, String logPrefix) {
+    protected static boolean checkEventSanityAndDoWeProcess(Event event, String logPrefix) {
         Assert.notNull(event, "event argument must not be null");
 
         /*
@@ -161,6 +161,24 @@ public class HibernateEventWriter implements EventWriter {
      *                properties file.
      */
     private void insertEvent(final Header eventHeader, final Event event) {
+        final OnmsEvent ovent = createOnmsEvent(eventHeader, event);
+
+        eventDao.save(ovent);
+        eventDao.flush();
+
+        // Update the event with the database ID of the event stored in the database
+        event.setDbid(ovent.getId());
+    }
+
+    /**
+     * Builds the row that will be stored in the EVENTS table for the given
+     * event, resolving the node, distributed poller and service references.
+     *
+     * @param eventHeader the header of the log the event arrived in, may be null
+     * @param event the event to persist
+     * @return an unsaved {@link OnmsEvent} without an ID
+     */
+    protected OnmsEvent createOnmsEvent(final Header eventHeader, final Event event) {
 
         OnmsEvent ovent = new OnmsEvent();
 
@@ -327,10 +345,6 @@ public class HibernateEventWriter implements EventWriter {
             ovent.setEventAckTime(null);
         }
 
-        eventDao.save(ovent);
-        eventDao.flush();
-
-        // Update the event with the database ID of the event stored in the database
-        event.setDbid(ovent.getId());
+        return ovent;
     }
 }
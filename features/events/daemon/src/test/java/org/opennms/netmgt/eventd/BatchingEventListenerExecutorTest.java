@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.eventd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.core.xml.JaxbUtils;
+import org.opennms.netmgt.events.api.EventListener;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.event.Event;
+
+public class BatchingEventListenerExecutorTest {
+
+    @Rule
+    public TemporaryFolder m_tempFolder = new TemporaryFolder();
+
+    private BatchingEventListenerExecutor m_executor;
+
+    /**
+     * Records the UEIs it receives, and blocks on the first batch until
+     * {@link #release()} is called.
+     */
+    private static class GatedEventListener implements EventListener {
+        private final CountDownLatch m_gate = new CountDownLatch(1);
+        private final CountDownLatch m_done;
+        private final List<String> m_ueis = Collections.synchronizedList(new ArrayList<String>());
+        private final List<Integer> m_batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        public GatedEventListener(int expectedEvents) {
+            m_done = new CountDownLatch(expectedEvents);
+        }
+
+        @Override
+        public String getName() {
+            return "gated";
+        }
+
+        @Override
+        public void onEvent(Event e) {
+            m_ueis.add(e.getUei());
+            m_done.countDown();
+        }
+
+        @Override
+        public void onEvents(List<Event> events) {
+            try {
+                m_gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            m_batchSizes.add(events.size());
+            EventListener.super.onEvents(events);
+        }
+
+        public void release() {
+            m_gate.countDown();
+        }
+
+        public boolean awaitDone() throws InterruptedException {
+            return m_done.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (m_executor != null) {
+            m_executor.stop();
+        }
+    }
+
+    private static Event event(int i) {
+        return new EventBuilder("uei.opennms.org/test/" + i, "BatchingEventListenerExecutorTest").getEvent();
+    }
+
+    private static List<String> ueis(int from, int to) {
+        final List<String> ueis = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            ueis.add("uei.opennms.org/test/" + i);
+        }
+        return ueis;
+    }
+
+    @Test
+    public void testDeliversInOrderInBatches() throws Exception {
+        final GatedEventListener listener = new GatedEventListener(50);
+        m_executor = new BatchingEventListenerExecutor(listener, 100, 20, BatchingEventListenerExecutor.OverflowPolicy.BLOCK, null);
+
+        for (int i = 0; i < 50; i++) {
+            m_executor.addEvent(event(i));
+        }
+        listener.release();
+
+        assertTrue(listener.awaitDone());
+        assertEquals(ueis(0, 50), listener.m_ueis);
+        for (Integer batchSize : listener.m_batchSizes) {
+            assertTrue(batchSize <= 20);
+        }
+        assertEquals(50, m_executor.getEventsQueued());
+        assertEquals(0, m_executor.getEventsDropped());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        final GatedEventListener listener = new GatedEventListener(11);
+        m_executor = new BatchingEventListenerExecutor(listener, 10, 1, BatchingEventListenerExecutor.OverflowPolicy.DROP_OLDEST, null);
+
+        // the first event is picked up by the (blocked) drain thread
+        m_executor.addEvent(event(0));
+        while (m_executor.getQueueDepth() > 0) {
+            Thread.sleep(10);
+        }
+        for (int i = 1; i < 21; i++) {
+            m_executor.addEvent(event(i));
+        }
+        assertEquals(10, m_executor.getQueueDepth());
+        assertEquals(10, m_executor.getEventsDropped());
+        listener.release();
+
+        assertTrue(listener.awaitDone());
+        final List<String> expected = ueis(0, 1);
+        expected.addAll(ueis(11, 21));
+        assertEquals(expected, listener.m_ueis);
+    }
+
+    @Test
+    public void testSpillToDiskPreservesOrder() throws Exception {
+        final GatedEventListener listener = new GatedEventListener(100);
+        m_executor = new BatchingEventListenerExecutor(listener, 10, 7, BatchingEventListenerExecutor.OverflowPolicy.SPILL_TO_DISK, m_tempFolder.getRoot());
+
+        for (int i = 0; i < 100; i++) {
+            m_executor.addEvent(event(i));
+        }
+        assertTrue(m_executor.getEventsSpilled() > 0);
+        assertEquals(0, m_executor.getEventsDropped());
+        listener.release();
+
+        assertTrue(listener.awaitDone());
+        assertEquals(ueis(0, 100), listener.m_ueis);
+        assertEquals(0, m_executor.getSpillDepth());
+    }
+
+    @Test
+    public void testSpillFileOfEarlierRunIsDeliveredFirst() throws Exception {
+        // 5 complete events and a partially written one
+        final File spillFile = new File(m_tempFolder.getRoot(), "gated.spill");
+        try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(spillFile))) {
+            for (int i = 0; i < 5; i++) {
+                final byte[] bytes = JaxbUtils.marshal(event(i)).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(1000);
+            out.write(new byte[10]);
+        }
+
+        final GatedEventListener listener = new GatedEventListener(30);
+        m_executor = new BatchingEventListenerExecutor(listener, 10, 7, BatchingEventListenerExecutor.OverflowPolicy.SPILL_TO_DISK, m_tempFolder.getRoot());
+
+        for (int i = 5; i < 30; i++) {
+            m_executor.addEvent(event(i));
+        }
+        listener.release();
+
+        assertTrue(listener.awaitDone());
+        assertEquals(ueis(0, 30), listener.m_ueis);
+        assertEquals(0, m_executor.getSpillDepth());
+        assertEquals(0, m_executor.getEventsDropped());
+        assertFalse(spillFile.exists());
+    }
+}
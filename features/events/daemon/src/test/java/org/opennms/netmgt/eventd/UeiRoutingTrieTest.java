@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.eventd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opennms.netmgt.events.api.EventListener;
+import org.opennms.netmgt.xml.event.Event;
+
+public class UeiRoutingTrieTest {
+
+    private static class NamedListener implements EventListener {
+        private final String m_name;
+
+        public NamedListener(String name) {
+            m_name = name;
+        }
+
+        @Override
+        public String getName() {
+            return m_name;
+        }
+
+        @Override
+        public void onEvent(Event e) {
+            // ignore
+        }
+
+        @Override
+        public String toString() {
+            return m_name;
+        }
+    }
+
+    private final EventListener m_a = new NamedListener("a");
+    private final EventListener m_b = new NamedListener("b");
+    private final EventListener m_c = new NamedListener("c");
+
+    private final Map<String, List<EventListener>> m_registrations = new LinkedHashMap<String, List<EventListener>>();
+
+    private void register(String uei, EventListener... listeners) {
+        m_registrations.put(uei, new ArrayList<EventListener>(Arrays.asList(listeners)));
+    }
+
+    private Set<EventListener> route(String uei) {
+        return new HashSet<EventListener>(Arrays.asList(UeiRoutingTrie.compile(m_registrations).getListeners(uei)));
+    }
+
+    private static Set<EventListener> setOf(EventListener... listeners) {
+        return new HashSet<EventListener>(Arrays.asList(listeners));
+    }
+
+    @Test
+    public void testExactMatch() {
+        register("uei.opennms.org/nodes/nodeDown", m_a);
+
+        assertEquals(setOf(m_a), route("uei.opennms.org/nodes/nodeDown"));
+        assertEquals(setOf(), route("uei.opennms.org/nodes/nodeDownX"));
+        assertEquals(setOf(), route("uei.opennms.org/nodes/node"));
+        assertEquals(setOf(), route("uei.opennms.org/nodes/nodeDown/more"));
+    }
+
+    @Test
+    public void testDirectoryMatch() {
+        register("uei.opennms.org/", m_a);
+        register("uei.opennms.org/nodes/", m_b);
+
+        assertEquals(setOf(m_a, m_b), route("uei.opennms.org/nodes/nodeDown"));
+        assertEquals(setOf(m_a), route("uei.opennms.org/foo"));
+        assertEquals(setOf(m_a, m_b), route("uei.opennms.org/nodes/"));
+        assertEquals(setOf(m_a), route("uei.opennms.org/nodes"));
+        assertEquals(setOf(), route("uei.opennms.org"));
+    }
+
+    @Test
+    public void testNoMatchWithoutTrailingSlash() {
+        register("uei.opennms.org", m_a);
+        register("uei.opennms.org/*", m_b);
+
+        assertEquals(setOf(), route("uei.opennms.org/foo"));
+    }
+
+    @Test
+    public void testLeadingSlashIsNotADirectory() {
+        register("/", m_a);
+
+        assertEquals(setOf(m_a), route("/"));
+        assertEquals(setOf(), route("/foo"));
+    }
+
+    @Test
+    public void testDuplicatesAreRemoved() {
+        register("uei.opennms.org/foo", m_a, m_b);
+        register("uei.opennms.org/", m_a, m_c);
+
+        final EventListener[] listeners = UeiRoutingTrie.compile(m_registrations).getListeners("uei.opennms.org/foo");
+        assertEquals(3, listeners.length);
+        assertEquals(setOf(m_a, m_b, m_c), new HashSet<EventListener>(Arrays.asList(listeners)));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertSame(UeiRoutingTrie.NO_LISTENERS, UeiRoutingTrie.EMPTY.getListeners("uei.opennms.org/foo"));
+        assertSame(UeiRoutingTrie.NO_LISTENERS, UeiRoutingTrie.EMPTY.getListeners(null));
+
+        register("uei.opennms.org/foo");
+        assertEquals(0, UeiRoutingTrie.compile(m_registrations).size());
+    }
+
+    @Test
+    public void testMatchesLegacyWalk() {
+        final List<String> ueis = generateUeis(200);
+        final List<EventListener> listeners = generateRegistrations(ueis, 20);
+        final UeiRoutingTrie trie = UeiRoutingTrie.compile(m_registrations);
+
+        for (String uei : ueis) {
+            assertEquals(uei, legacyWalk(m_registrations, uei), new HashSet<EventListener>(Arrays.asList(trie.getListeners(uei))));
+        }
+        assertEquals(20, listeners.size());
+    }
+
+    /**
+     * Compares the trie lookup with the previous implementation of
+     * {@link EventIpcManagerDefaultImpl#broadcastNow(Event)} over a realistic
+     * set of UEIs and listener counts.
+     */
+    @Test
+    @Ignore
+    public void routingPerfTest() {
+        final int numLookups = 10000000;
+
+        for (int numListeners : new int[] { 5, 20, 50 }) {
+            m_registrations.clear();
+            final List<String> ueis = generateUeis(2000);
+            generateRegistrations(ueis, numListeners);
+            final UeiRoutingTrie trie = UeiRoutingTrie.compile(m_registrations);
+            final Map<String, List<EventListener>> hashMap = new HashMap<String, List<EventListener>>(m_registrations);
+
+            long sum = 0;
+            long start = System.currentTimeMillis();
+            for (int k = 0; k < numLookups; k++) {
+                sum += legacyWalk(hashMap, ueis.get(k % ueis.size())).size();
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            System.err.println("listeners: " + numListeners + ", legacy elapsed: " + elapsed + " (" + sum + ")");
+
+            sum = 0;
+            start = System.currentTimeMillis();
+            for (int k = 0; k < numLookups; k++) {
+                sum += trie.getListeners(ueis.get(k % ueis.size())).length;
+            }
+            elapsed = System.currentTimeMillis() - start;
+            System.err.println("listeners: " + numListeners + ", trie elapsed: " + elapsed + " (" + sum + ")");
+        }
+    }
+
+    private static List<String> generateUeis(int count) {
+        final String[] vendors = { "uei.opennms.org/nodes/", "uei.opennms.org/internal/", "uei.opennms.org/vendor/Cisco/traps/",
+                "uei.opennms.org/vendor/Juniper/traps/", "uei.opennms.org/syslogd/cisco/", "uei.opennms.org/generic/traps/" };
+        final List<String> ueis = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            ueis.add(vendors[i % vendors.length] + "event" + i);
+        }
+        return ueis;
+    }
+
+    /**
+     * Registers each listener for a handful of exact UEIs and for one of the
+     * "directory" prefixes, like Notifd, Alarmd and friends do.
+     */
+    private List<EventListener> generateRegistrations(List<String> ueis, int numListeners) {
+        final List<EventListener> listeners = new ArrayList<EventListener>(numListeners);
+        for (int i = 0; i < numListeners; i++) {
+            final EventListener listener = new NamedListener("listener" + i);
+            listeners.add(listener);
+            for (int j = i; j < ueis.size(); j += numListeners * 3) {
+                addRegistration(ueis.get(j), listener);
+            }
+            final String uei = ueis.get(i % ueis.size());
+            addRegistration(uei.substring(0, uei.lastIndexOf('/') + 1), listener);
+        }
+        return listeners;
+    }
+
+    private void addRegistration(String uei, EventListener listener) {
+        if (!m_registrations.containsKey(uei)) {
+            m_registrations.put(uei, new ArrayList<EventListener>());
+        }
+        m_registrations.get(uei).add(listener);
+    }
+
+    /**
+     * The UEI matching previously done in {@link EventIpcManagerDefaultImpl#broadcastNow(Event)}.
+     */
+    private static Set<EventListener> legacyWalk(Map<String, List<EventListener>> ueiListeners, String eventUei) {
+        Set<EventListener> sentToListeners = new HashSet<EventListener>();
+        for (String uei = eventUei; uei.length() > 0; ) {
+            if (ueiListeners.containsKey(uei)) {
+                for (EventListener listener : ueiListeners.get(uei)) {
+                    if (!sentToListeners.contains(listener)) {
+                        sentToListeners.add(listener);
+                    }
+                }
+            }
+            int i = uei.lastIndexOf("/", uei.length() - 2);
+            if (i > 0) {
+                uei = uei.substring (0, i + 1);
+            } else {
+                break;
+            }
+        }
+        return sentToListeners;
+    }
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.eventd.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opennms.core.test.OpenNMSJUnit4ClassRunner;
+import org.opennms.core.test.db.annotations.JUnitTemporaryDatabase;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.test.JUnitConfigurationEnvironment;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+
+@RunWith(OpenNMSJUnit4ClassRunner.class)
+@ContextConfiguration(locations={
+        "classpath:/META-INF/opennms/applicationContext-soa.xml",
+        "classpath:/META-INF/opennms/applicationContext-dao.xml",
+        "classpath:/META-INF/opennms/applicationContext-commonConfigs.xml",
+        "classpath:/META-INF/opennms/applicationContext-minimal-conf.xml",
+        "classpath*:/META-INF/opennms/component-dao.xml",
+        "classpath*:/META-INF/opennms/component-service.xml",
+        "classpath:/META-INF/opennms/applicationContext-daemon.xml",
+        "classpath:/META-INF/opennms/mockEventIpcManager.xml",
+
+        "classpath:/META-INF/opennms/applicationContext-eventUtil.xml",
+        "classpath:/META-INF/opennms/applicationContext-eventDaemon.xml"
+})
+@JUnitConfigurationEnvironment
+@JUnitTemporaryDatabase(reuseDatabase=false)
+public class BatchingEventWriterIT {
+
+    private static final int THREADS = 8;
+
+    private static final int EVENTS_PER_THREAD = 50;
+
+    @Autowired
+    private ApplicationContext m_context;
+
+    @Autowired
+    private JdbcTemplate m_jdbcTemplate;
+
+    private BatchingEventWriter m_writer;
+
+    @Before
+    public void setUp() {
+        m_writer = new BatchingEventWriter();
+        m_context.getAutowireCapableBeanFactory().autowireBean(m_writer);
+        m_writer.setDataSource(m_jdbcTemplate.getDataSource());
+        m_writer.setBatched(true);
+        m_writer.setMaxBatchSize(20);
+        m_writer.setMaxBatchDelay(20);
+        m_writer.setIdBlockSize(7);
+        m_writer.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_writer.destroy();
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final List<Future<List<Integer>>> futures = new ArrayList<Future<List<Integer>>>();
+        for (int i = 0; i < THREADS; i++) {
+            final String source = "thread" + i;
+            futures.add(executor.submit(new Callable<List<Integer>>() {
+                @Override
+                public List<Integer> call() throws Exception {
+                    final List<Integer> ids = new ArrayList<Integer>();
+                    for (int j = 0; j < EVENTS_PER_THREAD; j++) {
+                        final EventBuilder bldr = new EventBuilder("uei.opennms.org/test/batch", source);
+                        bldr.setLogDest("logndisplay");
+                        bldr.addParam("seq", j);
+                        final Event event = bldr.getEvent();
+                        m_writer.process(null, event);
+                        ids.add(event.getDbid());
+                    }
+                    return ids;
+                }
+            }));
+        }
+
+        final Set<Integer> allIds = new HashSet<Integer>();
+        for (Future<List<Integer>> future : futures) {
+            final List<Integer> ids = future.get();
+            // Events handed over by the same thread must be stored in order
+            for (int j = 1; j < ids.size(); j++) {
+                assertTrue(ids.get(j - 1) < ids.get(j));
+            }
+            allIds.addAll(ids);
+        }
+        executor.shutdown();
+
+        assertEquals(THREADS * EVENTS_PER_THREAD, allIds.size());
+        assertEquals(Integer.valueOf(THREADS * EVENTS_PER_THREAD), m_jdbcTemplate.queryForObject("SELECT COUNT(*) FROM events WHERE eventUei = 'uei.opennms.org/test/batch'", Integer.class));
+        assertEquals(THREADS * EVENTS_PER_THREAD, m_writer.getEventsWritten());
+        assertEquals(0, m_writer.getEventsFailed());
+        assertTrue(m_writer.getBatchesWritten() <= THREADS * EVENTS_PER_THREAD);
+
+        // The stored rows must carry the IDs that were handed to the caller
+        for (int id : allIds) {
+            assertEquals("Y", m_jdbcTemplate.queryForObject("SELECT eventDisplay FROM events WHERE eventId = ?", String.class, id));
+        }
+    }
+
+    @Test
+    public void testHistogram() {
+        final BatchingEventWriter.Histogram histogram = new BatchingEventWriter.Histogram(new long[] { 1, 10, 100 });
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(10);
+        histogram.record(101);
+
+        assertEquals(2, histogram.getCount(0));
+        assertEquals(2, histogram.getCount(1));
+        assertEquals(0, histogram.getCount(2));
+        assertEquals(1, histogram.getCount(3));
+        assertEquals("<=1: 2, <=10: 2, <=100: 0, >100: 1", histogram.toString());
+    }
+}
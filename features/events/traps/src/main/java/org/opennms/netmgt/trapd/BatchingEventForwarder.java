@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.trapd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.netmgt.events.api.EventForwarder;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Log;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forwards the events created from traps to Eventd in batches. The events
+ * are queued and sent by a single thread, in a {@link Log} holding all the
+ * events that are waiting, up to {@link #MAX_BATCH_SIZE}, so a trap storm
+ * results in a few large sends rather than one send per trap, while a
+ * single trap is still sent right away. The events are sent in the order
+ * in which they were queued.
+ *
+ * When the queue is full, the threads sending events wait. Events sent
+ * while the forwarder isn't started are sent directly.
+ */
+public class BatchingEventForwarder implements EventForwarder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingEventForwarder.class);
+
+    /**
+     * The maximum number of events sent at once.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * The number of events that can be waiting to be sent.
+     */
+    private static final int QUEUE_SIZE = 10000;
+
+    /**
+     * The number of milliseconds the sender waits for an event before
+     * checking whether it has been stopped.
+     */
+    private static final long POLL_INTERVAL = 500;
+
+    private final EventForwarder m_eventForwarder;
+
+    private final BlockingQueue<Event> m_events = new LinkedBlockingQueue<Event>(QUEUE_SIZE);
+
+    private final AtomicLong m_eventsSent = new AtomicLong();
+
+    private final AtomicLong m_batchesSent = new AtomicLong();
+
+    private volatile boolean m_stopped = true;
+
+    private Thread m_sender;
+
+    /**
+     * <p>Constructor for BatchingEventForwarder.</p>
+     *
+     * @param eventForwarder the forwarder to which the batches are sent
+     */
+    public BatchingEventForwarder(EventForwarder eventForwarder) {
+        m_eventForwarder = eventForwarder;
+    }
+
+    /**
+     * Starts the thread sending the events.
+     */
+    public synchronized void start() {
+        if (m_sender != null) {
+            return;
+        }
+        m_stopped = false;
+        m_sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendEvents();
+            }
+        }, "TrapdEventForwarder");
+        m_sender.setDaemon(true);
+        m_sender.start();
+    }
+
+    /**
+     * Sends the events that are waiting, and stops the thread sending them.
+     */
+    public synchronized void stop() {
+        if (m_sender == null) {
+            return;
+        }
+        m_stopped = true;
+        try {
+            m_sender.join();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for the queued events to be sent");
+            Thread.currentThread().interrupt();
+        }
+        m_sender = null;
+
+        // Events queued while the sender was exiting
+        final List<Event> events = new ArrayList<Event>();
+        while (m_events.drainTo(events, MAX_BATCH_SIZE) > 0) {
+            send(events);
+            events.clear();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void sendNow(Event event) {
+        if (m_stopped) {
+            m_eventForwarder.sendNow(event);
+            return;
+        }
+
+        try {
+            m_events.put(event);
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting to queue event {}, sending it directly", event.getUei());
+            Thread.currentThread().interrupt();
+            m_eventForwarder.sendNow(event);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void sendNow(Log eventLog) {
+        if (eventLog.getEvents() == null) {
+            return;
+        }
+        for (Event event : eventLog.getEvents().getEventCollection()) {
+            sendNow(event);
+        }
+    }
+
+    private void sendEvents() {
+        final List<Event> events = new ArrayList<Event>(MAX_BATCH_SIZE);
+        while (true) {
+            final Event first;
+            try {
+                first = m_events.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                LOG.debug("Event sender interrupted, exiting");
+                break;
+            }
+            if (first == null) {
+                if (m_stopped) {
+                    break;
+                }
+                continue;
+            }
+
+            events.add(first);
+            m_events.drainTo(events, MAX_BATCH_SIZE - 1);
+            send(events);
+            events.clear();
+        }
+    }
+
+    private void send(List<Event> events) {
+        final Log log = new Log();
+        for (Event event : events) {
+            log.addEvent(event);
+        }
+        try {
+            m_eventForwarder.sendNow(log);
+            m_eventsSent.addAndGet(events.size());
+            m_batchesSent.incrementAndGet();
+        } catch (Throwable t) {
+            LOG.error("Failed to send {} events", events.size(), t);
+        }
+    }
+
+    /**
+     * @return the number of events waiting to be sent
+     */
+    public int getQueueSize() {
+        return m_events.size();
+    }
+
+    /**
+     * @return the number of events sent in batches
+     */
+    public long getEventsSent() {
+        return m_eventsSent.get();
+    }
+
+    /**
+     * @return the number of batches sent
+     */
+    public long getBatchesSent() {
+        return m_batchesSent.get();
+    }
+}
@@ -83,6 +83,18 @@ public class TrapQueueProcessorFactory implements InitializingBean {
         m_eventManager = eventManager;
     }
 
+    /**
+     * Sends the events created from traps to the event IPC manager in batches.
+     */
+    private BatchingEventForwarder m_eventForwarder;
+
+    /**
+     * @return the forwarder to which the events created from traps are sent
+     */
+    public BatchingEventForwarder getEventForwarder() {
+        return m_eventForwarder;
+    }
+
     /**
      * The event configuration DAO that we use to convert from traps to events.
      */
@@ -98,7 +110,7 @@ public class TrapQueueProcessorFactory implements InitializingBean {
     public TrapQueueProcessor getInstance(TrapNotification info) {
         TrapQueueProcessor retval = new TrapQueueProcessor();
         retval.setEventConfDao(m_eventConfDao);
-        retval.setEventManager(m_eventManager);
+        retval.setEventForwarder(m_eventForwarder);
         retval.setNewSuspect(m_newSuspectOnTrap);
         retval.setTrapNotification(info);
         retval.afterPropertiesSet();
@@ -109,5 +121,6 @@ public class TrapQueueProcessorFactory implements InitializingBean {
     public void afterPropertiesSet() throws Exception {
         BeanUtils.assertAutowiring(this);
         Assert.state(m_eventManager != null, "eventManager must be set");
+        m_eventForwarder = new BatchingEventForwarder(m_eventManager);
     }
 }
@@ -34,6 +34,8 @@ import java.net.InetAddress;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
 
@@ -81,6 +83,12 @@ public class Trapd extends AbstractServiceDaemon implements TrapProcessorFactory
     private static final Logger LOG = LoggerFactory.getLogger(Trapd.class);
 
     private static final String LOG4J_CATEGORY = "trapd";
+
+    /**
+     * How long to wait on stop for the traps that are already queued to be
+     * turned into events, before the event forwarder is stopped.
+     */
+    private static final long BACKLOG_TERMINATION_TIMEOUT_SECONDS = 30;
     
     /**
      * The last status sent to the service control manager.
@@ -219,6 +227,8 @@ public class Trapd extends AbstractServiceDaemon implements TrapProcessorFactory
 
         LOG.debug("start: Initializing the trapd config factory");
 
+        m_processorFactory.getEventForwarder().start();
+
         m_status = RUNNING;
 
         LOG.debug("start: Trapd ready to receive traps");
@@ -289,6 +299,18 @@ public class Trapd extends AbstractServiceDaemon implements TrapProcessorFactory
         LOG.debug("stop: Stopping queue processor.");
 
         m_backlogQ.shutdown();
+        try {
+            if (!m_backlogQ.awaitTermination(BACKLOG_TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOG.warn("stop: traps were still being processed after {} seconds, their events may not be sent", BACKLOG_TERMINATION_TIMEOUT_SECONDS);
+            }
+        } catch (final InterruptedException e) {
+            LOG.warn("stop: interrupted while waiting for the queue processor to finish", e);
+            Thread.currentThread().interrupt();
+        }
+
+        LOG.debug("stop: Sending the queued events.");
+
+        m_processorFactory.getEventForwarder().stop();
 
         m_eventReader.close();
 
@@ -372,4 +394,26 @@ public class Trapd extends AbstractServiceDaemon implements TrapProcessorFactory
     public long getTrapsErrored() {
         return TrapQueueProcessor.getTrapsErrored();
     }
+
+    public int getQueueDepth() {
+        int depth = m_processorFactory.getEventForwarder().getQueueSize();
+        if (m_backlogQ instanceof ThreadPoolExecutor) {
+            depth += ((ThreadPoolExecutor)m_backlogQ).getQueue().size();
+        }
+        return depth;
+    }
+
+    public long getEventsSent() {
+        return m_processorFactory.getEventForwarder().getEventsSent();
+    }
+
+    public long getEventBatchesSent() {
+        return m_processorFactory.getEventForwarder().getBatchesSent();
+    }
+
+    public double getSocketDrops() {
+        final long drops = UdpSocketStatistics.getDrops(m_snmpTrapPort);
+        // no sample rather than a counter that goes back to -1
+        return drops < 0 ? Double.NaN : drops;
+    }
 }
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.trapd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the statistics the Linux kernel keeps for UDP sockets from
+ * /proc/net/udp and /proc/net/udp6, which is the only place the datagrams
+ * dropped because the receive buffer of a socket was full are counted.
+ */
+abstract class UdpSocketStatistics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UdpSocketStatistics.class);
+
+    private static final String[] TABLES = { "/proc/net/udp", "/proc/net/udp6" };
+
+    /**
+     * Returns the number of datagrams the kernel dropped for the sockets
+     * bound to the given local port since they were opened.
+     *
+     * @param port the local port
+     * @return the number of dropped datagrams, or -1 if it isn't available
+     *         on this platform
+     */
+    static long getDrops(int port) {
+        long drops = -1;
+        for (String table : TABLES) {
+            final File file = new File(table);
+            if (!file.canRead()) {
+                continue;
+            }
+            try {
+                final long tableDrops = getDrops(file, port);
+                if (tableDrops >= 0) {
+                    drops = Math.max(drops, 0) + tableDrops;
+                }
+            } catch (IOException e) {
+                LOG.debug("Failed to read {}", table, e);
+            }
+        }
+        return drops;
+    }
+
+    /**
+     * The lines of the table look like:
+     * <pre>
+     *   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode ref pointer drops
+     *   12: 00000000:00A2 00000000:0000 07 00000000:00000000 00:00000000 00000000   0        0 12345 2 ffff8800b9a4f040 0
+     * </pre>
+     * with the port in hexadecimal after the local address.
+     */
+    static long getDrops(File file, int port) throws IOException {
+        long drops = -1;
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            // skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields.length < 13) {
+                    continue;
+                }
+                final String localAddress = fields[1];
+                try {
+                    if (Integer.parseInt(localAddress.substring(localAddress.lastIndexOf(':') + 1), 16) == port) {
+                        drops = Math.max(drops, 0) + Long.parseLong(fields[fields.length - 1]);
+                    }
+                } catch (NumberFormatException e) {
+                    LOG.debug("Unexpected line in {}: {}", file, line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return drops;
+    }
+}
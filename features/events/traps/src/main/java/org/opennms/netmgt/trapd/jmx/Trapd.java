@@ -78,4 +78,28 @@ public class Trapd extends AbstractSpringContextJmxServiceDaemon<org.opennms.net
     public long getTrapsErrored() {
         return getDaemon().getTrapsErrored();
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getQueueDepth() {
+        return getDaemon().getQueueDepth();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getEventsSent() {
+        return getDaemon().getEventsSent();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getEventBatchesSent() {
+        return getDaemon().getEventBatchesSent();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getSocketDrops() {
+        return getDaemon().getSocketDrops();
+    }
 }
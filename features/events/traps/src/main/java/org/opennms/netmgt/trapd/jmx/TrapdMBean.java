@@ -51,4 +51,16 @@ public interface TrapdMBean extends BaseOnmsMBean {
     
     /** @return The number of traps not processed due to errors since Trapd was last started */
     public long getTrapsErrored();
+
+    /** @return The number of traps waiting to be converted plus the number of events waiting to be sent */
+    public int getQueueDepth();
+
+    /** @return The number of events sent to eventd in batches since Trapd was last started */
+    public long getEventsSent();
+
+    /** @return The number of batches of events sent to eventd since Trapd was last started */
+    public long getEventBatchesSent();
+
+    /** @return The number of traps dropped by the kernel because the receive buffer of the socket was full, or NaN if unknown */
+    public double getSocketDrops();
 }
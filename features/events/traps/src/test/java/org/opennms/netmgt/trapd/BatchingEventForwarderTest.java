@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.trapd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opennms.netmgt.events.api.EventForwarder;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Log;
+
+public class BatchingEventForwarderTest {
+
+    /**
+     * Records the events and the size of the batches, and can hold up the
+     * sender until it is released.
+     */
+    private static class RecordingForwarder implements EventForwarder {
+        private final List<String> m_ueis = new ArrayList<String>();
+        private final List<Integer> m_batchSizes = new ArrayList<Integer>();
+        private final CountDownLatch m_release;
+
+        public RecordingForwarder(CountDownLatch release) {
+            m_release = release;
+        }
+
+        @Override
+        public void sendNow(Event event) {
+            synchronized (this) {
+                m_ueis.add(event.getUei());
+                m_batchSizes.add(0);
+            }
+        }
+
+        @Override
+        public void sendNow(Log eventLog) {
+            try {
+                m_release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            synchronized (this) {
+                for (Event event : eventLog.getEvents().getEventCollection()) {
+                    m_ueis.add(event.getUei());
+                }
+                m_batchSizes.add(eventLog.getEvents().getEventCount());
+            }
+        }
+
+        public synchronized List<String> getUeis() {
+            return new ArrayList<String>(m_ueis);
+        }
+
+        public synchronized List<Integer> getBatchSizes() {
+            return new ArrayList<Integer>(m_batchSizes);
+        }
+    }
+
+    private BatchingEventForwarder m_forwarder;
+
+    @After
+    public void tearDown() {
+        if (m_forwarder != null) {
+            m_forwarder.stop();
+        }
+    }
+
+    private static Event event(int i) {
+        return new EventBuilder("uei.opennms.org/test/" + i, "test").getEvent();
+    }
+
+    @Test
+    public void testSendsDirectlyWhenNotStarted() {
+        final RecordingForwarder recorder = new RecordingForwarder(new CountDownLatch(0));
+        m_forwarder = new BatchingEventForwarder(recorder);
+
+        m_forwarder.sendNow(event(1));
+
+        assertEquals(1, recorder.getUeis().size());
+        assertEquals(0, m_forwarder.getEventsSent());
+    }
+
+    @Test
+    public void testBatchesQueuedEventsInOrder() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingForwarder recorder = new RecordingForwarder(release);
+        m_forwarder = new BatchingEventForwarder(recorder);
+        m_forwarder.start();
+
+        // The sender is held up by the first event, while the others pile up
+        final int numEvents = 1 + BatchingEventForwarder.MAX_BATCH_SIZE * 2 + 10;
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < numEvents; i++) {
+            final Event event = event(i);
+            expected.add(event.getUei());
+            m_forwarder.sendNow(event);
+        }
+        assertTrue(m_forwarder.getQueueSize() >= numEvents - BatchingEventForwarder.MAX_BATCH_SIZE);
+
+        release.countDown();
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (m_forwarder.getEventsSent() < numEvents && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(expected, recorder.getUeis());
+        assertEquals(numEvents, m_forwarder.getEventsSent());
+        assertEquals(0, m_forwarder.getQueueSize());
+        // the first batch, and the rest in full batches
+        assertTrue(recorder.getBatchSizes().toString(), m_forwarder.getBatchesSent() <= 4);
+        for (int size : recorder.getBatchSizes()) {
+            assertTrue(size <= BatchingEventForwarder.MAX_BATCH_SIZE);
+        }
+    }
+
+    @Test
+    public void testStopSendsQueuedEvents() {
+        final RecordingForwarder recorder = new RecordingForwarder(new CountDownLatch(0));
+        m_forwarder = new BatchingEventForwarder(recorder);
+        m_forwarder.start();
+
+        for (int i = 0; i < 500; i++) {
+            m_forwarder.sendNow(event(i));
+        }
+        m_forwarder.stop();
+
+        assertEquals(500, recorder.getUeis().size());
+        assertEquals(500, m_forwarder.getEventsSent());
+
+        // and sends directly once stopped
+        m_forwarder.sendNow(event(500));
+        assertEquals(501, recorder.getUeis().size());
+    }
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.trapd;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UdpSocketStatisticsTest {
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    @Test
+    public void testGetDrops() throws Exception {
+        final File file = m_folder.newFile("udp");
+        final Writer writer = new FileWriter(file);
+        try {
+            writer.write("   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode ref pointer drops\n");
+            writer.write("   12: 00000000:00A2 00000000:0000 07 00000000:00000000 00:00000000 00000000     0        0 12345 2 ffff8800b9a4f040 42\n");
+            writer.write("   13: 0100007F:0202 00000000:0000 07 00000000:00000000 00:00000000 00000000     0        0 12346 2 ffff8800b9a4f080 7\n");
+            writer.write("  214: 00000000000000000000000000000000:00A2 00000000000000000000000000000000:0000 07 00000000:00000000 00:00000000 00000000 0 0 12347 2 ffff8800b9a4f0c0 3\n");
+        } finally {
+            writer.close();
+        }
+
+        assertEquals(45, UdpSocketStatistics.getDrops(file, 162));
+        assertEquals(7, UdpSocketStatistics.getDrops(file, 514));
+        assertEquals(-1, UdpSocketStatistics.getDrops(file, 10162));
+    }
+}
@@ -0,0 +1,1162 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.measurements.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.regex.Pattern;
+
+import org.apache.commons.jexl2.JexlContext;
+import org.apache.commons.jexl2.JexlEngine;
+import org.opennms.netmgt.measurements.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A measurements expression lowered into a tree of nodes that evaluates
+ * over whole columns of values at once, instead of once per row.
+ *
+ * Variables are bound to columns by index when the expression is compiled,
+ * using a {@link Scope} that resolves names the same way the context of the
+ * row by row evaluation in {@link JEXLExpressionEngine} does.
+ *
+ * Only the constructs that graph expressions typically use are supported:
+ * numeric literals, variables, constants, arithmetic, comparison and logical
+ * operators, the ternary operator and the functions of the <code>math</code>
+ * and <code>strictmath</code> namespaces. The result is always the same as
+ * the one JEXL gives, so anything for which this can't be guaranteed at
+ * compile time makes {@link #compile(JexlEngine, String, Scope)} return null
+ * and the caller should use JEXL instead.
+ *
+ * Sub-expressions that only use constants are evaluated by JEXL once, when
+ * the expression is compiled.
+ */
+final class ColumnExpression {
+    private static final Logger LOG = LoggerFactory.getLogger(ColumnExpression.class);
+
+    private static final Map<String, Map<String, DoubleUnaryOperator>> UNARY_FUNCTIONS = new HashMap<String, Map<String, DoubleUnaryOperator>>();
+    private static final Map<String, Map<String, DoubleBinaryOperator>> BINARY_FUNCTIONS = new HashMap<String, Map<String, DoubleBinaryOperator>>();
+    static {
+        final Map<String, DoubleUnaryOperator> math = new HashMap<String, DoubleUnaryOperator>();
+        math.put("abs", Math::abs);
+        math.put("acos", Math::acos);
+        math.put("asin", Math::asin);
+        math.put("atan", Math::atan);
+        math.put("cbrt", Math::cbrt);
+        math.put("ceil", Math::ceil);
+        math.put("cos", Math::cos);
+        math.put("cosh", Math::cosh);
+        math.put("exp", Math::exp);
+        math.put("expm1", Math::expm1);
+        math.put("floor", Math::floor);
+        math.put("log", Math::log);
+        math.put("log10", Math::log10);
+        math.put("log1p", Math::log1p);
+        math.put("rint", Math::rint);
+        math.put("signum", Math::signum);
+        math.put("sin", Math::sin);
+        math.put("sinh", Math::sinh);
+        math.put("sqrt", Math::sqrt);
+        math.put("tan", Math::tan);
+        math.put("tanh", Math::tanh);
+        math.put("toDegrees", Math::toDegrees);
+        math.put("toRadians", Math::toRadians);
+        math.put("ulp", Math::ulp);
+        UNARY_FUNCTIONS.put("math", math);
+
+        final Map<String, DoubleUnaryOperator> strictMath = new HashMap<String, DoubleUnaryOperator>();
+        strictMath.put("abs", StrictMath::abs);
+        strictMath.put("acos", StrictMath::acos);
+        strictMath.put("asin", StrictMath::asin);
+        strictMath.put("atan", StrictMath::atan);
+        strictMath.put("cbrt", StrictMath::cbrt);
+        strictMath.put("ceil", StrictMath::ceil);
+        strictMath.put("cos", StrictMath::cos);
+        strictMath.put("cosh", StrictMath::cosh);
+        strictMath.put("exp", StrictMath::exp);
+        strictMath.put("expm1", StrictMath::expm1);
+        strictMath.put("floor", StrictMath::floor);
+        strictMath.put("log", StrictMath::log);
+        strictMath.put("log10", StrictMath::log10);
+        strictMath.put("log1p", StrictMath::log1p);
+        strictMath.put("rint", StrictMath::rint);
+        strictMath.put("signum", StrictMath::signum);
+        strictMath.put("sin", StrictMath::sin);
+        strictMath.put("sinh", StrictMath::sinh);
+        strictMath.put("sqrt", StrictMath::sqrt);
+        strictMath.put("tan", StrictMath::tan);
+        strictMath.put("tanh", StrictMath::tanh);
+        strictMath.put("toDegrees", StrictMath::toDegrees);
+        strictMath.put("toRadians", StrictMath::toRadians);
+        strictMath.put("ulp", StrictMath::ulp);
+        UNARY_FUNCTIONS.put("strictmath", strictMath);
+
+        final Map<String, DoubleBinaryOperator> math2 = new HashMap<String, DoubleBinaryOperator>();
+        math2.put("atan2", Math::atan2);
+        math2.put("hypot", Math::hypot);
+        math2.put("IEEEremainder", Math::IEEEremainder);
+        math2.put("max", Math::max);
+        math2.put("min", Math::min);
+        math2.put("pow", Math::pow);
+        BINARY_FUNCTIONS.put("math", math2);
+
+        final Map<String, DoubleBinaryOperator> strictMath2 = new HashMap<String, DoubleBinaryOperator>();
+        strictMath2.put("atan2", StrictMath::atan2);
+        strictMath2.put("hypot", StrictMath::hypot);
+        strictMath2.put("IEEEremainder", StrictMath::IEEEremainder);
+        strictMath2.put("max", StrictMath::max);
+        strictMath2.put("min", StrictMath::min);
+        strictMath2.put("pow", StrictMath::pow);
+        BINARY_FUNCTIONS.put("strictmath", strictMath2);
+    }
+
+    /**
+     * Resolves the variables of an expression.
+     */
+    interface Scope {
+        /**
+         * <p>resolve</p>
+         *
+         * @param name the name of a variable
+         * @return what the name is bound to, or null if it isn't bound to anything
+         */
+        Binding resolve(String name);
+
+        /**
+         * <p>getConstants</p>
+         *
+         * @return a context holding the constants, used to fold the parts of the expression that only use constants
+         */
+        JexlContext getConstants();
+    }
+
+    /**
+     * What a variable is bound to.
+     */
+    static final class Binding {
+        private final Kind m_kind;
+        private final int m_column;
+        private final Object m_value;
+
+        private Binding(Kind kind, int column, Object value) {
+            m_kind = kind;
+            m_column = column;
+            m_value = value;
+        }
+
+        /**
+         * A column of values that are java.lang.Doubles in the row by row evaluation.
+         */
+        static Binding doubles(int column) {
+            return new Binding(Kind.DOUBLE, column, null);
+        }
+
+        /**
+         * A column of values that are java.lang.Longs in the row by row
+         * evaluation, converted to doubles.
+         */
+        static Binding longs(int column) {
+            return new Binding(Kind.LONG, column, null);
+        }
+
+        /**
+         * The same value in every row.
+         */
+        static Binding constant(Object value) {
+            return new Binding(Kind.CONSTANT, -1, value);
+        }
+    }
+
+    private final String m_expression;
+    private final Node m_root;
+    private final BitSet m_columns;
+
+    private ColumnExpression(String expression, Node root, BitSet columns) {
+        m_expression = expression;
+        m_root = root;
+        m_columns = columns;
+    }
+
+    /**
+     * Compiles the given JEXL expression.
+     *
+     * @param jexl the engine used to fold constants
+     * @param expression the expression
+     * @param scope resolves the variables
+     * @return the compiled expression, or null if it uses constructs that aren't supported
+     */
+    static ColumnExpression compile(JexlEngine jexl, String expression, Scope scope) {
+        try {
+            final Parser parser = new Parser(jexl, expression, scope);
+            final Operand root = parser.parse();
+            final Node node;
+            if (root.m_kind == Kind.CONSTANT) {
+                try {
+                    node = new Constant(Utils.toDouble(root.m_constant));
+                } catch (NullPointerException|NumberFormatException e) {
+                    throw new UnsupportedExpressionException("the result '" + root.m_constant + "' is not a number");
+                }
+            } else if (root.m_kind == Kind.BOOLEAN) {
+                throw new UnsupportedExpressionException("the result is not a number");
+            } else {
+                node = root.m_node;
+            }
+            return new ColumnExpression(expression, node, parser.m_columns);
+        } catch (UnsupportedExpressionException e) {
+            LOG.debug("Using JEXL to evaluate '{}': {}", expression, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * <p>getColumns</p>
+     *
+     * @return the indexes of the columns the expression reads
+     */
+    BitSet getColumns() {
+        return (BitSet)m_columns.clone();
+    }
+
+    /**
+     * Evaluates the expression for every row.
+     *
+     * @param columns the columns the variables are bound to
+     * @param numRows the number of rows
+     * @return a new column holding the results
+     */
+    double[] evaluate(double[][] columns, int numRows) {
+        final double[] values = m_root.values(columns, numRows);
+        // Never hand out one of the input columns
+        return m_root.isTemporary() ? values : Arrays.copyOf(values, numRows);
+    }
+
+    @Override
+    public String toString() {
+        return m_expression;
+    }
+
+    private static class UnsupportedExpressionException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedExpressionException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * What is known about the value of an operand at compile time.
+     */
+    private static enum Kind {
+        /** A java.lang.Double at evaluation time. */
+        DOUBLE,
+        /** A java.lang.Long at evaluation time. */
+        LONG,
+        /** A Double, a Float or an integral number, depending on a condition. */
+        MIXED,
+        /** A java.lang.Boolean at evaluation time. */
+        BOOLEAN,
+        /** Known at compile time. */
+        CONSTANT
+    }
+
+    private static final class Operand {
+        private final Kind m_kind;
+        private final Node m_node;
+        private final Object m_constant;
+        private final int m_start;
+        private final int m_end;
+
+        private Operand(Kind kind, Node node, Object constant, int start, int end) {
+            m_kind = kind;
+            m_node = node;
+            m_constant = constant;
+            m_start = start;
+            m_end = end;
+        }
+
+        private boolean isDouble() {
+            return m_kind == Kind.DOUBLE;
+        }
+
+        private boolean isConstantNumber() {
+            return m_kind == Kind.CONSTANT && (m_constant instanceof Double || m_constant instanceof Float || isIntegral(m_constant));
+        }
+
+        private boolean isFloatingPoint() {
+            return isDouble() || (m_kind == Kind.CONSTANT && (m_constant instanceof Double || m_constant instanceof Float));
+        }
+
+        private boolean isBoolean() {
+            return m_kind == Kind.BOOLEAN || (m_kind == Kind.CONSTANT && m_constant instanceof Boolean);
+        }
+
+        /**
+         * JEXL arithmetic and comparisons convert numbers that aren't Doubles
+         * through their string form, so a Float literal like 0.1 is 0.1 and
+         * not 0.10000000149011612.
+         */
+        private Node numberNode() {
+            return m_kind == Kind.CONSTANT ? new Constant(Double.parseDouble(String.valueOf(m_constant))) : m_node;
+        }
+
+        /**
+         * Function arguments are widened by Java instead.
+         */
+        private Node argumentNode() {
+            return m_kind == Kind.CONSTANT ? new Constant(((Number)m_constant).doubleValue()) : m_node;
+        }
+
+        private Node booleanNode() {
+            return m_kind == Kind.CONSTANT ? new BooleanConstant((Boolean)m_constant) : m_node;
+        }
+
+        private static boolean isIntegral(Object o) {
+            return o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte;
+        }
+    }
+
+    /**
+     * A recursive descent parser following the precedence rules of the JEXL grammar.
+     */
+    private static final class Parser {
+        /** What follows the namespace of a function, as opposed to the name of a variable before the ':' of a ternary. */
+        private static final Pattern FUNCTION_CALL = Pattern.compile("\\s*:\\s*[A-Za-z_$][A-Za-z0-9_$]*\\s*\\(");
+
+        private final JexlEngine m_jexl;
+        private final String m_source;
+        private final Scope m_scope;
+        private final BitSet m_columns = new BitSet();
+        private int m_pos = 0;
+
+        private Parser(JexlEngine jexl, String source, Scope scope) {
+            m_jexl = jexl;
+            m_source = source;
+            m_scope = scope;
+        }
+
+        private Operand parse() throws UnsupportedExpressionException {
+            final Operand operand = parseTernary();
+            skipWhitespace();
+            if (m_pos != m_source.length()) {
+                throw unsupported("'" + m_source.substring(m_pos) + "'");
+            }
+            return operand;
+        }
+
+        private Operand parseTernary() throws UnsupportedExpressionException {
+            final Operand condition = parseOr();
+            if (!accept("?")) {
+                return condition;
+            }
+            if (!condition.isBoolean()) {
+                throw unsupported("a condition that is not a comparison");
+            }
+            final Operand whenTrue = parseTernary();
+            expect(":");
+            final Operand whenFalse = parseTernary();
+            if (condition.m_kind == Kind.CONSTANT) {
+                final Operand branch = (Boolean)condition.m_constant ? whenTrue : whenFalse;
+                if (branch.m_kind == Kind.CONSTANT) {
+                    return fold(condition.m_start, m_pos);
+                }
+                return new Operand(branch.m_kind, branch.m_node, null, condition.m_start, m_pos);
+            }
+            for (Operand branch : new Operand[] { whenTrue, whenFalse }) {
+                if (!branch.isDouble() && branch.m_kind != Kind.MIXED && !branch.isConstantNumber()) {
+                    throw unsupported("a branch that is not a number");
+                }
+            }
+            final boolean isDouble = (whenTrue.isDouble() || whenTrue.m_constant instanceof Double) && (whenFalse.isDouble() || whenFalse.m_constant instanceof Double);
+            return new Operand(isDouble ? Kind.DOUBLE : Kind.MIXED, new Ternary(condition.m_node, whenTrue.numberNode(), whenFalse.numberNode()), null, condition.m_start, m_pos);
+        }
+
+        private Operand parseOr() throws UnsupportedExpressionException {
+            Operand left = parseAnd();
+            while (accept("||") || acceptWord("or")) {
+                left = logical(false, left, parseAnd());
+            }
+            return left;
+        }
+
+        private Operand parseAnd() throws UnsupportedExpressionException {
+            Operand left = parseEquality();
+            while (accept("&&") || acceptWord("and")) {
+                left = logical(true, left, parseEquality());
+            }
+            return left;
+        }
+
+        private Operand logical(boolean and, Operand left, Operand right) throws UnsupportedExpressionException {
+            if (!left.isBoolean() || !right.isBoolean()) {
+                throw unsupported("a logical operator on numbers");
+            }
+            if (left.m_kind == Kind.CONSTANT && right.m_kind == Kind.CONSTANT) {
+                return fold(left, right);
+            }
+            return new Operand(Kind.BOOLEAN, new Logical(and, left.booleanNode(), right.booleanNode()), null, left.m_start, right.m_end);
+        }
+
+        private Operand parseEquality() throws UnsupportedExpressionException {
+            Operand left = parseRelational();
+            while (true) {
+                if (accept("==") || acceptWord("eq")) {
+                    left = comparison(Comparison.EQ, left, parseRelational());
+                } else if (accept("!=") || acceptWord("ne")) {
+                    left = comparison(Comparison.NE, left, parseRelational());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Operand parseRelational() throws UnsupportedExpressionException {
+            Operand left = parseAdditive();
+            while (true) {
+                if (peek("=~") || peek("!~")) {
+                    throw unsupported("pattern matching");
+                } else if (accept("<=") || acceptWord("le")) {
+                    left = comparison(Comparison.LE, left, parseAdditive());
+                } else if (accept(">=") || acceptWord("ge")) {
+                    left = comparison(Comparison.GE, left, parseAdditive());
+                } else if (accept("<") || acceptWord("lt")) {
+                    left = comparison(Comparison.LT, left, parseAdditive());
+                } else if (accept(">") || acceptWord("gt")) {
+                    left = comparison(Comparison.GT, left, parseAdditive());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Operand comparison(Comparison comparison, Operand left, Operand right) throws UnsupportedExpressionException {
+            if (left.m_kind == Kind.CONSTANT && right.m_kind == Kind.CONSTANT) {
+                return fold(left, right);
+            }
+            // A Long is only compared as a double with a floating point number
+            if ((left.m_kind == Kind.LONG && !right.isFloatingPoint()) || (right.m_kind == Kind.LONG && !left.isFloatingPoint())) {
+                throw unsupported("a comparison of integers");
+            }
+            // Otherwise one of them is a Double, the other one must be a number whose class is known
+            if (!(left.isDouble() || left.m_kind == Kind.LONG || left.isConstantNumber()) || !(right.isDouble() || right.m_kind == Kind.LONG || right.isConstantNumber())) {
+                throw unsupported("a comparison of values that are not numbers");
+            }
+            return new Operand(Kind.BOOLEAN, new Compare(comparison, left.numberNode(), right.numberNode()), null, left.m_start, right.m_end);
+        }
+
+        private Operand parseAdditive() throws UnsupportedExpressionException {
+            Operand left = parseMultiplicative();
+            while (true) {
+                if (accept("+")) {
+                    left = arithmetic('+', left, parseMultiplicative());
+                } else if (accept("-")) {
+                    left = arithmetic('-', left, parseMultiplicative());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Operand parseMultiplicative() throws UnsupportedExpressionException {
+            Operand left = parseUnary();
+            while (true) {
+                if (accept("*")) {
+                    left = arithmetic('*', left, parseUnary());
+                } else if (accept("/") || acceptWord("div")) {
+                    left = arithmetic('/', left, parseUnary());
+                } else if (accept("%") || acceptWord("mod")) {
+                    left = arithmetic('%', left, parseUnary());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Operand arithmetic(char operator, Operand left, Operand right) throws UnsupportedExpressionException {
+            if (left.m_kind == Kind.CONSTANT && right.m_kind == Kind.CONSTANT) {
+                return fold(left, right);
+            }
+            if (!(left.isDouble() || left.m_kind == Kind.LONG || left.m_kind == Kind.MIXED || left.isConstantNumber())
+                    || !(right.isDouble() || right.m_kind == Kind.LONG || right.m_kind == Kind.MIXED || right.isConstantNumber())) {
+                throw unsupported("arithmetic on values that are not numbers");
+            }
+            // JEXL only uses floating point arithmetic if one of the operands is a Double or a Float
+            if (!left.isFloatingPoint() && !right.isFloatingPoint()) {
+                throw unsupported("arithmetic that may be done on integers");
+            }
+            return new Operand(Kind.DOUBLE, new Arithmetic(operator, left.numberNode(), right.numberNode()), null, left.m_start, right.m_end);
+        }
+
+        private Operand parseUnary() throws UnsupportedExpressionException {
+            skipWhitespace();
+            final int start = m_pos;
+            if (accept("-")) {
+                final Operand operand = parseUnary();
+                if (operand.m_kind == Kind.CONSTANT) {
+                    return fold(start, operand.m_end);
+                } else if (!operand.isDouble()) {
+                    throw unsupported("a negation of a value that is not a Double");
+                }
+                return new Operand(Kind.DOUBLE, new Negate(operand.m_node), null, start, operand.m_end);
+            } else if (accept("!") || acceptWord("not")) {
+                final Operand operand = parseUnary();
+                if (operand.m_kind == Kind.CONSTANT) {
+                    return fold(start, operand.m_end);
+                } else if (!operand.isBoolean()) {
+                    throw unsupported("a negation of a number");
+                }
+                return new Operand(Kind.BOOLEAN, new Not(operand.m_node), null, start, operand.m_end);
+            }
+            return parsePrimary();
+        }
+
+        private Operand parsePrimary() throws UnsupportedExpressionException {
+            skipWhitespace();
+            final int start = m_pos;
+            if (m_pos >= m_source.length()) {
+                throw unsupported("the end of the expression");
+            }
+            final char c = m_source.charAt(m_pos);
+            if (accept("(")) {
+                final Operand operand = parseTernary();
+                expect(")");
+                if (operand.m_kind == Kind.CONSTANT) {
+                    return fold(start, m_pos);
+                }
+                return new Operand(operand.m_kind, operand.m_node, null, start, m_pos);
+            } else if (Character.isDigit(c)) {
+                return number(start);
+            } else if (isIdentifierStart(c)) {
+                final String identifier = identifier();
+                if ("true".equals(identifier) || "false".equals(identifier)) {
+                    return fold(start, m_pos);
+                } else if (FUNCTION_CALL.matcher(m_source).region(m_pos, m_source.length()).lookingAt()) {
+                    expect(":");
+                    return function(identifier, start);
+                } else if (isReserved(identifier) || peek("[") || peek("(")) {
+                    throw unsupported("'" + identifier + "'");
+                } else if (peek(".")) {
+                    accept(".");
+                    skipWhitespace();
+                    return variable(identifier, identifier(), start);
+                }
+                return variable(identifier, null, start);
+            }
+            throw unsupported("'" + m_source.substring(m_pos) + "'");
+        }
+
+        /**
+         * Integer literals may be followed by l or L, real ones by an
+         * exponent and d, D, f or F. JEXL decides which class they are.
+         */
+        private Operand number(int start) throws UnsupportedExpressionException {
+            skipDigits();
+            if (m_pos + 1 < m_source.length() && m_source.charAt(m_pos) == '.' && Character.isDigit(m_source.charAt(m_pos + 1))) {
+                m_pos++;
+                skipDigits();
+                if (m_pos < m_source.length() && (m_source.charAt(m_pos) == 'e' || m_source.charAt(m_pos) == 'E')) {
+                    m_pos++;
+                    if (m_pos < m_source.length() && (m_source.charAt(m_pos) == '+' || m_source.charAt(m_pos) == '-')) {
+                        m_pos++;
+                    }
+                    skipDigits();
+                }
+                if (m_pos < m_source.length() && "dDfF".indexOf(m_source.charAt(m_pos)) >= 0) {
+                    m_pos++;
+                }
+            } else if (m_pos < m_source.length() && "lL".indexOf(m_source.charAt(m_pos)) >= 0) {
+                m_pos++;
+            }
+            if (m_pos < m_source.length() && (isIdentifierPart(m_source.charAt(m_pos)) || m_source.charAt(m_pos) == '.')) {
+                throw unsupported("the number format of '" + m_source.substring(start) + "'");
+            }
+            return fold(start, m_pos);
+        }
+
+        private Operand function(String namespace, int start) throws UnsupportedExpressionException {
+            skipWhitespace();
+            final String name = identifier();
+            expect("(");
+            final List<Operand> arguments = new ArrayList<Operand>();
+            if (!accept(")")) {
+                do {
+                    arguments.add(parseTernary());
+                } while (accept(","));
+                expect(")");
+            }
+
+            boolean constant = true;
+            for (Operand argument : arguments) {
+                if (argument.m_kind != Kind.CONSTANT) {
+                    constant = false;
+                } else if (!argument.isConstantNumber()) {
+                    throw unsupported("a function argument that is not a number");
+                }
+                // The overload JEXL picks for these is only known at evaluation time, or isn't the double one
+                if (argument.m_kind == Kind.MIXED || argument.m_kind == Kind.LONG || argument.m_kind == Kind.BOOLEAN) {
+                    throw unsupported("a function argument that is not a Double");
+                }
+            }
+            final Map<String, DoubleUnaryOperator> unary = UNARY_FUNCTIONS.get(namespace);
+            final Map<String, DoubleBinaryOperator> binary = BINARY_FUNCTIONS.get(namespace);
+            if (arguments.size() == 1 && unary != null && unary.containsKey(name)) {
+                if (constant) {
+                    return fold(start, m_pos);
+                }
+                return new Operand(Kind.DOUBLE, new UnaryFunction(unary.get(name), arguments.get(0).argumentNode()), null, start, m_pos);
+            } else if (arguments.size() == 2 && binary != null && binary.containsKey(name)) {
+                if (constant) {
+                    return fold(start, m_pos);
+                }
+                return new Operand(Kind.DOUBLE, new BinaryFunction(binary.get(name), arguments.get(0).argumentNode(), arguments.get(1).argumentNode()), null, start, m_pos);
+            }
+            throw unsupported(namespace + ":" + name + " with " + arguments.size() + " arguments");
+        }
+
+        /**
+         * Binds a variable. A name like <code>a.b</code> is looked up as a
+         * whole when neither <code>a</code> nor <code>b</code> have a value,
+         * which is how the constants of the sources are named.
+         */
+        private Operand variable(String name, String property, int start) throws UnsupportedExpressionException {
+            Binding binding = m_scope.resolve(name);
+            if (property != null) {
+                if (binding != null || m_scope.resolve(property) != null) {
+                    throw unsupported("a property of '" + name + "'");
+                }
+                binding = m_scope.resolve(name + "." + property);
+            }
+            if (binding == null || (binding.m_kind == Kind.CONSTANT && binding.m_value == null)) {
+                throw unsupported("the undefined variable '" + m_source.substring(start, m_pos) + "'");
+            } else if (binding.m_kind == Kind.CONSTANT) {
+                return fold(start, m_pos);
+            }
+            m_columns.set(binding.m_column);
+            return new Operand(binding.m_kind, new Column(binding.m_column), null, start, m_pos);
+        }
+
+        private Operand fold(Operand left, Operand right) throws UnsupportedExpressionException {
+            return fold(left.m_start, right.m_end);
+        }
+
+        /**
+         * Has JEXL evaluate a part of the expression that only uses constants.
+         */
+        private Operand fold(int start, int end) throws UnsupportedExpressionException {
+            final String source = m_source.substring(start, end);
+            final Object value;
+            try {
+                value = m_jexl.createExpression(source).evaluate(m_scope.getConstants());
+            } catch (Throwable t) {
+                throw unsupported("'" + source + "' (" + t.getMessage() + ")");
+            }
+            if (value == null) {
+                throw unsupported("'" + source + "' evaluating to null");
+            }
+            return new Operand(Kind.CONSTANT, null, value, start, end);
+        }
+
+        private String identifier() throws UnsupportedExpressionException {
+            final int start = m_pos;
+            if (m_pos >= m_source.length() || !isIdentifierStart(m_source.charAt(m_pos))) {
+                throw unsupported("a missing identifier");
+            }
+            while (m_pos < m_source.length() && isIdentifierPart(m_source.charAt(m_pos))) {
+                m_pos++;
+            }
+            return m_source.substring(start, m_pos);
+        }
+
+        private void skipDigits() {
+            while (m_pos < m_source.length() && Character.isDigit(m_source.charAt(m_pos))) {
+                m_pos++;
+            }
+        }
+
+        private void skipWhitespace() {
+            while (m_pos < m_source.length() && Character.isWhitespace(m_source.charAt(m_pos))) {
+                m_pos++;
+            }
+        }
+
+        private boolean peek(String token) {
+            skipWhitespace();
+            return m_source.startsWith(token, m_pos);
+        }
+
+        private boolean accept(String token) {
+            if (!peek(token)) {
+                return false;
+            }
+            // Don't mistake the first character of a longer operator for this one
+            final int end = m_pos + token.length();
+            if (end < m_source.length() && token.length() == 1 && "<>=!&|".indexOf(token.charAt(0)) >= 0 && "=&|~".indexOf(m_source.charAt(end)) >= 0) {
+                return false;
+            }
+            m_pos = end;
+            return true;
+        }
+
+        private boolean acceptWord(String word) {
+            if (!peek(word)) {
+                return false;
+            }
+            final int end = m_pos + word.length();
+            if (end < m_source.length() && isIdentifierPart(m_source.charAt(end))) {
+                return false;
+            }
+            m_pos = end;
+            return true;
+        }
+
+        private void expect(String token) throws UnsupportedExpressionException {
+            if (!accept(token)) {
+                throw unsupported("a missing '" + token + "'");
+            }
+        }
+
+        private UnsupportedExpressionException unsupported(String what) {
+            return new UnsupportedExpressionException("unsupported " + what + " at position " + m_pos);
+        }
+
+        private static boolean isIdentifierStart(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$';
+        }
+
+        private static boolean isIdentifierPart(char c) {
+            return isIdentifierStart(c) || (c >= '0' && c <= '9');
+        }
+
+        private static boolean isReserved(String identifier) {
+            switch (identifier) {
+            case "or": case "and": case "not": case "eq": case "ne": case "lt": case "le": case "gt": case "ge":
+            case "div": case "mod": case "null": case "empty": case "size": case "new": case "var": case "function":
+            case "return": case "if": case "else": case "for": case "foreach": case "while": case "in":
+                return true;
+            default:
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A node of the compiled expression. Numeric nodes implement
+     * {@link #values(double[][], int)}, boolean nodes
+     * {@link #tests(double[][], int)}.
+     */
+    private abstract static class Node {
+        /**
+         * Whether the arrays returned by this node are allocated for the
+         * call, so that the parent node can reuse them for its own results.
+         */
+        boolean isTemporary() {
+            return true;
+        }
+
+        double[] values(double[][] columns, int numRows) {
+            throw new UnsupportedOperationException();
+        }
+
+        boolean[] tests(double[][] columns, int numRows) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class Column extends Node {
+        private final int m_column;
+
+        private Column(int column) {
+            m_column = column;
+        }
+
+        @Override
+        boolean isTemporary() {
+            return false;
+        }
+
+        @Override
+        double[] values(double[][] columns, int numRows) {
+            return columns[m_column];
+        }
+    }
+
+    private static final class Constant extends Node {
+        private final double m_value;
+
+        private Constant(double value) {
+            m_value = value;
+        }
+
+        @Override
+        double[] values(double[][] columns, int numRows) {
+            final double[] values = new double[numRows];
+            Arrays.fill(values, m_value);
+            return values;
+        }
+    }
+
+    private static final class BooleanConstant extends Node {
+        private final boolean m_value;
+
+        private BooleanConstant(boolean value) {
+            m_value = value;
+        }
+
+        @Override
+        boolean[] tests(double[][] columns, int numRows) {
+            final boolean[] tests = new boolean[numRows];
+            Arrays.fill(tests, m_value);
+            return tests;
+        }
+    }
+
+    private static final class Negate extends Node {
+        private final Node m_operand;
+
+        private Negate(Node operand) {
+            m_operand = operand;
+        }
+
+        @Override
+        double[] values(double[][] columns, int numRows) {
+            final double[] operand = m_operand.values(columns, numRows);
+            final double[] values = m_operand.isTemporary() ? operand : new double[numRows];
+            for (int i = 0; i < numRows; i++) {
+                values[i] = -operand[i];
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Floating point arithmetic. Constant operands are kept as scalars so
+     * that the loops only read one column.
+     */
+    private static final class Arithmetic extends Node {
+        private final char m_operator;
+        private final Node m_left;
+        private final Node m_right;
+
+        private Arithmetic(char operator, Node left, Node right) {
+            m_operator = operator;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        double[] values(double[][] columns, int numRows) {
+            if (m_right instanceof Constant) {
+                final double[] left = m_left.values(columns, numRows);
+                final double[] values = m_left.isTemporary() ? left : new double[numRows];
+                apply(m_operator, left, ((Constant)m_right).m_value, values, numRows);
+                return values;
+            } else if (m_left instanceof Constant) {
+                final double[] right = m_right.values(columns, numRows);
+                final double[] values = m_right.isTemporary() ? right : new double[numRows];
+                apply(m_operator, ((Constant)m_left).m_value, right, values, numRows);
+                return values;
+            }
+            final double[] left = m_left.values(columns, numRows);
+            final double[] right = m_right.values(columns, numRows);
+            final double[] values = m_left.isTemporary() ? left : m_right.isTemporary() ? right : new double[numRows];
+            apply(m_operator, left, right, values, numRows);
+            return values;
+        }
+
+        // JEXL evaluates a division by zero to 0.0 unless the engine is strict
+
+        private static void apply(char operator, double[] left, double[] right, double[] values, int numRows) {
+            switch (operator) {
+            case '+':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = left[i] + right[i];
+                }
+                break;
+            case '-':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = left[i] - right[i];
+                }
+                break;
+            case '*':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = left[i] * right[i];
+                }
+                break;
+            case '/':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = right[i] == 0.0 ? 0.0 : left[i] / right[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = right[i] == 0.0 ? 0.0 : left[i] % right[i];
+                }
+                break;
+            }
+        }
+
+        private static void apply(char operator, double[] left, double right, double[] values, int numRows) {
+            switch (operator) {
+            case '+':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = left[i] + right;
+                }
+                break;
+            case '-':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = left[i] - right;
+                }
+                break;
+            case '*':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = left[i] * right;
+                }
+                break;
+            case '/':
+                if (right == 0.0) {
+                    Arrays.fill(values, 0, numRows, 0.0);
+                } else {
+                    for (int i = 0; i < numRows; i++) {
+                        values[i] = left[i] / right;
+                    }
+                }
+                break;
+            default:
+                if (right == 0.0) {
+                    Arrays.fill(values, 0, numRows, 0.0);
+                } else {
+                    for (int i = 0; i < numRows; i++) {
+                        values[i] = left[i] % right;
+                    }
+                }
+                break;
+            }
+        }
+
+        private static void apply(char operator, double left, double[] right, double[] values, int numRows) {
+            switch (operator) {
+            case '+':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = left + right[i];
+                }
+                break;
+            case '-':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = left - right[i];
+                }
+                break;
+            case '*':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = left * right[i];
+                }
+                break;
+            case '/':
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = right[i] == 0.0 ? 0.0 : left / right[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = right[i] == 0.0 ? 0.0 : left % right[i];
+                }
+                break;
+            }
+        }
+    }
+
+    private static enum Comparison { EQ, NE, LT, LE, GT, GE }
+
+    /**
+     * Compares numbers the way JEXL does: NaN is equal to NaN and less than
+     * any other number.
+     */
+    private static final class Compare extends Node {
+        private final Comparison m_comparison;
+        private final Node m_left;
+        private final Node m_right;
+
+        private Compare(Comparison comparison, Node left, Node right) {
+            m_comparison = comparison;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        boolean[] tests(double[][] columns, int numRows) {
+            final double[] left = m_left.values(columns, numRows);
+            final double[] right = m_right.values(columns, numRows);
+            final boolean[] tests = new boolean[numRows];
+            for (int i = 0; i < numRows; i++) {
+                final int comparison = compare(left[i], right[i]);
+                switch (m_comparison) {
+                case EQ:
+                    tests[i] = comparison == 0;
+                    break;
+                case NE:
+                    tests[i] = comparison != 0;
+                    break;
+                case LT:
+                    tests[i] = comparison < 0;
+                    break;
+                case LE:
+                    tests[i] = comparison <= 0;
+                    break;
+                case GT:
+                    tests[i] = comparison > 0;
+                    break;
+                default:
+                    tests[i] = comparison >= 0;
+                    break;
+                }
+            }
+            return tests;
+        }
+
+        private static int compare(double left, double right) {
+            if (Double.isNaN(left)) {
+                return Double.isNaN(right) ? 0 : -1;
+            } else if (Double.isNaN(right)) {
+                return 1;
+            }
+            return left < right ? -1 : (left > right ? 1 : 0);
+        }
+    }
+
+    private static final class Logical extends Node {
+        private final boolean m_and;
+        private final Node m_left;
+        private final Node m_right;
+
+        private Logical(boolean and, Node left, Node right) {
+            m_and = and;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        boolean[] tests(double[][] columns, int numRows) {
+            // Both sides are evaluated for every row, which is fine since they can't fail
+            final boolean[] left = m_left.tests(columns, numRows);
+            final boolean[] right = m_right.tests(columns, numRows);
+            for (int i = 0; i < numRows; i++) {
+                left[i] = m_and ? left[i] && right[i] : left[i] || right[i];
+            }
+            return left;
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node m_operand;
+
+        private Not(Node operand) {
+            m_operand = operand;
+        }
+
+        @Override
+        boolean[] tests(double[][] columns, int numRows) {
+            final boolean[] tests = m_operand.tests(columns, numRows);
+            for (int i = 0; i < numRows; i++) {
+                tests[i] = !tests[i];
+            }
+            return tests;
+        }
+    }
+
+    private static final class Ternary extends Node {
+        private final Node m_condition;
+        private final Node m_whenTrue;
+        private final Node m_whenFalse;
+
+        private Ternary(Node condition, Node whenTrue, Node whenFalse) {
+            m_condition = condition;
+            m_whenTrue = whenTrue;
+            m_whenFalse = whenFalse;
+        }
+
+        @Override
+        double[] values(double[][] columns, int numRows) {
+            final boolean[] condition = m_condition.tests(columns, numRows);
+            final double[] whenTrue = m_whenTrue.values(columns, numRows);
+            final double[] whenFalse = m_whenFalse.values(columns, numRows);
+            final double[] values = m_whenTrue.isTemporary() ? whenTrue : m_whenFalse.isTemporary() ? whenFalse : new double[numRows];
+            for (int i = 0; i < numRows; i++) {
+                values[i] = condition[i] ? whenTrue[i] : whenFalse[i];
+            }
+            return values;
+        }
+    }
+
+    private static final class UnaryFunction extends Node {
+        private final DoubleUnaryOperator m_function;
+        private final Node m_argument;
+
+        private UnaryFunction(DoubleUnaryOperator function, Node argument) {
+            m_function = function;
+            m_argument = argument;
+        }
+
+        @Override
+        double[] values(double[][] columns, int numRows) {
+            final double[] argument = m_argument.values(columns, numRows);
+            final double[] values = m_argument.isTemporary() ? argument : new double[numRows];
+            for (int i = 0; i < numRows; i++) {
+                values[i] = m_function.applyAsDouble(argument[i]);
+            }
+            return values;
+        }
+    }
+
+    private static final class BinaryFunction extends Node {
+        private final DoubleBinaryOperator m_function;
+        private final Node m_left;
+        private final Node m_right;
+
+        private BinaryFunction(DoubleBinaryOperator function, Node left, Node right) {
+            m_function = function;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        double[] values(double[][] columns, int numRows) {
+            final double[] left = m_left.values(columns, numRows);
+            final double[] right = m_right.values(columns, numRows);
+            final double[] values = m_left.isTemporary() ? left : m_right.isTemporary() ? right : new double[numRows];
+            for (int i = 0; i < numRows; i++) {
+                values[i] = m_function.applyAsDouble(left[i], right[i]);
+            }
+            return values;
+        }
+    }
+}
@@ -1,11 +1,21 @@
 package org.opennms.netmgt.measurements.impl;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
 
+import org.apache.commons.jexl2.ExpressionImpl;
 import org.apache.commons.jexl2.JexlContext;
 import org.apache.commons.jexl2.JexlEngine;
 import org.apache.commons.jexl2.JexlException;
@@ -23,6 +33,13 @@ import org.slf4j.LoggerFactory;
 /**
  * An expression engine implemented using JEXL.
  *
+ * Expressions are evaluated one column at a time: the ones that
+ * {@link ColumnExpression} can compile over whole columns of values, the
+ * others with JEXL, row by row, against a context that reads the columns in
+ * place. Expressions that don't depend on each other are evaluated in
+ * parallel for large queries. The results are the same as the ones of
+ * evaluating every expression for every row in turn.
+ *
  * @author jwhite
  */
 @Component("expressionEngine")
@@ -30,12 +47,37 @@ public class JEXLExpressionEngine implements ExpressionEngine {
 
     private static final Logger LOG = LoggerFactory.getLogger(JEXLExpressionEngine.class);
 
+    /**
+     * Queries with fewer values to compute are evaluated on the calling thread.
+     */
+    private static final int PARALLEL_THRESHOLD = 100000;
+
+    /**
+     * Matches an assignment, as opposed to ==, !=, &lt;=, &gt;= and =~.
+     */
+    private static final Pattern ASSIGNMENT = Pattern.compile("(?<![=!<>])=(?![=~])");
+
     /**
      * Use a single instance of the JEXL engine, which is thread-safe.
      */
     private final JexlEngine jexl = new JexlEngine();
 
+    private final ForkJoinPool m_pool;
+
+    private final int m_parallelThreshold;
+
     public JEXLExpressionEngine() {
+        this(ForkJoinPool.commonPool(), PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param pool the pool used to evaluate independent expressions in parallel
+     * @param parallelThreshold the number of values to compute above which the pool is used
+     */
+    JEXLExpressionEngine(ForkJoinPool pool, int parallelThreshold) {
+        m_pool = pool;
+        m_parallelThreshold = parallelThreshold;
+
         // Add additional functions to the engine
         Map<String, Object> functions = Maps.newHashMap();
         functions.put("math", Math.class);
@@ -51,6 +93,325 @@ public class JEXLExpressionEngine implements ExpressionEngine {
         Preconditions.checkNotNull(request, "request argument");
         Preconditions.checkNotNull(results, "results argument");
 
+        final List<Expression> expressions = request.getExpressions();
+        final int numExpressions = expressions.size();
+
+        // Don't do anything if there are no expressions
+        if (numExpressions < 1) {
+            return;
+        }
+
+        // Compile the expressions
+        final org.apache.commons.jexl2.Expression[] jexlExpressions = new org.apache.commons.jexl2.Expression[numExpressions];
+        for (int j = 0; j < numExpressions; j++) {
+            final Expression e = expressions.get(j);
+            try {
+                jexlExpressions[j] = jexl.createExpression(e.getExpression());
+            } catch (JexlException ex) {
+                throw new ExpressionException(ex, "Failed to parse expression label '{}'.", e.getLabel());
+            }
+        }
+
+        if (!canEvaluateByColumn(expressions, jexlExpressions, results)) {
+            applyExpressionsByRow(request, results);
+            return;
+        }
+
+        new ColumnEvaluation(expressions, jexlExpressions, results).evaluate();
+    }
+
+    /**
+     * Checks that no value is carried from one row to the next when the
+     * expressions are evaluated row by row, since they aren't when they are
+     * evaluated column by column.
+     */
+    private static boolean canEvaluateByColumn(final List<Expression> expressions, final org.apache.commons.jexl2.Expression[] jexlExpressions, final FetchResults results) {
+        final Map<String, double[]> columns = results.getColumns();
+        final int numRows = results.getTimestamps().length;
+        for (final double[] column : columns.values()) {
+            if (column == null || column.length < numRows) {
+                return false;
+            }
+        }
+
+        final Map<String, Integer> indexes = Maps.newHashMap();
+        for (int j = 0; j < expressions.size(); j++) {
+            final Expression e = expressions.get(j);
+            // Only the last one of the expressions with the same label is evaluated row by row
+            if (indexes.put(e.getLabel(), j) != null) {
+                LOG.debug("Evaluating the expressions row by row: the label '{}' is used more than once.", e.getLabel());
+                return false;
+            }
+            // Assigned variables keep their value in the following rows
+            if (ASSIGNMENT.matcher(e.getExpression()).find()) {
+                LOG.debug("Evaluating the expressions row by row: expression with label '{}' may contain an assignment.", e.getLabel());
+                return false;
+            }
+        }
+
+        // Reading the value of the same expression, or of one of the following
+        // expressions, gives its value in the previous row
+        for (int j = 0; j < jexlExpressions.length; j++) {
+            for (final List<String> variable : ((ExpressionImpl)jexlExpressions[j]).getVariables()) { // Requires JEXL 2.1.x
+                final List<String> names = new ArrayList<String>(variable);
+                names.add(Joiner.on('.').join(variable));
+                for (final String name : names) {
+                    final Integer index = indexes.get(name);
+                    if (index != null && index >= j && !columns.containsKey(name) && !"timestamp".equals(name)) {
+                        LOG.debug("Evaluating the expressions row by row: expression with label '{}' references '{}'.", expressions.get(j).getLabel(), name);
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The evaluation of the expressions of one query. The sources, the
+     * results of the expressions and the timestamps are all columns of a
+     * single array, so that the expressions can refer to them by index.
+     */
+    private final class ColumnEvaluation {
+        private final List<Expression> m_expressions;
+        private final org.apache.commons.jexl2.Expression[] m_jexlExpressions;
+        private final FetchResults m_results;
+        private final long[] m_timestamps;
+        private final int m_numRows;
+        private final int m_numSources;
+        private final int m_timestampColumn;
+        private final double[][] m_columns;
+        private final Map<String, Integer> m_sourceIndexes = Maps.newHashMap();
+        private final Map<String, Integer> m_expressionIndexes = Maps.newHashMap();
+        private final Map<String, Object> m_constants;
+        private final JexlContext m_constantContext;
+
+        /** The first row for which each expression failed, or -1. */
+        private final int[] m_failedRows;
+        private final Exception[] m_failures;
+
+        private ColumnEvaluation(final List<Expression> expressions, final org.apache.commons.jexl2.Expression[] jexlExpressions, final FetchResults results) {
+            m_expressions = expressions;
+            m_jexlExpressions = jexlExpressions;
+            m_results = results;
+            m_timestamps = results.getTimestamps();
+            m_numRows = m_timestamps.length;
+
+            final Map<String, double[]> sources = results.getColumns();
+            m_numSources = sources.size();
+            m_timestampColumn = m_numSources + expressions.size();
+            m_columns = new double[m_timestampColumn + 1][];
+            int i = 0;
+            for (final Map.Entry<String, double[]> source : sources.entrySet()) {
+                m_sourceIndexes.put(source.getKey(), i);
+                m_columns[i++] = source.getValue();
+            }
+            for (int j = 0; j < expressions.size(); j++) {
+                m_expressionIndexes.put(expressions.get(j).getLabel(), j);
+            }
+
+            // Add constants (i.e. values from strings.properties) retrieved by the fetch operation
+            m_constants = Maps.newHashMap(results.getConstants());
+            LOG.debug("JEXL context constants: {}", m_constants);
+
+            // Add some additional constants for ease of use
+            m_constants.put("__inf", Double.POSITIVE_INFINITY);
+            m_constants.put("__neg_inf", Double.NEGATIVE_INFINITY);
+            m_constants.put("NaN", Double.NaN);
+            m_constantContext = new MapContext(m_constants);
+
+            m_failedRows = new int[expressions.size()];
+            m_failures = new Exception[expressions.size()];
+        }
+
+        private void evaluate() throws ExpressionException {
+            final int numExpressions = m_expressions.size();
+            final Runnable[] tasks = new Runnable[numExpressions];
+            final BitSet[] dependencies = new BitSet[numExpressions];
+            boolean usesTimestamps = false;
+
+            for (int j = 0; j < numExpressions; j++) {
+                final int index = j;
+                m_failedRows[j] = -1;
+                final ColumnExpression compiled = ColumnExpression.compile(jexl, m_expressions.get(j).getExpression(), new Scope(j));
+                if (compiled != null) {
+                    final BitSet columns = compiled.getColumns();
+                    usesTimestamps |= columns.get(m_timestampColumn);
+                    dependencies[j] = columns.get(m_numSources, m_timestampColumn);
+                    tasks[j] = () -> m_columns[m_numSources + index] = compiled.evaluate(m_columns, m_numRows);
+                } else {
+                    // We can't tell which of the previous expressions it uses
+                    dependencies[j] = new BitSet();
+                    dependencies[j].set(0, j);
+                    tasks[j] = () -> evaluateByRow(index);
+                }
+            }
+
+            if (usesTimestamps) {
+                final double[] timestamps = new double[m_numRows];
+                for (int i = 0; i < m_numRows; i++) {
+                    timestamps[i] = m_timestamps[i];
+                }
+                m_columns[m_timestampColumn] = timestamps;
+            }
+
+            if (numExpressions > 1 && (long)m_numRows * numExpressions >= m_parallelThreshold && m_pool.getParallelism() > 1) {
+                final CompletableFuture<?>[] futures = new CompletableFuture<?>[numExpressions];
+                for (int j = 0; j < numExpressions; j++) {
+                    final List<CompletableFuture<?>> previous = new ArrayList<CompletableFuture<?>>();
+                    for (int m = dependencies[j].nextSetBit(0); m >= 0; m = dependencies[j].nextSetBit(m + 1)) {
+                        previous.add(futures[m]);
+                    }
+                    futures[j] = previous.isEmpty() ? CompletableFuture.runAsync(tasks[j], m_pool)
+                            : CompletableFuture.allOf(previous.toArray(new CompletableFuture<?>[previous.size()])).thenRunAsync(tasks[j], m_pool);
+                }
+                try {
+                    CompletableFuture.allOf(futures).join();
+                } catch (CompletionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+            } else {
+                for (final Runnable task : tasks) {
+                    task.run();
+                }
+            }
+
+            // Report the failure that came first when evaluating row by row
+            int failed = -1;
+            for (int j = 0; j < numExpressions; j++) {
+                if (m_failedRows[j] >= 0 && (failed < 0 || m_failedRows[j] < m_failedRows[failed])) {
+                    failed = j;
+                }
+            }
+            if (failed >= 0) {
+                Throwables.propagateIfPossible(m_failures[failed], ExpressionException.class);
+                throw Throwables.propagate(m_failures[failed]);
+            }
+
+            // Store the results
+            final Map<String, double[]> columns = m_results.getColumns();
+            for (int j = 0; j < numExpressions; j++) {
+                if (!m_expressions.get(j).getTransient()) {
+                    columns.put(m_expressions.get(j).getLabel(), m_columns[m_numSources + j]);
+                }
+            }
+        }
+
+        private void evaluateByRow(final int index) {
+            final String label = m_expressions.get(index).getLabel();
+            final org.apache.commons.jexl2.Expression expression = m_jexlExpressions[index];
+            final RowContext context = new RowContext(index);
+            final double[] values = new double[m_numRows];
+
+            for (int i = 0; i < m_numRows; i++) {
+                context.m_row = i;
+                try {
+                    values[i] = Utils.toDouble(expression.evaluate(context));
+                } catch (NullPointerException|NumberFormatException e) {
+                    m_failures[index] = new ExpressionException(e, "The return value from expression with label '" +
+                            label + "' could not be cast to a Double.");
+                } catch (JexlException e) {
+                    m_failures[index] = new ExpressionException(e, "Failed to evaluate expression with label '" +
+                            label + "'.");
+                } catch (RuntimeException e) {
+                    m_failures[index] = e;
+                }
+                if (m_failures[index] != null) {
+                    m_failedRows[index] = i;
+                    break;
+                }
+            }
+            m_columns[m_numSources + index] = values;
+        }
+
+        /**
+         * Resolves the variables of an expression to what the context of
+         * the row by row evaluation holds when it is evaluated: the sources
+         * first, then the timestamp, the results of the previous expressions
+         * and finally the constants.
+         */
+        private final class Scope implements ColumnExpression.Scope {
+            private final int m_index;
+
+            private Scope(int index) {
+                m_index = index;
+            }
+
+            @Override
+            public ColumnExpression.Binding resolve(String name) {
+                final Integer source = m_sourceIndexes.get(name);
+                if (source != null) {
+                    return ColumnExpression.Binding.doubles(source);
+                } else if ("timestamp".equals(name)) {
+                    return ColumnExpression.Binding.longs(m_timestampColumn);
+                }
+                final Integer expression = m_expressionIndexes.get(name);
+                if (expression != null && expression < m_index) {
+                    return ColumnExpression.Binding.doubles(m_numSources + expression);
+                } else if (m_constants.containsKey(name)) {
+                    return ColumnExpression.Binding.constant(m_constants.get(name));
+                }
+                return null;
+            }
+
+            @Override
+            public JexlContext getConstants() {
+                return m_constantContext;
+            }
+        }
+
+        /**
+         * A context that reads the values of the current row from the columns.
+         */
+        private final class RowContext implements JexlContext {
+            private final int m_index;
+            private final Map<String, Object> m_assigned = Maps.newHashMap();
+            private int m_row;
+
+            private RowContext(int index) {
+                m_index = index;
+            }
+
+            @Override
+            public Object get(String name) {
+                if (m_assigned.containsKey(name)) {
+                    return m_assigned.get(name);
+                }
+                final Integer source = m_sourceIndexes.get(name);
+                if (source != null) {
+                    return m_columns[source][m_row];
+                } else if ("timestamp".equals(name)) {
+                    return m_timestamps[m_row];
+                }
+                final Integer expression = m_expressionIndexes.get(name);
+                if (expression != null && expression < m_index) {
+                    return m_columns[m_numSources + expression][m_row];
+                }
+                return m_constants.get(name);
+            }
+
+            @Override
+            public void set(String name, Object value) {
+                m_assigned.put(name, value);
+            }
+
+            @Override
+            public boolean has(String name) {
+                if (m_assigned.containsKey(name) || m_sourceIndexes.containsKey(name) || "timestamp".equals(name)) {
+                    return true;
+                }
+                final Integer expression = m_expressionIndexes.get(name);
+                return (expression != null && expression < m_index) || m_constants.containsKey(name);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the expressions one row at a time, which is what
+     * {@link #applyExpressions(QueryRequest, FetchResults)} falls back to
+     * for expressions that carry state from one row to the next.
+     */
+    void applyExpressionsByRow(final QueryRequest request, final FetchResults results) throws ExpressionException {
         final int numExpressions = request.getExpressions().size();
 
         // Don't do anything if there are no expressions
@@ -29,9 +29,15 @@
 package org.opennms.netmgt.measurements.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
+import org.junit.Ignore;
 import org.junit.Test;
 import org.opennms.netmgt.measurements.api.ExpressionEngine;
 import org.opennms.netmgt.measurements.api.exceptions.ExpressionException;
@@ -48,6 +54,13 @@ public class JEXLExpressionEngineTest {
     private static final double DELTA = 0.0001;
     private final ExpressionEngine jexlExpressionEngine = new JEXLExpressionEngine();
 
+    private static final String[] LITERALS = { "0", "1", "2", "7", "0.1", "1.5", "2.5d", "10L", "1e3", "__inf", "__neg_inf", "NaN" };
+    private static final String[] OPERATORS = { "+", "-", "*", "/", "%", "div", "mod" };
+    private static final String[] COMPARISONS = { "==", "!=", "<", "<=", ">", ">=", "eq", "ne", "lt", "ge" };
+    private static final String[] UNARY_FUNCTIONS = { "math:sin", "math:abs", "math:sqrt", "math:log", "math:floor", "math:round", "strictmath:exp" };
+    private static final String[] BINARY_FUNCTIONS = { "math:max", "math:min", "math:pow", "strictmath:atan2" };
+    private static final double[] INTERESTING = { 0.0, -0.0, 1.0, -1.0, 2.0, 0.5, 1e20, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
     @Test(expected=ExpressionException.class)
     public void failsWhenExpressionHasInvalidSyntax() throws ExpressionException {
         performExpression("/");
@@ -377,6 +390,203 @@ public class JEXLExpressionEngineTest {
         assertEquals(104.607560713, results[0], 0.0001);
     }
 
+    @Test
+    public void canReferenceOtherExpressions() throws ExpressionException {
+        final QueryRequest request = new QueryRequest();
+        request.setExpressions(Lists.newArrayList(expression("a", "x * 2", true), expression("b", "a + x", false), expression("c", "b / a", false)));
+        final FetchResults results = fetchResults(10, 1000, Maps.<String, Object>newHashMap());
+        jexlExpressionEngine.applyExpressions(request, results);
+
+        assertNull(results.getColumns().get("a"));
+        assertEquals(9.0, results.getColumns().get("b")[3], 0.0);
+        assertEquals(1.5, results.getColumns().get("c")[3], 0.0);
+    }
+
+    /**
+     * Compares the results of random queries with the ones of evaluating
+     * every expression row by row, with and without the thread pool.
+     */
+    @Test
+    public void testMatchesRowByRowEvaluation() {
+        final Random random = new Random(0);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        final JEXLExpressionEngine sequential = new JEXLExpressionEngine();
+        final JEXLExpressionEngine parallel = new JEXLExpressionEngine(pool, 1);
+
+        try {
+            for (int k = 0; k < 1000; k++) {
+                final int numExpressions = 1 + random.nextInt(5);
+                final List<String> names = Lists.newArrayList("x", "y", "z", "timestamp", "speed", "ratio", "big", "limit");
+                final List<Expression> expressions = Lists.newArrayList();
+                for (int j = 0; j < numExpressions; j++) {
+                    // Refer to the following expressions once in a while
+                    final List<String> scope = Lists.newArrayList(names);
+                    if (random.nextInt(10) == 0) {
+                        scope.add("e" + (j + random.nextInt(2)));
+                    }
+                    expressions.add(expression("e" + j, randomValue(random, 3, scope), random.nextInt(4) == 0));
+                    names.add("e" + j);
+                }
+                final QueryRequest request = new QueryRequest();
+                request.setExpressions(expressions);
+                final long seed = random.nextLong();
+
+                final String expected = evaluate(request, seed, null);
+                assertEquals(request.getExpressions().toString(), expected, evaluate(request, seed, sequential));
+                assertEquals(request.getExpressions().toString(), expected, evaluate(request, seed, parallel));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Evaluates the expressions of typical graphs over 50 series of 10000
+     * values, row by row and column by column.
+     */
+    @Test
+    @Ignore
+    public void evaluationPerfTest() throws Exception {
+        final int numSeries = 50;
+        final int numRows = 10000;
+        final JEXLExpressionEngine engine = new JEXLExpressionEngine();
+
+        final QueryRequest request = new QueryRequest();
+        final List<Expression> expressions = Lists.newArrayList();
+        final StringBuilder total = new StringBuilder("0");
+        for (int j = 0; j < numSeries; j++) {
+            expressions.add(expression("bits" + j, "s" + j + " * 8", true));
+            expressions.add(expression("percent" + j, "speed > 0 ? bits" + j + " / speed * 100.0 : NaN", false));
+            total.append(" + bits").append(j);
+        }
+        expressions.add(expression("total", total.toString(), false));
+        request.setExpressions(expressions);
+
+        final Map<String, Object> constants = Maps.newHashMap();
+        constants.put("speed", 1000000000);
+        final Random random = new Random(0);
+        final long[] timestamps = new long[numRows];
+        final Map<String, double[]> values = Maps.newLinkedHashMap();
+        for (int j = 0; j < numSeries; j++) {
+            final double[] series = new double[numRows];
+            for (int i = 0; i < numRows; i++) {
+                series[i] = random.nextDouble() * 100000000;
+            }
+            values.put("s" + j, series);
+        }
+        for (int i = 0; i < numRows; i++) {
+            timestamps[i] = i * 300000L;
+        }
+
+        for (int k = 0; k < 5; k++) {
+            long start = System.currentTimeMillis();
+            engine.applyExpressionsByRow(request, new FetchResults(timestamps, Maps.newLinkedHashMap(values), 300000, constants));
+            long elapsed = System.currentTimeMillis() - start;
+            System.err.println("row by row: " + elapsed + "ms");
+
+            start = System.currentTimeMillis();
+            engine.applyExpressions(request, new FetchResults(timestamps, Maps.newLinkedHashMap(values), 300000, constants));
+            elapsed = System.currentTimeMillis() - start;
+            System.err.println("column by column: " + elapsed + "ms");
+        }
+    }
+
+    /**
+     * Evaluates the request over random values, and returns the results, or
+     * the error, as a string. Uses {@link JEXLExpressionEngine#applyExpressionsByRow(QueryRequest, FetchResults)}
+     * when no engine is given.
+     */
+    private static String evaluate(QueryRequest request, long seed, JEXLExpressionEngine engine) {
+        final Random random = new Random(seed);
+        final Map<String, Object> constants = Maps.newHashMap();
+        constants.put("speed", 65);
+        constants.put("ratio", 0.25);
+        constants.put("big", 10000000000L);
+        constants.put("limit", "100");
+        final int numRows = 50;
+        final long[] timestamps = new long[numRows];
+        final Map<String, double[]> values = Maps.newLinkedHashMap();
+        for (String source : new String[] { "x", "y", "z" }) {
+            final double[] column = new double[numRows];
+            for (int i = 0; i < numRows; i++) {
+                column[i] = random.nextBoolean() ? INTERESTING[random.nextInt(INTERESTING.length)] : (random.nextInt(2001) - 1000) / 8.0;
+            }
+            values.put(source, column);
+        }
+        for (int i = 0; i < numRows; i++) {
+            timestamps[i] = 1460000000000L + i * 300000L;
+        }
+
+        final FetchResults results = new FetchResults(timestamps, values, 300000, constants);
+        try {
+            if (engine == null) {
+                new JEXLExpressionEngine().applyExpressionsByRow(request, results);
+            } else {
+                engine.applyExpressions(request, results);
+            }
+        } catch (Exception e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, double[]> column : results.getColumns().entrySet()) {
+            sb.append(column.getKey()).append('=').append(Arrays.toString(column.getValue())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String randomValue(Random random, int depth, List<String> names) {
+        switch (random.nextInt(depth > 0 ? 8 : 2)) {
+        case 0:
+            return names.get(random.nextInt(names.size()));
+        case 1:
+            return LITERALS[random.nextInt(LITERALS.length)];
+        case 2:
+        case 3:
+            return "(" + randomValue(random, depth - 1, names) + " " + OPERATORS[random.nextInt(OPERATORS.length)] + " " + randomValue(random, depth - 1, names) + ")";
+        case 4:
+            return "-" + randomValue(random, depth - 1, names);
+        case 5:
+            return "(" + randomTest(random, depth - 1, names) + " ? " + randomValue(random, depth - 1, names) + " : " + randomValue(random, depth - 1, names) + ")";
+        case 6:
+            return UNARY_FUNCTIONS[random.nextInt(UNARY_FUNCTIONS.length)] + "(" + randomValue(random, depth - 1, names) + ")";
+        default:
+            return BINARY_FUNCTIONS[random.nextInt(BINARY_FUNCTIONS.length)] + "(" + randomValue(random, depth - 1, names) + ", " + randomValue(random, depth - 1, names) + ")";
+        }
+    }
+
+    private static String randomTest(Random random, int depth, List<String> names) {
+        switch (random.nextInt(depth > 0 ? 4 : 1)) {
+        case 0:
+        case 1:
+            return randomValue(random, depth - 1, names) + " " + COMPARISONS[random.nextInt(COMPARISONS.length)] + " " + randomValue(random, depth - 1, names);
+        case 2:
+            return "(" + randomTest(random, depth - 1, names) + (random.nextBoolean() ? " && " : " or ") + randomTest(random, depth - 1, names) + ")";
+        default:
+            return "!(" + randomTest(random, depth - 1, names) + ")";
+        }
+    }
+
+    private static Expression expression(String label, String expression, boolean isTransient) {
+        final Expression exp = new Expression();
+        exp.setLabel(label);
+        exp.setExpression(expression);
+        exp.setTransient(isTransient);
+        return exp;
+    }
+
+    private static FetchResults fetchResults(int numRows, long step, Map<String, Object> constants) {
+        long timestamps[] = new long[numRows];
+        double xValues[] = new double[numRows];
+        for (int i = 0; i < numRows; i++) {
+            timestamps[i] = i * step;
+            xValues[i] = Double.valueOf(i);
+        }
+        Map<String, double[]> values = Maps.newHashMap();
+        values.put("x", xValues);
+        return new FetchResults(timestamps, values, step, constants);
+    }
+
     private double[] performExpression(String expression) throws ExpressionException {
         Map<String, Object> constants = Maps.newHashMap();
         return performExpression(expression, constants);
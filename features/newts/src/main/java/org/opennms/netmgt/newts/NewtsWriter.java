@@ -28,11 +28,21 @@
 
 package org.opennms.netmgt.newts;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
@@ -46,13 +56,15 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.math.DoubleMath;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.lmax.disruptor.EventHandler;
-import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.EventTranslatorTwoArg;
 import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.dsl.Disruptor;
 
@@ -62,38 +74,155 @@ import com.lmax.disruptor.dsl.Disruptor;
  * Calls to {@link #insert()} publish the samples to a ring buffer so
  * that they don't block while the data is being persisted.
  *
+ * The samples are inserted by <code>writer_threads</code> consumers (one by
+ * default). Every batch is handled by the consumer picked by the hash of its
+ * resource id, so the samples of a resource are always inserted in order.
+ *
+ * The consumers share the ring buffer, so they never wait between retries:
+ * a batch that fails to insert is handed to the retry thread of its consumer,
+ * together with the following batches of that consumer, which keeps them in
+ * order without holding up the other consumers.
+ *
+ * When the ring buffer is full, the {@link OverflowPolicy} decides what
+ * happens to the samples. Samples that can't be inserted after
+ * <code>max_insert_retries</code> retries are lost, unless the policy is
+ * {@link OverflowPolicy#SPILL}, in which case they are written to a
+ * {@link SampleSpillLog} and inserted again once Cassandra is reachable.
+ *
  * @author jwhite
  */
-public class NewtsWriter implements EventHandler<SampleBatchEvent> {
+public class NewtsWriter {
 
     private static final Logger LOG = LoggerFactory.getLogger(NewtsWriter.class);
 
+    /**
+     * What to do with the samples passed to {@link NewtsWriter#insert(List)}
+     * when the ring buffer is full.
+     */
+    public static enum OverflowPolicy {
+        /**
+         * Wait until there is room on the ring buffer, or until the
+         * overflow timeout expires, in which case the samples are dropped.
+         */
+        BLOCK,
+        /**
+         * Drop the samples right away.
+         */
+        DROP,
+        /**
+         * Append the samples to the spill log, from which they are
+         * inserted once the consumers catch up.
+         */
+        SPILL
+    }
+
+    private static final long PUBLISH_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final long RETRY_DELAY_MS = 250;
+
+    private static final long MAX_RETRY_DELAY_MS = 5000;
+
+    private static final long SPILL_REPLAY_INTERVAL_MS = 30000;
+
+    private static final long SHUTDOWN_TIMEOUT_MS = 10000;
+
     @Autowired
     private SampleRepository m_sampleRepository;
 
+    private Disruptor<SampleBatchEvent> m_disruptor;
+
+    private ShardHandler[] m_handlers;
+
     private RingBuffer<SampleBatchEvent> m_ringBuffer;
 
     private final int m_maxBatchSize;
 
     private final int m_ringBufferSize;
 
+    private final int m_writerThreads;
+
+    private final OverflowPolicy m_overflowPolicy;
+
+    private final long m_overflowTimeout;
+
+    private final int m_maxInsertRetries;
+
+    private final SampleSpillLog m_spillLog;
+
+    private ScheduledExecutorService m_replayExecutor;
+
     /**
      * The {@link RingBuffer} doesn't appear to expose any methods that indicate the number
      * of elements that are currently "queued", so we keep track of them with this atomic counter.
      */
     private final AtomicLong m_numSamplesOnRingBuffer = new AtomicLong();
 
+    /**
+     * Set while the ring buffer is full, so that we only warn once per overflow.
+     */
+    private final AtomicBoolean m_overflowing = new AtomicBoolean(false);
+
+    /**
+     * Set when the last insert failed, cleared when an insert succeeds.
+     * The spilled samples are only replayed while it is cleared.
+     */
+    private volatile boolean m_insertFailing = false;
+
+    private final Timer m_insertTimer;
+
+    private final Meter m_insertRetries;
+
+    private final Meter m_samplesDropped;
+
+    private final Meter m_samplesLost;
+
+    private final Meter m_samplesSpilled;
+
+    private final Meter m_samplesReplayed;
+
+    public NewtsWriter(Integer maxBatchSize, Integer ringBufferSize, MetricRegistry registry) {
+        this(maxBatchSize, ringBufferSize, 1, OverflowPolicy.BLOCK.name(), 0L, 0, "", registry);
+    }
+
     @Inject
-    public NewtsWriter(@Named("newts.max_batch_size") Integer maxBatchSize, @Named("newts.ring_buffer_size") Integer ringBufferSize, MetricRegistry registry) {
+    public NewtsWriter(@Named("newts.max_batch_size") Integer maxBatchSize, @Named("newts.ring_buffer_size") Integer ringBufferSize,
+            @Named("newts.writer_threads") Integer writerThreads, @Named("newts.overflow_policy") String overflowPolicy,
+            @Named("newts.overflow_timeout") Long overflowTimeout, @Named("newts.max_insert_retries") Integer maxInsertRetries,
+            @Named("newts.spill_directory") String spillDirectory, MetricRegistry registry) {
         Preconditions.checkArgument(maxBatchSize > 0, "max_batch_size must be strictly positive");
         Preconditions.checkArgument(ringBufferSize >= 0, "ringBufferSize must be positive");
         Preconditions.checkArgument(DoubleMath.isMathematicalInteger(Math.log(ringBufferSize) / Math.log(2)), "ringBufferSize must be a power of two");
+        Preconditions.checkArgument(writerThreads > 0, "writer_threads must be strictly positive");
+        Preconditions.checkArgument(overflowTimeout >= 0, "overflow_timeout must be positive");
+        Preconditions.checkArgument(maxInsertRetries >= 0, "max_insert_retries must be positive");
+        Preconditions.checkNotNull(overflowPolicy, "overflow policy");
         Preconditions.checkNotNull(registry, "metric registry");
 
         m_maxBatchSize = maxBatchSize;
         m_ringBufferSize = ringBufferSize;
+        m_writerThreads = writerThreads;
+        try {
+            m_overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("overflow_policy must be one of BLOCK, DROP or SPILL, not " + overflowPolicy, e);
+        }
+        m_overflowTimeout = overflowTimeout;
+        m_maxInsertRetries = maxInsertRetries;
         m_numSamplesOnRingBuffer.set(0L);
 
+        if (m_overflowPolicy == OverflowPolicy.SPILL) {
+            final File directory = spillDirectory == null || spillDirectory.trim().isEmpty()
+                    ? new File(System.getProperty("opennms.home", "."), "share" + File.separator + "newts-spill")
+                    : new File(spillDirectory.trim());
+            try {
+                m_spillLog = new SampleSpillLog(directory);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to use " + directory + " to spill samples", e);
+            }
+        } else {
+            m_spillLog = null;
+        }
+
         registry.register(MetricRegistry.name("ring-buffer", "size"),
                 new Gauge<Long>() {
                     @Override
@@ -108,9 +237,24 @@ public class NewtsWriter implements EventHandler<SampleBatchEvent> {
                         return Long.valueOf(m_ringBufferSize);
                     }
                 });
+        registry.register(MetricRegistry.name("spill", "size"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return m_spillLog == null ? 0L : m_spillLog.getSize();
+                    }
+                });
+        m_insertTimer = registry.timer(MetricRegistry.name("insert", "latency"));
+        m_insertRetries = registry.meter(MetricRegistry.name("insert", "retries"));
+        m_samplesDropped = registry.meter(MetricRegistry.name("samples", "dropped"));
+        m_samplesLost = registry.meter(MetricRegistry.name("samples", "lost"));
+        m_samplesSpilled = registry.meter(MetricRegistry.name("samples", "spilled"));
+        m_samplesReplayed = registry.meter(MetricRegistry.name("samples", "replayed"));
 
-        LOG.debug("Using max_batch_size: {} and ring_buffer_size: {}", maxBatchSize, m_ringBufferSize);
+        LOG.debug("Using max_batch_size: {}, ring_buffer_size: {}, writer_threads: {}, overflow_policy: {} and max_insert_retries: {}",
+                maxBatchSize, m_ringBufferSize, m_writerThreads, m_overflowPolicy, m_maxInsertRetries);
         setUpDisruptor();
+        setUpReplay();
     }
 
     @SuppressWarnings("unchecked")
@@ -121,57 +265,354 @@ public class NewtsWriter implements EventHandler<SampleBatchEvent> {
         Executor executor = Executors.newCachedThreadPool(namedThreadFactory);
 
         // Construct the Disruptor
-        Disruptor<SampleBatchEvent> disruptor = new Disruptor<>(SampleBatchEvent::new, m_ringBufferSize, executor);
+        m_disruptor = new Disruptor<>(SampleBatchEvent::new, m_ringBufferSize, executor);
 
-        // Connect the handler
-        disruptor.handleEventsWith(this);
+        // Connect the handlers, one per shard
+        m_handlers = new ShardHandler[m_writerThreads];
+        for (int i = 0; i < m_writerThreads; i++) {
+            m_handlers[i] = new ShardHandler(i);
+        }
+        m_disruptor.handleEventsWith(m_handlers);
 
         // Start the Disruptor, starts all threads running
-        disruptor.start();
+        m_disruptor.start();
 
         // Get the ring buffer from the Disruptor to be used for publishing.
-        m_ringBuffer = disruptor.getRingBuffer();
+        m_ringBuffer = m_disruptor.getRingBuffer();
+    }
+
+    private void setUpReplay() {
+        if (m_spillLog == null) {
+            return;
+        }
+        m_replayExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("NewtsWriter-Replay-%d").setDaemon(true).build());
+        m_replayExecutor.scheduleWithFixedDelay(this::replaySpilledSamples,
+                SPILL_REPLAY_INTERVAL_MS, SPILL_REPLAY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void setSampleRepository(SampleRepository sampleRepository) {
+        m_sampleRepository = sampleRepository;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return m_overflowPolicy;
     }
 
     public void insert(List<Sample> samples) {
-        // Add the samples to the ring buffer
-        m_ringBuffer.publishEvent(TRANSLATOR, samples);
-        // Increase our sample counter
+        if (samples.isEmpty()) {
+            return;
+        }
+
+        // Increase our sample counter before the consumers can decrease it
         m_numSamplesOnRingBuffer.addAndGet(samples.size());
+        // Add the samples to the ring buffer
+        if (publish(samples, getShard(samples))) {
+            if (m_overflowing.get()) {
+                m_overflowing.set(false);
+            }
+            return;
+        }
+        m_numSamplesOnRingBuffer.addAndGet(-samples.size());
+
+        if (m_overflowing.compareAndSet(false, true)) {
+            LOG.warn("The ring buffer is full. Samples will be {} until the writer catches up.",
+                    m_overflowPolicy == OverflowPolicy.SPILL ? "spilled to " + m_spillLog.getDirectory() : "dropped");
+        }
+        if (m_overflowPolicy == OverflowPolicy.SPILL) {
+            spill(samples);
+        } else {
+            LOG.debug("Dropping {} samples.", samples.size());
+            m_samplesDropped.mark(samples.size());
+        }
     }
 
-    @Override
-    public void onEvent(SampleBatchEvent event, long sequence, boolean endOfBatch) {
-        // We'd expect the logs from this thread to be in collectd.log
-        Logging.putPrefix("collectd");
+    private boolean publish(List<Sample> samples, int shard) {
+        if (m_overflowPolicy != OverflowPolicy.BLOCK) {
+            return m_ringBuffer.tryPublishEvent(TRANSLATOR, samples, shard);
+        }
+        if (m_overflowTimeout == 0) {
+            m_ringBuffer.publishEvent(TRANSLATOR, samples, shard);
+            return true;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_overflowTimeout);
+        while (!m_ringBuffer.tryPublishEvent(TRANSLATOR, samples, shard)) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(PUBLISH_RETRY_NANOS);
+        }
+        return true;
+    }
 
+    int getShard(List<Sample> samples) {
+        if (m_writerThreads == 1) {
+            return 0;
+        }
+        final int h = samples.get(0).getResource().getId().hashCode();
+        // Spread the bits, resource ids tend to differ only in their last characters
+        return Math.floorMod(h ^ (h >>> 16), m_writerThreads);
+    }
+
+    private void onEvent(ShardHandler shard, SampleBatchEvent event) {
         List<Sample> samples = event.getSamples();
+        event.setSamples(null);
         // Decrement our sample counter
         m_numSamplesOnRingBuffer.addAndGet(-samples.size());
 
         // Partition the samples into collections smaller then max_batch_size
         for (List<Sample> batch : Lists.partition(samples, m_maxBatchSize)) {
-            try {
-                LOG.debug("Inserting {} samples", batch.size());
+            if (shard.isRetrying()) {
+                // Queue up behind the batches being retried, to keep the order
+                shard.retry(batch, 0);
+            } else if (!tryInsert(batch, m_maxInsertRetries == 0)) {
+                if (m_maxInsertRetries == 0) {
+                    giveUp(batch);
+                } else {
+                    shard.retry(batch, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes one attempt at inserting the samples.
+     *
+     * @param lastAttempt whether the samples are given up on if it fails
+     * @return true if the samples were inserted
+     */
+    private boolean tryInsert(List<Sample> batch, boolean lastAttempt) {
+        final Timer.Context context = m_insertTimer.time();
+        try {
+            LOG.debug("Inserting {} samples", batch.size());
+            m_sampleRepository.insert(batch);
+
+            if (LOG.isDebugEnabled()) {
+                String uniqueResourceIds = batch.stream()
+                    .map(s -> s.getResource().getId())
+                    .distinct()
+                    .collect(Collectors.joining(", "));
+                LOG.debug("Successfully inserted samples for resources with ids {}", uniqueResourceIds);
+            }
+            m_insertFailing = false;
+            return true;
+        } catch (Throwable t) {
+            m_insertFailing = true;
+            if (!lastAttempt) {
+                LOG.warn("An error occurred while inserting the samples. Retrying.", t);
+            } else if (m_overflowPolicy == OverflowPolicy.SPILL) {
+                LOG.error("An error occurred while inserting the samples. They will be spilled to {} and inserted again later.", m_spillLog.getDirectory(), t);
+            } else {
+                LOG.error("An error occurred while inserting the samples. They will be lost.", t);
+            }
+            return false;
+        } finally {
+            context.stop();
+        }
+    }
+
+    /**
+     * Spills the samples that could not be inserted, or counts them as lost.
+     */
+    private void giveUp(List<Sample> batch) {
+        if (m_overflowPolicy == OverflowPolicy.SPILL) {
+            spill(batch);
+        } else {
+            m_samplesLost.mark(batch.size());
+        }
+    }
+
+    private void spill(List<Sample> samples) {
+        try {
+            m_spillLog.append(samples);
+            m_samplesSpilled.mark(samples.size());
+        } catch (Throwable t) {
+            LOG.error("Failed to spill {} samples to {}. They will be lost.", samples.size(), m_spillLog.getDirectory(), t);
+            m_samplesLost.mark(samples.size());
+        }
+    }
+
+    /**
+     * Inserts the samples from the spill log, unless the last insert failed.
+     * Runs every {@link #SPILL_REPLAY_INTERVAL_MS} milliseconds.
+     */
+    void replaySpilledSamples() {
+        // We'd expect the logs from this thread to be in collectd.log
+        Logging.putPrefix("collectd");
+
+        if (m_spillLog == null || m_sampleRepository == null || m_insertFailing || m_spillLog.isEmpty()) {
+            return;
+        }
+        try {
+            final long numReplayed = m_spillLog.replay(batch -> {
                 m_sampleRepository.insert(batch);
+                m_samplesReplayed.mark(batch.size());
+            }, m_maxBatchSize);
+            LOG.info("Inserted {} spilled samples.", numReplayed);
+        } catch (Throwable t) {
+            LOG.warn("An error occurred while inserting the spilled samples. They will be inserted again later.", t);
+        }
+    }
+
+    /**
+     * Waits for the samples on the ring buffer to be inserted and stops the consumers.
+     */
+    public void destroy() {
+        if (m_replayExecutor != null) {
+            m_replayExecutor.shutdownNow();
+        }
+        try {
+            m_disruptor.shutdown(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOG.warn("Timed out while waiting for the samples on the ring buffer to be inserted.");
+            m_disruptor.halt();
+        }
+        for (ShardHandler handler : m_handlers) {
+            handler.stopRetrying();
+        }
+        if (m_spillLog != null) {
+            try {
+                m_spillLog.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close the spill log.", e);
+            }
+        }
+    }
 
-                if (LOG.isDebugEnabled()) {
-                    String uniqueResourceIds = batch.stream()
-                        .map(s -> s.getResource().getId())
-                        .distinct()
-                        .collect(Collectors.joining(", "));
-                    LOG.debug("Successfully inserted samples for resources with ids {}", uniqueResourceIds);
+    /**
+     * Inserts the samples of the events assigned to its shard. Failed inserts
+     * are retried by a thread of its own, so that the consumers of the other
+     * shards can go on.
+     */
+    private class ShardHandler implements EventHandler<SampleBatchEvent> {
+        private final int m_shard;
+
+        /**
+         * The batches waiting to be retried, oldest first. Guarded by itself.
+         */
+        private final Deque<RetryBatch> m_retries = new ArrayDeque<>();
+
+        private final ExecutorService m_retryExecutor;
+
+        public ShardHandler(int shard) {
+            m_shard = shard;
+            m_retryExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("NewtsWriter-Retry-" + shard).setDaemon(true).build());
+        }
+
+        @Override
+        public void onEvent(SampleBatchEvent event, long sequence, boolean endOfBatch) {
+            if (event.getShard() != m_shard) {
+                return;
+            }
+            // We'd expect the logs from this thread to be in collectd.log
+            Logging.putPrefix("collectd");
+            NewtsWriter.this.onEvent(this, event);
+        }
+
+        private boolean isRetrying() {
+            synchronized (m_retries) {
+                return !m_retries.isEmpty();
+            }
+        }
+
+        /**
+         * Queues the samples for the retry thread. At most
+         * <code>ring_buffer_size</code> batches are queued, further samples
+         * are given up on right away.
+         *
+         * @param attempts the number of attempts already made
+         */
+        private void retry(List<Sample> batch, int attempts) {
+            synchronized (m_retries) {
+                if (m_retries.size() < m_ringBufferSize) {
+                    m_retries.addLast(new RetryBatch(batch, attempts));
+                    if (m_retries.size() == 1) {
+                        m_retryExecutor.execute(this::retryQueuedBatches);
+                    }
+                    return;
                 }
-            } catch (Throwable t) {
-                LOG.error("An error occurred while inserting the samples. They will be lost.", t);
             }
+            giveUp(batch);
+        }
+
+        /**
+         * Runs on the retry thread until all the queued batches were either
+         * inserted or given up on.
+         */
+        private void retryQueuedBatches() {
+            Logging.putPrefix("collectd");
+            while (true) {
+                final RetryBatch retry;
+                synchronized (m_retries) {
+                    retry = m_retries.peekFirst();
+                }
+                if (retry == null) {
+                    return;
+                }
+
+                boolean inserted = false;
+                while (!inserted && retry.m_attempts <= m_maxInsertRetries) {
+                    if (retry.m_attempts > 0) {
+                        m_insertRetries.mark();
+                        try {
+                            Thread.sleep(Math.min(RETRY_DELAY_MS << (retry.m_attempts - 1), MAX_RETRY_DELAY_MS));
+                        } catch (InterruptedException e) {
+                            // Stopping, the batches left are given up on by stopRetrying()
+                            return;
+                        }
+                    }
+                    inserted = tryInsert(retry.m_samples, retry.m_attempts == m_maxInsertRetries);
+                    retry.m_attempts++;
+                }
+                if (!inserted) {
+                    giveUp(retry.m_samples);
+                }
+
+                synchronized (m_retries) {
+                    m_retries.removeFirst();
+                }
+            }
+        }
+
+        /**
+         * Gives the retry thread some time to finish, and gives up on the
+         * batches that are still queued after that.
+         */
+        private void stopRetrying() {
+            m_retryExecutor.shutdown();
+            try {
+                if (!m_retryExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    m_retryExecutor.shutdownNow();
+                    m_retryExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (m_retries) {
+                for (RetryBatch retry : m_retries) {
+                    giveUp(retry.m_samples);
+                }
+                m_retries.clear();
+            }
+        }
+    }
+
+    private static class RetryBatch {
+        private final List<Sample> m_samples;
+        private int m_attempts;
+
+        public RetryBatch(List<Sample> samples, int attempts) {
+            m_samples = samples;
+            m_attempts = attempts;
         }
     }
 
-    private static final EventTranslatorOneArg<SampleBatchEvent, List<Sample>> TRANSLATOR =
-            new EventTranslatorOneArg<SampleBatchEvent, List<Sample>>() {
-                public void translateTo(SampleBatchEvent event, long sequence, List<Sample> samples) {
+    private static final EventTranslatorTwoArg<SampleBatchEvent, List<Sample>, Integer> TRANSLATOR =
+            new EventTranslatorTwoArg<SampleBatchEvent, List<Sample>, Integer>() {
+                public void translateTo(SampleBatchEvent event, long sequence, List<Sample> samples, Integer shard) {
                     event.setSamples(samples);
+                    event.setShard(shard);
                 }
             };
 }
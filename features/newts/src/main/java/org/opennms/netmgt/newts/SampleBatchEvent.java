@@ -42,6 +42,8 @@ import org.opennms.newts.api.Sample;
 public class SampleBatchEvent {
     private List<Sample> m_samples;
 
+    private int m_shard;
+
     public void setSamples(List<Sample> samples) {
         m_samples = samples;
     }
@@ -49,4 +51,16 @@ public class SampleBatchEvent {
     public List<Sample> getSamples() {
         return m_samples;
     }
+
+    public void setShard(int shard) {
+        m_shard = shard;
+    }
+
+    /**
+     * The index of the consumer that inserts these samples, derived
+     * from the resource id of the first sample.
+     */
+    public int getShard() {
+        return m_shard;
+    }
 }
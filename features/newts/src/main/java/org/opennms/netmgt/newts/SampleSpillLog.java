@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.newts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+/**
+ * Append-only log of {@link Sample}s that could not be handed to the
+ * {@link org.opennms.newts.api.SampleRepository}.
+ *
+ * Samples are appended to the current segment file in the log directory.
+ * {@link #replay(Consumer, int)} closes the current segment, so that new
+ * samples go to a new one, and feeds the closed segments to the given
+ * consumer, oldest first. A segment is only deleted once all of its samples
+ * were consumed, so samples may be replayed more than once, which is harmless
+ * since inserting the same sample twice overwrites it with the same value.
+ *
+ * Segments left over by a previous run are replayed as well. Segments that
+ * were written in a format this version doesn't know are renamed, with the
+ * {@value #UNKNOWN_VERSION_SUFFIX} suffix, and left in the directory.
+ */
+public class SampleSpillLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampleSpillLog.class);
+
+    private static final String SEGMENT_PREFIX = "samples-";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String UNKNOWN_VERSION_SUFFIX = ".unknown-version";
+
+    /**
+     * Written at the start of every segment, changed whenever the format does.
+     */
+    private static final int SEGMENT_VERSION = 0x4e535031;
+
+    private final File m_directory;
+
+    private final Object m_replayLock = new Object();
+
+    private long m_nextSegment;
+
+    private File m_currentSegment;
+
+    private DataOutputStream m_out;
+
+    public SampleSpillLog(File directory) throws IOException {
+        m_directory = directory;
+        if (!m_directory.isDirectory() && !m_directory.mkdirs()) {
+            throw new IOException("Unable to create the directory " + m_directory);
+        }
+        for (File segment : getSegments()) {
+            m_nextSegment = Math.max(m_nextSegment, getSegmentNumber(segment) + 1);
+        }
+    }
+
+    public File getDirectory() {
+        return m_directory;
+    }
+
+    /**
+     * Appends the samples to the current segment.
+     *
+     * @param samples the samples to append
+     * @throws IOException if the samples could not be written
+     */
+    public synchronized void append(Collection<Sample> samples) throws IOException {
+        if (m_out == null) {
+            m_currentSegment = new File(m_directory, String.format("%s%016d%s", SEGMENT_PREFIX, m_nextSegment++, SEGMENT_SUFFIX));
+            m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_currentSegment, true)));
+            m_out.writeInt(SEGMENT_VERSION);
+        }
+        m_out.writeInt(samples.size());
+        for (Sample sample : samples) {
+            writeSample(m_out, sample);
+        }
+        m_out.flush();
+    }
+
+    /**
+     * Feeds all of the samples that were appended so far to the consumer,
+     * in batches of at most <code>batchSize</code> samples.
+     *
+     * If the consumer throws an exception, the replay stops and the
+     * exception is passed on. The samples of the segment that was being
+     * replayed, and of all later segments, are kept.
+     *
+     * @return the number of samples that were consumed
+     */
+    public long replay(Consumer<List<Sample>> consumer, int batchSize) throws IOException {
+        synchronized (m_replayLock) {
+            final List<File> segments = closeCurrentSegment();
+            long numReplayed = 0;
+            for (File segment : segments) {
+                final List<List<Sample>> records = readSegment(segment);
+                if (records == null) {
+                    keepUnknownVersion(segment);
+                    continue;
+                }
+                for (List<Sample> samples : records) {
+                    for (List<Sample> batch : Lists.partition(samples, batchSize)) {
+                        consumer.accept(batch);
+                        numReplayed += batch.size();
+                    }
+                }
+                if (!segment.delete()) {
+                    throw new IOException("Unable to delete the replayed segment " + segment);
+                }
+            }
+            return numReplayed;
+        }
+    }
+
+    /**
+     * <p>isEmpty</p>
+     *
+     * @return true if there are no samples to replay
+     */
+    public synchronized boolean isEmpty() {
+        return m_currentSegment == null && getSegments().isEmpty();
+    }
+
+    /**
+     * <p>getSize</p>
+     *
+     * @return the number of bytes used by the segments
+     */
+    public long getSize() {
+        long size = 0;
+        for (File segment : getSegments()) {
+            size += segment.length();
+        }
+        return size;
+    }
+
+    public synchronized void close() throws IOException {
+        closeCurrentSegment();
+    }
+
+    private synchronized List<File> closeCurrentSegment() throws IOException {
+        if (m_out != null) {
+            try {
+                m_out.close();
+            } finally {
+                m_out = null;
+                m_currentSegment = null;
+            }
+        }
+        return getSegments();
+    }
+
+    private List<File> getSegments() {
+        final File[] files = m_directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        // The segment numbers are zero-padded, so this sorts them from oldest to newest
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private static long getSegmentNumber(File segment) {
+        final String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Renames a segment that can't be read, so that its samples aren't lost
+     * and it isn't replayed again.
+     */
+    private static void keepUnknownVersion(File segment) throws IOException {
+        final File renamed = new File(segment.getParentFile(), segment.getName() + UNKNOWN_VERSION_SUFFIX);
+        if (!segment.renameTo(renamed)) {
+            throw new IOException("Unable to rename " + segment + " to " + renamed);
+        }
+        LOG.error("Skipping {}: it was not written by this version. It was renamed to {}.", segment, renamed);
+    }
+
+    /**
+     * @return the records of the segment, or null if the segment was written in another format
+     */
+    private static List<List<Sample>> readSegment(File segment) throws IOException {
+        final List<List<Sample>> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            if (in.readInt() != SEGMENT_VERSION) {
+                return null;
+            }
+            while (true) {
+                final int count;
+                try {
+                    count = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final List<Sample> samples = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    samples.add(readSample(in));
+                }
+                records.add(samples);
+            }
+        } catch (EOFException e) {
+            // The last record was not written completely, i.e. when OpenNMS was killed
+            LOG.warn("The last record of {} was not written completely, its samples will be lost.", segment);
+        }
+        return records;
+    }
+
+    private static void writeSample(DataOutputStream out, Sample sample) throws IOException {
+        out.writeLong(sample.getTimestamp().asMillis());
+        out.writeUTF(sample.getContext().getId());
+        out.writeUTF(sample.getResource().getId());
+        writeAttributes(out, sample.getResource().getAttributes().orNull());
+        out.writeUTF(sample.getName());
+        out.writeUTF(sample.getType().name());
+        if (sample.getType() == MetricType.GAUGE) {
+            out.writeDouble(sample.getValue().doubleValue());
+        } else {
+            out.writeLong(sample.getValue().longValue());
+        }
+        writeAttributes(out, sample.getAttributes());
+    }
+
+    private static Sample readSample(DataInputStream in) throws IOException {
+        final Timestamp timestamp = Timestamp.fromEpochMillis(in.readLong());
+        final Context context = new Context(in.readUTF());
+        final Resource resource = new Resource(in.readUTF(), Optional.fromNullable(readAttributes(in)));
+        final String name = in.readUTF();
+        final MetricType type = MetricType.valueOf(in.readUTF());
+        final ValueType<?> value;
+        if (type == MetricType.GAUGE) {
+            value = ValueType.compose(in.readDouble(), type);
+        } else {
+            value = ValueType.compose(in.readLong(), type);
+        }
+        return new Sample(timestamp, context, resource, name, type, value, readAttributes(in));
+    }
+
+    private static void writeAttributes(DataOutputStream out, Map<String, String> attributes) throws IOException {
+        if (attributes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(attributes.size());
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readAttributes(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        final Map<String, String> attributes = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            attributes.put(in.readUTF(), in.readUTF());
+        }
+        return attributes;
+    }
+}
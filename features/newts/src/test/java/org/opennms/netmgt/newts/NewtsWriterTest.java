@@ -0,0 +1,358 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.newts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.SampleRepository;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+import org.opennms.test.FileAnticipator;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+public class NewtsWriterTest {
+
+    /**
+     * An in-process {@link SampleRepository} that records the inserted samples,
+     * and can be made to fail or to block.
+     */
+    private static class StubSampleRepository {
+        private final List<Sample> m_samples = new ArrayList<>();
+        private final Map<String, Set<String>> m_threadsByResource = new ConcurrentHashMap<>();
+        private volatile boolean m_failing = false;
+        private final Set<String> m_failingResources = ConcurrentHashMap.newKeySet();
+        private volatile CountDownLatch m_blocker = null;
+
+        public void insert(Collection<Sample> samples) throws InterruptedException {
+            final CountDownLatch blocker = m_blocker;
+            if (blocker != null) {
+                blocker.await();
+            }
+            if (m_failing) {
+                throw new RuntimeException("Cassandra is down");
+            }
+            for (Sample sample : samples) {
+                if (m_failingResources.contains(sample.getResource().getId())) {
+                    throw new RuntimeException("Can't write " + sample.getResource().getId());
+                }
+            }
+            for (Sample sample : samples) {
+                m_threadsByResource.computeIfAbsent(sample.getResource().getId(), id -> ConcurrentHashMap.newKeySet())
+                    .add(Thread.currentThread().getName());
+            }
+            synchronized (m_samples) {
+                m_samples.addAll(samples);
+            }
+        }
+
+        public List<Sample> getSamples() {
+            synchronized (m_samples) {
+                return new ArrayList<>(m_samples);
+            }
+        }
+
+        public SampleRepository asSampleRepository() {
+            final SampleRepository sampleRepository = EasyMock.createNiceMock(SampleRepository.class);
+            sampleRepository.insert(EasyMock.<Collection<Sample>>anyObject());
+            EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public Object answer() throws Throwable {
+                    insert((Collection<Sample>)EasyMock.getCurrentArguments()[0]);
+                    return null;
+                }
+            }).anyTimes();
+            EasyMock.replay(sampleRepository);
+            return sampleRepository;
+        }
+    }
+
+    private FileAnticipator m_fileAnticipator;
+
+    private StubSampleRepository m_repository;
+
+    private MetricRegistry m_registry;
+
+    private NewtsWriter m_writer;
+
+    @Before
+    public void setUp() throws Exception {
+        m_fileAnticipator = new FileAnticipator();
+        m_repository = new StubSampleRepository();
+        m_registry = new MetricRegistry();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (m_writer != null) {
+            m_repository.m_blocker = null;
+            m_repository.m_failing = false;
+            m_repository.m_failingResources.clear();
+            m_writer.destroy();
+        }
+        m_fileAnticipator.tearDown();
+    }
+
+    private NewtsWriter createWriter(int ringBufferSize, int writerThreads, NewtsWriter.OverflowPolicy policy, long overflowTimeout, int maxInsertRetries) throws Exception {
+        final File spillDirectory = m_fileAnticipator.tempDir("spill");
+        m_writer = new NewtsWriter(2, ringBufferSize, writerThreads, policy.name(), overflowTimeout, maxInsertRetries, spillDirectory.getAbsolutePath(), m_registry);
+        m_writer.setSampleRepository(m_repository.asSampleRepository());
+        return m_writer;
+    }
+
+    @Test
+    public void testSamplesOfAResourceAreInsertedByOneThread() throws Exception {
+        final NewtsWriter writer = createWriter(1024, 4, NewtsWriter.OverflowPolicy.BLOCK, 0, 0);
+
+        for (int i = 0; i < 100; i++) {
+            writer.insert(createSamples("snmp:1:resource" + (i % 20), i * 1000L, 3));
+        }
+
+        waitForSamples(300);
+        assertEquals(20, m_repository.m_threadsByResource.size());
+        final Set<String> threads = new HashSet<>();
+        for (Set<String> resourceThreads : m_repository.m_threadsByResource.values()) {
+            assertEquals(1, resourceThreads.size());
+            threads.addAll(resourceThreads);
+        }
+        assertTrue("expected the samples to be spread across threads: " + threads, threads.size() > 1);
+        assertEquals(0L, m_registry.getGauges().get("ring-buffer.size").getValue());
+        assertEquals(200, m_registry.timer("insert.latency").getCount());
+    }
+
+    @Test
+    public void testDropWhenRingBufferIsFull() throws Exception {
+        final NewtsWriter writer = createWriter(2, 1, NewtsWriter.OverflowPolicy.DROP, 0, 0);
+        m_repository.m_blocker = new CountDownLatch(1);
+
+        for (int i = 0; i < 10; i++) {
+            writer.insert(createSamples("snmp:1:resource", i * 1000L, 1));
+        }
+        final long dropped = m_registry.meter("samples.dropped").getCount();
+        assertTrue("expected some samples to be dropped", dropped > 0);
+
+        m_repository.m_blocker.countDown();
+        waitForSamples(10 - dropped);
+        assertEquals(0, m_registry.meter("samples.lost").getCount());
+    }
+
+    @Test
+    public void testBlockWithTimeout() throws Exception {
+        final NewtsWriter writer = createWriter(2, 1, NewtsWriter.OverflowPolicy.BLOCK, 100, 0);
+        m_repository.m_blocker = new CountDownLatch(1);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            writer.insert(createSamples("snmp:1:resource", i * 1000L, 1));
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        final long dropped = m_registry.meter("samples.dropped").getCount();
+        assertTrue("expected some samples to be dropped", dropped > 0);
+        assertTrue("expected insert() to wait before dropping the samples, waited " + elapsed + "ms", elapsed >= 100 * dropped);
+
+        m_repository.m_blocker.countDown();
+        waitForSamples(4 - dropped);
+    }
+
+    @Test
+    public void testSpillAndReplay() throws Exception {
+        final NewtsWriter writer = createWriter(1024, 2, NewtsWriter.OverflowPolicy.SPILL, 0, 1);
+        m_repository.m_failing = true;
+
+        final List<Sample> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final List<Sample> samples = createSamples("snmp:1:resource" + i, i * 1000L, 3);
+            expected.addAll(samples);
+            writer.insert(samples);
+        }
+
+        waitForSpilled(30);
+        assertEquals(20, m_registry.meter("insert.retries").getCount());
+        assertEquals(0, m_registry.meter("samples.lost").getCount());
+        assertTrue((Long)m_registry.getGauges().get("spill.size").getValue() > 0L);
+
+        // Nothing is replayed while the inserts are failing
+        writer.replaySpilledSamples();
+        assertEquals(0, m_repository.getSamples().size());
+
+        // Cassandra is back
+        m_repository.m_failing = false;
+        final List<Sample> recovered = createSamples("snmp:1:recovered", 0L, 1);
+        writer.insert(recovered);
+        waitForSamples(1);
+
+        writer.replaySpilledSamples();
+        assertEquals(30, m_registry.meter("samples.replayed").getCount());
+        assertEquals(0L, m_registry.getGauges().get("spill.size").getValue());
+
+        final Map<String, Sample> inserted = new HashMap<>();
+        for (Sample sample : m_repository.getSamples()) {
+            inserted.put(key(sample), sample);
+        }
+        assertEquals(31, inserted.size());
+        for (Sample sample : expected) {
+            final Sample actual = inserted.get(key(sample));
+            assertEquals(sample.getType(), actual.getType());
+            assertEquals(sample.getValue().doubleValue(), actual.getValue().doubleValue(), 0.0);
+            assertEquals(sample.getContext().getId(), actual.getContext().getId());
+            assertEquals(sample.getResource().getAttributes(), actual.getResource().getAttributes());
+            assertEquals(sample.getAttributes(), actual.getAttributes());
+        }
+    }
+
+    @Test
+    public void testSpilledSamplesAreReplayedAfterRestart() throws Exception {
+        final NewtsWriter writer = createWriter(1024, 1, NewtsWriter.OverflowPolicy.SPILL, 0, 0);
+        m_repository.m_failing = true;
+        writer.insert(createSamples("snmp:1:resource", 0L, 5));
+        waitForSpilled(5);
+        writer.destroy();
+
+        // A new writer using the same directory picks up the spilled samples
+        m_repository.m_failing = false;
+        m_registry = new MetricRegistry();
+        m_writer = new NewtsWriter(2, 1024, 1, "spill", 0L, 0, m_fileAnticipator.getTempDir() + File.separator + "spill", m_registry);
+        m_writer.setSampleRepository(m_repository.asSampleRepository());
+        m_writer.replaySpilledSamples();
+        assertEquals(5, m_repository.getSamples().size());
+    }
+
+    @Test
+    public void testRetriesDontHoldUpOtherShards() throws Exception {
+        final NewtsWriter writer = createWriter(4, 2, NewtsWriter.OverflowPolicy.BLOCK, 0, 3);
+        final String failing = "snmp:1:failing";
+        m_repository.m_failingResources.add(failing);
+        final int failingShard = writer.getShard(createSamples(failing, 0L, 1));
+
+        // The failing batch is retried for 250 + 500 + 1000 ms
+        writer.insert(createSamples(failing, 0L, 1));
+        final long start = System.nanoTime();
+        int numSamples = 0;
+        for (int i = 0; numSamples < 50; i++) {
+            final List<Sample> samples = createSamples("snmp:1:resource" + i, 0L, 1);
+            if (writer.getShard(samples) != failingShard) {
+                writer.insert(samples);
+                numSamples++;
+            }
+        }
+        waitForSamples(numSamples);
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("the other shard waited for the retries: " + elapsed + "ms", elapsed < 1000);
+
+        // The batches of the failing shard keep their order behind the failing one
+        m_repository.m_failingResources.clear();
+        writer.insert(createSamples(failing, 1000L, 1));
+        waitForSamples(numSamples + 2);
+        final List<Long> timestamps = new ArrayList<>();
+        for (Sample sample : m_repository.getSamples()) {
+            if (failing.equals(sample.getResource().getId())) {
+                timestamps.add(sample.getTimestamp().asMillis());
+            }
+        }
+        assertEquals(Arrays.asList(0L, 1000L), timestamps);
+        assertEquals(0, m_registry.meter("samples.lost").getCount());
+    }
+
+    @Test
+    public void testSegmentsOfAnotherVersionAreKept() throws Exception {
+        final File spillDirectory = m_fileAnticipator.tempDir("spill");
+        final File segment = new File(spillDirectory, "samples-0000000000000000000.seg");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(segment))) {
+            out.writeInt(42);
+            out.writeInt(1);
+        }
+        final NewtsWriter writer = createWriter(1024, 1, NewtsWriter.OverflowPolicy.SPILL, 0, 0);
+
+        writer.replaySpilledSamples();
+        assertEquals(0, m_repository.getSamples().size());
+        assertTrue(new File(spillDirectory, segment.getName() + ".unknown-version").isFile());
+        assertEquals(0L, m_registry.getGauges().get("spill.size").getValue());
+    }
+
+    private void waitForSpilled(long numSamples) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (m_registry.meter("samples.spilled").getCount() < numSamples && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(numSamples, m_registry.meter("samples.spilled").getCount());
+    }
+
+    private void waitForSamples(long numSamples) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (m_repository.getSamples().size() < numSamples && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(numSamples, m_repository.getSamples().size());
+    }
+
+    private static String key(Sample sample) {
+        return sample.getResource().getId() + "/" + sample.getName() + "@" + sample.getTimestamp().asMillis();
+    }
+
+    private static List<Sample> createSamples(String resourceId, long timestamp, int count) {
+        final Map<String, String> resourceAttributes = new HashMap<>();
+        resourceAttributes.put("ifName", "eth0");
+        final Resource resource = new Resource(resourceId, Optional.of(resourceAttributes));
+
+        final List<Sample> samples = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            final MetricType type = i % 2 == 0 ? MetricType.GAUGE : MetricType.COUNTER;
+            final Number value = type == MetricType.GAUGE ? Double.valueOf(i + 0.5) : Long.valueOf(i);
+            samples.add(new Sample(Timestamp.fromEpochMillis(timestamp), resource, "metric" + i, type, ValueType.compose(value, type)));
+        }
+        return samples;
+    }
+}
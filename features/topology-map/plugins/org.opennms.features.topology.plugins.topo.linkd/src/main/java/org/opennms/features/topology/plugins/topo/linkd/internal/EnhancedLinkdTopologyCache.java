@@ -0,0 +1,502 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.features.topology.plugins.topo.linkd.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opennms.core.utils.LldpUtils.LldpPortIdSubType;
+import org.opennms.netmgt.dao.api.LldpElementDao;
+import org.opennms.netmgt.dao.api.LldpLinkDao;
+import org.opennms.netmgt.dao.api.OspfLinkDao;
+import org.opennms.netmgt.dao.api.SnmpInterfaceDao;
+import org.opennms.netmgt.events.api.EventConstants;
+import org.opennms.netmgt.events.api.EventListener;
+import org.opennms.netmgt.events.api.EventSubscriptionService;
+import org.opennms.netmgt.model.LldpElement;
+import org.opennms.netmgt.model.LldpLink;
+import org.opennms.netmgt.model.OnmsSnmpInterface;
+import org.opennms.netmgt.model.OspfLink;
+import org.opennms.netmgt.model.events.EventUtils;
+import org.opennms.netmgt.xml.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Joins the LLDP and OSPF links that {@link EnhancedLinkdTopologyProvider}
+ * draws as edges. Each end of a link is indexed by the port it was reported
+ * on, so the other end is found with a single lookup of the remote port
+ * instead of comparing every pair of links.
+ *
+ * When it is enabled, a single instance is shared by the topology providers
+ * of all sessions, and the joined links are kept between loads. They are
+ * updated for a single node when Enlinkd has finished discovering its LLDP or
+ * OSPF links, or when the node is deleted. Otherwise, the provider uses a new
+ * instance for every load.
+ */
+public class EnhancedLinkdTopologyCache implements EventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EnhancedLinkdTopologyCache.class);
+
+    static final String NODE_LINK_DISCOVERY_COMPLETED_EVENT_UEI = "uei.opennms.org/internal/linkd/nodeLinkDiscoveryCompleted";
+    static final String LLDP_LINK_DISCOVERY = "LldpLinkDiscovery";
+    static final String OSPF_LINK_DISCOVERY = "OspfLinkDiscovery";
+
+    /**
+     * One end of a link, as reported by the node it belongs to. Two ends are
+     * joined when the local key of each is the remote key of the other.
+     */
+    public static class LinkEnd {
+        private final Integer m_id;
+        private final Integer m_nodeId;
+        private final Integer m_ifIndex;
+        private final Object m_localKey;
+        private final Object m_remoteKey;
+
+        public LinkEnd(Integer id, Integer nodeId, Integer ifIndex, Object localKey, Object remoteKey) {
+            m_id = id;
+            m_nodeId = nodeId;
+            m_ifIndex = ifIndex;
+            m_localKey = localKey;
+            m_remoteKey = remoteKey;
+        }
+
+        public Integer getId() {
+            return m_id;
+        }
+
+        public Integer getNodeId() {
+            return m_nodeId;
+        }
+
+        public Integer getIfIndex() {
+            return m_ifIndex;
+        }
+
+        public Object getLocalKey() {
+            return m_localKey;
+        }
+
+        public Object getRemoteKey() {
+            return m_remoteKey;
+        }
+    }
+
+    /**
+     * An LLDP link end also keeps what is needed to draw the link when the
+     * remote node didn't report it, using the remote sysName.
+     */
+    public static class LldpLinkEnd extends LinkEnd {
+        private final String m_remSysname;
+        private final Integer m_remIfIndex;
+
+        public LldpLinkEnd(Integer id, Integer nodeId, Integer ifIndex, Object localKey, Object remoteKey, String remSysname, Integer remIfIndex) {
+            super(id, nodeId, ifIndex, localKey, remoteKey);
+            m_remSysname = remSysname;
+            m_remIfIndex = remIfIndex;
+        }
+
+        public String getRemSysname() {
+            return m_remSysname;
+        }
+
+        public Integer getRemIfIndex() {
+            return m_remIfIndex;
+        }
+    }
+
+    /**
+     * A link with the end that was reported first as its source, and the
+     * other end as its target. The target is null when no matching end was
+     * found.
+     */
+    public static class JoinedLink<E extends LinkEnd> {
+        private final E m_source;
+        private final E m_target;
+
+        public JoinedLink(E source, E target) {
+            m_source = source;
+            m_target = target;
+        }
+
+        public E getSource() {
+            return m_source;
+        }
+
+        public E getTarget() {
+            return m_target;
+        }
+    }
+
+    /**
+     * The link ends of one protocol, indexed by id, node and local key,
+     * together with the ends they were joined with.
+     */
+    static class LinkIndex<E extends LinkEnd> {
+        private final Map<Integer, E> m_ends = new TreeMap<Integer, E>();
+        private final Map<Integer, Set<Integer>> m_endsByNode = new HashMap<Integer, Set<Integer>>();
+        private final Map<Object, Set<Integer>> m_endsByLocalKey = new HashMap<Object, Set<Integer>>();
+        private final Map<Integer, Integer> m_partners = new HashMap<Integer, Integer>();
+
+        public void clear() {
+            m_ends.clear();
+            m_endsByNode.clear();
+            m_endsByLocalKey.clear();
+            m_partners.clear();
+        }
+
+        /**
+         * Replaces the link ends of the given nodes with the given ones, and
+         * joins the new ends as well as the ends that lost their partner.
+         */
+        public void replace(Collection<Integer> nodeIds, Collection<E> ends) {
+            final Set<Integer> unjoined = new TreeSet<Integer>();
+            for (Integer nodeId : nodeIds) {
+                final Set<Integer> ids = m_endsByNode.remove(nodeId);
+                if (ids == null) {
+                    continue;
+                }
+                for (Integer id : ids) {
+                    final E end = m_ends.remove(id);
+                    remove(m_endsByLocalKey, end.getLocalKey(), id);
+                    final Integer partner = m_partners.remove(id);
+                    if (partner != null) {
+                        m_partners.remove(partner);
+                        unjoined.add(partner);
+                    }
+                }
+            }
+            for (E end : ends) {
+                m_ends.put(end.getId(), end);
+                add(m_endsByNode, end.getNodeId(), end.getId());
+                add(m_endsByLocalKey, end.getLocalKey(), end.getId());
+                unjoined.add(end.getId());
+            }
+            join(unjoined);
+        }
+
+        private void join(Collection<Integer> ids) {
+            for (Integer id : ids) {
+                final E end = m_ends.get(id);
+                if (end == null || end.getLocalKey() == null || end.getRemoteKey() == null || m_partners.containsKey(id)) {
+                    continue;
+                }
+                final Set<Integer> candidates = m_endsByLocalKey.get(end.getRemoteKey());
+                if (candidates == null) {
+                    continue;
+                }
+                for (Integer candidate : candidates) {
+                    if (candidate.equals(id) || m_partners.containsKey(candidate)) {
+                        continue;
+                    }
+                    if (end.getLocalKey().equals(m_ends.get(candidate).getRemoteKey())) {
+                        LOG.debug("join: found mutual links: '{}' and '{}'", id, candidate);
+                        m_partners.put(id, candidate);
+                        m_partners.put(candidate, id);
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the joined links, and the ends without a partner, ordered by
+         * the id of their source.
+         */
+        public List<JoinedLink<E>> getLinks() {
+            final List<JoinedLink<E>> links = new ArrayList<JoinedLink<E>>();
+            for (E end : m_ends.values()) {
+                final Integer partner = m_partners.get(end.getId());
+                if (partner == null) {
+                    links.add(new JoinedLink<E>(end, null));
+                } else if (end.getId() < partner) {
+                    links.add(new JoinedLink<E>(end, m_ends.get(partner)));
+                }
+            }
+            return links;
+        }
+
+        public int size() {
+            return m_ends.size();
+        }
+
+        private static <K> void add(Map<K, Set<Integer>> index, K key, Integer id) {
+            Set<Integer> ids = index.get(key);
+            if (ids == null) {
+                ids = new TreeSet<Integer>();
+                index.put(key, ids);
+            }
+            ids.add(id);
+        }
+
+        private static <K> void remove(Map<K, Set<Integer>> index, K key, Integer id) {
+            final Set<Integer> ids = index.get(key);
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private LldpLinkDao m_lldpLinkDao;
+    private LldpElementDao m_lldpElementDao;
+    private OspfLinkDao m_ospfLinkDao;
+    private SnmpInterfaceDao m_snmpInterfaceDao;
+    private EventSubscriptionService m_eventSubscriptionService;
+    private boolean m_enabled = false;
+
+    private final LinkIndex<LldpLinkEnd> m_lldpLinks = new LinkIndex<LldpLinkEnd>();
+    private final LinkIndex<LinkEnd> m_ospfLinks = new LinkIndex<LinkEnd>();
+    private boolean m_lldpLinksLoaded = false;
+    private boolean m_ospfLinksLoaded = false;
+    private final Set<Integer> m_changedLldpNodes = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final Set<Integer> m_changedOspfNodes = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final Map<Integer, Map<Integer, OnmsSnmpInterface>> m_snmpInterfaces = new HashMap<Integer, Map<Integer, OnmsSnmpInterface>>();
+
+    /**
+     * Used as an init-method in the OSGi blueprint
+     */
+    public void init() {
+        if (m_enabled && m_eventSubscriptionService != null) {
+            m_eventSubscriptionService.addEventListener(this, Arrays.asList(NODE_LINK_DISCOVERY_COMPLETED_EVENT_UEI, EventConstants.NODE_DELETED_EVENT_UEI));
+        }
+    }
+
+    /**
+     * Used as a destroy-method in the OSGi blueprint
+     */
+    public void destroy() {
+        if (m_enabled && m_eventSubscriptionService != null) {
+            m_eventSubscriptionService.removeEventListener(this);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "EnhancedLinkdTopologyCache";
+    }
+
+    /**
+     * Remembers which nodes have changed. Their links are read again the next
+     * time the topology is loaded, so this doesn't have to wait for a load
+     * that is in progress.
+     */
+    @Override
+    public void onEvent(Event e) {
+        if (e.getNodeid() == null || e.getNodeid() <= 0) {
+            return;
+        }
+        final Integer nodeId = e.getNodeid().intValue();
+        if (EventConstants.NODE_DELETED_EVENT_UEI.equals(e.getUei())) {
+            m_changedLldpNodes.add(nodeId);
+            m_changedOspfNodes.add(nodeId);
+        } else if (NODE_LINK_DISCOVERY_COMPLETED_EVENT_UEI.equals(e.getUei())) {
+            final String runnable = EventUtils.getParm(e, "runnable");
+            if (LLDP_LINK_DISCOVERY.equals(runnable)) {
+                m_changedLldpNodes.add(nodeId);
+            } else if (OSPF_LINK_DISCOVERY.equals(runnable)) {
+                m_changedOspfNodes.add(nodeId);
+            }
+        }
+    }
+
+    /**
+     * Returns the LLDP links. Must be called within a transaction.
+     */
+    public synchronized List<JoinedLink<LldpLinkEnd>> getLldpLinks() {
+        if (!m_lldpLinksLoaded) {
+            m_changedLldpNodes.clear();
+            final Map<Integer, LldpElement> elements = new HashMap<Integer, LldpElement>();
+            if (m_lldpElementDao != null) {
+                final List<LldpElement> allElements = m_lldpElementDao.findAll();
+                if (allElements != null) {
+                    for (LldpElement element : allElements) {
+                        elements.put(element.getNode().getId(), element);
+                    }
+                }
+            }
+            final List<LldpLinkEnd> ends = new ArrayList<LldpLinkEnd>();
+            for (LldpLink link : m_lldpLinkDao.findAll()) {
+                ends.add(getLinkEnd(link, elements.get(link.getNode().getId())));
+            }
+            m_lldpLinks.clear();
+            m_lldpLinks.replace(Collections.<Integer>emptySet(), ends);
+            m_lldpLinksLoaded = true;
+            LOG.debug("getLldpLinks: loaded {} lldp links", m_lldpLinks.size());
+        } else {
+            final Set<Integer> nodeIds = drain(m_changedLldpNodes);
+            if (nodeIds.isEmpty()) {
+                return m_lldpLinks.getLinks();
+            }
+            final List<LldpLinkEnd> ends = new ArrayList<LldpLinkEnd>();
+            for (Integer nodeId : nodeIds) {
+                final LldpElement element = m_lldpElementDao == null ? null : m_lldpElementDao.findByNodeId(nodeId);
+                for (LldpLink link : m_lldpLinkDao.findByNodeId(nodeId)) {
+                    ends.add(getLinkEnd(link, element));
+                }
+                m_snmpInterfaces.remove(nodeId);
+            }
+            m_lldpLinks.replace(nodeIds, ends);
+            LOG.debug("getLldpLinks: updated the lldp links of nodes {}", nodeIds);
+        }
+        return m_lldpLinks.getLinks();
+    }
+
+    /**
+     * Returns the OSPF links. Must be called within a transaction.
+     */
+    public synchronized List<JoinedLink<LinkEnd>> getOspfLinks() {
+        if (!m_ospfLinksLoaded) {
+            m_changedOspfNodes.clear();
+            final List<LinkEnd> ends = new ArrayList<LinkEnd>();
+            for (OspfLink link : m_ospfLinkDao.findAll()) {
+                ends.add(getLinkEnd(link));
+            }
+            m_ospfLinks.clear();
+            m_ospfLinks.replace(Collections.<Integer>emptySet(), ends);
+            m_ospfLinksLoaded = true;
+            LOG.debug("getOspfLinks: loaded {} ospf links", m_ospfLinks.size());
+        } else {
+            final Set<Integer> nodeIds = drain(m_changedOspfNodes);
+            if (nodeIds.isEmpty()) {
+                return m_ospfLinks.getLinks();
+            }
+            final List<LinkEnd> ends = new ArrayList<LinkEnd>();
+            for (Integer nodeId : nodeIds) {
+                for (OspfLink link : m_ospfLinkDao.findByNodeId(nodeId)) {
+                    ends.add(getLinkEnd(link));
+                }
+                m_snmpInterfaces.remove(nodeId);
+            }
+            m_ospfLinks.replace(nodeIds, ends);
+            LOG.debug("getOspfLinks: updated the ospf links of nodes {}", nodeIds);
+        }
+        return m_ospfLinks.getLinks();
+    }
+
+    /**
+     * Returns the name, speed and netmask of the given interface, which are
+     * kept until the links of the node change. Must be called within a
+     * transaction.
+     */
+    public synchronized OnmsSnmpInterface getSnmpInterface(Integer nodeId, Integer ifIndex) {
+        if (nodeId == null || ifIndex == null) {
+            return null;
+        }
+        Map<Integer, OnmsSnmpInterface> snmpInterfaces = m_snmpInterfaces.get(nodeId);
+        if (snmpInterfaces == null) {
+            snmpInterfaces = new HashMap<Integer, OnmsSnmpInterface>();
+            m_snmpInterfaces.put(nodeId, snmpInterfaces);
+        }
+        if (!snmpInterfaces.containsKey(ifIndex)) {
+            final OnmsSnmpInterface snmpInterface = m_snmpInterfaceDao.findByNodeIdAndIfIndex(nodeId, ifIndex);
+            snmpInterfaces.put(ifIndex, snmpInterface == null ? null : copyOf(snmpInterface));
+        }
+        return snmpInterfaces.get(ifIndex);
+    }
+
+    private static LldpLinkEnd getLinkEnd(LldpLink link, LldpElement element) {
+        if (element == null) {
+            element = link.getNode().getLldpElement();
+        }
+        Integer remIfIndex = null;
+        if (link.getLldpRemPortIdSubType() == LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL) {
+            try {
+                remIfIndex = Integer.valueOf(link.getLldpRemPortId());
+            } catch (NumberFormatException e) {
+                LOG.debug("getLinkEnd: cannot create ifindex from LldpRemPortId '{}'", link.getLldpRemPortId());
+            }
+        }
+        return new LldpLinkEnd(link.getId(), link.getNode().getId(), link.getLldpPortIfindex(),
+                               Arrays.<Object>asList(element == null ? null : element.getLldpChassisId(), link.getLldpPortId(), link.getLldpPortIdSubType(), link.getLldpPortDescr()),
+                               Arrays.<Object>asList(link.getLldpRemChassisId(), link.getLldpRemPortId(), link.getLldpRemPortIdSubType(), link.getLldpRemPortDescr()),
+                               link.getLldpRemSysname(), remIfIndex);
+    }
+
+    private static LinkEnd getLinkEnd(OspfLink link) {
+        return new LinkEnd(link.getId(), link.getNode().getId(), link.getOspfIfIndex(), link.getOspfIpAddr(), link.getOspfRemIpAddr());
+    }
+
+    private static OnmsSnmpInterface copyOf(OnmsSnmpInterface snmpInterface) {
+        final OnmsSnmpInterface copy = new OnmsSnmpInterface();
+        copy.setIfIndex(snmpInterface.getIfIndex());
+        copy.setIfName(snmpInterface.getIfName());
+        copy.setIfSpeed(snmpInterface.getIfSpeed());
+        copy.setNetMask(snmpInterface.getNetMask());
+        return copy;
+    }
+
+    private static Set<Integer> drain(Set<Integer> changedNodes) {
+        final Set<Integer> nodeIds = new HashSet<Integer>();
+        for (Iterator<Integer> it = changedNodes.iterator(); it.hasNext(); ) {
+            nodeIds.add(it.next());
+            it.remove();
+        }
+        return nodeIds;
+    }
+
+    public boolean isEnabled() {
+        return m_enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        m_enabled = enabled;
+    }
+
+    public void setLldpLinkDao(LldpLinkDao lldpLinkDao) {
+        m_lldpLinkDao = lldpLinkDao;
+    }
+
+    public void setLldpElementDao(LldpElementDao lldpElementDao) {
+        m_lldpElementDao = lldpElementDao;
+    }
+
+    public void setOspfLinkDao(OspfLinkDao ospfLinkDao) {
+        m_ospfLinkDao = ospfLinkDao;
+    }
+
+    public void setSnmpInterfaceDao(SnmpInterfaceDao snmpInterfaceDao) {
+        m_snmpInterfaceDao = snmpInterfaceDao;
+    }
+
+    public void setEventSubscriptionService(EventSubscriptionService eventSubscriptionService) {
+        m_eventSubscriptionService = eventSubscriptionService;
+    }
+}
@@ -31,6 +31,7 @@ package org.opennms.features.topology.plugins.topo.linkd.internal;
 import java.io.File;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -41,8 +42,7 @@ import java.util.Set;
 import javax.xml.bind.JAXBException;
 
 import org.apache.commons.lang.StringUtils;
-import org.opennms.core.criteria.restrictions.EqRestriction;
-import org.opennms.core.utils.LldpUtils.LldpPortIdSubType;
+import org.opennms.core.criteria.restrictions.InRestriction;
 import org.opennms.features.topology.api.GraphContainer;
 import org.opennms.features.topology.api.OperationContext;
 import org.opennms.features.topology.api.support.VertexHopGraphProvider;
@@ -58,6 +58,9 @@ import org.opennms.features.topology.api.topo.Vertex;
 import org.opennms.features.topology.api.topo.VertexRef;
 import org.opennms.features.topology.api.topo.WrappedGraph;
 import org.opennms.features.topology.api.topo.WrappedVertex;
+import org.opennms.features.topology.plugins.topo.linkd.internal.EnhancedLinkdTopologyCache.JoinedLink;
+import org.opennms.features.topology.plugins.topo.linkd.internal.EnhancedLinkdTopologyCache.LinkEnd;
+import org.opennms.features.topology.plugins.topo.linkd.internal.EnhancedLinkdTopologyCache.LldpLinkEnd;
 import org.opennms.netmgt.dao.api.BridgeBridgeLinkDao;
 import org.opennms.netmgt.dao.api.BridgeMacLinkDao;
 import org.opennms.netmgt.dao.api.CdpLinkDao;
@@ -66,11 +69,8 @@ import org.opennms.netmgt.dao.api.LldpElementDao;
 import org.opennms.netmgt.dao.api.LldpLinkDao;
 import org.opennms.netmgt.dao.api.OspfLinkDao;
 import org.opennms.netmgt.model.BridgeBridgeLink;
-import org.opennms.netmgt.model.LldpElement;
-import org.opennms.netmgt.model.LldpLink;
 import org.opennms.netmgt.model.OnmsNode;
 import org.opennms.netmgt.model.OnmsSnmpInterface;
-import org.opennms.netmgt.model.OspfLink;
 import org.opennms.netmgt.model.topology.BridgeMacTopologyLink;
 import org.opennms.netmgt.model.topology.CdpTopologyLink;
 import org.opennms.netmgt.model.topology.EdgeAlarmStatusSummary;
@@ -133,62 +133,24 @@ public class EnhancedLinkdTopologyProvider extends AbstractLinkdTopologyProvider
         }
     }
 
-    private class LldpLinkDetail extends LinkDetail<LldpLink> {
+    private class JoinedLinkDetail extends LinkDetail<Integer> {
 
+        private final String m_type;
+        private final Integer m_sourceIfIndex;
+        private final Integer m_targetIfIndex;
 
-        public LldpLinkDetail(String id, Vertex source, LldpLink sourceLink, Vertex target, LldpLink targetLink) {
-            super(id, source, sourceLink, target, targetLink);
-        }
-
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((getSourceLink() == null) ? 0 : getSourceLink().getId().hashCode()) + ((getTargetLink() == null) ? 0 : getTargetLink().getId().hashCode());
-            result = prime * result
-                    + ((getVertexNamespace() == null) ? 0 : getVertexNamespace().hashCode());
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if(obj instanceof LldpLinkDetail){
-                LldpLinkDetail objDetail = (LldpLinkDetail)obj;
-
-                return getId().equals(objDetail.getId());
-            } else  {
-                return false;
-            }
-
-        }
-
-        @Override
-        public Integer getSourceIfIndex() {
-            return getSourceLink().getLldpPortIfindex();
-        }
-
-        @Override
-        public Integer getTargetIfIndex() {
-            return getTargetLink().getLldpPortIfindex();
-        }
-
-        @Override
-        public String getType() {
-            return "LLDP";
-        }
-    }
-
-    private class OspfLinkDetail extends LinkDetail<OspfLink>{
-
-        public OspfLinkDetail(String id, Vertex source, OspfLink sourceLink, Vertex target, OspfLink targetLink) {
-            super(id, source, sourceLink, target, targetLink);
+        public JoinedLinkDetail(String type, String id, Vertex source, int sourceLinkId, Integer sourceIfIndex, Vertex target, int targetLinkId, Integer targetIfIndex) {
+            super(id, source, sourceLinkId, target, targetLinkId);
+            m_type = type;
+            m_sourceIfIndex = sourceIfIndex;
+            m_targetIfIndex = targetIfIndex;
         }
 
         @Override
         public int hashCode() {
             final int prime = 31;
             int result = 1;
-            result = prime * result + ((getSourceLink() == null) ? 0 : getSourceLink().getId().hashCode()) + ((getTargetLink() == null) ? 0 : getTargetLink().getId().hashCode());
+            result = prime * result + getSourceLink() + getTargetLink();
             result = prime * result
                     + ((getVertexNamespace() == null) ? 0 : getVertexNamespace().hashCode());
             return result;
@@ -196,8 +158,8 @@ public class EnhancedLinkdTopologyProvider extends AbstractLinkdTopologyProvider
 
         @Override
         public boolean equals(Object obj) {
-            if(obj instanceof OspfLinkDetail){
-                OspfLinkDetail objDetail = (OspfLinkDetail)obj;
+            if(obj instanceof JoinedLinkDetail){
+                JoinedLinkDetail objDetail = (JoinedLinkDetail)obj;
 
                 return getId().equals(objDetail.getId());
             } else  {
@@ -207,17 +169,17 @@ public class EnhancedLinkdTopologyProvider extends AbstractLinkdTopologyProvider
 
         @Override
         public Integer getSourceIfIndex() {
-            return getSourceLink().getOspfIfIndex();
+            return m_sourceIfIndex;
         }
 
         @Override
         public Integer getTargetIfIndex() {
-            return getTargetLink().getOspfIfIndex();
+            return m_targetIfIndex;
         }
 
         @Override
         public String getType() {
-            return "OSPF";
+            return m_type;
         }
     }
 
@@ -425,12 +387,15 @@ public class EnhancedLinkdTopologyProvider extends AbstractLinkdTopologyProvider
     private BridgeBridgeLinkDao m_bridgeBridgeLinkDao;
     private BridgeMacLinkDao m_bridgeMacLinkDao;
     private CdpLinkDao m_cdpLinkDao;
+    private EnhancedLinkdTopologyCache m_linkCache;
     public final static String LLDP_EDGE_NAMESPACE = TOPOLOGY_NAMESPACE_LINKD + "::LLDP";
     public final static String OSPF_EDGE_NAMESPACE = TOPOLOGY_NAMESPACE_LINKD + "::OSPF";
     public final static String ISIS_EDGE_NAMESPACE = TOPOLOGY_NAMESPACE_LINKD + "::ISIS";
     public final static String BRIDGE_EDGE_NAMESPACE = TOPOLOGY_NAMESPACE_LINKD + "::BRIDGE";
     public final static String CDP_EDGE_NAMESPACE = TOPOLOGY_NAMESPACE_LINKD + "::CDP";
 
+    private static final int NODE_BATCH_SIZE = 1000;
+
     public EnhancedLinkdTopologyProvider() { }
 
     /**
@@ -478,13 +443,14 @@ public class EnhancedLinkdTopologyProvider extends AbstractLinkdTopologyProvider
             LOG.error("Exception reset Container: "+e.getMessage(),e);
         }
 
+        final EnhancedLinkdTopologyCache linkCache = getLinkCacheForLoad();
         try{
-            getLldpLinks();
+            getLldpLinks(linkCache);
         } catch (Exception e){
             LOG.error("Exception getting Lldp link: "+e.getMessage(),e);
         }
         try{
-            getOspfLinks();
+            getOspfLinks(linkCache);
         } catch (Exception e){
             LOG.error("Exception getting Ospf link: "+e.getMessage(),e);
         }
@@ -565,117 +531,163 @@ public class EnhancedLinkdTopologyProvider extends AbstractLinkdTopologyProvider
 
     }
 
-    private void getOspfLinks() {
-        List<OspfLink> allLinks =  getOspfLinkDao().findAll();
-        Set<OspfLinkDetail> combinedLinkDetails = new HashSet<OspfLinkDetail>();
-        for(OspfLink sourceLink : allLinks) {
-            Vertex source = getVertex(getVertexNamespace(),sourceLink.getNode().getNodeId());
-            if (source == null) {
-                source = getDefaultVertex(sourceLink.getNode().getId(), sourceLink.getNode().getSysObjectId(), sourceLink.getNode().getLabel(), 
-                                          sourceLink.getNode().getSysLocation(), sourceLink.getNode().getType());
-                addVertices(source);
-            }
-            for (OspfLink targetLink : allLinks) {
-                if(sourceLink.getOspfRemIpAddr().equals(targetLink.getOspfIpAddr()) && targetLink.getOspfRemIpAddr().equals(sourceLink.getOspfIpAddr())) {
-                    Vertex target = getVertex(getVertexNamespace(),targetLink.getNode().getNodeId());
-                    if (target == null) {
-                        target = getDefaultVertex(targetLink.getNode().getId(), targetLink.getNode().getSysObjectId(), targetLink.getNode().getLabel(), 
-                                                  targetLink.getNode().getSysLocation(), targetLink.getNode().getType());
-                        addVertices(target);
-                    }
-                    OspfLinkDetail linkDetail = new OspfLinkDetail(
-                            Math.min(sourceLink.getId(), targetLink.getId()) + "|" + Math.max(sourceLink.getId(), targetLink.getId()),
-                            source, sourceLink, target, targetLink);
-                    combinedLinkDetails.add(linkDetail);
-                }
+    /**
+     * Returns the shared link cache when it is enabled, or a new one that
+     * only lives for this load.
+     */
+    private EnhancedLinkdTopologyCache getLinkCacheForLoad() {
+        if (m_linkCache != null && m_linkCache.isEnabled()) {
+            return m_linkCache;
+        }
+        final EnhancedLinkdTopologyCache linkCache = new EnhancedLinkdTopologyCache();
+        linkCache.setLldpLinkDao(m_lldpLinkDao);
+        linkCache.setLldpElementDao(m_lldpElementDao);
+        linkCache.setOspfLinkDao(m_ospfLinkDao);
+        linkCache.setSnmpInterfaceDao(getSnmpInterfaceDao());
+        return linkCache;
+    }
+
+    private void getOspfLinks(EnhancedLinkdTopologyCache linkCache) {
+        final List<JoinedLink<LinkEnd>> links = linkCache.getOspfLinks();
+        final Set<Integer> nodeIds = new HashSet<Integer>();
+        for (JoinedLink<LinkEnd> link : links) {
+            nodeIds.add(link.getSource().getNodeId());
+            if (link.getTarget() != null) {
+                nodeIds.add(link.getTarget().getNodeId());
             }
         }
+        final Map<Integer, OnmsNode> nodes = getNodes(nodeIds);
 
-        for (OspfLinkDetail linkDetail : combinedLinkDetails) {
-            AbstractEdge edge = connectVertices(linkDetail.getId(), linkDetail.getSource(), linkDetail.getTarget(), OSPF_EDGE_NAMESPACE);
-            edge.setTooltipText(getEdgeTooltipText(linkDetail));
+        for (JoinedLink<LinkEnd> link : links) {
+            final LinkEnd sourceLink = link.getSource();
+            final LinkEnd targetLink = link.getTarget();
+            final Vertex source = getNodeVertex(nodes.get(sourceLink.getNodeId()));
+            if (source == null || targetLink == null) {
+                continue;
+            }
+            final Vertex target = getNodeVertex(nodes.get(targetLink.getNodeId()));
+            if (target == null) {
+                continue;
+            }
+            addJoinedLinkEdge(linkCache, new JoinedLinkDetail("OSPF",
+                    Math.min(sourceLink.getId(), targetLink.getId()) + "|" + Math.max(sourceLink.getId(), targetLink.getId()),
+                    source, sourceLink.getId(), sourceLink.getIfIndex(), target, targetLink.getId(), targetLink.getIfIndex()),
+                    OSPF_EDGE_NAMESPACE);
         }
     }
 
-    private void getLldpLinks() {
-        List<LldpLink> allLinks = m_lldpLinkDao.findAll();
-        Set<LldpLinkDetail> combinedLinkDetails = new HashSet<LldpLinkDetail>();
-        Set<Integer> parsed = new HashSet<Integer>();
-        for (LldpLink sourceLink : allLinks) {
-            LOG.debug("loadtopology: parsing lldp link with id '{}' link '{}' ", sourceLink.getId(), sourceLink);
-            if (parsed.contains(sourceLink.getId())) {
-                LOG.debug("loadtopology: lldp link with id '{]' already parsed, skipping", sourceLink.getId());
-                continue;
+    private void getLldpLinks(EnhancedLinkdTopologyCache linkCache) {
+        final List<JoinedLink<LldpLinkEnd>> links = linkCache.getLldpLinks();
+        final Set<Integer> nodeIds = new HashSet<Integer>();
+        final Set<String> remSysnames = new HashSet<String>();
+        for (JoinedLink<LldpLinkEnd> link : links) {
+            nodeIds.add(link.getSource().getNodeId());
+            if (link.getTarget() != null) {
+                nodeIds.add(link.getTarget().getNodeId());
+            } else if (link.getSource().getRemSysname() != null) {
+                remSysnames.add(link.getSource().getRemSysname());
             }
-            parsed.add(sourceLink.getId());
-            OnmsNode sourceNode = sourceLink.getNode();
-            Vertex source = getVertex(getVertexNamespace(), sourceNode.getNodeId());
+        }
+        // links without a mutual link are drawn to the node with the remote sysName, if there is only one
+        final Map<String, Integer> nodeIdsBySysname = getNodeIdsBySysname(remSysnames);
+        nodeIds.addAll(nodeIdsBySysname.values());
+        final Map<Integer, OnmsNode> nodes = getNodes(nodeIds);
+
+        for (JoinedLink<LldpLinkEnd> link : links) {
+            final LldpLinkEnd sourceLink = link.getSource();
+            final Vertex source = getNodeVertex(nodes.get(sourceLink.getNodeId()));
             if (source == null) {
-                source = getDefaultVertex(sourceNode.getId(),
-                                      sourceNode.getSysObjectId(),
-                                      sourceNode.getLabel(),
-                                      sourceNode.getSysLocation(),
-                                      sourceNode.getType());
-                addVertices(source);
+                continue;
             }
+            final Vertex target;
+            final int targetLinkId;
+            final Integer targetIfIndex;
+            if (link.getTarget() != null) {
+                target = getNodeVertex(nodes.get(link.getTarget().getNodeId()));
+                targetLinkId = link.getTarget().getId();
+                targetIfIndex = link.getTarget().getIfIndex();
+            } else {
+                final Integer targetNodeId = nodeIdsBySysname.get(sourceLink.getRemSysname());
+                target = targetNodeId == null ? null : getNodeVertex(nodes.get(targetNodeId));
+                targetLinkId = -sourceLink.getId();
+                targetIfIndex = sourceLink.getRemIfIndex();
+                LOG.debug("loadtopology: found lldp link using lldp rem sysname: '{}' and '{}'", sourceLink.getId(), targetNodeId);
+            }
+            if (target == null) {
+                LOG.debug("loadtopology: cannot found target node for link: '{}'", sourceLink.getId());
+                continue;
+            }
+            addJoinedLinkEdge(linkCache, new JoinedLinkDetail("LLDP",
+                    Math.min(sourceLink.getId(), targetLinkId) + "|" + Math.max(sourceLink.getId(), targetLinkId),
+                    source, sourceLink.getId(), sourceLink.getIfIndex(), target, targetLinkId, targetIfIndex),
+                    LLDP_EDGE_NAMESPACE);
+        }
+    }
 
-            LldpElement sourceElement = sourceNode.getLldpElement();
-            LldpLink targetLink = null;
-            for (LldpLink link : allLinks) {
-                LOG.debug("loadtopology: parsing lldp link with id '{}' link '{}' ", link.getId(), link);
-                if (parsed.contains(link.getId())) {
-                    LOG.debug("loadtopology: lldp link with id '{]' already parsed, skipping", link.getId());
-                    continue;
-                }
-                LldpElement element = link.getNode().getLldpElement();
-                //Compare the remote data to the targetNode element data
-                if (!sourceLink.getLldpRemChassisId().equals(element.getLldpChassisId()) || !link.getLldpRemChassisId().equals(sourceElement.getLldpChassisId())) 
-                    continue;
-                boolean bool1 = sourceLink.getLldpRemPortId().equals(link.getLldpPortId()) && link.getLldpRemPortId().equals(sourceLink.getLldpPortId());
-                boolean bool2 = sourceLink.getLldpRemPortDescr().equals(link.getLldpPortDescr()) && link.getLldpRemPortDescr().equals(sourceLink.getLldpPortDescr());
-                boolean bool3 = sourceLink.getLldpRemPortIdSubType() == link.getLldpPortIdSubType() && link.getLldpRemPortIdSubType() == sourceLink.getLldpPortIdSubType();
-
-                if (bool1 && bool2 && bool3) {
-                    targetLink=link;
-                    parsed.add(targetLink.getId());
-                    LOG.debug("loadtopology: found lldp mutual link: '{}' and '{}' ", sourceLink,targetLink);
-                    break;
+    private void addJoinedLinkEdge(EnhancedLinkdTopologyCache linkCache, JoinedLinkDetail linkDetail, String edgeNamespace) {
+        AbstractEdge edge = connectVertices(linkDetail.getId(), linkDetail.getSource(), linkDetail.getTarget(), edgeNamespace);
+        edge.setTooltipText(getEdgeTooltipText(linkDetail,
+                linkCache.getSnmpInterface(linkDetail.getSource().getNodeID(), linkDetail.getSourceIfIndex()),
+                linkCache.getSnmpInterface(linkDetail.getTarget().getNodeID(), linkDetail.getTargetIfIndex())));
+    }
+
+    private Vertex getNodeVertex(OnmsNode node) {
+        if (node == null) {
+            return null;
+        }
+        Vertex vertex = getVertex(getVertexNamespace(), node.getNodeId());
+        if (vertex == null) {
+            vertex = getDefaultVertex(node.getId(), node.getSysObjectId(), node.getLabel(), node.getSysLocation(), node.getType());
+            addVertices(vertex);
+        }
+        return vertex;
+    }
+
+    /**
+     * Fetches the given nodes with one query for every {@link #NODE_BATCH_SIZE}
+     * of them.
+     */
+    private Map<Integer, OnmsNode> getNodes(Collection<Integer> nodeIds) {
+        final Map<Integer, OnmsNode> nodes = new HashMap<Integer, OnmsNode>();
+        for (List<Integer> batch : Lists.partition(new ArrayList<Integer>(nodeIds), NODE_BATCH_SIZE)) {
+            final List<OnmsNode> matching = m_nodeDao.findMatching(new org.opennms.core.criteria.Criteria(OnmsNode.class).addRestriction(new InRestriction("id", batch)));
+            if (matching != null) {
+                for (OnmsNode node : matching) {
+                    nodes.put(node.getId(), node);
                 }
             }
-            
-            if (targetLink == null) {
-                final org.opennms.core.criteria.Criteria criteria = new org.opennms.core.criteria.Criteria(OnmsNode.class).addRestriction(new EqRestriction("sysName", sourceLink.getLldpRemSysname()));
-                List<OnmsNode> nodes = m_nodeDao.findMatching(criteria);
-                if (nodes.size() == 1) {
-                    targetLink = reverseLldpLink(nodes.get(0), sourceLink.getNode().getLldpElement(), sourceLink); 
-                    LOG.debug("loadtopology: found lldp link using lldp rem sysname: '{}' and '{}'", sourceLink, targetLink);
+        }
+        for (Integer nodeId : nodeIds) {
+            if (!nodes.containsKey(nodeId)) {
+                final OnmsNode node = m_nodeDao.get(nodeId);
+                if (node != null) {
+                    nodes.put(nodeId, node);
                 }
             }
-            
-            if (targetLink == null) {
-                LOG.debug("loadtopology: cannot found target node for link: '{}'", sourceLink);
+        }
+        return nodes;
+    }
+
+    /**
+     * Returns the ids of the nodes with the given sysNames, leaving out the
+     * sysNames that more than one node has.
+     */
+    private Map<String, Integer> getNodeIdsBySysname(Collection<String> sysNames) {
+        final Map<String, Integer> nodeIds = new HashMap<String, Integer>();
+        final Set<String> duplicates = new HashSet<String>();
+        for (List<String> batch : Lists.partition(new ArrayList<String>(sysNames), NODE_BATCH_SIZE)) {
+            final List<OnmsNode> matching = m_nodeDao.findMatching(new org.opennms.core.criteria.Criteria(OnmsNode.class).addRestriction(new InRestriction("sysName", batch)));
+            if (matching == null) {
                 continue;
             }
-                
-            OnmsNode targetNode = targetLink.getNode();
-            Vertex target = getVertex(getVertexNamespace(), targetNode.getNodeId());
-            if (target == null) {
-                target = getDefaultVertex(targetNode.getId(),
-                                          targetNode.getSysObjectId(),
-                                          targetNode.getLabel(),
-                                        targetNode.getSysLocation(),
-                                        targetNode.getType());
-                addVertices(target);
+            for (OnmsNode node : matching) {
+                if (nodeIds.put(node.getSysName(), node.getId()) != null) {
+                    duplicates.add(node.getSysName());
+                }
             }
-            combinedLinkDetails.add(new LldpLinkDetail(Math.min(sourceLink.getId(), targetLink.getId()) + "|" + Math.max(sourceLink.getId(), targetLink.getId()),
-                                                       source, sourceLink, target, targetLink));
-
-        }
-
-        for (LldpLinkDetail linkDetail : combinedLinkDetails) {
-            AbstractEdge edge = connectVertices(linkDetail.getId(), linkDetail.getSource(), linkDetail.getTarget(), LLDP_EDGE_NAMESPACE);
-            edge.setTooltipText(getEdgeTooltipText(linkDetail));
         }
+        nodeIds.keySet().removeAll(duplicates);
+        return nodeIds;
     }
 
     private void getCdpLinks() {
@@ -1041,12 +1053,16 @@ public class EnhancedLinkdTopologyProvider extends AbstractLinkdTopologyProvider
     }
 
     private String getEdgeTooltipText(LinkDetail<?> linkDetail) {
+        return getEdgeTooltipText(linkDetail,
+                getByNodeIdAndIfIndex(linkDetail.getSourceIfIndex(), linkDetail.getSource()),
+                getByNodeIdAndIfIndex(linkDetail.getTargetIfIndex(), linkDetail.getTarget()));
+    }
+
+    private String getEdgeTooltipText(LinkDetail<?> linkDetail, OnmsSnmpInterface sourceInterface, OnmsSnmpInterface targetInterface) {
 
         StringBuffer tooltipText = new StringBuffer();
         Vertex source = linkDetail.getSource();
         Vertex target = linkDetail.getTarget();
-        OnmsSnmpInterface sourceInterface = getByNodeIdAndIfIndex(linkDetail.getSourceIfIndex(), source);
-        OnmsSnmpInterface targetInterface = getByNodeIdAndIfIndex(linkDetail.getTargetIfIndex(), target);
 
         tooltipText.append(HTML_TOOLTIP_TAG_OPEN);
         if (sourceInterface != null && targetInterface != null
@@ -1156,6 +1172,14 @@ public class EnhancedLinkdTopologyProvider extends AbstractLinkdTopologyProvider
         m_cdpLinkDao = cdpLinkDao;
     }
 
+    public EnhancedLinkdTopologyCache getLinkCache() {
+        return m_linkCache;
+    }
+
+    public void setLinkCache(EnhancedLinkdTopologyCache linkCache) {
+        m_linkCache = linkCache;
+    }
+
 
     //Search Provider methods
     @Override
@@ -1277,35 +1301,4 @@ public class EnhancedLinkdTopologyProvider extends AbstractLinkdTopologyProvider
         }
     }
 
-    private LldpLink reverseLldpLink(OnmsNode sourcenode, LldpElement element, LldpLink link) {
-        LldpLink reverseLink = new LldpLink();
-        reverseLink.setId(-link.getId());
-        reverseLink.setNode(sourcenode);
-        
-        reverseLink.setLldpLocalPortNum(0);
-        reverseLink.setLldpPortId(link.getLldpRemPortId());
-        reverseLink.setLldpPortIdSubType(link.getLldpRemPortIdSubType());
-        reverseLink.setLldpPortDescr(link.getLldpRemPortDescr());
-        if (link.getLldpRemPortIdSubType() == LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL) {
-            try {
-                reverseLink.setLldpPortIfindex(Integer.getInteger(link.getLldpRemPortId()));
-            } catch (Exception e) {
-                LOG.debug("reverseLldpLink: cannot create ifindex from  LldpRemPortId '{}'", link.getLldpRemPortId());
-            }
-        }
-
-        reverseLink.setLldpRemChassisId(element.getLldpChassisId());
-        reverseLink.setLldpRemChassisIdSubType(element.getLldpChassisIdSubType());
-        reverseLink.setLldpRemSysname(element.getLldpSysname());
-        
-        reverseLink.setLldpRemPortId(link.getLldpPortId());
-        reverseLink.setLldpRemPortIdSubType(link.getLldpPortIdSubType());
-        reverseLink.setLldpRemPortDescr(link.getLldpPortDescr());
-        
-        reverseLink.setLldpLinkCreateTime(link.getLldpLinkCreateTime());
-        reverseLink.setLldpLinkLastPollTime(link.getLldpLinkLastPollTime());
-        
-        return reverseLink;
-    }
-
 }
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.features.topology.plugins.topo.linkd.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.core.utils.LldpUtils.LldpChassisIdSubType;
+import org.opennms.core.utils.LldpUtils.LldpPortIdSubType;
+import org.opennms.features.topology.plugins.topo.linkd.internal.EnhancedLinkdTopologyCache.JoinedLink;
+import org.opennms.features.topology.plugins.topo.linkd.internal.EnhancedLinkdTopologyCache.LinkEnd;
+import org.opennms.features.topology.plugins.topo.linkd.internal.EnhancedLinkdTopologyCache.LinkIndex;
+import org.opennms.features.topology.plugins.topo.linkd.internal.EnhancedLinkdTopologyCache.LldpLinkEnd;
+import org.opennms.netmgt.dao.api.LldpElementDao;
+import org.opennms.netmgt.dao.api.LldpLinkDao;
+import org.opennms.netmgt.dao.api.OspfLinkDao;
+import org.opennms.netmgt.model.LldpElement;
+import org.opennms.netmgt.model.LldpLink;
+import org.opennms.netmgt.model.OnmsNode;
+import org.opennms.netmgt.model.OspfLink;
+import org.opennms.netmgt.model.events.EventBuilder;
+
+public class EnhancedLinkdTopologyCacheTest {
+
+    @Test
+    public void testJoinsMutualLinks() {
+        final LinkIndex<LinkEnd> index = new LinkIndex<LinkEnd>();
+        index.replace(Collections.<Integer>emptySet(), Arrays.asList(
+                new LinkEnd(4, 2, 20, "b1", "a1"),
+                new LinkEnd(1, 1, 10, "a1", "b1"),
+                new LinkEnd(2, 1, 11, "a2", "c1"),
+                new LinkEnd(3, 3, 30, "c1", "x1")));
+
+        final List<JoinedLink<LinkEnd>> links = index.getLinks();
+        assertEquals(3, links.size());
+        assertEquals(Integer.valueOf(1), links.get(0).getSource().getId());
+        assertEquals(Integer.valueOf(4), links.get(0).getTarget().getId());
+        // the remote port of link 3 isn't the local port of link 2
+        assertEquals(Integer.valueOf(2), links.get(1).getSource().getId());
+        assertNull(links.get(1).getTarget());
+        assertEquals(Integer.valueOf(3), links.get(2).getSource().getId());
+        assertNull(links.get(2).getTarget());
+    }
+
+    @Test
+    public void testReplacesLinksOfNode() {
+        final LinkIndex<LinkEnd> index = new LinkIndex<LinkEnd>();
+        index.replace(Collections.<Integer>emptySet(), Arrays.asList(
+                new LinkEnd(1, 1, 10, "a1", "b1"),
+                new LinkEnd(2, 2, 20, "b1", "a1")));
+        assertEquals(1, index.getLinks().size());
+
+        index.replace(Collections.singleton(2), Collections.<LinkEnd>emptyList());
+        assertEquals(1, index.getLinks().size());
+        assertNull(index.getLinks().get(0).getTarget());
+
+        index.replace(Collections.singleton(2), Arrays.asList(new LinkEnd(5, 2, 20, "b1", "a1")));
+        assertEquals(1, index.getLinks().size());
+        assertEquals(Integer.valueOf(5), index.getLinks().get(0).getTarget().getId());
+    }
+
+    @Test
+    public void testUpdatesLinksOfChangedNodes() {
+        final OspfLink link1 = createOspfLink(1, 1, "10.0.0.1", "10.0.0.2");
+        final OspfLink link2 = createOspfLink(2, 2, "10.0.0.2", "10.0.0.1");
+
+        final OspfLinkDao ospfLinkDao = EasyMock.createNiceMock(OspfLinkDao.class);
+        EasyMock.expect(ospfLinkDao.findAll()).andReturn(Arrays.asList(link1)).once();
+        EasyMock.expect(ospfLinkDao.findByNodeId(2)).andReturn(Arrays.asList(link2)).once();
+        EasyMock.replay(ospfLinkDao);
+
+        final EnhancedLinkdTopologyCache cache = new EnhancedLinkdTopologyCache();
+        cache.setEnabled(true);
+        cache.setOspfLinkDao(ospfLinkDao);
+
+        assertEquals(1, cache.getOspfLinks().size());
+        assertNull(cache.getOspfLinks().get(0).getTarget());
+
+        final EventBuilder builder = new EventBuilder(EnhancedLinkdTopologyCache.NODE_LINK_DISCOVERY_COMPLETED_EVENT_UEI, "EnhancedLinkd");
+        builder.setNodeid(2);
+        builder.addParam("runnable", EnhancedLinkdTopologyCache.OSPF_LINK_DISCOVERY);
+        cache.onEvent(builder.getEvent());
+
+        final List<JoinedLink<LinkEnd>> links = cache.getOspfLinks();
+        assertEquals(1, links.size());
+        assertEquals(Integer.valueOf(1), links.get(0).getSource().getId());
+        assertEquals(Integer.valueOf(2), links.get(0).getTarget().getId());
+        EasyMock.verify(ospfLinkDao);
+    }
+
+    @Test
+    public void testJoinsLldpLinks() {
+        final OnmsNode node1 = new OnmsNode();
+        node1.setId(1);
+        final OnmsNode node2 = new OnmsNode();
+        node2.setId(2);
+        // the dao only has the element of node 1, the one of node 2 comes with the node
+        node2.setLldpElement(new LldpElement(node2, "chassis2", "node2", LldpChassisIdSubType.LLDP_CHASSISID_SUBTYPE_LOCAL));
+
+        final LldpLinkDao lldpLinkDao = EasyMock.createNiceMock(LldpLinkDao.class);
+        EasyMock.expect(lldpLinkDao.findAll()).andReturn(Arrays.asList(
+                createLldpLink(1, node1, "1", "eth1", "chassis2", "7", LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL, "ge7"),
+                createLldpLink(2, node2, "7", "ge7", "chassis1", "1", LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL, "eth1"),
+                // the port descriptions differ
+                createLldpLink(3, node1, "2", "eth2", "chassis2", "8", LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL, "ge8 uplink"),
+                createLldpLink(4, node2, "8", "ge8", "chassis1", "2", LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL, "eth2"),
+                // the port id subtypes differ
+                createLldpLink(5, node1, "3", "eth3", "chassis2", "9", LldpPortIdSubType.LLDP_PORTID_SUBTYPE_INTERFACENAME, "ge9"),
+                createLldpLink(6, node2, "9", "ge9", "chassis1", "3", LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL, "eth3"),
+                // a local port id that isn't an ifIndex
+                createLldpLink(7, node1, "4", "eth4", "chassis3", "Gi0/1", LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL, "Gi0/1"))).once();
+        final LldpElementDao lldpElementDao = EasyMock.createNiceMock(LldpElementDao.class);
+        EasyMock.expect(lldpElementDao.findAll()).andReturn(Arrays.asList(
+                new LldpElement(node1, "chassis1", "node1", LldpChassisIdSubType.LLDP_CHASSISID_SUBTYPE_LOCAL))).once();
+        EasyMock.replay(lldpLinkDao, lldpElementDao);
+
+        final EnhancedLinkdTopologyCache cache = new EnhancedLinkdTopologyCache();
+        cache.setLldpLinkDao(lldpLinkDao);
+        cache.setLldpElementDao(lldpElementDao);
+
+        final List<JoinedLink<LldpLinkEnd>> links = cache.getLldpLinks();
+        assertEquals(6, links.size());
+        assertEquals(Integer.valueOf(1), links.get(0).getSource().getId());
+        assertEquals(Integer.valueOf(2), links.get(0).getTarget().getId());
+        for (int i = 1; i < links.size(); i++) {
+            assertEquals(Integer.valueOf(i + 2), links.get(i).getSource().getId());
+            assertNull(links.get(i).getTarget());
+        }
+
+        // the remote port id is the ifIndex of the remote port only if its subtype is local
+        assertEquals(Integer.valueOf(7), links.get(0).getSource().getRemIfIndex());
+        assertEquals(Integer.valueOf(1), links.get(0).getTarget().getRemIfIndex());
+        assertEquals(Integer.valueOf(8), links.get(1).getSource().getRemIfIndex());
+        assertNull(links.get(3).getSource().getRemIfIndex());
+        assertNull(links.get(5).getSource().getRemIfIndex());
+        assertEquals("node2", links.get(1).getSource().getRemSysname());
+        EasyMock.verify(lldpLinkDao, lldpElementDao);
+    }
+
+    private static LldpLink createLldpLink(int id, OnmsNode node, String portId, String portDescr, String remChassisId, String remPortId, LldpPortIdSubType remPortIdSubType, String remPortDescr) {
+        final LldpLink link = new LldpLink(node, id, id * 10, portId, portDescr, LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL,
+                remChassisId, remChassisId.replace("chassis", "node"), LldpChassisIdSubType.LLDP_CHASSISID_SUBTYPE_LOCAL,
+                remPortId, remPortIdSubType, remPortDescr);
+        link.setId(id);
+        return link;
+    }
+
+    private static OspfLink createOspfLink(int id, int nodeId, String ipAddr, String remIpAddr) {
+        final OnmsNode node = new OnmsNode();
+        node.setId(nodeId);
+        final OspfLink link = new OspfLink();
+        link.setId(id);
+        link.setNode(node);
+        link.setOspfIpAddr(InetAddressUtils.addr(ipAddr));
+        link.setOspfRemIpAddr(InetAddressUtils.addr(remIpAddr));
+        return link;
+    }
+}
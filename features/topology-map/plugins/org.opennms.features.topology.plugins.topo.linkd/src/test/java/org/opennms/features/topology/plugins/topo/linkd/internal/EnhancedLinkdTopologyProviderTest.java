@@ -35,6 +35,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -48,8 +49,11 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.opennms.core.criteria.Criteria;
 import org.opennms.core.test.MockLogAppender;
 import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.core.utils.LldpUtils.LldpChassisIdSubType;
+import org.opennms.core.utils.LldpUtils.LldpPortIdSubType;
 import org.opennms.features.topology.api.Constants;
 import org.opennms.features.topology.api.OperationContext;
 import org.opennms.features.topology.api.topo.AbstractVertex;
@@ -67,13 +71,18 @@ import org.opennms.features.topology.api.topo.WrappedVertex;
 import org.opennms.netmgt.dao.api.BridgeBridgeLinkDao;
 import org.opennms.netmgt.dao.api.BridgeMacLinkDao;
 import org.opennms.netmgt.dao.api.CdpLinkDao;
+import org.opennms.netmgt.dao.api.IpInterfaceDao;
 import org.opennms.netmgt.dao.api.IsIsLinkDao;
 import org.opennms.netmgt.dao.api.LldpLinkDao;
+import org.opennms.netmgt.dao.api.NodeDao;
 import org.opennms.netmgt.dao.api.OspfLinkDao;
+import org.opennms.netmgt.dao.api.SnmpInterfaceDao;
 import org.opennms.netmgt.model.BridgeBridgeLink;
 import org.opennms.netmgt.model.FilterManager;
 import org.opennms.netmgt.model.LldpLink;
+import org.opennms.netmgt.model.OnmsIpInterface;
 import org.opennms.netmgt.model.OnmsNode;
+import org.opennms.netmgt.model.OnmsSnmpInterface;
 import org.opennms.netmgt.model.OspfLink;
 import org.opennms.netmgt.model.topology.BridgeMacTopologyLink;
 import org.opennms.netmgt.model.topology.CdpTopologyLink;
@@ -523,6 +532,76 @@ public class EnhancedLinkdTopologyProviderTest {
         Assert.assertEquals(topologyProvider.getVertex(namespace, "g2").getParent(), topologyProvider.getVertex(namespace, "g1"));
     }
 
+    /**
+     * LLDP links that the remote node didn't report are drawn to the node
+     * with the remote sysName, unless more than one node has that sysName.
+     */
+    @Test
+    public void testLldpLinksToRemoteSysname() throws MalformedURLException, JAXBException {
+        final OnmsNode node1 = createNode(1, "sysName1");
+        final OnmsNode node2 = createNode(2, "sysName2");
+        final OnmsNode node3 = createNode(3, "duplicate");
+        final OnmsNode node4 = createNode(4, "duplicate");
+
+        final LldpLinkDao lldpLinkDao = EasyMock.createNiceMock(LldpLinkDao.class);
+        EasyMock.expect(lldpLinkDao.findAll()).andReturn(Arrays.asList(
+                createLldpLink(10, node1, "sysName2", "5"),
+                createLldpLink(11, node1, "duplicate", "6"),
+                createLldpLink(12, node1, "unknown", "7"))).anyTimes();
+        final OspfLinkDao ospfLinkDao = EasyMock.createNiceMock(OspfLinkDao.class);
+        EasyMock.expect(ospfLinkDao.findAll()).andReturn(Collections.<OspfLink>emptyList()).anyTimes();
+        // the nodes are looked up both by id and by sysName
+        final NodeDao nodeDao = EasyMock.createNiceMock(NodeDao.class);
+        EasyMock.expect(nodeDao.findMatching(EasyMock.anyObject(Criteria.class))).andReturn(Arrays.asList(node1, node2, node3, node4)).anyTimes();
+        final IpInterfaceDao ipInterfaceDao = EasyMock.createNiceMock(IpInterfaceDao.class);
+        EasyMock.expect(ipInterfaceDao.findByNodeId(EasyMock.anyObject(Integer.class))).andReturn(Collections.<OnmsIpInterface>emptyList()).anyTimes();
+        final SnmpInterfaceDao snmpInterfaceDao = EasyMock.createNiceMock(SnmpInterfaceDao.class);
+        final OnmsSnmpInterface snmpInterface = new OnmsSnmpInterface(node2, 5);
+        snmpInterface.setIfName("ge5");
+        EasyMock.expect(snmpInterfaceDao.findByNodeIdAndIfIndex(2, 5)).andReturn(snmpInterface).anyTimes();
+        EasyMock.replay(lldpLinkDao, ospfLinkDao, nodeDao, ipInterfaceDao, snmpInterfaceDao);
+
+        final EnhancedLinkdTopologyProvider topologyProvider = new EnhancedLinkdTopologyProvider();
+        topologyProvider.setLldpLinkDao(lldpLinkDao);
+        topologyProvider.setOspfLinkDao(ospfLinkDao);
+        topologyProvider.setIsisLinkDao(m_isisLinkDao);
+        topologyProvider.setBridgeBridgeLinkDao(m_bridgeBridgeLinkDao);
+        topologyProvider.setBridgeMacLinkDao(m_bridgeMacLinkDao);
+        topologyProvider.setCdpLinkDao(m_cdpLinkDao);
+        topologyProvider.setNodeDao(nodeDao);
+        topologyProvider.setIpInterfaceDao(ipInterfaceDao);
+        topologyProvider.setSnmpInterfaceDao(snmpInterfaceDao);
+        topologyProvider.setFilterManager(new TestFilterManager());
+        topologyProvider.setConfigurationFile(new File("target/no-such-graph.xml").getAbsolutePath());
+        topologyProvider.load(null);
+
+        assertEquals(2, topologyProvider.getVertices().size());
+        assertEquals(1, topologyProvider.getEdges().size());
+        final Edge edge = topologyProvider.getEdges().get(0);
+        assertEquals(EnhancedLinkdTopologyProvider.LLDP_EDGE_NAMESPACE, edge.getNamespace());
+        assertEquals("-10|10", edge.getId());
+        assertEquals("1", edge.getSource().getVertex().getId());
+        assertEquals("2", edge.getTarget().getVertex().getId());
+        // the ifIndex of the remote port comes from its port id
+        assertTrue(edge.getTooltipText(), edge.getTooltipText().contains("node2:ge5"));
+    }
+
+    private static OnmsNode createNode(int id, String sysName) {
+        final OnmsNode node = new OnmsNode();
+        node.setId(id);
+        node.setLabel("node" + id);
+        node.setSysName(sysName);
+        return node;
+    }
+
+    private static LldpLink createLldpLink(int id, OnmsNode node, String remSysname, String remPortId) {
+        final LldpLink link = new LldpLink(node, id, id, "port" + id, "port" + id, LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL,
+                remSysname + "ChassisId", remSysname, LldpChassisIdSubType.LLDP_CHASSISID_SUBTYPE_LOCAL,
+                remPortId, LldpPortIdSubType.LLDP_PORTID_SUBTYPE_LOCAL, "port" + remPortId);
+        link.setId(id);
+        return link;
+    }
+
     // checks that the vertex and the node are equal
     private void check(Vertex child, OnmsNode node, Vertex parent) {
         Assert.assertNotNull(child);
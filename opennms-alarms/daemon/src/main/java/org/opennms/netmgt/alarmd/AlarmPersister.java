@@ -28,6 +28,8 @@
 
 package org.opennms.netmgt.alarmd;
 
+import java.util.List;
+
 import org.opennms.netmgt.model.OnmsAlarm;
 import org.opennms.netmgt.xml.event.Event;
 import org.springframework.transaction.annotation.Transactional;
@@ -49,4 +51,14 @@ public interface AlarmPersister {
     @Transactional
     public abstract OnmsAlarm persist(Event event);
 
+    /**
+     * Persists several events that share a reduction key, in order, in a
+     * single transaction so that the alarm is only written once.
+     *
+     * @param events the events, all with the same reduction key
+     * @return the alarm the events were reduced to, or null if none of them creates an alarm
+     */
+    @Transactional
+    public abstract OnmsAlarm persist(List<Event> events);
+
 }
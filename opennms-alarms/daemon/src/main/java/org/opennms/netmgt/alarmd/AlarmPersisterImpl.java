@@ -28,6 +28,15 @@
 
 package org.opennms.netmgt.alarmd;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.opennms.netmgt.dao.api.AlarmDao;
 import org.opennms.netmgt.dao.api.EventDao;
 import org.opennms.netmgt.model.OnmsAlarm;
@@ -37,20 +46,70 @@ import org.opennms.netmgt.xml.event.Event;
 import org.opennms.netmgt.xml.event.UpdateField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.Assert;
 
 /**
  * Singleton to persist OnmsAlarms.
  *
+ * Alarms are looked up through a {@link ReductionKeyCache} of reduction keys
+ * to alarm IDs before falling back to a query by reduction key. The size of
+ * the cache is set with the <code>org.opennms.alarmd.reductionKeyCacheSize</code>
+ * system property.
+ *
  * @author <a href="mailto:david@opennms.org">David Hustace</a>
  * @version $Id: $
  */
-public class AlarmPersisterImpl implements AlarmPersister {
+public class AlarmPersisterImpl implements AlarmPersister, AlarmPersisterImplMBean, InitializingBean, DisposableBean {
     private static final Logger LOG = LoggerFactory.getLogger(AlarmPersisterImpl.class);
 
     private AlarmDao m_alarmDao;
     private EventDao m_eventDao;
 
+    private final ReductionKeyCache m_reductionKeyCache = new ReductionKeyCache(Integer.getInteger("org.opennms.alarmd.reductionKeyCacheSize", 10000));
+
+    private final AtomicLong m_reductionsCoalesced = new AtomicLong();
+    private final AtomicLong m_coalescedGroups = new AtomicLong();
+
+    private ObjectName m_objectName;
+
+    /**
+     * <p>afterPropertiesSet</p>
+     */
+    @Override
+    public void afterPropertiesSet() {
+        Assert.state(m_alarmDao != null, "alarmDao property must be set");
+        Assert.state(m_eventDao != null, "eventDao property must be set");
+
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName("OpenNMS:Name=Alarmd,Type=AlarmPersister");
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+                m_objectName = objectName;
+            }
+        } catch (final JMException e) {
+            LOG.warn("Unable to register alarm persister statistics MBean", e);
+        }
+    }
+
+    /**
+     * <p>destroy</p>
+     */
+    @Override
+    public void destroy() {
+        if (m_objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_objectName);
+            } catch (final JMException e) {
+                LOG.debug("Unable to unregister alarm persister statistics MBean {}", m_objectName, e);
+            }
+            m_objectName = null;
+        }
+        m_reductionKeyCache.clear();
+    }
+
     /** {@inheritDoc} 
      * @return */
     @Override
@@ -60,10 +119,60 @@ public class AlarmPersisterImpl implements AlarmPersister {
         }
         LOG.debug("process: {}; nodeid: {}; ipaddr: {}; serviceid: {}", event.getUei(), event.getNodeid(), event.getInterface(), event.getService());
 
-        return addOrReduceEventAsAlarm(event);
+        return addOrReduceEventAsAlarm(event, true);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public OnmsAlarm persist(List<Event> events) {
+        final List<Event> toPersist = new ArrayList<Event>(events.size());
+        for (final Event event : events) {
+            if (checkEventSanityAndDoWeProcess(event)) {
+                toPersist.add(event);
+            }
+        }
+        if (toPersist.size() > 1) {
+            m_reductionsCoalesced.addAndGet(toPersist.size() - 1);
+            m_coalescedGroups.incrementAndGet();
+        }
+
+        // Within one session the alarm is only loaded once and written once,
+        // when the transaction is flushed. The older events only need to be
+        // cleaned up after the last reduction.
+        OnmsAlarm alarm = null;
+        for (int i = 0; i < toPersist.size(); i++) {
+            final Event event = toPersist.get(i);
+            LOG.debug("process: {}; nodeid: {}; ipaddr: {}; serviceid: {}", event.getUei(), event.getNodeid(), event.getInterface(), event.getService());
+            alarm = addOrReduceEventAsAlarm(event, i == toPersist.size() - 1);
+        }
+        return alarm;
+    }
+
+    /**
+     * Finds the alarm for the reduction key, checking the
+     * {@link ReductionKeyCache} before querying by reduction key.
+     */
+    private OnmsAlarm findByReductionKey(final String reductionKey) {
+        final Integer alarmId = m_reductionKeyCache.get(reductionKey);
+        if (alarmId != null) {
+            final OnmsAlarm alarm = m_alarmDao.get(alarmId);
+            // The alarm may have been deleted or re-keyed by Vacuumd or the UI
+            if (alarm != null && reductionKey.equals(alarm.getReductionKey())) {
+                m_reductionKeyCache.hit();
+                return alarm;
+            }
+            m_reductionKeyCache.evict(reductionKey);
+        }
+        m_reductionKeyCache.miss();
+
+        final OnmsAlarm alarm = m_alarmDao.findByReductionKey(reductionKey);
+        if (alarm != null) {
+            m_reductionKeyCache.put(reductionKey, alarm.getId());
+        }
+        return alarm;
     }
 
-    private OnmsAlarm addOrReduceEventAsAlarm(Event event) {
+    private OnmsAlarm addOrReduceEventAsAlarm(Event event, boolean autoClean) {
         //TODO: Understand why we use Assert
         Assert.notNull(event, "Incoming event was null, aborting"); 
         Assert.isTrue(event.getDbid() > 0, "Incoming event has an illegal dbid (" + event.getDbid() + "), aborting");
@@ -75,7 +184,7 @@ public class AlarmPersisterImpl implements AlarmPersister {
     
         String reductionKey = event.getAlarmData().getReductionKey();
         LOG.debug("addOrReduceEventAsAlarm: looking for existing reduction key: {}", reductionKey);
-        OnmsAlarm alarm = m_alarmDao.findByReductionKey(reductionKey);
+        OnmsAlarm alarm = findByReductionKey(reductionKey);
     
         if (alarm == null) {
             LOG.debug("addOrReduceEventAsAlarm: reductionKey:{} not found, instantiating new alarm", reductionKey);
@@ -84,13 +193,14 @@ public class AlarmPersisterImpl implements AlarmPersister {
             //FIXME: this should be a cascaded save
             m_alarmDao.save(alarm);
             m_eventDao.saveOrUpdate(e);
+            m_reductionKeyCache.put(reductionKey, alarm.getId());
         } else {
             LOG.debug("addOrReduceEventAsAlarm: reductionKey:{} found, reducing event to existing alarm: {}", reductionKey, alarm.getIpAddr());
             reduceEvent(e, alarm, event);
             m_alarmDao.update(alarm);
             m_eventDao.update(e);
     
-            if (event.getAlarmData().isAutoClean()) {
+            if (autoClean && event.getAlarmData().isAutoClean()) {
                 m_eventDao.deletePreviousEventsForAlarm(alarm.getId(), e);
             }
         }
@@ -254,4 +364,48 @@ public class AlarmPersisterImpl implements AlarmPersister {
         return m_eventDao;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public int getReductionKeyCacheSize() {
+        return m_reductionKeyCache.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getReductionKeyCacheCapacity() {
+        return m_reductionKeyCache.getCapacity();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getReductionKeyCacheHits() {
+        return m_reductionKeyCache.getHits();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getReductionKeyCacheMisses() {
+        return m_reductionKeyCache.getMisses();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getReductionKeyCacheHitRate() {
+        final long hits = m_reductionKeyCache.getHits();
+        final long total = hits + m_reductionKeyCache.getMisses();
+        return total == 0 ? 0.0 : (double)hits / total;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getReductionsCoalesced() {
+        return m_reductionsCoalesced.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getCoalescedGroups() {
+        return m_coalescedGroups.get();
+    }
+
 }
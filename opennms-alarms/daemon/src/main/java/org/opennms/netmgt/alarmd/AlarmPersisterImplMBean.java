@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.alarmd;
+
+/**
+ * Reduction key cache and coalescing statistics for the {@link AlarmPersisterImpl}.
+ */
+public interface AlarmPersisterImplMBean {
+
+    /**
+     * @return the number of reduction keys currently cached
+     */
+    int getReductionKeyCacheSize();
+
+    /**
+     * @return the maximum number of reduction keys cached, 0 if the cache is disabled
+     */
+    int getReductionKeyCacheCapacity();
+
+    /**
+     * @return the number of alarm lookups answered by the cache
+     */
+    long getReductionKeyCacheHits();
+
+    /**
+     * @return the number of alarm lookups that had to query by reduction key
+     */
+    long getReductionKeyCacheMisses();
+
+    /**
+     * @return the fraction of alarm lookups answered by the cache, between 0 and 1
+     */
+    double getReductionKeyCacheHitRate();
+
+    /**
+     * @return the number of reductions merged into a single alarm update with an earlier reduction
+     */
+    long getReductionsCoalesced();
+
+    /**
+     * @return the number of coalesced groups of events persisted
+     */
+    long getCoalescedGroups();
+}
@@ -28,9 +28,15 @@
 
 package org.opennms.netmgt.alarmd;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
 import org.opennms.netmgt.alarmd.api.NorthboundAlarm;
 import org.opennms.netmgt.alarmd.api.Northbounder;
 import org.opennms.netmgt.daemon.SpringServiceDaemon;
@@ -67,6 +73,20 @@ public class Alarmd implements SpringServiceDaemon, DisposableBean {
     private List<Northbounder> m_northboundInterfaces;
 
     private AlarmPersister m_persister;
+
+    /**
+     * How long, in milliseconds, reductions are collected before the events
+     * of each reduction key are persisted together. 0 persists every event
+     * as it arrives.
+     */
+    private long m_coalesceWindow = Long.getLong("org.opennms.alarmd.coalesceWindow", 0);
+
+    private final Object m_pendingLock = new Object();
+
+    /** Events waiting to be persisted, grouped by reduction key in order of arrival. */
+    private Map<String, List<Event>> m_pendingReductions = new LinkedHashMap<String, List<Event>>();
+
+    private ScheduledExecutorService m_coalescer;
     
     
     
@@ -83,9 +103,23 @@ public class Alarmd implements SpringServiceDaemon, DisposableBean {
     	if (e.getUei().equals("uei.opennms.org/internal/reloadDaemonConfig")) {
     		return;
     	}
+
+        if (m_coalescer != null && e.getAlarmData() != null && e.getAlarmData().getReductionKey() != null) {
+            synchronized (m_pendingLock) {
+                List<Event> events = m_pendingReductions.get(e.getAlarmData().getReductionKey());
+                if (events == null) {
+                    events = new ArrayList<Event>();
+                    m_pendingReductions.put(e.getAlarmData().getReductionKey(), events);
+                }
+                events.add(e);
+            }
+            return;
+        }
     	
-        OnmsAlarm alarm = m_persister.persist(e);
-        
+        forwardAlarm(m_persister.persist(e));
+    }
+
+    private void forwardAlarm(OnmsAlarm alarm) {
         if (alarm != null) {
         	NorthboundAlarm a = new NorthboundAlarm(alarm);
 
@@ -93,7 +127,29 @@ public class Alarmd implements SpringServiceDaemon, DisposableBean {
                 nbi.onAlarm(a);
             }
         }
-        
+    }
+
+    /**
+     * Persists the events collected since the last call, one transaction
+     * per reduction key, and forwards each resulting alarm once.
+     */
+    private void persistPendingReductions() {
+        final Map<String, List<Event>> pending;
+        synchronized (m_pendingLock) {
+            if (m_pendingReductions.isEmpty()) {
+                return;
+            }
+            pending = m_pendingReductions;
+            m_pendingReductions = new LinkedHashMap<String, List<Event>>();
+        }
+
+        for (final Map.Entry<String, List<Event>> entry : pending.entrySet()) {
+            try {
+                forwardAlarm(m_persister.persist(entry.getValue()));
+            } catch (final Throwable t) {
+                LOG.error("Unable to persist {} events for reduction key {}", entry.getValue().size(), entry.getKey(), t);
+            }
+        }
     }
 
     @EventHandler(uei = "uei.opennms.org/internal/reloadDaemonConfig")
@@ -177,6 +233,17 @@ public class Alarmd implements SpringServiceDaemon, DisposableBean {
                 nb.start();
             }
         }
+
+        if (m_coalesceWindow > 0) {
+            LOG.info("Coalescing reductions of the same reduction key within {}ms", m_coalesceWindow);
+            m_coalescer = Executors.newSingleThreadScheduledExecutor(new LogPreservingThreadFactory(NAME + "-Coalescer", 1));
+            m_coalescer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    persistPendingReductions();
+                }
+            }, m_coalesceWindow, m_coalesceWindow, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -186,6 +253,12 @@ public class Alarmd implements SpringServiceDaemon, DisposableBean {
      */
     @Override
     public void destroy() throws Exception {
+        if (m_coalescer != null) {
+            m_coalescer.shutdown();
+            m_coalescer.awaitTermination(1, TimeUnit.MINUTES);
+            m_coalescer = null;
+            persistPendingReductions();
+        }
     }
 
     /**
@@ -214,6 +287,24 @@ public class Alarmd implements SpringServiceDaemon, DisposableBean {
         northbounder.stop();
     }
     
+    /**
+     * <p>getCoalesceWindow</p>
+     *
+     * @return how long, in milliseconds, reductions are collected before they are persisted
+     */
+    public long getCoalesceWindow() {
+        return m_coalesceWindow;
+    }
+
+    /**
+     * <p>setCoalesceWindow</p>
+     *
+     * @param coalesceWindow how long, in milliseconds, reductions are collected before they are persisted; 0 disables coalescing
+     */
+    public void setCoalesceWindow(long coalesceWindow) {
+        m_coalesceWindow = coalesceWindow;
+    }
+
     public List<Northbounder> getNorthboundInterfaces() {
         return m_northboundInterfaces;
     }
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.alarmd;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used index of reduction keys to alarm IDs.
+ *
+ * Only the alarm ID is cached; the alarm itself is always loaded in the
+ * caller's transaction, so acknowledgements, clears and severity changes
+ * made by the UI or Vacuumd are never hidden by the cache. Callers must
+ * verify that the loaded alarm still exists and still has the reduction key,
+ * and {@link #evict(String)} the entry otherwise.
+ */
+class ReductionKeyCache {
+
+    private final int m_capacity;
+
+    private final Map<String, Integer> m_alarmIds;
+
+    private final AtomicLong m_hits = new AtomicLong();
+
+    private final AtomicLong m_misses = new AtomicLong();
+
+    /**
+     * @param capacity the maximum number of reduction keys to keep, 0 disables the cache
+     */
+    ReductionKeyCache(final int capacity) {
+        m_capacity = capacity;
+        m_alarmIds = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > m_capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cached alarm ID for the reduction key, or null
+     */
+    Integer get(final String reductionKey) {
+        if (m_capacity < 1) {
+            return null;
+        }
+        synchronized (m_alarmIds) {
+            return m_alarmIds.get(reductionKey);
+        }
+    }
+
+    void put(final String reductionKey, final Integer alarmId) {
+        if (m_capacity < 1 || reductionKey == null || alarmId == null) {
+            return;
+        }
+        synchronized (m_alarmIds) {
+            m_alarmIds.put(reductionKey, alarmId);
+        }
+    }
+
+    void evict(final String reductionKey) {
+        synchronized (m_alarmIds) {
+            m_alarmIds.remove(reductionKey);
+        }
+    }
+
+    void clear() {
+        synchronized (m_alarmIds) {
+            m_alarmIds.clear();
+        }
+    }
+
+    void hit() {
+        m_hits.incrementAndGet();
+    }
+
+    void miss() {
+        m_misses.incrementAndGet();
+    }
+
+    int size() {
+        synchronized (m_alarmIds) {
+            return m_alarmIds.size();
+        }
+    }
+
+    int getCapacity() {
+        return m_capacity;
+    }
+
+    long getHits() {
+        return m_hits.get();
+    }
+
+    long getMisses() {
+        return m_misses.get();
+    }
+}
@@ -462,6 +462,58 @@ public class AlarmdIT implements TemporaryDatabaseAware<MockDatabase>, Initializ
         
     }
 
+    @Test
+    @JUnitTemporaryDatabase(tempDbClass=MockDatabase.class)
+    public void testReductionKeyCacheFollowsDeletes() throws Exception {
+        final AlarmPersisterImplMBean stats = (AlarmPersisterImplMBean)m_alarmd.getPersister();
+        final long hits = stats.getReductionKeyCacheHits();
+        final MockNode node = m_mockNetwork.getNode(1);
+
+        sendNodeDownEvent("testCache", node);
+        sendNodeDownEvent("testCache", node);
+        assertEquals(2, m_jdbcTemplate.queryForObject("select counter from alarms where reductionKey = 'testCache'", Integer.class).intValue());
+        assertEquals(hits + 1, stats.getReductionKeyCacheHits());
+
+        // Remove the alarm behind Alarmd's back, like Vacuumd does
+        m_jdbcTemplate.update("delete from alarms where reductionKey = 'testCache'");
+
+        sendNodeDownEvent("testCache", node);
+        assertEquals(1, m_jdbcTemplate.queryForObject("select counter from alarms where reductionKey = 'testCache'", Integer.class).intValue());
+
+        // Acknowledgements made elsewhere must not be lost by a cached reduction
+        m_jdbcTemplate.update("update alarms set alarmAckUser = 'admin', alarmAckTime = now() where reductionKey = 'testCache'");
+        sendNodeDownEvent("testCache", node);
+        assertEquals("admin", m_jdbcTemplate.queryForObject("select alarmAckUser from alarms where reductionKey = 'testCache'", String.class));
+        assertEquals(2, m_jdbcTemplate.queryForObject("select counter from alarms where reductionKey = 'testCache'", Integer.class).intValue());
+    }
+
+    @Test
+    @JUnitTemporaryDatabase(tempDbClass=MockDatabase.class)
+    public void testCoalescedReductions() throws Exception {
+        final AlarmPersisterImplMBean stats = (AlarmPersisterImplMBean)m_alarmd.getPersister();
+        final long coalesced = stats.getReductionsCoalesced();
+        final MockNode node = m_mockNetwork.getNode(1);
+
+        m_alarmd.destroy();
+        m_alarmd.setCoalesceWindow(500);
+        try {
+            m_alarmd.afterPropertiesSet();
+
+            for (int i = 0; i < 5; i++) {
+                sendNodeDownEvent("testCoalesce", node);
+            }
+            sendNodeDownEvent("testCoalesceOther", node);
+            m_alarmd.destroy();
+        } finally {
+            m_alarmd.setCoalesceWindow(0);
+        }
+
+        assertEquals(5, m_jdbcTemplate.queryForObject("select counter from alarms where reductionKey = 'testCoalesce'", Integer.class).intValue());
+        assertEquals(1, m_jdbcTemplate.queryForObject("select counter from alarms where reductionKey = 'testCoalesceOther'", Integer.class).intValue());
+        assertEquals(coalesced + 4, stats.getReductionsCoalesced());
+        assertEquals(5, m_jdbcTemplate.queryForObject("select count(*) from events e join alarms a on e.alarmId = a.alarmId where a.reductionKey = 'testCoalesce'", Integer.class).intValue());
+    }
+
     //Supporting method for test
     private void sendNodeDownEventDontChangeLogMsg(String reductionKey, MockNode node, String logMsg) {
         
@@ -63,6 +63,18 @@ public interface FilterDao {
      */
     public Map<InetAddress, Set<String>> getIPAddressServiceMap(String rule) throws FilterParseException;
 
+    /**
+     * Get the interfaces that match the rule, by node ID, with the services
+     * on each of them that match the rule.  The IP addresses are returned as
+     * they are stored in the database, and an interface without any matching
+     * service maps to an empty set.
+     *
+     * @param rule the filter rule
+     * @return a {@link java.util.Map} of IP addresses and service names by node ID.
+     * @throws org.opennms.netmgt.filter.FilterParseException if a rule is syntactically incorrect or failed in executing the SQL statement.
+     */
+    public Map<Integer, Map<String, Set<String>>> getNodeIPAddressServiceMap(String rule) throws FilterParseException;
+
     void flushActiveIpAddressListCache();
 
     /**
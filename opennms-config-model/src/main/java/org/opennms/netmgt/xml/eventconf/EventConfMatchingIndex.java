@@ -0,0 +1,356 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.xml.eventconf;
+
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_SNMP_EID;
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_UEI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.netmgt.xml.eventconf.Events.EventCallback;
+
+/**
+ * A precompiled index over a fully loaded and initialized event
+ * configuration that finds the same event definition as
+ * {@link Events#findFirstMatchingEvent(org.opennms.netmgt.xml.event.Event)}
+ * without building candidate sets on every call.
+ *
+ * Every event definition is assigned a rank, its position in the order
+ * in which the root {@link Events} (and then each of its event files) is
+ * searched, and is filed under the most selective key its mask allows:
+ * <ul>
+ * <li>the exact SNMP enterprise ids in its <code>id</code> mask element,</li>
+ * <li>the enterprise id prefixes (<code>.1.3.6.1.4.1.9%</code>) in its
+ * <code>id</code> mask element, kept in a character trie so that all
+ * prefixes of a trap's enterprise id are found in a single walk,</li>
+ * <li>the exact UEIs in its <code>uei</code> mask element, or its UEI if it
+ * has no mask,</li>
+ * <li>or, if none of these apply, a list of definitions that are always
+ * candidates.</li>
+ * </ul>
+ * Each bucket is a presorted array, so a lookup scans the few relevant
+ * buckets in rank order, stops as soon as it can no longer beat the best
+ * match found so far, and allocates nothing.
+ *
+ * Instances are immutable and must be rebuilt whenever the event
+ * configuration is reloaded or modified.
+ */
+public class EventConfMatchingIndex {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+    /**
+     * Event definitions sorted by rank, with the ranks in a parallel array.
+     */
+    private static final class Candidates {
+        private final Event[] m_events;
+        private final int[] m_ranks;
+
+        private Candidates(List<Event> events, List<Integer> ranks) {
+            m_events = events.toArray(new Event[events.size()]);
+            m_ranks = new int[ranks.size()];
+            for (int i = 0; i < m_ranks.length; i++) {
+                m_ranks[i] = ranks.get(i);
+            }
+        }
+
+        /**
+         * @return the index of the first candidate matching the event with a
+         *         rank lower than bound, or -1 if there is none
+         */
+        private int firstMatch(org.opennms.netmgt.xml.event.Event matchingEvent, int bound) {
+            for (int i = 0; i < m_events.length && m_ranks[i] < bound; i++) {
+                if (m_events[i].matches(matchingEvent)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Collects candidates for a single key while building.
+     */
+    private static final class CandidatesBuilder {
+        private final List<Event> m_events = new ArrayList<Event>(1);
+        private final List<Integer> m_ranks = new ArrayList<Integer>(1);
+
+        private void add(Event event, int rank) {
+            // events are added in rank order, so duplicates are always adjacent
+            if (!m_ranks.isEmpty() && m_ranks.get(m_ranks.size() - 1) == rank) {
+                return;
+            }
+            m_events.add(event);
+            m_ranks.add(rank);
+        }
+
+        private Candidates build() {
+            return new Candidates(m_events, m_ranks);
+        }
+    }
+
+    private static final class TrieNode {
+        private char[] m_keys = NO_KEYS;
+        private TrieNode[] m_children = NO_CHILDREN;
+        private CandidatesBuilder m_builder;
+        private Candidates m_candidates;
+
+        private TrieNode child(char c) {
+            final int i = Arrays.binarySearch(m_keys, c);
+            return i < 0 ? null : m_children[i];
+        }
+
+        private TrieNode getOrCreateChild(char c) {
+            int i = Arrays.binarySearch(m_keys, c);
+            if (i >= 0) {
+                return m_children[i];
+            }
+            i = -(i + 1);
+            final TrieNode node = new TrieNode();
+
+            final char[] keys = new char[m_keys.length + 1];
+            System.arraycopy(m_keys, 0, keys, 0, i);
+            keys[i] = c;
+            System.arraycopy(m_keys, i, keys, i + 1, m_keys.length - i);
+
+            final TrieNode[] children = new TrieNode[m_children.length + 1];
+            System.arraycopy(m_children, 0, children, 0, i);
+            children[i] = node;
+            System.arraycopy(m_children, i, children, i + 1, m_children.length - i);
+
+            m_keys = keys;
+            m_children = children;
+            return node;
+        }
+
+        private void build() {
+            if (m_builder != null) {
+                m_candidates = m_builder.build();
+                m_builder = null;
+            }
+            for (TrieNode child : m_children) {
+                child.build();
+            }
+        }
+    }
+
+    private final Map<String, Candidates> m_idExact;
+
+    private final TrieNode m_idPrefixes;
+
+    private final Map<String, Candidates> m_ueiExact;
+
+    private final Candidates m_unindexed;
+
+    private final int m_size;
+
+    private EventConfMatchingIndex(Map<String, Candidates> idExact, TrieNode idPrefixes, Map<String, Candidates> ueiExact, Candidates unindexed, int size) {
+        m_idExact = idExact;
+        m_idPrefixes = idPrefixes;
+        m_ueiExact = ueiExact;
+        m_unindexed = unindexed;
+        m_size = size;
+    }
+
+    /**
+     * Builds an index over the given event configuration, including all of
+     * its loaded event files. The events must already have been initialized.
+     *
+     * @param events the root event configuration
+     * @return a new index
+     */
+    public static EventConfMatchingIndex build(Events events) {
+        final Map<String, CandidatesBuilder> idExact = new LinkedHashMap<String, CandidatesBuilder>();
+        final TrieNode idPrefixes = new TrieNode();
+        final Map<String, CandidatesBuilder> ueiExact = new LinkedHashMap<String, CandidatesBuilder>();
+        final CandidatesBuilder unindexed = new CandidatesBuilder();
+
+        // forEachEvent visits the events in the same order findFirstMatchingEvent searches them
+        final int size = events.forEachEvent(0, new EventCallback<Integer>() {
+            @Override
+            public Integer process(Integer rank, Event event) {
+                index(event, rank, idExact, idPrefixes, ueiExact, unindexed);
+                return rank + 1;
+            }
+        });
+
+        idPrefixes.build();
+        return new EventConfMatchingIndex(build(idExact), idPrefixes, build(ueiExact), unindexed.build(), size);
+    }
+
+    private static Map<String, Candidates> build(Map<String, CandidatesBuilder> builders) {
+        final Map<String, Candidates> candidates = new HashMap<String, Candidates>(builders.size() * 2);
+        for (Map.Entry<String, CandidatesBuilder> entry : builders.entrySet()) {
+            candidates.put(entry.getKey(), entry.getValue().build());
+        }
+        return candidates;
+    }
+
+    private static void index(Event event, int rank, Map<String, CandidatesBuilder> idExact, TrieNode idPrefixes, Map<String, CandidatesBuilder> ueiExact, CandidatesBuilder unindexed) {
+        final Mask mask = event.getMask();
+        if (mask == null || mask.getMaskelementCount() <= 0) {
+            // Matched on the UEI alone, and never matched without one
+            if (event.getUei() != null) {
+                builder(ueiExact, event.getUei()).add(event, rank);
+            }
+            return;
+        }
+
+        // Note that a mask element without any values never matches, so
+        // events with one are not filed anywhere
+        final List<String> ids = nonNullValues(mask.getMaskElementValues(TAG_SNMP_EID));
+        if (ids != null && !hasRegex(ids)) {
+            for (String id : ids) {
+                if (id.endsWith("%")) {
+                    TrieNode node = idPrefixes;
+                    for (int i = 0; i < id.length() - 1; i++) {
+                        node = node.getOrCreateChild(id.charAt(i));
+                    }
+                    if (node.m_builder == null) {
+                        node.m_builder = new CandidatesBuilder();
+                    }
+                    node.m_builder.add(event, rank);
+                } else {
+                    builder(idExact, id).add(event, rank);
+                }
+            }
+            return;
+        }
+
+        final List<String> ueis = nonNullValues(mask.getMaskElementValues(TAG_UEI));
+        if (ueis != null && !hasRegex(ueis) && !hasPrefix(ueis)) {
+            for (String uei : ueis) {
+                builder(ueiExact, uei).add(event, rank);
+            }
+            return;
+        }
+
+        unindexed.add(event, rank);
+    }
+
+    private static CandidatesBuilder builder(Map<String, CandidatesBuilder> builders, String key) {
+        CandidatesBuilder builder = builders.get(key);
+        if (builder == null) {
+            builder = new CandidatesBuilder();
+            builders.put(key, builder);
+        }
+        return builder;
+    }
+
+    private static List<String> nonNullValues(List<String> values) {
+        if (values == null) {
+            return null;
+        }
+        final List<String> nonNull = new ArrayList<String>(values.size());
+        for (String value : values) {
+            if (value != null) {
+                nonNull.add(value);
+            }
+        }
+        return nonNull;
+    }
+
+    private static boolean hasRegex(List<String> values) {
+        for (String value : values) {
+            if (value.startsWith("~")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasPrefix(List<String> values) {
+        for (String value : values) {
+            if (value.endsWith("%")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the first event definition, in configuration order, that matches
+     * the given event.
+     *
+     * @param matchingEvent the event to find the definition for
+     * @return the matching event definition, or null if there is none
+     */
+    public Event findFirstMatchingEvent(org.opennms.netmgt.xml.event.Event matchingEvent) {
+        int bestRank = Integer.MAX_VALUE;
+        Event bestMatch = null;
+        int i;
+
+        final String id = matchingEvent.getSnmp() == null ? null : matchingEvent.getSnmp().getId();
+        if (id != null) {
+            final Candidates exact = m_idExact.get(id);
+            if (exact != null && (i = exact.firstMatch(matchingEvent, bestRank)) >= 0) {
+                bestRank = exact.m_ranks[i];
+                bestMatch = exact.m_events[i];
+            }
+
+            TrieNode node = m_idPrefixes;
+            for (int c = 0; node != null; c++) {
+                final Candidates prefixed = node.m_candidates;
+                if (prefixed != null && (i = prefixed.firstMatch(matchingEvent, bestRank)) >= 0) {
+                    bestRank = prefixed.m_ranks[i];
+                    bestMatch = prefixed.m_events[i];
+                }
+                node = c < id.length() ? node.child(id.charAt(c)) : null;
+            }
+        }
+
+        final String uei = matchingEvent.getUei();
+        if (uei != null) {
+            final Candidates exact = m_ueiExact.get(uei);
+            if (exact != null && (i = exact.firstMatch(matchingEvent, bestRank)) >= 0) {
+                bestRank = exact.m_ranks[i];
+                bestMatch = exact.m_events[i];
+            }
+        }
+
+        if ((i = m_unindexed.firstMatch(matchingEvent, bestRank)) >= 0) {
+            bestMatch = m_unindexed.m_events[i];
+        }
+
+        return bestMatch;
+    }
+
+    /**
+     * @return the number of event definitions in the index
+     */
+    public int size() {
+        return m_size;
+    }
+}
@@ -189,6 +189,25 @@ public abstract class EventMatchers  {
 		
 		public abstract String get(org.opennms.netmgt.xml.event.Event matchingEvent);
 	}
+
+	/**
+	 * A field holding an integer, which can be compared without converting
+	 * it into a String first.
+	 */
+	private static abstract class IntEventField extends EventField {
+		public IntEventField(String name) {
+			super(name);
+		}
+
+		public abstract boolean has(Event event);
+
+		public abstract int getInt(Event event);
+
+		@Override
+		public String get(Event event) {
+			return has(event) ? Integer.toString(getInt(event)) : null;
+		}
+	}
 	
 	public static Field field(String name) {
 		if (name.equals(TAG_UEI)) {
@@ -210,19 +229,21 @@ public abstract class EventMatchers  {
 		} else if (name.equals(TAG_SNMP_COMMUNITY)) {
 			return new EventField(name) { public String get(Event event) { return event.getSnmp() == null ? null : event.getSnmp().getCommunity(); } };
 		} else if (name.equals(TAG_SNMP_SPECIFIC)) {
-			return new EventField(name) { 
-				public String get(Event event) {
-					return event.getSnmp() == null || !event.getSnmp().hasSpecific() 
-							? null 
-							: Integer.toString(event.getSnmp().getSpecific());
+			return new IntEventField(name) { 
+				public boolean has(Event event) {
+					return event.getSnmp() != null && event.getSnmp().hasSpecific();
+				}
+				public int getInt(Event event) {
+					return event.getSnmp().getSpecific();
 				}
 			};
 		} else if (name.equals(TAG_SNMP_GENERIC)) {
-			return new EventField(name) { 
-				public String get(Event event) {
-					return event.getSnmp() == null || !event.getSnmp().hasGeneric() 
-							? null 
-							: Integer.toString(event.getSnmp().getGeneric());
+			return new IntEventField(name) { 
+				public boolean has(Event event) {
+					return event.getSnmp() != null && event.getSnmp().hasGeneric();
+				}
+				public int getInt(Event event) {
+					return event.getSnmp().getGeneric();
 				}
 			};
 		}
@@ -270,6 +291,10 @@ public abstract class EventMatchers  {
 	}
 
 	public static EventMatcher valueEqualsMatcher(final Field field, final String value) {
+		if (field instanceof IntEventField && isCanonicalInt(value)) {
+			return intValueEqualsMatcher((IntEventField)field, Integer.parseInt(value));
+		}
+
 		return new EventMatcher() {
 			
 			@Override
@@ -285,4 +310,32 @@ public abstract class EventMatchers  {
 		};
 	}
 
+	private static EventMatcher intValueEqualsMatcher(final IntEventField field, final int value) {
+		return new EventMatcher() {
+			
+			@Override
+			public boolean matches(Event matchingEvent) {
+				return field.has(matchingEvent) && field.getInt(matchingEvent) == value;
+			}
+			
+			@Override
+			public String toString() {
+				return field + "==" + value;
+			}
+		};
+	}
+
+	/**
+	 * @return true if the value is exactly what {@link Integer#toString(int)}
+	 * would produce for it, so that comparing as ints gives the same result as
+	 * comparing the strings
+	 */
+	private static boolean isCanonicalInt(String value) {
+		try {
+			return value != null && Integer.toString(Integer.parseInt(value)).equals(value);
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+	}
+
 }
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.xml.eventconf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.xml.event.Snmp;
+
+public class EventConfMatchingIndexTest {
+
+    private Events m_root;
+    private Events m_subEvents;
+
+    private Event m_ciscoTrap;
+    private Event m_ciscoPrefix;
+    private Event m_nodeDown;
+    private Event m_maskedUei;
+    private Event m_catchAll;
+    private Event m_shadowedTrap;
+    private Event m_otherTrap;
+
+    private static Maskelement element(String name, String... values) {
+        final Maskelement element = new Maskelement();
+        element.setMename(name);
+        for (String value : values) {
+            element.addMevalue(value);
+        }
+        return element;
+    }
+
+    private static Event event(String uei, Maskelement... elements) {
+        final Event event = new Event();
+        event.setUei(uei);
+        if (elements.length > 0) {
+            final Mask mask = new Mask();
+            for (Maskelement element : elements) {
+                mask.addMaskelement(element);
+            }
+            event.setMask(mask);
+        }
+        return event;
+    }
+
+    private static org.opennms.netmgt.xml.event.Event trap(String id, int generic, int specific) {
+        final org.opennms.netmgt.xml.event.Event event = new org.opennms.netmgt.xml.event.Event();
+        event.setUei("uei.opennms.org/default/trap");
+        event.setSource("trapd");
+        final Snmp snmp = new Snmp();
+        snmp.setId(id);
+        snmp.setGeneric(generic);
+        snmp.setSpecific(specific);
+        event.setSnmp(snmp);
+        return event;
+    }
+
+    private static org.opennms.netmgt.xml.event.Event event(String uei, String source) {
+        final org.opennms.netmgt.xml.event.Event event = new org.opennms.netmgt.xml.event.Event();
+        event.setUei(uei);
+        event.setSource(source);
+        return event;
+    }
+
+    @Before
+    public void setUp() {
+        m_ciscoTrap = event("trap1", element("id", ".1.3.6.1.4.1.9.9.41.2"), element("generic", "6"), element("specific", "1"));
+        m_ciscoPrefix = event("ciscoPrefix", element("id", ".1.3.6.1.4.1.9%"), element("generic", "6"));
+        m_nodeDown = event("uei.opennms.org/nodes/nodeDown");
+        m_maskedUei = event("masked", element("uei", "uei.opennms.org/foo", "uei.opennms.org/bar"));
+        m_catchAll = event("catchAll", element("source", "~^trap.*$"));
+        m_shadowedTrap = event("shadowed", element("id", ".1.3.6.1.4.1.9.9.41.2"));
+        m_otherTrap = event("otherTrap", element("id", ".1.3.6.1.4.1.2636"), element("specific", "7"));
+
+        m_root = new Events();
+        m_root.addEvent(m_ciscoTrap);
+        m_root.addEvent(m_ciscoPrefix);
+        m_root.addEvent(m_nodeDown);
+        m_root.addEvent(m_maskedUei);
+        m_root.addEvent(m_catchAll);
+        // an event without a UEI or a mask never matches
+        m_root.addEvent(new Event());
+
+        m_subEvents = new Events();
+        m_subEvents.addEvent(m_shadowedTrap);
+        m_subEvents.addEvent(m_otherTrap);
+        m_root.addLoadedEventFile("events/sub.events.xml", m_subEvents);
+
+        m_root.initialize(new Partition() {
+            @Override
+            public List<String> group(Event eventConf) {
+                return null;
+            }
+            @Override
+            public String group(org.opennms.netmgt.xml.event.Event matchingEvent) {
+                return null;
+            }
+        }, new EventOrdering());
+    }
+
+    @Test
+    public void testMatches() {
+        final EventConfMatchingIndex index = EventConfMatchingIndex.build(m_root);
+        assertEquals(8, index.size());
+
+        assertSame(m_ciscoTrap, index.findFirstMatchingEvent(trap(".1.3.6.1.4.1.9.9.41.2", 6, 1)));
+        assertSame(m_ciscoPrefix, index.findFirstMatchingEvent(trap(".1.3.6.1.4.1.9.9.41.2", 6, 2)));
+        assertSame(m_ciscoPrefix, index.findFirstMatchingEvent(trap(".1.3.6.1.4.1.9", 6, 2)));
+        assertSame(m_catchAll, index.findFirstMatchingEvent(trap(".1.3.6.1.4.1.9.9.41.2", 5, 2)));
+        assertSame(m_catchAll, index.findFirstMatchingEvent(trap(".1.3.6.1.4.1.2636", 6, 7)));
+        assertSame(m_nodeDown, index.findFirstMatchingEvent(event("uei.opennms.org/nodes/nodeDown", "trapd")));
+        assertSame(m_maskedUei, index.findFirstMatchingEvent(event("uei.opennms.org/bar", "syslogd")));
+        assertNull(index.findFirstMatchingEvent(event("uei.opennms.org/baz", "syslogd")));
+    }
+
+    @Test
+    public void testMatchesInSubFiles() {
+        m_root.removeEvent(m_catchAll);
+        m_root.initialize(new EnterpriseIdPartition(), new EventOrdering());
+        final EventConfMatchingIndex index = EventConfMatchingIndex.build(m_root);
+
+        assertSame(m_shadowedTrap, index.findFirstMatchingEvent(trap(".1.3.6.1.4.1.9.9.41.2", 5, 2)));
+        assertSame(m_otherTrap, index.findFirstMatchingEvent(trap(".1.3.6.1.4.1.2636", 6, 7)));
+        assertNull(index.findFirstMatchingEvent(trap(".1.3.6.1.4.1.2636", 6, 8)));
+    }
+}
@@ -42,6 +42,7 @@ import java.util.TreeSet;
 import org.opennms.core.xml.JaxbUtils;
 import org.opennms.netmgt.config.api.EventConfDao;
 import org.opennms.netmgt.xml.eventconf.Event;
+import org.opennms.netmgt.xml.eventconf.EventConfMatchingIndex;
 import org.opennms.netmgt.xml.eventconf.EventLabelComparator;
 import org.opennms.netmgt.xml.eventconf.EventMatchers;
 import org.opennms.netmgt.xml.eventconf.EventOrdering;
@@ -66,6 +67,12 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 
 	private Events m_events;
 
+	/**
+	 * Compiled form of m_events used by findByEvent(), rebuilt whenever the
+	 * events are (re)initialized.
+	 */
+	private volatile EventConfMatchingIndex m_matchingIndex;
+
 	private Resource m_configResource;
 
 	private Partition m_partition;
@@ -177,6 +184,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 	public void addEvent(Event event) {
 		m_events.addEvent(event);
 		m_events.initialize(m_partition, new EventOrdering());
+		m_matchingIndex = EventConfMatchingIndex.build(m_events);
 	}
 
 	@Override
@@ -189,6 +197,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 
 		programmaticEvents.addEvent(event);
 		m_events.initialize(m_partition, new EventOrdering());
+		m_matchingIndex = EventConfMatchingIndex.build(m_events);
 
 	}
 
@@ -203,6 +212,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 		} 
 
 		m_events.initialize(m_partition, new EventOrdering());
+		m_matchingIndex = EventConfMatchingIndex.build(m_events);
 
 		return true;
 
@@ -227,7 +237,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 
 	@Override
 	public Event findByEvent(final org.opennms.netmgt.xml.event.Event matchingEvent) {
-		return m_events.findFirstMatchingEvent(matchingEvent);
+		return m_matchingIndex.findFirstMatchingEvent(matchingEvent);
 	}
 
 	@Override
@@ -294,6 +304,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
             // Order the events for efficient searching
             events.initialize(m_partition, new EventOrdering());
 
+            m_matchingIndex = EventConfMatchingIndex.build(events);
             m_events = events;
         } catch (Exception e) {
             throw new DataRetrievalFailureException("Unabled to load " + m_configResource, e);
@@ -308,6 +319,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 			m_partition = new EnterpriseIdPartition();
 			events.initialize(m_partition, new EventOrdering());
 
+			m_matchingIndex = EventConfMatchingIndex.build(events);
 			m_events = events;
 		} catch (Exception e) {
 			throw new DataRetrievalFailureException("Unabled to load " + m_configResource, e);
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.opennms.netmgt.config.notifications.Notification;
+import org.opennms.netmgt.config.notifications.Notifications;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The notifications of a {@link Notifications} configuration, indexed by
+ * UEI, with their regular expressions compiled.
+ *
+ * Looking up the notifications for a UEI is a hash lookup for the exact
+ * UEIs, plus one match per '~' regular expression, instead of a scan and
+ * a {@link String#matches(String)} call per notification.  The candidates
+ * are returned in configuration order, since only the first match is used
+ * unless notifd is configured to match all of them.
+ */
+final class NotificationIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationIndex.class);
+
+    static final String MATCH_ANY_UEI = "MATCH-ANY-UEI";
+
+    private static final int[] NONE = new int[0];
+
+    private final Notifications m_source;
+    private final Notification[] m_notifications;
+
+    /**
+     * The positions of the notifications by UEI, MATCH-ANY-UEI included.
+     */
+    private final Map<String, int[]> m_positionsByUei = new HashMap<String, int[]>();
+
+    private final int[] m_regexPositions;
+    private final Pattern[] m_regexes;
+    private final Pattern[] m_severities;
+
+    NotificationIndex(final Notifications source) {
+        m_source = source;
+        m_notifications = source.getNotificationCollection().toArray(new Notification[0]);
+
+        final Map<String, List<Integer>> positionsByUei = new HashMap<String, List<Integer>>();
+        final List<Integer> regexPositions = new ArrayList<Integer>();
+        final List<Pattern> regexes = new ArrayList<Pattern>();
+        m_severities = new Pattern[m_notifications.length];
+
+        for (int i = 0; i < m_notifications.length; i++) {
+            final Notification notif = m_notifications[i];
+            final String uei = notif.getUei();
+            if (uei == null) {
+                continue;
+            }
+            if (!positionsByUei.containsKey(uei)) {
+                positionsByUei.put(uei, new ArrayList<Integer>());
+            }
+            positionsByUei.get(uei).add(i);
+            if (uei.length() > 0 && uei.charAt(0) == '~') {
+                regexPositions.add(i);
+                regexes.add(compile(notif, uei.substring(1)));
+            }
+            if (notif.getEventSeverity() != null) {
+                m_severities[i] = compile(notif, notif.getEventSeverity().toLowerCase());
+            }
+        }
+
+        for (final Map.Entry<String, List<Integer>> entry : positionsByUei.entrySet()) {
+            m_positionsByUei.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        m_regexPositions = toArray(regexPositions);
+        m_regexes = regexes.toArray(new Pattern[0]);
+    }
+
+    /**
+     * @return the configuration this index was built from
+     */
+    Notifications getSource() {
+        return m_source;
+    }
+
+    /**
+     * @return the number of notifications
+     */
+    int size() {
+        return m_notifications.length;
+    }
+
+    /**
+     * @return the notification at a position returned by {@link #getPositions(String)}
+     */
+    Notification get(final int position) {
+        return m_notifications[position];
+    }
+
+    /**
+     * Returns the positions of the notifications for the UEI: the ones for
+     * exactly this UEI, the ones for MATCH-ANY-UEI and the ones with a
+     * matching regular expression, in configuration order.
+     */
+    int[] getPositions(final String uei) {
+        final int[] exact = get(uei);
+        final int[] any = get(MATCH_ANY_UEI);
+
+        final int[] positions = new int[exact.length + any.length + m_regexPositions.length];
+        int count = 0;
+        for (final int position : exact) {
+            positions[count++] = position;
+        }
+        for (final int position : any) {
+            positions[count++] = position;
+        }
+        for (int i = 0; i < m_regexPositions.length; i++) {
+            if (matches(m_regexes[i], m_notifications[m_regexPositions[i]].getUei().substring(1), uei)) {
+                positions[count++] = m_regexPositions[i];
+            }
+        }
+        if (count == 0) {
+            return NONE;
+        }
+        Arrays.sort(positions, 0, count);
+
+        // a '~' UEI can match both exactly and as a regular expression
+        int distinct = 1;
+        for (int i = 1; i < count; i++) {
+            if (positions[i] != positions[distinct - 1]) {
+                positions[distinct++] = positions[i];
+            }
+        }
+        return Arrays.copyOf(positions, distinct);
+    }
+
+    /**
+     * Matches the event severity against the severity pattern of the
+     * notification at a position returned by {@link #getPositions(String)}.
+     *
+     * @return true if the notification has no severity pattern, or if it matches
+     */
+    boolean matchesSeverity(final int position, final String severity) {
+        final String regex = m_notifications[position].getEventSeverity();
+        if (regex == null) {
+            return true;
+        }
+        return matches(m_severities[position], regex.toLowerCase(), severity.toLowerCase());
+    }
+
+    private int[] get(final String uei) {
+        final int[] positions = m_positionsByUei.get(uei);
+        return positions == null ? NONE : positions;
+    }
+
+    private static boolean matches(final Pattern pattern, final String regex, final String input) {
+        if (pattern == null) {
+            // let the invalid expression fail the way it always has
+            return input.matches(regex);
+        }
+        return pattern.matcher(input).matches();
+    }
+
+    private static Pattern compile(final Notification notif, final String regex) {
+        try {
+            return Pattern.compile(regex);
+        } catch (final PatternSyntaxException e) {
+            LOG.warn("Invalid regular expression {} in notification {}", regex, notif.getName(), e);
+            return null;
+        }
+    }
+
+    private static int[] toArray(final List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
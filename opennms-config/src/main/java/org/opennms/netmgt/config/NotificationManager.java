@@ -40,10 +40,12 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -147,9 +149,45 @@ public abstract class NotificationManager {
     /** Constant <code>PARAM_MICROBLOG_USERNAME="-ublog"</code> */
     public static final String PARAM_MICROBLOG_USERNAME = "-ublog";
 
+    /**
+     * The number of milliseconds after which the cached matches of a
+     * notification rule are reloaded, or 0 to query the database for
+     * every event
+     */
+    public static final String RULE_CACHE_MAX_AGE_PROPERTY = "org.opennms.notifd.ruleCacheMaxAge";
+
+    /**
+     * The events that tell notifd that a node, or its interfaces, services,
+     * assets or categories changed
+     */
+    private static final Set<String> INVENTORY_EVENT_UEIS = new HashSet<String>(Arrays.asList(
+        EventConstants.NODE_ADDED_EVENT_UEI,
+        EventConstants.NODE_UPDATED_EVENT_UEI,
+        EventConstants.NODE_DELETED_EVENT_UEI,
+        EventConstants.DUP_NODE_DELETED_EVENT_UEI,
+        EventConstants.NODE_LABEL_CHANGED_EVENT_UEI,
+        EventConstants.NODE_INFO_CHANGED_EVENT_UEI,
+        EventConstants.NODE_CATEGORY_MEMBERSHIP_CHANGED_EVENT_UEI,
+        EventConstants.ASSET_INFO_CHANGED_EVENT_UEI,
+        EventConstants.NODE_GAINED_INTERFACE_EVENT_UEI,
+        EventConstants.INTERFACE_DELETED_EVENT_UEI,
+        EventConstants.INTERFACE_REPARENTED_EVENT_UEI,
+        EventConstants.INTERFACE_INDEX_CHANGED_EVENT_UEI,
+        EventConstants.INTERFACE_IP_HOSTNAME_CHANGED_EVENT_UEI,
+        EventConstants.PRIMARY_SNMP_INTERFACE_CHANGED_EVENT_UEI,
+        EventConstants.REINITIALIZE_PRIMARY_SNMP_INTERFACE_EVENT_UEI,
+        EventConstants.NODE_GAINED_SERVICE_EVENT_UEI,
+        EventConstants.SERVICE_DELETED_EVENT_UEI,
+        EventConstants.SERVICE_UNMANAGED_EVENT_UEI,
+        EventConstants.PROVISION_SCAN_COMPLETE_UEI
+    ));
+
     NotifdConfigManager m_configManager;
     private DataSource m_dataSource;
 
+    private volatile NotificationIndex m_index;
+    private volatile NotificationRuleCache m_ruleCache;
+
     /**
      * A parameter expansion algorithm, designed to replace strings delimited by
      * percent signs '%' with a value supplied by a Map object.
@@ -184,6 +222,34 @@ public abstract class NotificationManager {
     protected NotificationManager(final NotifdConfigManager configManager, final DataSource dcf) {
         m_configManager = configManager;
         m_dataSource = dcf;
+
+        final long maxAge = Long.getLong(RULE_CACHE_MAX_AGE_PROPERTY, 600000);
+        m_ruleCache = maxAge > 0 ? new NotificationRuleCache(maxAge) : null;
+    }
+
+    /**
+     * Replaces the cache of the nodes, interfaces and services that match
+     * the notification rules.
+     *
+     * @param ruleCache the cache, or null to query the database for every event
+     */
+    void setRuleCache(final NotificationRuleCache ruleCache) {
+        m_ruleCache = ruleCache;
+    }
+
+    /**
+     * Returns the index of the current configuration, building it if the
+     * configuration was reloaded or changed since.
+     */
+    private NotificationIndex getIndex() {
+        final NotificationIndex index = m_index;
+        final Notifications notifications = m_notifications;
+        if (index != null && index.getSource() == notifications) {
+            return index;
+        }
+        final NotificationIndex newIndex = new NotificationIndex(notifications);
+        m_index = newIndex;
+        return newIndex;
     }
 
     /**
@@ -223,18 +289,7 @@ public abstract class NotificationManager {
     public boolean hasUei(final String uei) throws IOException, MarshalException, ValidationException {
         update();
 
-        for (Notification notif : m_notifications.getNotificationCollection()) {
-            if (uei.equals(notif.getUei()) || "MATCH-ANY-UEI".equals(notif.getUei())) {
-                return true;
-            } else if (notif.getUei().charAt(0) == '~') {
-                if (uei.matches(notif.getUei().substring(1))) {
-                    return true;
-                }
-
-            }
-        }
-
-        return false;
+        return getIndex().getPositions(uei).length > 0;
     }
 
     /**
@@ -262,35 +317,20 @@ public abstract class NotificationManager {
             return null;
         }
 
-        for (Notification curNotif : m_notifications.getNotificationCollection()) {
+        // Only the notifications whose UEI (or UEI regex) matches the event
+        final NotificationIndex index = getIndex();
+        for (final int position : index.getPositions(event.getUei())) {
+            final Notification curNotif = index.get(position);
 
             LOG.debug("Checking notification {} against event {} with UEI {}", curNotif.getUei(), event.getDbid(), event.getUei());
 
-            if (event.getUei().equals(curNotif.getUei()) || "MATCH-ANY-UEI".equals(curNotif.getUei())) {
-                // Match!
-            } else if (curNotif.getUei().charAt(0) == '~') {
-                if (event.getUei().matches(curNotif.getUei().substring(1))) {
-                    // Match!
-                } else {
-
-                    LOG.debug("Notification regex {} failed to match event UEI: {}", event.getUei(), curNotif.getUei());
-                    continue;
-                }
-            } else {
-
-                LOG.debug("Notification UEI {} did not match UEI of event {}: {}", curNotif.getUei(), event.getDbid(), event.getUei());
-                continue;
-            }
-
             /**
              * Check if event severity matches pattern in notification
              */
 
             LOG.debug("Checking event severity: {} against notification severity: {}", curNotif.getEventSeverity(), event.getSeverity());
             // parameter is optional, return true if not set
-            if (curNotif.getEventSeverity() == null) {
-                // Skip matching on severity
-            } else if (event.getSeverity().toLowerCase().matches(curNotif.getEventSeverity().toLowerCase())) {
+            if (index.matchesSeverity(position, event.getSeverity())) {
                 // Severities match
             } else {
 
@@ -376,6 +416,16 @@ public abstract class NotificationManager {
             return true;
         }
 
+        final NotificationRuleCache ruleCache = m_ruleCache;
+        if (ruleCache != null) {
+            try {
+                return ruleCache.isRuleMatching(notif.getRule(), event.getNodeid(), event.getInterface(), event.getService());
+            } catch (FilterParseException e) {
+                LOG.error("Invalid filter rule for notification {}: {}", notif.getName(), notif.getRule(), e);
+                throw e;
+            }
+        }
+
         StringBuffer constraints = new StringBuffer();
         if (event.getNodeid() != 0) {
             constraints.append(" & (nodeId == " + event.getNodeid() + ")");
@@ -394,6 +444,46 @@ public abstract class NotificationManager {
         return isRuleMatchingFilter(notif, rule);
     }
 
+    /**
+     * Reloads the cached matches of the notification rules for the node of
+     * an event saying that the node, its interfaces, services, assets or
+     * categories changed.  Notifd calls this for every event, before
+     * matching the event against the notifications.
+     *
+     * @param event a {@link org.opennms.netmgt.xml.event.Event} object.
+     */
+    public void refreshRuleMatches(final Event event) {
+        final NotificationRuleCache ruleCache = m_ruleCache;
+        if (ruleCache == null || event == null || !INVENTORY_EVENT_UEIS.contains(event.getUei())) {
+            return;
+        }
+
+        final Set<Long> nodeIds = new TreeSet<Long>();
+        if (event.hasNodeid() && event.getNodeid() != 0) {
+            nodeIds.add(event.getNodeid());
+        }
+        for (final String parmName : new String[] { EventConstants.PARM_OLD_NODEID, EventConstants.PARM_NEW_NODEID }) {
+            final Parm parm = event.getParm(parmName);
+            if (parm != null && parm.getValue() != null) {
+                try {
+                    nodeIds.add(Long.valueOf(parm.getValue().getContent()));
+                } catch (final NumberFormatException e) {
+                    LOG.debug("Ignoring {} parameter {}", parmName, parm.getValue().getContent());
+                }
+            }
+        }
+
+        if (nodeIds.isEmpty()) {
+            LOG.debug("Forgetting the matches of the notification rules after event {} without a node", event.getUei());
+            ruleCache.clear();
+        } else {
+            for (final Long nodeId : nodeIds) {
+                LOG.debug("Reloading the matches of the notification rules for node {} after event {}", nodeId, event.getUei());
+                ruleCache.refreshNode(nodeId);
+            }
+        }
+    }
+
     private boolean isRuleMatchingFilter(final Notification notif, final String rule) {
         try {
             return FilterDaoFactory.getInstance().isRuleMatching(rule);
@@ -1110,6 +1200,8 @@ public abstract class NotificationManager {
      */
     public synchronized void saveCurrent() throws MarshalException, ValidationException, IOException, ClassNotFoundException {
         m_notifications.setHeader(rebuildHeader());
+        // the notifications may have been changed in place
+        m_index = null;
 
         // Marshal to a string first, then write the string to the file. This
         // way the original configuration
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.config;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.opennms.netmgt.filter.FilterDaoFactory;
+import org.opennms.netmgt.filter.api.FilterDao;
+import org.opennms.netmgt.filter.api.FilterParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The nodes, interfaces and services that match the rules of the
+ * notifications, loaded from the {@link FilterDao} once per rule, so that
+ * matching an event against a rule doesn't query the database.
+ *
+ * The matches of every rule are reloaded for a node when notifd sees an
+ * event saying that the node, its interfaces, services, assets or
+ * categories changed, and the matches of a rule are reloaded entirely
+ * once they are older than the maximum age, to pick up the changes that
+ * aren't announced by an event.
+ */
+class NotificationRuleCache {
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationRuleCache.class);
+
+    private final long m_maxAge;
+
+    private final Map<String, RuleMatches> m_rules = new HashMap<String, RuleMatches>();
+
+    /**
+     * @param maxAge the number of milliseconds after which the matches of a rule are reloaded
+     */
+    NotificationRuleCache(final long maxAge) {
+        m_maxAge = maxAge;
+    }
+
+    /**
+     * Checks whether the rule matches anything in the database with the
+     * given node ID, interface and service, the way the constraints added
+     * to the rule by {@link NotificationManager#nodeInterfaceServiceValid}
+     * would.
+     *
+     * @param rule the rule of the notification
+     * @param nodeId the node ID, or 0 for any node
+     * @param ipAddr the interface, or null or 0.0.0.0 for any interface
+     * @param service the service, or null for any service; ignored if there is no interface
+     * @return true if something matches
+     * @throws FilterParseException if the rule is invalid
+     */
+    synchronized boolean isRuleMatching(final String rule, final long nodeId, final String ipAddr, final String service) throws FilterParseException {
+        RuleMatches matches = m_rules.get(rule);
+        if (matches == null || System.currentTimeMillis() - matches.m_loaded > m_maxAge) {
+            matches = new RuleMatches(getFilterDao().getNodeIPAddressServiceMap("(" + rule + ")"));
+            m_rules.put(rule, matches);
+        }
+        return matches.matches(nodeId, ipAddr, service);
+    }
+
+    /**
+     * Reloads the matches of every rule for a node.
+     *
+     * @param nodeId the node that was added, changed or deleted
+     */
+    synchronized void refreshNode(final long nodeId) {
+        for (final Iterator<Map.Entry<String, RuleMatches>> it = m_rules.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, RuleMatches> entry = it.next();
+            try {
+                final Map<Integer, Map<String, Set<String>>> nodes = getFilterDao().getNodeIPAddressServiceMap("((" + entry.getKey() + ") & (nodeId == " + nodeId + "))");
+                entry.getValue().setNode((int)nodeId, nodes.get((int)nodeId));
+            } catch (final FilterParseException e) {
+                LOG.warn("Failed to reload the matches of rule {} for node {}", entry.getKey(), nodeId, e);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets the matches of all the rules.
+     */
+    synchronized void clear() {
+        m_rules.clear();
+    }
+
+    /**
+     * @return the number of rules whose matches are loaded
+     */
+    synchronized int size() {
+        return m_rules.size();
+    }
+
+    private static FilterDao getFilterDao() {
+        return FilterDaoFactory.getInstance();
+    }
+
+    /**
+     * The interfaces and services matching a rule, by node, and the nodes
+     * by interface.
+     */
+    private static final class RuleMatches {
+        private final long m_loaded = System.currentTimeMillis();
+        private final Map<Integer, Map<String, Set<String>>> m_nodes;
+        private final Map<String, Set<Integer>> m_nodesByIpAddr = new HashMap<String, Set<Integer>>();
+
+        private RuleMatches(final Map<Integer, Map<String, Set<String>>> nodes) {
+            m_nodes = new HashMap<Integer, Map<String, Set<String>>>(nodes);
+            for (final Map.Entry<Integer, Map<String, Set<String>>> node : m_nodes.entrySet()) {
+                addIpAddrs(node.getKey(), node.getValue());
+            }
+        }
+
+        private void setNode(final int nodeId, final Map<String, Set<String>> ipAddrs) {
+            final Map<String, Set<String>> previous = ipAddrs == null ? m_nodes.remove(nodeId) : m_nodes.put(nodeId, ipAddrs);
+            if (previous != null) {
+                for (final String ipAddr : previous.keySet()) {
+                    final Set<Integer> nodeIds = m_nodesByIpAddr.get(ipAddr);
+                    nodeIds.remove(nodeId);
+                    if (nodeIds.isEmpty()) {
+                        m_nodesByIpAddr.remove(ipAddr);
+                    }
+                }
+            }
+            if (ipAddrs != null) {
+                addIpAddrs(nodeId, ipAddrs);
+            }
+        }
+
+        private void addIpAddrs(final Integer nodeId, final Map<String, Set<String>> ipAddrs) {
+            for (final String ipAddr : ipAddrs.keySet()) {
+                Set<Integer> nodeIds = m_nodesByIpAddr.get(ipAddr);
+                if (nodeIds == null) {
+                    nodeIds = new HashSet<Integer>(2);
+                    m_nodesByIpAddr.put(ipAddr, nodeIds);
+                }
+                nodeIds.add(nodeId);
+            }
+        }
+
+        private boolean matches(final long nodeId, final String ipAddr, final String service) {
+            final boolean hasIpAddr = ipAddr != null && !"0.0.0.0".equals(ipAddr);
+
+            if (nodeId != 0) {
+                final Map<String, Set<String>> ipAddrs = m_nodes.get((int)nodeId);
+                return ipAddrs != null && (!hasIpAddr || matches(ipAddrs.get(ipAddr), service));
+            } else if (!hasIpAddr) {
+                return !m_nodes.isEmpty();
+            }
+
+            final Set<Integer> nodeIds = m_nodesByIpAddr.get(ipAddr);
+            if (nodeIds != null) {
+                for (final Integer id : nodeIds) {
+                    if (matches(m_nodes.get(id).get(ipAddr), service)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static boolean matches(final Set<String> services, final String service) {
+            return services != null && (service == null || services.contains(service));
+        }
+    }
+}
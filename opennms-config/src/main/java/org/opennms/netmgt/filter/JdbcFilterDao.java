@@ -242,6 +242,64 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
         return ipServices;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public Map<Integer, Map<String, Set<String>>> getNodeIPAddressServiceMap(final String rule) throws FilterParseException {
+        final Map<Integer, Map<String, Set<String>>> nodes = new TreeMap<Integer, Map<String, Set<String>>>();
+        String sqlString;
+
+        LOG.debug("Filter.getNodeIPAddressServiceMap({})", rule);
+
+        // get the database connection
+        Connection conn = null;
+        final DBUtils d = new DBUtils(getClass());
+        try {
+            conn = getDataSource().getConnection();
+            d.watch(conn);
+
+            final Statement stmt = conn.createStatement();
+            d.watch(stmt);
+
+            // first the interfaces, since the services are inner-joined
+            sqlString = getNodeIPAddressStatement(rule);
+            LOG.debug("Filter.getNodeIPAddressServiceMap({}): SQL statement: {}", rule, sqlString);
+            ResultSet rset = stmt.executeQuery(sqlString);
+            d.watch(rset);
+            while (rset.next()) {
+                final Integer nodeId = Integer.valueOf(rset.getInt(2));
+                if (!nodes.containsKey(nodeId)) {
+                    nodes.put(nodeId, new TreeMap<String, Set<String>>());
+                }
+                nodes.get(nodeId).put(rset.getString(1), new TreeSet<String>());
+            }
+
+            // then the services on them
+            sqlString = getInterfaceWithServiceStatement(rule);
+            LOG.debug("Filter.getNodeIPAddressServiceMap({}): SQL statement: {}", rule, sqlString);
+            rset = stmt.executeQuery(sqlString);
+            d.watch(rset);
+            while (rset.next()) {
+                final Map<String, Set<String>> ipServices = nodes.get(Integer.valueOf(rset.getInt(3)));
+                if (ipServices != null && ipServices.containsKey(rset.getString(1))) {
+                    ipServices.get(rset.getString(1)).add(rset.getString(2));
+                }
+            }
+        } catch (final FilterParseException e) {
+            LOG.warn("Filter Parse Exception occurred getting node IP Service Map.", e);
+            throw new FilterParseException("Filter Parse Exception occurred getting node IP Service Map: " + e.getLocalizedMessage(), e);
+        } catch (final SQLException e) {
+            LOG.warn("SQL Exception occurred getting node IP Service Map.", e);
+            throw new FilterParseException("SQL Exception occurred getting node IP Service Map: " + e.getLocalizedMessage(), e);
+        } catch (final Throwable e) {
+            LOG.error("Exception getting database connection.", e);
+            throw new UndeclaredThrowableException(e);
+        } finally {
+            d.cleanUp();
+        }
+
+        return nodes;
+    }
+
     @Override
     @CacheEvict(value="activeIpAddressList", allEntries=true)
     public void flushActiveIpAddressListCache() {}
@@ -433,6 +491,26 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
         return "SELECT " + columns.toString() + " " + from + " " + where;
     }
 
+    /**
+     * <p>getNodeIPAddressStatement</p>
+     *
+     * @param rule a {@link java.lang.String} object.
+     * @return a {@link java.lang.String} object.
+     * @throws org.opennms.netmgt.filter.api.FilterParseException if any.
+     */
+    public String getNodeIPAddressStatement(final String rule) throws FilterParseException {
+    	final List<Table> tables = new ArrayList<Table>();
+
+    	final StringBuffer columns = new StringBuffer();
+        columns.append(m_databaseSchemaConfigFactory.addColumn(tables, "ipAddr"));
+        columns.append(", " + m_databaseSchemaConfigFactory.addColumn(tables, "nodeID"));
+
+        final String where = parseRule(tables, rule);
+        final String from = m_databaseSchemaConfigFactory.constructJoinExprForTables(tables);
+
+        return "SELECT DISTINCT " + columns.toString() + " " + from + " " + where;
+    }
+
     /**
      * <p>getInterfaceWithServiceStatement</p>
      *
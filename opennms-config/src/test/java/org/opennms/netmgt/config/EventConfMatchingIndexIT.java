@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.config;
+
+import static org.junit.Assert.assertSame;
+import static org.opennms.core.utils.InetAddressUtils.addr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opennms.core.test.ConfigurationTestUtils;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.eventconf.Event;
+import org.opennms.netmgt.xml.eventconf.EventConfMatchingIndex;
+import org.opennms.netmgt.xml.eventconf.Events;
+import org.springframework.core.io.FileSystemResource;
+
+/**
+ * Verifies that the {@link EventConfMatchingIndex} finds the same event
+ * definitions as {@link Events#findFirstMatchingEvent(org.opennms.netmgt.xml.event.Event)}
+ * for the stock event configuration.
+ */
+public class EventConfMatchingIndexIT {
+
+    private DefaultEventConfDao m_eventConfDao;
+
+    private List<org.opennms.netmgt.xml.event.Event> m_trapMix;
+
+    @Before
+    public void setUp() throws Exception {
+        m_eventConfDao = new DefaultEventConfDao();
+        m_eventConfDao.setConfigResource(new FileSystemResource(ConfigurationTestUtils.getFileForConfigFile("eventconf.xml")));
+        m_eventConfDao.afterPropertiesSet();
+
+        m_trapMix = createTrapMix(m_eventConfDao.getAllEvents());
+    }
+
+    /**
+     * Creates a trap for every trap definition in the event configuration,
+     * plus a few variations that should hit the less specific definitions,
+     * and an event for every UEI.
+     */
+    private static List<org.opennms.netmgt.xml.event.Event> createTrapMix(List<Event> eventConfs) {
+        final List<org.opennms.netmgt.xml.event.Event> events = new ArrayList<org.opennms.netmgt.xml.event.Event>();
+        for (Event eventConf : eventConfs) {
+            final List<String> ids = eventConf.getMaskElementValues("id");
+            if (ids == null || ids.isEmpty() || ids.get(0) == null || ids.get(0).startsWith("~")) {
+                final EventBuilder bldr = new EventBuilder(eventConf.getUei(), "EventConfMatchingIndexIT");
+                events.add(bldr.getEvent());
+                continue;
+            }
+
+            String id = ids.get(0);
+            if (id.endsWith("%")) {
+                id = id.substring(0, id.length() - 1) + ".1";
+            }
+            final int generic = firstInt(eventConf.getMaskElementValues("generic"), 6);
+            final int specific = firstInt(eventConf.getMaskElementValues("specific"), 0);
+
+            events.add(createTrap(id, generic, specific));
+            events.add(createTrap(id, generic, specific + 1000));
+            events.add(createTrap(id + ".1", generic, specific));
+        }
+        events.add(createTrap(".1.3.6.1.4.1.99999", 6, 1));
+        events.add(createTrap(".1.3.6.1.4.1.99999", 0, 0));
+        return events;
+    }
+
+    private static int firstInt(List<String> values, int defaultValue) {
+        if (values == null || values.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(values.get(0));
+        } catch (final NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static org.opennms.netmgt.xml.event.Event createTrap(String enterprise, int generic, int specific) {
+        final EventBuilder bldr = new EventBuilder(null, "trapd");
+        bldr.setInterface(addr("127.0.0.1"));
+        bldr.setSnmpVersion("v2c");
+        bldr.setEnterpriseId(enterprise);
+        bldr.setGeneric(generic);
+        bldr.setSpecific(specific);
+        bldr.setSnmpHost("127.0.0.1");
+        return bldr.getEvent();
+    }
+
+    @Test
+    public void testIndexMatchesLinearSearch() {
+        final Events events = m_eventConfDao.getRootEvents();
+        final EventConfMatchingIndex index = EventConfMatchingIndex.build(events);
+
+        for (org.opennms.netmgt.xml.event.Event event : m_trapMix) {
+            assertSame("UEI " + event.getUei() + ", id " + (event.getSnmp() == null ? null : event.getSnmp().getId()),
+                    events.findFirstMatchingEvent(event), index.findFirstMatchingEvent(event));
+        }
+    }
+
+    @Test
+    @Ignore
+    public void trapMixPerfTest() {
+        final Events events = m_eventConfDao.getRootEvents();
+        final EventConfMatchingIndex index = EventConfMatchingIndex.build(events);
+        final int numLookups = 1000000;
+
+        long start = System.currentTimeMillis();
+        for (int k = 0; k < numLookups; k++) {
+            events.findFirstMatchingEvent(m_trapMix.get(k % m_trapMix.size()));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.err.println("events: " + m_trapMix.size() + ", linear search elapsed: " + elapsed);
+
+        start = System.currentTimeMillis();
+        for (int k = 0; k < numLookups; k++) {
+            index.findFirstMatchingEvent(m_trapMix.get(k % m_trapMix.size()));
+        }
+        elapsed = System.currentTimeMillis() - start;
+        System.err.println("events: " + m_trapMix.size() + ", index elapsed: " + elapsed);
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Test;
+import org.opennms.netmgt.config.notifications.Notification;
+import org.opennms.netmgt.config.notifications.Notifications;
+
+public class NotificationIndexTest {
+
+    private final Notifications m_notifications = new Notifications();
+
+    private void addNotification(String uei, String severity) {
+        final Notification notif = new Notification();
+        notif.setName("notif" + m_notifications.getNotificationCount());
+        notif.setUei(uei);
+        notif.setEventSeverity(severity);
+        m_notifications.addNotification(notif);
+    }
+
+    @Test
+    public void testPositionsInConfigurationOrder() {
+        addNotification("~uei\\.opennms\\.org/nodes/.*", null);
+        addNotification("uei.opennms.org/nodes/nodeDown", null);
+        addNotification("MATCH-ANY-UEI", null);
+        addNotification("uei.opennms.org/nodes/nodeUp", null);
+        addNotification("uei.opennms.org/nodes/nodeDown", null);
+
+        final NotificationIndex index = new NotificationIndex(m_notifications);
+        assertArrayEquals(new int[] { 0, 1, 2, 4 }, index.getPositions("uei.opennms.org/nodes/nodeDown"));
+        assertArrayEquals(new int[] { 0, 2, 3 }, index.getPositions("uei.opennms.org/nodes/nodeUp"));
+        assertArrayEquals(new int[] { 2 }, index.getPositions("uei.opennms.org/internal/foo"));
+    }
+
+    @Test
+    public void testRegexMatchingItself() {
+        // the UEI of the event can be the regular expression itself
+        addNotification("~uei.*", null);
+        addNotification("~foo", null);
+
+        final NotificationIndex index = new NotificationIndex(m_notifications);
+        assertArrayEquals(new int[] { 0 }, index.getPositions("~uei.*"));
+        assertArrayEquals(new int[] { 1 }, index.getPositions("~foo"));
+        assertArrayEquals(new int[0], index.getPositions("bar"));
+    }
+
+    @Test
+    public void testSeverities() {
+        addNotification("uei", "Major|Critical");
+        addNotification("uei", null);
+        addNotification("uei", "(");
+
+        final NotificationIndex index = new NotificationIndex(m_notifications);
+        assertTrue(index.matchesSeverity(0, "Critical"));
+        assertTrue(index.matchesSeverity(0, "MAJOR"));
+        assertFalse(index.matchesSeverity(0, "Minor"));
+        assertTrue(index.matchesSeverity(1, "Minor"));
+        try {
+            index.matchesSeverity(2, "Minor");
+            fail("expected the invalid severity pattern to fail as before");
+        } catch (PatternSyntaxException e) {
+            // as String.matches() did
+        }
+    }
+
+    /**
+     * Compares the candidates with the scan previously done by
+     * {@link NotificationManager#getNotifForEvent}.
+     */
+    @Test
+    public void testMatchesLegacyScan() {
+        final String[] ueis = { "uei.opennms.org/nodes/nodeDown", "uei.opennms.org/nodes/nodeUp", "uei.opennms.org/nodes/nodeLostService",
+                "uei.opennms.org/generic/traps/SNMP_Link_Down", "uei.opennms.org/threshold/highThresholdExceeded", "MATCH-ANY-UEI",
+                "~^uei\\.opennms\\.org/nodes/node.*", "~.*Threshold.*", "~uei.opennms.org/generic/traps/SNMP_Link_(Up|Down)" };
+        final Random random = new Random(0);
+        for (int i = 0; i < 200; i++) {
+            addNotification(ueis[random.nextInt(ueis.length)], null);
+        }
+        final NotificationIndex index = new NotificationIndex(m_notifications);
+
+        for (String uei : ueis) {
+            final List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < m_notifications.getNotificationCount(); i++) {
+                final Notification notif = m_notifications.getNotification(i);
+                if (uei.equals(notif.getUei()) || "MATCH-ANY-UEI".equals(notif.getUei())
+                        || (notif.getUei().charAt(0) == '~' && uei.matches(notif.getUei().substring(1)))) {
+                    expected.add(i);
+                }
+            }
+            final List<Integer> actual = new ArrayList<Integer>();
+            for (int position : index.getPositions(uei)) {
+                actual.add(position);
+            }
+            assertEquals(uei, expected, actual);
+        }
+    }
+}
@@ -151,4 +151,20 @@ public interface ResourceStorageDao {
      */
     public Map<String,String> getMetaData(ResourcePath path);
 
+    /**
+     * Notifies the DAO that metrics were persisted under the given resource
+     * name at the given path, i.e. that the .rrd or .jrb file with this name
+     * was created or updated.
+     *
+     * Strategies that keep an index of the resource tree use this to keep it
+     * up-to-date without walking the storage again. Others may choose to
+     * ignore calls to this method.
+     *
+     * @param path resource path
+     * @param resourceName name of the resource, without any file extension
+     */
+    public default void metricsPersisted(ResourcePath path, String resourceName) {
+        // Nothing to do by default
+    }
+
 }
@@ -50,6 +50,7 @@ import org.opennms.netmgt.rrd.RrdStrategy;
 import org.opennms.netmgt.rrd.RrdMetaDataUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 
@@ -61,9 +62,13 @@ import com.google.common.collect.Maps;
  * Used in conjunction with RRD/JRB strategies that persist
  * metrics to the local disk.
  *
+ * When the index is enabled, the resource tree is read once, in the
+ * background, and lookups are answered from a {@link ResourceTreeIndex}
+ * as soon as it is built.
+ *
  * @author jwhite
  */
-public class FilesystemResourceStorageDao implements ResourceStorageDao, InitializingBean {
+public class FilesystemResourceStorageDao implements ResourceStorageDao, InitializingBean, DisposableBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(FilesystemResourceStorageDao.class);
 
@@ -74,27 +79,93 @@ public class FilesystemResourceStorageDao implements ResourceStorageDao, Initial
 
     private File m_rrdDirectory;
 
+    private boolean m_indexEnabled = false;
+
+    private boolean m_indexWatchEnabled = false;
+
+    private int m_indexThreads = 8;
+
+    /**
+     * The index of the resource tree, or <code>null</code> if it is disabled.
+     * Changes are recorded in it while it is being built.
+     */
+    private volatile ResourceTreeIndex m_index;
+
     @Override
     public void afterPropertiesSet() throws Exception {
         BeanUtils.assertAutowiring(this);
         setRrdExtension(m_rrdStrategy.getDefaultFileExtension());
+
+        if (m_indexEnabled) {
+            final ResourceTreeIndex index = new ResourceTreeIndex(m_rrdDirectory.toPath(), RRD_EXTENSION);
+            if (m_indexWatchEnabled) {
+                index.startWatching();
+            }
+            m_index = index;
+
+            final Thread builder = new Thread(() -> index.build(m_indexThreads), "ResourceTreeIndex-Builder");
+            builder.setDaemon(true);
+            builder.start();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        final ResourceTreeIndex index = m_index;
+        if (index != null) {
+            index.stopWatching();
+        }
+    }
+
+    /**
+     * Returns the index if lookups can be answered from it.
+     */
+    private ResourceTreeIndex getIndex() {
+        final ResourceTreeIndex index = m_index;
+        return index != null && index.isReady() ? index : null;
+    }
+
+    protected boolean isIndexReady() {
+        return getIndex() != null;
     }
 
     @Override
     public boolean exists(ResourcePath path, int depth) {
         Preconditions.checkArgument(depth >= 0, "depth must be non-negative");
+        final ResourceTreeIndex index = getIndex();
+        if (index != null) {
+            final ResourceTreeIndex.Directory directory = index.get(path);
+            return directory != null && ResourceTreeIndex.exists(directory, depth);
+        }
         return exists(toFile(path).toPath(), depth);
     }
 
     @Override
     public boolean existsWithin(ResourcePath path, int depth) {
         Preconditions.checkArgument(depth >= 0, "depth must be non-negative");
+        final ResourceTreeIndex index = getIndex();
+        if (index != null) {
+            final ResourceTreeIndex.Directory directory = index.get(path);
+            return directory != null && ResourceTreeIndex.existsWithin(directory, depth);
+        }
         return existsWithin(toFile(path).toPath(), depth);
     }
 
     @Override
     public Set<ResourcePath> children(ResourcePath path, int depth) {
         Preconditions.checkArgument(depth > 0, "depth must be positive");
+        final ResourceTreeIndex index = getIndex();
+        if (index != null) {
+            final ResourceTreeIndex.Directory directory = index.get(path);
+            if (directory == null) {
+                return Collections.emptySet();
+            }
+            return directory.getChildren().entrySet().stream()
+                .filter(e -> ResourceTreeIndex.exists(e.getValue(), depth-1)) // filter for folders with metrics
+                .map(e -> ResourcePath.get(path, e.getKey()))
+                .collect(Collectors.toSet());
+        }
+
         final File root = toFile(path);
         if (!root.isDirectory()) {
             return Collections.emptySet();
@@ -113,6 +184,15 @@ public class FilesystemResourceStorageDao implements ResourceStorageDao, Initial
 
     @Override
     public Set<OnmsAttribute> getAttributes(ResourcePath path) {
+        final ResourceTreeIndex index = getIndex();
+        if (index != null) {
+            final ResourceTreeIndex.Directory directory = index.get(path);
+            if (directory == null) {
+                return Collections.emptySet();
+            }
+            return RrdResourceAttributeUtils.getAttributes(toRelativePath(path), directory.getMetrics(),
+                    directory.getDsProperties(), directory.getStrings(), RRD_EXTENSION);
+        }
         return RrdResourceAttributeUtils.getAttributesAtRelativePath(m_rrdDirectory, toRelativePath(path), RRD_EXTENSION);
     }
 
@@ -123,15 +203,32 @@ public class FilesystemResourceStorageDao implements ResourceStorageDao, Initial
         } catch (IOException e) {
             throw Throwables.propagate(e);
         }
+
+        final ResourceTreeIndex index = m_index;
+        if (index != null) {
+            index.putStrings(path, Collections.singletonMap(key, value));
+        }
     }
 
     @Override
     public String getStringAttribute(ResourcePath path, String key) {
+        final ResourceTreeIndex index = getIndex();
+        if (index != null) {
+            final ResourceTreeIndex.Directory directory = index.get(path);
+            final Map<String, String> strings = directory == null ? null : directory.getStrings();
+            return strings == null ? null : strings.get(key);
+        }
         return RrdResourceAttributeUtils.getStringProperty(toFile(path), key);
     }
 
     @Override
     public Map<String, String> getStringAttributes(ResourcePath path) {
+        final ResourceTreeIndex index = getIndex();
+        if (index != null) {
+            final ResourceTreeIndex.Directory directory = index.get(path);
+            final Map<String, String> strings = directory == null ? null : directory.getStrings();
+            return strings == null ? Collections.emptyMap() : strings;
+        }
         Properties props = RrdResourceAttributeUtils.getStringProperties(m_rrdDirectory, toRelativePath(path));
         return Maps.fromProperties(props);
     }
@@ -139,6 +236,19 @@ public class FilesystemResourceStorageDao implements ResourceStorageDao, Initial
     @Override
     public void updateMetricToResourceMappings(ResourcePath path, Map<String, String> metricsNameToResourceNames) {
         RrdResourceAttributeUtils.updateDsProperties(toFile(path), metricsNameToResourceNames);
+
+        final ResourceTreeIndex index = m_index;
+        if (index != null) {
+            index.putDsProperties(path, metricsNameToResourceNames);
+        }
+    }
+
+    @Override
+    public void metricsPersisted(ResourcePath path, String resourceName) {
+        final ResourceTreeIndex index = m_index;
+        if (index != null) {
+            index.addMetric(path, resourceName + RRD_EXTENSION);
+        }
     }
 
     @Override
@@ -148,7 +258,13 @@ public class FilesystemResourceStorageDao implements ResourceStorageDao, Initial
 
     @Override
     public boolean delete(ResourcePath path) {
-        return FileUtils.deleteQuietly(toFile(path));
+        final boolean deleted = FileUtils.deleteQuietly(toFile(path));
+
+        final ResourceTreeIndex index = m_index;
+        if (index != null) {
+            index.remove(path);
+        }
+        return deleted;
     }
 
     private boolean exists(Path root, int depth) {
@@ -216,6 +332,18 @@ public class FilesystemResourceStorageDao implements ResourceStorageDao, Initial
         RRD_EXTENSION = rrdExtension;
     }
 
+    public void setIndexEnabled(boolean indexEnabled) {
+        m_indexEnabled = indexEnabled;
+    }
+
+    public void setIndexWatchEnabled(boolean indexWatchEnabled) {
+        m_indexWatchEnabled = indexWatchEnabled;
+    }
+
+    public void setIndexThreads(int indexThreads) {
+        m_indexThreads = indexThreads;
+    }
+
     private static Predicate<Path> isRrdFile = new Predicate<Path>() {
         @Override
         public boolean test(Path path) {
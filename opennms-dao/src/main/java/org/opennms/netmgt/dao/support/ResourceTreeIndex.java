@@ -0,0 +1,532 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.dao.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.netmgt.model.ResourcePath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * An in-memory copy of the resource tree below the RRD directory: the
+ * directories, the names of the RRD files in each of them, and the
+ * contents of their <code>strings.properties</code> and
+ * <code>ds.properties</code> files.
+ *
+ * <p>The tree is built with a parallel walk and is kept up to date by the
+ * {@link FilesystemResourceStorageDao}, which is told when persisters
+ * create files and writes the properties files itself. Changes made by
+ * anything else are only seen when the index watches the directories
+ * with a {@link WatchService}.</p>
+ *
+ * @see FilesystemResourceStorageDao
+ */
+class ResourceTreeIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResourceTreeIndex.class);
+
+    private static final String[] NO_METRICS = new String[0];
+
+    /**
+     * A directory of the resource tree.
+     */
+    static class Directory {
+        /**
+         * The sub-directories, or <code>null</code> if there are none.
+         */
+        private volatile Map<String, Directory> m_children;
+
+        /**
+         * The sorted names of the RRD files, replaced on every change.
+         */
+        private volatile String[] m_metrics = NO_METRICS;
+
+        /**
+         * The string attributes and metric to resource mappings, replaced on
+         * every change, or <code>null</code> if the file doesn't exist.
+         */
+        private volatile Map<String, String> m_strings;
+        private volatile Map<String, String> m_dsProperties;
+
+        public Directory getChild(String name) {
+            final Map<String, Directory> children = m_children;
+            return children == null ? null : children.get(name);
+        }
+
+        public Map<String, Directory> getChildren() {
+            final Map<String, Directory> children = m_children;
+            return children == null ? Collections.<String, Directory>emptyMap() : children;
+        }
+
+        public String[] getMetrics() {
+            return m_metrics;
+        }
+
+        public Map<String, String> getStrings() {
+            return m_strings;
+        }
+
+        public Map<String, String> getDsProperties() {
+            return m_dsProperties;
+        }
+
+        private synchronized Directory getOrCreateChild(String name) {
+            if (m_children == null) {
+                m_children = new ConcurrentHashMap<String, Directory>(4);
+            }
+            Directory child = m_children.get(name);
+            if (child == null) {
+                child = new Directory();
+                m_children.put(name, child);
+            }
+            return child;
+        }
+
+        private synchronized void removeChild(String name) {
+            if (m_children != null) {
+                m_children.remove(name);
+            }
+        }
+
+        private synchronized void addMetric(String name) {
+            final String[] metrics = m_metrics;
+            final int index = Arrays.binarySearch(metrics, name);
+            if (index < 0) {
+                final int insertAt = -(index + 1);
+                final String[] newMetrics = new String[metrics.length + 1];
+                System.arraycopy(metrics, 0, newMetrics, 0, insertAt);
+                newMetrics[insertAt] = name;
+                System.arraycopy(metrics, insertAt, newMetrics, insertAt + 1, metrics.length - insertAt);
+                m_metrics = newMetrics;
+            }
+        }
+
+        private synchronized void removeMetric(String name) {
+            final String[] metrics = m_metrics;
+            final int index = Arrays.binarySearch(metrics, name);
+            if (index >= 0) {
+                final String[] newMetrics = new String[metrics.length - 1];
+                System.arraycopy(metrics, 0, newMetrics, 0, index);
+                System.arraycopy(metrics, index + 1, newMetrics, index, metrics.length - index - 1);
+                m_metrics = newMetrics;
+            }
+        }
+    }
+
+    private final Path m_root;
+
+    private final String m_rrdExtension;
+
+    private final Directory m_rootDirectory = new Directory();
+
+    /**
+     * Metric and attribute names repeat in every resource of a type, so they
+     * are only kept once.
+     */
+    private final Interner<String> m_names = Interners.newStrongInterner();
+
+    private volatile boolean m_ready = false;
+
+    private WatchService m_watchService;
+    private final Map<WatchKey, Path> m_watchKeys = new ConcurrentHashMap<WatchKey, Path>();
+    private volatile boolean m_watchLimitReached = false;
+
+    public ResourceTreeIndex(Path root, String rrdExtension) {
+        m_root = root;
+        m_rrdExtension = rrdExtension;
+    }
+
+    /**
+     * Walks the whole tree with the given number of threads. Changes that
+     * are reported while the tree is being walked are kept.
+     */
+    public void build(int threads) {
+        final long start = System.currentTimeMillis();
+        walk(m_root, m_rootDirectory, threads);
+        m_ready = true;
+        LOG.info("Indexed the resource tree below {} in {}ms", m_root, System.currentTimeMillis() - start);
+    }
+
+    private void walk(Path path, Directory directory, int threads) {
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new Walker(path, directory));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns true once the tree has been walked.
+     */
+    public boolean isReady() {
+        return m_ready;
+    }
+
+    /**
+     * Starts watching the directories for changes made by other processes.
+     * This must be called before {@link #build(int)} so that the directories
+     * are registered as they are walked.
+     */
+    public void startWatching() throws IOException {
+        m_watchService = m_root.getFileSystem().newWatchService();
+        final Thread thread = new Thread(this::watch, "ResourceTreeIndex-Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stopWatching() {
+        if (m_watchService != null) {
+            try {
+                m_watchService.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close the watch service.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the directory at the given path, or <code>null</code> if
+     * there is none.
+     */
+    public Directory get(ResourcePath path) {
+        Directory directory = m_rootDirectory;
+        for (final String element : path) {
+            directory = directory.getChild(element);
+            if (directory == null) {
+                return null;
+            }
+        }
+        return directory;
+    }
+
+    private Directory getOrCreate(ResourcePath path) {
+        Directory directory = m_rootDirectory;
+        for (final String element : path) {
+            directory = directory.getOrCreateChild(m_names.intern(element));
+        }
+        return directory;
+    }
+
+    /**
+     * Records that an RRD file with the given name exists at the given path.
+     */
+    public void addMetric(ResourcePath path, String fileName) {
+        getOrCreate(path).addMetric(m_names.intern(fileName));
+    }
+
+    /**
+     * Merges the given string attributes into the ones at the given path.
+     */
+    public void putStrings(ResourcePath path, Map<String, String> strings) {
+        final Directory directory = getOrCreate(path);
+        synchronized (directory) {
+            directory.m_strings = merge(directory.m_strings, strings, true);
+        }
+    }
+
+    /**
+     * Merges the given metric to resource mappings into the ones at the
+     * given path.
+     */
+    public void putDsProperties(ResourcePath path, Map<String, String> dsProperties) {
+        final Directory directory = getOrCreate(path);
+        synchronized (directory) {
+            directory.m_dsProperties = merge(directory.m_dsProperties, dsProperties, true);
+        }
+    }
+
+    /**
+     * Removes the given path and everything below it.
+     */
+    public void remove(ResourcePath path) {
+        final String[] elements = path.elements();
+        if (elements.length == 0) {
+            synchronized (m_rootDirectory) {
+                m_rootDirectory.m_children = null;
+                m_rootDirectory.m_metrics = NO_METRICS;
+                m_rootDirectory.m_strings = null;
+                m_rootDirectory.m_dsProperties = null;
+            }
+            return;
+        }
+        final Directory parent = get(ResourcePath.get(Arrays.asList(elements).subList(0, elements.length - 1)));
+        if (parent != null) {
+            parent.removeChild(elements[elements.length - 1]);
+        }
+    }
+
+    /**
+     * Returns true if the given directory contains RRD files at exactly the
+     * given depth.
+     */
+    public static boolean exists(Directory directory, int depth) {
+        if (depth == 0) {
+            return directory.getMetrics().length > 0;
+        }
+        for (final Directory child : directory.getChildren().values()) {
+            if (exists(child, depth - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given directory contains RRD files at the given
+     * depth or above.
+     */
+    public static boolean existsWithin(Directory directory, int depth) {
+        if (depth < 0) {
+            return false;
+        }
+        if (directory.getMetrics().length > 0) {
+            return true;
+        }
+        for (final Directory child : directory.getChildren().values()) {
+            if (existsWithin(child, depth - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, String> merge(Map<String, String> existing, Map<String, String> values, boolean overwrite) {
+        final Map<String, String> merged = existing == null ? new HashMap<String, String>() : new HashMap<String, String>(existing);
+        for (final Map.Entry<String, String> entry : values.entrySet()) {
+            if (overwrite || !merged.containsKey(entry.getKey())) {
+                merged.put(m_names.intern(entry.getKey()), entry.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(merged);
+    }
+
+    /**
+     * Indexes a file that was found in a directory. Properties files that
+     * were read while an attribute was being set don't overwrite it.
+     */
+    private void indexFile(Directory directory, Path file, boolean overwrite) {
+        final String name = file.getFileName().toString();
+        if (name.endsWith(m_rrdExtension)) {
+            directory.addMetric(m_names.intern(name));
+        } else if (RrdResourceAttributeUtils.STRINGS_PROPERTIES_FILE_NAME.equals(name)) {
+            final Map<String, String> strings = readProperties(file);
+            synchronized (directory) {
+                directory.m_strings = merge(overwrite ? null : directory.m_strings, strings, overwrite);
+            }
+        } else if (RrdResourceAttributeUtils.DS_PROPERTIES_FILE.equals(name)) {
+            final Map<String, String> dsProperties = readProperties(file);
+            synchronized (directory) {
+                directory.m_dsProperties = merge(overwrite ? null : directory.m_dsProperties, dsProperties, overwrite);
+            }
+        }
+    }
+
+    private static Map<String, String> readProperties(Path file) {
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            LOG.warn("Failed to read {}.", file, e);
+        }
+        final Map<String, String> values = new HashMap<String, String>();
+        for (final String key : properties.stringPropertyNames()) {
+            values.put(key, properties.getProperty(key));
+        }
+        return values;
+    }
+
+    /**
+     * Indexes a directory and submits a task for each of its
+     * sub-directories.
+     */
+    private class Walker extends RecursiveAction {
+        private static final long serialVersionUID = -2811637186356311946L;
+
+        private final Path m_path;
+        private final Directory m_directory;
+
+        public Walker(Path path, Directory directory) {
+            m_path = path;
+            m_directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            register(m_path);
+
+            final List<Walker> walkers = new ArrayList<Walker>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(m_path)) {
+                for (final Path path : stream) {
+                    if (isDirectory(path)) {
+                        walkers.add(new Walker(path, m_directory.getOrCreateChild(m_names.intern(path.getFileName().toString()))));
+                    } else {
+                        indexFile(m_directory, path, false);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Failed to list {}. Its resources will be missing from the index.", m_path, e);
+            }
+            invokeAll(walkers);
+        }
+
+        /**
+         * Follows links to directories, unless they point to a directory
+         * above it.
+         */
+        private boolean isDirectory(Path path) {
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!attributes.isSymbolicLink()) {
+                    return attributes.isDirectory();
+                }
+                if (!Files.isDirectory(path)) {
+                    return false;
+                }
+                if (m_path.toRealPath().startsWith(path.toRealPath())) {
+                    LOG.warn("Not following {}, which links to a parent directory.", path);
+                    return false;
+                }
+                return true;
+            } catch (IOException e) {
+                LOG.warn("Failed to read the attributes of {}.", path, e);
+                return false;
+            }
+        }
+    }
+
+    private void register(Path path) {
+        if (m_watchService == null || m_watchLimitReached) {
+            return;
+        }
+        try {
+            m_watchKeys.put(path.register(m_watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), path);
+        } catch (IOException e) {
+            // i.e. fs.inotify.max_user_watches was reached
+            m_watchLimitReached = true;
+            LOG.warn("Failed to watch {}. Changes made to the directories that aren't watched by now will be missed.", path, e);
+        } catch (ClosedWatchServiceException e) {
+            // Stopping
+        }
+    }
+
+    private ResourcePath toResourcePath(Path path) {
+        if (path.equals(m_root)) {
+            return ResourcePath.get();
+        }
+        return ResourcePath.get(m_root.relativize(path));
+    }
+
+    private void watch() {
+        while (true) {
+            final WatchKey key;
+            try {
+                key = m_watchService.poll(1, TimeUnit.SECONDS);
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (key == null) {
+                continue;
+            }
+
+            final Path path = m_watchKeys.get(key);
+            if (path != null) {
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        handle(path, event);
+                    } catch (Throwable t) {
+                        LOG.warn("Failed to handle {} of {} in {}.", event.kind(), event.context(), path, t);
+                    }
+                }
+            }
+            if (!key.reset()) {
+                m_watchKeys.remove(key);
+            }
+        }
+    }
+
+    private void handle(Path path, WatchEvent<?> event) {
+        final ResourcePath resourcePath = toResourcePath(path);
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            LOG.warn("Events were lost while watching {}. Indexing it again.", path);
+            walk(path, getOrCreate(resourcePath), 1);
+            return;
+        }
+
+        final Path child = path.resolve((Path)event.context());
+        final String name = child.getFileName().toString();
+        final Directory directory = getOrCreate(resourcePath);
+        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            directory.removeChild(name);
+            directory.removeMetric(name);
+            if (RrdResourceAttributeUtils.STRINGS_PROPERTIES_FILE_NAME.equals(name)) {
+                directory.m_strings = null;
+            } else if (RrdResourceAttributeUtils.DS_PROPERTIES_FILE.equals(name)) {
+                directory.m_dsProperties = null;
+            }
+        } else if (Files.isDirectory(child)) {
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                walk(child, directory.getOrCreateChild(m_names.intern(name)), 1);
+            }
+        } else if (Files.isRegularFile(child)) {
+            indexFile(directory, child, true);
+        }
+    }
+}
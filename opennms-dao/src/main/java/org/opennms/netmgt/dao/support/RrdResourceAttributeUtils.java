@@ -81,6 +81,47 @@ public abstract class RrdResourceAttributeUtils {
         return attributes;
     }
 
+    /**
+     * Builds the same attributes as {@link #getAttributesAtRelativePath}
+     * from the contents of a resource directory that were already read.
+     *
+     * @param relativePath a {@link java.lang.String} object.
+     * @param rrdFileNames the names of the RRD files in the directory
+     * @param dsProperties the contents of the ds.properties file, or null
+     * @param stringProperties the contents of the strings.properties file, or null
+     * @param rrdFileSuffix a {@link java.lang.String} object.
+     * @return a {@link java.util.Set} object.
+     */
+    protected static Set<OnmsAttribute> getAttributes(String relativePath, String[] rrdFileNames, Map<String, String> dsProperties, Map<String, String> stringProperties, String rrdFileSuffix) {
+        Set<OnmsAttribute> attributes =  new HashSet<OnmsAttribute>();
+
+        int suffixLength = rrdFileSuffix.length();
+        for (final String fileName : rrdFileNames) {
+            if (ResourceTypeUtils.isStoreByGroup() && !ResourceTypeUtils.isResponseTime(relativePath)) {
+                if (dsProperties == null) {
+                    continue;
+                }
+                String groupName = fileName.substring(0, fileName.length() - suffixLength);
+                for (Entry<String, String> entry : dsProperties.entrySet()) {
+                    if (entry.getValue().equals(groupName)) {
+                        attributes.add(new RrdGraphAttribute(entry.getKey(), relativePath, fileName));
+                    }
+                }
+            } else {
+                String dsName = fileName.substring(0, fileName.length() - suffixLength);
+                attributes.add(new RrdGraphAttribute(dsName, relativePath, fileName));
+            }
+        }
+
+        if (stringProperties != null) {
+            for (Entry<String, String> entry : stringProperties.entrySet()) {
+                attributes.add(new StringPropertyAttribute(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        return attributes;
+    }
+
     private static void loadStringAttributes(File rrdDirectory,
             String relativePath, Set<OnmsAttribute> attributes) {
         Properties properties = getStringProperties(rrdDirectory, relativePath);
@@ -29,9 +29,13 @@
 package org.opennms.netmgt.config;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.opennms.core.utils.InetAddressUtils.addr;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.sql.DataSource;
 
@@ -39,6 +43,7 @@ import org.exolab.castor.xml.MarshalException;
 import org.exolab.castor.xml.ValidationException;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.opennms.core.spring.BeanUtils;
@@ -52,6 +57,7 @@ import org.opennms.netmgt.dao.api.IpInterfaceDao;
 import org.opennms.netmgt.dao.api.MonitoredServiceDao;
 import org.opennms.netmgt.dao.api.NodeDao;
 import org.opennms.netmgt.dao.api.ServiceTypeDao;
+import org.opennms.netmgt.events.api.EventConstants;
 import org.opennms.netmgt.filter.FilterDaoFactory;
 import org.opennms.netmgt.filter.JdbcFilterDao;
 import org.opennms.netmgt.filter.api.FilterParseException;
@@ -61,6 +67,7 @@ import org.opennms.netmgt.model.OnmsMonitoredService;
 import org.opennms.netmgt.model.OnmsNode;
 import org.opennms.netmgt.model.OnmsServiceType;
 import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.event.Event;
 import org.opennms.test.JUnitConfigurationEnvironment;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -411,6 +418,78 @@ public class NotificationManagerIT implements InitializingBean {
                 false);
     }
     
+    /**
+     * The cached matches of a rule are only reloaded for a node when an
+     * event says that the node changed.
+     */
+    @Test
+    @JUnitTemporaryDatabase // Relies on specific IDs so we need a fresh database
+    public void testRefreshRuleMatches() {
+        Notification notif = new Notification();
+        notif.setName("a notification");
+        notif.setRule("(ipaddr == '192.168.1.3')");
+        Event event = createEvent("uei.opennms.org/doNotCareAboutTheUei", 4, "192.168.1.3", "HTTP");
+
+        m_notificationManager.setRuleCache(new NotificationRuleCache(60000));
+        assertFalse(m_notificationManager.nodeInterfaceServiceValid(notif, event));
+
+        OnmsIpInterface ipInterface = m_ipInterfaceDao.findByNodeIdAndIpAddress(4, "192.168.1.3");
+        OnmsMonitoredService service = new OnmsMonitoredService(ipInterface, m_serviceTypeDao.findByName("HTTP"));
+        m_serviceDao.save(service);
+        m_serviceDao.flush();
+        assertFalse(m_notificationManager.nodeInterfaceServiceValid(notif, event));
+
+        // an event for another node doesn't change anything
+        m_notificationManager.refreshRuleMatches(createEvent(EventConstants.NODE_GAINED_SERVICE_EVENT_UEI, 3, "192.168.1.2", "HTTP"));
+        assertFalse(m_notificationManager.nodeInterfaceServiceValid(notif, event));
+
+        m_notificationManager.refreshRuleMatches(createEvent(EventConstants.NODE_GAINED_SERVICE_EVENT_UEI, 4, "192.168.1.3", "HTTP"));
+        assertTrue(m_notificationManager.nodeInterfaceServiceValid(notif, event));
+        assertTrue(m_notificationManager.nodeInterfaceServiceValid(notif, createEvent("uei.opennms.org/doNotCareAboutTheUei", 0, "192.168.1.3", "HTTP")));
+
+        m_serviceDao.delete(service);
+        m_serviceDao.flush();
+        m_notificationManager.refreshRuleMatches(createEvent(EventConstants.SERVICE_DELETED_EVENT_UEI, 4, "192.168.1.3", "HTTP"));
+        assertFalse(m_notificationManager.nodeInterfaceServiceValid(notif, event));
+        assertFalse(m_notificationManager.nodeInterfaceServiceValid(notif, createEvent("uei.opennms.org/doNotCareAboutTheUei", 0, "192.168.1.3", "HTTP")));
+        assertTrue(m_notificationManager.nodeInterfaceServiceValid(notif, createEvent("uei.opennms.org/doNotCareAboutTheUei", 0, "192.168.1.3", null)));
+    }
+
+    /**
+     * Matches events against a few typical rules, querying the database for
+     * every event as before, and from the cached matches.
+     */
+    @Test
+    @Ignore
+    @JUnitTemporaryDatabase
+    public void ruleMatchingPerfTest() {
+        final int numEvents = 5000;
+        final String[] rules = { "IPADDR != '0.0.0.0'", "(ipaddr IPLIKE 192.168.*.*)", "(catincCategoryOne) & (catincCategoryTwo)", "(nodelabel=='node 1') | (nodelabel=='node 2')" };
+        final List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < numEvents; i++) {
+            events.add(createEvent("uei.opennms.org/doNotCareAboutTheUei", 1 + (i % 4), i % 2 == 0 ? "192.168.1.1" : null, i % 4 == 0 ? "HTTP" : null));
+        }
+
+        for (final NotificationRuleCache ruleCache : new NotificationRuleCache[] { null, new NotificationRuleCache(60000) }) {
+            m_notificationManager.setRuleCache(ruleCache);
+            int matched = 0;
+            final long start = System.nanoTime();
+            for (final Event event : events) {
+                for (final String rule : rules) {
+                    Notification notif = new Notification();
+                    notif.setName(rule);
+                    notif.setRule(rule);
+                    if (m_notificationManager.nodeInterfaceServiceValid(notif, event)) {
+                        matched++;
+                    }
+                }
+            }
+            final long elapsed = System.nanoTime() - start;
+            System.err.printf("%s: %d events against %d rules, %.1f us per event (%d matched)%n", ruleCache == null ? "database" : "cached",
+                    numEvents, rules.length, elapsed / 1000.0 / numEvents, matched);
+        }
+    }
+
     private void doTestNodeInterfaceServiceWithRule(String description, int nodeId, String intf, String svc, String rule, boolean matches) {
         Notification notif = new Notification();
         notif.setName("a notification");
@@ -421,7 +500,21 @@ public class NotificationManagerIT implements InitializingBean {
         builder.setInterface(addr(intf));
         builder.setService(svc);
 
+        m_notificationManager.setRuleCache(null);
         assertEquals(description, matches, m_notificationManager.nodeInterfaceServiceValid(notif, builder.getEvent()));
+
+        // the same, from the matches cached in memory
+        m_notificationManager.setRuleCache(new NotificationRuleCache(60000));
+        assertEquals(description + " (cached)", matches, m_notificationManager.nodeInterfaceServiceValid(notif, builder.getEvent()));
+        assertEquals(description + " (cached, again)", matches, m_notificationManager.nodeInterfaceServiceValid(notif, builder.getEvent()));
+    }
+
+    private Event createEvent(String uei, int nodeId, String intf, String svc) {
+        EventBuilder builder = new EventBuilder(uei, "Test.Event");
+        builder.setNodeid(nodeId);
+        builder.setInterface(addr(intf));
+        builder.setService(svc);
+        return builder.getEvent();
     }
     
     public static class NotificationManagerImpl extends NotificationManager {
@@ -30,18 +30,26 @@ package org.opennms.netmgt.dao.support;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.function.BooleanSupplier;
 
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.opennms.netmgt.model.OnmsAttribute;
 import org.opennms.netmgt.model.ResourcePath;
+import org.opennms.netmgt.model.RrdGraphAttribute;
+import org.opennms.netmgt.model.StringPropertyAttribute;
 import org.opennms.netmgt.rrd.RrdStrategy;
 import org.opennms.netmgt.rrd.jrobin.JRobinRrdStrategy;
 
@@ -49,6 +57,8 @@ public class FilesystemResourceStorageDaoTest {
 
     private FilesystemResourceStorageDao m_fsResourceStorageDao = new FilesystemResourceStorageDao();
 
+    private FilesystemResourceStorageDao m_indexedResourceStorageDao;
+
     private String m_rrdFileExtension;
 
     @Rule
@@ -63,6 +73,13 @@ public class FilesystemResourceStorageDaoTest {
         m_fsResourceStorageDao.setRrdStrategy(rrdStrategy);
     }
 
+    @After
+    public void tearDown() {
+        if (m_indexedResourceStorageDao != null) {
+            m_indexedResourceStorageDao.destroy();
+        }
+    }
+
     @Test
     public void exists() throws IOException {
         // Path is missing when the folder is missing
@@ -150,4 +167,139 @@ public class FilesystemResourceStorageDaoTest {
         Set<OnmsAttribute> attributes = m_fsResourceStorageDao.getAttributes(ResourcePath.get("a"));
         assertEquals(1, attributes.size());
     }
+
+    @Test
+    public void indexMatchesFilesystem() throws Exception {
+        File folder = tempFolder.newFolder("a", "b", "c");
+        new File(folder, "ds" + m_rrdFileExtension).createNewFile();
+        tempFolder.newFolder("a", "empty");
+        File other = tempFolder.newFolder("d");
+        new File(other, "ds" + m_rrdFileExtension).createNewFile();
+        m_fsResourceStorageDao.setStringAttribute(ResourcePath.get("d"), "key", "value");
+
+        FilesystemResourceStorageDao indexed = newIndexedDao(false);
+        for (ResourcePath path : new ResourcePath[] { ResourcePath.get(), ResourcePath.get("a"), ResourcePath.get("a", "b"),
+                ResourcePath.get("a", "empty"), ResourcePath.get("d"), ResourcePath.get("should", "not", "exist") }) {
+            for (int depth = 0; depth < 4; depth++) {
+                assertEquals(path + "@" + depth, m_fsResourceStorageDao.exists(path, depth), indexed.exists(path, depth));
+                assertEquals(path + "@" + depth, m_fsResourceStorageDao.existsWithin(path, depth), indexed.existsWithin(path, depth));
+                if (depth > 0) {
+                    assertEquals(path + "@" + depth, m_fsResourceStorageDao.children(path, depth), indexed.children(path, depth));
+                }
+            }
+            assertEquals(path.toString(), describe(m_fsResourceStorageDao.getAttributes(path)), describe(indexed.getAttributes(path)));
+        }
+        assertEquals("value", indexed.getStringAttribute(ResourcePath.get("d"), "key"));
+        assertEquals(Collections.singletonMap("key", "value"), indexed.getStringAttributes(ResourcePath.get("d")));
+    }
+
+    @Test
+    public void indexIsUpdatedOnWrites() throws Exception {
+        FilesystemResourceStorageDao indexed = newIndexedDao(false);
+        assertFalse(indexed.exists(ResourcePath.get("a"), 0));
+
+        // Persisters create the file and then tell the DAO about it
+        File folder = tempFolder.newFolder("a");
+        new File(folder, "ds" + m_rrdFileExtension).createNewFile();
+        indexed.metricsPersisted(ResourcePath.get("a"), "ds");
+        assertTrue(indexed.exists(ResourcePath.get("a"), 0));
+        assertTrue(indexed.existsWithin(ResourcePath.get(), 1));
+        assertEquals(1, indexed.getAttributes(ResourcePath.get("a")).size());
+
+        indexed.setStringAttribute(ResourcePath.get("a"), "key", "value");
+        assertEquals("value", indexed.getStringAttribute(ResourcePath.get("a"), "key"));
+        indexed.updateMetricToResourceMappings(ResourcePath.get("a"), Collections.singletonMap("ds", "ds"));
+        assertEquals(describe(m_fsResourceStorageDao.getAttributes(ResourcePath.get("a"))), describe(indexed.getAttributes(ResourcePath.get("a"))));
+
+        assertTrue(indexed.delete(ResourcePath.get("a")));
+        assertFalse(indexed.exists(ResourcePath.get("a"), 0));
+        assertNull(indexed.getStringAttribute(ResourcePath.get("a"), "key"));
+    }
+
+    @Test
+    public void indexSeesExternalChangesWhenWatching() throws Exception {
+        FilesystemResourceStorageDao indexed = newIndexedDao(true);
+
+        File folder = tempFolder.newFolder("a", "b");
+        new File(folder, "ds" + m_rrdFileExtension).createNewFile();
+        waitFor(() -> indexed.exists(ResourcePath.get("a", "b"), 0));
+
+        assertTrue(new File(folder, "ds" + m_rrdFileExtension).delete());
+        waitFor(() -> !indexed.exists(ResourcePath.get("a", "b"), 0));
+    }
+
+    /**
+     * Builds a tree with many nodes and interfaces, and compares the time
+     * it takes to look for the children of every node with and without the
+     * index.
+     */
+    @Test
+    @Ignore
+    public void lookupPerfTest() throws Exception {
+        final int numNodes = 2000;
+        final int numInterfaces = 50;
+
+        final File snmp = tempFolder.newFolder("snmp");
+        for (int node = 1; node <= numNodes; node++) {
+            for (int iface = 0; iface < numInterfaces; iface++) {
+                final File folder = new File(snmp, node + File.separator + "eth" + iface);
+                folder.mkdirs();
+                new File(folder, "ifInOctets" + m_rrdFileExtension).createNewFile();
+                new File(folder, "ifOutOctets" + m_rrdFileExtension).createNewFile();
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        final FilesystemResourceStorageDao indexed = newIndexedDao(false);
+        System.err.println("index built in " + (System.currentTimeMillis() - start) + "ms");
+
+        for (FilesystemResourceStorageDao dao : new FilesystemResourceStorageDao[] { m_fsResourceStorageDao, indexed }) {
+            int found = 0;
+            start = System.currentTimeMillis();
+            for (int node = 1; node <= numNodes; node++) {
+                for (ResourcePath child : dao.children(ResourcePath.get("snmp", Integer.toString(node)), 1)) {
+                    found += dao.getAttributes(child).size();
+                }
+            }
+            System.err.println((dao == indexed ? "indexed: " : "filesystem: ") + (System.currentTimeMillis() - start) + "ms (" + found + " attributes)");
+        }
+    }
+
+    private FilesystemResourceStorageDao newIndexedDao(boolean watch) throws Exception {
+        m_indexedResourceStorageDao = new FilesystemResourceStorageDao();
+        m_indexedResourceStorageDao.setRrdDirectory(tempFolder.getRoot());
+        m_indexedResourceStorageDao.setRrdStrategy(new JRobinRrdStrategy());
+        m_indexedResourceStorageDao.setIndexEnabled(true);
+        m_indexedResourceStorageDao.setIndexWatchEnabled(watch);
+        m_indexedResourceStorageDao.afterPropertiesSet();
+        final FilesystemResourceStorageDao dao = m_indexedResourceStorageDao;
+        waitFor(() -> dao.isIndexReady());
+        return dao;
+    }
+
+    /**
+     * The attributes don't implement equals().
+     */
+    private static Set<String> describe(Set<OnmsAttribute> attributes) {
+        final Set<String> descriptions = new HashSet<String>();
+        for (OnmsAttribute attribute : attributes) {
+            if (attribute instanceof RrdGraphAttribute) {
+                descriptions.add("rrd:" + attribute.getName() + ":" + ((RrdGraphAttribute)attribute).getRrdRelativePath()
+                        + ":" + ((RrdGraphAttribute)attribute).getRrdFile());
+            } else if (attribute instanceof StringPropertyAttribute) {
+                descriptions.add("string:" + attribute.getName() + ":" + ((StringPropertyAttribute)attribute).getValue());
+            } else {
+                descriptions.add(attribute.getClass().getSimpleName() + ":" + attribute.getName());
+            }
+        }
+        return descriptions;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 30000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
 }
@@ -28,8 +28,11 @@
 
 package org.opennms.netmgt.provision.service;
 
+import java.io.File;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import org.opennms.core.tasks.BatchTask;
 import org.slf4j.Logger;
@@ -39,13 +42,17 @@ import org.opennms.netmgt.events.api.EventConstants;
 import org.opennms.netmgt.provision.persist.AbstractRequisitionVisitor;
 import org.opennms.netmgt.provision.persist.OnmsNodeRequisition;
 import org.opennms.netmgt.provision.persist.RequisitionVisitor;
+import org.opennms.netmgt.provision.persist.foreignsource.ForeignSource;
 import org.opennms.netmgt.provision.persist.requisition.Requisition;
 import org.opennms.netmgt.provision.service.lifecycle.LifeCycleInstance;
 import org.opennms.netmgt.provision.service.lifecycle.Phase;
 import org.opennms.netmgt.provision.service.lifecycle.annotations.Activity;
 import org.opennms.netmgt.provision.service.lifecycle.annotations.ActivityProvider;
+import org.opennms.netmgt.provision.service.lifecycle.annotations.Attribute;
 import org.opennms.netmgt.provision.service.operations.ImportOperation;
 import org.opennms.netmgt.provision.service.operations.ImportOperationsManager;
+import org.opennms.netmgt.provision.service.operations.ImportPipeline;
+import org.opennms.netmgt.provision.service.operations.RequisitionHashStore;
 import org.opennms.netmgt.provision.service.operations.RequisitionImport;
 import org.springframework.core.io.Resource;
 
@@ -60,11 +67,40 @@ public class CoreImportActivities {
     private static final Logger LOG = LoggerFactory.getLogger(CoreImportActivities.class);
     
     ProvisionService m_provisionService;
+
+    private ImportStatistics m_importStatistics = new ImportStatistics();
+
+    private RequisitionHashStore m_hashStore = new RequisitionHashStore(new File(System.getProperty("org.opennms.provisiond.incrementalImport.directory",
+            System.getProperty("opennms.home", ".") + File.separator + "share" + File.separator + "provisiond")));
     
     public CoreImportActivities(final ProvisionService provisionService) {
         m_provisionService = provisionService;
     }
 
+    public void setImportStatistics(final ImportStatistics importStatistics) {
+        m_importStatistics = importStatistics;
+    }
+
+    public void setRequisitionHashStore(final RequisitionHashStore hashStore) {
+        m_hashStore = hashStore;
+    }
+
+    /**
+     * Pipelined imports create the operation of each node only when it is
+     * about to be scanned, and persist the scanned nodes in batches.
+     */
+    private static boolean isPipelinedImport() {
+        return Boolean.getBoolean("org.opennms.provisiond.pipelinedImport");
+    }
+
+    /**
+     * Incremental imports skip the nodes that exist and haven't changed in
+     * the requisition since they were last imported successfully.
+     */
+    private static boolean isIncrementalImport() {
+        return Boolean.getBoolean("org.opennms.provisiond.incrementalImport");
+    }
+
     @Activity( lifecycle = "import", phase = "validate", schedulingHint="import")
     public RequisitionImport loadSpecFile(final Resource resource) {
         final RequisitionImport ri = new RequisitionImport();
@@ -82,7 +118,7 @@ public class CoreImportActivities {
     }
     
     @Activity( lifecycle = "import", phase = "audit", schedulingHint="import" )
-    public ImportOperationsManager auditNodes(final RequisitionImport ri, final String rescanExisting) {
+    public ImportOperationsManager auditNodes(final RequisitionImport ri, final String rescanExisting, @Attribute("forceFullImport") final Boolean forceFullImport) {
         if (ri.isAborted()) {
             info("The import has been aborted, skipping audit phase import.");
             return null;
@@ -98,8 +134,32 @@ public class CoreImportActivities {
         final ImportOperationsManager opsMgr = new ImportOperationsManager(foreignIdsToNodes, m_provisionService, rescanExisting);
         
         opsMgr.setForeignSource(foreignSource);
+        if (!isIncrementalImport()) {
+            // the hashes would be out of date once incremental imports are enabled again
+            m_hashStore.delete(foreignSource);
+        } else if (Boolean.TRUE.equals(forceFullImport)) {
+            info("Importing all of the nodes of requisition {}, because a full import was requested.", specFile);
+            opsMgr.setPreviousHashes(Collections.<String, String>emptyMap());
+        } else {
+            opsMgr.setPreviousHashes(m_hashStore.load(foreignSource));
+        }
+        if (opsMgr.isIncremental()) {
+            final ForeignSource definition = m_provisionService.getForeignSource(foreignSource);
+            if (definition != null) {
+                opsMgr.setForeignSourceHash(RequisitionHashStore.hash(definition));
+            }
+        }
+
+        if (isPipelinedImport()) {
+            info("Deferring the audit of the nodes of requisition {} to the pipelined scan phase.", specFile);
+            return opsMgr;
+        }
         opsMgr.auditNodes(specFile);
 
+        if (opsMgr.isIncremental()) {
+            info("Skipping {} nodes of requisition {} that haven't changed, {} nodes will be updated, {} inserted and {} deleted.",
+                 opsMgr.getUnchangedCount(), specFile, opsMgr.getUpdateCount(), opsMgr.getInsertCount(), opsMgr.getDeleteCount());
+        }
         debug("Finished auditing nodes.");
         
         return opsMgr;
@@ -112,6 +172,11 @@ public class CoreImportActivities {
             return;
         }
 
+        if (!opsMgr.isAudited()) {
+            runPipeline(opsMgr, ri);
+            return;
+        }
+
         info("Scheduling nodes for phase {}", currentPhase);
         
         final Collection<ImportOperation> operations = opsMgr.getOperations();
@@ -123,6 +188,7 @@ public class CoreImportActivities {
             
             nodeScan.setAttribute("operation", op);
             nodeScan.setAttribute("requisitionImport", ri);
+            nodeScan.setAttribute("importOperationsManager", opsMgr);
             nodeScan.trigger();
         }
 
@@ -130,6 +196,38 @@ public class CoreImportActivities {
     }
     
     
+    private void runPipeline(final ImportOperationsManager opsMgr, final RequisitionImport ri) {
+        final String rescanExisting = opsMgr.getRescanExisting();
+        final boolean scan = rescanExisting == null || Boolean.valueOf(rescanExisting);
+        final int threads = Integer.getInteger("org.opennms.provisiond.pipelinedImport.threads", 8);
+        final int batchSize = Integer.getInteger("org.opennms.provisiond.pipelinedImport.batchSize", 50);
+
+        info("Running pipelined scan and persist phases of requisition {} with {} threads and batches of {} nodes, the parameter {} was set to {} during import.",
+             ri.getRequisition(), threads, batchSize, EventConstants.PARM_IMPORT_RESCAN_EXISTING, rescanExisting);
+        try {
+            new ImportPipeline(m_provisionService, m_importStatistics, threads, batchSize).run(opsMgr.getOperationSuppliers(ri.getRequisition()), scan, new Consumer<ImportOperation>() {
+                @Override
+                public void accept(final ImportOperation operation) {
+                    opsMgr.operationPersisted(operation);
+                }
+            });
+        } catch (final InterruptedException e) {
+            warn("Interrupted while importing requisition {}", ri.getRequisition());
+            ri.abort(e);
+            Thread.currentThread().interrupt();
+            return;
+        } catch (final IllegalStateException e) {
+            warn("Failed to import requisition {}: {}", ri.getRequisition(), e.getMessage());
+            ri.abort(e);
+            return;
+        }
+        if (opsMgr.isIncremental()) {
+            info("Finished running pipelined scan and persist phases of requisition {}, {} nodes were skipped because they haven't changed.", ri.getRequisition(), opsMgr.getUnchangedCount());
+        } else {
+            info("Finished running pipelined scan and persist phases of requisition {}", ri.getRequisition());
+        }
+    }
+
     @Activity( lifecycle = "nodeImport", phase = "scan", schedulingHint="import" )
     public void scanNode(final ImportOperation operation, final RequisitionImport ri, final String rescanExisting) {
         if (ri.isAborted()) {
@@ -148,7 +246,7 @@ public class CoreImportActivities {
     }
     
     @Activity( lifecycle = "nodeImport", phase = "persist" , schedulingHint = "import" )
-    public void persistNode(final ImportOperation operation, final RequisitionImport ri) {
+    public void persistNode(final ImportOperation operation, final RequisitionImport ri, final ImportOperationsManager opsMgr) {
         if (ri.isAborted()) {
             info("The import has been aborted, skipping persist phase.");
             return;
@@ -156,23 +254,35 @@ public class CoreImportActivities {
 
         info("Running persist phase of {}", operation);
         operation.persist();
+        if (opsMgr != null) {
+            opsMgr.operationPersisted(operation);
+        }
         info("Finished Running persist phase of {}", operation);
 
     }
     
     @Activity( lifecycle = "import", phase = "relate" , schedulingHint = "import" )
-    public void relateNodes(final BatchTask currentPhase, final RequisitionImport ri) {
+    public void relateNodes(final BatchTask currentPhase, final RequisitionImport ri, final ImportOperationsManager opsMgr) {
         if (ri.isAborted()) {
             info("The import has been aborted, skipping relate phase.");
             return;
         }
 
+        final Requisition requisition = ri.getRequisition();
+        if (opsMgr != null && opsMgr.isIncremental()) {
+            // all of the nodes have been persisted by now
+            m_hashStore.save(requisition.getForeignSource(), opsMgr.getNodeHashes());
+        }
+
         info("Running relate phase");
         
-        final Requisition requisition = ri.getRequisition();
         RequisitionVisitor visitor = new AbstractRequisitionVisitor() {
             @Override
             public void visitNode(final OnmsNodeRequisition nodeReq) {
+                if (isAlreadyRelated(opsMgr, nodeReq, requisition.getForeignSource())) {
+                    LOG.debug("Skipping relate of node {}, because neither it nor its parent have changed", nodeReq);
+                    return;
+                }
                 LOG.debug("Scheduling relate of node {}", nodeReq);
                 currentPhase.add(parentSetter(m_provisionService, nodeReq, requisition.getForeignSource()));
             }
@@ -184,6 +294,21 @@ public class CoreImportActivities {
 
     }
     
+    /**
+     * Returns whether the parent of the node was set by a previous import
+     * and can't have changed since.
+     */
+    private static boolean isAlreadyRelated(final ImportOperationsManager opsMgr, final OnmsNodeRequisition nodeReq, final String foreignSource) {
+        if (opsMgr == null || !opsMgr.isUnchanged(nodeReq.getForeignId())) {
+            return false;
+        }
+        if (nodeReq.getParentForeignId() == null) {
+            return nodeReq.getParentNodeLabel() == null;
+        }
+        // the parent may have been inserted by this import
+        return (nodeReq.getParentForeignSource() == null || foreignSource.equals(nodeReq.getParentForeignSource())) && opsMgr.isUnchanged(nodeReq.getParentForeignId());
+    }
+
     private static Runnable parentSetter(final ProvisionService provisionService, final OnmsNodeRequisition nodeReq, final String foreignSource) {
         return new Runnable() {
             @Override
@@ -50,6 +50,7 @@ import org.opennms.core.spring.BeanUtils;
 import org.opennms.core.utils.InetAddressUtils;
 import org.opennms.netmgt.config.api.DiscoveryConfigurationFactory;
 import org.opennms.netmgt.config.monitoringLocations.LocationDef;
+import org.opennms.netmgt.dao.TransactionAwareEventForwarder;
 import org.opennms.netmgt.dao.api.CategoryDao;
 import org.opennms.netmgt.dao.api.DistPollerDao;
 import org.opennms.netmgt.dao.api.IpInterfaceDao;
@@ -97,6 +98,7 @@ import org.opennms.netmgt.provision.persist.requisition.RequisitionCategory;
 import org.opennms.netmgt.provision.persist.requisition.RequisitionInterface;
 import org.opennms.netmgt.provision.persist.requisition.RequisitionInterfaceCollection;
 import org.opennms.netmgt.provision.persist.requisition.RequisitionNode;
+import org.opennms.netmgt.provision.service.operations.ImportOperation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
@@ -196,6 +198,12 @@ public class DefaultProvisionService implements ProvisionService, InitializingBe
     public void afterPropertiesSet() throws Exception {
         BeanUtils.assertAutowiring(this);
         RequisitionFileUtils.deleteAllSnapshots(m_pendingForeignSourceRepository);
+
+        // The node events must only be sent once the nodes are committed: when a batch of
+        // persistOperations() is rolled back, its nodes are persisted again one at a time
+        if (!(m_eventForwarder instanceof TransactionAwareEventForwarder)) {
+            m_eventForwarder = new TransactionAwareEventForwarder(m_eventForwarder);
+        }
     }
 
     /**
@@ -225,6 +233,15 @@ public class DefaultProvisionService implements ProvisionService, InitializingBe
         node.visit(visitor);
     }
 
+    /** {@inheritDoc} */
+    @Transactional
+    @Override
+    public void persistOperations(final Collection<? extends ImportOperation> operations) {
+        for (final ImportOperation operation : operations) {
+            operation.persist();
+        }
+    }
+
     /** {@inheritDoc} */
     @Transactional
     @Override
@@ -1179,6 +1196,12 @@ public class DefaultProvisionService implements ProvisionService, InitializingBe
 
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public ForeignSource getForeignSource(final String foreignSourceName) {
+        return m_foreignSourceRepository.getForeignSource(foreignSourceName);
+    }
+
     /** {@inheritDoc} */
     @Override
     public List<ServiceDetector> getDetectorsForForeignSource(final String foreignSourceName) {
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.provision.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Counts the operations of the pipelined requisition imports as they move
+ * from the scan stage to the write stage, and exposes them over JMX as
+ * {@value #OBJECT_NAME}.
+ */
+public class ImportStatistics implements ImportStatisticsMBean, InitializingBean, DisposableBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ImportStatistics.class);
+
+    public static final String OBJECT_NAME = "OpenNMS:Name=Provisiond,Type=Import";
+
+    private final AtomicInteger m_scanQueueDepth = new AtomicInteger();
+    private final AtomicInteger m_writeQueueDepth = new AtomicInteger();
+    private final AtomicLong m_nodesScanned = new AtomicLong();
+    private final AtomicLong m_nodesPersisted = new AtomicLong();
+    private final AtomicLong m_nodesFailed = new AtomicLong();
+    private final AtomicLong m_batchesPersisted = new AtomicLong();
+    private final AtomicLong m_batchFailures = new AtomicLong();
+
+    // guarded by this
+    private int m_importsRunning = 0;
+    private long m_runningSince;
+    private long m_persistedWhenStarted;
+    private double m_lastNodesPerSecond = 0.0;
+
+    private ObjectName m_objectName;
+
+    @Override
+    public void afterPropertiesSet() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+                m_objectName = objectName;
+            }
+        } catch (final JMException e) {
+            LOG.warn("Unable to register import statistics MBean", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (m_objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_objectName);
+        } catch (final JMException e) {
+            LOG.debug("Unable to unregister import statistics MBean {}", m_objectName, e);
+        }
+        m_objectName = null;
+    }
+
+    public synchronized void importStarted() {
+        if (m_importsRunning++ == 0) {
+            m_runningSince = System.currentTimeMillis();
+            m_persistedWhenStarted = m_nodesPersisted.get();
+        }
+    }
+
+    /**
+     * @param unscanned the number of operations that were queued for the scan
+     * stage, but didn't go through it because the import was interrupted
+     * @param unpersisted the number of scanned operations that weren't persisted
+     */
+    public synchronized void importFinished(final int unscanned, final int unpersisted) {
+        m_scanQueueDepth.addAndGet(-unscanned);
+        m_writeQueueDepth.addAndGet(-unpersisted);
+        m_lastNodesPerSecond = getRunningNodesPerSecond();
+        m_importsRunning--;
+    }
+
+    public void operationQueued() {
+        m_scanQueueDepth.incrementAndGet();
+    }
+
+    public void operationScanned() {
+        m_scanQueueDepth.decrementAndGet();
+        m_writeQueueDepth.incrementAndGet();
+        m_nodesScanned.incrementAndGet();
+    }
+
+    public void batchPersisted(final int size) {
+        m_writeQueueDepth.addAndGet(-size);
+        m_nodesPersisted.addAndGet(size);
+        m_batchesPersisted.incrementAndGet();
+    }
+
+    public void batchFailed() {
+        m_batchFailures.incrementAndGet();
+    }
+
+    public void operationPersisted() {
+        m_writeQueueDepth.decrementAndGet();
+        m_nodesPersisted.incrementAndGet();
+        m_batchesPersisted.incrementAndGet();
+    }
+
+    public void operationFailed() {
+        m_writeQueueDepth.decrementAndGet();
+        m_nodesFailed.incrementAndGet();
+    }
+
+    @Override
+    public synchronized int getImportsRunning() {
+        return m_importsRunning;
+    }
+
+    @Override
+    public int getScanQueueDepth() {
+        return m_scanQueueDepth.get();
+    }
+
+    @Override
+    public int getWriteQueueDepth() {
+        return m_writeQueueDepth.get();
+    }
+
+    @Override
+    public long getNodesScanned() {
+        return m_nodesScanned.get();
+    }
+
+    @Override
+    public long getNodesPersisted() {
+        return m_nodesPersisted.get();
+    }
+
+    @Override
+    public long getNodesFailed() {
+        return m_nodesFailed.get();
+    }
+
+    @Override
+    public long getBatchesPersisted() {
+        return m_batchesPersisted.get();
+    }
+
+    @Override
+    public long getBatchFailures() {
+        return m_batchFailures.get();
+    }
+
+    @Override
+    public synchronized double getNodesPerSecond() {
+        return m_importsRunning > 0 ? getRunningNodesPerSecond() : m_lastNodesPerSecond;
+    }
+
+    private double getRunningNodesPerSecond() {
+        final long elapsed = System.currentTimeMillis() - m_runningSince;
+        if (elapsed <= 0) {
+            return 0.0;
+        }
+        return (m_nodesPersisted.get() - m_persistedWhenStarted) * 1000.0 / elapsed;
+    }
+}
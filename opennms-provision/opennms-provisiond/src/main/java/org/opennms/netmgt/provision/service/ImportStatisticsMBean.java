@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.provision.service;
+
+/**
+ * Progress of the pipelined requisition imports.
+ */
+public interface ImportStatisticsMBean {
+
+    /**
+     * @return the number of pipelined imports currently running
+     */
+    int getImportsRunning();
+
+    /**
+     * @return the number of operations waiting to be scanned or being scanned
+     */
+    int getScanQueueDepth();
+
+    /**
+     * @return the number of scanned operations waiting to be persisted
+     */
+    int getWriteQueueDepth();
+
+    /**
+     * @return the number of operations that went through the scan stage,
+     * including the ones that weren't scanned because rescanExisting was false
+     */
+    long getNodesScanned();
+
+    /**
+     * @return the number of operations persisted
+     */
+    long getNodesPersisted();
+
+    /**
+     * @return the number of operations that could not be persisted
+     */
+    long getNodesFailed();
+
+    /**
+     * @return the number of transactions committed
+     */
+    long getBatchesPersisted();
+
+    /**
+     * @return the number of batches that failed and were retried one node at a time
+     */
+    long getBatchFailures();
+
+    /**
+     * @return the number of nodes persisted per second by the running
+     * imports, or by the last ones if none are running
+     */
+    double getNodesPerSecond();
+}
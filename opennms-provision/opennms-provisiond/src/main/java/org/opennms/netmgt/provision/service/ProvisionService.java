@@ -29,6 +29,7 @@
 package org.opennms.netmgt.provision.service;
 
 import java.net.InetAddress;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -45,7 +46,9 @@ import org.opennms.netmgt.provision.NodePolicy;
 import org.opennms.netmgt.provision.ServiceDetector;
 import org.opennms.netmgt.provision.SnmpInterfacePolicy;
 import org.opennms.netmgt.provision.persist.ForeignSourceRepository;
+import org.opennms.netmgt.provision.persist.foreignsource.ForeignSource;
 import org.opennms.netmgt.provision.persist.requisition.Requisition;
+import org.opennms.netmgt.provision.service.operations.ImportOperation;
 import org.springframework.core.io.Resource;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -142,6 +145,15 @@ public interface ProvisionService {
     @Transactional
     void insertNode(OnmsNode node);
 
+    /**
+     * Persist the provided import operations in a single transaction. If
+     * any of them fails, none of them are persisted. The events about the
+     * nodes are sent once the transaction has been committed, so none are
+     * sent when it is rolled back.
+     */
+    @Transactional
+    void persistOperations(Collection<? extends ImportOperation> operations);
+
     /**
      * Look up the OnmsServiceType with the given name, creating one if it
      * doesn't exist.
@@ -208,6 +220,8 @@ public interface ProvisionService {
 
     Requisition loadRequisition(Resource resource);
 
+    ForeignSource getForeignSource(String foreignSourceName);
+
     List<ServiceDetector> getDetectorsForForeignSource(String foreignSource);
     
     List<NodePolicy> getNodePoliciesForForeignSource(String foreignSourceName);
@@ -398,7 +398,10 @@ public class Provisioner implements SpringServiceDaemon {
      * <p>importModelFromResource</p>
      *
      * @param resource a {@link org.springframework.core.io.Resource} object.
-     * @param rescanExisting TODO
+     * @param rescanExisting what to do with the nodes that already exist:
+     *        "true" or null to update and rescan them, "dbonly" to update
+     *        them in the database without scanning them, "false" to leave
+     *        them alone
      * @throws java.lang.Exception if any.
      */
     protected void importModelFromResource(final Resource resource, final String rescanExisting) throws Exception {
@@ -409,14 +412,38 @@ public class Provisioner implements SpringServiceDaemon {
      * <p>importModelFromResource</p>
      *
      * @param resource a {@link org.springframework.core.io.Resource} object.
-     * @param rescanExisting TODO
+     * @param rescanExisting what to do with the nodes that already exist:
+     *        "true" or null to update and rescan them, "dbonly" to update
+     *        them in the database without scanning them, "false" to leave
+     *        them alone
      * @param monitor a {@link org.opennms.netmgt.provision.service.operations.ProvisionMonitor} object.
      * @throws java.lang.Exception if any.
      */
     protected void importModelFromResource(final Resource resource, final String rescanExisting, final ProvisionMonitor monitor) throws Exception {
+        importModelFromResource(resource, rescanExisting, false, monitor);
+    }
+
+    /**
+     * <p>importModelFromResource</p>
+     *
+     * @param resource a {@link org.springframework.core.io.Resource} object.
+     * @param rescanExisting what to do with the nodes that already exist:
+     *        "true" or null to update and rescan them, "dbonly" to update
+     *        them in the database without scanning them, "false" to leave
+     *        them alone
+     * @param forceFullImport true to import every node of the requisition
+     *        even when incremental imports are enabled with
+     *        org.opennms.provisiond.incrementalImport, ignoring the hashes
+     *        recorded by the last import; false to only import the nodes
+     *        that changed since, along with their foreign source definition
+     * @param monitor a {@link org.opennms.netmgt.provision.service.operations.ProvisionMonitor} object.
+     * @throws java.lang.Exception if any.
+     */
+    protected void importModelFromResource(final Resource resource, final String rescanExisting, final boolean forceFullImport, final ProvisionMonitor monitor) throws Exception {
         final LifeCycleInstance doImport = m_lifeCycleRepository.createLifeCycleInstance("import", m_importActivities);
         doImport.setAttribute("resource", resource);
         doImport.setAttribute("rescanExisting", rescanExisting);
+        doImport.setAttribute("forceFullImport", forceFullImport);
         doImport.trigger();
         doImport.waitFor();
         final RequisitionImport ri = doImport.findAttributeByType(RequisitionImport.class);
@@ -465,7 +492,7 @@ public class Provisioner implements SpringServiceDaemon {
         final String rescanExistingOnImport = getEventRescanExistingOnImport(event);
 
         if (url != null) {
-            doImport(url, rescanExistingOnImport);
+            doImport(url, rescanExistingOnImport, Boolean.valueOf(EventUtils.getParm(event, EventConstants.PARM_IMPORT_FORCE_FULL)));
         } else {
             final String msg = "reloadImport event requires 'url' parameter";
             LOG.error("doImport: {}", msg);
@@ -480,10 +507,25 @@ public class Provisioner implements SpringServiceDaemon {
      * @param url a {@link java.lang.String} object.
      */
     public void doImport(final String url, final String rescanExisting) {
+        doImport(url, rescanExisting, false);
+    }
+
+    /**
+     * <p>doImport</p>
+     *
+     * @param url a {@link java.lang.String} object.
+     * @param rescanExisting a {@link java.lang.String} object.
+     * @param forceFullImport true to import every node of the requisition
+     *        even when incremental imports are enabled with
+     *        org.opennms.provisiond.incrementalImport, ignoring the hashes
+     *        recorded by the last import; false to only import the nodes
+     *        that changed since, along with their foreign source definition
+     */
+    public void doImport(final String url, final String rescanExisting, final boolean forceFullImport) {
         
         try {
             
-            LOG.info("doImport: importing from url: {}, rescanExisting ? {}", url, rescanExisting);
+            LOG.info("doImport: importing from url: {}, rescanExisting ? {}, forceFullImport ? {}", url, rescanExisting, forceFullImport);
             
             Resource resource = new UrlResource(url);
             
@@ -491,7 +533,7 @@ public class Provisioner implements SpringServiceDaemon {
             
             send(importStartedEvent(resource, rescanExisting));
     
-            importModelFromResource(resource, rescanExisting, m_stats);
+            importModelFromResource(resource, rescanExisting, forceFullImport, m_stats);
     
             LOG.info("Finished Importing: {}", m_stats);
     
@@ -33,17 +33,24 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import org.opennms.netmgt.model.OnmsNode;
+import org.opennms.netmgt.provision.persist.OnmsNodeRequisition;
 import org.opennms.netmgt.provision.persist.requisition.Requisition;
+import org.opennms.netmgt.provision.persist.requisition.RequisitionNode;
 import org.opennms.netmgt.provision.service.ProvisionService;
 import org.opennms.netmgt.provision.service.RequisitionAccountant;
 import org.slf4j.Logger;
@@ -72,6 +79,18 @@ public class ImportOperationsManager {
     private String m_rescanExisting;
     
     private String m_foreignSource;
+
+    private boolean m_audited = false;
+
+    /**
+     * The hashes of the nodes that were imported before, or null if all
+     * of the nodes are imported.
+     */
+    private Map<String, String> m_previousHashes;
+    private String m_foreignSourceHash;
+    private final Map<String, String> m_changedHashes = new ConcurrentHashMap<String, String>();
+    private final Map<String, String> m_persistedHashes = new ConcurrentHashMap<String, String>();
+    private final Set<String> m_unchanged = new HashSet<String>();
     
     /**
      * <p>Constructor for ImportOperationsManager.</p>
@@ -118,14 +137,136 @@ public class ImportOperationsManager {
 
     private SaveOrUpdateOperation updateNode(final String foreignId, final String nodeLabel, final String building, final String city) {
         final Integer nodeId = processForeignId(foreignId);
-        final UpdateOperation updateOperation;
+        final UpdateOperation updateOperation = createUpdateOperation(nodeId, foreignId, nodeLabel, building, city);
+        m_updates.add(updateOperation);
+        return updateOperation;
+    }
+
+    private UpdateOperation createUpdateOperation(final Integer nodeId, final String foreignId, final String nodeLabel, final String building, final String city) {
         if (Boolean.valueOf(m_rescanExisting) || m_rescanExisting.equalsIgnoreCase("dbonly")) {
-            updateOperation = new UpdateOperation(nodeId, getForeignSource(), foreignId, nodeLabel, building, city, m_provisionService, m_rescanExisting);
+            return new UpdateOperation(nodeId, getForeignSource(), foreignId, nodeLabel, building, city, m_provisionService, m_rescanExisting);
         } else {
-            updateOperation = new NullUpdateOperation(nodeId, getForeignSource(), foreignId, nodeLabel, building, city, m_provisionService, m_rescanExisting);
+            return new NullUpdateOperation(nodeId, getForeignSource(), foreignId, nodeLabel, building, city, m_provisionService, m_rescanExisting);
         }
-        m_updates.add(updateOperation);
-        return updateOperation;
+    }
+
+    /**
+     * Creates the insert or update operation for a single node without
+     * keeping track of it.
+     */
+    private SaveOrUpdateOperation createOperation(final OnmsNodeRequisition nodeReq) {
+        final String foreignId = nodeReq.getForeignId();
+        final Integer nodeId = m_foreignIdToNodeMap.get(foreignId);
+        final SaveOrUpdateOperation operation;
+        if (nodeId == null) {
+            operation = new InsertOperation(getForeignSource(), foreignId, nodeReq.getNodeLabel(), nodeReq.getBuilding(), nodeReq.getCity(), m_provisionService);
+        } else {
+            operation = createUpdateOperation(nodeId, foreignId, nodeReq.getNodeLabel(), nodeReq.getBuilding(), nodeReq.getCity());
+        }
+        nodeReq.visit(new RequisitionAccountant(operation));
+        return operation;
+    }
+
+    /**
+     * Enables incremental imports: the nodes that already exist and whose
+     * hash is the same as before are skipped, and the others are imported.
+     *
+     * @param previousHashes the hashes of the nodes that were imported
+     *        before by foreign ID, empty to import all of the nodes
+     * @see RequisitionHashStore
+     */
+    public void setPreviousHashes(final Map<String, String> previousHashes) {
+        m_previousHashes = previousHashes;
+    }
+
+    /**
+     * Sets the hash of the foreign source definition, which goes into the
+     * hash of every node so that all of them are imported again once its
+     * detectors or policies change.
+     *
+     * @param foreignSourceHash the hash of the foreign source definition
+     * @see RequisitionHashStore#hash(org.opennms.netmgt.provision.persist.foreignsource.ForeignSource)
+     */
+    public void setForeignSourceHash(final String foreignSourceHash) {
+        m_foreignSourceHash = foreignSourceHash;
+    }
+
+    /**
+     * <p>isIncremental</p>
+     *
+     * @return true if the nodes that haven't changed are skipped
+     */
+    public boolean isIncremental() {
+        return m_previousHashes != null;
+    }
+
+    /**
+     * Returns whether the node can be skipped, and remembers its new hash
+     * otherwise.
+     */
+    private boolean isUnchanged(final RequisitionNode node) {
+        if (m_previousHashes == null) {
+            return false;
+        }
+        final String foreignId = node.getForeignId();
+        final String hash = RequisitionHashStore.hash(node, m_foreignSourceHash);
+        if (nodeExists(foreignId) && hash.equals(m_previousHashes.get(foreignId))) {
+            m_unchanged.add(foreignId);
+            return true;
+        }
+        m_changedHashes.put(foreignId, hash);
+        return false;
+    }
+
+    /**
+     * Records that the operation was persisted, so that its node is
+     * skipped by the next incremental import if it doesn't change.
+     *
+     * @param operation the operation that was persisted
+     */
+    public void operationPersisted(final ImportOperation operation) {
+        if (m_previousHashes != null && operation instanceof SaveOrUpdateOperation) {
+            final String foreignId = ((SaveOrUpdateOperation)operation).getNode().getForeignId();
+            final String hash = m_changedHashes.get(foreignId);
+            if (hash != null) {
+                m_persistedHashes.put(foreignId, hash);
+            }
+        }
+    }
+
+    /**
+     * Returns the hashes of the nodes that were skipped or persisted, to
+     * be passed to {@link #setPreviousHashes(Map)} by the next import.
+     *
+     * @return the hashes by foreign ID
+     */
+    public Map<String, String> getNodeHashes() {
+        final Map<String, String> hashes = new HashMap<String, String>(m_persistedHashes);
+        if (m_previousHashes != null) {
+            for (final String foreignId : m_unchanged) {
+                hashes.put(foreignId, m_previousHashes.get(foreignId));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * <p>isUnchanged</p>
+     *
+     * @param foreignId a {@link java.lang.String} object.
+     * @return true if the node was skipped because it hasn't changed
+     */
+    public boolean isUnchanged(final String foreignId) {
+        return m_unchanged.contains(foreignId);
+    }
+
+    /**
+     * <p>getUnchangedCount</p>
+     *
+     * @return the number of nodes that were skipped because they haven't changed
+     */
+    public int getUnchangedCount() {
+        return m_unchanged.size();
     }
 
     /**
@@ -270,6 +411,88 @@ public class ImportOperationsManager {
         return Collections.list(new OperationIterator());
     }
     
+    /**
+     * Returns the operations for the requisition without creating them or
+     * keeping track of them: the deletes first, then one insert or update
+     * per node, each created when its supplier is called.  A supplier can
+     * be called again to create its operation afresh.  Unlike
+     * {@link #auditNodes(Requisition)}, this leaves the counts of this
+     * manager unchanged, except for the nodes that are skipped by an
+     * incremental import as they're reached.
+     *
+     * @param requisition the requisition, which must have been loaded completely
+     * @return an iterator over the suppliers of the operations
+     */
+    public Iterator<Supplier<ImportOperation>> getOperationSuppliers(final Requisition requisition) {
+        final List<Supplier<ImportOperation>> deletes = new ArrayList<Supplier<ImportOperation>>();
+        for (final Entry<String, Integer> entry : m_foreignIdToNodeMap.entrySet()) {
+            if (requisition.getNodeRequistion(entry.getKey()) == null) {
+                final Integer nodeId = entry.getValue();
+                final String foreignId = entry.getKey();
+                deletes.add(new Supplier<ImportOperation>() {
+                    @Override
+                    public ImportOperation get() {
+                        return new DeleteOperation(nodeId, getForeignSource(), foreignId, m_provisionService);
+                    }
+
+                    @Override
+                    public String toString() {
+                        return "delete of node " + foreignId;
+                    }
+                });
+            }
+        }
+
+        final Iterator<RequisitionNode> nodes = requisition.getNodes().iterator();
+        final Iterator<Supplier<ImportOperation>> deleteIterator = deletes.iterator();
+        return new Iterator<Supplier<ImportOperation>>() {
+            private RequisitionNode m_next;
+
+            @Override
+            public boolean hasNext() {
+                if (deleteIterator.hasNext()) {
+                    return true;
+                }
+                // skip the nodes that haven't changed without creating their operations
+                while (m_next == null && nodes.hasNext()) {
+                    final RequisitionNode node = nodes.next();
+                    if (!isUnchanged(node)) {
+                        m_next = node;
+                    }
+                }
+                return m_next != null;
+            }
+
+            @Override
+            public Supplier<ImportOperation> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (deleteIterator.hasNext()) {
+                    return deleteIterator.next();
+                }
+                final OnmsNodeRequisition nodeReq = requisition.getNodeRequistion(m_next.getForeignId());
+                m_next = null;
+                return new Supplier<ImportOperation>() {
+                    @Override
+                    public ImportOperation get() {
+                        return createOperation(nodeReq);
+                    }
+
+                    @Override
+                    public String toString() {
+                        return "node " + nodeReq.getForeignId();
+                    }
+                };
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     @SuppressWarnings("unused")
     private Runnable sequence(final Executor pool, final Runnable a, final Runnable b) {
         return new Runnable() {
@@ -309,7 +532,29 @@ public class ImportOperationsManager {
      * @param requisition a {@link org.opennms.netmgt.provision.persist.requisition.Requisition} object.
      */
     public void auditNodes(Requisition requisition) {
-        requisition.visit(new RequisitionAccountant(this));
+        if (m_previousHashes == null) {
+            requisition.visit(new RequisitionAccountant(this));
+        } else {
+            final RequisitionAccountant accountant = new RequisitionAccountant(this);
+            for (final RequisitionNode node : requisition.getNodes()) {
+                if (isUnchanged(node)) {
+                    // neither updated nor deleted
+                    processForeignId(node.getForeignId());
+                } else {
+                    requisition.getNodeRequistion(node.getForeignId()).visit(accountant);
+                }
+            }
+        }
+        m_audited = true;
+    }
+
+    /**
+     * <p>isAudited</p>
+     *
+     * @return true if the operations were created by {@link #auditNodes(Requisition)}
+     */
+    public boolean isAudited() {
+        return m_audited;
     }
 
     @SuppressWarnings("unused")
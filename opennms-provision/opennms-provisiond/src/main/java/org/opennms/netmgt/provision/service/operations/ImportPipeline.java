@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.provision.service.operations;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.netmgt.provision.service.ImportStatistics;
+import org.opennms.netmgt.provision.service.ProvisionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the scan and persist phases of an import as a pipeline: the
+ * operations are created one at a time as they are needed, scanned by a
+ * fixed number of threads, and persisted by a single writer thread that
+ * commits as many of the scanned operations as are waiting, up to the
+ * batch size, in one transaction.  At most threads + batchSize operations
+ * exist at any time, however large the requisition.
+ *
+ * If a batch fails, its operations are created and scanned again from
+ * their suppliers and persisted one at a time, since the failed
+ * transaction may have left the original ones half merged into the
+ * session.  A pipeline runs a single import.  If the writer thread dies,
+ * no more operations are created and the import fails.
+ */
+public class ImportPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(ImportPipeline.class);
+
+    private static final Entry END = new Entry(null, null);
+
+    private final ProvisionService m_provisionService;
+    private final ImportStatistics m_statistics;
+    private final int m_threads;
+    private final int m_batchSize;
+
+    private final Semaphore m_inFlight;
+    private final BlockingQueue<Entry> m_writeQueue = new LinkedBlockingQueue<Entry>();
+    private final AtomicInteger m_queued = new AtomicInteger();
+    private final AtomicInteger m_scanned = new AtomicInteger();
+    private final AtomicInteger m_written = new AtomicInteger();
+    private Consumer<ImportOperation> m_persisted;
+    private volatile Throwable m_writerFailure;
+
+    private static class Entry {
+        private final Supplier<ImportOperation> m_supplier;
+        private final ImportOperation m_operation;
+
+        public Entry(final Supplier<ImportOperation> supplier, final ImportOperation operation) {
+            m_supplier = supplier;
+            m_operation = operation;
+        }
+    }
+
+    public ImportPipeline(final ProvisionService provisionService, final ImportStatistics statistics, final int threads, final int batchSize) {
+        m_provisionService = provisionService;
+        m_statistics = statistics;
+        m_threads = Math.max(1, threads);
+        m_batchSize = Math.max(1, batchSize);
+        m_inFlight = new Semaphore(m_threads + m_batchSize);
+    }
+
+    /**
+     * Scans and persists the operations, returning once all of them have
+     * been persisted.
+     *
+     * @param operations the suppliers of the operations to run
+     * @param scan false if the operations shouldn't be scanned before they are persisted
+     * @throws InterruptedException if the import was interrupted, in which
+     *         case the operations that were already persisted remain so
+     * @throws IllegalStateException if the writer thread died
+     */
+    public void run(final Iterator<Supplier<ImportOperation>> operations, final boolean scan) throws InterruptedException {
+        run(operations, scan, null);
+    }
+
+    /**
+     * Scans and persists the operations, returning once all of them have
+     * been persisted.
+     *
+     * @param operations the suppliers of the operations to run
+     * @param scan false if the operations shouldn't be scanned before they are persisted
+     * @param persisted called by the writer thread with each operation once
+     *        it has been committed, or null
+     * @throws InterruptedException if the import was interrupted, in which
+     *         case the operations that were already persisted remain so
+     * @throws IllegalStateException if the writer thread died
+     */
+    public void run(final Iterator<Supplier<ImportOperation>> operations, final boolean scan, final Consumer<ImportOperation> persisted) throws InterruptedException {
+        m_persisted = persisted;
+        final ExecutorService scanners = Executors.newFixedThreadPool(m_threads, new LogPreservingThreadFactory("ImportPipeline-scan", m_threads));
+        final Thread writer = new LogPreservingThreadFactory("ImportPipeline-write", 1).newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(scan);
+                } catch (final InterruptedException e) {
+                    LOG.warn("Interrupted while persisting the import, {} operations were persisted", m_written.get());
+                } catch (final Throwable t) {
+                    LOG.error("The writer thread of the import died, {} operations were persisted", m_written.get(), t);
+                    m_writerFailure = t;
+                }
+            }
+        });
+
+        final long start = System.currentTimeMillis();
+        m_statistics.importStarted();
+        boolean completed = false;
+        try {
+            writer.start();
+
+            while (operations.hasNext()) {
+                final Supplier<ImportOperation> supplier = operations.next();
+                // the writer releases the permits, so don't wait for it forever
+                while (!m_inFlight.tryAcquire(1, TimeUnit.SECONDS)) {
+                    if (m_writerFailure != null || !writer.isAlive()) {
+                        throw writerDied();
+                    }
+                }
+
+                final ImportOperation operation;
+                try {
+                    operation = supplier.get();
+                } catch (final RuntimeException e) {
+                    LOG.warn("Unable to create the import operation for {}", supplier, e);
+                    m_inFlight.release();
+                    continue;
+                }
+
+                m_queued.incrementAndGet();
+                m_statistics.operationQueued();
+                scanners.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (scan) {
+                                scan(operation);
+                            }
+                        } finally {
+                            m_scanned.incrementAndGet();
+                            m_statistics.operationScanned();
+                            m_writeQueue.add(new Entry(supplier, operation));
+                        }
+                    }
+                });
+            }
+
+            scanners.shutdown();
+            while (!scanners.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOG.debug("Waiting for {} operations to be scanned", m_queued.get() - m_scanned.get());
+            }
+
+            m_writeQueue.add(END);
+            writer.join();
+            if (m_writerFailure != null) {
+                throw writerDied();
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                scanners.shutdownNow();
+                writer.interrupt();
+                writer.join();
+            }
+            m_statistics.importFinished(m_queued.get() - m_scanned.get(), m_scanned.get() - m_written.get());
+        }
+
+        LOG.info("Persisted {} operations in {}ms", m_written.get(), System.currentTimeMillis() - start);
+    }
+
+    private void write(final boolean scan) throws InterruptedException {
+        final List<Entry> batch = new ArrayList<Entry>(m_batchSize);
+        boolean done = false;
+        while (!done) {
+            batch.add(m_writeQueue.take());
+            m_writeQueue.drainTo(batch, m_batchSize - 1);
+            if (batch.get(batch.size() - 1) == END) {
+                batch.remove(batch.size() - 1);
+                done = true;
+            }
+
+            if (!batch.isEmpty()) {
+                try {
+                    persist(batch, scan);
+                    m_written.addAndGet(batch.size());
+                } finally {
+                    m_inFlight.release(batch.size());
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private IllegalStateException writerDied() {
+        return new IllegalStateException("The writer thread of the import died after persisting " + m_written.get() + " operations", m_writerFailure);
+    }
+
+    private void persist(final List<Entry> batch, final boolean scan) {
+        final List<ImportOperation> operations = new ArrayList<ImportOperation>(batch.size());
+        for (final Entry entry : batch) {
+            operations.add(entry.m_operation);
+        }
+
+        try {
+            m_provisionService.persistOperations(operations);
+            m_statistics.batchPersisted(operations.size());
+            for (final ImportOperation operation : operations) {
+                persisted(operation);
+            }
+            return;
+        } catch (final RuntimeException e) {
+            if (operations.size() == 1) {
+                LOG.warn("Failed to persist {}", operations.get(0), e);
+                m_statistics.operationFailed();
+                return;
+            }
+            LOG.warn("Failed to persist a batch of {} operations, persisting them one at a time", operations.size(), e);
+            m_statistics.batchFailed();
+        }
+
+        for (final Entry entry : batch) {
+            try {
+                final ImportOperation operation = entry.m_supplier.get();
+                if (scan) {
+                    scan(operation);
+                }
+                operation.persist();
+                m_statistics.operationPersisted();
+                persisted(operation);
+            } catch (final RuntimeException e) {
+                LOG.warn("Failed to persist {}", entry.m_operation, e);
+                m_statistics.operationFailed();
+            }
+        }
+    }
+
+    private void persisted(final ImportOperation operation) {
+        if (m_persisted != null) {
+            m_persisted.accept(operation);
+        }
+    }
+
+    private static void scan(final ImportOperation operation) {
+        try {
+            operation.scan();
+        } catch (final RuntimeException e) {
+            LOG.warn("Failed to scan {}, persisting it with the data from the requisition", operation, e);
+        }
+    }
+}
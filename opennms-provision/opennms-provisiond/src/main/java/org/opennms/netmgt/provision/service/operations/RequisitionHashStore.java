@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.provision.service.operations;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.opennms.core.xml.JaxbUtils;
+import org.opennms.netmgt.provision.persist.foreignsource.ForeignSource;
+import org.opennms.netmgt.provision.persist.foreignsource.PluginConfig;
+import org.opennms.netmgt.provision.persist.requisition.RequisitionNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the content hash of every node of a requisition that was imported
+ * successfully, one properties file of foreign IDs and hashes per foreign
+ * source, so that incremental imports can skip the nodes that haven't
+ * changed since.  The hash covers the whole node element of the requisition,
+ * including its interfaces, services, categories and assets, and the
+ * detectors and policies of the foreign source definition, which change how
+ * every node is imported.
+ */
+public class RequisitionHashStore {
+    private static final Logger LOG = LoggerFactory.getLogger(RequisitionHashStore.class);
+
+    private static final String SUFFIX = ".properties";
+
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    private final File m_directory;
+
+    public RequisitionHashStore(final File directory) {
+        m_directory = directory;
+    }
+
+    public File getDirectory() {
+        return m_directory;
+    }
+
+    /**
+     * Returns the hashes of the nodes of the foreign source that were
+     * imported, or an empty map if there are none or they can't be read.
+     *
+     * @param foreignSource the foreign source
+     * @return the hashes by foreign ID
+     */
+    public Map<String, String> load(final String foreignSource) {
+        final Map<String, String> hashes = new HashMap<String, String>();
+        final File file = getFile(foreignSource);
+        if (!file.exists()) {
+            return hashes;
+        }
+
+        final Properties properties = new Properties();
+        try (final InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (final IOException e) {
+            LOG.warn("Unable to read the node hashes of foreign source {} from {}, importing all of its nodes", foreignSource, file, e);
+            return hashes;
+        }
+        for (final String foreignId : properties.stringPropertyNames()) {
+            hashes.put(foreignId, properties.getProperty(foreignId));
+        }
+        return hashes;
+    }
+
+    /**
+     * Replaces the hashes of the nodes of the foreign source.  The file is
+     * written next to the previous one and moved in its place, so that a
+     * crash leaves either of them.
+     *
+     * @param foreignSource the foreign source
+     * @param hashes the hashes by foreign ID
+     */
+    public void save(final String foreignSource, final Map<String, String> hashes) {
+        final File file = getFile(foreignSource);
+        final File temp = new File(m_directory, file.getName() + ".tmp");
+        final Properties properties = new Properties();
+        properties.putAll(hashes);
+        try {
+            if (!m_directory.isDirectory() && !m_directory.mkdirs()) {
+                throw new IOException("Unable to create directory " + m_directory);
+            }
+            try (final OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, "Node hashes of foreign source " + foreignSource);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            // without the new hashes, the nodes that changed would be skipped if they changed back
+            LOG.warn("Unable to write the node hashes of foreign source {} to {}, the next import will import all of its nodes", foreignSource, file, e);
+            delete(foreignSource);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Removes the hashes of the nodes of the foreign source, so that its
+     * next incremental import imports all of its nodes.
+     *
+     * @param foreignSource the foreign source
+     */
+    public void delete(final String foreignSource) {
+        final File file = getFile(foreignSource);
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Unable to delete the node hashes of foreign source {} in {}", foreignSource, file);
+        }
+    }
+
+    private File getFile(final String foreignSource) {
+        return new File(m_directory, foreignSource + SUFFIX);
+    }
+
+    /**
+     * Returns the content hash of a node of a requisition.
+     *
+     * @param node the node
+     * @return the SHA-256 hash of its XML, encoded in base 64
+     */
+    public static String hash(final RequisitionNode node) {
+        return hash(node, null);
+    }
+
+    /**
+     * Returns the content hash of a node of a requisition, which changes
+     * whenever the foreign source definition changes too.
+     *
+     * @param node the node
+     * @param foreignSourceHash the hash of the foreign source definition,
+     *        see {@link #hash(ForeignSource)}, or null
+     * @return the SHA-256 hash of the definition hash and the XML of the
+     *         node, encoded in base 64
+     */
+    public static String hash(final RequisitionNode node, final String foreignSourceHash) {
+        final MessageDigest digest = createDigest();
+        final Writer writer = new OutputStreamWriter(new DigestOutputStream(NULL_OUTPUT_STREAM, digest), StandardCharsets.UTF_8);
+        try {
+            if (foreignSourceHash != null) {
+                writer.write(foreignSourceHash);
+            }
+            JaxbUtils.marshal(node, writer);
+            writer.flush();
+        } catch (final IOException e) {
+            throw new IllegalStateException("Unable to hash node " + node.getForeignId(), e);
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Returns the hash of the parts of a foreign source definition that
+     * affect how its nodes are imported: the scan interval, the detectors
+     * and the policies.  Its name and date stamp are left out.
+     *
+     * @param foreignSource the foreign source definition
+     * @return the SHA-256 hash of the definition, encoded in base 64
+     */
+    public static String hash(final ForeignSource foreignSource) {
+        final MessageDigest digest = createDigest();
+        final Writer writer = new OutputStreamWriter(new DigestOutputStream(NULL_OUTPUT_STREAM, digest), StandardCharsets.UTF_8);
+        try {
+            writer.write("scan-interval=" + foreignSource.getScanInterval());
+            // no detectors means all of them
+            writer.write(foreignSource.getDetectors() == null ? "detectors=all" : "detectors=");
+            if (foreignSource.getDetectors() != null) {
+                for (final PluginConfig detector : foreignSource.getDetectors()) {
+                    JaxbUtils.marshal(detector, writer);
+                }
+            }
+            writer.write("policies=");
+            if (foreignSource.getPolicies() != null) {
+                for (final PluginConfig policy : foreignSource.getPolicies()) {
+                    JaxbUtils.marshal(policy, writer);
+                }
+            }
+            writer.flush();
+        } catch (final IOException e) {
+            throw new IllegalStateException("Unable to hash foreign source " + foreignSource.getName(), e);
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+}
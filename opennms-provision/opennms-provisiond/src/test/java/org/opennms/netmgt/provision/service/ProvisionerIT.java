@@ -50,7 +50,9 @@ import org.joda.time.Duration;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.opennms.core.spring.BeanUtils;
 import org.opennms.core.tasks.Task;
@@ -118,6 +120,8 @@ import org.opennms.netmgt.provision.service.NodeScanSchedule;
 import org.opennms.netmgt.provision.service.ProvisionService;
 import org.opennms.netmgt.provision.service.Provisioner;
 import org.opennms.netmgt.provision.service.ProvisioningITCase;
+import org.opennms.netmgt.provision.service.operations.NoOpProvisionMonitor;
+import org.opennms.netmgt.provision.service.operations.RequisitionHashStore;
 import org.opennms.netmgt.snmp.SnmpAgentAddress;
 import org.opennms.netmgt.xml.event.Event;
 import org.opennms.test.JUnitConfigurationEnvironment;
@@ -193,6 +197,15 @@ public class ProvisionerIT extends ProvisioningITCase implements InitializingBea
     @Autowired
     private ImportScheduler m_importSchedule;
 
+    @Autowired
+    private ImportStatistics m_importStatistics;
+
+    @Autowired
+    private CoreImportActivities m_importActivities;
+
+    @Rule
+    public TemporaryFolder m_hashFolder = new TemporaryFolder();
+
     @Autowired
     private SnmpPeerFactory m_snmpPeerFactory;
 
@@ -237,6 +250,9 @@ public class ProvisionerIT extends ProvisioningITCase implements InitializingBea
 
         // ensure this property is unset for tests and set it only in tests that need it
         System.getProperties().remove("org.opennms.provisiond.enableDeletionOfRequisitionedEntities");
+        System.getProperties().remove("org.opennms.provisiond.pipelinedImport");
+        System.getProperties().remove("org.opennms.provisiond.pipelinedImport.batchSize");
+        System.getProperties().remove("org.opennms.provisiond.incrementalImport");
 
         m_eventAnticipator = m_mockEventIpcManager.getEventAnticipator();
 
@@ -280,6 +296,9 @@ public class ProvisionerIT extends ProvisioningITCase implements InitializingBea
     public void tearDown() {
         // remove property set during tests
         System.getProperties().remove("org.opennms.provisiond.enableDeletionOfRequisitionedEntities");
+        System.getProperties().remove("org.opennms.provisiond.pipelinedImport");
+        System.getProperties().remove("org.opennms.provisiond.pipelinedImport.batchSize");
+        System.getProperties().remove("org.opennms.provisiond.incrementalImport");
         m_eventAnticipator.reset();
     }
 
@@ -1300,6 +1319,66 @@ public class ProvisionerIT extends ProvisioningITCase implements InitializingBea
         assertEquals(0, getNodeDao().countAll());
     }
 
+    /**
+     * Runs the imports of {@link #testPopulate()} and {@link #testDelete()}
+     * through the pipeline, with batches smaller than the requisition.
+     */
+    @Test(timeout=300000)
+    public void testPipelinedImport() throws Exception {
+        System.setProperty("org.opennms.provisiond.pipelinedImport", "true");
+        System.setProperty("org.opennms.provisiond.pipelinedImport.batchSize", "3");
+
+        importFromResource("classpath:/tec_dump.xml.smalltest", Boolean.TRUE.toString());
+        assertEquals(10, getNodeDao().countAll());
+        assertEquals(30, getInterfaceDao().countAll());
+        assertEquals(50, getMonitoredServiceDao().countAll());
+        assertEquals(3, getServiceTypeDao().countAll());
+
+        importFromResource("classpath:/tec_dump.xml.smalltest.delete", Boolean.TRUE.toString());
+        assertEquals(9, getNodeDao().countAll());
+
+        // 10 inserts, then 9 updates and a delete
+        assertEquals(0, m_importStatistics.getImportsRunning());
+        assertEquals(20, m_importStatistics.getNodesScanned());
+        assertEquals(20, m_importStatistics.getNodesPersisted());
+        assertEquals(0, m_importStatistics.getNodesFailed());
+        assertEquals(0, m_importStatistics.getScanQueueDepth());
+        assertEquals(0, m_importStatistics.getWriteQueueDepth());
+        assertTrue(m_importStatistics.getBatchesPersisted() >= 8);
+    }
+
+    /**
+     * Imports the requisition of {@link #testPopulate()} incrementally, then
+     * imports it again unchanged and without one of its nodes: the nodes
+     * that haven't changed are only persisted by the first import.
+     */
+    @Test(timeout=300000)
+    public void testIncrementalImport() throws Exception {
+        System.setProperty("org.opennms.provisiond.pipelinedImport", "true");
+        System.setProperty("org.opennms.provisiond.incrementalImport", "true");
+        final RequisitionHashStore hashStore = new RequisitionHashStore(m_hashFolder.getRoot());
+        m_importActivities.setRequisitionHashStore(hashStore);
+
+        importFromResource("classpath:/tec_dump.xml.smalltest", Boolean.TRUE.toString());
+        assertEquals(10, getNodeDao().countAll());
+        assertEquals(10, m_importStatistics.getNodesPersisted());
+        assertEquals(10, hashStore.load("empty").size());
+
+        importFromResource("classpath:/tec_dump.xml.smalltest", Boolean.TRUE.toString());
+        assertEquals(10, getNodeDao().countAll());
+        assertEquals(10, m_importStatistics.getNodesPersisted());
+
+        importFromResource("classpath:/tec_dump.xml.smalltest.delete", Boolean.TRUE.toString());
+        assertEquals(9, getNodeDao().countAll());
+        assertEquals(11, m_importStatistics.getNodesPersisted());
+        assertEquals(9, hashStore.load("empty").size());
+
+        // a full import persists all of the nodes again
+        m_provisioner.importModelFromResource(m_resourceLoader.getResource("classpath:/tec_dump.xml.smalltest.delete"), Boolean.TRUE.toString(), true, new NoOpProvisionMonitor());
+        assertEquals(9, getNodeDao().countAll());
+        assertEquals(20, m_importStatistics.getNodesPersisted());
+    }
+
     /**
      * This test makes sure that asset information is getting imported properly.
      * @throws Exception
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.provision.service.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.netmgt.model.OnmsCategory;
+import org.opennms.netmgt.model.OnmsServiceType;
+import org.opennms.netmgt.model.PrimaryType;
+import org.opennms.netmgt.provision.persist.foreignsource.ForeignSource;
+import org.opennms.netmgt.provision.persist.foreignsource.PluginConfig;
+import org.opennms.netmgt.provision.persist.requisition.Requisition;
+import org.opennms.netmgt.provision.persist.requisition.RequisitionCategory;
+import org.opennms.netmgt.provision.persist.requisition.RequisitionInterface;
+import org.opennms.netmgt.provision.persist.requisition.RequisitionMonitoredService;
+import org.opennms.netmgt.provision.persist.requisition.RequisitionNode;
+import org.opennms.netmgt.provision.service.ProvisionService;
+
+public class ImportOperationsManagerTest {
+
+    private static final int NODES = 10000;
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private ProvisionService m_provisionService;
+
+    /** the nodes in the database */
+    private final Map<String, Integer> m_foreignIdToNodeMap = new HashMap<String, Integer>();
+
+    @Before
+    public void setUp() {
+        m_provisionService = (ProvisionService)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ProvisionService.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("createCategoryIfNecessary".equals(method.getName())) {
+                    return new OnmsCategory((String)args[0]);
+                } else if ("createServiceTypeIfNecessary".equals(method.getName())) {
+                    return new OnmsServiceType((String)args[0]);
+                }
+                return null;
+            }
+        });
+        for (int i = 0; i < NODES; i++) {
+            m_foreignIdToNodeMap.put(foreignId(i), i + 1);
+        }
+    }
+
+    private static String foreignId(final int i) {
+        return "node" + i;
+    }
+
+    private static RequisitionNode createNode(final int i) {
+        final RequisitionNode node = new RequisitionNode();
+        node.setForeignId(foreignId(i));
+        node.setNodeLabel("Node " + i);
+        node.setBuilding("Building " + (i % 10));
+
+        final RequisitionInterface iface = new RequisitionInterface();
+        iface.setIpAddr("10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff));
+        iface.setSnmpPrimary(PrimaryType.PRIMARY);
+        iface.setManaged(true);
+        iface.setStatus(1);
+        iface.putMonitoredService(new RequisitionMonitoredService("ICMP"));
+        iface.putMonitoredService(new RequisitionMonitoredService("SNMP"));
+        node.putInterface(iface);
+        node.putCategory(new RequisitionCategory("Servers"));
+        return node;
+    }
+
+    private static Requisition createRequisition() {
+        final List<RequisitionNode> nodes = new ArrayList<RequisitionNode>(NODES);
+        for (int i = 0; i < NODES; i++) {
+            nodes.add(createNode(i));
+        }
+        final Requisition requisition = new Requisition("test");
+        requisition.setNodes(nodes);
+        return requisition;
+    }
+
+    private ImportOperationsManager createManager(final Map<String, String> previousHashes) {
+        final ImportOperationsManager opsMgr = new ImportOperationsManager(m_foreignIdToNodeMap, m_provisionService, Boolean.TRUE.toString());
+        opsMgr.setForeignSource("test");
+        opsMgr.setPreviousHashes(previousHashes);
+        return opsMgr;
+    }
+
+    /**
+     * Audits the requisition and records all of its operations as persisted.
+     */
+    private static Collection<ImportOperation> runImport(final ImportOperationsManager opsMgr, final Requisition requisition) {
+        opsMgr.auditNodes(requisition);
+        final Collection<ImportOperation> operations = opsMgr.getOperations();
+        for (final ImportOperation operation : operations) {
+            opsMgr.operationPersisted(operation);
+        }
+        return operations;
+    }
+
+    private static String getForeignId(final ImportOperation operation) {
+        return ((SaveOrUpdateOperation)operation).getNode().getForeignId();
+    }
+
+    @Test
+    public void testOneChangedNode() {
+        final Requisition requisition = createRequisition();
+
+        final ImportOperationsManager full = createManager(Collections.<String, String>emptyMap());
+        assertEquals(NODES, runImport(full, requisition).size());
+        assertEquals(NODES, full.getUpdateCount());
+        assertEquals(0, full.getUnchangedCount());
+        final Map<String, String> hashes = full.getNodeHashes();
+        assertEquals(NODES, hashes.size());
+
+        // nothing changed
+        final ImportOperationsManager unchanged = createManager(hashes);
+        assertTrue(runImport(unchanged, requisition).isEmpty());
+        assertEquals(NODES, unchanged.getUnchangedCount());
+        assertEquals(hashes, unchanged.getNodeHashes());
+
+        // one node got a new interface
+        final RequisitionInterface iface = new RequisitionInterface();
+        iface.setIpAddr("192.168.0.1");
+        requisition.getNode(foreignId(4711)).putInterface(iface);
+
+        final ImportOperationsManager incremental = createManager(hashes);
+        final Collection<ImportOperation> operations = runImport(incremental, requisition);
+        assertEquals(1, operations.size());
+        assertEquals(foreignId(4711), getForeignId(operations.iterator().next()));
+        assertEquals(1, incremental.getUpdateCount());
+        assertEquals(0, incremental.getInsertCount());
+        assertEquals(0, incremental.getDeleteCount());
+        assertEquals(NODES - 1, incremental.getUnchangedCount());
+        assertTrue(incremental.isUnchanged(foreignId(4710)));
+        assertFalse(incremental.isUnchanged(foreignId(4711)));
+
+        final Map<String, String> newHashes = incremental.getNodeHashes();
+        assertEquals(NODES, newHashes.size());
+        assertNotEquals(hashes.get(foreignId(4711)), newHashes.get(foreignId(4711)));
+        assertEquals(hashes.get(foreignId(4712)), newHashes.get(foreignId(4712)));
+    }
+
+    @Test
+    public void testAddedAndRemovedNodes() {
+        final Requisition requisition = createRequisition();
+        final ImportOperationsManager full = createManager(Collections.<String, String>emptyMap());
+        runImport(full, requisition);
+
+        requisition.deleteNode(foreignId(17));
+        requisition.putNode(createNode(NODES));
+
+        final ImportOperationsManager incremental = createManager(full.getNodeHashes());
+        assertEquals(2, runImport(incremental, requisition).size());
+        assertEquals(0, incremental.getUpdateCount());
+        assertEquals(1, incremental.getInsertCount());
+        assertEquals(1, incremental.getDeleteCount());
+        assertEquals(NODES - 1, incremental.getUnchangedCount());
+
+        final Map<String, String> hashes = incremental.getNodeHashes();
+        assertEquals(NODES, hashes.size());
+        assertFalse(hashes.containsKey(foreignId(17)));
+        assertTrue(hashes.containsKey(foreignId(NODES)));
+    }
+
+    @Test
+    public void testNodesThatFailedAreImportedAgain() {
+        final Requisition requisition = createRequisition();
+        final ImportOperationsManager full = createManager(Collections.<String, String>emptyMap());
+        runImport(full, requisition);
+
+        requisition.getNode(foreignId(42)).setCity("Pittsboro");
+        final ImportOperationsManager failed = createManager(full.getNodeHashes());
+        failed.auditNodes(requisition);
+        assertEquals(1, failed.getOperationCount());
+        // the update wasn't persisted
+        assertEquals(NODES - 1, failed.getNodeHashes().size());
+
+        final ImportOperationsManager retried = createManager(failed.getNodeHashes());
+        assertEquals(1, runImport(retried, requisition).size());
+        assertEquals(NODES, retried.getNodeHashes().size());
+    }
+
+    @Test
+    public void testNodesMissingFromTheDatabaseAreInserted() {
+        final Requisition requisition = createRequisition();
+        final ImportOperationsManager full = createManager(Collections.<String, String>emptyMap());
+        runImport(full, requisition);
+
+        m_foreignIdToNodeMap.remove(foreignId(99));
+        final ImportOperationsManager incremental = createManager(full.getNodeHashes());
+        assertEquals(1, runImport(incremental, requisition).size());
+        assertEquals(1, incremental.getInsertCount());
+    }
+
+    @Test
+    public void testOperationSuppliers() {
+        final Requisition requisition = createRequisition();
+        final ImportOperationsManager full = createManager(Collections.<String, String>emptyMap());
+        runImport(full, requisition);
+
+        requisition.getNode(foreignId(0)).setNodeLabel("First");
+        requisition.getNode(foreignId(NODES - 1)).setNodeLabel("Last");
+        requisition.deleteNode(foreignId(5000));
+
+        final ImportOperationsManager incremental = createManager(full.getNodeHashes());
+        final List<String> operations = new ArrayList<String>();
+        final Iterator<Supplier<ImportOperation>> suppliers = incremental.getOperationSuppliers(requisition);
+        while (suppliers.hasNext()) {
+            final ImportOperation operation = suppliers.next().get();
+            operations.add(operation instanceof DeleteOperation ? "delete" : getForeignId(operation));
+            incremental.operationPersisted(operation);
+        }
+        assertEquals(3, operations.size());
+        assertEquals("delete", operations.get(0));
+        assertTrue(operations.contains(foreignId(0)));
+        assertTrue(operations.contains(foreignId(NODES - 1)));
+        assertEquals(NODES - 3, incremental.getUnchangedCount());
+        assertEquals(NODES - 1, incremental.getNodeHashes().size());
+    }
+
+    @Test
+    public void testChangedForeignSource() {
+        final Requisition requisition = createRequisition();
+        final ForeignSource foreignSource = new ForeignSource("test");
+        foreignSource.addDetector(new PluginConfig("ICMP", "org.opennms.netmgt.provision.detector.icmp.IcmpDetector"));
+
+        final ImportOperationsManager full = createManager(Collections.<String, String>emptyMap());
+        full.setForeignSourceHash(RequisitionHashStore.hash(foreignSource));
+        runImport(full, requisition);
+        final Map<String, String> hashes = full.getNodeHashes();
+
+        // saving the definition again only changes its date stamp
+        foreignSource.updateDateStamp();
+        final ImportOperationsManager unchanged = createManager(hashes);
+        unchanged.setForeignSourceHash(RequisitionHashStore.hash(foreignSource));
+        assertTrue(runImport(unchanged, requisition).isEmpty());
+
+        // a new policy applies to all of the nodes
+        final PluginConfig policy = new PluginConfig("Servers", "org.opennms.netmgt.provision.persist.policies.NodeCategorySettingPolicy");
+        policy.addParameter("category", "Servers");
+        foreignSource.addPolicy(policy);
+        final ImportOperationsManager changed = createManager(hashes);
+        changed.setForeignSourceHash(RequisitionHashStore.hash(foreignSource));
+        assertEquals(NODES, runImport(changed, requisition).size());
+        assertEquals(0, changed.getUnchangedCount());
+
+        // and so does a new parameter of it
+        final ImportOperationsManager unchangedPolicy = createManager(changed.getNodeHashes());
+        unchangedPolicy.setForeignSourceHash(RequisitionHashStore.hash(foreignSource));
+        assertTrue(runImport(unchangedPolicy, requisition).isEmpty());
+        policy.addParameter("matchBehavior", "ALL_PARAMETERS");
+        final ImportOperationsManager changedPolicy = createManager(changed.getNodeHashes());
+        changedPolicy.setForeignSourceHash(RequisitionHashStore.hash(foreignSource));
+        assertEquals(NODES, runImport(changedPolicy, requisition).size());
+    }
+
+    @Test
+    public void testHashStore() {
+        final RequisitionHashStore store = new RequisitionHashStore(m_folder.getRoot());
+        assertTrue(store.load("test").isEmpty());
+
+        final Map<String, String> hashes = new HashMap<String, String>();
+        hashes.put("node=1", RequisitionHashStore.hash(createNode(1)));
+        hashes.put("node 2", RequisitionHashStore.hash(createNode(2)));
+        store.save("test", hashes);
+        assertEquals(hashes, store.load("test"));
+        assertEquals(RequisitionHashStore.hash(createNode(1)), hashes.get("node=1"));
+        assertNotEquals(hashes.get("node=1"), hashes.get("node 2"));
+
+        store.delete("test");
+        assertTrue(store.load("test").isEmpty());
+    }
+}
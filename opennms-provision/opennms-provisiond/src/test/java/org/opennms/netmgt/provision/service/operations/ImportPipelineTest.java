@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.provision.service.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.dao.TransactionAwareEventForwarder;
+import org.opennms.netmgt.events.api.EventConstants;
+import org.opennms.netmgt.events.api.EventForwarder;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.provision.service.ImportStatistics;
+import org.opennms.netmgt.provision.service.ProvisionService;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Log;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+public class ImportPipelineTest {
+
+    private ProvisionService m_provisionService;
+    private ImportStatistics m_statistics;
+
+    /** the number of times each operation was committed */
+    private final Map<Integer, Integer> m_committed = Collections.synchronizedMap(new HashMap<Integer, Integer>());
+
+    /** the node id that each operation was committed with */
+    private final Map<Integer, Long> m_committedNodeIds = Collections.synchronizedMap(new HashMap<Integer, Long>());
+
+    /** the node ids of the nodeAdded events that were sent */
+    private final List<Long> m_nodeAddedEvents = Collections.synchronizedList(new ArrayList<Long>());
+
+    private EventForwarder m_eventForwarder;
+
+    /** the operations that fail the first time they're persisted, or every time if negative */
+    private final Set<Integer> m_failures = Collections.synchronizedSet(new HashSet<Integer>());
+
+    private final AtomicInteger m_scanning = new AtomicInteger();
+    private final AtomicInteger m_maxScanning = new AtomicInteger();
+    private final AtomicInteger m_existing = new AtomicInteger();
+    private final AtomicInteger m_maxExisting = new AtomicInteger();
+    private final AtomicInteger m_scans = new AtomicInteger();
+    private final AtomicInteger m_batches = new AtomicInteger();
+    private final ThreadLocal<List<TestOperation>> m_transaction = new ThreadLocal<List<TestOperation>>();
+    private boolean m_slowFirstBatch = false;
+    private boolean m_killWriter = false;
+
+    private class TestOperation extends ImportOperation {
+        private final int m_id;
+        private final int m_attempt;
+
+        public TestOperation(final int id, final int attempt) {
+            super(m_provisionService);
+            m_id = id;
+            m_attempt = attempt;
+            max(m_maxExisting, m_existing.incrementAndGet());
+        }
+
+        @Override
+        public void scan() {
+            m_scans.incrementAndGet();
+            max(m_maxScanning, m_scanning.incrementAndGet());
+            try {
+                Thread.sleep(2);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                m_scanning.decrementAndGet();
+            }
+        }
+
+        /**
+         * Every attempt gets a new node id, as a node that was rolled back
+         * gets a new one when it is inserted again.
+         */
+        private long getNodeId() {
+            return m_id * 1000 + m_attempt;
+        }
+
+        @Override
+        protected void doPersist() {
+            if (m_failures.contains(-m_id) || (m_attempt == 0 && m_failures.contains(m_id))) {
+                throw new IllegalStateException("failed to persist " + m_id);
+            }
+            m_eventForwarder.sendNow(new EventBuilder(EventConstants.NODE_ADDED_EVENT_UEI, "Provisiond").setNodeid(getNodeId()).getEvent());
+            if (m_transaction.get() == null) {
+                committed(this);
+            } else {
+                m_transaction.get().add(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "operation " + m_id;
+        }
+    }
+
+    private static void max(final AtomicInteger max, final int value) {
+        int current;
+        while ((current = max.get()) < value && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        m_statistics = new ImportStatistics();
+        m_eventForwarder = new TransactionAwareEventForwarder(new EventForwarder() {
+            @Override
+            public void sendNow(final Event event) {
+                m_nodeAddedEvents.add(event.getNodeid());
+            }
+
+            @Override
+            public void sendNow(final Log eventLog) {
+                for (final Event event : eventLog.getEvents().getEvent()) {
+                    sendNow(event);
+                }
+            }
+        });
+        m_provisionService = (ProvisionService)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ProvisionService.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("persistOperations".equals(method.getName())) {
+                    if (m_killWriter) {
+                        throw new OutOfMemoryError("no more batches");
+                    }
+                    if (m_slowFirstBatch && m_batches.getAndIncrement() == 0) {
+                        // let the scanned operations queue up behind the first batch
+                        Thread.sleep(500);
+                    }
+                    // only commit if every operation of the batch succeeds
+                    final List<TestOperation> transaction = new ArrayList<TestOperation>();
+                    m_transaction.set(transaction);
+                    TransactionSynchronizationManager.initSynchronization();
+                    boolean commit = false;
+                    try {
+                        for (final Object operation : (Collection<?>)args[0]) {
+                            ((ImportOperation)operation).persist();
+                        }
+                        commit = true;
+                    } finally {
+                        m_transaction.remove();
+                        final List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+                        if (commit) {
+                            for (final TestOperation operation : transaction) {
+                                committed(operation);
+                            }
+                            TransactionSynchronizationUtils.invokeAfterCommit(synchronizations);
+                        }
+                        TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations,
+                                commit ? TransactionSynchronization.STATUS_COMMITTED : TransactionSynchronization.STATUS_ROLLED_BACK);
+                        TransactionSynchronizationManager.clearSynchronization();
+                    }
+                } else if (!"clearCache".equals(method.getName())) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                return null;
+            }
+        });
+    }
+
+    private void committed(final TestOperation operation) {
+        synchronized (m_committed) {
+            final Integer count = m_committed.get(operation.m_id);
+            m_committed.put(operation.m_id, count == null ? 1 : count + 1);
+            m_committedNodeIds.put(operation.m_id, operation.getNodeId());
+        }
+        m_existing.decrementAndGet();
+    }
+
+    private Iterator<Supplier<ImportOperation>> operations(final int count) {
+        final List<Supplier<ImportOperation>> suppliers = new ArrayList<Supplier<ImportOperation>>();
+        for (int i = 1; i <= count; i++) {
+            final int id = i;
+            suppliers.add(new Supplier<ImportOperation>() {
+                private int m_attempts = 0;
+
+                @Override
+                public ImportOperation get() {
+                    return new TestOperation(id, m_attempts++);
+                }
+            });
+        }
+        return suppliers.iterator();
+    }
+
+    @Test
+    public void testScansInParallelAndPersistsInBatches() throws Exception {
+        new ImportPipeline(m_provisionService, m_statistics, 4, 10).run(operations(200), true);
+
+        assertEquals(200, m_committed.size());
+        for (final Integer count : m_committed.values()) {
+            assertEquals(1, count.intValue());
+        }
+        assertEquals(200, m_scans.get());
+        assertTrue("scanned " + m_maxScanning.get() + " operations at once", m_maxScanning.get() <= 4);
+        assertTrue("created " + m_maxExisting.get() + " operations at once", m_maxExisting.get() <= 4 + 10);
+
+        assertEquals(0, m_statistics.getImportsRunning());
+        assertEquals(200, m_statistics.getNodesScanned());
+        assertEquals(200, m_statistics.getNodesPersisted());
+        assertEquals(0, m_statistics.getNodesFailed());
+        assertEquals(0, m_statistics.getScanQueueDepth());
+        assertEquals(0, m_statistics.getWriteQueueDepth());
+        assertTrue(m_statistics.getBatchesPersisted() >= 20);
+        assertTrue(m_statistics.getBatchesPersisted() < 200);
+    }
+
+    @Test
+    public void testSkipsScan() throws Exception {
+        new ImportPipeline(m_provisionService, m_statistics, 2, 5).run(operations(20), false);
+
+        assertEquals(20, m_committed.size());
+        assertEquals(0, m_scans.get());
+        assertEquals(20, m_statistics.getNodesScanned());
+    }
+
+    @Test
+    public void testRetriesFailedBatchOneAtATime() throws Exception {
+        m_failures.add(7);
+        m_failures.add(-13);
+        m_slowFirstBatch = true;
+
+        new ImportPipeline(m_provisionService, m_statistics, 1, 50).run(operations(50), true);
+
+        // everything but the operation that always fails is committed once
+        assertEquals(49, m_committed.size());
+        for (final Integer count : m_committed.values()) {
+            assertEquals(1, count.intValue());
+        }
+        assertEquals(Integer.valueOf(1), m_committed.get(7));
+        assertEquals(null, m_committed.get(13));
+
+        // the first batch, then the batch of the other 49, which failed
+        assertEquals(2, m_batches.get());
+        assertEquals(49, m_statistics.getNodesPersisted());
+        assertEquals(1, m_statistics.getNodesFailed());
+        assertEquals(1, m_statistics.getBatchFailures());
+        assertEquals(0, m_statistics.getWriteQueueDepth());
+    }
+
+    @Test
+    public void testSendsEventsOfCommittedNodesOnly() throws Exception {
+        m_failures.add(7);
+        m_failures.add(-13);
+        m_slowFirstBatch = true;
+
+        new ImportPipeline(m_provisionService, m_statistics, 1, 50).run(operations(50), true);
+
+        // the batch that failed at operation 7 was rolled back, and the operations
+        // that it had already persisted were committed again with new node ids
+        assertEquals(49, m_committedNodeIds.size());
+        assertEquals(49, m_nodeAddedEvents.size());
+        assertEquals(49, new HashSet<Long>(m_nodeAddedEvents).size());
+        for (final Long nodeId : m_committedNodeIds.values()) {
+            assertTrue("no nodeAdded event for node " + nodeId, m_nodeAddedEvents.contains(nodeId));
+        }
+        for (final Long nodeId : m_nodeAddedEvents) {
+            assertTrue("nodeAdded event for rolled back node " + nodeId, m_committedNodeIds.containsValue(nodeId));
+        }
+        assertEquals(null, m_committedNodeIds.get(13));
+    }
+
+    @Test(timeout=30000)
+    public void testStopsWhenWriterDies() throws Exception {
+        m_killWriter = true;
+
+        try {
+            new ImportPipeline(m_provisionService, m_statistics, 2, 5).run(operations(200), true);
+            fail("the import should have failed");
+        } catch (final IllegalStateException e) {
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+        }
+
+        assertEquals(0, m_committed.size());
+        // no more operations are created once the writer is gone
+        assertTrue("created " + m_maxExisting.get() + " operations", m_maxExisting.get() < 200);
+        assertEquals(0, m_statistics.getImportsRunning());
+    }
+}
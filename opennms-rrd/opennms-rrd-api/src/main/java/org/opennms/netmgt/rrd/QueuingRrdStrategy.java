@@ -641,6 +641,46 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
         }
     }
 
+    /**
+     * Represents an update whose values haven't been formatted as a string.
+     */
+    public class ValuesUpdateOperation extends Operation {
+
+        final long timeStamp;
+
+        ValuesUpdateOperation(String fileName, long timeStamp, double[] values) {
+            super(fileName, UPDATE, values, true);
+            this.timeStamp = timeStamp;
+        }
+
+        @Override
+        Object process(Object rrd) throws Exception {
+            // open the file if we need to
+            if (rrd == null) rrd = m_delegate.openFile(getFileName());
+
+            final double[] values = (double[]) getData();
+
+            try {
+                // process the update
+                m_delegate.updateFile(rrd, "", timeStamp, values);
+            } catch (final Throwable e) {
+                final String error = String.format("Error processing update for file %s: %s", getFileName(), RrdUpdates.format(timeStamp, values));
+                m_log.debug(error, e);
+                throw new Exception(error, e);
+            }
+
+            // keep stats
+            setUpdatesCompleted(getUpdatesCompleted() + 1);
+            if (getUpdatesCompleted() % m_modulus == 0) {
+                logStats();
+            }
+            // return the open rrd for further processing
+            return rrd;
+
+        }
+
+    }
+
     /**
      * <p>makeCreateOperation</p>
      *
@@ -676,6 +716,25 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
         return new UpdateOperation(fileName, update);
     }
 
+    /**
+     * <p>makeUpdateOperation</p>
+     *
+     * @param fileName a {@link java.lang.String} object.
+     * @param owner a {@link java.lang.String} object.
+     * @param timeStamp a long.
+     * @param values an array of double.
+     * @return a {@link org.opennms.netmgt.rrd.QueuingRrdStrategy.Operation} object.
+     */
+    Operation makeUpdateOperation(String fileName, String owner, long timeStamp, double[] values) {
+        if (values.length == 1 && values[0] == 0.0) {
+            if (timeStamp == 0)
+                m_log.debug("ZERO ERROR: created a zero update with ts=0 for file: {}", fileName);
+
+            return new ZeroUpdateOperation(fileName, timeStamp);
+        }
+        return new ValuesUpdateOperation(fileName, timeStamp, values);
+    }
+
     //
     // Queue management functions.
     //
@@ -1023,6 +1082,12 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
         addOperation(makeUpdateOperation((String) rrdFile, owner, data));
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void updateFile(String rrdFile, String owner, long timestamp, double[] values) throws Exception {
+        addOperation(makeUpdateOperation(rrdFile, owner, timestamp, values));
+    }
+
     /** {@inheritDoc} */
     @Override
     public Double fetchLastValue(String rrdFile, String ds, int interval) throws NumberFormatException, RrdException {
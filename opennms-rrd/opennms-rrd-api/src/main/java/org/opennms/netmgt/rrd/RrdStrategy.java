@@ -130,6 +130,31 @@ public interface RrdStrategy<D extends Object,F extends Object> {
      */
     public void updateFile(F rrd, String owner, String data) throws Exception;
 
+    /**
+     * Updates the supplied round robin database with the given values at the
+     * given time. Strategies that don't need the update as a string should
+     * override this, since the values don't have to be formatted and parsed
+     * again. By default, the update is formatted with {@link RrdUpdates} and
+     * passed to {@link #updateFile(Object, String, String)}.
+     *
+     * @param rrd
+     *            an rrd object created using openFile
+     * @param owner
+     *            the owner of the rrd
+     * @param timestamp
+     *            the time of the update, in seconds since the epoch
+     * @param values
+     *            the values of the data sources, in the order in which they
+     *            were defined, and NaN for unknown values. Strategies may
+     *            keep the array until the update is written, so it must not
+     *            be changed afterwards.
+     * @throws java.lang.Exception
+     *             if an error occurs updating the file
+     */
+    public default void updateFile(F rrd, String owner, long timestamp, double[] values) throws Exception {
+        updateFile(rrd, owner, RrdUpdates.format(timestamp, values));
+    }
+
     /**
      * This closes the supplied round robin database
      *
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rrd;
+
+import java.math.BigDecimal;
+
+/**
+ * Formats updates for the strategies that pass them on as strings, i.e.
+ * <code>&lt;timestamp&gt;:&lt;value&gt;[:&lt;value&gt;...]</code>.
+ *
+ * The values are written the way the persisters used to format them with a
+ * {@link java.text.NumberFormat}: integral values without a fraction, no
+ * exponents, no zero before the decimal point of values below one, and
+ * <code>U</code> for unknown values.
+ */
+public abstract class RrdUpdates {
+
+    /**
+     * The largest magnitude up to which every integral double is exact.
+     */
+    private static final double MAX_EXACT_INTEGER = 9007199254740992.0;
+
+    /**
+     * <p>format</p>
+     *
+     * @param timestamp the time of the update, in seconds since the epoch
+     * @param values the values, NaN or infinite for unknown values
+     * @return the update as a {@link java.lang.String}
+     */
+    public static String format(long timestamp, double[] values) {
+        final StringBuilder update = new StringBuilder(20 + values.length * 12);
+        update.append(timestamp);
+        for (final double value : values) {
+            update.append(':');
+            appendValue(update, value);
+        }
+        return update.toString();
+    }
+
+    private static void appendValue(StringBuilder update, double value) {
+        if (!Double.isFinite(value)) {
+            update.append('U');
+        } else if (value == Math.rint(value) && Math.abs(value) < MAX_EXACT_INTEGER) {
+            update.append((long)value);
+        } else {
+            final double magnitude = Math.abs(value);
+            final String digits;
+            if (magnitude >= 1e-3 && magnitude < 1e7) {
+                // Double.toString() doesn't use an exponent in this range
+                digits = Double.toString(value);
+            } else {
+                digits = BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+            }
+            if (magnitude < 1) {
+                // NumberFormat leaves out the leading zero, i.e. ".5"
+                final int zero = digits.indexOf('0');
+                update.append(digits, 0, zero).append(digits, zero + 1, digits.length());
+            } else {
+                update.append(digits);
+            }
+        }
+    }
+}
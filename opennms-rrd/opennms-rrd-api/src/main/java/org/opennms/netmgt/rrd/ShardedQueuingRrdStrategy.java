@@ -0,0 +1,1251 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opennms.core.logging.Logging;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A queuing RrdStrategy that does the same job as {@link QueuingRrdStrategy}
+ * without a shared lock.
+ *
+ * Every file is assigned to one of <code>writeThreads</code> shards by the
+ * hash of its name. Collection threads append their operations to the
+ * lock-free inbox of the file's shard and return. Each shard has its own write
+ * thread that moves the operations from its inbox to its pending files, merges
+ * zero valued updates, promotes files and writes them to the delegate. Because
+ * all the bookkeeping of a shard is only ever touched by its write thread, it
+ * needs no locking, and because a file always belongs to the same shard, its
+ * operations are written in the order in which they were enqueued.
+ *
+ * The significant/insignificant prioritization and the age based promotion of
+ * files with only insignificant work work as in {@link QueuingRrdStrategy},
+ * but within each shard.
+ *
+ * Instead of high water marks on the number of pending operations, the memory
+ * used by pending operations is bounded by <code>maxQueuedBytes</code>, which
+ * is split evenly between the shards. Once three quarters of the budget of a
+ * shard is used, insignificant operations are discarded; once all of it is
+ * used, every operation is discarded. The size of an operation is estimated
+ * from the length of its file name and data.
+ *
+ * @see QueuingRrdStrategy
+ */
+public class ShardedQueuingRrdStrategy implements RrdStrategy<ShardedQueuingRrdStrategy.CreateOperation,String> {
+
+    /**
+     * An estimate of the bytes used by an operation in addition to its
+     * strings: the operation itself, the inbox node and the pending list entry.
+     */
+    private static final long OPERATION_OVERHEAD = 128;
+
+    private Logger m_log = LoggerFactory.getLogger(ShardedQueuingRrdStrategy.class);
+
+    private final RrdStrategy<Object, Object> m_delegate;
+
+    private Properties m_configurationProperties;
+
+    private String m_category = "queued";
+
+    private int m_writeThreads = 2;
+
+    private boolean m_queueCreates;
+
+    private boolean m_prioritizeSignificantUpdates;
+
+    private long m_maxQueuedBytes;
+
+    private long m_modulus = 10000;
+
+    private long m_maxInsigUpdateSeconds;
+
+    private long m_writeThreadSleepTime = 50;
+
+    private long m_writeThreadExitDelay = 60000;
+
+    private volatile Shard[] m_shards;
+
+    private final long m_startTime = System.currentTimeMillis();
+
+    /**
+     * <p>Constructor for ShardedQueuingRrdStrategy.</p>
+     *
+     * @param delegate a {@link org.opennms.netmgt.rrd.RrdStrategy} object.
+     */
+    public ShardedQueuingRrdStrategy(RrdStrategy<Object, Object> delegate) {
+        m_delegate = delegate;
+    }
+
+    /**
+     * <p>getDelegate</p>
+     *
+     * @return a {@link org.opennms.netmgt.rrd.RrdStrategy} object.
+     */
+    public RrdStrategy<Object, Object> getDelegate() {
+        return m_delegate;
+    }
+
+    /**
+     * <p>getConfigurationProperties</p>
+     *
+     * @return a {@link java.util.Properties} object.
+     */
+    public Properties getConfigurationProperties() {
+        return m_configurationProperties;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setConfigurationProperties(final Properties configurationParameters) {
+        m_configurationProperties = configurationParameters;
+    }
+
+    /**
+     * <p>getWriteThreads</p>
+     *
+     * @return the number of shards and write threads
+     */
+    public int getWriteThreads() {
+        return m_writeThreads;
+    }
+
+    /**
+     * <p>setWriteThreads</p>
+     *
+     * @param writeThreads a int.
+     */
+    public void setWriteThreads(int writeThreads) {
+        m_writeThreads = writeThreads;
+    }
+
+    /**
+     * <p>queueCreates</p>
+     *
+     * @return a boolean.
+     */
+    public boolean queueCreates() {
+        return m_queueCreates;
+    }
+
+    /**
+     * <p>setQueueCreates</p>
+     *
+     * @param queueCreates a boolean.
+     */
+    public void setQueueCreates(boolean queueCreates) {
+        m_queueCreates = queueCreates;
+    }
+
+    /**
+     * <p>prioritizeSignificantUpdates</p>
+     *
+     * @return a boolean.
+     */
+    public boolean prioritizeSignificantUpdates() {
+        return m_prioritizeSignificantUpdates;
+    }
+
+    /**
+     * <p>setPrioritizeSignificantUpdates</p>
+     *
+     * @param prioritizeSignificantUpdates a boolean.
+     */
+    public void setPrioritizeSignificantUpdates(boolean prioritizeSignificantUpdates) {
+        m_prioritizeSignificantUpdates = prioritizeSignificantUpdates;
+    }
+
+    /**
+     * <p>getMaxQueuedBytes</p>
+     *
+     * @return the configured memory budget for pending operations, 0 for a
+     * quarter of the maximum heap size
+     */
+    public long getMaxQueuedBytes() {
+        return m_maxQueuedBytes;
+    }
+
+    /**
+     * <p>setMaxQueuedBytes</p>
+     *
+     * @param maxQueuedBytes a long.
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        m_maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * <p>getModulus</p>
+     *
+     * @return a long.
+     */
+    public long getModulus() {
+        return m_modulus;
+    }
+
+    /**
+     * <p>setModulus</p>
+     *
+     * @param modulus a long.
+     */
+    public void setModulus(long modulus) {
+        m_modulus = modulus;
+    }
+
+    /**
+     * <p>getCategory</p>
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    public String getCategory() {
+        return m_category;
+    }
+
+    /**
+     * <p>setCategory</p>
+     *
+     * @param category a {@link java.lang.String} object.
+     */
+    public void setCategory(final String category) {
+        m_category = category;
+
+        m_log = LoggerFactory.getLogger(m_category);
+    }
+
+    /**
+     * <p>getMaxInsigUpdateSeconds</p>
+     *
+     * @return a long.
+     */
+    public long getMaxInsigUpdateSeconds() {
+        return m_maxInsigUpdateSeconds;
+    }
+
+    /**
+     * <p>setMaxInsigUpdateSeconds</p>
+     *
+     * @param maxInsigUpdateSeconds a long.
+     */
+    public void setMaxInsigUpdateSeconds(long maxInsigUpdateSeconds) {
+        m_maxInsigUpdateSeconds = maxInsigUpdateSeconds;
+    }
+
+    /**
+     * <p>getWriteThreadSleepTime</p>
+     *
+     * @return a long.
+     */
+    public long getWriteThreadSleepTime() {
+        return m_writeThreadSleepTime;
+    }
+
+    /**
+     * <p>setWriteThreadSleepTime</p>
+     *
+     * @param writeThreadSleepTime a long.
+     */
+    public void setWriteThreadSleepTime(long writeThreadSleepTime) {
+        m_writeThreadSleepTime = writeThreadSleepTime;
+    }
+
+    /**
+     * <p>getWriteThreadExitDelay</p>
+     *
+     * @return a long.
+     */
+    public long getWriteThreadExitDelay() {
+        return m_writeThreadExitDelay;
+    }
+
+    /**
+     * <p>setWriteThreadExitDelay</p>
+     *
+     * @param writeThreadExitDelay a long.
+     */
+    public void setWriteThreadExitDelay(long writeThreadExitDelay) {
+        m_writeThreadExitDelay = writeThreadExitDelay;
+    }
+
+    /**
+     * This is the base class for an enqueue able operation
+     */
+    abstract static class Operation {
+        final String fileName;
+        final boolean significant;
+        final long size;
+
+        Operation(final String fileName, final boolean significant, final int dataLength) {
+            this.fileName = fileName;
+            this.significant = significant;
+            this.size = OPERATION_OVERHEAD + 2L * (fileName.length() + dataLength);
+        }
+
+        int getCount() {
+            return 1;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        boolean isSignificant() {
+            return significant;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * Appends this operation to the pending operations of its file.
+         *
+         * @return true if this operation has been merged into an operation
+         * that was already pending
+         */
+        boolean addToPendingList(LinkedList<Operation> pendingOperations) {
+            pendingOperations.add(this);
+            return false;
+        }
+
+        abstract Object process(Shard shard, Object rrd) throws Exception;
+    }
+
+    /**
+     * This class represents an operation to create an rrd file
+     */
+    public class CreateOperation extends Operation {
+        private final Object m_rrdDef;
+
+        private Map<String, String> m_attributeMappings;
+
+        CreateOperation(String fileName, Object rrdDef) {
+            super(fileName, true, 0);
+            m_rrdDef = rrdDef;
+        }
+
+        public Object getData() {
+            return m_rrdDef;
+        }
+
+        public void setAttributeMappings(Map<String, String> attributeMappings) {
+            m_attributeMappings = attributeMappings;
+        }
+
+        @Override
+        Object process(Shard shard, Object rrd) throws Exception {
+            // if the rrd is already open we are confused
+            if (rrd != null) {
+                m_log.debug("WHAT! rrd open but not created?");
+                m_delegate.closeFile(rrd);
+            }
+            m_delegate.createFile(m_rrdDef, m_attributeMappings);
+            shard.m_createsCompleted++;
+            shard.m_significantOpsCompleted++;
+            return null;
+        }
+    }
+
+    /**
+     * Represents an update to a rrd file.
+     */
+    class UpdateOperation extends Operation {
+        private final String m_update;
+
+        UpdateOperation(String fileName, String update) {
+            super(fileName, true, update.length());
+            m_update = update;
+        }
+
+        @Override
+        Object process(Shard shard, Object rrd) throws Exception {
+            if (rrd == null) {
+                rrd = m_delegate.openFile(getFileName());
+            }
+            try {
+                m_delegate.updateFile(rrd, "", m_update);
+            } catch (final Throwable e) {
+                final String error = String.format("Error processing update for file %s: %s", getFileName(), m_update);
+                m_log.debug(error, e);
+                throw new Exception(error, e);
+            }
+            shard.m_significantOpsCompleted++;
+            shard.updateCompleted();
+            return rrd;
+        }
+    }
+
+    /**
+     * Represents an update whose values haven't been formatted as a string.
+     */
+    class ValuesUpdateOperation extends Operation {
+        private final long m_timeStamp;
+
+        private final double[] m_values;
+
+        ValuesUpdateOperation(String fileName, long timeStamp, double[] values) {
+            // the size is counted in chars: four per value and two for the timestamp
+            super(fileName, true, 2 + 4 * values.length);
+            m_timeStamp = timeStamp;
+            m_values = values;
+        }
+
+        @Override
+        Object process(Shard shard, Object rrd) throws Exception {
+            if (rrd == null) {
+                rrd = m_delegate.openFile(getFileName());
+            }
+            try {
+                m_delegate.updateFile(rrd, "", m_timeStamp, m_values);
+            } catch (final Throwable e) {
+                final String error = String.format("Error processing update for file %s: %s", getFileName(), RrdUpdates.format(m_timeStamp, m_values));
+                m_log.debug(error, e);
+                throw new Exception(error, e);
+            }
+            shard.m_significantOpsCompleted++;
+            shard.updateCompleted();
+            return rrd;
+        }
+    }
+
+    /**
+     * Represents a run of evenly spaced updates whose value is 0. These
+     * operations are merged together and take up less memory.
+     */
+    class ZeroUpdateOperation extends Operation {
+        private final long m_timeStamp;
+
+        private long m_interval = 0;
+
+        private int m_count = 1;
+
+        ZeroUpdateOperation(String fileName, long initialTimeStamp) {
+            super(fileName, false, 1);
+            m_timeStamp = initialTimeStamp;
+        }
+
+        @Override
+        int getCount() {
+            return m_count;
+        }
+
+        long getFirstTimeStamp() {
+            return m_timeStamp;
+        }
+
+        long getLastTimeStamp() {
+            return m_timeStamp + m_interval * (m_count - 1);
+        }
+
+        long getInterval() {
+            return m_interval;
+        }
+
+        /**
+         * Same rules as {@link QueuingRrdStrategy.ZeroUpdateOperation#mergeUpdates}.
+         */
+        boolean mergeUpdates(ZeroUpdateOperation op) {
+            final long opSpacing = op.getFirstTimeStamp() - getLastTimeStamp();
+            final long tolerance = getInterval() / 5;
+
+            if (opSpacing == 0) {
+                m_log.debug("Unable to mergeUpdates: the spacing is 0");
+                return false;
+            }
+            if (getInterval() > 0 && Math.abs(opSpacing - getInterval()) >= tolerance) {
+                m_log.debug("Unable to mergeUpdates: the spacing {} is different than the current interval {}", opSpacing, getInterval());
+                return false;
+            }
+            if (getInterval() > 0 && op.getInterval() > 0 && Math.abs(op.getInterval() - getInterval()) >= tolerance) {
+                m_log.debug("Unable to mergeUpdates: the new op interval {} is different than the current interval {}", op.getInterval(), getInterval());
+                return false;
+            }
+
+            final int newCount = getCount() + op.getCount();
+            m_interval = ((getCount() - 1) * getInterval() + (op.getCount() - 1) * op.getInterval() + opSpacing) / (newCount - 1);
+            m_count = newCount;
+            return true;
+        }
+
+        @Override
+        boolean addToPendingList(LinkedList<Operation> pendingOperations) {
+            if (!pendingOperations.isEmpty() && pendingOperations.getLast() instanceof ZeroUpdateOperation
+                    && ((ZeroUpdateOperation) pendingOperations.getLast()).mergeUpdates(this)) {
+                return true;
+            }
+            return super.addToPendingList(pendingOperations);
+        }
+
+        @Override
+        Object process(Shard shard, Object rrd) throws Exception {
+            long ts = getFirstTimeStamp();
+            for (int i = 0; i < m_count; i++) {
+                if (rrd == null) {
+                    rrd = m_delegate.openFile(getFileName());
+                }
+                final String update = ts + ":0";
+                try {
+                    m_delegate.updateFile(rrd, "", update);
+                } catch (Throwable e) {
+                    throw new Exception("Error processing update " + i + " for file " + getFileName() + ": " + update, e);
+                }
+                ts += getInterval();
+                shard.updateCompleted();
+            }
+            return rrd;
+        }
+    }
+
+    /**
+     * Moves a file to the front of the significant files of its shard.
+     * Promotions are picked out of the inbox by {@link Shard#drainInbox()}
+     * and never become pending operations of a file.
+     */
+    class PromoteOperation extends Operation {
+        PromoteOperation(String fileName) {
+            super(fileName, true, 0);
+        }
+
+        /**
+         * Does nothing, a promotion has no work of its own.
+         */
+        @Override
+        Object process(Shard shard, Object rrd) {
+            return rrd;
+        }
+    }
+
+    /**
+     * The operations that are pending for a file.
+     */
+    private static final class PendingFile {
+        private final LinkedList<Operation> m_operations = new LinkedList<Operation>();
+        private boolean m_significant;
+    }
+
+    /**
+     * <p>makeUpdateOperation</p>
+     *
+     * @param fileName a {@link java.lang.String} object.
+     * @param update a {@link java.lang.String} object.
+     * @return a {@link org.opennms.netmgt.rrd.ShardedQueuingRrdStrategy.Operation} object.
+     */
+    Operation makeUpdateOperation(String fileName, String update) {
+        try {
+            int colon = update.indexOf(':');
+            if ((colon >= 0) && (Double.parseDouble(update.substring(colon + 1)) == 0.0)) {
+                long initialTimeStamp = Long.parseLong(update.substring(0, colon));
+                if (initialTimeStamp == 0) {
+                    m_log.debug("ZERO ERROR: created a zero update with ts=0 for file: {}, data: {}", fileName, update);
+                }
+                return new ZeroUpdateOperation(fileName, initialTimeStamp);
+            }
+        } catch (NumberFormatException e) {
+            // not a single zero value
+        }
+        return new UpdateOperation(fileName, update);
+    }
+
+    /**
+     * <p>makeUpdateOperation</p>
+     *
+     * @param fileName a {@link java.lang.String} object.
+     * @param timeStamp a long.
+     * @param values an array of double.
+     * @return a {@link org.opennms.netmgt.rrd.ShardedQueuingRrdStrategy.Operation} object.
+     */
+    Operation makeUpdateOperation(String fileName, long timeStamp, double[] values) {
+        if (values.length == 1 && values[0] == 0.0) {
+            if (timeStamp == 0) {
+                m_log.debug("ZERO ERROR: created a zero update with ts=0 for file: {}", fileName);
+            }
+            return new ZeroUpdateOperation(fileName, timeStamp);
+        }
+        return new ValuesUpdateOperation(fileName, timeStamp, values);
+    }
+
+    /**
+     * A shard owns the inbox, the pending files and the write thread for the
+     * files whose names hash to it. Everything but the inbox and the counters
+     * that are written by the collection threads is only used by the write
+     * thread.
+     */
+    final class Shard implements Runnable {
+        private final int m_index;
+
+        private final long m_maxQueuedBytes;
+
+        private final ConcurrentLinkedQueue<Operation> m_inbox = new ConcurrentLinkedQueue<Operation>();
+
+        private final AtomicBoolean m_running = new AtomicBoolean(false);
+
+        private volatile Thread m_thread;
+
+        private volatile boolean m_parked = false;
+
+        // written by the collection threads
+        private final AtomicLong m_queuedBytes = new AtomicLong();
+        private final AtomicLong m_peakQueuedBytes = new AtomicLong();
+        private final AtomicLong m_enqueuedOperations = new AtomicLong();
+        private final AtomicLong m_significantOpsEnqueued = new AtomicLong();
+        private final AtomicLong m_discardedOperations = new AtomicLong();
+
+        // only written by the write thread
+        private volatile long m_dequeuedOperations = 0;
+        private volatile long m_significantOpsDequeued = 0;
+        private volatile long m_significantOpsCompleted = 0;
+        private volatile long m_dequeuedItems = 0;
+        private volatile long m_createsCompleted = 0;
+        private volatile long m_updatesCompleted = 0;
+        private volatile long m_errors = 0;
+        private volatile long m_promotionCount = 0;
+        private volatile int m_filesWithSignificantWorkCount = 0;
+        private volatile int m_filesWithInsignificantWorkCount = 0;
+
+        private final Map<String, PendingFile> m_pendingFiles = new HashMap<String, PendingFile>();
+        private final LinkedList<String> m_filesWithSignificantWork = new LinkedList<String>();
+        private final LinkedList<String> m_filesWithInsignificantWork = new LinkedList<String>();
+        private long m_promotionStartTime = 0;
+
+        Shard(final int index, final long maxQueuedBytes) {
+            m_index = index;
+            m_maxQueuedBytes = maxQueuedBytes;
+        }
+
+        /**
+         * Called by the collection threads.
+         */
+        void enqueue(final Operation op) {
+            final long size = op.getSize();
+            // reserve the bytes with a compare and set so that concurrent
+            // collection threads can't go over the budget together
+            long queuedBytes;
+            long newQueuedBytes;
+            do {
+                queuedBytes = m_queuedBytes.get();
+                newQueuedBytes = queuedBytes + size;
+                if (newQueuedBytes > m_maxQueuedBytes) {
+                    discard(op, "RRD Data Queue is Full!! Discarding operation for file {}");
+                    return;
+                }
+                if (!op.isSignificant() && newQueuedBytes > m_maxQueuedBytes / 4 * 3) {
+                    discard(op, "RRD Insignificant Data Queue is Full!! Discarding operation for file {}");
+                    return;
+                }
+            } while (!m_queuedBytes.compareAndSet(queuedBytes, newQueuedBytes));
+
+            long peak;
+            while (newQueuedBytes > (peak = m_peakQueuedBytes.get()) && !m_peakQueuedBytes.compareAndSet(peak, newQueuedBytes)) {
+                // retry
+            }
+            m_enqueuedOperations.incrementAndGet();
+            if (op.isSignificant()) {
+                m_significantOpsEnqueued.incrementAndGet();
+            }
+
+            m_inbox.add(op);
+            wakeUp();
+        }
+
+        void promote(final String fileName) {
+            m_inbox.add(new PromoteOperation(fileName));
+            wakeUp();
+        }
+
+        private void discard(final Operation op, final String message) {
+            if (m_discardedOperations.getAndIncrement() % m_modulus == 0) {
+                m_log.error(message, op.getFileName());
+            }
+        }
+
+        private void wakeUp() {
+            if (!m_running.get() && m_running.compareAndSet(false, true)) {
+                final Thread thread = new Thread(this, ShardedQueuingRrdStrategy.class.getSimpleName() + "-" + (m_index + 1));
+                m_thread = thread;
+                thread.start();
+            } else if (m_parked) {
+                LockSupport.unpark(m_thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            Logging.withPrefix(m_category, new Runnable() {
+                @Override
+                public void run() {
+                    processOperations();
+                }
+            });
+        }
+
+        private void processOperations() {
+            long idleSince = -1L;
+            while (true) {
+                drainInbox();
+
+                final String fileName = selectNextFile();
+                if (fileName != null) {
+                    idleSince = -1L;
+                    processFile(fileName);
+                    continue;
+                }
+
+                final long now = System.currentTimeMillis();
+                if (idleSince < 0) {
+                    idleSince = now;
+                } else if (now - idleSince >= m_writeThreadExitDelay) {
+                    m_running.set(false);
+                    // a collection thread may have enqueued work after we last looked, while
+                    // this thread was still marked as running
+                    if (m_inbox.isEmpty() || !m_running.compareAndSet(false, true)) {
+                        return;
+                    }
+                    idleSince = -1L;
+                    continue;
+                }
+
+                m_parked = true;
+                if (m_inbox.isEmpty()) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(m_writeThreadSleepTime));
+                }
+                m_parked = false;
+            }
+        }
+
+        /**
+         * Moves everything from the inbox to the pending files.
+         */
+        private void drainInbox() {
+            Operation op;
+            while ((op = m_inbox.poll()) != null) {
+                if (op instanceof PromoteOperation) {
+                    m_filesWithSignificantWork.addFirst(op.getFileName());
+                    continue;
+                }
+
+                PendingFile pendingFile = m_pendingFiles.get(op.getFileName());
+                if (pendingFile == null) {
+                    pendingFile = new PendingFile();
+                    m_pendingFiles.put(op.getFileName(), pendingFile);
+                    // if we aren't prioritizing then every file is counted as significant
+                    if (!m_prioritizeSignificantUpdates || op.isSignificant()) {
+                        m_filesWithSignificantWork.addLast(op.getFileName());
+                    } else {
+                        m_filesWithInsignificantWork.addLast(op.getFileName());
+                    }
+                } else if (m_prioritizeSignificantUpdates && op.isSignificant() && !pendingFile.m_significant) {
+                    // promote the file to the significant list with its first significant operation
+                    m_filesWithSignificantWork.addLast(op.getFileName());
+                }
+                pendingFile.m_significant |= op.isSignificant();
+
+                promoteAgedFiles();
+
+                if (op.addToPendingList(pendingFile.m_operations)) {
+                    // merged into a pending operation
+                    m_queuedBytes.addAndGet(-op.getSize());
+                }
+            }
+            m_filesWithSignificantWorkCount = m_filesWithSignificantWork.size();
+            m_filesWithInsignificantWorkCount = m_filesWithInsignificantWork.size();
+        }
+
+        /**
+         * Same as {@link QueuingRrdStrategy}: promote one file with only
+         * insignificant work every <code>maxInsigUpdateSeconds</code> divided
+         * by the number of such files.
+         */
+        private void promoteAgedFiles() {
+            if (!m_prioritizeSignificantUpdates || m_maxInsigUpdateSeconds == 0 || m_filesWithInsignificantWork.isEmpty()) {
+                return;
+            }
+
+            final long now = System.currentTimeMillis();
+            if (m_promotionStartTime == 0) {
+                m_promotionStartTime = now;
+            }
+            final long elapsedMillis = Math.max(now - m_promotionStartTime, 1);
+            final double millisPerPromotion = ((m_maxInsigUpdateSeconds * 1000.0) / m_filesWithInsignificantWork.size());
+            final long nextPromotionMillis = (long) (millisPerPromotion * m_promotionCount);
+
+            if (elapsedMillis > nextPromotionMillis) {
+                m_filesWithSignificantWork.addFirst(m_filesWithInsignificantWork.removeFirst());
+                m_promotionCount++;
+            }
+        }
+
+        /**
+         * Returns the next file that has pending operations. Files can be on
+         * both lists, or be promoted when they have no work, so entries
+         * without pending operations are skipped.
+         */
+        private String selectNextFile() {
+            while (!m_filesWithSignificantWork.isEmpty()) {
+                final String fileName = m_filesWithSignificantWork.removeFirst();
+                if (m_pendingFiles.containsKey(fileName)) {
+                    return fileName;
+                }
+            }
+            while (!m_filesWithInsignificantWork.isEmpty()) {
+                final String fileName = m_filesWithInsignificantWork.removeFirst();
+                if (m_pendingFiles.containsKey(fileName)) {
+                    return fileName;
+                }
+            }
+            return null;
+        }
+
+        private void processFile(final String fileName) {
+            final LinkedList<Operation> ops = m_pendingFiles.remove(fileName).m_operations;
+
+            long size = 0;
+            int count = 0;
+            int significant = 0;
+            for (final Operation op : ops) {
+                size += op.getSize();
+                count += op.getCount();
+                if (op.isSignificant()) {
+                    significant += op.getCount();
+                }
+            }
+            m_queuedBytes.addAndGet(-size);
+            m_dequeuedOperations += count;
+            m_significantOpsDequeued += significant;
+            m_dequeuedItems++;
+
+            Object rrd = null;
+            try {
+                for (final Operation op : ops) {
+                    rrd = op.process(this, rrd);
+                }
+            } catch (final Throwable e) {
+                m_errors++;
+                m_log.debug("Error updating file {}: {}", fileName, e.getMessage(), e);
+            } finally {
+                if (rrd != null) {
+                    try {
+                        m_delegate.closeFile(rrd);
+                    } catch (final Throwable e) {
+                        m_errors++;
+                        m_log.debug("Error closing rrd {}: {}", rrd, e.getMessage(), e);
+                    }
+                }
+            }
+        }
+
+        private void updateCompleted() {
+            if (++m_updatesCompleted % m_modulus == 0 && m_log.isDebugEnabled()) {
+                m_log.debug(getStats());
+            }
+        }
+    }
+
+    /**
+     * Returns the shards, creating them on first use so that all the
+     * properties have been set.
+     */
+    private Shard[] getShards() {
+        Shard[] shards = m_shards;
+        if (shards == null) {
+            synchronized (this) {
+                shards = m_shards;
+                if (shards == null) {
+                    final int count = Math.max(m_writeThreads, 1);
+                    final long maxQueuedBytes = m_maxQueuedBytes > 0 ? m_maxQueuedBytes : Runtime.getRuntime().maxMemory() / 4;
+                    shards = new Shard[count];
+                    for (int i = 0; i < count; i++) {
+                        shards[i] = new Shard(i, maxQueuedBytes / count);
+                    }
+                    m_shards = shards;
+                }
+            }
+        }
+        return shards;
+    }
+
+    private Shard getShard(final String fileName) {
+        final Shard[] shards = getShards();
+        final int hash = fileName.hashCode();
+        return shards[((hash ^ (hash >>> 16)) & 0x7fffffff) % shards.length];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CreateOperation createDefinition(String creator, String directory, String rrdName, int step, List<RrdDataSource> dataSources, List<String> rraList) throws Exception {
+        String fileName = directory + File.separator + rrdName + m_delegate.getDefaultFileExtension();
+        Object def = m_delegate.createDefinition(creator, directory, rrdName, step, dataSources, rraList);
+        return new CreateOperation(fileName, def);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void createFile(CreateOperation op, Map<String, String> attributeMappings) throws Exception {
+        if (m_queueCreates) {
+            op.setAttributeMappings(attributeMappings);
+            getShard(op.getFileName()).enqueue(op);
+        } else {
+            m_delegate.createFile(op.getData(), attributeMappings);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String openFile(String fileName) throws Exception {
+        return fileName;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void closeFile(String rrd) throws Exception {
+        // no need to do anything here
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void updateFile(String rrdFile, String owner, String data) throws Exception {
+        getShard(rrdFile).enqueue(makeUpdateOperation(rrdFile, data));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void updateFile(String rrdFile, String owner, long timestamp, double[] values) throws Exception {
+        getShard(rrdFile).enqueue(makeUpdateOperation(rrdFile, timestamp, values));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void promoteEnqueuedFiles(Collection<String> rrdFiles) {
+        for (final String rrdFile : rrdFiles) {
+            getShard(rrdFile).promote(rrdFile);
+        }
+        m_delegate.promoteEnqueuedFiles(rrdFiles);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValue(String rrdFile, String ds, int interval) throws NumberFormatException, RrdException {
+        return m_delegate.fetchLastValue(rrdFile, ds, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValue(String rrdFile, String ds, String consolidationFunction, int interval) throws NumberFormatException, RrdException {
+        return m_delegate.fetchLastValue(rrdFile, ds, consolidationFunction, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValueInRange(String rrdFile, String ds, int interval, int range) throws NumberFormatException, RrdException {
+        return m_delegate.fetchLastValueInRange(rrdFile, ds, interval, range);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public InputStream createGraph(String command, File workDir) throws IOException, RrdException {
+        return m_delegate.createGraph(command, workDir);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RrdGraphDetails createGraphReturnDetails(String command, File workDir) throws IOException, RrdException {
+        return m_delegate.createGraphReturnDetails(command, workDir);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getGraphLeftOffset() {
+        return m_delegate.getGraphLeftOffset();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getGraphRightOffset() {
+        return m_delegate.getGraphRightOffset();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getGraphTopOffsetWithText() {
+        return m_delegate.getGraphTopOffsetWithText();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDefaultFileExtension() {
+        return m_delegate.getDefaultFileExtension();
+    }
+
+    /**
+     * <p>getTotalOperationsPending</p>
+     *
+     * @return the number of operations that have been enqueued but not yet
+     * taken by a write thread
+     */
+    public long getTotalOperationsPending() {
+        long pending = 0;
+        for (final Shard shard : getShards()) {
+            pending += shard.m_enqueuedOperations.get() - shard.m_dequeuedOperations;
+        }
+        return pending;
+    }
+
+    /**
+     * <p>getQueuedBytes</p>
+     *
+     * @return the estimated memory used by pending operations
+     */
+    public long getQueuedBytes() {
+        long queuedBytes = 0;
+        for (final Shard shard : getShards()) {
+            queuedBytes += shard.m_queuedBytes.get();
+        }
+        return queuedBytes;
+    }
+
+    /**
+     * <p>getPeakQueuedBytes</p>
+     *
+     * @return the sum of the highest estimated memory used by the pending
+     * operations of each shard
+     */
+    public long getPeakQueuedBytes() {
+        long peakQueuedBytes = 0;
+        for (final Shard shard : getShards()) {
+            peakQueuedBytes += shard.m_peakQueuedBytes.get();
+        }
+        return peakQueuedBytes;
+    }
+
+    /**
+     * <p>getEnqueuedOperations</p>
+     *
+     * @return a long.
+     */
+    public long getEnqueuedOperations() {
+        long enqueued = 0;
+        for (final Shard shard : getShards()) {
+            enqueued += shard.m_enqueuedOperations.get();
+        }
+        return enqueued;
+    }
+
+    /**
+     * <p>getDequeuedOperations</p>
+     *
+     * @return a long.
+     */
+    public long getDequeuedOperations() {
+        long dequeued = 0;
+        for (final Shard shard : getShards()) {
+            dequeued += shard.m_dequeuedOperations;
+        }
+        return dequeued;
+    }
+
+    /**
+     * <p>getDequeuedItems</p>
+     *
+     * @return the number of times a write thread has taken the pending
+     * operations of a file
+     */
+    public long getDequeuedItems() {
+        long dequeuedItems = 0;
+        for (final Shard shard : getShards()) {
+            dequeuedItems += shard.m_dequeuedItems;
+        }
+        return dequeuedItems;
+    }
+
+    /**
+     * <p>getSignificantOpsEnqueued</p>
+     *
+     * @return a long.
+     */
+    public long getSignificantOpsEnqueued() {
+        long significant = 0;
+        for (final Shard shard : getShards()) {
+            significant += shard.m_significantOpsEnqueued.get();
+        }
+        return significant;
+    }
+
+    /**
+     * <p>getSignificantOpsDequeued</p>
+     *
+     * @return a long.
+     */
+    public long getSignificantOpsDequeued() {
+        long significant = 0;
+        for (final Shard shard : getShards()) {
+            significant += shard.m_significantOpsDequeued;
+        }
+        return significant;
+    }
+
+    /**
+     * <p>getSignificantOpsCompleted</p>
+     *
+     * @return a long.
+     */
+    public long getSignificantOpsCompleted() {
+        long significant = 0;
+        for (final Shard shard : getShards()) {
+            significant += shard.m_significantOpsCompleted;
+        }
+        return significant;
+    }
+
+    /**
+     * <p>getStartTime</p>
+     *
+     * @return a long.
+     */
+    public long getStartTime() {
+        return m_startTime;
+    }
+
+    /**
+     * <p>getDiscardedOperations</p>
+     *
+     * @return the number of operations that have been discarded because the
+     * queue was full
+     */
+    public long getDiscardedOperations() {
+        long discarded = 0;
+        for (final Shard shard : getShards()) {
+            discarded += shard.m_discardedOperations.get();
+        }
+        return discarded;
+    }
+
+    /**
+     * <p>getCreatesCompleted</p>
+     *
+     * @return a long.
+     */
+    public long getCreatesCompleted() {
+        long creates = 0;
+        for (final Shard shard : getShards()) {
+            creates += shard.m_createsCompleted;
+        }
+        return creates;
+    }
+
+    /**
+     * <p>getUpdatesCompleted</p>
+     *
+     * @return a long.
+     */
+    public long getUpdatesCompleted() {
+        long updates = 0;
+        for (final Shard shard : getShards()) {
+            updates += shard.m_updatesCompleted;
+        }
+        return updates;
+    }
+
+    /**
+     * <p>getErrors</p>
+     *
+     * @return a long.
+     */
+    public long getErrors() {
+        long errors = 0;
+        for (final Shard shard : getShards()) {
+            errors += shard.m_errors;
+        }
+        return errors;
+    }
+
+    /**
+     * <p>getPromotionCount</p>
+     *
+     * @return a long.
+     */
+    public long getPromotionCount() {
+        long promotions = 0;
+        for (final Shard shard : getShards()) {
+            promotions += shard.m_promotionCount;
+        }
+        return promotions;
+    }
+
+    /**
+     * Print queue statistics.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    @Override
+    public String getStats() {
+        int filesWithSignificantWork = 0;
+        int filesWithInsignificantWork = 0;
+        for (final Shard shard : getShards()) {
+            filesWithSignificantWork += shard.m_filesWithSignificantWorkCount;
+            filesWithInsignificantWork += shard.m_filesWithInsignificantWorkCount;
+        }
+        final long enqueued = getEnqueuedOperations();
+        final long significantEnqueued = getSignificantOpsEnqueued();
+        final long dequeued = getDequeuedOperations();
+        final long dequeuedItems = getDequeuedItems();
+        final long totalElapsedMillis = Math.max(System.currentTimeMillis() - m_startTime, 1);
+
+        return "\nQS:\t" + "totalOperationsPending=" + getTotalOperationsPending() +
+                ", queuedBytes=" + getQueuedBytes() +
+                ", peakQueuedBytes=" + getPeakQueuedBytes() +
+                ", filesWithSignificantWork=" + filesWithSignificantWork +
+                ", filesWithInsignificantWork=" + filesWithInsignificantWork +
+                ", shards=" + getShards().length
+
+                + "\nQS:\t" + ", createsCompleted=" + getCreatesCompleted() +
+                ", updatesCompleted=" + getUpdatesCompleted() +
+                ", discarded=" + getDiscardedOperations() +
+                ", errors=" + getErrors() +
+                ", promotionCount=" + getPromotionCount()
+
+                + "\nQS:\t" + ", overallEnqueueRate=" + (long) (enqueued * 1000.0 / totalElapsedMillis) +
+                ", overallDequeueRate=" + (long) (dequeued * 1000.0 / totalElapsedMillis) +
+                ", overallOpsPerUpdate=" + (dequeued / Math.max(dequeuedItems, 1.0)) +
+                ", overallPrcntSignificant=" + (significantEnqueued * 100.0 / Math.max(enqueued, 1.0)) + "%" +
+                ", totalElapsedTime=" + ((totalElapsedMillis + 500) / 1000);
+    }
+}
@@ -0,0 +1,414 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class ShardedQueuingRrdStrategyTest {
+
+    /**
+     * Records the updates of each file and the order in which files are
+     * opened. Opening the file named "block" blocks until released.
+     */
+    private static class RecordingRrdStrategy extends NullRrdStrategy {
+        private final Map<String, List<String>> m_updates = new ConcurrentHashMap<String, List<String>>();
+        private final List<String> m_opened = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch m_blocked = new CountDownLatch(1);
+        private final CountDownLatch m_release = new CountDownLatch(1);
+        private final long m_openNanos;
+
+        public RecordingRrdStrategy(long openNanos) {
+            m_openNanos = openNanos;
+        }
+
+        @Override
+        public Object openFile(String fileName) {
+            if ("block".equals(fileName)) {
+                m_blocked.countDown();
+                try {
+                    m_release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                m_opened.add(fileName);
+            }
+            // pretend to read the header of the file
+            final long end = System.nanoTime() + m_openNanos;
+            while (m_openNanos > 0 && System.nanoTime() < end) {
+                Thread.yield();
+            }
+            return fileName;
+        }
+
+        @Override
+        public void updateFile(Object rrd, String owner, String data) {
+            List<String> updates = m_updates.get(rrd);
+            if (updates == null) {
+                updates = Collections.synchronizedList(new ArrayList<String>());
+                m_updates.put((String) rrd, updates);
+            }
+            updates.add(data);
+        }
+
+        @Override
+        public void updateFile(Object rrd, String owner, long timestamp, double[] values) {
+            updateFile(rrd, owner, "values " + RrdUpdates.format(timestamp, values));
+        }
+
+        public List<String> getUpdates(String fileName) {
+            final List<String> updates = m_updates.get(fileName);
+            return updates == null ? Collections.<String>emptyList() : updates;
+        }
+
+        /**
+         * Enqueues an update to the "block" file and waits until the write
+         * thread is stuck in it.
+         */
+        public void block(RrdStrategy<?, String> strategy) throws Exception {
+            strategy.updateFile("block", "test", "1:1");
+            assertTrue(m_blocked.await(5, TimeUnit.SECONDS));
+        }
+
+        public void release() {
+            m_release.countDown();
+        }
+    }
+
+    private ShardedQueuingRrdStrategy createStrategy(RecordingRrdStrategy delegate, int writeThreads) {
+        final ShardedQueuingRrdStrategy strategy = new ShardedQueuingRrdStrategy(delegate);
+        strategy.setWriteThreads(writeThreads);
+        strategy.setWriteThreadSleepTime(10);
+        strategy.setWriteThreadExitDelay(1000);
+        return strategy;
+    }
+
+    private static void waitForUpdates(ShardedQueuingRrdStrategy strategy, long updates) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (strategy.getUpdatesCompleted() < updates && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(strategy.getStats(), updates, strategy.getUpdatesCompleted());
+        assertEquals(0, strategy.getTotalOperationsPending());
+        assertEquals(0, strategy.getQueuedBytes());
+    }
+
+    @Test
+    public void testValuesArePassedOn() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy(0);
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 1);
+
+        strategy.updateFile("file", "test", 300, new double[] { 1.5, Double.NaN });
+        // zeros are still merged
+        strategy.updateFile("file", "test", 600, new double[] { 0.0 });
+        strategy.updateFile("file", "test", 900, new double[] { 0.0 });
+        waitForUpdates(strategy, 3);
+
+        assertEquals(Arrays.asList("values 300:1.5:U", "600:0", "900:0"), delegate.getUpdates("file"));
+        // only the first update is significant
+        assertEquals(1, strategy.getSignificantOpsCompleted());
+    }
+
+    @Test
+    public void testUpdatesAreWrittenInOrder() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy(0);
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 4);
+
+        final int numFiles = 100;
+        final int numProducers = 8;
+        final int numSteps = 200;
+        final List<Thread> producers = new ArrayList<Thread>();
+        for (int p = 0; p < numProducers; p++) {
+            final int producer = p;
+            producers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int step = 1; step <= numSteps; step++) {
+                        for (int file = producer; file < numFiles; file += numProducers) {
+                            try {
+                                strategy.updateFile("file" + file, "test", (step * 300) + ":" + step);
+                            } catch (Exception e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        waitForUpdates(strategy, numFiles * numSteps);
+        for (int file = 0; file < numFiles; file++) {
+            final List<String> updates = delegate.getUpdates("file" + file);
+            assertEquals(numSteps, updates.size());
+            for (int step = 1; step <= numSteps; step++) {
+                assertEquals((step * 300) + ":" + step, updates.get(step - 1));
+            }
+        }
+        assertEquals(0, strategy.getErrors());
+    }
+
+    @Test
+    public void testZeroUpdatesAreMerged() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy(0);
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 1);
+        delegate.block(strategy);
+
+        for (int step = 1; step <= 10; step++) {
+            strategy.updateFile("zeros", "test", (1000 + step * 300) + ":0");
+        }
+        strategy.updateFile("zeros", "test", "5000:1");
+        delegate.release();
+
+        waitForUpdates(strategy, 12);
+        final List<String> expected = new ArrayList<String>();
+        for (int step = 1; step <= 10; step++) {
+            expected.add((1000 + step * 300) + ":0");
+        }
+        expected.add("5000:1");
+        assertEquals(expected, delegate.getUpdates("zeros"));
+        // all of them with a single open
+        assertEquals(Collections.singletonList("zeros"), delegate.m_opened);
+    }
+
+    @Test
+    public void testByteBudget() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy(0);
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 1);
+        strategy.setMaxQueuedBytes(4000);
+        delegate.block(strategy);
+
+        for (int i = 0; i < 100; i++) {
+            strategy.updateFile("file" + i, "test", "1000:1");
+        }
+        // including the update of the blocking file
+        final long significant = strategy.getEnqueuedOperations();
+        assertTrue(strategy.getStats(), significant > 2 && significant < 100);
+        assertTrue(strategy.getStats(), strategy.getQueuedBytes() <= 4000);
+
+        // zero updates are discarded first
+        strategy.updateFile("zeros", "test", "1000:0");
+        assertEquals(significant, strategy.getEnqueuedOperations());
+        assertEquals(100 - (significant - 1) + 1, strategy.getDiscardedOperations());
+
+        delegate.release();
+        waitForUpdates(strategy, significant);
+        assertEquals(significant, strategy.getSignificantOpsCompleted());
+        assertTrue(strategy.getPeakQueuedBytes() <= 4000);
+    }
+
+    @Test
+    public void testByteBudgetWithConcurrentProducers() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy(0);
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 1);
+        strategy.setMaxQueuedBytes(40000);
+        delegate.block(strategy);
+
+        final int numProducers = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> producers = new ArrayList<Thread>();
+        for (int p = 0; p < numProducers; p++) {
+            final int producer = p;
+            producers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 500; i++) {
+                            strategy.updateFile("file" + producer + "-" + i, "test", "1000:1");
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(strategy.getStats(), strategy.getPeakQueuedBytes() <= 40000);
+        assertEquals(numProducers * 500 + 1, strategy.getEnqueuedOperations() + strategy.getDiscardedOperations());
+
+        delegate.release();
+        waitForUpdates(strategy, strategy.getEnqueuedOperations());
+        assertEquals(strategy.getEnqueuedOperations(), strategy.getSignificantOpsCompleted());
+    }
+
+    @Test
+    public void testPrioritizesSignificantUpdates() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy(0);
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 1);
+        strategy.setPrioritizeSignificantUpdates(true);
+        delegate.block(strategy);
+
+        strategy.updateFile("a", "test", "1000:0");
+        strategy.updateFile("b", "test", "1000:1");
+        strategy.updateFile("c", "test", "1000:0");
+        // the first significant update promotes the file
+        strategy.updateFile("c", "test", "1300:1");
+        delegate.release();
+
+        waitForUpdates(strategy, 5);
+        assertEquals(Arrays.asList("b", "c", "a"), delegate.m_opened);
+    }
+
+    @Test
+    public void testPromoteEnqueuedFiles() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy(0);
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 1);
+        delegate.block(strategy);
+
+        strategy.updateFile("a", "test", "1000:1");
+        strategy.updateFile("b", "test", "1000:1");
+        strategy.updateFile("c", "test", "1000:1");
+        strategy.promoteEnqueuedFiles(Collections.singletonList("c"));
+        delegate.release();
+
+        waitForUpdates(strategy, 4);
+        assertEquals(Arrays.asList("c", "a", "b"), delegate.m_opened);
+    }
+
+    /**
+     * Compares the enqueue throughput and the largest backlog of
+     * {@link QueuingRrdStrategy} and {@link ShardedQueuingRrdStrategy} with
+     * many collection and write threads and a delegate that takes a few
+     * microseconds to open a file.
+     */
+    @Test
+    @Ignore
+    public void enqueuePerfTest() throws Exception {
+        final int numProducers = 32;
+        final int numWriteThreads = 16;
+        final int numFiles = 100000;
+        final int updatesPerProducer = 200000;
+
+        for (int run = 0; run < 2; run++) {
+            for (boolean sharded : new boolean[] { false, true }) {
+                final RecordingRrdStrategy delegate = new RecordingRrdStrategy(TimeUnit.MICROSECONDS.toNanos(20)) {
+                    @Override
+                    public void updateFile(Object rrd, String owner, String data) {
+                        // don't keep anything
+                    }
+                };
+                final RrdStrategy<?, String> strategy;
+                final QueuingRrdStrategy legacy = new QueuingRrdStrategy(delegate);
+                final ShardedQueuingRrdStrategy shardedStrategy = createStrategy(delegate, numWriteThreads);
+                if (sharded) {
+                    strategy = shardedStrategy;
+                } else {
+                    legacy.setWriteThreads(numWriteThreads);
+                    legacy.setModulus(Long.MAX_VALUE);
+                    legacy.setWriteThreadSleepTime(10);
+                    legacy.setWriteThreadExitDelay(1000);
+                    strategy = legacy;
+                }
+
+                final AtomicLong maxBacklog = new AtomicLong();
+                final Thread sampler = new Thread() {
+                    @Override
+                    public void run() {
+                        while (!isInterrupted()) {
+                            maxBacklog.set(Math.max(maxBacklog.get(), sharded ? shardedStrategy.getTotalOperationsPending() : legacy.getTotalOperationsPending()));
+                            try {
+                                Thread.sleep(1);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                };
+                sampler.start();
+
+                final List<Thread> producers = new ArrayList<Thread>();
+                for (int p = 0; p < numProducers; p++) {
+                    final int producer = p;
+                    producers.add(new Thread() {
+                        @Override
+                        public void run() {
+                            for (int i = 0; i < updatesPerProducer; i++) {
+                                final int file = (producer * 7919 + i) % numFiles;
+                                try {
+                                    // every tenth update is a zero update
+                                    strategy.updateFile("/opt/opennms/share/rrd/snmp/" + file + "/ifInOctets.jrb", "test", (1000 + i * 300) + (i % 10 == 0 ? ":0" : ":" + i));
+                                } catch (Exception e) {
+                                    throw new IllegalStateException(e);
+                                }
+                            }
+                        }
+                    });
+                }
+
+                final long start = System.nanoTime();
+                for (Thread producer : producers) {
+                    producer.start();
+                }
+                for (Thread producer : producers) {
+                    producer.join();
+                }
+                final long enqueued = System.nanoTime();
+                while ((sharded ? shardedStrategy.getTotalOperationsPending() : legacy.getTotalOperationsPending()) > 0) {
+                    Thread.sleep(1);
+                }
+                final long drained = System.nanoTime();
+                sampler.interrupt();
+                sampler.join();
+
+                final long total = (long) numProducers * updatesPerProducer;
+                System.err.printf("%s: %d updates enqueued at %d/s, drained after %dms, max backlog %d operations%s%n",
+                        sharded ? "sharded" : "legacy", total, total * TimeUnit.SECONDS.toNanos(1) / (enqueued - start),
+                        TimeUnit.NANOSECONDS.toMillis(drained - start), maxBacklog.get(),
+                        sharded ? ", peak " + shardedStrategy.getPeakQueuedBytes() + " bytes, " + shardedStrategy.getDiscardedOperations() + " discarded" : "");
+            }
+        }
+    }
+}
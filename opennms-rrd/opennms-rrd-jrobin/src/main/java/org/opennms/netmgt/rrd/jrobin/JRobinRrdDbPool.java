@@ -0,0 +1,396 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jrobin.core.RrdBackendFactory;
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of open {@link RrdDb} handles, shared by all the threads
+ * that update the same file. Fetches don't go through the pool, they open
+ * the file read-only with {@link #openReadOnly(String)}.
+ *
+ * Handles are reference counted: {@link #acquire(String)} returns the open
+ * handle for a file (opening it if necessary) and every call must be matched
+ * with a call to {@link #release(RrdDb)}. Handles that are not in use are
+ * closed in least-recently-used order once more than
+ * {@link #getMaxOpen()} files are open, and once they have not been used for
+ * {@link #getMaxIdleTime()} milliseconds. Handles that are in use are never
+ * closed, so the limit can be exceeded temporarily.
+ *
+ * {@link RrdDb} synchronizes its own store, fetch and close operations, so
+ * a handle can safely be used by several threads at once.
+ */
+final class JRobinRrdDbPool {
+    private static final Logger LOG = LoggerFactory.getLogger(JRobinRrdDbPool.class);
+
+    private static final class Handle {
+        private final String m_path;
+
+        private final RrdBackendFactory m_factory;
+
+        private volatile RrdDb m_db;
+
+        // the following are guarded by the pool
+        private int m_refCount = 0;
+        private long m_lastUsed;
+        private boolean m_invalidated = false;
+
+        private Handle(final String path, final RrdBackendFactory factory) {
+            m_path = path;
+            m_factory = factory;
+        }
+
+        private synchronized RrdDb open() throws IOException, RrdException {
+            if (m_db == null) {
+                m_db = JRobinRrdDbPool.open(m_path, m_factory);
+            }
+            return m_db;
+        }
+
+        private synchronized void close() {
+            if (m_db != null) {
+                try {
+                    m_db.close();
+                } catch (final IOException e) {
+                    LOG.warn("Failed to close rrd file: {}", m_path, e);
+                }
+                m_db = null;
+            }
+        }
+    }
+
+    /** The backend to open files with, or null for JRobin's default backend. */
+    private final RrdBackendFactory m_factory;
+
+    /** Pooled handles by path, in least-recently-used order. */
+    private final LinkedHashMap<String, Handle> m_handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+
+    /** Pooled handles by the {@link RrdDb} they have opened. */
+    private final Map<RrdDb, Handle> m_opened = new IdentityHashMap<RrdDb, Handle>();
+
+    private int m_maxOpen;
+
+    private long m_maxIdleTime;
+
+    private long m_lastSweep = System.currentTimeMillis();
+
+    private long m_hits = 0;
+
+    private long m_misses = 0;
+
+    private long m_evictions = 0;
+
+    /**
+     * @param maxOpen the number of files to keep open, or 0 to disable pooling
+     * @param maxIdleTime the number of milliseconds after which unused handles
+     *        are closed
+     */
+    JRobinRrdDbPool(final int maxOpen, final long maxIdleTime) {
+        this(maxOpen, maxIdleTime, null);
+    }
+
+    /**
+     * @param maxOpen the number of files to keep open, or 0 to disable pooling
+     * @param maxIdleTime the number of milliseconds after which unused handles
+     *        are closed
+     * @param factory the backend to open files with, or null for JRobin's
+     *        default backend
+     */
+    JRobinRrdDbPool(final int maxOpen, final long maxIdleTime, final RrdBackendFactory factory) {
+        m_maxOpen = maxOpen;
+        m_maxIdleTime = maxIdleTime;
+        m_factory = factory;
+    }
+
+    private static RrdDb open(final String path, final RrdBackendFactory factory) throws IOException, RrdException {
+        return factory == null ? new RrdDb(path) : new RrdDb(path, factory);
+    }
+
+    /**
+     * Opens the given file for reading only, outside of the pool, with the
+     * same backend as the pooled handles. The caller must close it.
+     *
+     * @param path the path of the RRD file
+     * @return a read-only handle
+     * @throws IOException if the file cannot be opened
+     * @throws RrdException if the file cannot be opened
+     */
+    RrdDb openReadOnly(final String path) throws IOException, RrdException {
+        return m_factory == null ? new RrdDb(path, true) : new RrdDb(path, true, m_factory);
+    }
+
+    /**
+     * Returns an open handle for the given file. The handle must be handed
+     * back with {@link #release(RrdDb)} and must not be closed by the caller.
+     *
+     * @param path the path of the RRD file
+     * @return an open handle
+     * @throws IOException if the file cannot be opened
+     * @throws RrdException if the file cannot be opened
+     */
+    RrdDb acquire(final String path) throws IOException, RrdException {
+        final Handle handle;
+        synchronized (this) {
+            if (m_maxOpen <= 0) {
+                m_misses++;
+                handle = null;
+            } else {
+                Handle existing = m_handles.get(path);
+                if (existing == null) {
+                    m_misses++;
+                    existing = new Handle(path, m_factory);
+                    m_handles.put(path, existing);
+                } else {
+                    m_hits++;
+                }
+                existing.m_refCount++;
+                handle = existing;
+            }
+        }
+
+        if (handle == null) {
+            return open(path, m_factory);
+        }
+
+        final RrdDb db;
+        try {
+            // opened outside of the pool lock so that slow opens don't block other files
+            db = handle.open();
+        } catch (final IOException | RrdException | RuntimeException e) {
+            synchronized (this) {
+                handle.m_refCount--;
+                if (handle.m_refCount == 0 && m_handles.get(path) == handle) {
+                    m_handles.remove(path);
+                }
+            }
+            throw e;
+        }
+
+        final List<Handle> toClose;
+        synchronized (this) {
+            m_opened.put(db, handle);
+            toClose = evict(System.currentTimeMillis());
+        }
+        close(toClose);
+        return db;
+    }
+
+    /**
+     * Hands back a handle returned by {@link #acquire(String)}. Handles that
+     * did not come from this pool are closed.
+     *
+     * @param db the handle
+     */
+    void release(final RrdDb db) {
+        final boolean pooled;
+        final List<Handle> toClose;
+        synchronized (this) {
+            final Handle handle = m_opened.get(db);
+            pooled = handle != null;
+            if (!pooled) {
+                toClose = null;
+            } else {
+                final long now = System.currentTimeMillis();
+                handle.m_refCount--;
+                handle.m_lastUsed = now;
+                if (handle.m_invalidated && handle.m_refCount == 0) {
+                    m_opened.remove(db);
+                    toClose = new ArrayList<Handle>(1);
+                    toClose.add(handle);
+                } else {
+                    toClose = evict(now);
+                }
+            }
+        }
+
+        if (!pooled) {
+            try {
+                db.close();
+            } catch (final IOException e) {
+                LOG.warn("Failed to close rrd file: {}", db.getPath(), e);
+            }
+        } else {
+            close(toClose);
+        }
+    }
+
+    /**
+     * Makes sure that the next {@link #acquire(String)} for the given file
+     * opens it again, i.e. because the file has just been (re)created. A
+     * handle that is still in use is closed once it has been released.
+     *
+     * @param path the path of the RRD file
+     */
+    void invalidate(final String path) {
+        Handle handle;
+        synchronized (this) {
+            handle = m_handles.remove(path);
+            if (handle == null) {
+                return;
+            }
+            handle.m_invalidated = true;
+            if (handle.m_refCount > 0) {
+                return;
+            }
+            forget(handle);
+        }
+        handle.close();
+    }
+
+    /**
+     * Closes all the handles that are not in use.
+     */
+    void clear() {
+        final List<Handle> toClose = new ArrayList<Handle>();
+        synchronized (this) {
+            for (final Iterator<Handle> it = m_handles.values().iterator(); it.hasNext(); ) {
+                final Handle handle = it.next();
+                if (handle.m_refCount == 0) {
+                    it.remove();
+                    forget(handle);
+                    toClose.add(handle);
+                }
+            }
+        }
+        close(toClose);
+    }
+
+    /**
+     * Removes the least recently used handles that are not in use from the
+     * pool while it is over its limit or they have been idle for too long.
+     * Must be called while holding the pool lock.
+     */
+    private List<Handle> evict(final long now) {
+        final boolean overLimit = m_handles.size() > m_maxOpen;
+        final boolean sweep = m_maxIdleTime > 0 && now - m_lastSweep >= Math.min(m_maxIdleTime, 1000);
+        if (!overLimit && !sweep) {
+            return null;
+        }
+        if (sweep) {
+            m_lastSweep = now;
+        }
+
+        List<Handle> toClose = null;
+        for (final Iterator<Handle> it = m_handles.values().iterator(); it.hasNext(); ) {
+            final Handle handle = it.next();
+            if (handle.m_refCount > 0) {
+                continue;
+            }
+            final boolean idle = m_maxIdleTime > 0 && now - handle.m_lastUsed >= m_maxIdleTime;
+            if (m_handles.size() > m_maxOpen || idle) {
+                it.remove();
+                forget(handle);
+                m_evictions++;
+                if (toClose == null) {
+                    toClose = new ArrayList<Handle>();
+                }
+                toClose.add(handle);
+            } else if (!sweep) {
+                // the remaining handles have been used more recently
+                break;
+            }
+        }
+        return toClose;
+    }
+
+    private void forget(final Handle handle) {
+        final RrdDb db = handle.m_db;
+        if (db != null) {
+            m_opened.remove(db);
+        }
+    }
+
+    private static void close(final List<Handle> handles) {
+        if (handles != null) {
+            for (final Handle handle : handles) {
+                handle.close();
+            }
+        }
+    }
+
+    synchronized int getMaxOpen() {
+        return m_maxOpen;
+    }
+
+    synchronized void setMaxOpen(final int maxOpen) {
+        m_maxOpen = maxOpen;
+    }
+
+    synchronized long getMaxIdleTime() {
+        return m_maxIdleTime;
+    }
+
+    synchronized void setMaxIdleTime(final long maxIdleTime) {
+        m_maxIdleTime = maxIdleTime;
+    }
+
+    synchronized int getOpenCount() {
+        return m_opened.size();
+    }
+
+    synchronized int getInUseCount() {
+        int inUse = 0;
+        for (final Handle handle : m_opened.values()) {
+            if (handle.m_refCount > 0) {
+                inUse++;
+            }
+        }
+        return inUse;
+    }
+
+    synchronized long getHits() {
+        return m_hits;
+    }
+
+    synchronized long getMisses() {
+        return m_misses;
+    }
+
+    synchronized long getEvictions() {
+        return m_evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "open=" + getOpenCount() + ", inUse=" + getInUseCount() + ", maxOpen=" + m_maxOpen
+                + ", hits=" + m_hits + ", misses=" + m_misses + ", evictions=" + m_evictions;
+    }
+}
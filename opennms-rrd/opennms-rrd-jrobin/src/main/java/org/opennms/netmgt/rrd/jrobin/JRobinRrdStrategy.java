@@ -73,6 +73,10 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
     private static final Logger LOG = LoggerFactory.getLogger(JRobinRrdStrategy.class);
     private static final String BACKEND_FACTORY_PROPERTY = "org.jrobin.core.RrdBackendFactory";
     private static final String DEFAULT_BACKEND_FACTORY = "FILE";
+    private static final String MAX_OPEN_FILES_PROPERTY = "org.opennms.rrd.jrobin.maxOpenFiles";
+    private static final String MAX_IDLE_TIME_PROPERTY = "org.opennms.rrd.jrobin.maxIdleTime";
+    private static final int DEFAULT_MAX_OPEN_FILES = 256;
+    private static final long DEFAULT_MAX_IDLE_TIME = 60000;
 
     /*
      * Ensure that we only initialize certain things *once* per
@@ -80,6 +84,12 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
      */
     private static boolean s_initialized = false;
 
+    /*
+     * Shared by all instances so that a file is never open more than once
+     * for writing.
+     */
+    private static final JRobinRrdDbPool s_pool = new JRobinRrdDbPool(DEFAULT_MAX_OPEN_FILES, DEFAULT_MAX_IDLE_TIME);
+
     private Properties m_configurationProperties;
 
     /**
@@ -124,6 +134,10 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
     @Override
     public void setConfigurationProperties(final Properties configurationParameters) {
         m_configurationProperties = configurationParameters;
+        if (m_configurationProperties != null) {
+            s_pool.setMaxOpen(Integer.parseInt(m_configurationProperties.getProperty(MAX_OPEN_FILES_PROPERTY, String.valueOf(DEFAULT_MAX_OPEN_FILES))));
+            s_pool.setMaxIdleTime(Long.parseLong(m_configurationProperties.getProperty(MAX_IDLE_TIME_PROPERTY, String.valueOf(DEFAULT_MAX_IDLE_TIME))));
+        }
         if(!s_initialized) {
             String factory = null;
             if (m_configurationProperties == null) {
@@ -141,14 +155,15 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
     }
 
     /**
-     * Closes the JRobin RrdDb.
+     * Hands the JRobin RrdDb back to the pool of open files, which closes it
+     * once it has not been used for a while.
      *
      * @param rrdFile a {@link org.jrobin.core.RrdDb} object.
      * @throws java.lang.Exception if any.
      */
     @Override
     public void closeFile(final RrdDb rrdFile) throws Exception {
-        rrdFile.close();
+        s_pool.release(rrdFile);
     }
 
     /** {@inheritDoc} */
@@ -203,6 +218,8 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
         }
         LOG.info("createRRD: creating RRD file {}", rrdDef.getPath());
 
+        // don't hand out a handle to a file that has been deleted and is about to be replaced
+        s_pool.invalidate(rrdDef.getPath());
         RrdDb rrd = new RrdDb(rrdDef);
         rrd.close();
 
@@ -219,11 +236,13 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
     /**
      * {@inheritDoc}
      *
-     * Opens the JRobin RrdDb by name and returns it.
+     * Returns the JRobin RrdDb for the given name from the pool of open
+     * files, opening it if necessary. It must be handed back with
+     * {@link #closeFile(RrdDb)}.
      */
     @Override
     public RrdDb openFile(final String fileName) throws Exception {
-        return new RrdDb(fileName);
+        return s_pool.acquire(fileName);
     }
 
     /**
@@ -237,6 +256,18 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
         sample.setAndUpdate(data);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Sets the values of a sample directly, without parsing them.
+     */
+    @Override
+    public void updateFile(final RrdDb rrdFile, final String owner, final long timestamp, final double[] values) throws Exception {
+        Sample sample = rrdFile.createSample(timestamp);
+        sample.setValues(values);
+        sample.update();
+    }
+
     /**
      * Initialized the RrdDb to use the FILE factory because the NIO factory
      * uses too much memory for our implementation.
@@ -262,11 +293,26 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
     @Override
     public Double fetchLastValue(final String fileName, final String ds, final String consolidationFunction, final int interval)
             throws org.opennms.netmgt.rrd.RrdException {
+        return fetchLastValue(s_pool, fileName, ds, consolidationFunction, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValueInRange(final String fileName, final String ds, final int interval, final int range) throws NumberFormatException, org.opennms.netmgt.rrd.RrdException {
+        return fetchLastValueInRange(s_pool, fileName, ds, interval, range);
+    }
+
+    /**
+     * Fetches the last value from a file opened read-only with the backend
+     * of the given pool.
+     */
+    static Double fetchLastValue(final JRobinRrdDbPool pool, final String fileName, final String ds, final String consolidationFunction, final int interval)
+            throws org.opennms.netmgt.rrd.RrdException {
         RrdDb rrd = null;
         try {
             long now = System.currentTimeMillis();
             long collectTime = (now - (now % interval)) / 1000L;
-            rrd = new RrdDb(fileName, true);
+            rrd = pool.openReadOnly(fileName);
             FetchData data = rrd.createFetchRequest(consolidationFunction, collectTime, collectTime).fetchData();
             LOG.debug(data.toString());
             double[] vals = data.getValues(ds);
@@ -279,22 +325,18 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
         } catch (RrdException e) {
             throw new org.opennms.netmgt.rrd.RrdException("Exception occurred fetching data from " + fileName, e);
         } finally {
-            if (rrd != null) {
-                try {
-                    rrd.close();
-                } catch (IOException e) {
-                    LOG.error("Failed to close rrd file: {}", fileName, e);
-                }
-            }
+            closeReadOnly(rrd);
         }
     }
 
-    /** {@inheritDoc} */
-    @Override
-    public Double fetchLastValueInRange(final String fileName, final String ds, final int interval, final int range) throws NumberFormatException, org.opennms.netmgt.rrd.RrdException {
+    /**
+     * Fetches the last value within a range from a file opened read-only
+     * with the backend of the given pool.
+     */
+    static Double fetchLastValueInRange(final JRobinRrdDbPool pool, final String fileName, final String ds, final int interval, final int range) throws NumberFormatException, org.opennms.netmgt.rrd.RrdException {
         RrdDb rrd = null;
         try {
-        	rrd = new RrdDb(fileName, true);
+            rrd = pool.openReadOnly(fileName);
          	long now = System.currentTimeMillis();
             long latestUpdateTime = (now - (now % interval)) / 1000L;
             long earliestUpdateTime = ((now - (now % interval)) - range) / 1000L;
@@ -321,13 +363,7 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
         } catch (RrdException e) {
             throw new org.opennms.netmgt.rrd.RrdException("Exception occurred fetching data from " + fileName, e);
         } finally {
-            if (rrd != null) {
-                try {
-                    rrd.close();
-                } catch (IOException e) {
-                    LOG.error("Failed to close rrd file: {}", fileName, e);
-                }
-            }
+            closeReadOnly(rrd);
         }
     }
 
@@ -870,14 +906,32 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
         }
     }
 
+    private static void closeReadOnly(final RrdDb rrd) {
+        if (rrd != null) {
+            try {
+                rrd.close();
+            } catch (final IOException e) {
+                LOG.error("Failed to close rrd file: {}", rrd.getPath(), e);
+            }
+        }
+    }
+
     /**
-     * This implementation does not track any stats.
+     * Returns the statistics of the pool of open files: the number of open
+     * and in use handles, and the pool's hits, misses and evictions.
      *
      * @return a {@link java.lang.String} object.
      */
     @Override
     public String getStats() {
-        return "";
+        return "JRobin open files: " + s_pool;
+    }
+
+    /**
+     * Closes all the pooled files that are not currently in use.
+     */
+    public static void closeIdleFiles() {
+        s_pool.clear();
     }
 
     /*
@@ -0,0 +1,574 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDef;
+import org.jrobin.core.RrdException;
+import org.opennms.netmgt.rrd.RrdDataSource;
+import org.opennms.netmgt.rrd.RrdGraphDetails;
+import org.opennms.netmgt.rrd.RrdStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An RrdStrategy for large installations that writes the same <code>.jrb</code>
+ * files as {@link JRobinRrdStrategy}, but turns the small random writes of
+ * every collection step into larger, less frequent ones.
+ *
+ * <ul>
+ * <li>Updates are collected in memory and written every
+ * <code>org.opennms.rrd.mapped.flushInterval</code> milliseconds (or earlier
+ * when <code>org.opennms.rrd.mapped.maxPendingUpdates</code> is reached), so
+ * each file is touched once for several collection steps.</li>
+ * <li>The files are written in sorted path order, which keeps the writes of
+ * files in the same directory close together on disk.</li>
+ * <li>The most recently used files stay memory-mapped between flushes (see
+ * {@link MappedRrdBackend}), so the archive headers don't have to be read
+ * again.</li>
+ * <li>Every update is appended to a write-ahead journal (see
+ * {@link RrdUpdateJournal}) that is forced to disk every
+ * <code>org.opennms.rrd.mapped.journalSyncInterval</code> milliseconds. A
+ * journal segment is only deleted once all of its updates have been written
+ * and the files have been forced to disk; after a crash the remaining
+ * segments are replayed. Updates that had already been written are rejected
+ * by JRobin because of their timestamps, which makes replaying safe.</li>
+ * </ul>
+ *
+ * Fetching a value first writes the pending updates of that file. Graphs are
+ * drawn from the files on disk, so they do not show the updates that are still
+ * pending. This strategy already queues updates and does not need to be
+ * wrapped in a QueuingRrdStrategy.
+ */
+public class MappedJRobinRrdStrategy implements RrdStrategy<RrdDef,String> {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedJRobinRrdStrategy.class);
+
+    private static final String FLUSH_INTERVAL_PROPERTY = "org.opennms.rrd.mapped.flushInterval";
+    private static final String MAX_PENDING_UPDATES_PROPERTY = "org.opennms.rrd.mapped.maxPendingUpdates";
+    private static final String JOURNAL_DIRECTORY_PROPERTY = "org.opennms.rrd.mapped.journalDirectory";
+    private static final String JOURNAL_SYNC_INTERVAL_PROPERTY = "org.opennms.rrd.mapped.journalSyncInterval";
+    private static final String MAX_OPEN_FILES_PROPERTY = "org.opennms.rrd.mapped.maxOpenFiles";
+    private static final String MAX_IDLE_TIME_PROPERTY = "org.opennms.rrd.mapped.maxIdleTime";
+
+    private static final long DEFAULT_FLUSH_INTERVAL = 60000;
+    private static final int DEFAULT_MAX_PENDING_UPDATES = 500000;
+    private static final long DEFAULT_JOURNAL_SYNC_INTERVAL = 1000;
+    private static final int DEFAULT_MAX_OPEN_FILES = 1024;
+    private static final long DEFAULT_MAX_IDLE_TIME = 900000;
+
+    /** The number of locks that serialize the writes to the same file. */
+    private static final int FILE_LOCKS = 64;
+
+    private final JRobinRrdStrategy m_delegate;
+
+    private final MappedRrdBackendFactory m_backendFactory = new MappedRrdBackendFactory();
+
+    private final JRobinRrdDbPool m_pool = new JRobinRrdDbPool(DEFAULT_MAX_OPEN_FILES, DEFAULT_MAX_IDLE_TIME, m_backendFactory);
+
+    private final Object[] m_fileLocks = new Object[FILE_LOCKS];
+
+    /**
+     * Held for reading while updates that have been taken from the pending
+     * updates are written, and for writing before journal segments are
+     * deleted.
+     */
+    private final ReentrantReadWriteLock m_writeLock = new ReentrantReadWriteLock();
+
+    private Properties m_configurationProperties;
+
+    private long m_flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    private int m_maxPendingUpdates = DEFAULT_MAX_PENDING_UPDATES;
+
+    private long m_journalSyncInterval = DEFAULT_JOURNAL_SYNC_INTERVAL;
+
+    private File m_journalDirectory = new File(System.getProperty("opennms.home", "."), "share" + File.separator + "rrd-journal");
+
+    /** Serializes the replay of the journal when the strategy starts. */
+    private final Object m_startLock = new Object();
+
+    // the following are guarded by m_pendingLock, m_running is also read without it
+    private final Object m_pendingLock = new Object();
+    private Map<String, List<String>> m_pending = new HashMap<String, List<String>>();
+    private int m_pendingUpdates = 0;
+    private boolean m_flushRequested = false;
+    private volatile boolean m_running = false;
+    private RrdUpdateJournal m_journal;
+    private Thread m_flusher;
+
+    private final AtomicLong m_flushes = new AtomicLong();
+    private final AtomicLong m_updatesWritten = new AtomicLong();
+    private final AtomicLong m_errors = new AtomicLong();
+
+    /**
+     * <p>Constructor for MappedJRobinRrdStrategy.</p>
+     *
+     * @throws java.lang.Exception if any.
+     */
+    public MappedJRobinRrdStrategy() throws Exception {
+        m_delegate = new JRobinRrdStrategy();
+        for (int i = 0; i < FILE_LOCKS; i++) {
+            m_fileLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * <p>getConfigurationProperties</p>
+     *
+     * @return a {@link java.util.Properties} object.
+     */
+    public Properties getConfigurationProperties() {
+        return m_configurationProperties;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setConfigurationProperties(final Properties configurationParameters) {
+        m_configurationProperties = configurationParameters;
+        m_delegate.setConfigurationProperties(configurationParameters);
+        if (configurationParameters == null) {
+            return;
+        }
+        setFlushInterval(Long.parseLong(configurationParameters.getProperty(FLUSH_INTERVAL_PROPERTY, String.valueOf(DEFAULT_FLUSH_INTERVAL))));
+        setMaxPendingUpdates(Integer.parseInt(configurationParameters.getProperty(MAX_PENDING_UPDATES_PROPERTY, String.valueOf(DEFAULT_MAX_PENDING_UPDATES))));
+        setJournalSyncInterval(Long.parseLong(configurationParameters.getProperty(JOURNAL_SYNC_INTERVAL_PROPERTY, String.valueOf(DEFAULT_JOURNAL_SYNC_INTERVAL))));
+        m_pool.setMaxOpen(Integer.parseInt(configurationParameters.getProperty(MAX_OPEN_FILES_PROPERTY, String.valueOf(DEFAULT_MAX_OPEN_FILES))));
+        m_pool.setMaxIdleTime(Long.parseLong(configurationParameters.getProperty(MAX_IDLE_TIME_PROPERTY, String.valueOf(DEFAULT_MAX_IDLE_TIME))));
+        final String journalDirectory = configurationParameters.getProperty(JOURNAL_DIRECTORY_PROPERTY);
+        if (journalDirectory != null && !journalDirectory.trim().isEmpty()) {
+            setJournalDirectory(new File(journalDirectory.trim()));
+        }
+    }
+
+    public long getFlushInterval() {
+        return m_flushInterval;
+    }
+
+    public void setFlushInterval(final long flushInterval) {
+        m_flushInterval = flushInterval;
+    }
+
+    public int getMaxPendingUpdates() {
+        return m_maxPendingUpdates;
+    }
+
+    public void setMaxPendingUpdates(final int maxPendingUpdates) {
+        m_maxPendingUpdates = maxPendingUpdates;
+    }
+
+    public long getJournalSyncInterval() {
+        return m_journalSyncInterval;
+    }
+
+    public void setJournalSyncInterval(final long journalSyncInterval) {
+        m_journalSyncInterval = journalSyncInterval;
+    }
+
+    public File getJournalDirectory() {
+        return m_journalDirectory;
+    }
+
+    /**
+     * Sets the directory of the journal. Only has an effect before the
+     * first file is created, opened or updated.
+     *
+     * @param journalDirectory a {@link java.io.File} object.
+     */
+    public void setJournalDirectory(final File journalDirectory) {
+        m_journalDirectory = journalDirectory;
+    }
+
+    /**
+     * Replays the journal left behind by a previous run and starts the
+     * flusher thread, unless that has already happened. The journal is
+     * replayed while holding m_startLock only, so the pending updates stay
+     * available to everybody else. If the updates of a file cannot be
+     * replayed, the recovered segments are kept for the next run.
+     */
+    private void ensureStarted() throws IOException {
+        if (m_running) {
+            return;
+        }
+        synchronized (m_startLock) {
+            if (m_running) {
+                return;
+            }
+
+            final RrdUpdateJournal journal = new RrdUpdateJournal(m_journalDirectory);
+            final Map<String, List<String>> recovered = journal.recover();
+            if (!recovered.isEmpty()) {
+                LOG.info("Replaying the journaled updates of {} RRD files", recovered.size());
+                int failed = 0;
+                for (final Map.Entry<String, List<String>> entry : new TreeMap<String, List<String>>(recovered).entrySet()) {
+                    if (!write(entry.getKey(), entry.getValue(), true)) {
+                        failed++;
+                    }
+                }
+                if (failed > 0) {
+                    LOG.error("Unable to replay the journaled updates of {} RRD files, keeping the journal segments in {} for the next start", failed, m_journalDirectory);
+                    journal.keepRecovered();
+                }
+            }
+            journal.open();
+            journal.delete(Long.MAX_VALUE);
+
+            synchronized (m_pendingLock) {
+                m_journal = journal;
+                m_running = true;
+                m_flusher = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runFlusher();
+                    }
+                }, getClass().getSimpleName() + "-flusher");
+                m_flusher.setDaemon(true);
+                m_flusher.start();
+            }
+        }
+    }
+
+    private void runFlusher() {
+        long nextFlush = System.currentTimeMillis() + m_flushInterval;
+        for (;;) {
+            final boolean flush;
+            synchronized (m_pendingLock) {
+                final long now = System.currentTimeMillis();
+                if (m_running && !m_flushRequested && now < nextFlush) {
+                    try {
+                        m_pendingLock.wait(Math.max(1, Math.min(m_journalSyncInterval, nextFlush - now)));
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (!m_running) {
+                    return;
+                }
+                try {
+                    m_journal.sync();
+                } catch (final IOException e) {
+                    LOG.error("Unable to write the RRD journal", e);
+                }
+                flush = m_flushRequested || System.currentTimeMillis() >= nextFlush;
+                m_flushRequested = false;
+            }
+
+            if (flush) {
+                try {
+                    flush();
+                } catch (final Throwable t) {
+                    LOG.error("Unexpected error while writing pending RRD updates", t);
+                }
+                nextFlush = System.currentTimeMillis() + m_flushInterval;
+            }
+        }
+    }
+
+    /**
+     * Writes all pending updates to the RRD files and forces them to disk.
+     *
+     * @throws java.io.IOException if the journal cannot be written
+     */
+    public void flush() throws IOException {
+        final long segment;
+        final TreeSet<String> files;
+        synchronized (m_pendingLock) {
+            if (m_journal == null) {
+                return;
+            }
+            segment = m_journal.rotate();
+            files = new TreeSet<String>(m_pending.keySet());
+        }
+
+        for (final String file : files) {
+            flushFile(file);
+        }
+
+        // wait for updates that were taken by flushFile() before the rotation
+        m_writeLock.writeLock().lock();
+        try {
+            synchronized (m_pendingLock) {
+                m_journal.delete(segment);
+            }
+        } finally {
+            m_writeLock.writeLock().unlock();
+        }
+        m_flushes.incrementAndGet();
+    }
+
+    /**
+     * Writes the pending updates of a single file.
+     */
+    private void flushFile(final String file) {
+        m_writeLock.readLock().lock();
+        try {
+            synchronized (m_fileLocks[(file.hashCode() & 0x7fffffff) % FILE_LOCKS]) {
+                final List<String> updates;
+                synchronized (m_pendingLock) {
+                    updates = m_pending.remove(file);
+                    if (updates == null) {
+                        return;
+                    }
+                    m_pendingUpdates -= updates.size();
+                }
+                write(file, updates, false);
+            }
+        } finally {
+            m_writeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the updates to the file and forces it to disk.
+     *
+     * @return false if the file could not be written
+     */
+    private boolean write(final String file, final List<String> updates, final boolean replaying) {
+        RrdDb rrd = null;
+        try {
+            rrd = m_pool.acquire(file);
+            for (final String update : updates) {
+                try {
+                    rrd.createSample().setAndUpdate(update);
+                    m_updatesWritten.incrementAndGet();
+                } catch (final RrdException e) {
+                    if (replaying) {
+                        // most likely written before the journal was deleted
+                        LOG.debug("Skipping journaled update {} of {}: {}", update, file, e.getMessage());
+                    } else {
+                        m_errors.incrementAndGet();
+                        LOG.warn("Unable to update {} with {}: {}", file, update, e.getMessage());
+                    }
+                }
+            }
+            ((MappedRrdBackend) rrd.getRrdBackend()).force();
+            return true;
+        } catch (final IOException | RrdException e) {
+            m_errors.incrementAndGet();
+            LOG.error("Unable to write {} updates to {}", updates.size(), file, e);
+            return false;
+        } finally {
+            if (rrd != null) {
+                m_pool.release(rrd);
+            }
+        }
+    }
+
+    /**
+     * Stops the flusher thread without writing the pending updates, which
+     * remain in the journal. The next instance using the same journal
+     * directory replays them, just like after a crash.
+     */
+    void abort() throws IOException {
+        synchronized (m_pendingLock) {
+            if (!m_running) {
+                return;
+            }
+            m_running = false;
+            m_pendingLock.notifyAll();
+            m_journal.close();
+            m_journal = null;
+            m_pending = new HashMap<String, List<String>>();
+            m_pendingUpdates = 0;
+        }
+        m_pool.clear();
+    }
+
+    /**
+     * Writes all pending updates, stops the flusher thread, and forces and
+     * closes the mapped files, including the ones that are still in use.
+     * This is the destroy method of the strategy bean.
+     *
+     * @throws java.io.IOException if the journal cannot be written
+     */
+    public void close() throws IOException {
+        flush();
+        abort();
+        m_backendFactory.close();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RrdDef createDefinition(final String creator, final String directory, final String rrdName, final int step, final List<RrdDataSource> dataSources, final List<String> rraList) throws Exception {
+        return m_delegate.createDefinition(creator, directory, rrdName, step, dataSources, rraList);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void createFile(final RrdDef rrdDef, final Map<String, String> attributeMappings) throws Exception {
+        ensureStarted();
+        if (rrdDef != null) {
+            m_pool.invalidate(rrdDef.getPath());
+        }
+        m_delegate.createFile(rrdDef, attributeMappings);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Files are opened when the pending updates are written, so this only
+     * returns the file name.
+     */
+    @Override
+    public String openFile(final String fileName) throws Exception {
+        ensureStarted();
+        return fileName;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void closeFile(final String rrd) throws Exception {
+        // nothing to do, see openFile
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Journals the update and adds it to the pending updates of the file.
+     */
+    @Override
+    public void updateFile(final String rrdFile, final String owner, final String data) throws Exception {
+        ensureStarted();
+        // the update may be written much later, or replayed after a restart
+        final String update = data.startsWith("N:") ? (System.currentTimeMillis() / 1000L) + data.substring(1) : data;
+        synchronized (m_pendingLock) {
+            m_journal.append(rrdFile, update);
+            List<String> updates = m_pending.get(rrdFile);
+            if (updates == null) {
+                updates = new ArrayList<String>(2);
+                m_pending.put(rrdFile, updates);
+            }
+            updates.add(update);
+            if (++m_pendingUpdates >= m_maxPendingUpdates && !m_flushRequested) {
+                m_flushRequested = true;
+                m_pendingLock.notifyAll();
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValue(final String rrdFile, final String ds, final int interval) throws NumberFormatException, org.opennms.netmgt.rrd.RrdException {
+        return fetchLastValue(rrdFile, ds, "AVERAGE", interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValue(final String rrdFile, final String ds, final String consolidationFunction, final int interval) throws NumberFormatException, org.opennms.netmgt.rrd.RrdException {
+        flushFile(rrdFile);
+        return JRobinRrdStrategy.fetchLastValue(m_pool, rrdFile, ds, consolidationFunction, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValueInRange(final String rrdFile, final String ds, final int interval, final int range) throws NumberFormatException, org.opennms.netmgt.rrd.RrdException {
+        flushFile(rrdFile);
+        return JRobinRrdStrategy.fetchLastValueInRange(m_pool, rrdFile, ds, interval, range);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public InputStream createGraph(final String command, final File workDir) throws IOException, org.opennms.netmgt.rrd.RrdException {
+        return m_delegate.createGraph(command, workDir);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RrdGraphDetails createGraphReturnDetails(final String command, final File workDir) throws IOException, org.opennms.netmgt.rrd.RrdException {
+        return m_delegate.createGraphReturnDetails(command, workDir);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getGraphLeftOffset() {
+        return m_delegate.getGraphLeftOffset();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getGraphRightOffset() {
+        return m_delegate.getGraphRightOffset();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getGraphTopOffsetWithText() {
+        return m_delegate.getGraphTopOffsetWithText();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDefaultFileExtension() {
+        return m_delegate.getDefaultFileExtension();
+    }
+
+    /**
+     * Returns the number of pending updates and files, the number of flushes,
+     * updates written and errors, the number of journal segments and the
+     * statistics of the memory-mapped files.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    @Override
+    public String getStats() {
+        final StringBuilder stats = new StringBuilder();
+        synchronized (m_pendingLock) {
+            stats.append("pending updates: ").append(m_pendingUpdates)
+                .append(", pending files: ").append(m_pending.size())
+                .append(", journal segments: ").append(m_journal == null ? 0 : m_journal.getSegmentCount());
+        }
+        stats.append(", flushes: ").append(m_flushes)
+            .append(", updates written: ").append(m_updatesWritten)
+            .append(", errors: ").append(m_errors)
+            .append(", mapped files: ").append(m_pool);
+        return stats.toString();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void promoteEnqueuedFiles(final Collection<String> rrdFiles) {
+        for (final String rrdFile : rrdFiles) {
+            flushFile(rrdFile);
+        }
+    }
+}
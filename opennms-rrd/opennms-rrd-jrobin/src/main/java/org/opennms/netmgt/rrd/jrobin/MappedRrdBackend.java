@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jrobin.core.RrdBackend;
+
+/**
+ * A JRobin backend that maps the whole RRD file into memory.
+ *
+ * Unlike JRobin's own NIO backend, there is no timer syncing the mapped file:
+ * {@link #force()}, which is also called when the backend is closed, is the
+ * only point at which the data is known to be on disk. The operating system
+ * is free to write dirty pages back at any other time, and does not have to
+ * until then. {@link MappedJRobinRrdStrategy} relies on its journal for the
+ * updates that have not been forced yet.
+ * The file layout is not changed in any way, so the files can still be read
+ * and written by any other JRobin backend.
+ */
+public class MappedRrdBackend extends RrdBackend {
+
+    private final RandomAccessFile m_file;
+
+    private final FileChannel m_channel;
+
+    private final boolean m_readOnly;
+
+    private final MappedRrdBackendFactory m_factory;
+
+    private MappedByteBuffer m_buffer;
+
+    /**
+     * Opens and maps the given file.
+     *
+     * @param path the path of the RRD file
+     * @param readOnly whether the file is only going to be read
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    protected MappedRrdBackend(final String path, final boolean readOnly) throws IOException {
+        this(path, readOnly, null);
+    }
+
+    /**
+     * Opens and maps the given file for a factory that keeps track of its
+     * open backends.
+     *
+     * @param path the path of the RRD file
+     * @param readOnly whether the file is only going to be read
+     * @param factory the factory that opened the file, or null
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    MappedRrdBackend(final String path, final boolean readOnly, final MappedRrdBackendFactory factory) throws IOException {
+        super(path);
+        m_readOnly = readOnly;
+        m_factory = factory;
+        m_file = new RandomAccessFile(path, readOnly ? "r" : "rw");
+        m_channel = m_file.getChannel();
+        try {
+            map(m_channel.size());
+        } catch (final IOException e) {
+            m_file.close();
+            throw e;
+        }
+    }
+
+    private void map(final long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("RRD file " + getPath() + " is too large to be mapped: " + length + " bytes");
+        }
+        m_buffer = m_channel.map(m_readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected synchronized void write(final long offset, final byte[] b) throws IOException {
+        if (m_buffer == null) {
+            throw new IOException("RRD file " + getPath() + " has already been closed");
+        }
+        m_buffer.position((int) offset);
+        m_buffer.put(b);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected synchronized void read(final long offset, final byte[] b) throws IOException {
+        if (m_buffer == null) {
+            throw new IOException("RRD file " + getPath() + " has already been closed");
+        }
+        m_buffer.position((int) offset);
+        m_buffer.get(b);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized long getLength() throws IOException {
+        return m_buffer == null ? m_channel.size() : m_buffer.capacity();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected synchronized void setLength(final long length) throws IOException {
+        if (m_buffer != null) {
+            m_buffer.force();
+        }
+        m_file.setLength(length);
+        map(length);
+    }
+
+    /**
+     * Writes all changes made to the mapped file back to the disk.
+     */
+    public synchronized void force() {
+        if (m_buffer != null && !m_readOnly) {
+            m_buffer.force();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void close() throws IOException {
+        if (m_buffer == null) {
+            return;
+        }
+        force();
+        // the mapping itself is released once the buffer has been garbage collected
+        m_buffer = null;
+        m_file.close();
+        if (m_factory != null) {
+            m_factory.closed(this);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jrobin.core.RrdBackend;
+import org.jrobin.core.RrdBackendFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates {@link MappedRrdBackend}s, and keeps track of the ones that are
+ * still open so that they can be forced to disk and closed on shutdown.
+ */
+public class MappedRrdBackendFactory extends RrdBackendFactory implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedRrdBackendFactory.class);
+
+    /** The name of this factory. */
+    public static final String NAME = "OPENNMS_MAPPED";
+
+    private final Set<MappedRrdBackend> m_open = Collections.newSetFromMap(new ConcurrentHashMap<MappedRrdBackend, Boolean>());
+
+    /** {@inheritDoc} */
+    @Override
+    protected RrdBackend open(final String path, final boolean readOnly) throws IOException {
+        final MappedRrdBackend backend = new MappedRrdBackend(path, readOnly, this);
+        m_open.add(backend);
+        return backend;
+    }
+
+    void closed(final MappedRrdBackend backend) {
+        m_open.remove(backend);
+    }
+
+    /**
+     * <p>getOpenBackends</p>
+     *
+     * @return the number of backends that have been opened and not closed yet
+     */
+    public int getOpenBackends() {
+        return m_open.size();
+    }
+
+    /**
+     * Forces all the open backends to disk and closes them.
+     */
+    @Override
+    public void close() {
+        for (final MappedRrdBackend backend : new ArrayList<MappedRrdBackend>(m_open)) {
+            try {
+                backend.close();
+            } catch (final IOException e) {
+                LOG.warn("Failed to close rrd file: {}", backend.getPath(), e);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean exists(final String path) throws IOException {
+        return new File(path).exists();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getFactoryName() {
+        return NAME;
+    }
+}
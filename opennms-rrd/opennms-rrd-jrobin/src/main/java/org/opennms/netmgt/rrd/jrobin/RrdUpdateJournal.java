@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-ahead journal of the RRD updates that have been accepted by
+ * {@link MappedJRobinRrdStrategy} but have not been written to the RRD files
+ * yet.
+ *
+ * The journal is made of numbered segments. Updates are appended to the
+ * current segment; when the pending updates are written out, the current
+ * segment is closed and a new one is started, and the closed segments are
+ * deleted once all of their updates are safely on disk. After a crash,
+ * {@link #recover()} returns the updates of the remaining segments so they
+ * can be replayed. Recovered segments whose updates could not be replayed
+ * are kept for the next run with {@link #keepRecovered()}.
+ */
+final class RrdUpdateJournal {
+    private static final Logger LOG = LoggerFactory.getLogger(RrdUpdateJournal.class);
+
+    private static final String PREFIX = "updates-";
+    private static final String SUFFIX = ".journal";
+
+    private final File m_directory;
+
+    private long m_sequence = 0;
+
+    /** The last segment that must not be deleted by this run. */
+    private long m_kept = 0;
+
+    private FileOutputStream m_out;
+
+    private DataOutputStream m_data;
+
+    private boolean m_dirty = false;
+
+    /**
+     * @param directory where the segments are kept, created if necessary
+     * @throws IOException if the directory cannot be created
+     */
+    RrdUpdateJournal(final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create RRD journal directory " + directory);
+        }
+        m_directory = directory;
+    }
+
+    /**
+     * Reads the updates of all the existing segments, oldest first. Records
+     * that were only partially written are skipped.
+     *
+     * @return the updates by file name, in the order they were appended
+     * @throws IOException if a segment cannot be read
+     */
+    synchronized Map<String, List<String>> recover() throws IOException {
+        final Map<String, List<String>> updates = new LinkedHashMap<String, List<String>>();
+        for (final File segment : getSegments()) {
+            m_sequence = Math.max(m_sequence, getSequence(segment));
+            int records = 0;
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+            try {
+                for (;;) {
+                    final String path = in.readUTF();
+                    final String update = in.readUTF();
+                    if (path.isEmpty() || update.isEmpty()) {
+                        continue;
+                    }
+                    List<String> fileUpdates = updates.get(path);
+                    if (fileUpdates == null) {
+                        fileUpdates = new ArrayList<String>();
+                        updates.put(path, fileUpdates);
+                    }
+                    fileUpdates.add(update);
+                    records++;
+                }
+            } catch (final EOFException e) {
+                // end of the segment, or a record that was cut short
+            } catch (final IOException e) {
+                LOG.warn("Stopped reading RRD journal segment {} after {} updates", segment, records, e);
+            } finally {
+                in.close();
+            }
+            LOG.info("Recovered {} updates from RRD journal segment {}", records, segment);
+        }
+        return updates;
+    }
+
+    /**
+     * Keeps the segments read by {@link #recover()} when closed segments are
+     * deleted, so that the next run recovers them again.
+     */
+    synchronized void keepRecovered() {
+        m_kept = m_sequence;
+    }
+
+    /**
+     * Starts a new segment.
+     *
+     * @throws IOException if the segment cannot be created
+     */
+    synchronized void open() throws IOException {
+        m_sequence++;
+        m_out = new FileOutputStream(getSegment(m_sequence));
+        m_data = new DataOutputStream(new BufferedOutputStream(m_out));
+        m_dirty = false;
+    }
+
+    /**
+     * Appends an update to the current segment. The update is only
+     * guaranteed to survive a crash after the next {@link #sync()}.
+     *
+     * @param path the RRD file
+     * @param update the update, with an explicit timestamp
+     * @throws IOException if the update cannot be written
+     */
+    synchronized void append(final String path, final String update) throws IOException {
+        m_data.writeUTF(path);
+        m_data.writeUTF(update);
+        m_dirty = true;
+    }
+
+    /**
+     * Forces the updates appended so far to the disk.
+     *
+     * @throws IOException if the updates cannot be written
+     */
+    synchronized void sync() throws IOException {
+        if (m_dirty) {
+            m_data.flush();
+            m_out.getFD().sync();
+            m_dirty = false;
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one.
+     *
+     * @return the number of the closed segment
+     * @throws IOException if the segments cannot be written
+     */
+    synchronized long rotate() throws IOException {
+        final long closed = m_sequence;
+        sync();
+        m_data.close();
+        open();
+        return closed;
+    }
+
+    /**
+     * Deletes the closed segments up to and including the given one, except
+     * for the ones kept by {@link #keepRecovered()}.
+     *
+     * @param sequence the number of the last segment to delete
+     */
+    synchronized void delete(final long sequence) {
+        for (final File segment : getSegments()) {
+            final long number = getSequence(segment);
+            if (number > m_kept && number <= sequence && number != m_sequence && !segment.delete()) {
+                LOG.warn("Unable to delete RRD journal segment {}", segment);
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment, keeping its contents.
+     *
+     * @throws IOException if the segment cannot be written
+     */
+    synchronized void close() throws IOException {
+        if (m_data != null) {
+            sync();
+            m_data.close();
+            m_data = null;
+            m_out = null;
+        }
+    }
+
+    /**
+     * @return the number of segments on disk, including the current one
+     */
+    synchronized int getSegmentCount() {
+        return getSegments().size();
+    }
+
+    private List<File> getSegments() {
+        final File[] files = m_directory.listFiles();
+        final List<File> segments = new ArrayList<File>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (final File file : files) {
+                if (getSequence(file) > 0) {
+                    segments.add(file);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private File getSegment(final long sequence) {
+        // zero padded so that the segments sort by name
+        return new File(m_directory, String.format("%s%019d%s", PREFIX, sequence, SUFFIX));
+    }
+
+    private static long getSequence(final File file) {
+        final String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+}
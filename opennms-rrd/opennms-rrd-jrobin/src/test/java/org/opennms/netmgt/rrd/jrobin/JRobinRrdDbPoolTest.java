@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.test.FileAnticipator;
+
+public class JRobinRrdDbPoolTest {
+
+    private FileAnticipator m_fileAnticipator;
+
+    @Before
+    public void setUp() throws Exception {
+        m_fileAnticipator = new FileAnticipator();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_fileAnticipator.deleteExpected();
+        m_fileAnticipator.tearDown();
+    }
+
+    @Test
+    public void testSharesOpenFiles() throws Exception {
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(10, 60000);
+        final String path = createRrdFile("a");
+
+        final RrdDb first = pool.acquire(path);
+        final RrdDb second = pool.acquire(path);
+        assertSame(first, second);
+        assertEquals(1, pool.getMisses());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getInUseCount());
+
+        pool.release(first);
+        pool.release(second);
+        assertFalse(first.isClosed());
+        assertEquals(1, pool.getOpenCount());
+        assertEquals(0, pool.getInUseCount());
+
+        pool.clear();
+        assertTrue(first.isClosed());
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(2, 60000);
+        final String a = createRrdFile("a");
+        final String b = createRrdFile("b");
+        final String c = createRrdFile("c");
+
+        final RrdDb dbA = pool.acquire(a);
+        pool.release(dbA);
+        final RrdDb dbB = pool.acquire(b);
+        pool.release(dbB);
+        // touch a so that b is the least recently used
+        pool.release(pool.acquire(a));
+        final RrdDb dbC = pool.acquire(c);
+        pool.release(dbC);
+
+        assertFalse(dbA.isClosed());
+        assertTrue(dbB.isClosed());
+        assertFalse(dbC.isClosed());
+        assertEquals(2, pool.getOpenCount());
+        assertEquals(1, pool.getEvictions());
+        pool.clear();
+    }
+
+    @Test
+    public void testDoesNotEvictFilesInUse() throws Exception {
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(1, 60000);
+        final String a = createRrdFile("a");
+        final String b = createRrdFile("b");
+
+        final RrdDb dbA = pool.acquire(a);
+        final RrdDb dbB = pool.acquire(b);
+        assertEquals(2, pool.getOpenCount());
+
+        pool.release(dbB);
+        assertFalse(dbA.isClosed());
+        assertTrue(dbB.isClosed());
+
+        pool.release(dbA);
+        assertFalse(dbA.isClosed());
+        assertEquals(1, pool.getOpenCount());
+        pool.clear();
+    }
+
+    @Test
+    public void testClosesIdleFiles() throws Exception {
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(10, 50);
+        final String a = createRrdFile("a");
+        final String b = createRrdFile("b");
+
+        final RrdDb dbA = pool.acquire(a);
+        pool.release(dbA);
+        Thread.sleep(100);
+        final RrdDb dbB = pool.acquire(b);
+        pool.release(dbB);
+
+        assertTrue(dbA.isClosed());
+        assertFalse(dbB.isClosed());
+        assertEquals(1, pool.getEvictions());
+        pool.clear();
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(10, 60000);
+        final String a = createRrdFile("a");
+
+        final RrdDb first = pool.acquire(a);
+        pool.invalidate(a);
+        assertFalse("files in use must not be closed", first.isClosed());
+
+        final RrdDb second = pool.acquire(a);
+        assertNotSame(first, second);
+
+        pool.release(first);
+        assertTrue(first.isClosed());
+        pool.release(second);
+        assertFalse(second.isClosed());
+
+        pool.invalidate(a);
+        assertTrue(second.isClosed());
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(0, 60000);
+        final String a = createRrdFile("a");
+
+        final RrdDb first = pool.acquire(a);
+        final RrdDb second = pool.acquire(a);
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+        assertTrue(first.isClosed());
+        assertTrue(second.isClosed());
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    /**
+     * One thread updates the files while others read from them, like
+     * the queued writers and the thresholding code do.
+     */
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(2, 60000);
+        final List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            paths.add(createRrdFile("file" + i));
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int time = 1300; time < 1300 + 300 * 200; time += 300) {
+                    for (String path : paths) {
+                        final RrdDb db = pool.acquire(path);
+                        try {
+                            db.createSample().setAndUpdate(time + ":" + time);
+                        } finally {
+                            pool.release(db);
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+        for (int i = 0; i < 4; i++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 500; j++) {
+                        final RrdDb db = pool.openReadOnly(paths.get(j % paths.size()));
+                        try {
+                            db.createFetchRequest("AVERAGE", 1000, 1300 + 300 * 200).fetchData();
+                        } finally {
+                            db.close();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                // rethrows any failure
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(0, pool.getInUseCount());
+        assertTrue(pool.getOpenCount() <= 2);
+
+        for (String path : paths) {
+            final RrdDb db = pool.acquire(path);
+            try {
+                assertEquals(1300 + 300 * 199, db.getLastUpdateTime());
+            } finally {
+                pool.release(db);
+            }
+        }
+        pool.clear();
+    }
+
+    @Test
+    public void testOpensReadOnlyOutsideOfPool() throws Exception {
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(10, 60000);
+        final String path = createRrdFile("a");
+
+        final RrdDb writer = pool.acquire(path);
+        writer.createSample().setAndUpdate("1300:42");
+
+        final RrdDb reader = pool.openReadOnly(path);
+        try {
+            assertNotSame(writer, reader);
+            assertEquals(1300, reader.getLastUpdateTime());
+            assertEquals(1, pool.getOpenCount());
+            assertEquals(1, pool.getMisses());
+            assertEquals(0, pool.getHits());
+        } finally {
+            reader.close();
+        }
+
+        pool.release(writer);
+        assertFalse(writer.isClosed());
+        pool.clear();
+    }
+
+    private String createRrdFile(final String name) throws Exception {
+        final File file = m_fileAnticipator.expecting(name + ".jrb");
+        final RrdDef def = new RrdDef(file.getAbsolutePath());
+        def.setStartTime(1000);
+        def.setStep(300);
+        def.addDatasource("bar", "GAUGE", 3000, Double.NaN, Double.NaN);
+        def.addArchive("RRA:AVERAGE:0.5:1:2016");
+        new RrdDb(def).close();
+        return file.getAbsolutePath();
+    }
+}
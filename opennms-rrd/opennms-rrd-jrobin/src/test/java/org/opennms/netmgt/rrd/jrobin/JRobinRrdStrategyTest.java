@@ -85,6 +85,7 @@ public class JRobinRrdStrategyTest {
 
     @After
     public void tearDown() throws Exception {
+        JRobinRrdStrategy.closeIdleFiles();
         if (m_fileAnticipator.isInitialized()) {
             m_fileAnticipator.deleteExpected();
         }
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.rrd.RrdDataSource;
+import org.opennms.test.FileAnticipator;
+
+public class MappedJRobinRrdStrategyTest {
+
+    private FileAnticipator m_fileAnticipator;
+
+    private File m_journalDirectory;
+
+    private final List<MappedJRobinRrdStrategy> m_strategies = new ArrayList<MappedJRobinRrdStrategy>();
+
+    @Before
+    public void setUp() throws Exception {
+        m_fileAnticipator = new FileAnticipator();
+        m_journalDirectory = m_fileAnticipator.tempDir("journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (MappedJRobinRrdStrategy strategy : m_strategies) {
+            strategy.abort();
+        }
+        m_fileAnticipator.tearDown();
+    }
+
+    private MappedJRobinRrdStrategy createStrategy() throws Exception {
+        final MappedJRobinRrdStrategy strategy = new MappedJRobinRrdStrategy();
+        strategy.setJournalDirectory(m_journalDirectory);
+        // only write when asked to
+        strategy.setFlushInterval(Long.MAX_VALUE / 2);
+        strategy.setJournalSyncInterval(10);
+        m_strategies.add(strategy);
+        return strategy;
+    }
+
+    private String createRrdFile(final MappedJRobinRrdStrategy strategy, final String name) throws Exception {
+        final List<RrdDataSource> dataSources = new ArrayList<RrdDataSource>();
+        dataSources.add(new RrdDataSource("bar", "GAUGE", 3000, "U", "U"));
+        final List<String> rraList = new ArrayList<String>();
+        rraList.add("RRA:AVERAGE:0.5:1:2016");
+        final RrdDef def = strategy.createDefinition("hello!", m_fileAnticipator.getTempDir().getAbsolutePath(), name, 300, dataSources, rraList);
+        strategy.createFile(def, null);
+        return m_fileAnticipator.expecting(name + strategy.getDefaultFileExtension()).getAbsolutePath();
+    }
+
+    private static void update(final MappedJRobinRrdStrategy strategy, final String file, final long time, final double value) throws Exception {
+        final String rrd = strategy.openFile(file);
+        strategy.updateFile(rrd, "test", time + ":" + value);
+        strategy.closeFile(rrd);
+    }
+
+    private static long getLastUpdateTime(final String file) throws Exception {
+        // read through JRobin's default backend, like graphing does
+        final RrdDb rrd = new RrdDb(file, true);
+        try {
+            return rrd.getLastUpdateTime();
+        } finally {
+            rrd.close();
+        }
+    }
+
+    @Test
+    public void testUpdatesAreCoalesced() throws Exception {
+        final MappedJRobinRrdStrategy strategy = createStrategy();
+        final String a = createRrdFile(strategy, "a");
+        final String b = createRrdFile(strategy, "b");
+        final long start = getLastUpdateTime(a);
+
+        for (int step = 1; step <= 3; step++) {
+            update(strategy, a, 1000 + step * 300, step);
+            update(strategy, b, 1000 + step * 300, step * 10);
+        }
+        assertEquals("nothing has been written yet", start, getLastUpdateTime(a));
+
+        strategy.flush();
+        assertEquals(1900, getLastUpdateTime(a));
+        assertEquals(1900, getLastUpdateTime(b));
+        assertTrue(strategy.getStats(), strategy.getStats().contains("updates written: 6"));
+        assertTrue(strategy.getStats(), strategy.getStats().contains("errors: 0"));
+    }
+
+    @Test
+    public void testFetchWritesPendingUpdates() throws Exception {
+        final MappedJRobinRrdStrategy strategy = createStrategy();
+        final String a = createRrdFile(strategy, "a");
+
+        // the same kind of update and fetch as JRobinRrdStrategyTest.testFetchLastValue
+        final long now = System.currentTimeMillis() / 1000L;
+        final long step = now - (now % 300);
+        update(strategy, a, step - 600, 1.0);
+        update(strategy, a, step - 300, 2.0);
+        update(strategy, a, step, 3.0);
+        update(strategy, a, step + 1, 3.0);
+
+        assertEquals(Double.valueOf(3.0), strategy.fetchLastValueInRange(a, "bar", 300000, 600000));
+        assertEquals(step + 1, getLastUpdateTime(a));
+    }
+
+    @Test
+    public void testReplaysJournalAfterCrash() throws Exception {
+        final MappedJRobinRrdStrategy crashed = createStrategy();
+        final String a = createRrdFile(crashed, "a");
+        update(crashed, a, 1300, 1.0);
+        crashed.flush();
+        update(crashed, a, 1600, 2.0);
+        update(crashed, a, 1900, 3.0);
+        // give the flusher a chance to sync the journal, then "crash"
+        Thread.sleep(200);
+        crashed.abort();
+        assertEquals(1300, getLastUpdateTime(a));
+
+        final MappedJRobinRrdStrategy restarted = createStrategy();
+        restarted.openFile(a);
+        assertEquals(1900, getLastUpdateTime(a));
+        assertTrue(restarted.getStats(), restarted.getStats().contains("errors: 0"));
+
+        // replaying again must not do any harm
+        restarted.abort();
+        final MappedJRobinRrdStrategy again = createStrategy();
+        again.openFile(a);
+        assertEquals(1900, getLastUpdateTime(a));
+        assertTrue(again.getStats(), again.getStats().contains("errors: 0"));
+    }
+
+    @Test
+    public void testKeepsJournalWhenReplayFails() throws Exception {
+        final MappedJRobinRrdStrategy crashed = createStrategy();
+        final String a = createRrdFile(crashed, "a");
+        update(crashed, a, 1300, 1.0);
+        update(crashed, a, 1600, 2.0);
+        Thread.sleep(200);
+        crashed.abort();
+
+        // the file is unavailable while the journal is replayed
+        final File file = new File(a);
+        final File moved = new File(a + ".moved");
+        assertTrue(file.renameTo(moved));
+        final MappedJRobinRrdStrategy restarted = createStrategy();
+        restarted.openFile(a);
+        assertTrue(restarted.getStats(), restarted.getStats().contains("errors: 1"));
+        restarted.flush();
+        assertTrue(restarted.getStats(), restarted.getStats().contains("journal segments: 2"));
+        restarted.abort();
+
+        assertTrue(moved.renameTo(file));
+        final MappedJRobinRrdStrategy again = createStrategy();
+        again.openFile(a);
+        assertEquals(1600, getLastUpdateTime(a));
+        assertTrue(again.getStats(), again.getStats().contains("journal segments: 1"));
+    }
+
+    @Test
+    public void testFactoryClosesOpenBackends() throws Exception {
+        final MappedJRobinRrdStrategy strategy = createStrategy();
+        final String a = createRrdFile(strategy, "a");
+        strategy.close();
+
+        final MappedRrdBackendFactory factory = new MappedRrdBackendFactory();
+        final RrdDb rrd = new RrdDb(a, factory);
+        rrd.createSample().setAndUpdate("1300:1.0");
+        assertEquals(1, factory.getOpenBackends());
+
+        // as on shutdown, while the file is still in use
+        factory.close();
+        assertEquals(0, factory.getOpenBackends());
+        assertEquals(1300, getLastUpdateTime(a));
+    }
+}
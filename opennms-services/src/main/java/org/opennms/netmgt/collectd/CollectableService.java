@@ -605,7 +605,8 @@ final class CollectableService implements ReadyRunnable {
      * 
      * Other idea is to create two methods to get and set the states, and detect orphan
      * states. That way, we can decide what to do with orphans (like clear the alarm, or
-     * send an auto-rearm), and also it can be used to persist the states across restarts.
+     * send an auto-rearm). The states are already kept across restarts by the
+     * ThresholdStateStore when it is enabled.
      */
     public void reinitializeThresholding() {
         if(m_thresholdVisitor!=null) {
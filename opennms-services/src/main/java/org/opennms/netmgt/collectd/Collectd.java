@@ -77,6 +77,8 @@ import org.opennms.netmgt.model.events.EventUtils;
 import org.opennms.netmgt.scheduler.LegacyScheduler;
 import org.opennms.netmgt.scheduler.ReadyRunnable;
 import org.opennms.netmgt.scheduler.Scheduler;
+import org.opennms.netmgt.scheduler.TimingWheelScheduler;
+import org.opennms.netmgt.threshd.ThresholdStateStore;
 import org.opennms.netmgt.xml.event.Event;
 import org.opennms.netmgt.xml.event.Parm;
 import org.opennms.netmgt.xml.event.Value;
@@ -315,7 +317,12 @@ public class Collectd extends AbstractServiceDaemon implements
                 // Create a scheduler
                 try {
                     LOG.debug("init: Creating collectd scheduler");
-                    setScheduler(new LegacyScheduler("Collectd", m_collectdConfigFactory.getCollectdConfig().getThreads()));
+                    final int threads = m_collectdConfigFactory.getCollectdConfig().getThreads();
+                    if (Boolean.getBoolean(TimingWheelScheduler.ENABLED_PROPERTY)) {
+                        setScheduler(new TimingWheelScheduler("Collectd", threads));
+                    } else {
+                        setScheduler(new LegacyScheduler("Collectd", threads));
+                    }
                 } catch (final RuntimeException e) {
                     LOG.error("init: Failed to create collectd scheduler", e);
                     throw e;
@@ -345,6 +352,8 @@ public class Collectd extends AbstractServiceDaemon implements
         deinstallMessageSelectors();
 
         setScheduler(null);
+
+        ThresholdStateStore.getInstance().close();
     }
 
     /** {@inheritDoc} */
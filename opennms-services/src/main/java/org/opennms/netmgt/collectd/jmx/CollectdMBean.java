@@ -76,4 +76,19 @@ public interface CollectdMBean extends BaseOnmsMBean {
      * @return The number of collectable services currently seen by Collectd
      */
     public long getCollectableServiceCount();
+
+    /**
+     * @return The median delay in milliseconds between collection tasks becoming due and starting, or -1 when unavailable
+     */
+    public long getSchedulingLag50th();
+
+    /**
+     * @return The 95th percentile delay in milliseconds between collection tasks becoming due and starting, or -1 when unavailable
+     */
+    public long getSchedulingLag95th();
+
+    /**
+     * @return The 99th percentile delay in milliseconds between collection tasks becoming due and starting, or -1 when unavailable
+     */
+    public long getSchedulingLag99th();
 }
@@ -194,6 +194,9 @@ public final class BroadcastEventProcessor implements EventListener {
             return;
         }
 
+        // Keep the cached matches of the notification rules up to date
+        m_notificationManager.refreshRuleMatches(event);
+
         if (event.getLogmsg() != null && event.getLogmsg().getDest().equalsIgnoreCase("donotpersist")) {
             LOG.debug("discarding event {}, the event has been configured as 'doNotPersist'.", event.getUei());
             return;
@@ -306,6 +309,7 @@ public final class BroadcastEventProcessor implements EventListener {
                         
                         Collection<Integer> notifIDs = getNotificationManager().acknowledgeNotice(event, curAck.getAcknowledge(), curAck.getMatch());
                         processed = true;
+                        cancelTasks(notifIDs);
                         try {
                             // only send resolution notifications if notifications are globally turned on
                             if (curAck.getNotify() && notifsOn) {
@@ -332,6 +336,7 @@ public final class BroadcastEventProcessor implements EventListener {
                 return;
             }
             Collection<Integer> notifIDs = getNotificationManager().acknowledgeNoticeBasedOnAlarms(event);
+            cancelTasks(notifIDs);
             try {
                 // only send resolution notifications if notifications are globally turned on
                 if (autoAck.getNotify() && !notifIDs.isEmpty() && notifsOn) {
@@ -428,15 +433,31 @@ public final class BroadcastEventProcessor implements EventListener {
             NotificationTask newTask = makeEmailTask(now, params, noticeId, targetName, commands, null, null);
 
             if (newTask != null) {
-                synchronized (noticeQueue) {
-                    noticeQueue.putItem(now, newTask);
-                }
+                noticeQueue.putItem(now, newTask);
             }
         } else {
             LOG.warn("Unrecognized target '{}' contained in destinationPaths.xml. Please check the configuration.", targetName);
         }
     }
 
+    /**
+     * Removes the pending tasks of the acknowledged notices from the queues,
+     * since they would do nothing but find out that the notice isn't
+     * outstanding anymore.
+     */
+    private void cancelTasks(Collection<Integer> notifIDs) {
+        if (m_noticeQueues == null || notifIDs == null || notifIDs.isEmpty()) {
+            return;
+        }
+        synchronized (m_noticeQueues) {
+            for (NoticeQueue noticeQueue : m_noticeQueues.values()) {
+                for (Integer notifID : notifIDs) {
+                    noticeQueue.cancel(notifID);
+                }
+            }
+        }
+    }
+
     /**
      * This method determines if the notice should continue based on the status
      * of the notify
@@ -820,9 +841,7 @@ public final class BroadcastEventProcessor implements EventListener {
                 for (int index = 0; index < tasks.length; index++) {
                     NotificationTask task = tasks[index];
                     if (task != null) {
-                        synchronized(noticeQueue) {
-                            noticeQueue.putItem(task.getSendTime(), task);
-                        }
+                        noticeQueue.putItem(task.getSendTime(), task);
                         getNotificationManager().incrementTasksQueued();
                         targetSiblings.add(task);
                     }
@@ -28,8 +28,7 @@
 
 package org.opennms.netmgt.notifd;
 
-import java.util.List;
-import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,10 +58,16 @@ public class DefaultQueueHandler implements NotifdQueueHandler {
     private String m_queueID;
 
     /**
-     * How long to sleep between processing more notices
+     * How long to wait at most for the next notice before checking whether
+     * the fiber is paused or stopped
      */
     private long m_interval;
 
+    /**
+     * The thread of this fiber
+     */
+    private Thread m_thread;
+
     /**
      * The status of this fiber.
      */
@@ -130,16 +135,31 @@ public class DefaultQueueHandler implements NotifdQueueHandler {
                 }
             }
 
-            processQueue();
+            // wait until the next notice is due
+            final NoticeQueue noticeQueue = getNoticeQueue();
+            if (noticeQueue == null) {
+                synchronized (this) {
+                    try {
+                        wait(Math.max(m_interval, 1));
+                    } catch (final InterruptedException ex) {
+                        // exit
+                        break;
+                    }
+                }
+                continue;
+            }
 
-            synchronized (this) {
-                // wait for the next iteration
-                try {
-                    wait(m_interval);
-                } catch (final InterruptedException ex) {
-                    // exit
-                    break;
+            try {
+                final NotificationTask task = noticeQueue.poll(Math.max(m_interval, 1), TimeUnit.MILLISECONDS);
+                if (task != null) {
+                    startTask(task);
+                    processQueue();
                 }
+            } catch (final InterruptedException ex) {
+                // exit
+                break;
+            } catch (final Throwable e) {
+                LOG.error("failed to start notification task", e);
             }
 
         } // end infinite loop
@@ -151,34 +171,28 @@ public class DefaultQueueHandler implements NotifdQueueHandler {
     } // end run
 
     /**
-     * <p>processQueue</p>
+     * Starts the notices that are due.
      */
     @Override
     public void processQueue() {
-        if (m_noticeQueue != null) {
-            synchronized(m_noticeQueue) {
-                try {
-                	final Long now = System.currentTimeMillis();
-                	final SortedMap<Long, List<NotificationTask>> readyNotices = m_noticeQueue.headMap(now);
-        
-                    for (final List<NotificationTask> list : readyNotices.values()) {
-                        for (final NotificationTask task : list) {
-                            startTask(task);
-                        }
-                    }
-                    readyNotices.clear();
-        
-                    if (m_noticeQueue != null && m_noticeQueue.size() > 0) {
-			LOG.debug("current state of tree: {}", m_noticeQueue);
-                    }
-                } catch (final Throwable e) {
-                    LOG.error("failed to start notification task", e);
-                    
+        final NoticeQueue noticeQueue = getNoticeQueue();
+        if (noticeQueue != null) {
+            try {
+                for (NotificationTask task = noticeQueue.poll(); task != null; task = noticeQueue.poll()) {
+                    startTask(task);
                 }
+
+                LOG.debug("{} notices pending in queue {}", noticeQueue.size(), m_queueID);
+            } catch (final Throwable e) {
+                LOG.error("failed to start notification task", e);
             }
         }
     }
 
+    private synchronized NoticeQueue getNoticeQueue() {
+        return m_noticeQueue;
+    }
+
 	private void startTask(final NotificationTask task) {
 		if (!task.isStarted())
 			task.start();
@@ -199,8 +213,8 @@ public class DefaultQueueHandler implements NotifdQueueHandler {
     public synchronized void start() {
         m_status = STARTING;
 
-        final Thread thread = new Thread(this, this.getClass().getSimpleName() + "-" + m_queueID);
-        thread.start();
+        m_thread = new Thread(this, this.getClass().getSimpleName() + "-" + m_queueID);
+        m_thread.start();
     }
 
     /**
@@ -217,6 +231,10 @@ public class DefaultQueueHandler implements NotifdQueueHandler {
             m_status = STOP_PENDING;
 
         notifyAll();
+        // stop waiting for the next notice
+        if (m_thread != null) {
+            m_thread.interrupt();
+        }
     }
 
     /**
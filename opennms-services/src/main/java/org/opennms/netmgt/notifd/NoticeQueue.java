@@ -28,41 +28,301 @@
 
 package org.opennms.netmgt.notifd;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This is a data class designed to hold NotificationTasks in an ordered map
- * that can handle collisions.
+ * This is a data class designed to hold NotificationTasks until they are due.
+ *
+ * The tasks are kept in a {@link DelayQueue}, so the queue handler can block
+ * until the next task is due instead of polling the queue, and the event
+ * processor can add tasks without waiting for the handler.  The pending tasks
+ * of a notice are cancelled in constant time per task when the notice is
+ * acknowledged: they are only marked, and dropped when they come due.
  *
- * @author <A HREF="mailto:jason@opennms.org">Jason Johns </A>
- * @author <A HREF="http://www.opennms.org/">OpenNMS </A>
  * @author <A HREF="mailto:jason@opennms.org">Jason Johns </A>
  * @author <A HREF="http://www.opennms.org/">OpenNMS </A>
  * @version 1.1.1.1
  */
-public class NoticeQueue extends DuplicateTreeMap<Long, NotificationTask> {
+public class NoticeQueue {
     private static final Logger LOG = LoggerFactory.getLogger(NoticeQueue.class);
+
+    private final DelayQueue<Entry> m_queue = new DelayQueue<Entry>();
+
     /**
-     * 
+     * The entries that are neither started nor cancelled, by task.
      */
-    private static final long serialVersionUID = 7463770974135218140L;
+    private final ConcurrentMap<NotificationTask, Entry> m_entries = new ConcurrentHashMap<NotificationTask, Entry>();
 
-    /** {@inheritDoc} */
-    @Override
-    public NotificationTask putItem(Long key, NotificationTask value) {
-        NotificationTask ret = super.putItem(key, value);
+    /**
+     * The entries that are neither started nor cancelled, by notice ID.
+     */
+    private final ConcurrentMap<Integer, Set<Entry>> m_entriesByNotifyId = new ConcurrentHashMap<Integer, Set<Entry>>();
+
+    private final AtomicLong m_sequence = new AtomicLong();
+    private final AtomicLong m_queued = new AtomicLong();
+    private final AtomicLong m_sent = new AtomicLong();
+    private final AtomicLong m_cancelled = new AtomicLong();
+    private final AtomicLong m_sentLate = new AtomicLong();
+    private final AtomicLong m_totalLateness = new AtomicLong();
+
+    /**
+     * A task in the queue.  Its state changes once, from pending to either
+     * started or cancelled.
+     */
+    private static final class Entry implements Delayed {
+        private static final int PENDING = 0;
+        private static final int STARTED = 1;
+        private static final int CANCELLED = 2;
+
+        private final NotificationTask m_task;
+        private final long m_sendTime;
+        private final long m_sequence;
+        private final AtomicInteger m_state = new AtomicInteger(PENDING);
+
+        private Entry(final NotificationTask task, final long sendTime, final long sequence) {
+            m_task = task;
+            m_sendTime = sendTime;
+            m_sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(m_sendTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed o) {
+            final Entry other = (Entry)o;
+            if (m_sendTime != other.m_sendTime) {
+                return m_sendTime < other.m_sendTime ? -1 : 1;
+            }
+            // tasks that are due at the same time are started in the order they were queued
+            return m_sequence < other.m_sequence ? -1 : (m_sequence == other.m_sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Adds a task that is due at the given time.
+     *
+     * @param sendTime the time at which the task is due, in milliseconds since the epoch
+     * @param task the task
+     * @return the task if it is already in the queue, or null if it was added
+     */
+    public NotificationTask putItem(final Long sendTime, final NotificationTask task) {
+        final Entry entry = new Entry(task, sendTime, m_sequence.getAndIncrement());
+        if (m_entries.putIfAbsent(task, entry) != null) {
+            return task;
+        }
+
+        final int notifyId = task.getNotifyId();
+        if (notifyId != -1) {
+            Set<Entry> entries = m_entriesByNotifyId.get(notifyId);
+            if (entries == null) {
+                final Set<Entry> newEntries = Collections.newSetFromMap(new ConcurrentHashMap<Entry, Boolean>());
+                entries = m_entriesByNotifyId.putIfAbsent(notifyId, newEntries);
+                if (entries == null) {
+                    entries = newEntries;
+                }
+            }
+            entries.add(entry);
+        }
+
+        m_queued.incrementAndGet();
+        m_queue.add(entry);
 
-        
         if (LOG.isDebugEnabled()) {
-            if (value.getNotifyId() == -1) {
+            if (notifyId == -1) {
                 LOG.debug("autoNotify task queued");
             } else {
-                LOG.debug("task queued for notifyID {}", value.getNotifyId());
+                LOG.debug("task queued for notifyID {}", notifyId);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the next task that is due, if any, without waiting.
+     *
+     * @return the task, or null if no task is due
+     */
+    public NotificationTask poll() {
+        for (Entry entry = m_queue.poll(); entry != null; entry = m_queue.poll()) {
+            if (start(entry)) {
+                return entry.m_task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the next task that is due, waiting until a task is due if
+     * necessary.  Tasks that are added while waiting are taken into account.
+     *
+     * @param timeout how long to wait at most
+     * @param unit the unit of the timeout
+     * @return the task, or null if no task became due before the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public NotificationTask poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (;;) {
+            final Entry entry = m_queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (entry == null) {
+                return null;
+            } else if (start(entry)) {
+                return entry.m_task;
+            }
+        }
+    }
+
+    /**
+     * Cancels the tasks of a notice that are not started yet, because the
+     * notice was acknowledged.
+     *
+     * @param notifyId the notice ID
+     * @return the number of tasks cancelled
+     */
+    public int cancel(final int notifyId) {
+        final Set<Entry> entries = m_entriesByNotifyId.remove(notifyId);
+        if (entries == null) {
+            return 0;
+        }
+
+        int cancelled = 0;
+        for (final Entry entry : entries) {
+            if (entry.m_state.compareAndSet(Entry.PENDING, Entry.CANCELLED)) {
+                m_entries.remove(entry.m_task, entry);
+                cancelled++;
             }
         }
-        
-        return ret;
+        m_cancelled.addAndGet(cancelled);
+        LOG.debug("cancelled {} tasks for notifyID {}", cancelled, notifyId);
+        return cancelled;
+    }
+
+    private boolean start(final Entry entry) {
+        if (!entry.m_state.compareAndSet(Entry.PENDING, Entry.STARTED)) {
+            // cancelled
+            return false;
+        }
+        m_entries.remove(entry.m_task, entry);
+        final int notifyId = entry.m_task.getNotifyId();
+        if (notifyId != -1) {
+            final Set<Entry> entries = m_entriesByNotifyId.get(notifyId);
+            if (entries != null) {
+                entries.remove(entry);
+                if (entries.isEmpty()) {
+                    m_entriesByNotifyId.remove(notifyId, entries);
+                }
+            }
+        }
+
+        m_sent.incrementAndGet();
+        final long lateness = System.currentTimeMillis() - entry.m_sendTime;
+        if (lateness > 0) {
+            m_sentLate.incrementAndGet();
+            m_totalLateness.addAndGet(lateness);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of tasks that are neither started nor cancelled
+     */
+    public int size() {
+        return m_entries.size();
+    }
+
+    /**
+     * @return the number of tasks that are neither started nor cancelled
+     */
+    public long getPending() {
+        return m_entries.size();
+    }
+
+    /**
+     * @return the number of pending tasks that are due but not started yet
+     */
+    public long getOverdue() {
+        final long now = System.currentTimeMillis();
+        long overdue = 0;
+        for (final Entry entry : m_entries.values()) {
+            if (entry.m_sendTime <= now) {
+                overdue++;
+            }
+        }
+        return overdue;
+    }
+
+    /**
+     * @return the number of tasks queued
+     */
+    public long getQueued() {
+        return m_queued.get();
+    }
+
+    /**
+     * @return the number of tasks handed to the queue handler to be started
+     */
+    public long getSent() {
+        return m_sent.get();
+    }
+
+    /**
+     * @return the number of tasks cancelled because their notice was acknowledged
+     */
+    public long getCancelled() {
+        return m_cancelled.get();
+    }
+
+    /**
+     * @return the number of tasks that were handed to the queue handler after they were due
+     */
+    public long getSentLate() {
+        return m_sentLate.get();
+    }
+
+    /**
+     * @return the total number of milliseconds by which the late tasks were late
+     */
+    public long getTotalLateness() {
+        return m_totalLateness.get();
+    }
+
+    /**
+     * @return the pending tasks, in the order they are due
+     */
+    public List<NotificationTask> getPendingTasks() {
+        final List<Entry> entries = new ArrayList<Entry>(m_entries.values());
+        Collections.sort(entries);
+        final List<NotificationTask> tasks = new ArrayList<NotificationTask>(entries.size());
+        for (final Entry entry : entries) {
+            tasks.add(entry.m_task);
+        }
+        return tasks;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        final StringBuffer buffer = new StringBuffer();
+        for (final NotificationTask task : getPendingTasks()) {
+            buffer.append(task.toString() + System.getProperty("line.separator"));
+        }
+        return buffer.toString();
     }
 }
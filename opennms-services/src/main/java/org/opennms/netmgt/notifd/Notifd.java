@@ -29,6 +29,7 @@
 package org.opennms.netmgt.notifd;
 
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -169,6 +170,15 @@ public final class Notifd extends AbstractServiceDaemon {
         return m_notificationManager;
     }
 
+    /**
+     * <p>getNoticeQueues</p>
+     *
+     * @return the notice queues by queue ID
+     */
+    public Map<String, NoticeQueue> getNoticeQueues() {
+        return Collections.unmodifiableMap(m_noticeQueues);
+    }
+
     /**
      * <p>onStart</p>
      */
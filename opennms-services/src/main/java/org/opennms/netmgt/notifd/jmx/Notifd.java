@@ -29,6 +29,7 @@
 package org.opennms.netmgt.notifd.jmx;
 
 import org.opennms.netmgt.daemon.AbstractSpringContextJmxServiceDaemon;
+import org.opennms.netmgt.notifd.NoticeQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -113,4 +114,44 @@ public class Notifd extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getUnknownNoticesInterrupted() {
         return getDaemon().getNotificationManager().getUnknownNoticesInterrupted();
     }
+
+    @Override
+    /** {@inheritDoc} */
+    public long getNotificationTasksPending() {
+        long pending = 0;
+        for (NoticeQueue queue : getDaemon().getNoticeQueues().values()) {
+            pending += queue.getPending();
+        }
+        return pending;
+    }
+
+    @Override
+    /** {@inheritDoc} */
+    public long getNotificationTasksOverdue() {
+        long overdue = 0;
+        for (NoticeQueue queue : getDaemon().getNoticeQueues().values()) {
+            overdue += queue.getOverdue();
+        }
+        return overdue;
+    }
+
+    @Override
+    /** {@inheritDoc} */
+    public long getNotificationTasksSent() {
+        long sent = 0;
+        for (NoticeQueue queue : getDaemon().getNoticeQueues().values()) {
+            sent += queue.getSent();
+        }
+        return sent;
+    }
+
+    @Override
+    /** {@inheritDoc} */
+    public long getNotificationTasksCancelled() {
+        long cancelled = 0;
+        for (NoticeQueue queue : getDaemon().getNoticeQueues().values()) {
+            cancelled += queue.getCancelled();
+        }
+        return cancelled;
+    }
 }
@@ -97,4 +97,29 @@ public interface NotifdMBean extends BaseOnmsMBean {
      *         (threw an exception) since Notifd was last started.
      */
     public long getUnknownNoticesInterrupted();
+
+    /**
+     * @return The number of notification tasks waiting in the notice queues
+     *         to be sent
+     */
+    public long getNotificationTasksPending();
+
+    /**
+     * @return The number of notification tasks in the notice queues that are
+     *         due but not sent yet
+     */
+    public long getNotificationTasksOverdue();
+
+    /**
+     * @return The total number of notification tasks taken from the notice
+     *         queues to be sent since Notifd was last started
+     */
+    public long getNotificationTasksSent();
+
+    /**
+     * @return The total number of notification tasks removed from the notice
+     *         queues because their notice was acknowledged since Notifd was
+     *         last started
+     */
+    public long getNotificationTasksCancelled();
 }
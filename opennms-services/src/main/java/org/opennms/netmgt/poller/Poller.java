@@ -64,6 +64,8 @@ import org.opennms.netmgt.poller.pollables.PollableVisitorAdaptor;
 import org.opennms.netmgt.scheduler.LegacyScheduler;
 import org.opennms.netmgt.scheduler.Schedule;
 import org.opennms.netmgt.scheduler.Scheduler;
+import org.opennms.netmgt.scheduler.TimingWheelScheduler;
+import org.opennms.netmgt.threshd.ThresholdStateStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -86,7 +88,7 @@ public class Poller extends AbstractServiceDaemon {
 
     private boolean m_initialized = false;
 
-    private LegacyScheduler m_scheduler = null;
+    private Scheduler m_scheduler = null;
 
     private PollerEventProcessor m_eventProcessor;
 
@@ -270,9 +272,9 @@ public class Poller extends AbstractServiceDaemon {
     /**
      * <p>setScheduler</p>
      *
-     * @param scheduler a {@link org.opennms.netmgt.scheduler.LegacyScheduler} object.
+     * @param scheduler a {@link org.opennms.netmgt.scheduler.Scheduler} object.
      */
-    public void setScheduler(LegacyScheduler scheduler) {
+    public void setScheduler(Scheduler scheduler) {
         m_scheduler = scheduler;
     }
 
@@ -331,7 +333,11 @@ public class Poller extends AbstractServiceDaemon {
         try {
             LOG.debug("init: Creating poller scheduler");
 
-            setScheduler(new LegacyScheduler("Poller", getPollerConfig().getThreads()));
+            if (Boolean.getBoolean(TimingWheelScheduler.ENABLED_PROPERTY)) {
+                setScheduler(new TimingWheelScheduler("Poller", getPollerConfig().getThreads()));
+            } else {
+                setScheduler(new LegacyScheduler("Poller", getPollerConfig().getThreads()));
+            }
         } catch (RuntimeException e) {
             LOG.error("init: Failed to create poller scheduler", e);
             throw e;
@@ -371,6 +377,9 @@ public class Poller extends AbstractServiceDaemon {
 
         releaseServiceMonitors();
         setScheduler(null);
+
+        // shared with Collectd, the latency thresholds save their states too
+        ThresholdStateStore.getInstance().close();
     }
 
     private void releaseServiceMonitors() {
@@ -32,6 +32,8 @@ import java.util.concurrent.ThreadPoolExecutor;
 
 import org.opennms.netmgt.daemon.AbstractSpringContextJmxServiceDaemon;
 import org.opennms.netmgt.scheduler.LegacyScheduler;
+import org.opennms.netmgt.scheduler.Scheduler;
+import org.opennms.netmgt.scheduler.TimingWheelScheduler;
 
 /**
  * <p>Pollerd class.</p>
@@ -122,11 +124,43 @@ public class Pollerd extends AbstractSpringContextJmxServiceDaemon<org.opennms.n
     }
 
     
+    /** {@inheritDoc} */
+    @Override
+    public long getSchedulingLag50th() {
+        return getSchedulingLag(50);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSchedulingLag95th() {
+        return getSchedulingLag(95);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSchedulingLag99th() {
+        return getSchedulingLag(99);
+    }
+
+    private long getSchedulingLag(double percentile) {
+        final Scheduler scheduler = getDaemon().getScheduler();
+        if (scheduler instanceof TimingWheelScheduler) {
+            return ((TimingWheelScheduler) scheduler).getLagPercentile(percentile);
+        } else {
+            return -1L;
+        }
+    }
+
     private ThreadPoolExecutor getExecutor() {
-        return (ThreadPoolExecutor) ((LegacyScheduler) getDaemon().getScheduler()).getRunner();
+        final Scheduler scheduler = getDaemon().getScheduler();
+        if (scheduler instanceof TimingWheelScheduler) {
+            return (ThreadPoolExecutor) ((TimingWheelScheduler) scheduler).getRunner();
+        }
+        return (ThreadPoolExecutor) ((LegacyScheduler) scheduler).getRunner();
     }
     
     private boolean getThreadPoolStatsStatus() {
-        return (getDaemon().getScheduler() instanceof LegacyScheduler);
+        final Scheduler scheduler = getDaemon().getScheduler();
+        return (scheduler instanceof LegacyScheduler || scheduler instanceof TimingWheelScheduler);
     }
 }
@@ -74,4 +74,19 @@ public interface PollerdMBean extends BaseOnmsMBean {
      * @return The maximum number of threads allowed in the poller's thread pool
      */
     public long getMaxPoolThreads();
+
+    /**
+     * @return The median delay in milliseconds between polling tasks becoming due and starting, or -1 when unavailable
+     */
+    public long getSchedulingLag50th();
+
+    /**
+     * @return The 95th percentile delay in milliseconds between polling tasks becoming due and starting, or -1 when unavailable
+     */
+    public long getSchedulingLag95th();
+
+    /**
+     * @return The 99th percentile delay in milliseconds between polling tasks becoming due and starting, or -1 when unavailable
+     */
+    public long getSchedulingLag99th();
 }
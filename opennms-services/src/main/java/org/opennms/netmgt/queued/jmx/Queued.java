@@ -30,6 +30,7 @@ package org.opennms.netmgt.queued.jmx;
 
 import org.opennms.netmgt.daemon.AbstractSpringContextJmxServiceDaemon;
 import org.opennms.netmgt.rrd.QueuingRrdStrategy;
+import org.opennms.netmgt.rrd.ShardedQueuingRrdStrategy;
 
 /**
  * <p>Queued class.</p>
@@ -55,6 +56,14 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
         return (QueuingRrdStrategy) getDaemon().getRrdStrategy();
     }
 
+    private ShardedQueuingRrdStrategy getShardedRrdStrategy() {
+        if (getDaemon().getRrdStrategy() instanceof ShardedQueuingRrdStrategy) {
+            return (ShardedQueuingRrdStrategy) getDaemon().getRrdStrategy();
+        } else {
+            return null;
+        }
+    }
+
 
     /**
      * <p>getStatsStatus</p>
@@ -88,6 +97,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getCreatesCompleted() {
         if (getStatsStatus()) {
             return getRrdStrategy().getCreatesCompleted();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getCreatesCompleted();
         } else {
             return 0;
         }
@@ -102,6 +113,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getTotalOperationsPending() {
         if (getStatsStatus()) {
             return getRrdStrategy().getTotalOperationsPending();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getTotalOperationsPending();
         } else {
             return 0;
         }
@@ -116,6 +129,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getErrors() {
         if (getStatsStatus()) {
             return getRrdStrategy().getErrors();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getErrors();
         } else {
             return 0;
         }
@@ -130,6 +145,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getUpdatesCompleted() {
         if (getStatsStatus()) {
             return getRrdStrategy().getUpdatesCompleted();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getUpdatesCompleted();
         } else {
             return 0;
         }
@@ -144,6 +161,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getPromotionCount() {
         if (getStatsStatus()) {
             return getRrdStrategy().getPromotionCount();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getPromotionCount();
         } else {
             return 0;
         }
@@ -158,6 +177,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getDequeuedItems() {
         if (getStatsStatus()) {
             return getRrdStrategy().getDequeuedItems();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getDequeuedItems();
         } else {
             return 0;
         }
@@ -172,6 +193,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getDequeuedOperations() {
         if (getStatsStatus()) {
             return getRrdStrategy().getDequeuedOperations();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getDequeuedOperations();
         } else {
             return 0;
         }
@@ -186,6 +209,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getEnqueuedOperations() {
         if (getStatsStatus()) {
             return getRrdStrategy().getEnqueuedOperations();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getEnqueuedOperations();
         } else {
             return 0;
         }
@@ -200,6 +225,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getSignificantOpsDequeued() {
         if (getStatsStatus()) {
             return getRrdStrategy().getSignificantOpsDequeued();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getSignificantOpsDequeued();
         } else {
             return 0;
         }
@@ -214,6 +241,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getSignificantOpsEnqueued() {
         if (getStatsStatus()) {
             return getRrdStrategy().getSignificantOpsEnqueued();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getSignificantOpsEnqueued();
         } else {
             return 0;
         }
@@ -228,6 +257,8 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getSignificantOpsCompleted() {
         if (getStatsStatus()) {
             return getRrdStrategy().getSignificantOpsCompleted();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getSignificantOpsCompleted();
         } else {
             return 0;
         }
@@ -242,10 +273,38 @@ public class Queued extends AbstractSpringContextJmxServiceDaemon<org.opennms.ne
     public long getStartTime() {
         if (getStatsStatus()) {
             return getRrdStrategy().getStartTime();
+        } else if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getStartTime();
         } else {
             return 0;
         }
     }
 
+    /**
+     * <p>getQueuedBytes</p>
+     *
+     * @return a long.
+     */
+    @Override
+    public long getQueuedBytes() {
+        if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getQueuedBytes();
+        } else {
+            return 0;
+        }
+    }
 
+    /**
+     * <p>getDiscardedOperations</p>
+     *
+     * @return a long.
+     */
+    @Override
+    public long getDiscardedOperations() {
+        if (getShardedRrdStrategy() != null) {
+            return getShardedRrdStrategy().getDiscardedOperations();
+        } else {
+            return 0;
+        }
+    }
 }
@@ -115,5 +115,19 @@ public interface QueuedMBean extends BaseOnmsMBean {
 	 * @return a long.
 	 */
 	public long getStartTime();
+	/**
+	 * <p>getQueuedBytes</p>
+	 *
+	 * @return the estimated memory used by pending operations, only
+	 * available with org.opennms.rrd.queuing.sharded=true
+	 */
+	public long getQueuedBytes();
+	/**
+	 * <p>getDiscardedOperations</p>
+	 *
+	 * @return the number of operations discarded because the queue was
+	 * full, only available with org.opennms.rrd.queuing.sharded=true
+	 */
+	public long getDiscardedOperations();
 
 }
@@ -0,0 +1,756 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.opennms.core.criteria.CriteriaBuilder;
+import org.opennms.core.criteria.restrictions.GtRestriction;
+import org.opennms.core.criteria.restrictions.NullRestriction;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.config.RTCConfigFactory;
+import org.opennms.netmgt.dao.api.MonitoredServiceDao;
+import org.opennms.netmgt.dao.api.OutageDao;
+import org.opennms.netmgt.events.api.EventConstants;
+import org.opennms.netmgt.events.api.EventListener;
+import org.opennms.netmgt.events.api.EventSubscriptionService;
+import org.opennms.netmgt.filter.api.FilterDao;
+import org.opennms.netmgt.model.OnmsMonitoredService;
+import org.opennms.netmgt.model.OnmsOutage;
+import org.opennms.netmgt.rtc.datablock.RTCCategory;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Parm;
+import org.opennms.netmgt.xml.rtc.Category;
+import org.opennms.netmgt.xml.rtc.EuiLevel;
+import org.opennms.netmgt.xml.rtc.Header;
+import org.opennms.netmgt.xml.rtc.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * This implementation of the {@link AvailabilityService} keeps the outages
+ * of every managed service in memory and updates them from events, so that
+ * the availability of a category is calculated without querying the
+ * database.
+ *
+ * <p>Each service is given a slot. The outages of a service are kept as
+ * pairs of lost and regained times in a <code>long[]</code> and are pruned
+ * once they fall out of the rolling window. The nodes in a category are
+ * kept in a {@link BitSet} that is only refreshed from the category rule
+ * after an event that may change the membership, or once it is older than
+ * the membership refresh interval.</p>
+ *
+ * <p>The services and outages are loaded from the database when the bean
+ * is created. Events received while loading are applied afterwards.</p>
+ */
+public class AvailabilityServiceIncrementalImpl implements AvailabilityService, EventListener, InitializingBean, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AvailabilityServiceIncrementalImpl.class);
+
+    private static final long MEMBERSHIP_REFRESH_INTERVAL = Long.getLong("org.opennms.rtc.incrementalAvailability.membershipRefreshInterval", 300000L);
+
+    /**
+     * The regained time of an outage that is still open.
+     */
+    private static final long OPEN = Long.MAX_VALUE;
+
+    private static final List<String> UEIS = Arrays.asList(
+        EventConstants.OUTAGE_CREATED_EVENT_UEI,
+        EventConstants.OUTAGE_RESOLVED_EVENT_UEI,
+        EventConstants.NODE_GAINED_SERVICE_EVENT_UEI,
+        EventConstants.SERVICE_DELETED_EVENT_UEI,
+        EventConstants.SERVICE_UNMANAGED_EVENT_UEI,
+        EventConstants.INTERFACE_DELETED_EVENT_UEI,
+        EventConstants.NODE_DELETED_EVENT_UEI,
+        EventConstants.INTERFACE_REPARENTED_EVENT_UEI,
+        EventConstants.NODE_CATEGORY_MEMBERSHIP_CHANGED_EVENT_UEI,
+        EventConstants.ASSET_INFO_CHANGED_EVENT_UEI
+    );
+
+    @Autowired
+    private FilterDao m_filterDao;
+
+    @Autowired
+    private MonitoredServiceDao m_monitoredServiceDao;
+
+    @Autowired
+    private OutageDao m_outageDao;
+
+    @Autowired
+    private TransactionTemplate m_transactionTemplate;
+
+    @Autowired
+    private EventSubscriptionService m_eventSubscriptionService;
+
+    @Autowired
+    private RTCConfigFactory m_configFactory;
+
+    /**
+     * The longest window availability can be calculated for. Outages that
+     * were resolved before it are pruned.
+     */
+    private long m_rollingWindow = 24L * 60L * 60L * 1000L;
+
+    /**
+     * Guards all of the fields below. Events take the write lock, queries
+     * the read lock.
+     */
+    private final ReentrantReadWriteLock m_lock = new ReentrantReadWriteLock();
+
+    /**
+     * Events received before the services and outages were loaded, or
+     * <code>null</code> once they are.
+     */
+    private List<Event> m_pendingEvents = new ArrayList<Event>();
+
+    private final Map<String, Integer> m_slots = new HashMap<String, Integer>();
+    private final Map<Integer, int[]> m_slotsByNode = new HashMap<Integer, int[]>();
+    private final Map<String, Integer> m_serviceIds = new HashMap<String, Integer>();
+    private final List<String> m_serviceNames = new ArrayList<String>();
+
+    private int[] m_nodeIds = new int[0];
+    private String[] m_addresses = new String[0];
+    private int[] m_services = new int[0];
+    private long[][] m_outages = new long[0][];
+    private int[] m_outageLengths = new int[0];
+    private int m_slotCount = 0;
+    private int[] m_freeSlots = new int[0];
+    private int m_freeSlotCount = 0;
+
+    /**
+     * The nodes in each category, keyed by label. Incrementing the
+     * generation invalidates all of them.
+     */
+    private final Map<String, Membership> m_memberships = new ConcurrentHashMap<String, Membership>();
+    private final AtomicInteger m_membershipGeneration = new AtomicInteger();
+
+    private static class Membership {
+        private final String m_rule;
+        private final int m_generation;
+        private final long m_created;
+        private final BitSet m_nodes;
+
+        public Membership(String rule, int generation, long created, BitSet nodes) {
+            m_rule = rule;
+            m_generation = generation;
+            m_created = created;
+            m_nodes = nodes;
+        }
+    }
+
+    /**
+     * A service, or an outage of a service, read from the database.
+     */
+    private static class LoadedService {
+        private final int m_nodeId;
+        private final String m_address;
+        private final String m_serviceName;
+        private final long m_lost;
+        private final long m_regained;
+
+        public LoadedService(int nodeId, String address, String serviceName, long lost, long regained) {
+            m_nodeId = nodeId;
+            m_address = address;
+            m_serviceName = serviceName;
+            m_lost = lost;
+            m_regained = regained;
+        }
+    }
+
+    public void setFilterDao(FilterDao filterDao) {
+        m_filterDao = filterDao;
+    }
+
+    public void setRollingWindow(long rollingWindow) {
+        m_rollingWindow = rollingWindow;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        m_rollingWindow = m_configFactory.getRollingWindow();
+
+        // Subscribe first so that no event is missed while loading
+        m_eventSubscriptionService.addEventListener(this, UEIS);
+
+        final long start = System.currentTimeMillis();
+        final List<List<LoadedService>> loaded = m_transactionTemplate.execute(status -> Arrays.asList(loadServices(), loadOutages(start - m_rollingWindow)));
+        load(loaded.get(0), loaded.get(1));
+        LOG.info("Loaded {} services and {} outages in {}ms", loaded.get(0).size(), loaded.get(1).size(), System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void destroy() {
+        m_eventSubscriptionService.removeEventListener(this);
+    }
+
+    private List<LoadedService> loadServices() {
+        final CriteriaBuilder builder = new CriteriaBuilder(OnmsMonitoredService.class)
+            .alias("ipInterface", "ipInterface")
+            .eq("ipInterface.isManaged", "M");
+
+        final List<LoadedService> services = new ArrayList<LoadedService>();
+        for (final OnmsMonitoredService service : m_monitoredServiceDao.findMatching(builder.toCriteria())) {
+            services.add(new LoadedService(service.getNodeId(), InetAddressUtils.str(service.getIpAddress()), service.getServiceName(), 0, 0));
+        }
+        return services;
+    }
+
+    private List<LoadedService> loadOutages(long windowStart) {
+        final CriteriaBuilder builder = new CriteriaBuilder(OnmsOutage.class)
+            // The outage is ongoing or was cleared somewhere in the window
+            .or(new NullRestriction("ifRegainedService"), new GtRestriction("ifRegainedService", new Date(windowStart)))
+            .alias("monitoredService", "monitoredService")
+            .alias("monitoredService.ipInterface", "ipInterface")
+            .eq("ipInterface.isManaged", "M")
+            .orderBy("ifLostService");
+
+        final List<LoadedService> outages = new ArrayList<LoadedService>();
+        for (final OnmsOutage outage : m_outageDao.findMatching(builder.toCriteria())) {
+            final OnmsMonitoredService service = outage.getMonitoredService();
+            final long regained = outage.getIfRegainedService() == null ? OPEN : outage.getIfRegainedService().getTime();
+            outages.add(new LoadedService(service.getNodeId(), InetAddressUtils.str(service.getIpAddress()), service.getServiceName(),
+                    outage.getIfLostService().getTime(), regained));
+        }
+        return outages;
+    }
+
+    /**
+     * Replaces the state with the given services and outages, which must
+     * be sorted by lost time, and applies the events that were received in
+     * the meantime.
+     */
+    private void load(List<LoadedService> services, List<LoadedService> outages) {
+        m_lock.writeLock().lock();
+        try {
+            for (final LoadedService service : services) {
+                addService(service.m_nodeId, service.m_address, service.m_serviceName);
+            }
+            for (final LoadedService outage : outages) {
+                final int slot = addService(outage.m_nodeId, outage.m_address, outage.m_serviceName);
+                appendOutage(slot, outage.m_lost, outage.m_regained);
+            }
+
+            final List<Event> pending = m_pendingEvents;
+            m_pendingEvents = null;
+            if (pending != null) {
+                handleEvents(pending);
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+        m_membershipGeneration.incrementAndGet();
+    }
+
+    /**
+     * Starts with no services or outages, without reading anything from the
+     * database.
+     */
+    protected void loadEmpty() {
+        load(Collections.<LoadedService>emptyList(), Collections.<LoadedService>emptyList());
+    }
+
+    /**
+     * Builds a map of configured categories, keyed by label.
+     *
+     * @return the categories
+     */
+    @Override
+    public Map<String, RTCCategory> getCategories() {
+        return RTCUtils.createCategoriesMap();
+    }
+
+    @Override
+    public EuiLevel getEuiLevel(RTCCategory category) {
+        return getEuiLevel(category, m_rollingWindow);
+    }
+
+    /**
+     * Calculates the category statistics over the given window, which can't
+     * be longer than the rolling window. Only the services of the nodes in
+     * the category are visited.
+     *
+     * @param category the category
+     * @param window the length of the window in milliseconds
+     * @return the statistics
+     */
+    public EuiLevel getEuiLevel(RTCCategory category, long window) {
+        Preconditions.checkArgument(0 < window && window <= m_rollingWindow, "window must be between 0 and the rolling window");
+
+        final Header header = new Header();
+        header.setVer("1.9a");
+        header.setMstation("");
+
+        final Date curDate = new Date();
+        final long curTime = curDate.getTime();
+        final long windowStart = curTime - window;
+
+        final EuiLevel level = new EuiLevel();
+        header.setCreated(EventConstants.formatToString(curDate));
+        level.setHeader(header);
+
+        final Category levelCat = new Category();
+        levelCat.setCatlabel(category.getLabel());
+
+        double outageTimeInCategory = 0.0;
+        int numServicesInCategory = 0;
+
+        final BitSet nodes = getNodes(category);
+
+        m_lock.readLock().lock();
+        try {
+            final BitSet serviceIds = getServiceIds(category);
+
+            for (int nodeId = nodes.nextSetBit(0); nodeId >= 0; nodeId = nodes.nextSetBit(nodeId + 1)) {
+                int numServices = 0;
+                int numServicesDown = 0;
+                long outageTime = 0;
+
+                final int[] slots = m_slotsByNode.get(nodeId);
+                if (slots != null) {
+                    for (final int slot : slots) {
+                        if (serviceIds != null && !serviceIds.get(m_services[slot])) {
+                            continue;
+                        }
+                        numServices++;
+                        outageTime += getOutageTime(slot, windowStart, curTime);
+                        if (isDown(slot)) {
+                            numServicesDown++;
+                        }
+                    }
+                }
+
+                // Bound the downtime by the length of the window, like AvailabilityServiceHibernateImpl does
+                outageTime = Math.min(outageTime, window);
+
+                final Node levelNode = new Node();
+                levelNode.setNodeid(nodeId);
+                levelNode.setNodevalue(RTCUtils.getOutagePercentage(outageTime, window, numServices));
+                levelNode.setNodesvccount(numServices);
+                levelNode.setNodesvcdowncount(numServicesDown);
+                levelCat.addNode(levelNode);
+
+                numServicesInCategory += numServices;
+                outageTimeInCategory += outageTime;
+            }
+        } finally {
+            m_lock.readLock().unlock();
+        }
+
+        levelCat.setCatvalue(RTCUtils.getOutagePercentage(outageTimeInCategory, window, numServicesInCategory));
+        level.addCategory(levelCat);
+
+        LOG.debug("Calculated availability statistics for {} with {} services.", category.getLabel(), numServicesInCategory);
+
+        return level;
+    }
+
+    /**
+     * Calculates the availability of all of the services of a node over the
+     * given window, which can't be longer than the rolling window.
+     *
+     * @param nodeId the node
+     * @param window the length of the window in milliseconds
+     * @return the availability percentage
+     */
+    public double getNodeAvailability(int nodeId, long window) {
+        Preconditions.checkArgument(0 < window && window <= m_rollingWindow, "window must be between 0 and the rolling window");
+
+        final long curTime = System.currentTimeMillis();
+        m_lock.readLock().lock();
+        try {
+            final int[] slots = m_slotsByNode.get(nodeId);
+            if (slots == null) {
+                return RTCUtils.getOutagePercentage(0, window, 0);
+            }
+            long outageTime = 0;
+            for (final int slot : slots) {
+                outageTime += getOutageTime(slot, curTime - window, curTime);
+            }
+            return RTCUtils.getOutagePercentage(Math.min(outageTime, window), window, slots.length);
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    private BitSet getNodes(RTCCategory category) {
+        final int generation = m_membershipGeneration.get();
+        final long now = System.currentTimeMillis();
+
+        Membership membership = m_memberships.get(category.getLabel());
+        if (membership == null
+                || membership.m_generation != generation
+                || !membership.m_rule.equals(category.getEffectiveRule())
+                || now - membership.m_created > MEMBERSHIP_REFRESH_INTERVAL) {
+            final BitSet nodes = new BitSet();
+            for (final Integer nodeId : RTCUtils.getNodeIdsForCategory(m_filterDao, category)) {
+                nodes.set(nodeId);
+            }
+            membership = new Membership(category.getEffectiveRule(), generation, now, nodes);
+            m_memberships.put(category.getLabel(), membership);
+        }
+        return membership.m_nodes;
+    }
+
+    /**
+     * Returns the ids of the services in the category, or <code>null</code>
+     * if it includes all services.
+     */
+    private BitSet getServiceIds(RTCCategory category) {
+        final List<String> serviceNames = category.getServiceCollection();
+        if (serviceNames == null || serviceNames.isEmpty()) {
+            return null;
+        }
+        final BitSet serviceIds = new BitSet();
+        for (final String serviceName : serviceNames) {
+            final Integer serviceId = m_serviceIds.get(serviceName);
+            if (serviceId != null) {
+                serviceIds.set(serviceId);
+            }
+        }
+        return serviceIds;
+    }
+
+    private long getOutageTime(int slot, long windowStart, long windowEnd) {
+        final long[] outages = m_outages[slot];
+        final int length = m_outageLengths[slot];
+        long outageTime = 0;
+        for (int i = 0; i < length; i += 2) {
+            final long lostAt = Math.max(windowStart, outages[i]);
+            final long regainedAt = Math.min(windowEnd, outages[i + 1]);
+            if (regainedAt > lostAt) {
+                outageTime += regainedAt - lostAt;
+            }
+        }
+        return outageTime;
+    }
+
+    private boolean isDown(int slot) {
+        final int length = m_outageLengths[slot];
+        return length > 0 && m_outages[slot][length - 1] == OPEN;
+    }
+
+    @Override
+    public String getName() {
+        return "RTC:AvailabilityServiceIncrementalImpl";
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        onEvents(Collections.singletonList(event));
+    }
+
+    @Override
+    public void onEvents(List<Event> events) {
+        m_lock.writeLock().lock();
+        try {
+            if (m_pendingEvents != null) {
+                m_pendingEvents.addAll(events);
+            } else {
+                handleEvents(events);
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    private void handleEvents(List<Event> events) {
+        for (final Event event : events) {
+            try {
+                handleEvent(event);
+            } catch (Throwable t) {
+                LOG.warn("Unexpected exception processing event {}", event.getUei(), t);
+            }
+        }
+    }
+
+    private void handleEvent(Event event) {
+        final String uei = event.getUei();
+        if (uei == null) {
+            return;
+        }
+
+        final int nodeId = event.hasNodeid() ? event.getNodeid().intValue() : -1;
+        final String address = event.getInterfaceAddress() == null ? null : InetAddressUtils.str(event.getInterfaceAddress());
+        final String serviceName = event.getService();
+        final boolean hasService = nodeId != -1 && address != null && serviceName != null;
+
+        if (uei.equals(EventConstants.OUTAGE_CREATED_EVENT_UEI)) {
+            if (hasService && event.getTime() != null) {
+                outageCreated(addService(nodeId, address, serviceName), event.getTime().getTime());
+            }
+        } else if (uei.equals(EventConstants.OUTAGE_RESOLVED_EVENT_UEI)) {
+            final Integer slot = hasService ? m_slots.get(key(nodeId, address, serviceName)) : null;
+            if (slot != null && event.getTime() != null) {
+                outageResolved(slot, event.getTime().getTime());
+            }
+        } else if (uei.equals(EventConstants.NODE_GAINED_SERVICE_EVENT_UEI)) {
+            if (hasService) {
+                addService(nodeId, address, serviceName);
+                membershipChanged();
+            }
+        } else if (uei.equals(EventConstants.SERVICE_DELETED_EVENT_UEI) || uei.equals(EventConstants.SERVICE_UNMANAGED_EVENT_UEI)) {
+            final Integer slot = hasService ? m_slots.get(key(nodeId, address, serviceName)) : null;
+            if (slot != null) {
+                removeService(slot);
+                membershipChanged();
+            }
+        } else if (uei.equals(EventConstants.INTERFACE_DELETED_EVENT_UEI)) {
+            if (nodeId != -1 && address != null) {
+                for (final int slot : getSlots(nodeId, address)) {
+                    removeService(slot);
+                }
+                membershipChanged();
+            }
+        } else if (uei.equals(EventConstants.NODE_DELETED_EVENT_UEI)) {
+            final int[] slots = m_slotsByNode.get(nodeId);
+            if (slots != null) {
+                for (final int slot : slots) {
+                    removeService(slot);
+                }
+            }
+            membershipChanged();
+        } else if (uei.equals(EventConstants.INTERFACE_REPARENTED_EVENT_UEI)) {
+            final int oldNodeId = getIntParm(event, EventConstants.PARM_OLD_NODEID);
+            final int newNodeId = getIntParm(event, EventConstants.PARM_NEW_NODEID);
+            if (address != null && oldNodeId != -1 && newNodeId != -1) {
+                interfaceReparented(address, oldNodeId, newNodeId);
+            } else {
+                LOG.warn("{} ignored - info incomplete - ip/old nodeid/new nodeid: {}/{}/{}", uei, address, oldNodeId, newNodeId);
+            }
+            membershipChanged();
+        } else {
+            // nodeCategoryMembershipChanged and assetInfoChanged
+            membershipChanged();
+        }
+    }
+
+    private static int getIntParm(Event event, String name) {
+        final Parm parm = event.getParm(name);
+        if (parm == null || parm.getValue() == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(parm.getValue().getContent());
+        } catch (NumberFormatException e) {
+            LOG.warn("Parameter {} cannot be non-numeric", name, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Invalidates the nodes of all categories, since category rules can
+     * match on node, interface, service, asset and surveillance category
+     * fields alike.
+     */
+    private void membershipChanged() {
+        m_membershipGeneration.incrementAndGet();
+    }
+
+    private void interfaceReparented(String address, int oldNodeId, int newNodeId) {
+        for (final int slot : getSlots(oldNodeId, address)) {
+            final String serviceName = m_serviceNames.get(m_services[slot]);
+            final long[] outages = m_outages[slot];
+            final int length = m_outageLengths[slot];
+            removeService(slot);
+
+            final int newSlot = addService(newNodeId, address, serviceName);
+            m_outages[newSlot] = outages;
+            m_outageLengths[newSlot] = length;
+        }
+    }
+
+    private void outageCreated(int slot, long lostTime) {
+        final int length = m_outageLengths[slot];
+        if (length > 0 && (m_outages[slot][length - 1] == OPEN || m_outages[slot][length - 2] >= lostTime)) {
+            // Already known, i.e. loaded from the database before the event was handled
+            return;
+        }
+        prune(slot, System.currentTimeMillis() - m_rollingWindow);
+        appendOutage(slot, lostTime, OPEN);
+    }
+
+    private void outageResolved(int slot, long regainedTime) {
+        final int length = m_outageLengths[slot];
+        if (length > 0 && m_outages[slot][length - 1] == OPEN) {
+            m_outages[slot][length - 1] = Math.max(regainedTime, m_outages[slot][length - 2]);
+        }
+    }
+
+    private void appendOutage(int slot, long lost, long regained) {
+        long[] outages = m_outages[slot];
+        final int length = m_outageLengths[slot];
+        if (outages == null) {
+            outages = new long[4];
+        } else if (length + 2 > outages.length) {
+            outages = Arrays.copyOf(outages, outages.length * 2);
+        }
+        outages[length] = lost;
+        outages[length + 1] = regained;
+        m_outages[slot] = outages;
+        m_outageLengths[slot] = length + 2;
+    }
+
+    /**
+     * Removes the outages that were resolved before the cutoff.
+     */
+    private void prune(int slot, long cutoff) {
+        final long[] outages = m_outages[slot];
+        final int length = m_outageLengths[slot];
+        int start = 0;
+        while (start < length && outages[start + 1] != OPEN && outages[start + 1] <= cutoff) {
+            start += 2;
+        }
+        if (start > 0) {
+            System.arraycopy(outages, start, outages, 0, length - start);
+            m_outageLengths[slot] = length - start;
+        }
+    }
+
+    private static String key(int nodeId, String address, String serviceName) {
+        return nodeId + "/" + address + "/" + serviceName;
+    }
+
+    private int[] getSlots(int nodeId, String address) {
+        final int[] slots = m_slotsByNode.get(nodeId);
+        if (slots == null) {
+            return new int[0];
+        }
+        int count = 0;
+        final int[] matching = new int[slots.length];
+        for (final int slot : slots) {
+            if (address.equals(m_addresses[slot])) {
+                matching[count++] = slot;
+            }
+        }
+        return Arrays.copyOf(matching, count);
+    }
+
+    private int addService(int nodeId, String address, String serviceName) {
+        final String key = key(nodeId, address, serviceName);
+        final Integer existing = m_slots.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        Integer serviceId = m_serviceIds.get(serviceName);
+        if (serviceId == null) {
+            serviceId = m_serviceNames.size();
+            m_serviceIds.put(serviceName, serviceId);
+            m_serviceNames.add(serviceName);
+        }
+
+        final int slot;
+        if (m_freeSlotCount > 0) {
+            slot = m_freeSlots[--m_freeSlotCount];
+        } else {
+            slot = m_slotCount++;
+            if (slot == m_nodeIds.length) {
+                final int capacity = Math.max(1024, slot * 2);
+                m_nodeIds = Arrays.copyOf(m_nodeIds, capacity);
+                m_addresses = Arrays.copyOf(m_addresses, capacity);
+                m_services = Arrays.copyOf(m_services, capacity);
+                m_outages = Arrays.copyOf(m_outages, capacity);
+                m_outageLengths = Arrays.copyOf(m_outageLengths, capacity);
+            }
+        }
+
+        m_nodeIds[slot] = nodeId;
+        m_addresses[slot] = address;
+        m_services[slot] = serviceId;
+        m_outages[slot] = null;
+        m_outageLengths[slot] = 0;
+        m_slots.put(key, slot);
+
+        final int[] slots = m_slotsByNode.get(nodeId);
+        if (slots == null) {
+            m_slotsByNode.put(nodeId, new int[] { slot });
+        } else {
+            final int[] newSlots = Arrays.copyOf(slots, slots.length + 1);
+            newSlots[slots.length] = slot;
+            m_slotsByNode.put(nodeId, newSlots);
+        }
+        return slot;
+    }
+
+    private void removeService(int slot) {
+        final int nodeId = m_nodeIds[slot];
+        m_slots.remove(key(nodeId, m_addresses[slot], m_serviceNames.get(m_services[slot])));
+
+        final int[] slots = m_slotsByNode.get(nodeId);
+        if (slots.length == 1) {
+            m_slotsByNode.remove(nodeId);
+        } else {
+            final int[] newSlots = new int[slots.length - 1];
+            int i = 0;
+            for (final int s : slots) {
+                if (s != slot) {
+                    newSlots[i++] = s;
+                }
+            }
+            m_slotsByNode.put(nodeId, newSlots);
+        }
+
+        m_addresses[slot] = null;
+        m_outages[slot] = null;
+        m_outageLengths[slot] = 0;
+        if (m_freeSlotCount == m_freeSlots.length) {
+            m_freeSlots = Arrays.copyOf(m_freeSlots, Math.max(16, m_freeSlotCount * 2));
+        }
+        m_freeSlots[m_freeSlotCount++] = slot;
+    }
+
+    /**
+     * Returns the number of services that are tracked.
+     */
+    protected int getServiceCount() {
+        m_lock.readLock().lock();
+        try {
+            return m_slots.size();
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,573 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.scheduler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.core.fiber.PausableFiber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link Scheduler} backed by a hierarchical timing wheel.
+ *
+ * Scheduling a {@link ReadyRunnable} only appends it to a lock-free
+ * submission queue. A single timer thread moves submissions into the wheel
+ * and advances the wheel once per tick, so scheduling and expiring an item
+ * are constant time operations regardless of how many items are scheduled.
+ * The wheel has {@link #LEVELS} levels of {@link #SLOTS} slots each; items
+ * that are further out than the lowest level covers are cascaded down as
+ * their time approaches.
+ *
+ * Like the {@link LegacyScheduler}, an item is only handed to the thread
+ * pool once its time has come <em>and</em> {@link ReadyRunnable#isReady()}
+ * returns true. Items that are due but not ready are checked again after
+ * {@link #NOT_READY_RECHECK_MS} milliseconds. Items that throw a
+ * {@link PostponeNecessary} are rescheduled by their {@link Schedule} as
+ * before.
+ *
+ * The time between an item becoming due and it starting to run is recorded
+ * and available through {@link #getLagPercentile(double)}.
+ */
+public class TimingWheelScheduler implements Runnable, PausableFiber, Scheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheelScheduler.class);
+
+    /** The system property that makes the daemons use this scheduler instead of the {@link LegacyScheduler}. */
+    public static final String ENABLED_PROPERTY = "org.opennms.scheduler.timingWheel";
+
+    /** The default resolution of the wheel, in milliseconds. */
+    public static final long DEFAULT_TICK_MS = Long.getLong("org.opennms.scheduler.timingWheel.tick", 10);
+
+    /** How long to wait before checking an item that was due but not ready again. */
+    static final long NOT_READY_RECHECK_MS = 100;
+
+    private static final int SLOT_BITS = 8;
+
+    /** The number of slots per level. */
+    static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /** The number of levels in the wheel. */
+    static final int LEVELS = 4;
+
+    /** The largest number of ticks into the future an item can be placed. */
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    /** Upper bounds of the scheduling lag histogram buckets, in milliseconds. */
+    private static final long[] LAG_BUCKETS = { 0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+
+    /**
+     * A scheduled item. Entries are linked into the slots of the wheel and
+     * are only touched by the timer thread until they are handed to the
+     * thread pool.
+     */
+    private final class Entry implements Runnable {
+        private final ReadyRunnable m_runnable;
+        /** When the item becomes due, in nanoseconds on the timer's clock. */
+        private final long m_due;
+        /** Whether lag should be recorded for this item. */
+        private final boolean m_timed;
+        private long m_tick;
+        private Entry m_next;
+
+        private Entry(ReadyRunnable runnable, long due, boolean timed) {
+            m_runnable = runnable;
+            m_due = due;
+            m_timed = timed;
+        }
+
+        @Override
+        public void run() {
+            if (m_timed) {
+                recordLag(System.nanoTime() - m_due);
+            }
+            m_runnable.run();
+        }
+
+        @Override
+        public String toString() {
+            return m_runnable.toString() + " (ready in " + Math.max(0, TimeUnit.NANOSECONDS.toMillis(m_due - System.nanoTime())) + "ms)";
+        }
+    }
+
+    private final long m_tickNanos;
+
+    /** The value of {@link System#nanoTime()} that corresponds to tick 0. */
+    private final long m_origin = System.nanoTime();
+
+    /** m_wheel[level][slot] is the head of a singly linked list of entries. */
+    private final Entry[][] m_wheel = new Entry[LEVELS][SLOTS];
+
+    /** The next tick to be processed. Only used by the timer thread. */
+    private long m_currentTick = 0;
+
+    /** The number of entries in the wheel. Only used by the timer thread. */
+    private int m_inWheel = 0;
+
+    private final ConcurrentLinkedQueue<Entry> m_submissions = new ConcurrentLinkedQueue<Entry>();
+
+    /** The total number of items scheduled but not yet handed to the thread pool. */
+    private final AtomicInteger m_scheduled = new AtomicInteger();
+
+    private final ExecutorService m_runner;
+
+    private volatile int m_status;
+
+    private volatile Thread m_worker;
+
+    /** True while the timer thread is parked without a deadline. */
+    private volatile boolean m_idle = false;
+
+    private final AtomicLong m_numTasksExecuted = new AtomicLong();
+
+    private final AtomicLongArray m_lagCounts = new AtomicLongArray(LAG_BUCKETS.length + 1);
+
+    /**
+     * Constructs a new instance of the scheduler with the default tick.
+     *
+     * @param parent
+     *            String prepended to "Scheduler" to create fiber name
+     * @param maxSize
+     *            The maximum size of the thread pool.
+     */
+    public TimingWheelScheduler(final String parent, final int maxSize) {
+        this(parent, maxSize, DEFAULT_TICK_MS);
+    }
+
+    /**
+     * Constructs a new instance of the scheduler.
+     *
+     * @param parent
+     *            String prepended to "Scheduler" to create fiber name
+     * @param maxSize
+     *            The maximum size of the thread pool.
+     * @param tickMs
+     *            The resolution of the wheel in milliseconds.
+     */
+    public TimingWheelScheduler(final String parent, final int maxSize, final long tickMs) {
+        Assert.isTrue(tickMs > 0, "tickMs must be greater than zero");
+        m_status = START_PENDING;
+        m_tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        m_runner = Executors.newFixedThreadPool(maxSize, new LogPreservingThreadFactory(parent, maxSize));
+    }
+
+    /**
+     * This method is used to schedule a ready runnable in the system. The
+     * runnable is run as soon as {@link ReadyRunnable#isReady()} returns true.
+     *
+     * @param runnable
+     *            The element to run.
+     * @param interval
+     *            Ignored, kept for compatibility with {@link LegacyScheduler#schedule(ReadyRunnable, long)}.
+     */
+    public void schedule(final ReadyRunnable runnable, final long interval) {
+        LOG.debug("schedule: Adding ready runnable {} at interval {}", runnable, interval);
+        submit(new Entry(runnable, System.nanoTime(), false));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void schedule(final long interval, final ReadyRunnable runnable) {
+        LOG.debug("schedule: Adding ready runnable {} at interval {}", runnable, interval);
+        submit(new Entry(runnable, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, interval)), true));
+    }
+
+    private void submit(final Entry entry) {
+        m_submissions.offer(entry);
+        m_scheduled.incrementAndGet();
+        if (m_idle) {
+            LockSupport.unpark(m_worker);
+        }
+    }
+
+    /**
+     * <p>getCurrentTime</p>
+     *
+     * @return a long.
+     */
+    @Override
+    public long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * <p>start</p>
+     */
+    @Override
+    public synchronized void start() {
+        Assert.state(m_worker == null, "The fiber has already run or is running");
+
+        m_worker = new Thread(this, getName());
+        m_worker.start();
+        m_status = STARTING;
+
+        LOG.info("start: scheduler started");
+    }
+
+    /**
+     * <p>stop</p>
+     */
+    @Override
+    public synchronized void stop() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+
+        m_status = STOP_PENDING;
+        m_worker.interrupt();
+        m_runner.shutdown();
+
+        LOG.info("stop: scheduler stopped");
+    }
+
+    /**
+     * <p>pause</p>
+     */
+    @Override
+    public synchronized void pause() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+        Assert.state(m_status != STOPPED && m_status != STOP_PENDING, "The fiber is not running or a stop is pending");
+
+        if (m_status == PAUSED) {
+            return;
+        }
+
+        m_status = PAUSE_PENDING;
+        notifyAll();
+        // the worker may be parked waiting for work
+        LockSupport.unpark(m_worker);
+    }
+
+    /**
+     * <p>resume</p>
+     */
+    @Override
+    public synchronized void resume() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+        Assert.state(m_status != STOPPED && m_status != STOP_PENDING, "The fiber is not running or a stop is pending");
+
+        if (m_status == RUNNING) {
+            return;
+        }
+
+        m_status = RESUME_PENDING;
+        notifyAll();
+    }
+
+    /**
+     * <p>getStatus</p>
+     *
+     * @return a int.
+     */
+    @Override
+    public synchronized int getStatus() {
+        if (m_worker != null && m_worker.isAlive() == false) {
+            m_status = STOPPED;
+        }
+        return m_status;
+    }
+
+    /**
+     * Returns the name of this fiber.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    @Override
+    public String getName() {
+        return m_runner.toString();
+    }
+
+    /**
+     * Returns total number of elements currently scheduled.
+     *
+     * @return the number of items that have not been handed to the thread pool yet
+     */
+    public int getScheduled() {
+        return m_scheduled.get();
+    }
+
+    /**
+     * Returns the pool of threads that are used to executed the runnable
+     * instances scheduled by the class' instance.
+     *
+     * @return thread pool
+     */
+    public ExecutorService getRunner() {
+        return m_runner;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getNumTasksExecuted() {
+        return m_numTasksExecuted.get();
+    }
+
+    /**
+     * Returns an upper bound for the given percentile of the time between
+     * items becoming due and starting to run.
+     *
+     * @param percentile a value between 0 and 100
+     * @return the lag in milliseconds, or -1 if no item has run yet or the
+     *         percentile falls above the largest tracked lag
+     */
+    public long getLagPercentile(final double percentile) {
+        long total = 0;
+        for (int i = 0; i < m_lagCounts.length(); i++) {
+            total += m_lagCounts.get(i);
+        }
+        if (total == 0) {
+            return -1;
+        }
+        final long rank = (long)Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < LAG_BUCKETS.length; i++) {
+            seen += m_lagCounts.get(i);
+            if (seen >= rank) {
+                return LAG_BUCKETS[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of items for which the scheduling lag was recorded
+     */
+    public long getLagSamples() {
+        long total = 0;
+        for (int i = 0; i < m_lagCounts.length(); i++) {
+            total += m_lagCounts.get(i);
+        }
+        return total;
+    }
+
+    private void recordLag(final long lagNanos) {
+        final long lag = TimeUnit.NANOSECONDS.toMillis(Math.max(0, lagNanos));
+        int i = 0;
+        while (i < LAG_BUCKETS.length && lag > LAG_BUCKETS[i]) {
+            i++;
+        }
+        m_lagCounts.incrementAndGet(i);
+    }
+
+    /**
+     * The main method of the scheduler. Advances the wheel once per tick and
+     * hands the items that are due and ready to the thread pool.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            // don't lose a pause() or stop() that came in before the thread got here
+            if (m_status == STARTING) {
+                m_status = RUNNING;
+            }
+        }
+
+        LOG.debug("run: scheduler running");
+
+        try {
+            for (;;) {
+                synchronized (this) {
+                    if (m_status != RUNNING && m_status != PAUSED && m_status != PAUSE_PENDING && m_status != RESUME_PENDING) {
+                        LOG.debug("run: status = {}, time to exit", m_status);
+                        break;
+                    }
+
+                    // if paused or pause pending then block
+                    while (m_status == PAUSE_PENDING || m_status == PAUSED) {
+                        if (m_status == PAUSE_PENDING) {
+                            LOG.debug("run: pausing.");
+                        }
+                        m_status = PAUSED;
+                        wait();
+                    }
+
+                    if (m_status == RESUME_PENDING) {
+                        LOG.debug("run: resuming.");
+                        m_status = RUNNING;
+                    }
+                }
+
+                final Entry expired = advance(System.nanoTime());
+                dispatch(expired);
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                sleepUntilNextTick();
+            }
+        } catch (final InterruptedException e) {
+            LOG.debug("run: interrupted");
+        } catch (final RejectedExecutionException e) {
+            LOG.debug("run: thread pool has been shut down");
+        }
+
+        LOG.debug("run: scheduler exiting, state = STOPPED");
+        synchronized (this) {
+            m_status = STOPPED;
+        }
+    }
+
+    private void sleepUntilNextTick() {
+        if (m_inWheel == 0 && m_submissions.isEmpty()) {
+            m_idle = true;
+            // re-check after publishing the flag so a concurrent submit can't be missed
+            if (m_submissions.isEmpty()) {
+                LockSupport.park(this);
+            }
+            m_idle = false;
+        } else {
+            final long wait = m_origin + m_currentTick * m_tickNanos - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    /**
+     * Moves new submissions into the wheel and processes every tick up to the
+     * given time.
+     *
+     * @return the entries that are due, linked through {@link Entry#m_next}
+     */
+    private Entry advance(final long now) {
+        final long nowTick = (now - m_origin) / m_tickNanos;
+        if (m_inWheel == 0 && m_currentTick <= nowTick) {
+            // nothing to cascade, skip straight ahead
+            m_currentTick = nowTick;
+        }
+
+        Entry expired = null;
+        Entry submission;
+        while ((submission = m_submissions.poll()) != null) {
+            submission.m_tick = ticksFor(submission.m_due);
+            expired = insert(submission, expired);
+        }
+
+        while (m_currentTick <= nowTick) {
+            final long tick = m_currentTick;
+            if ((tick & SLOT_MASK) == 0 && tick != 0) {
+                // Cascade from the highest level whose slot index rolled over
+                int level = 1;
+                while (level < LEVELS - 1 && ((tick >>> (SLOT_BITS * level)) & SLOT_MASK) == 0) {
+                    level++;
+                }
+                for (int l = level; l >= 1; l--) {
+                    final int slot = (int)((tick >>> (SLOT_BITS * l)) & SLOT_MASK);
+                    Entry entry = m_wheel[l][slot];
+                    m_wheel[l][slot] = null;
+                    while (entry != null) {
+                        final Entry next = entry.m_next;
+                        m_inWheel--;
+                        expired = insert(entry, expired);
+                        entry = next;
+                    }
+                }
+            }
+
+            final int slot = (int)(tick & SLOT_MASK);
+            Entry entry = m_wheel[0][slot];
+            m_wheel[0][slot] = null;
+            while (entry != null) {
+                final Entry next = entry.m_next;
+                m_inWheel--;
+                entry.m_next = expired;
+                expired = entry;
+                entry = next;
+            }
+            m_currentTick++;
+        }
+        return expired;
+    }
+
+    /**
+     * Places the entry in the wheel, or prepends it to the expired list if
+     * it is already due.
+     */
+    private Entry insert(final Entry entry, final Entry expired) {
+        final long delta = entry.m_tick - m_currentTick;
+        if (delta < 0) {
+            entry.m_next = expired;
+            return entry;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        final int slot = (int)((entry.m_tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        entry.m_next = m_wheel[level][slot];
+        m_wheel[level][slot] = entry;
+        m_inWheel++;
+        return expired;
+    }
+
+    /**
+     * @return the first tick at or after the given time, relative to the
+     *         origin of the wheel
+     */
+    private long ticksFor(final long due) {
+        final long offset = due - m_origin;
+        final long tick = offset <= 0 ? 0 : (offset + m_tickNanos - 1) / m_tickNanos;
+        return Math.min(tick, m_currentTick + MAX_TICKS);
+    }
+
+    /**
+     * Hands the ready entries to the thread pool and puts the others back
+     * into the wheel to be checked again later.
+     */
+    private void dispatch(Entry entry) {
+        final long recheck = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NOT_READY_RECHECK_MS);
+        while (entry != null) {
+            final Entry next = entry.m_next;
+            entry.m_next = null;
+
+            if (entry.m_runnable.isReady()) {
+                LOG.debug("run: found ready runnable {}", entry);
+                m_scheduled.decrementAndGet();
+                m_runner.execute(entry);
+                m_numTasksExecuted.incrementAndGet();
+            } else {
+                // Check again later, keeping the original due time for the lag statistics
+                entry.m_tick = ticksFor(recheck);
+                insert(entry, null);
+            }
+            entry = next;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.syslogd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.opennms.netmgt.config.syslogd.HideMatch;
+import org.opennms.netmgt.config.syslogd.HideMessage;
+import org.opennms.netmgt.config.syslogd.UeiList;
+import org.opennms.netmgt.config.syslogd.UeiMatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The &lt;match&gt; rules of a &lt;ueiList&gt; or a &lt;hideMessage&gt;,
+ * compiled when the configuration is loaded.
+ *
+ * All the substrings of the substring rules, and the literal strings that
+ * a text must contain for a regular expression rule to match it, are
+ * looked for in a single pass over the text with a {@link SubstringMatcher}.
+ * Only the regular expressions of the rules whose literal strings were all
+ * found need to be run.
+ */
+final class CompiledMatchList {
+    private static final Logger LOG = LoggerFactory.getLogger(CompiledMatchList.class);
+
+    private static final int NONE = 0;
+    private static final int SUBSTRING = 1;
+    private static final int REGEX = 2;
+
+    /**
+     * The escapes that match a single character from a class, or nothing,
+     * and don't take an argument.
+     */
+    private static final String SIMPLE_ESCAPES = "dDsSwWbBAGZzhHvVRtnrfae";
+
+    private static final List<String> NO_LITERALS = Collections.emptyList();
+
+    private final Object m_source;
+    private final int m_size;
+    private final int[] m_kinds;
+    private final Pattern[] m_patterns;
+
+    /**
+     * For each rule, the positions in {@link #m_literals} of the strings a
+     * text must contain to match it, or null if the rule never matches.
+     */
+    private final int[][] m_required;
+
+    private final SubstringMatcher m_literals;
+
+    private CompiledMatchList(final Object source, final int[] kinds, final String[] expressions) {
+        m_source = source;
+        m_size = kinds.length;
+        m_kinds = kinds;
+        m_patterns = new Pattern[m_size];
+        m_required = new int[m_size][];
+
+        final Map<String, Integer> positions = new HashMap<String, Integer>();
+        final List<String> literals = new ArrayList<String>();
+        for (int i = 0; i < m_size; i++) {
+            final List<String> required;
+            if (kinds[i] == SUBSTRING) {
+                required = Collections.singletonList(expressions[i]);
+            } else if (kinds[i] == REGEX) {
+                try {
+                    m_patterns[i] = Pattern.compile(expressions[i], Pattern.MULTILINE);
+                } catch (final PatternSyntaxException e) {
+                    LOG.warn("Failed to compile regex pattern '{}'", expressions[i], e);
+                    continue;
+                }
+                required = getRequiredLiterals(expressions[i]);
+            } else {
+                continue;
+            }
+
+            m_required[i] = new int[required.size()];
+            for (int j = 0; j < required.size(); j++) {
+                Integer position = positions.get(required.get(j));
+                if (position == null) {
+                    position = literals.size();
+                    literals.add(required.get(j));
+                    positions.put(required.get(j), position);
+                }
+                m_required[i][j] = position;
+            }
+        }
+        m_literals = new SubstringMatcher(literals);
+    }
+
+    /**
+     * Compiles the rules of a &lt;ueiList&gt;.
+     */
+    static CompiledMatchList compile(final UeiList ueiList) {
+        final List<UeiMatch> ueiMatches = ueiList.getUeiMatchCollection();
+        final int[] kinds = new int[ueiMatches.size()];
+        final String[] expressions = new String[ueiMatches.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            final String type = ueiMatches.get(i).getMatch().getType();
+            kinds[i] = "substr".equals(type) ? SUBSTRING : (type != null && type.startsWith("regex") ? REGEX : NONE);
+            expressions[i] = ueiMatches.get(i).getMatch().getExpression();
+        }
+        return new CompiledMatchList(ueiList, kinds, expressions);
+    }
+
+    /**
+     * Compiles the rules of a &lt;hideMessage&gt;.
+     */
+    static CompiledMatchList compile(final HideMessage hideMessage) {
+        final List<HideMatch> hideMatches = hideMessage.getHideMatchCollection();
+        final int[] kinds = new int[hideMatches.size()];
+        final String[] expressions = new String[hideMatches.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            final String type = hideMatches.get(i).getMatch().getType();
+            kinds[i] = "substr".equals(type) ? SUBSTRING : ("regex".equals(type) ? REGEX : NONE);
+            expressions[i] = hideMatches.get(i).getMatch().getExpression();
+        }
+        return new CompiledMatchList(hideMessage, kinds, expressions);
+    }
+
+    /**
+     * @return true if these rules were compiled from the given configuration
+     *         and the number of rules didn't change since
+     */
+    boolean isCompiledFrom(final Object source, final int size) {
+        return m_source == source && m_size == size;
+    }
+
+    /**
+     * @return the number of rules
+     */
+    int size() {
+        return m_size;
+    }
+
+    /**
+     * @return true if the rule at the given position is a substring rule
+     */
+    boolean isSubstring(final int position) {
+        return m_kinds[position] == SUBSTRING;
+    }
+
+    /**
+     * @return the compiled regular expression of the rule at the given
+     *         position, or null if it isn't a valid regular expression rule
+     */
+    Pattern getPattern(final int position) {
+        return m_patterns[position];
+    }
+
+    /**
+     * Finds the rules that can match the text: the substring rules whose
+     * substring occurs in the text, and the regular expression rules whose
+     * literal strings all occur in the text.
+     *
+     * @return a flag for each rule, true if the rule is a candidate
+     */
+    boolean[] getCandidates(final String text) {
+        final boolean[] found = new boolean[m_literals.size()];
+        m_literals.find(text, found);
+
+        final boolean[] candidates = new boolean[m_size];
+        for (int i = 0; i < m_size; i++) {
+            final int[] required = m_required[i];
+            if (required == null) {
+                continue;
+            }
+            boolean candidate = true;
+            for (final int position : required) {
+                if (!found[position]) {
+                    candidate = false;
+                    break;
+                }
+            }
+            candidates[i] = candidate;
+        }
+        return candidates;
+    }
+
+    /**
+     * @return true if any of the rules matches the text
+     */
+    boolean matchesAny(final String text) {
+        final boolean[] candidates = getCandidates(text);
+        for (int i = 0; i < m_size; i++) {
+            if (candidates[i] && (m_kinds[i] == SUBSTRING || m_patterns[i].matcher(text).find())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns literal strings that any text matched by the regular
+     * expression must contain: the runs of literal characters outside of
+     * groups.  Regular expressions with an alternation outside of a group,
+     * inline flags, quotes, back references or escapes that take an
+     * argument are not analyzed.
+     *
+     * @return the literal strings, or an empty list if there are none or
+     *         the expression isn't analyzed
+     */
+    static List<String> getRequiredLiterals(final String regex) {
+        final List<String> literals = new ArrayList<String>();
+        final StringBuilder literal = new StringBuilder();
+        boolean lastWasLiteral = false;
+        int depth = 0;
+
+        int i = 0;
+        final int length = regex.length();
+        while (i < length) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= length) {
+                    return NO_LITERALS;
+                }
+                final char escaped = regex.charAt(i + 1);
+                i += 2;
+                if (!Character.isLetterOrDigit(escaped)) {
+                    if (depth == 0) {
+                        literal.append(escaped);
+                        lastWasLiteral = true;
+                    }
+                    continue;
+                } else if (SIMPLE_ESCAPES.indexOf(escaped) < 0) {
+                    return NO_LITERALS;
+                }
+                // a predefined character class or a boundary
+                flush(literal, literals);
+                lastWasLiteral = false;
+                continue;
+            }
+
+            switch (c) {
+            case '[':
+                i = skipClass(regex, i);
+                if (i < 0) {
+                    return NO_LITERALS;
+                }
+                break;
+            case '(':
+                if (i + 2 < length && regex.charAt(i + 1) == '?' && ":=!<>".indexOf(regex.charAt(i + 2)) < 0) {
+                    // inline flags, like (?i)
+                    return NO_LITERALS;
+                }
+                depth++;
+                i++;
+                break;
+            case ')':
+                if (depth == 0) {
+                    return NO_LITERALS;
+                }
+                depth--;
+                i++;
+                break;
+            case '|':
+                if (depth == 0) {
+                    return NO_LITERALS;
+                }
+                i++;
+                break;
+            case '*':
+            case '?':
+            case '{':
+                // the quantified character is optional
+                if (depth == 0 && lastWasLiteral) {
+                    literal.setLength(literal.length() - 1);
+                    if (literal.length() > 0 && Character.isHighSurrogate(literal.charAt(literal.length() - 1))) {
+                        literal.setLength(literal.length() - 1);
+                    }
+                }
+                if (c == '{') {
+                    i = regex.indexOf('}', i);
+                    if (i < 0) {
+                        return NO_LITERALS;
+                    }
+                }
+                i++;
+                break;
+            case '+':
+            case '.':
+            case '^':
+            case '$':
+            case ']':
+            case '}':
+                i++;
+                break;
+            default:
+                if (depth == 0) {
+                    literal.append(c);
+                    lastWasLiteral = true;
+                }
+                i++;
+                continue;
+            }
+
+            if (depth == 0 || c == '(') {
+                flush(literal, literals);
+            }
+            lastWasLiteral = false;
+        }
+
+        if (depth != 0) {
+            return NO_LITERALS;
+        }
+        flush(literal, literals);
+        return literals;
+    }
+
+    private static void flush(final StringBuilder literal, final List<String> literals) {
+        if (literal.length() > 0) {
+            literals.add(literal.toString());
+            literal.setLength(0);
+        }
+    }
+
+    /**
+     * @return the position after the character class starting at the given position, or -1
+     */
+    private static int skipClass(final String regex, final int start) {
+        int i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        int depth = 1;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                    return -1;
+                }
+                i += 2;
+                continue;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+}
@@ -34,6 +34,7 @@ import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -47,7 +48,6 @@ import org.opennms.core.utils.InetAddressUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opennms.netmgt.config.SyslogdConfigFactory;
-import org.opennms.netmgt.config.syslogd.HideMatch;
 import org.opennms.netmgt.config.syslogd.HideMessage;
 import org.opennms.netmgt.config.syslogd.HostaddrMatch;
 import org.opennms.netmgt.config.syslogd.HostnameMatch;
@@ -97,10 +97,17 @@ final class ConvertToEvent {
 
     private Event m_event;
 
-    private static Class<? extends SyslogParser> m_parserClass = null;
+    /**
+     * The <code>getParser</code> method of the configured parser class.
+     */
+    private static volatile Method m_parserFactory = null;
 
     private static Map<String,Pattern> m_patterns = new ConcurrentHashMap<String,Pattern>();
 
+    private static volatile CompiledMatchList m_compiledUeiList = null;
+
+    private static volatile CompiledMatchList m_compiledHideMessage = null;
+
     /**
      * Private constructor to prevent the used of <em>new</em> except by the
      * <code>make</code> method.
@@ -116,8 +123,10 @@ final class ConvertToEvent {
     }
 
     public static void invalidate() {
-        m_parserClass = null;
+        m_parserFactory = null;
         m_patterns.clear();
+        m_compiledUeiList = null;
+        m_compiledHideMessage = null;
     }
 
     /**
@@ -154,19 +163,62 @@ final class ConvertToEvent {
                                final int len, final String matchPattern, final int hostGroup, final int messageGroup,
                                final UeiList ueiList, final HideMessage hideMessage, final String discardUei)
             throws UnsupportedEncodingException, MessageDiscardedException {
-        if (m_parserClass == null) {
+        String deZeroedData = new String(data, 0, len, "US-ASCII");
+        if (deZeroedData.endsWith("\0")) {
+            deZeroedData = deZeroedData.substring(0, deZeroedData.length() - 1);
+        }
+        return make(addr, port, deZeroedData, ueiList, hideMessage, discardUei);
+    }
+
+    /**
+     * Constructs a new event encapsulation instance based upon the
+     * information passed to the method. The remaining bytes of the buffer
+     * are decoded into a string using the <tt>US-ASCII</tt> character
+     * encoding, without copying them to an intermediate array.  The
+     * position of the buffer is left unchanged.
+     *
+     * @param addr The remote agent's address.
+     * @param port The remote agent's port
+     * @param data The message in US-ASCII encoding.
+     * @throws MessageDiscardedException 
+     */
+    static ConvertToEvent make(final InetAddress addr, final int port, final ByteBuffer data,
+                               final UeiList ueiList, final HideMessage hideMessage, final String discardUei)
+            throws MessageDiscardedException {
+        final int start = data.position();
+        int end = data.limit();
+        if (end > start && data.get(end - 1) == 0) {
+            end--;
+        }
+        final char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            final byte b = data.get(i);
+            // the replacement character, like the US-ASCII decoder
+            chars[i - start] = b < 0 ? '\uFFFD' : (char)b;
+        }
+        return make(addr, port, new String(chars), ueiList, hideMessage, discardUei);
+    }
+
+    private static ConvertToEvent make(final InetAddress addr, final int port, final String deZeroedData,
+                                       final UeiList ueiList, final HideMessage hideMessage, final String discardUei)
+            throws MessageDiscardedException {
+        Method parserFactory = m_parserFactory;
+        if (parserFactory == null) {
+            Class<? extends SyslogParser> parserClass;
             final String parser = SyslogdConfigFactory.getInstance().getParser();
             try {
-                m_parserClass = Class.forName(parser).asSubclass(SyslogParser.class);
+                parserClass = Class.forName(parser).asSubclass(SyslogParser.class);
             } catch (final Exception ex) {
                 LOG.debug("Unable to instantiate Syslog parser class specified in config: {}", parser, ex);
-                m_parserClass = CustomSyslogParser.class;
+                parserClass = CustomSyslogParser.class;
             }
-        }
-
-        String deZeroedData = new String(data, 0, len, "US-ASCII");
-        if (deZeroedData.endsWith("\0")) {
-            deZeroedData = deZeroedData.substring(0, deZeroedData.length() - 1);
+            try {
+                parserFactory = parserClass.getDeclaredMethod("getParser", String.class);
+            } catch (final Exception ex) {
+                LOG.debug("Unable to get parser for class '{}'", parserClass.getName(), ex);
+                throw new MessageDiscardedException(ex);
+            }
+            m_parserFactory = parserFactory;
         }
 
         final ConvertToEvent e = new ConvertToEvent(addr, port, deZeroedData);
@@ -175,11 +227,9 @@ final class ConvertToEvent {
 
         final SyslogParser parser;
         try {
-            Method m = m_parserClass.getDeclaredMethod("getParser", String.class);
-            Object[] args = new Object[] { e.m_eventXML };
-            parser = (SyslogParser)m.invoke(ConvertToEvent.class, args);
+            parser = (SyslogParser)parserFactory.invoke(ConvertToEvent.class, e.m_eventXML);
         } catch (final Exception ex) {
-            LOG.debug("Unable to get parser for class '{}'", m_parserClass.getName(), ex);
+            LOG.debug("Unable to get parser for class '{}'", parserFactory.getDeclaringClass().getName(), ex);
             throw new MessageDiscardedException(ex);
         }
 
@@ -239,69 +289,19 @@ final class ConvertToEvent {
         * node to match against nodeId.
          */
 
-        Pattern msgPat = null;
-        Matcher msgMat = null;
-
         // Time to verify UEI matching.
-
-        final String fullText = message.getFullText();
-        final String matchedText = message.getMatchedMessage();
-
-        final List<UeiMatch> ueiMatch = ueiList == null? null : ueiList.getUeiMatchCollection();
-        if (ueiMatch == null) {
+        if (ueiList == null) {
             LOG.warn("No ueiList configured.");
         } else {
-            for (final UeiMatch uei : ueiMatch) {
-                final boolean otherStuffMatches = matchFacility(uei.getFacilityCollection(), facilityTxt) &&
-                                                  matchSeverity(uei.getSeverityCollection(), priorityTxt) &&
-                                                  matchProcess(uei.getProcessMatch(), message.getProcessName()) && 
-                                                  matchHostname(uei.getHostnameMatch(), message.getHostName()) &&
-                                                  matchHostAddr(uei.getHostaddrMatch(), message.getHostAddress());
-                
-                if (otherStuffMatches && uei.getMatch().getType().equals("substr")) {
-                    if (matchSubstring(discardUei, bldr, matchedText, uei)) {
-                        break;
-                    }
-                } else if (otherStuffMatches && (uei.getMatch().getType().startsWith("regex"))) {
-                    if (matchRegex(message, uei, bldr, discardUei)) {
-                        break;
-                    }
-                }
-            }
+            matchUeiList(message, ueiList, discardUei, bldr);
         }
 
         // Time to verify if we need to hide the message
-        boolean doHide = false;
-        final List<HideMatch> hideMatch = hideMessage == null? null : hideMessage.getHideMatchCollection();
-        if (hideMatch == null) {
+        if (hideMessage == null) {
             LOG.warn("No hideMessage configured.");
-        } else {
-            for (final HideMatch hide : hideMatch) {
-                if (hide.getMatch().getType().equals("substr")) {
-                    if (fullText.contains(hide.getMatch().getExpression())) {
-                        // We should hide the message based on this match
-                    	doHide = true;
-                    }            	
-                } else if (hide.getMatch().getType().equals("regex")) {
-                	try {
-                    	msgPat = Pattern.compile(hide.getMatch().getExpression(), Pattern.MULTILINE);
-                    	msgMat = msgPat.matcher(fullText);            		
-                	} catch (PatternSyntaxException pse) {
-			    LOG.warn("Failed to compile regex pattern '{}'", hide.getMatch().getExpression(), pse);
-                		msgMat = null;
-                	}
-                	if ((msgMat != null) && (msgMat.find())) {
-                        // We should hide the message based on this match
-                		doHide = true;
-                	}
-                }
-                if (doHide) {
-                    LOG.debug("Hiding syslog message from Event - May contain sensitive data");
-                    message.setMessage(HIDDEN_MESSAGE);
-    	            // We want to stop here, no point in checking further hideMatches
-    	            break;
-                }
-            }
+        } else if (matchHideMessage(message, hideMessage)) {
+            LOG.debug("Hiding syslog message from Event - May contain sensitive data");
+            message.setMessage(HIDDEN_MESSAGE);
         }
 
         // Using parms provides configurability.
@@ -325,6 +325,72 @@ final class ConvertToEvent {
         return e;
     }
 
+    /**
+     * Sets the UEI of the event, and the parameters of a regular expression
+     * match, according to the first &lt;ueiMatch&gt; that matches the message.
+     *
+     * @throws MessageDiscardedException if the matching UEI is the discard UEI
+     */
+    static void matchUeiList(final SyslogMessage message, final UeiList ueiList, final String discardUei, final EventBuilder bldr) throws MessageDiscardedException {
+        final List<UeiMatch> ueiMatch = ueiList.getUeiMatchCollection();
+        final CompiledMatchList compiled = getCompiledUeiList(ueiList);
+
+        final String priorityTxt = message.getSeverity().toString();
+        final String facilityTxt = message.getFacility().toString();
+        final String matchedText = message.getMatchedMessage();
+        final String text = matchedText != null ? matchedText : message.getFullText();
+
+        // Only the rules whose substring, or the literal parts of whose
+        // regex, are in the message can match it
+        final boolean[] candidates = compiled.getCandidates(text);
+        for (int i = 0; i < candidates.length; i++) {
+            if (!candidates[i]) {
+                continue;
+            }
+            final UeiMatch uei = ueiMatch.get(i);
+            final boolean otherStuffMatches = matchFacility(uei.getFacilityCollection(), facilityTxt) &&
+                                              matchSeverity(uei.getSeverityCollection(), priorityTxt) &&
+                                              matchProcess(uei.getProcessMatch(), message.getProcessName()) && 
+                                              matchHostname(uei.getHostnameMatch(), message.getHostName()) &&
+                                              matchHostAddr(uei.getHostaddrMatch(), message.getHostAddress());
+
+            if (otherStuffMatches && compiled.isSubstring(i)) {
+                if (matchedText != null && matchSubstring(discardUei, bldr, uei)) {
+                    break;
+                }
+            } else if (otherStuffMatches) {
+                if (matchRegex(message, text, uei, compiled.getPattern(i), bldr, discardUei)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if any &lt;hideMatch&gt; matches the message
+     */
+    static boolean matchHideMessage(final SyslogMessage message, final HideMessage hideMessage) {
+        return getCompiledHideMessage(hideMessage).matchesAny(message.getFullText());
+    }
+
+    private static CompiledMatchList getCompiledUeiList(final UeiList ueiList) {
+        CompiledMatchList compiled = m_compiledUeiList;
+        if (compiled == null || !compiled.isCompiledFrom(ueiList, ueiList.getUeiMatchCount())) {
+            compiled = CompiledMatchList.compile(ueiList);
+            m_compiledUeiList = compiled;
+        }
+        return compiled;
+    }
+
+    private static CompiledMatchList getCompiledHideMessage(final HideMessage hideMessage) {
+        CompiledMatchList compiled = m_compiledHideMessage;
+        if (compiled == null || !compiled.isCompiledFrom(hideMessage, hideMessage.getHideMatchCount())) {
+            compiled = CompiledMatchList.compile(hideMessage);
+            m_compiledHideMessage = compiled;
+        }
+        return compiled;
+    }
+
     private static boolean matchFind(final String expression, final String input, final String context) {
         final Pattern pat = getPattern(expression);
         if (pat == null) {
@@ -405,42 +471,32 @@ final class ConvertToEvent {
         return msgPat;
     }
 
-    private static boolean matchSubstring(final String discardUei, final EventBuilder bldr, String message, final UeiMatch uei) throws MessageDiscardedException {
-        boolean doIMatch = false;
+    /**
+     * Applies a substring match that was found in the message.
+     */
+    private static boolean matchSubstring(final String discardUei, final EventBuilder bldr, final UeiMatch uei) throws MessageDiscardedException {
         boolean traceEnabled = LOG.isTraceEnabled();
-        if (message.contains(uei.getMatch().getExpression())) {
-            if (discardUei.equals(uei.getUei())) {
-                if (traceEnabled) LOG.trace("Specified UEI '{}' is same as discard-uei, discarding this message.", uei.getUei());
-                throw new MessageDiscardedException();
-            } else {
-                //We can pass a new UEI on this
-		    if (traceEnabled) LOG.trace("Changed the UEI of a Syslogd event, based on substring match, to : {}", uei.getUei());
-                bldr.setUei(uei.getUei());
-                // I think we want to stop processing here so the first
-                // ueiMatch wins, right?
-                doIMatch = true;
-            }
+        if (discardUei.equals(uei.getUei())) {
+            if (traceEnabled) LOG.trace("Specified UEI '{}' is same as discard-uei, discarding this message.", uei.getUei());
+            throw new MessageDiscardedException();
         } else {
-            if (traceEnabled) LOG.trace("No substring match for text of a Syslogd event to : {}", uei.getMatch().getExpression());
+            //We can pass a new UEI on this
+            if (traceEnabled) LOG.trace("Changed the UEI of a Syslogd event, based on substring match, to : {}", uei.getUei());
+            bldr.setUei(uei.getUei());
+            // I think we want to stop processing here so the first
+            // ueiMatch wins, right?
+            return true;
         }
-        return doIMatch;
     }
 
-    private static boolean matchRegex(final SyslogMessage message, final UeiMatch uei, final EventBuilder bldr, final String discardUei) throws MessageDiscardedException {
+    private static boolean matchRegex(final SyslogMessage message, final String text, final UeiMatch uei, final Pattern msgPat, final EventBuilder bldr, final String discardUei) throws MessageDiscardedException {
         boolean traceEnabled = LOG.isTraceEnabled();
         final String expression = uei.getMatch().getExpression();
-        final Pattern msgPat = getPattern(expression);
         final Matcher msgMat;
         if (msgPat == null) {
             LOG.debug("Unable to create pattern for expression '{}'", expression);
             return false;
         } else {
-            final String text;
-            if (message.getMatchedMessage() != null) {
-                text = message.getMatchedMessage();
-            } else {
-                text = message.getFullText();
-            }
             msgMat = msgPat.matcher(text);
         }
         if ((msgMat != null) && (msgMat.find())) {
@@ -39,9 +39,12 @@ import org.opennms.netmgt.config.SyslogdConfigFactory;
 
 public class CustomSyslogParser extends SyslogParser {
     private static final Logger LOG = LoggerFactory.getLogger(CustomSyslogParser.class);
-    private static final Pattern m_messageIdPattern = Pattern.compile("^((\\S+):\\s*)");
-    private static final Pattern m_datePattern = Pattern.compile("^((\\d\\d\\d\\d-\\d\\d-\\d\\d)\\s+)");
-    private static final Pattern m_oldDatePattern = Pattern.compile("^\\s*(\\S\\S\\S\\s+\\d{1,2}\\s+\\d\\d:\\d\\d:\\d\\d)\\s+");
+
+    /**
+     * The last compiled forwarding regular expression, so that it isn't
+     * compiled again for every message.
+     */
+    private static volatile Pattern m_lastForwardingPattern = null;
 
     private Pattern m_forwardingPattern;
     private int m_matchingGroupHost;
@@ -55,7 +58,13 @@ public class CustomSyslogParser extends SyslogParser {
         if (forwardingRegexp == null || forwardingRegexp.length() == 0) {
             throw new SyslogParserException("no forwarding regular expression defined");
         }
-        m_forwardingPattern = Pattern.compile(forwardingRegexp, Pattern.MULTILINE);
+        final Pattern lastForwardingPattern = m_lastForwardingPattern;
+        if (lastForwardingPattern != null && lastForwardingPattern.pattern().equals(forwardingRegexp)) {
+            m_forwardingPattern = lastForwardingPattern;
+        } else {
+            m_forwardingPattern = Pattern.compile(forwardingRegexp, Pattern.MULTILINE);
+            m_lastForwardingPattern = m_forwardingPattern;
+        }
         m_matchingGroupHost = config.getMatchingGroupHost();
         m_matchingGroupMessage = config.getMatchingGroupMessage();
     }
@@ -78,15 +87,7 @@ public class CustomSyslogParser extends SyslogParser {
             LOG.warn("Syslogd received an unparsable message!");
         }
 
-        int priCode = 0;
-        String priStr = message.substring(lbIdx + 1, rbIdx);
-
-        try {
-            priCode = Integer.parseInt(priStr);
-        } catch (final NumberFormatException ex) {
-            LOG.debug("ERROR Bad priority code '{}'", priStr);
-
-        }
+        final int priCode = parsePriority(message, lbIdx + 1, rbIdx);
 
         LOG.trace("priority code = {}", priCode);
 
@@ -95,30 +96,27 @@ public class CustomSyslogParser extends SyslogParser {
 
         message = message.substring(rbIdx + 1, message.length());
 
-        final Matcher idMatcher = m_messageIdPattern.matcher(message);
-        if (idMatcher.find()) {
-            final String messageId = idMatcher.group(2);
+        // The header fields are found by scanning the characters rather
+        // than with regular expressions, this being done for every message
+        final int messageIdEnd = findMessageId(message);
+        if (messageIdEnd > 0) {
+            final String messageId = message.substring(0, messageIdEnd);
             LOG.trace("found message ID '{}'", messageId);
             syslogMessage.setMessageID(messageId);
-            message = message.substring(idMatcher.group(1).length() - 1);
+            message = message.substring(skipSpaces(message, messageIdEnd + 1) - 1);
         }
 
         LOG.trace("message = {}", message);
         
-        Matcher oldDateMatcher = m_oldDatePattern.matcher(message);
-        if (!oldDateMatcher.find()) {
-            oldDateMatcher = null;
-        }
-        LOG.trace("stdMsg = {}", Boolean.toString(oldDateMatcher != null));
+        final int[] oldDate = findOldDate(message);
+        LOG.trace("stdMsg = {}", Boolean.toString(oldDate != null));
 
         String timestamp;
 
-        if (oldDateMatcher == null) {
-            final Matcher stampMatcher = m_datePattern.matcher(message);
-            if (stampMatcher.find()) {
-                timestamp = stampMatcher.group(2);
+        if (oldDate == null) {
+            if (isDate(message)) {
+                timestamp = message.substring(0, 10);
                 LOG.trace("found timestamp '{}'", timestamp);
-//                message = message.substring(stampMatcher.group(1).length());
             } else {
                 try {
                     timestamp = SyslogTimeStamp.getInstance().format(new Date());
@@ -128,8 +126,8 @@ public class CustomSyslogParser extends SyslogParser {
                 }
             }
         } else {
-            timestamp = oldDateMatcher.group(1);
-            message = oldDateMatcher.replaceFirst("");
+            timestamp = message.substring(oldDate[0], oldDate[1]);
+            message = message.substring(oldDate[2]);
         }
 
         LOG.trace("timestamp = {}", timestamp);
@@ -207,4 +205,120 @@ public class CustomSyslogParser extends SyslogParser {
 
         return syslogMessage;
     }
+
+    /**
+     * Parses the priority code between the given positions, without a
+     * substring in the common case of a code of up to three digits.
+     *
+     * @return the priority code, or 0 if it isn't a number
+     */
+    private static int parsePriority(final String message, final int start, final int end) {
+        if (end > start && end - start <= 3) {
+            int priCode = 0;
+            for (int i = start; i < end; i++) {
+                final char c = message.charAt(i);
+                if (c < '0' || c > '9') {
+                    priCode = -1;
+                    break;
+                }
+                priCode = priCode * 10 + (c - '0');
+            }
+            if (priCode >= 0) {
+                return priCode;
+            }
+        }
+
+        final String priStr = message.substring(start, end);
+        try {
+            return Integer.parseInt(priStr);
+        } catch (final NumberFormatException ex) {
+            LOG.debug("ERROR Bad priority code '{}'", priStr);
+            return 0;
+        }
+    }
+
+    /**
+     * Finds a message ID like <code>^(\S+):\s*</code> would.
+     *
+     * @return the position of the colon that ends the message ID, or -1
+     */
+    private static int findMessageId(final String message) {
+        int end = 0;
+        while (end < message.length() && !isSpace(message.charAt(end))) {
+            end++;
+        }
+        // the last colon of the first word, after at least one character
+        final int colon = message.lastIndexOf(':', end - 1);
+        return colon >= 1 ? colon : -1;
+    }
+
+    /**
+     * Finds a date like <code>^\s*(\S\S\S\s+\d{1,2}\s+\d\d:\d\d:\d\d)\s+</code> would.
+     *
+     * @return the start and the end of the date, and the end of the spaces
+     *         that follow it, or null if the message doesn't start with a date
+     */
+    private static int[] findOldDate(final String message) {
+        final int start = skipSpaces(message, 0);
+        int i = start;
+        // the month
+        while (i < message.length() && !isSpace(message.charAt(i))) {
+            i++;
+        }
+        if (i - start != 3 || i == message.length()) {
+            return null;
+        }
+        // the day
+        i = skipSpaces(message, i);
+        final int day = i;
+        while (i < message.length() && isDigit(message.charAt(i))) {
+            i++;
+        }
+        if (i - day < 1 || i - day > 2 || i == message.length() || !isSpace(message.charAt(i))) {
+            return null;
+        }
+        // the time
+        i = skipSpaces(message, i);
+        if (i + 8 >= message.length()
+                || !isDigit(message.charAt(i)) || !isDigit(message.charAt(i + 1)) || message.charAt(i + 2) != ':'
+                || !isDigit(message.charAt(i + 3)) || !isDigit(message.charAt(i + 4)) || message.charAt(i + 5) != ':'
+                || !isDigit(message.charAt(i + 6)) || !isDigit(message.charAt(i + 7)) || !isSpace(message.charAt(i + 8))) {
+            return null;
+        }
+        return new int[] { start, i + 8, skipSpaces(message, i + 8) };
+    }
+
+    /**
+     * @return true if the message starts like <code>^\d\d\d\d-\d\d-\d\d\s+</code>
+     */
+    private static boolean isDate(final String message) {
+        if (message.length() < 11 || !isSpace(message.charAt(10))) {
+            return false;
+        }
+        for (int i = 0; i < 10; i++) {
+            final char c = message.charAt(i);
+            if ((i == 4 || i == 7) ? c != '-' : !isDigit(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(final String message, int position) {
+        while (position < message.length() && isSpace(message.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * @return true for the characters of the <code>\s</code> class
+     */
+    private static boolean isSpace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
 }
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.syslogd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * An Aho-Corasick automaton that finds which of a set of strings occur in
+ * a text in a single pass over the text, whatever the number of strings.
+ */
+final class SubstringMatcher {
+    private static final int[] NONE = new int[0];
+
+    /**
+     * The transitions of the root for ASCII characters, so that the most
+     * common transition doesn't need a search.
+     */
+    private final int[] m_rootAscii = new int[128];
+
+    /**
+     * The characters of the transitions of each state, sorted, and the
+     * states they lead to.
+     */
+    private final char[][] m_keys;
+    private final int[][] m_targets;
+
+    private final int[] m_fail;
+
+    /**
+     * The strings found when reaching each state, including the ones found
+     * through its failure state.
+     */
+    private final int[][] m_outputs;
+
+    private final int[] m_empty;
+
+    private final int m_size;
+
+    /**
+     * @param strings the strings to look for; their position in the list identifies them
+     */
+    SubstringMatcher(final List<String> strings) {
+        m_size = strings.size();
+
+        final List<Map<Character, Integer>> transitions = new ArrayList<Map<Character, Integer>>();
+        final List<List<Integer>> outputs = new ArrayList<List<Integer>>();
+        final List<Integer> empty = new ArrayList<Integer>();
+        transitions.add(new HashMap<Character, Integer>());
+        outputs.add(new ArrayList<Integer>());
+
+        for (int i = 0; i < strings.size(); i++) {
+            final String string = strings.get(i);
+            if (string.isEmpty()) {
+                empty.add(i);
+                continue;
+            }
+            int state = 0;
+            for (int j = 0; j < string.length(); j++) {
+                final Character c = string.charAt(j);
+                Integer next = transitions.get(state).get(c);
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.add(new HashMap<Character, Integer>());
+                    outputs.add(new ArrayList<Integer>());
+                    transitions.get(state).put(c, next);
+                }
+                state = next;
+            }
+            outputs.get(state).add(i);
+        }
+
+        final int numStates = transitions.size();
+        m_keys = new char[numStates][];
+        m_targets = new int[numStates][];
+        m_fail = new int[numStates];
+        m_outputs = new int[numStates][];
+
+        for (int state = 0; state < numStates; state++) {
+            final Map<Character, Integer> map = transitions.get(state);
+            final char[] keys = new char[map.size()];
+            int k = 0;
+            for (final Character c : map.keySet()) {
+                keys[k++] = c;
+            }
+            Arrays.sort(keys);
+            final int[] targets = new int[keys.length];
+            for (k = 0; k < keys.length; k++) {
+                targets[k] = map.get(keys[k]);
+            }
+            m_keys[state] = keys;
+            m_targets[state] = targets;
+        }
+
+        Arrays.fill(m_rootAscii, -1);
+        for (int k = 0; k < m_keys[0].length; k++) {
+            if (m_keys[0][k] < 128) {
+                m_rootAscii[m_keys[0][k]] = m_targets[0][k];
+            }
+        }
+
+        // breadth first, so that the failure state of a state is done before it
+        m_outputs[0] = NONE;
+        final Queue<Integer> queue = new LinkedList<Integer>();
+        for (final int child : m_targets[0]) {
+            m_fail[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            final int state = queue.remove();
+            final List<Integer> own = outputs.get(state);
+            final int[] inherited = m_outputs[m_fail[state]];
+            final int[] merged = new int[own.size() + inherited.length];
+            for (int k = 0; k < own.size(); k++) {
+                merged[k] = own.get(k);
+            }
+            System.arraycopy(inherited, 0, merged, own.size(), inherited.length);
+            m_outputs[state] = merged.length == 0 ? NONE : merged;
+
+            for (int k = 0; k < m_keys[state].length; k++) {
+                final char c = m_keys[state][k];
+                final int child = m_targets[state][k];
+                int fail = m_fail[state];
+                int next;
+                while ((next = next(fail, c)) < 0 && fail != 0) {
+                    fail = m_fail[fail];
+                }
+                m_fail[child] = next < 0 ? 0 : next;
+                queue.add(child);
+            }
+        }
+
+        m_empty = new int[empty.size()];
+        for (int k = 0; k < m_empty.length; k++) {
+            m_empty[k] = empty.get(k);
+        }
+    }
+
+    /**
+     * @return the number of strings looked for
+     */
+    int size() {
+        return m_size;
+    }
+
+    /**
+     * Finds the strings that occur in the text.
+     *
+     * @param text the text to search
+     * @param found set to true at the position of each string that occurs in the text
+     */
+    void find(final CharSequence text, final boolean[] found) {
+        for (final int i : m_empty) {
+            found[i] = true;
+        }
+
+        int state = 0;
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            int next;
+            while ((next = next(state, c)) < 0 && state != 0) {
+                state = m_fail[state];
+            }
+            state = next < 0 ? 0 : next;
+            for (final int string : m_outputs[state]) {
+                found[string] = true;
+            }
+        }
+    }
+
+    private int next(final int state, final char c) {
+        if (state == 0 && c < 128) {
+            return m_rootAscii[c];
+        }
+        final char[] keys = m_keys[state];
+        if (keys.length == 0) {
+            return -1;
+        }
+        final int k = Arrays.binarySearch(keys, c);
+        return k < 0 ? -1 : m_targets[state][k];
+    }
+}
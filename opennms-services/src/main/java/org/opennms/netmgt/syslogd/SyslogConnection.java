@@ -106,13 +106,16 @@ public class SyslogConnection implements Callable<Callable<?>> {
         try {
             re = ConvertToEvent.make(_packet, _matchPattern, _hostGroup,  _messageGroup, _ueiList, _hideMessages, _discardUei);
 
+            Syslogd.messageParsed();
             LOG.debug("Sending received packet to the SyslogProcessor queue");
 
             return new SyslogProcessor(re);
 
         } catch (final UnsupportedEncodingException e1) {
+            Syslogd.messageDiscarded();
             LOG.debug("Failure to convert package", e1);
         } catch (final MessageDiscardedException e) {
+            Syslogd.messageDiscarded();
             LOG.debug("Message discarded, returning without enqueueing event.", e);
         }
         return null;
@@ -56,7 +56,11 @@ import org.slf4j.LoggerFactory;
 public final class SyslogHandler implements Fiber {
     private static final Logger LOG = LoggerFactory.getLogger(SyslogHandler.class);
 
-    private final boolean USE_NIO = false;
+    /**
+     * Receive the messages with the NIO receiver, that sends the events to
+     * Eventd in batches, rather than with the java.net receiver.
+     */
+    private static final boolean USE_NIO = Boolean.getBoolean("org.opennms.syslogd.useNio");
     private final boolean USE_NETTY = false;
 
     /**
@@ -29,6 +29,7 @@
 package org.opennms.netmgt.syslogd;
 
 import java.text.DateFormat;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -107,16 +108,36 @@ public class SyslogParser {
         return m_matcher;
     }
 
+    /**
+     * The date formats, which are expensive to create, for each thread.
+     */
+    private static final ThreadLocal<DateFormat[]> m_dateFormats = new ThreadLocal<DateFormat[]>() {
+        @Override
+        protected DateFormat[] initialValue() {
+            final DateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.ROOT);
+            isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            final DateFormat bsdFormat = new SimpleDateFormat("MMM d HH:mm:ss", Locale.ROOT);
+            bsdFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return new DateFormat[] { isoFormat, bsdFormat };
+        }
+    };
+
     protected Date parseDate(final String dateString) {
+        final DateFormat[] formats = m_dateFormats.get();
         Date date;
         try {
-            final DateFormat df = new SimpleDateFormat("yyyy-MM-dd", Locale.ROOT);
-            df.setTimeZone(TimeZone.getTimeZone("UTC"));
-            date = df.parse(dateString);
+            // like DateFormat.parse(String), without an exception when it doesn't match
+            final ParsePosition position = new ParsePosition(0);
+            date = formats[0].parse(dateString, position);
+            if (position.getIndex() == 0) {
+                date = null;
+            }
         } catch (final Exception e) {
+            date = null;
+        }
+        if (date == null) {
             try {
-                final DateFormat df = new SimpleDateFormat("MMM d HH:mm:ss", Locale.ROOT);
-                df.setTimeZone(TimeZone.getTimeZone("UTC"));
+                final DateFormat df = formats[1];
                 
                 // Ugh, what's a non-lame way of forcing it to parse to "this year"?
                 date = df.parse(dateString);
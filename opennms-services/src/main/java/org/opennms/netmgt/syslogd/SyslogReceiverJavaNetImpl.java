@@ -193,6 +193,7 @@ class SyslogReceiverJavaNetImpl implements SyslogReceiver {
                 }
 
                 m_dgSock.receive(pkt);
+                Syslogd.messageReceived();
 
                 //SyslogConnection *Must* copy packet data and InetAddress as DatagramPacket is a mutable type
                 WaterfallExecutor.waterfall(m_executor, new SyslogConnection(pkt, m_matchPattern, m_hostGroup, m_messageGroup, m_UeiList, m_HideMessages, m_discardUei));
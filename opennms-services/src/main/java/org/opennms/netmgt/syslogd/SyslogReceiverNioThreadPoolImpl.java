@@ -35,21 +35,33 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.concurrent.ExecutionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.opennms.core.concurrent.LogPreservingThreadFactory;
-import org.opennms.core.concurrent.WaterfallExecutor;
 import org.opennms.core.logging.Logging;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.config.SyslogdConfigFactory;
 import org.opennms.netmgt.config.syslogd.HideMessage;
 import org.opennms.netmgt.config.syslogd.UeiList;
+import org.opennms.netmgt.events.api.EventIpcManagerFactory;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Log;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Receives the datagrams into a pool of direct buffers, converts them
+ * to events straight from the buffers, and sends the events to Eventd in
+ * batches.
+ *
  * @author <a href="mailto:weave@oculan.com">Brian Weaver</a>
  * @author <a href="http://www.oculan.com">Oculan Corporation</a>
  * @fiddler joed
@@ -60,6 +72,29 @@ class SyslogReceiverNioThreadPoolImpl implements SyslogReceiver {
 
     private static final int SOCKET_TIMEOUT = 500;
 
+    /**
+     * Big enough to handle any sane syslog message.
+     */
+    private static final int MAX_PACKET_SIZE = 0xffff;
+
+    /**
+     * The number of buffers, which is the number of datagrams that can be
+     * waiting to be converted.  Datagrams wait in the receive buffer of the
+     * socket while all the buffers are in use.
+     */
+    private static final int BUFFER_POOL_SIZE = 256;
+
+    /**
+     * The number of events sent to Eventd at once, at most.
+     */
+    private static final int EVENT_BATCH_SIZE = 100;
+
+    /**
+     * The number of events that can be waiting to be sent to Eventd.
+     * Messages converted when the queue is full are dropped.
+     */
+    private static final int EVENT_QUEUE_SIZE = 10000;
+
     /**
      * The Fiber's status.
      */
@@ -88,6 +123,12 @@ class SyslogReceiverNioThreadPoolImpl implements SyslogReceiver {
 
     private final ExecutorService m_socketReceivers;
 
+    private final ExecutorService m_eventSender;
+
+    private final BlockingQueue<ByteBuffer> m_buffers = new ArrayBlockingQueue<ByteBuffer>(BUFFER_POOL_SIZE);
+
+    private final BlockingQueue<Event> m_events = new ArrayBlockingQueue<Event>(EVENT_QUEUE_SIZE);
+
     /**
      * Construct a new receiver
      *
@@ -107,6 +148,12 @@ class SyslogReceiverNioThreadPoolImpl implements SyslogReceiver {
         m_UeiList = ueiList;
         m_HideMessages = hideMessages;
 
+        for (int i = 0; i < BUFFER_POOL_SIZE; i++) {
+            m_buffers.add(ByteBuffer.allocateDirect(MAX_PACKET_SIZE));
+        }
+
+        // This thread pool converts the datagrams. Its queue never holds more
+        // tasks than there are buffers.
         m_executor = new ThreadPoolExecutor(
             Runtime.getRuntime().availableProcessors() * 2,
             Runtime.getRuntime().availableProcessors() * 2,
@@ -127,6 +174,15 @@ class SyslogReceiverNioThreadPoolImpl implements SyslogReceiver {
             new LinkedBlockingQueue<Runnable>(),
             new LogPreservingThreadFactory(getClass().getSimpleName() + "-SocketReceiver", Integer.MAX_VALUE)
         );
+
+        m_eventSender = new ThreadPoolExecutor(
+            1,
+            1,
+            1000L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new LogPreservingThreadFactory(getClass().getSimpleName() + "-EventSender", 1)
+        );
     }
 
     /**
@@ -141,8 +197,11 @@ class SyslogReceiverNioThreadPoolImpl implements SyslogReceiver {
         // Shut down the thread pool that is processing DatagramChannel.receive() calls
         m_socketReceivers.shutdown();
 
-        // Shut down the thread pools that are executing SyslogConnection and SyslogProcessor tasks
+        // Shut down the thread pool that is converting the datagrams, and then
+        // the sender once it has sent the events that are left
         m_executor.shutdown();
+        m_executor.awaitTermination(SOCKET_TIMEOUT, TimeUnit.MILLISECONDS);
+        m_eventSender.shutdown();
 
         if (m_context != null) {
             LOG.debug("Stopping and joining thread context {}", m_context.getName());
@@ -187,6 +246,15 @@ class SyslogReceiverNioThreadPoolImpl implements SyslogReceiver {
             LOG.info("Failed to set the receive buffer to {}", Integer.MAX_VALUE, e);
         }
 
+        final boolean newSuspectOnMessage = SyslogdConfigFactory.getInstance().getNewSuspectOnMessage();
+        final String localAddr = InetAddressUtils.getLocalHostName();
+        m_eventSender.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendEvents(newSuspectOnMessage, localAddr);
+            }
+        });
+
         for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
             m_socketReceivers.execute(new Runnable() {
                 public void run() {
@@ -194,10 +262,6 @@ class SyslogReceiverNioThreadPoolImpl implements SyslogReceiver {
                     // set to avoid numerous tracing message
                     boolean ioInterrupted = false;
 
-                    // Allocate a buffer that's big enough to handle any sane syslog message
-                    ByteBuffer buffer = ByteBuffer.allocate(0xffff);
-                    buffer.clear();
-
                     // now start processing incoming requests
                     while (!m_stop) {
                         if (m_context.isInterrupted()) {
@@ -205,39 +269,51 @@ class SyslogReceiverNioThreadPoolImpl implements SyslogReceiver {
                             break;
                         }
 
+                        ByteBuffer buffer;
+                        try {
+                            buffer = m_buffers.poll(SOCKET_TIMEOUT, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            LOG.debug("Interrupted while waiting for a buffer, exiting");
+                            break;
+                        }
+                        if (buffer == null) {
+                            // all the buffers are in use
+                            continue;
+                        }
+
                         try {
                             if (!ioInterrupted) {
                                 LOG.debug("Waiting on a datagram to arrive");
                             }
 
                             // Write the datagram into the ByteBuffer
-                            InetSocketAddress source = (InetSocketAddress)m_channel.receive(buffer);
+                            final InetSocketAddress source = (InetSocketAddress)m_channel.receive(buffer);
+                            Syslogd.messageReceived();
+
+                            // reset the flag
+                            ioInterrupted = false; 
 
                             // Flip the buffer from write to read mode
                             buffer.flip();
 
-                            WaterfallExecutor.waterfall(m_executor, new SyslogConnection(source, buffer, m_matchPattern, m_hostGroup, m_messageGroup, m_UeiList, m_HideMessages, m_discardUei));
-
-                            // Clear the buffer so that it's ready for writing again
-                            buffer.clear();
-
-                            // reset the flag
-                            ioInterrupted = false; 
+                            m_executor.execute(new Conversion(source, buffer));
+                            buffer = null;
                         } catch (SocketTimeoutException e) {
                             ioInterrupted = true;
                             continue;
                         } catch (InterruptedIOException e) {
                             ioInterrupted = true;
                             continue;
-                        } catch (ExecutionException e) {
-                            LOG.error("Task execution failed in {}", this.getClass().getSimpleName(), e);
-                            break;
-                        } catch (InterruptedException e) {
-                            LOG.error("Task interrupted in {}", this.getClass().getSimpleName(), e);
+                        } catch (RejectedExecutionException e) {
+                            LOG.debug("Conversion rejected, the receiver is stopping");
                             break;
                         } catch (IOException e) {
                             LOG.error("An I/O exception occured on the datagram receipt port, exiting", e);
                             break;
+                        } finally {
+                            if (buffer != null) {
+                                m_buffers.offer(buffer);
+                            }
                         }
 
                     } // end while status OK
@@ -248,6 +324,77 @@ class SyslogReceiverNioThreadPoolImpl implements SyslogReceiver {
         }
     }
 
+    /**
+     * Converts a datagram to an event, and gives its buffer back to the pool.
+     */
+    private class Conversion implements Runnable {
+        private final InetSocketAddress m_source;
+        private final ByteBuffer m_buffer;
+
+        public Conversion(final InetSocketAddress source, final ByteBuffer buffer) {
+            m_source = source;
+            m_buffer = buffer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final ConvertToEvent re = ConvertToEvent.make(m_source.getAddress(), m_source.getPort(), m_buffer, m_UeiList, m_HideMessages, m_discardUei);
+                Syslogd.messageParsed();
+
+                if (!m_events.offer(re.getEvent())) {
+                    Syslogd.messageDropped();
+                    LOG.debug("Too many events waiting to be sent, dropping event from {}", m_source);
+                }
+            } catch (final MessageDiscardedException e) {
+                Syslogd.messageDiscarded();
+                LOG.debug("Message discarded, returning without enqueueing event.", e);
+            } catch (final Throwable t) {
+                Syslogd.messageDiscarded();
+                LOG.error("Unexpected error converting syslog message from {}", m_source, t);
+            } finally {
+                m_buffer.clear();
+                m_buffers.offer(m_buffer);
+            }
+        }
+    }
+
+    /**
+     * Sends the converted events to Eventd, in a single {@link Log} for
+     * all the events that are waiting, up to {@link #EVENT_BATCH_SIZE}.
+     */
+    private void sendEvents(final boolean newSuspectOnMessage, final String localAddr) {
+        final List<Event> events = new ArrayList<Event>(EVENT_BATCH_SIZE);
+        while (!m_stop || !m_events.isEmpty()) {
+            try {
+                final Event first = m_events.poll(SOCKET_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                events.add(first);
+                m_events.drainTo(events, EVENT_BATCH_SIZE - 1);
+
+                final Log log = new Log();
+                for (final Event event : events) {
+                    log.addEvent(event);
+                    if (newSuspectOnMessage && !event.hasNodeid()) {
+                        LOG.trace("Syslogd: Found a new suspect {}", event.getInterface());
+                        log.addEvent(SyslogProcessor.createNewSuspectEvent(localAddr, event.getInterface()));
+                    }
+                }
+                EventIpcManagerFactory.getIpcManager().sendNow(log);
+                Syslogd.eventsSent(events.size());
+            } catch (final InterruptedException e) {
+                LOG.debug("Event sender interrupted, exiting");
+                break;
+            } catch (final Throwable t) {
+                LOG.error("Unexpected error processing SyslogMessage - Could not send", t);
+            } finally {
+                events.clear();
+            }
+        }
+    }
+
     /**
      * <p>setLogPrefix</p>
      *
@@ -31,6 +31,7 @@ package org.opennms.netmgt.syslogd;
 import java.io.IOException;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.exolab.castor.xml.MarshalException;
 import org.exolab.castor.xml.ValidationException;
@@ -72,6 +73,13 @@ import org.slf4j.LoggerFactory;
      */
     private static final Syslogd m_singleton = new Syslogd();
 
+    // the counters of the MBean, fed by all the receivers
+    private static final AtomicLong s_messagesReceived = new AtomicLong();
+    private static final AtomicLong s_messagesParsed = new AtomicLong();
+    private static final AtomicLong s_messagesDiscarded = new AtomicLong();
+    private static final AtomicLong s_messagesDropped = new AtomicLong();
+    private static final AtomicLong s_eventsSent = new AtomicLong();
+
     /**
      * <p>getSingleton</p>
      *
@@ -132,6 +140,7 @@ import org.slf4j.LoggerFactory;
      */
     @Override
     protected void onStart() {
+        resetCounters();
         m_udpEventReceiver.start();
 
         // // start the event reader
@@ -179,6 +188,62 @@ import org.slf4j.LoggerFactory;
         return m_singleton;
     }
 
+    /** @return The number of datagrams received since Syslogd was last started */
+    public long getMessagesReceived() {
+        return s_messagesReceived.get();
+    }
+
+    /** @return The number of messages converted to events since Syslogd was last started */
+    public long getMessagesParsed() {
+        return s_messagesParsed.get();
+    }
+
+    /** @return The number of messages that couldn't be parsed, or were discarded at user request, since Syslogd was last started */
+    public long getMessagesDiscarded() {
+        return s_messagesDiscarded.get();
+    }
+
+    /** @return The number of messages dropped because Eventd couldn't keep up since Syslogd was last started, only the NIO receiver drops messages */
+    public long getMessagesDropped() {
+        return s_messagesDropped.get();
+    }
+
+    /** @return The number of events sent to Eventd since Syslogd was last started */
+    public long getEventsSent() {
+        return s_eventsSent.get();
+    }
+
+    static void messageReceived() {
+        s_messagesReceived.incrementAndGet();
+    }
+
+    static void messageParsed() {
+        s_messagesParsed.incrementAndGet();
+    }
+
+    static void messageDiscarded() {
+        s_messagesDiscarded.incrementAndGet();
+    }
+
+    static void messageDropped() {
+        s_messagesDropped.incrementAndGet();
+    }
+
+    static void eventsSent(final int count) {
+        s_eventsSent.addAndGet(count);
+    }
+
+    /**
+     * Resets the counters, when Syslogd is started.
+     */
+    static void resetCounters() {
+        s_messagesReceived.set(0);
+        s_messagesParsed.set(0);
+        s_messagesDiscarded.set(0);
+        s_messagesDropped.set(0);
+        s_eventsSent.set(0);
+    }
+
     /*
     * @return EventDao
      */
@@ -37,4 +37,18 @@ import org.opennms.netmgt.daemon.BaseOnmsMBean;
  * @version $Id: $
  */
 public interface SyslogdMBean extends BaseOnmsMBean {
+    /** @return The number of datagrams received since Syslogd was last started */
+    public long getMessagesReceived();
+
+    /** @return The number of messages converted to events since Syslogd was last started */
+    public long getMessagesParsed();
+
+    /** @return The number of messages not converted, because of errors or at user request, since Syslogd was last started */
+    public long getMessagesDiscarded();
+
+    /** @return The number of messages dropped because Eventd couldn't keep up since Syslogd was last started, always 0 unless the NIO receiver is used */
+    public long getMessagesDropped();
+
+    /** @return The number of events sent to Eventd since Syslogd was last started */
+    public long getEventsSent();
 }
@@ -0,0 +1,880 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.threshd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+import org.apache.commons.jexl2.JexlEngine;
+import org.apache.commons.jexl2.MapContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A threshold expression lowered into a tree of nodes that evaluates over
+ * a <code>double[]</code> holding the value of each datasource, without
+ * boxing or map lookups.
+ *
+ * Only the constructs that threshold expressions typically use are
+ * supported: numeric literals, datasources (including the
+ * <code>datasources['name']</code> form), arithmetic, comparison and logical
+ * operators, the ternary operator and the functions of
+ * {@link ExpressionConfigWrapper.MathBinding}. The result is always the same
+ * as the one JEXL gives, including the arithmetic exceptions, so anything
+ * for which this can't be guaranteed at compile time, like integer
+ * arithmetic on a value that isn't known until evaluation, makes
+ * {@link #compile(String)} return null and the caller should use JEXL instead.
+ *
+ * Sub-expressions without datasources are evaluated by JEXL once, when the
+ * expression is compiled.
+ */
+public final class CompiledExpression {
+    private static final Logger LOG = LoggerFactory.getLogger(CompiledExpression.class);
+
+    private static final JexlEngine s_jexlEngine = new JexlEngine();
+
+    private static final Map<String, DoubleUnaryOperator> UNARY_FUNCTIONS = new HashMap<String, DoubleUnaryOperator>();
+    private static final Map<String, DoubleBinaryOperator> BINARY_FUNCTIONS = new HashMap<String, DoubleBinaryOperator>();
+    static {
+        UNARY_FUNCTIONS.put("abs", Math::abs);
+        UNARY_FUNCTIONS.put("acos", Math::acos);
+        UNARY_FUNCTIONS.put("asin", Math::asin);
+        UNARY_FUNCTIONS.put("atan", Math::atan);
+        UNARY_FUNCTIONS.put("cbrt", Math::cbrt);
+        UNARY_FUNCTIONS.put("ceil", Math::ceil);
+        UNARY_FUNCTIONS.put("cos", Math::cos);
+        UNARY_FUNCTIONS.put("cosh", Math::cosh);
+        UNARY_FUNCTIONS.put("exp", Math::exp);
+        UNARY_FUNCTIONS.put("expm1", Math::expm1);
+        UNARY_FUNCTIONS.put("floor", Math::floor);
+        UNARY_FUNCTIONS.put("log", Math::log);
+        UNARY_FUNCTIONS.put("log10", Math::log10);
+        UNARY_FUNCTIONS.put("log1p", Math::log1p);
+        UNARY_FUNCTIONS.put("rint", Math::rint);
+        UNARY_FUNCTIONS.put("signum", Math::signum);
+        UNARY_FUNCTIONS.put("sin", Math::sin);
+        UNARY_FUNCTIONS.put("sinh", Math::sinh);
+        UNARY_FUNCTIONS.put("sqrt", Math::sqrt);
+        UNARY_FUNCTIONS.put("tan", Math::tan);
+        UNARY_FUNCTIONS.put("tanh", Math::tanh);
+        UNARY_FUNCTIONS.put("toDegrees", Math::toDegrees);
+        UNARY_FUNCTIONS.put("toRadians", Math::toRadians);
+        UNARY_FUNCTIONS.put("ulp", Math::ulp);
+        BINARY_FUNCTIONS.put("atan2", Math::atan2);
+        BINARY_FUNCTIONS.put("hypot", Math::hypot);
+        BINARY_FUNCTIONS.put("IEEEremainder", Math::IEEEremainder);
+        BINARY_FUNCTIONS.put("max", Math::max);
+        BINARY_FUNCTIONS.put("min", Math::min);
+        BINARY_FUNCTIONS.put("pow", Math::pow);
+    }
+
+    private final String m_expression;
+    private final String[] m_datasources;
+    private final Node m_root;
+
+    private CompiledExpression(String expression, List<String> datasources, Node root) {
+        m_expression = expression;
+        m_datasources = datasources.toArray(new String[datasources.size()]);
+        m_root = root;
+    }
+
+    /**
+     * Compiles the given JEXL expression.
+     *
+     * @param expression the expression
+     * @return the compiled expression, or null if it uses constructs that aren't supported
+     */
+    public static CompiledExpression compile(String expression) {
+        try {
+            final Parser parser = new Parser(expression);
+            final Operand root = parser.parse();
+            if (root.m_kind != Kind.DOUBLE && root.m_kind != Kind.MIXED) {
+                throw new UnsupportedExpressionException("the result is not a number that depends on a datasource");
+            }
+            return new CompiledExpression(expression, parser.m_datasources, root.m_node);
+        } catch (UnsupportedExpressionException e) {
+            LOG.debug("Using JEXL to evaluate '{}': {}", expression, e.getMessage());
+            return null;
+        }
+    }
+
+    public String getExpression() {
+        return m_expression;
+    }
+
+    /**
+     * <p>getDatasources</p>
+     *
+     * @return the datasources in the order of their slots
+     */
+    public List<String> getDatasources() {
+        final List<String> datasources = new ArrayList<String>(m_datasources.length);
+        Collections.addAll(datasources, m_datasources);
+        return datasources;
+    }
+
+    /**
+     * Copies the values of the datasources into a new slot array.
+     *
+     * @param values the values by datasource name
+     * @return the slots, or null if a value is missing or is NaN
+     */
+    public double[] bind(Map<String, Double> values) {
+        final double[] slots = new double[m_datasources.length];
+        for (int i = 0; i < m_datasources.length; i++) {
+            final Double value = values.get(m_datasources[i]);
+            if (value == null || value.isNaN()) {
+                return null;
+            }
+            slots[i] = value.doubleValue();
+        }
+        return slots;
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param slots the value of each datasource, in the order of {@link #getDatasources()}
+     * @return the result
+     */
+    public double evaluate(double[] slots) {
+        return m_root.value(slots);
+    }
+
+    @Override
+    public String toString() {
+        return m_expression;
+    }
+
+    private static class UnsupportedExpressionException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedExpressionException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * What is known about the value of an operand at compile time.
+     */
+    private static enum Kind {
+        /** A java.lang.Double at evaluation time. */
+        DOUBLE,
+        /** A Double, a Float or an integral number, depending on a condition. */
+        MIXED,
+        /** A java.lang.Boolean at evaluation time. */
+        BOOLEAN,
+        /** Known at compile time. */
+        CONSTANT
+    }
+
+    private static final class Operand {
+        private final Kind m_kind;
+        private final Node m_node;
+        private final Object m_constant;
+        private final int m_start;
+        private final int m_end;
+
+        private Operand(Kind kind, Node node, Object constant, int start, int end) {
+            m_kind = kind;
+            m_node = node;
+            m_constant = constant;
+            m_start = start;
+            m_end = end;
+        }
+
+        private boolean isDouble() {
+            return m_kind == Kind.DOUBLE;
+        }
+
+        private boolean isConstantNumber() {
+            return m_kind == Kind.CONSTANT && (m_constant instanceof Double || m_constant instanceof Float || isIntegral(m_constant));
+        }
+
+        private boolean isFloatingPoint() {
+            return isDouble() || (m_kind == Kind.CONSTANT && (m_constant instanceof Double || m_constant instanceof Float));
+        }
+
+        private boolean isBoolean() {
+            return m_kind == Kind.BOOLEAN || (m_kind == Kind.CONSTANT && m_constant instanceof Boolean);
+        }
+
+        /**
+         * JEXL arithmetic and comparisons convert numbers that aren't Doubles
+         * through their string form, so a Float literal like 0.1 is 0.1 and
+         * not 0.10000000149011612.
+         */
+        private Node numberNode() {
+            return m_kind == Kind.CONSTANT ? new Constant(Double.parseDouble(String.valueOf(m_constant))) : m_node;
+        }
+
+        /**
+         * Function arguments are widened by Java instead.
+         */
+        private Node argumentNode() {
+            return m_kind == Kind.CONSTANT ? new Constant(((Number)m_constant).doubleValue()) : m_node;
+        }
+
+        private Node booleanNode() {
+            return m_kind == Kind.CONSTANT ? (((Boolean)m_constant) ? TRUE : FALSE) : m_node;
+        }
+
+        private static boolean isIntegral(Object o) {
+            return o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte;
+        }
+    }
+
+    /**
+     * A recursive descent parser following the precedence rules of the JEXL grammar.
+     */
+    private static final class Parser {
+        private final String m_source;
+        private final List<String> m_datasources = new ArrayList<String>();
+        private int m_pos = 0;
+
+        private Parser(String source) {
+            m_source = source;
+        }
+
+        private Operand parse() throws UnsupportedExpressionException {
+            final Operand operand = parseTernary();
+            skipWhitespace();
+            if (m_pos != m_source.length()) {
+                throw unsupported("'" + m_source.substring(m_pos) + "'");
+            }
+            return operand;
+        }
+
+        private Operand parseTernary() throws UnsupportedExpressionException {
+            final Operand condition = parseOr();
+            if (!accept("?")) {
+                return condition;
+            }
+            if (!condition.isBoolean()) {
+                throw unsupported("a condition that is not a comparison");
+            }
+            final Operand whenTrue = parseTernary();
+            expect(":");
+            final Operand whenFalse = parseTernary();
+            if (condition.m_kind == Kind.CONSTANT) {
+                final Operand branch = (Boolean)condition.m_constant ? whenTrue : whenFalse;
+                if (branch.m_kind == Kind.CONSTANT) {
+                    return fold(condition.m_start, m_pos);
+                }
+                return new Operand(branch.m_kind, branch.m_node, null, condition.m_start, m_pos);
+            }
+            for (Operand branch : new Operand[] { whenTrue, whenFalse }) {
+                if (!branch.isDouble() && branch.m_kind != Kind.MIXED && !branch.isConstantNumber()) {
+                    throw unsupported("a branch that is not a number");
+                }
+            }
+            final boolean isDouble = (whenTrue.isDouble() || whenTrue.m_constant instanceof Double) && (whenFalse.isDouble() || whenFalse.m_constant instanceof Double);
+            return new Operand(isDouble ? Kind.DOUBLE : Kind.MIXED, new Ternary(condition.m_node, whenTrue.numberNode(), whenFalse.numberNode()), null, condition.m_start, m_pos);
+        }
+
+        private Operand parseOr() throws UnsupportedExpressionException {
+            Operand left = parseAnd();
+            while (accept("||") || acceptWord("or")) {
+                left = logical(false, left, parseAnd());
+            }
+            return left;
+        }
+
+        private Operand parseAnd() throws UnsupportedExpressionException {
+            Operand left = parseEquality();
+            while (accept("&&") || acceptWord("and")) {
+                left = logical(true, left, parseEquality());
+            }
+            return left;
+        }
+
+        private Operand logical(boolean and, Operand left, Operand right) throws UnsupportedExpressionException {
+            if (!left.isBoolean() || !right.isBoolean()) {
+                throw unsupported("a logical operator on numbers");
+            }
+            if (left.m_kind == Kind.CONSTANT && right.m_kind == Kind.CONSTANT) {
+                return fold(left, right);
+            }
+            return new Operand(Kind.BOOLEAN, new Logical(and, left.booleanNode(), right.booleanNode()), null, left.m_start, right.m_end);
+        }
+
+        private Operand parseEquality() throws UnsupportedExpressionException {
+            Operand left = parseRelational();
+            while (true) {
+                if (accept("==") || acceptWord("eq")) {
+                    left = comparison(Comparison.EQ, left, parseRelational());
+                } else if (accept("!=") || acceptWord("ne")) {
+                    left = comparison(Comparison.NE, left, parseRelational());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Operand parseRelational() throws UnsupportedExpressionException {
+            Operand left = parseAdditive();
+            while (true) {
+                if (peek("=~") || peek("!~")) {
+                    throw unsupported("pattern matching");
+                } else if (accept("<=") || acceptWord("le")) {
+                    left = comparison(Comparison.LE, left, parseAdditive());
+                } else if (accept(">=") || acceptWord("ge")) {
+                    left = comparison(Comparison.GE, left, parseAdditive());
+                } else if (accept("<") || acceptWord("lt")) {
+                    left = comparison(Comparison.LT, left, parseAdditive());
+                } else if (accept(">") || acceptWord("gt")) {
+                    left = comparison(Comparison.GT, left, parseAdditive());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Operand comparison(Comparison comparison, Operand left, Operand right) throws UnsupportedExpressionException {
+            if (left.m_kind == Kind.CONSTANT && right.m_kind == Kind.CONSTANT) {
+                return fold(left, right);
+            }
+            // One of them is a Double, the other one must be a number whose class is known
+            if (!(left.isDouble() || left.isConstantNumber()) || !(right.isDouble() || right.isConstantNumber())) {
+                throw unsupported("a comparison of values that are not numbers");
+            }
+            return new Operand(Kind.BOOLEAN, new Compare(comparison, left.numberNode(), right.numberNode()), null, left.m_start, right.m_end);
+        }
+
+        private Operand parseAdditive() throws UnsupportedExpressionException {
+            Operand left = parseMultiplicative();
+            while (true) {
+                if (accept("+")) {
+                    left = arithmetic('+', left, parseMultiplicative());
+                } else if (accept("-")) {
+                    left = arithmetic('-', left, parseMultiplicative());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Operand parseMultiplicative() throws UnsupportedExpressionException {
+            Operand left = parseUnary();
+            while (true) {
+                if (accept("*")) {
+                    left = arithmetic('*', left, parseUnary());
+                } else if (accept("/") || acceptWord("div")) {
+                    left = arithmetic('/', left, parseUnary());
+                } else if (accept("%") || acceptWord("mod")) {
+                    left = arithmetic('%', left, parseUnary());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Operand arithmetic(char operator, Operand left, Operand right) throws UnsupportedExpressionException {
+            if (left.m_kind == Kind.CONSTANT && right.m_kind == Kind.CONSTANT) {
+                return fold(left, right);
+            }
+            if (!(left.isDouble() || left.m_kind == Kind.MIXED || left.isConstantNumber())
+                    || !(right.isDouble() || right.m_kind == Kind.MIXED || right.isConstantNumber())) {
+                throw unsupported("arithmetic on values that are not numbers");
+            }
+            // JEXL only uses floating point arithmetic if one of the operands is a Double or a Float
+            if (!left.isFloatingPoint() && !right.isFloatingPoint()) {
+                throw unsupported("arithmetic that may be done on integers");
+            }
+            return new Operand(Kind.DOUBLE, new Arithmetic(operator, left.numberNode(), right.numberNode()), null, left.m_start, right.m_end);
+        }
+
+        private Operand parseUnary() throws UnsupportedExpressionException {
+            skipWhitespace();
+            final int start = m_pos;
+            if (accept("-")) {
+                final Operand operand = parseUnary();
+                if (operand.m_kind == Kind.CONSTANT) {
+                    return fold(start, operand.m_end);
+                } else if (!operand.isDouble()) {
+                    throw unsupported("a negation of a value that is not a Double");
+                }
+                return new Operand(Kind.DOUBLE, new Negate(operand.m_node), null, start, operand.m_end);
+            } else if (accept("!") || acceptWord("not")) {
+                final Operand operand = parseUnary();
+                if (operand.m_kind == Kind.CONSTANT) {
+                    return fold(start, operand.m_end);
+                } else if (!operand.isBoolean()) {
+                    throw unsupported("a negation of a number");
+                }
+                return new Operand(Kind.BOOLEAN, new Not(operand.m_node), null, start, operand.m_end);
+            }
+            return parsePrimary();
+        }
+
+        private Operand parsePrimary() throws UnsupportedExpressionException {
+            skipWhitespace();
+            final int start = m_pos;
+            if (m_pos >= m_source.length()) {
+                throw unsupported("the end of the expression");
+            }
+            final char c = m_source.charAt(m_pos);
+            if (accept("(")) {
+                final Operand operand = parseTernary();
+                expect(")");
+                if (operand.m_kind == Kind.CONSTANT) {
+                    return fold(start, m_pos);
+                }
+                return new Operand(operand.m_kind, operand.m_node, null, start, m_pos);
+            } else if (Character.isDigit(c)) {
+                while (m_pos < m_source.length() && Character.isDigit(m_source.charAt(m_pos))) {
+                    m_pos++;
+                }
+                if (m_pos + 1 < m_source.length() && m_source.charAt(m_pos) == '.' && Character.isDigit(m_source.charAt(m_pos + 1))) {
+                    m_pos++;
+                    while (m_pos < m_source.length() && Character.isDigit(m_source.charAt(m_pos))) {
+                        m_pos++;
+                    }
+                }
+                if (m_pos < m_source.length() && (Character.isLetterOrDigit(m_source.charAt(m_pos)) || m_source.charAt(m_pos) == '.')) {
+                    throw unsupported("the number format of '" + m_source.substring(start) + "'");
+                }
+                return fold(start, m_pos);
+            } else if (isIdentifierStart(c)) {
+                final String identifier = identifier();
+                if ("true".equals(identifier) || "false".equals(identifier)) {
+                    return fold(start, m_pos);
+                } else if ("math".equals(identifier) && accept(".")) {
+                    return function(start);
+                } else if ("datasources".equals(identifier) && accept("[")) {
+                    skipWhitespace();
+                    final String datasource = stringLiteral();
+                    expect("]");
+                    return datasource(datasource, start);
+                } else if (isReserved(identifier) || "math".equals(identifier) || "datasources".equals(identifier) || peek(".") || peek("[") || peek("(")) {
+                    throw unsupported("'" + identifier + "'");
+                }
+                return datasource(identifier, start);
+            }
+            throw unsupported("'" + m_source.substring(m_pos) + "'");
+        }
+
+        private Operand function(int start) throws UnsupportedExpressionException {
+            skipWhitespace();
+            final String name = identifier();
+            expect("(");
+            final List<Operand> arguments = new ArrayList<Operand>();
+            if (!accept(")")) {
+                do {
+                    arguments.add(parseTernary());
+                } while (accept(","));
+                expect(")");
+            }
+
+            boolean constant = true;
+            for (Operand argument : arguments) {
+                if (argument.m_kind != Kind.CONSTANT) {
+                    constant = false;
+                } else if (!argument.isConstantNumber()) {
+                    throw unsupported("a function argument that is not a number");
+                }
+                // The overload JEXL picks for a MIXED argument is only known at evaluation time
+                if (argument.m_kind == Kind.MIXED || argument.m_kind == Kind.BOOLEAN) {
+                    throw unsupported("a function argument that is not a Double");
+                }
+            }
+            if (arguments.size() == 1 && UNARY_FUNCTIONS.containsKey(name)) {
+                if (constant) {
+                    return fold(start, m_pos);
+                }
+                return new Operand(Kind.DOUBLE, new UnaryFunction(UNARY_FUNCTIONS.get(name), arguments.get(0).argumentNode()), null, start, m_pos);
+            } else if (arguments.size() == 2 && BINARY_FUNCTIONS.containsKey(name)) {
+                if (constant) {
+                    return fold(start, m_pos);
+                }
+                return new Operand(Kind.DOUBLE, new BinaryFunction(BINARY_FUNCTIONS.get(name), arguments.get(0).argumentNode(), arguments.get(1).argumentNode()), null, start, m_pos);
+            }
+            throw unsupported("math." + name + " with " + arguments.size() + " arguments");
+        }
+
+        private Operand datasource(String name, int start) {
+            int slot = m_datasources.indexOf(name);
+            if (slot < 0) {
+                slot = m_datasources.size();
+                m_datasources.add(name);
+            }
+            return new Operand(Kind.DOUBLE, new Slot(slot), null, start, m_pos);
+        }
+
+        private Operand fold(Operand left, Operand right) throws UnsupportedExpressionException {
+            return fold(left.m_start, right.m_end);
+        }
+
+        /**
+         * Has JEXL evaluate a part of the expression that doesn't use any datasources.
+         */
+        private Operand fold(int start, int end) throws UnsupportedExpressionException {
+            final String source = m_source.substring(start, end);
+            final Object value;
+            try {
+                final MapContext context = new MapContext();
+                context.set("math", new ExpressionConfigWrapper.MathBinding());
+                value = s_jexlEngine.createExpression(source).evaluate(context);
+            } catch (Throwable t) {
+                throw unsupported("'" + source + "' (" + t.getMessage() + ")");
+            }
+            if (!(value instanceof Boolean) && !(value instanceof Double) && !(value instanceof Float) && !Operand.isIntegral(value)) {
+                throw unsupported("'" + source + "' evaluating to " + value);
+            }
+            return new Operand(Kind.CONSTANT, null, value, start, end);
+        }
+
+        private String identifier() throws UnsupportedExpressionException {
+            final int start = m_pos;
+            if (m_pos >= m_source.length() || !isIdentifierStart(m_source.charAt(m_pos))) {
+                throw unsupported("a missing identifier");
+            }
+            while (m_pos < m_source.length() && isIdentifierPart(m_source.charAt(m_pos))) {
+                m_pos++;
+            }
+            return m_source.substring(start, m_pos);
+        }
+
+        private String stringLiteral() throws UnsupportedExpressionException {
+            if (m_pos >= m_source.length()) {
+                throw unsupported("the end of the expression");
+            }
+            final char quote = m_source.charAt(m_pos);
+            if (quote != '\'' && quote != '"') {
+                throw unsupported("a datasources index that is not a string");
+            }
+            final int end = m_source.indexOf(quote, m_pos + 1);
+            if (end < 0) {
+                throw unsupported("an unterminated string");
+            }
+            final String value = m_source.substring(m_pos + 1, end);
+            if (value.indexOf('\\') >= 0) {
+                throw unsupported("an escape sequence");
+            }
+            m_pos = end + 1;
+            return value;
+        }
+
+        private void skipWhitespace() {
+            while (m_pos < m_source.length() && Character.isWhitespace(m_source.charAt(m_pos))) {
+                m_pos++;
+            }
+        }
+
+        private boolean peek(String token) {
+            skipWhitespace();
+            return m_source.startsWith(token, m_pos);
+        }
+
+        private boolean accept(String token) {
+            if (!peek(token)) {
+                return false;
+            }
+            // Don't mistake the first character of a longer operator for this one
+            final int end = m_pos + token.length();
+            if (end < m_source.length() && token.length() == 1 && "<>=!&|".indexOf(token.charAt(0)) >= 0 && "=&|~".indexOf(m_source.charAt(end)) >= 0) {
+                return false;
+            }
+            m_pos = end;
+            return true;
+        }
+
+        private boolean acceptWord(String word) {
+            if (!peek(word)) {
+                return false;
+            }
+            final int end = m_pos + word.length();
+            if (end < m_source.length() && isIdentifierPart(m_source.charAt(end))) {
+                return false;
+            }
+            m_pos = end;
+            return true;
+        }
+
+        private void expect(String token) throws UnsupportedExpressionException {
+            if (!accept(token)) {
+                throw unsupported("a missing '" + token + "'");
+            }
+        }
+
+        private UnsupportedExpressionException unsupported(String what) {
+            return new UnsupportedExpressionException("unsupported " + what + " at position " + m_pos);
+        }
+
+        private static boolean isIdentifierStart(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$';
+        }
+
+        private static boolean isIdentifierPart(char c) {
+            return isIdentifierStart(c) || (c >= '0' && c <= '9');
+        }
+
+        private static boolean isReserved(String identifier) {
+            switch (identifier) {
+            case "or": case "and": case "not": case "eq": case "ne": case "lt": case "le": case "gt": case "ge":
+            case "div": case "mod": case "null": case "empty": case "size": case "new": case "var": case "function":
+            case "return": case "if": case "else": case "for": case "foreach": case "while": case "in":
+                return true;
+            default:
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A node of the compiled expression. Numeric nodes implement
+     * {@link #value(double[])}, boolean nodes {@link #test(double[])}.
+     */
+    private abstract static class Node {
+        double value(double[] slots) {
+            throw new UnsupportedOperationException();
+        }
+
+        boolean test(double[] slots) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final Node TRUE = new Node() {
+        @Override
+        boolean test(double[] slots) {
+            return true;
+        }
+    };
+
+    private static final Node FALSE = new Node() {
+        @Override
+        boolean test(double[] slots) {
+            return false;
+        }
+    };
+
+    private static final class Slot extends Node {
+        private final int m_slot;
+
+        private Slot(int slot) {
+            m_slot = slot;
+        }
+
+        @Override
+        double value(double[] slots) {
+            return slots[m_slot];
+        }
+    }
+
+    private static final class Constant extends Node {
+        private final double m_value;
+
+        private Constant(double value) {
+            m_value = value;
+        }
+
+        @Override
+        double value(double[] slots) {
+            return m_value;
+        }
+    }
+
+    private static final class Negate extends Node {
+        private final Node m_operand;
+
+        private Negate(Node operand) {
+            m_operand = operand;
+        }
+
+        @Override
+        double value(double[] slots) {
+            return -m_operand.value(slots);
+        }
+    }
+
+    private static final class Arithmetic extends Node {
+        private final char m_operator;
+        private final Node m_left;
+        private final Node m_right;
+
+        private Arithmetic(char operator, Node left, Node right) {
+            m_operator = operator;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        double value(double[] slots) {
+            final double left = m_left.value(slots);
+            final double right = m_right.value(slots);
+            switch (m_operator) {
+            case '+':
+                return left + right;
+            case '-':
+                return left - right;
+            case '*':
+                return left * right;
+            case '/':
+                // JEXL evaluates a division by zero to 0.0 unless the engine is strict
+                return right == 0.0 ? 0.0 : left / right;
+            default:
+                return right == 0.0 ? 0.0 : left % right;
+            }
+        }
+    }
+
+    private static enum Comparison { EQ, NE, LT, LE, GT, GE }
+
+    /**
+     * Compares numbers the way JEXL does: NaN is equal to NaN and less than
+     * any other number.
+     */
+    private static final class Compare extends Node {
+        private final Comparison m_comparison;
+        private final Node m_left;
+        private final Node m_right;
+
+        private Compare(Comparison comparison, Node left, Node right) {
+            m_comparison = comparison;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        boolean test(double[] slots) {
+            final int comparison = compare(m_left.value(slots), m_right.value(slots));
+            switch (m_comparison) {
+            case EQ:
+                return comparison == 0;
+            case NE:
+                return comparison != 0;
+            case LT:
+                return comparison < 0;
+            case LE:
+                return comparison <= 0;
+            case GT:
+                return comparison > 0;
+            default:
+                return comparison >= 0;
+            }
+        }
+
+        private static int compare(double left, double right) {
+            if (Double.isNaN(left)) {
+                return Double.isNaN(right) ? 0 : -1;
+            } else if (Double.isNaN(right)) {
+                return 1;
+            }
+            return left < right ? -1 : (left > right ? 1 : 0);
+        }
+    }
+
+    private static final class Logical extends Node {
+        private final boolean m_and;
+        private final Node m_left;
+        private final Node m_right;
+
+        private Logical(boolean and, Node left, Node right) {
+            m_and = and;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        boolean test(double[] slots) {
+            if (m_and) {
+                return m_left.test(slots) && m_right.test(slots);
+            }
+            return m_left.test(slots) || m_right.test(slots);
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node m_operand;
+
+        private Not(Node operand) {
+            m_operand = operand;
+        }
+
+        @Override
+        boolean test(double[] slots) {
+            return !m_operand.test(slots);
+        }
+    }
+
+    private static final class Ternary extends Node {
+        private final Node m_condition;
+        private final Node m_whenTrue;
+        private final Node m_whenFalse;
+
+        private Ternary(Node condition, Node whenTrue, Node whenFalse) {
+            m_condition = condition;
+            m_whenTrue = whenTrue;
+            m_whenFalse = whenFalse;
+        }
+
+        @Override
+        double value(double[] slots) {
+            return m_condition.test(slots) ? m_whenTrue.value(slots) : m_whenFalse.value(slots);
+        }
+    }
+
+    private static final class UnaryFunction extends Node {
+        private final DoubleUnaryOperator m_function;
+        private final Node m_argument;
+
+        private UnaryFunction(DoubleUnaryOperator function, Node argument) {
+            m_function = function;
+            m_argument = argument;
+        }
+
+        @Override
+        double value(double[] slots) {
+            return m_function.applyAsDouble(m_argument.value(slots));
+        }
+    }
+
+    private static final class BinaryFunction extends Node {
+        private final DoubleBinaryOperator m_function;
+        private final Node m_left;
+        private final Node m_right;
+
+        private BinaryFunction(DoubleBinaryOperator function, Node left, Node right) {
+            m_function = function;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        double value(double[] slots) {
+            return m_function.applyAsDouble(m_left.value(slots), m_right.value(slots));
+        }
+    }
+}
@@ -30,13 +30,14 @@ package org.opennms.netmgt.threshd;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.jexl2.ExpressionImpl;
+import org.apache.commons.jexl2.JexlContext;
 import org.apache.commons.jexl2.JexlEngine;
-import org.apache.commons.jexl2.MapContext;
 import org.opennms.netmgt.config.threshd.Expression;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,16 +51,35 @@ import org.slf4j.LoggerFactory;
 public class ExpressionConfigWrapper extends BaseThresholdDefConfigWrapper {
     private static final Logger LOG = LoggerFactory.getLogger(ExpressionConfigWrapper.class);
 
+    /**
+     * JexlEngine is thread-safe, and so are the expressions it creates.
+     */
+    private static final JexlEngine s_jexlEngine = new JexlEngine();
+
+    private static final MathBinding s_mathBinding = new MathBinding();
+
     private final Expression m_expression;
     private final Collection<String> m_datasources;
+
+    /**
+     * The expression parsed once, instead of on every evaluation.
+     */
+    private final org.apache.commons.jexl2.Expression m_jexlExpression;
+
+    /**
+     * The expression lowered to an evaluator over double[], or null if it
+     * uses constructs that only JEXL supports.
+     */
+    private final CompiledExpression m_compiledExpression;
+
     public ExpressionConfigWrapper(Expression expression) throws ThresholdExpressionException {
         super(expression);
         m_expression = expression;
 
-        JexlEngine expressionParser = new JexlEngine();
         m_datasources = new ArrayList<String>();
         try {
-            ExpressionImpl e = (ExpressionImpl) expressionParser.createExpression(m_expression.getExpression());
+            ExpressionImpl e = (ExpressionImpl) s_jexlEngine.createExpression(m_expression.getExpression());
+            m_jexlExpression = e;
             LOG.trace("List of Variables on the Expression: {}", e.getVariables());
             for (List<String> list : e.getVariables()) { // Requires JEXL 2.1.x
                 if (list.get(0).equalsIgnoreCase("math")) {
@@ -77,6 +97,7 @@ public class ExpressionConfigWrapper extends BaseThresholdDefConfigWrapper {
             throw new ThresholdExpressionException("Could not parse threshold expression:" + e.getMessage(), e);
         }
         LOG.trace("Threshold Variables: {}", m_datasources);
+        m_compiledExpression = CompiledExpression.compile(m_expression.getExpression());
     }
 
     @Override
@@ -142,19 +163,66 @@ public class ExpressionConfigWrapper extends BaseThresholdDefConfigWrapper {
 
     @Override
     public double evaluate(Map<String, Double> values) throws ThresholdExpressionException {
-        // Add all of the variable values to the script context
-        Map<String,Object> context = new HashMap<String,Object>();
-        context.putAll(values);
-        context.put("datasources", new HashMap<String, Double>(values)); // To workaround NMS-5019
-        context.put("math", new MathBinding());
+        if (m_compiledExpression != null) {
+            // Values that are missing or NaN are left to JEXL, which handles them in its own way
+            final double[] slots = m_compiledExpression.bind(values);
+            if (slots != null) {
+                try {
+                    return m_compiledExpression.evaluate(slots);
+                } catch (Throwable e) {
+                    throw new ThresholdExpressionException("Error while evaluating expression " + m_expression.getExpression() + ": " + e.getMessage(), e);
+                }
+            }
+        }
+
         double result = Double.NaN;
         try {
-            // Fetch an instance of the JEXL script engine to evaluate the script expression
-            Object resultObject = new JexlEngine().createExpression(m_expression.getExpression()).evaluate(new MapContext(context));
+            Object resultObject = m_jexlExpression.evaluate(new ThresholdContext(values));
             result = Double.parseDouble(resultObject.toString());
         } catch (Throwable e) {
             throw new ThresholdExpressionException("Error while evaluating expression " + m_expression.getExpression() + ": " + e.getMessage(), e);
         }
         return result;
     }
+
+    /**
+     * Resolves the variables of an expression from the datasource values
+     * without copying them. The values are also available as the
+     * <code>datasources</code> map (see NMS-5019), and the
+     * {@link MathBinding} as <code>math</code>.
+     */
+    private static class ThresholdContext implements JexlContext {
+        private final Map<String, Double> m_values;
+        private Map<String, Object> m_assignments;
+
+        public ThresholdContext(Map<String, Double> values) {
+            m_values = values;
+        }
+
+        @Override
+        public Object get(String name) {
+            if (m_assignments != null && m_assignments.containsKey(name)) {
+                return m_assignments.get(name);
+            } else if ("math".equals(name)) {
+                return s_mathBinding;
+            } else if ("datasources".equals(name)) {
+                return Collections.unmodifiableMap(m_values);
+            }
+            return m_values.get(name);
+        }
+
+        @Override
+        public void set(String name, Object value) {
+            if (m_assignments == null) {
+                m_assignments = new HashMap<String, Object>();
+            }
+            m_assignments.put(name, value);
+        }
+
+        @Override
+        public boolean has(String name) {
+            return (m_assignments != null && m_assignments.containsKey(name))
+                    || "math".equals(name) || "datasources".equals(name) || m_values.containsKey(name);
+        }
+    }
 }
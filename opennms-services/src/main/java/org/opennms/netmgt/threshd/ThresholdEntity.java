@@ -61,6 +61,9 @@ public final class ThresholdEntity implements Cloneable {
     // in the Constructor.  Note that this means we must use a null-key capable map like HashMap
     private Map<String,List<ThresholdEvaluatorState>> m_thresholdEvaluatorStates = new HashMap<String,List<ThresholdEvaluatorState>>();
 
+    // The instances whose states have been looked up in the ThresholdStateStore.  Also null-key capable.
+    private Set<String> m_restoredInstances;
+
     // the commands for these need to be listed in ThresholdController as well
     static {
         s_thresholdEvaluators = new LinkedList<ThresholdEvaluator>();
@@ -228,9 +231,38 @@ public final class ThresholdEntity implements Cloneable {
      * @param resource a {@link org.opennms.netmgt.threshd.CollectionResourceWrapper} object.
      */
     public List<Event> evaluateAndCreateEvents(CollectionResourceWrapper resource, Map<String, Double> values, Date date) {
+        return evaluateAndCreateEvents(resource, values, date, null, null);
+    }
+
+    /**
+     * Evaluates the threshold like {@link #evaluateAndCreateEvents(CollectionResourceWrapper, Map, Date)},
+     * and saves the states of the instance in the given store.  The states are
+     * restored from the store when the instance is evaluated for the first time.
+     *
+     * @param values
+     *          map of values (by datasource name) to evaluate against the threshold (might be an expression)
+     * @param date
+     *          Date to use in created events
+     * @param store
+     *          the store to keep the states in, or null to not keep them
+     * @param stateKey
+     *          identifies the instance in the store
+     * @return List of events
+     * @param resource a {@link org.opennms.netmgt.threshd.CollectionResourceWrapper} object.
+     */
+    public List<Event> evaluateAndCreateEvents(CollectionResourceWrapper resource, Map<String, Double> values, Date date, ThresholdStateStore store, String stateKey) {
         List<Event> events = new LinkedList<Event>();
         double dsValue=0.0;
         String instance = resource != null ? resource.getInstance() : null;
+        if (store != null && restoreInstance(instance)) {
+            for (ThresholdEvaluatorState item : getThresholdEvaluatorStates(instance)) {
+                double[] state = store.restore(getStateKey(stateKey, item));
+                if (state != null) {
+                    LOG.debug("evaluate: restoring state of {} for {}", item.getThresholdConfig().getType(), stateKey);
+                    item.restoreState(state);
+                }
+            }
+        }
         try {
             if (getThresholdEvaluatorStates(instance).size() > 0) {
                 dsValue=getThresholdConfig().evaluate(values);
@@ -250,11 +282,30 @@ public final class ThresholdEntity implements Cloneable {
             if (event != null) {
                 events.add(event);
             }
+            if (store != null) {
+                store.save(getStateKey(stateKey, item), item.getPersistentState());
+            }
         }
 
         return events;
     }
 
+    private boolean restoreInstance(String instance) {
+        if (m_restoredInstances == null) {
+            m_restoredInstances = new HashSet<String>();
+        }
+        return m_restoredInstances.add(instance == null ? null : instance.intern());
+    }
+
+    /**
+     * The key of a state includes its configuration, so that states aren't
+     * restored for thresholds that were changed in the meantime.
+     */
+    private static String getStateKey(String stateKey, ThresholdEvaluatorState state) {
+        BaseThresholdDefConfigWrapper config = state.getThresholdConfig();
+        return stateKey + '/' + config.getType() + ':' + config.getValue() + ':' + config.getRearm() + ':' + config.getTrigger();
+    }
+
     /**
      * <p>addThreshold</p>
      *
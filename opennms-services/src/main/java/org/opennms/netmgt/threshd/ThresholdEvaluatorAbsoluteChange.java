@@ -175,6 +175,19 @@ public class ThresholdEvaluatorAbsoluteChange implements ThresholdEvaluator {
             return new ThresholdEvaluatorStateAbsoluteChange(m_thresholdConfig);
         }
 
+        @Override
+        public double[] getPersistentState() {
+            return new double[] { getLastSample(), getPreviousTriggeringSample() };
+        }
+
+        @Override
+        public void restoreState(double[] state) {
+            if (state.length == 2) {
+                setLastSample(state[0]);
+                setPreviousTriggeringSample(state[1]);
+            }
+        }
+
         // FIXME This must be implemented correctly
         @Override
         public boolean isTriggered() {
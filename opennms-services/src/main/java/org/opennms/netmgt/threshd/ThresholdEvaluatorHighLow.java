@@ -258,6 +258,19 @@ public class ThresholdEvaluatorHighLow implements ThresholdEvaluator {
             return new ThresholdEvaluatorStateHighLow(m_thresholdConfig);
         }
 
+        @Override
+        public double[] getPersistentState() {
+            return new double[] { isArmed() ? 1.0 : 0.0, getExceededCount() };
+        }
+
+        @Override
+        public void restoreState(double[] state) {
+            if (state.length == 2) {
+                setArmed(state[0] != 0.0);
+                setExceededCount((int)state[1]);
+            }
+        }
+
         @Override
         public boolean isTriggered() {
             return !isArmed();
@@ -191,6 +191,20 @@ public class ThresholdEvaluatorRearmingAbsoluteChange implements ThresholdEvalua
             return new ThresholdEvaluatorStateRearmingAbsoluteChange(m_thresholdConfig);
         }
 
+        @Override
+        public double[] getPersistentState() {
+            return new double[] { getLastSample(), getPreviousTriggeringSample(), m_triggerCount };
+        }
+
+        @Override
+        public void restoreState(double[] state) {
+            if (state.length == 3) {
+                setLastSample(state[0]);
+                setPreviousTriggeringSample(state[1]);
+                m_triggerCount = (int)state[2];
+            }
+        }
+
         @Override
         public boolean isTriggered() {
             return wasTriggered(m_previousTriggeringSample); // TODO Is that right ?
@@ -93,4 +93,24 @@ public interface ThresholdEvaluatorState {
      * @return a {@link org.opennms.netmgt.threshd.ThresholdEvaluatorState} object.
      */
     public ThresholdEvaluatorState getCleanClone();
+
+    /**
+     * Returns the state that has to survive a restart, i.e. trigger counts,
+     * armed flags and last samples, so that it can be saved by the
+     * {@link ThresholdStateStore}.
+     *
+     * @return the state, or null if there is nothing to save
+     */
+    public default double[] getPersistentState() {
+        return null;
+    }
+
+    /**
+     * Restores a state returned by {@link #getPersistentState()}.  States
+     * that don't match the evaluator are ignored.
+     *
+     * @param state the saved state
+     */
+    public default void restoreState(double[] state) {
+    }
 }
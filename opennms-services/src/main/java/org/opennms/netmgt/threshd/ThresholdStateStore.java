@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.threshd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the states of the threshold evaluators across restarts.
+ *
+ * The states are appended to a single file by a background thread every
+ * <code>interval</code> milliseconds, and only if they have changed since
+ * they were last written.  The file is read when the first state is
+ * restored, and rewritten without the superseded and expired records once
+ * it contains more than twice as many records as there are states.  A
+ * truncated record at the end of the file, i.e. after a crash, is ignored.
+ *
+ * Each record consists of the key, the time at which it was written, and
+ * the values returned by {@link ThresholdEvaluatorState#getPersistentState()}.
+ * States that haven't been written for <code>maxAge</code> milliseconds are
+ * not restored, since their last samples no longer mean anything.
+ */
+public class ThresholdStateStore {
+    private static final Logger LOG = LoggerFactory.getLogger(ThresholdStateStore.class);
+
+    private static final int MAGIC = 0x4f4e5453;
+    private static final int VERSION = 1;
+
+    /**
+     * The number of records that may be superseded before the file is
+     * compacted, even if it contains only a few states.
+     */
+    private static final int MIN_GARBAGE = 10000;
+
+    private static final ThresholdStateStore s_instance = new ThresholdStateStore(
+            Boolean.getBoolean("org.opennms.thresholds.state.enabled"),
+            new File(System.getProperty("org.opennms.thresholds.state.file",
+                    System.getProperty("opennms.home", ".") + File.separator + "share" + File.separator + "threshold-states")),
+            Long.getLong("org.opennms.thresholds.state.interval", 60000),
+            Long.getLong("org.opennms.thresholds.state.maxAge", 86400000));
+
+    private static class Record {
+        private final double[] m_values;
+        private final long m_time;
+
+        private Record(double[] values, long time) {
+            m_values = values;
+            m_time = time;
+        }
+    }
+
+    private final boolean m_enabled;
+    private final File m_file;
+    private final long m_interval;
+    private final long m_maxAge;
+
+    /**
+     * The states that have been evaluated since the last flush.
+     */
+    private final ConcurrentHashMap<String, double[]> m_pending = new ConcurrentHashMap<String, double[]>();
+
+    /**
+     * The latest record of every state in the file.  Also guards the file.
+     */
+    private final Map<String, Record> m_records = new HashMap<String, Record>();
+
+    private boolean m_loaded = false;
+    private DataOutputStream m_out;
+    private int m_recordsInFile;
+    private volatile ScheduledExecutorService m_writer;
+
+    /**
+     * <p>Constructor for ThresholdStateStore.</p>
+     *
+     * @param enabled false to neither save nor restore any states
+     * @param file the file to store the states in
+     * @param interval the number of milliseconds between writes
+     * @param maxAge the number of milliseconds after which a state that hasn't been written is discarded
+     */
+    protected ThresholdStateStore(boolean enabled, File file, long interval, long maxAge) {
+        m_enabled = enabled;
+        m_file = file;
+        m_interval = interval;
+        m_maxAge = maxAge;
+    }
+
+    /**
+     * <p>getInstance</p>
+     *
+     * @return the store configured with the <code>org.opennms.thresholds.state</code> properties
+     */
+    public static ThresholdStateStore getInstance() {
+        return s_instance;
+    }
+
+    /**
+     * <p>isEnabled</p>
+     *
+     * @return a boolean.
+     */
+    public boolean isEnabled() {
+        return m_enabled;
+    }
+
+    /**
+     * Returns the last state saved with the given key, reading the file if
+     * it hasn't been read yet.
+     *
+     * @param key a {@link java.lang.String} object.
+     * @return the state, or null if there is none
+     */
+    public double[] restore(final String key) {
+        if (!m_enabled) {
+            return null;
+        }
+        final double[] pending = m_pending.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        synchronized (m_records) {
+            load();
+            final Record record = m_records.get(key);
+            if (record == null || System.currentTimeMillis() - record.m_time > m_maxAge) {
+                return null;
+            }
+            return record.m_values;
+        }
+    }
+
+    /**
+     * Saves a state with the next write.  The array must not be changed
+     * afterwards.
+     *
+     * @param key a {@link java.lang.String} object.
+     * @param state the state, or null if there is nothing to save
+     */
+    public void save(final String key, final double[] state) {
+        if (!m_enabled || state == null) {
+            return;
+        }
+        m_pending.put(key, state);
+        if (m_writer == null) {
+            startWriter();
+        }
+    }
+
+    private synchronized void startWriter() {
+        if (m_writer == null) {
+            m_writer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "ThresholdStateWriter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            m_writer.scheduleWithFixedDelay(() -> {
+                try {
+                    flush();
+                } catch (Throwable t) {
+                    LOG.warn("Failed to write the threshold states to {}", m_file, t);
+                }
+            }, m_interval, m_interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the states that have changed since the last write.
+     *
+     * @throws java.io.IOException if any.
+     */
+    public void flush() throws IOException {
+        if (!m_enabled) {
+            return;
+        }
+        synchronized (m_records) {
+            load();
+            final long now = System.currentTimeMillis();
+            if (m_out == null) {
+                compact(now);
+            }
+            final Map<String, double[]> written = new HashMap<String, double[]>();
+            try {
+                for (final Map.Entry<String, double[]> entry : m_pending.entrySet()) {
+                    final String key = entry.getKey();
+                    final double[] state = entry.getValue();
+
+                    // Unchanged states are written again once they get old, so that they don't expire
+                    final Record last = m_records.get(key);
+                    if (last != null && Arrays.equals(last.m_values, state) && now - last.m_time < m_maxAge / 2) {
+                        m_pending.remove(key, state);
+                        continue;
+                    }
+                    final Record record = new Record(state, now);
+                    write(m_out, key, record);
+                    m_records.put(key, record);
+                    m_recordsInFile++;
+                    written.put(key, state);
+                }
+                m_out.flush();
+                // Only forget the states once they are in the file, a newer state saved meanwhile stays pending
+                for (final Map.Entry<String, double[]> entry : written.entrySet()) {
+                    m_pending.remove(entry.getKey(), entry.getValue());
+                }
+            } catch (IOException e) {
+                // Rewrite the file with the next flush, since the last record may be incomplete
+                closeOutput();
+                throw e;
+            }
+            LOG.debug("flush: wrote {} threshold states to {}", written.size(), m_file);
+
+            if (m_recordsInFile > 2 * m_records.size() + MIN_GARBAGE) {
+                compact(now);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending states and closes the file.  The file is opened
+     * again if more states are saved.
+     */
+    public void close() {
+        synchronized (this) {
+            if (m_writer != null) {
+                m_writer.shutdown();
+                m_writer = null;
+            }
+        }
+        synchronized (m_records) {
+            try {
+                flush();
+            } catch (IOException e) {
+                LOG.warn("Failed to write the threshold states to {}", m_file, e);
+            }
+            closeOutput();
+        }
+    }
+
+    private void closeOutput() {
+        if (m_out != null) {
+            try {
+                m_out.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close {}", m_file, e);
+            }
+            m_out = null;
+        }
+    }
+
+    private void load() {
+        if (m_loaded) {
+            return;
+        }
+        m_loaded = true;
+        if (!m_file.exists()) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.warn("{} doesn't contain threshold states, ignoring it", m_file);
+                return;
+            }
+            while (true) {
+                final String key = in.readUTF();
+                final long time = in.readLong();
+                final double[] values = new double[in.readUnsignedByte()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.readDouble();
+                }
+                m_records.put(key, new Record(values, time));
+                m_recordsInFile++;
+            }
+        } catch (EOFException e) {
+            // The end of the file, or a record that was only partially written
+        } catch (IOException e) {
+            LOG.warn("Failed to read the threshold states from {}, using the {} states read so far", m_file, m_records.size(), e);
+        }
+        LOG.info("load: read {} threshold states from {} in {}ms", m_records.size(), m_file, System.currentTimeMillis() - start);
+    }
+
+    private void compact(final long now) throws IOException {
+        closeOutput();
+        for (final Iterator<Record> it = m_records.values().iterator(); it.hasNext();) {
+            if (now - it.next().m_time > m_maxAge) {
+                it.remove();
+            }
+        }
+
+        final File parent = m_file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory " + parent);
+        }
+        final File temp = new File(m_file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (final Map.Entry<String, Record> entry : m_records.entrySet()) {
+                write(out, entry.getKey(), entry.getValue());
+            }
+        }
+        Files.move(temp.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        m_recordsInFile = m_records.size();
+        m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_file, true)));
+        LOG.debug("compact: rewrote {} with {} threshold states", m_file, m_recordsInFile);
+    }
+
+    private static void write(final DataOutputStream out, final String key, final Record record) throws IOException {
+        out.writeUTF(key);
+        out.writeLong(record.m_time);
+        out.writeByte(record.m_values.length);
+        for (final double value : record.m_values) {
+            out.writeDouble(value);
+        }
+    }
+}
@@ -72,6 +72,8 @@ public class ThresholdingSet {
 
     protected ThresholdsDao m_thresholdsDao;
 
+    private final ThresholdStateStore m_stateStore = ThresholdStateStore.getInstance();
+
     private boolean m_initialized = false;
     private boolean m_hasThresholds = false;
 
@@ -293,7 +295,14 @@ public class ThresholdingSet {
                                     LOG.info("applyThresholds: All attributes found for {}, evaluating", resourceWrapper);
                                     resourceWrapper.setDsLabel(thresholdEntity.getDatasourceLabel());
                                     try {
-                                        List<Event> thresholdEvents = thresholdEntity.evaluateAndCreateEvents(resourceWrapper, values, date);
+                                        List<Event> thresholdEvents;
+                                        if (m_stateStore.isEnabled()) {
+                                            final String stateKey = m_nodeId + "/" + m_hostAddress + "/" + m_serviceName + "/" + group.getName()
+                                                    + "/" + resourceWrapper.getResourceTypeName() + "/" + resourceWrapper.getInstance() + "/" + key;
+                                            thresholdEvents = thresholdEntity.evaluateAndCreateEvents(resourceWrapper, values, date, m_stateStore, stateKey);
+                                        } else {
+                                            thresholdEvents = thresholdEntity.evaluateAndCreateEvents(resourceWrapper, values, date);
+                                        }
                                         eventsList.addAll(thresholdEvents);
                                     } catch (Exception e) {
                                         LOG.warn("applyThresholds: Can't evaluate {} on {} because {}", key, resourceWrapper, e.getMessage());
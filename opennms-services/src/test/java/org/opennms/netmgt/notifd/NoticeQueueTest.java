@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.notifd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class NoticeQueueTest {
+
+    private final NoticeQueue m_queue = new NoticeQueue();
+
+    private static NotificationTask createTask(long sendTime, int notifyId) {
+        final NotificationTask task = new NotificationTask(null, null, sendTime, Collections.<String, String>emptyMap(), null, "C");
+        task.setNoticeId(notifyId);
+        return task;
+    }
+
+    private NotificationTask queue(long sendTime, int notifyId) {
+        final NotificationTask task = createTask(sendTime, notifyId);
+        assertNull(m_queue.putItem(sendTime, task));
+        return task;
+    }
+
+    @Test
+    public void testDueOrder() {
+        final long now = System.currentTimeMillis();
+        final NotificationTask second = queue(now - 1000, 1);
+        final NotificationTask first = queue(now - 2000, 1);
+        final NotificationTask third = queue(now - 1000, 2);
+        final NotificationTask later = queue(now + 60000, 2);
+
+        assertEquals(4, m_queue.getPending());
+        assertEquals(3, m_queue.getOverdue());
+        assertSame(first, m_queue.poll());
+        assertSame(second, m_queue.poll());
+        assertSame(third, m_queue.poll());
+        assertNull(m_queue.poll());
+
+        assertEquals(1, m_queue.getPending());
+        assertEquals(0, m_queue.getOverdue());
+        assertEquals(4, m_queue.getQueued());
+        assertEquals(3, m_queue.getSent());
+        assertEquals(3, m_queue.getSentLate());
+        assertEquals(Collections.singletonList(later), m_queue.getPendingTasks());
+    }
+
+    @Test
+    public void testDuplicates() {
+        final long now = System.currentTimeMillis();
+        final NotificationTask task = queue(now, 1);
+        assertSame(task, m_queue.putItem(now, task));
+        assertEquals(1, m_queue.size());
+    }
+
+    @Test
+    public void testCancel() {
+        final long now = System.currentTimeMillis();
+        queue(now - 1000, 1);
+        final NotificationTask other = queue(now - 500, 2);
+        queue(now + 60000, 1);
+        queue(now - 100, -1);
+
+        assertEquals(2, m_queue.cancel(1));
+        assertEquals(0, m_queue.cancel(1));
+        assertEquals(0, m_queue.cancel(-1));
+        assertEquals(2, m_queue.getPending());
+        assertEquals(2, m_queue.getCancelled());
+
+        assertSame(other, m_queue.poll());
+        assertEquals(-1, m_queue.poll().getNotifyId());
+        assertNull(m_queue.poll());
+        // a started task can't be cancelled anymore
+        assertEquals(0, m_queue.cancel(2));
+        assertEquals(2, m_queue.getSent());
+        assertEquals(0, m_queue.size());
+    }
+
+    @Test
+    public void testWaitsUntilDue() throws Exception {
+        final long sendTime = System.currentTimeMillis() + 300;
+        final NotificationTask task = queue(sendTime, 1);
+
+        assertNull(m_queue.poll(50, TimeUnit.MILLISECONDS));
+        assertSame(task, m_queue.poll(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() >= sendTime);
+    }
+
+    @Test
+    public void testWakesUpForEarlierTask() throws Exception {
+        queue(System.currentTimeMillis() + 60000, 1);
+
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final AtomicReference<NotificationTask> polled = new AtomicReference<NotificationTask>();
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                waiting.countDown();
+                try {
+                    polled.set(m_queue.poll(30, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    // the test fails
+                }
+            }
+        };
+        thread.start();
+        waiting.await();
+        Thread.sleep(100);
+
+        final long start = System.currentTimeMillis();
+        final NotificationTask task = queue(start + 100, 2);
+        thread.join(5000);
+        assertSame(task, polled.get());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testWaitsPastCancelledTasks() throws Exception {
+        final long now = System.currentTimeMillis();
+        queue(now, 1);
+        final NotificationTask task = queue(now + 200, 2);
+        m_queue.cancel(1);
+
+        assertSame(task, m_queue.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, m_queue.getSent());
+    }
+}
@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rtc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.easymock.EasyMock;
+import org.easymock.IExpectationSetters;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.events.api.EventConstants;
+import org.opennms.netmgt.filter.api.FilterDao;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.rtc.datablock.RTCCategory;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.rtc.Category;
+import org.opennms.netmgt.xml.rtc.EuiLevel;
+
+public class AvailabilityServiceIncrementalImplTest {
+
+    private static final long HOUR = 60L * 60L * 1000L;
+    private static final long DAY = 24L * HOUR;
+
+    private static final String COMMON_RULE = "IPADDR != '0.0.0.0'";
+
+    private FilterDao m_filterDao;
+
+    private AvailabilityServiceIncrementalImpl m_availabilityService;
+
+    @Before
+    public void setUp() {
+        m_filterDao = EasyMock.createMock(FilterDao.class);
+        m_availabilityService = new AvailabilityServiceIncrementalImpl();
+        m_availabilityService.setFilterDao(m_filterDao);
+        m_availabilityService.setRollingWindow(DAY);
+        m_availabilityService.loadEmpty();
+    }
+
+    @Test
+    public void testCategoryWithoutServices() {
+        final RTCCategory category = createCategory("Routers", "nodeId == 99999");
+        expectNodes(category, 99999);
+        EasyMock.replay(m_filterDao);
+
+        final Category levelCat = getCategory(m_availabilityService.getEuiLevel(category));
+        assertEquals(100.0, levelCat.getCatvalue(), 0.001);
+        assertEquals(1, levelCat.getNodeCount());
+        assertEquals(100.0, levelCat.getNode(0).getNodevalue(), 0.001);
+        assertEquals(0, levelCat.getNode(0).getNodesvccount());
+        assertEquals(0, levelCat.getNode(0).getNodesvcdowncount());
+    }
+
+    @Test
+    public void testAvailability() {
+        final RTCCategory category = createCategory("NOC", "nodeId < 3");
+        expectNodes(category, 2, 1);
+        EasyMock.replay(m_filterDao);
+
+        gainServices(1, "192.168.1.1", "ICMP", "SMTP");
+        gainServices(1, "192.168.1.2", "ICMP", "SMTP");
+        gainServices(2, "192.168.2.1", "ICMP", "SMTP");
+        gainServices(3, "192.168.3.1", "ICMP");
+
+        Category levelCat = getCategory(m_availabilityService.getEuiLevel(category));
+        assertEquals(100.0, levelCat.getCatvalue(), 0.001);
+        assertEquals(2, levelCat.getNodeCount());
+        // The nodes are sorted
+        assertEquals(1, levelCat.getNode(0).getNodeid());
+        assertEquals(4, levelCat.getNode(0).getNodesvccount());
+        assertEquals(2, levelCat.getNode(1).getNodesvccount());
+
+        // An outage that is both opened and closed within the window
+        final long now = System.currentTimeMillis();
+        send(outage(EventConstants.OUTAGE_CREATED_EVENT_UEI, 1, "192.168.1.1", "ICMP", now - HOUR));
+        send(outage(EventConstants.OUTAGE_RESOLVED_EVENT_UEI, 1, "192.168.1.1", "ICMP", now - HOUR / 2));
+        // and one that was resolved before it
+        send(outage(EventConstants.OUTAGE_CREATED_EVENT_UEI, 2, "192.168.2.1", "ICMP", now - 3 * DAY));
+        send(outage(EventConstants.OUTAGE_RESOLVED_EVENT_UEI, 2, "192.168.2.1", "ICMP", now - 2 * DAY));
+
+        levelCat = getCategory(m_availabilityService.getEuiLevel(category));
+        assertEquals(RTCUtils.getOutagePercentage(HOUR / 2, DAY, 6), levelCat.getCatvalue(), 0.0001);
+        assertEquals(RTCUtils.getOutagePercentage(HOUR / 2, DAY, 4), levelCat.getNode(0).getNodevalue(), 0.0001);
+        assertEquals(100.0, levelCat.getNode(1).getNodevalue(), 0.0001);
+        assertEquals(0, levelCat.getNode(0).getNodesvcdowncount());
+
+        // A shorter window
+        levelCat = getCategory(m_availabilityService.getEuiLevel(category, 2 * HOUR));
+        assertEquals(RTCUtils.getOutagePercentage(HOUR / 2, 2 * HOUR, 6), levelCat.getCatvalue(), 0.0001);
+        assertEquals(RTCUtils.getOutagePercentage(HOUR / 2, 2 * HOUR, 4), m_availabilityService.getNodeAvailability(1, 2 * HOUR), 0.0001);
+
+        // An ongoing outage
+        send(outage(EventConstants.OUTAGE_CREATED_EVENT_UEI, 2, "192.168.2.1", "SMTP", now - HOUR));
+        // is only counted once
+        send(outage(EventConstants.OUTAGE_CREATED_EVENT_UEI, 2, "192.168.2.1", "SMTP", now - HOUR / 2));
+
+        levelCat = getCategory(m_availabilityService.getEuiLevel(category));
+        assertEquals(1, levelCat.getNode(1).getNodesvcdowncount());
+        assertEquals(RTCUtils.getOutagePercentage(HOUR, DAY, 2), levelCat.getNode(1).getNodevalue(), 0.001);
+    }
+
+    @Test
+    public void testServicesInCategory() {
+        final RTCCategory category = createCategory("Email Servers", "nodeId < 3", "SMTP", "POP3");
+        expectNodes(category, 1, 2);
+        EasyMock.replay(m_filterDao);
+
+        gainServices(1, "192.168.1.1", "ICMP", "SMTP");
+        gainServices(2, "192.168.2.1", "ICMP");
+
+        final long now = System.currentTimeMillis();
+        send(outage(EventConstants.OUTAGE_CREATED_EVENT_UEI, 1, "192.168.1.1", "ICMP", now - HOUR));
+        send(outage(EventConstants.OUTAGE_CREATED_EVENT_UEI, 2, "192.168.2.1", "ICMP", now - HOUR));
+
+        final Category levelCat = getCategory(m_availabilityService.getEuiLevel(category));
+        assertEquals(100.0, levelCat.getCatvalue(), 0.001);
+        assertEquals(1, levelCat.getNode(0).getNodesvccount());
+        assertEquals(0, levelCat.getNode(0).getNodesvcdowncount());
+        assertEquals(0, levelCat.getNode(1).getNodesvccount());
+    }
+
+    @Test
+    public void testMembershipIsCached() {
+        final RTCCategory category = createCategory("NOC", "nodeId < 3");
+        expectNodes(category, 1).times(2);
+        EasyMock.replay(m_filterDao);
+
+        gainServices(1, "192.168.1.1", "ICMP");
+
+        // The rule is evaluated once for these
+        m_availabilityService.getEuiLevel(category);
+        m_availabilityService.getEuiLevel(category);
+        send(outage(EventConstants.OUTAGE_CREATED_EVENT_UEI, 1, "192.168.1.1", "ICMP", System.currentTimeMillis() - HOUR));
+        m_availabilityService.getEuiLevel(category);
+
+        // and once more after a change
+        send(new EventBuilder(EventConstants.NODE_CATEGORY_MEMBERSHIP_CHANGED_EVENT_UEI, "Test").setNodeid(1).getEvent());
+        m_availabilityService.getEuiLevel(category);
+        m_availabilityService.getEuiLevel(category);
+
+        EasyMock.verify(m_filterDao);
+    }
+
+    @Test
+    public void testDeletedAndReparentedServices() {
+        final RTCCategory category = createCategory("NOC", "nodeId < 3");
+        expectNodes(category, 1, 2).anyTimes();
+        EasyMock.replay(m_filterDao);
+
+        gainServices(1, "192.168.1.1", "ICMP", "SMTP");
+        gainServices(1, "192.168.1.2", "ICMP");
+        gainServices(2, "192.168.2.1", "ICMP");
+
+        final long now = System.currentTimeMillis();
+        send(outage(EventConstants.OUTAGE_CREATED_EVENT_UEI, 1, "192.168.1.2", "ICMP", now - 2 * HOUR));
+        send(outage(EventConstants.OUTAGE_RESOLVED_EVENT_UEI, 1, "192.168.1.2", "ICMP", now - HOUR));
+
+        send(new EventBuilder(EventConstants.INTERFACE_REPARENTED_EVENT_UEI, "Test")
+            .setInterface(InetAddressUtils.addr("192.168.1.2"))
+            .addParam(EventConstants.PARM_OLD_NODEID, 1)
+            .addParam(EventConstants.PARM_NEW_NODEID, 2)
+            .getEvent());
+
+        Category levelCat = getCategory(m_availabilityService.getEuiLevel(category));
+        assertEquals(2, levelCat.getNode(0).getNodesvccount());
+        assertEquals(100.0, levelCat.getNode(0).getNodevalue(), 0.001);
+        assertEquals(2, levelCat.getNode(1).getNodesvccount());
+        assertEquals(RTCUtils.getOutagePercentage(HOUR, DAY, 2), levelCat.getNode(1).getNodevalue(), 0.001);
+
+        send(new EventBuilder(EventConstants.SERVICE_DELETED_EVENT_UEI, "Test")
+            .setNodeid(1).setInterface(InetAddressUtils.addr("192.168.1.1")).setService("SMTP").getEvent());
+        send(new EventBuilder(EventConstants.INTERFACE_DELETED_EVENT_UEI, "Test")
+            .setNodeid(2).setInterface(InetAddressUtils.addr("192.168.1.2")).getEvent());
+
+        levelCat = getCategory(m_availabilityService.getEuiLevel(category));
+        assertEquals(1, levelCat.getNode(0).getNodesvccount());
+        assertEquals(1, levelCat.getNode(1).getNodesvccount());
+        assertEquals(100.0, levelCat.getCatvalue(), 0.001);
+
+        send(new EventBuilder(EventConstants.NODE_DELETED_EVENT_UEI, "Test").setNodeid(2).getEvent());
+        assertEquals(1, m_availabilityService.getServiceCount());
+    }
+
+    @Test
+    public void testEventsReceivedWhileLoading() {
+        final RTCCategory category = createCategory("NOC", "nodeId < 3");
+        expectNodes(category, 1);
+        EasyMock.replay(m_filterDao);
+
+        m_availabilityService = new AvailabilityServiceIncrementalImpl();
+        m_availabilityService.setFilterDao(m_filterDao);
+        m_availabilityService.setRollingWindow(DAY);
+
+        gainServices(1, "192.168.1.1", "ICMP");
+        send(outage(EventConstants.OUTAGE_CREATED_EVENT_UEI, 1, "192.168.1.1", "ICMP", System.currentTimeMillis() - HOUR));
+        assertEquals(0, m_availabilityService.getServiceCount());
+
+        m_availabilityService.loadEmpty();
+        assertEquals(1, m_availabilityService.getServiceCount());
+        final Category levelCat = getCategory(m_availabilityService.getEuiLevel(category));
+        assertEquals(1, levelCat.getNode(0).getNodesvcdowncount());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testWindowLongerThanRollingWindow() {
+        m_availabilityService.getNodeAvailability(1, 2 * DAY);
+    }
+
+    /**
+     * Calculates the availability of a category with 100,000 services on
+     * 10,000 nodes, a tenth of which have had an outage.
+     */
+    @Test
+    @Ignore
+    public void categoryPerfTest() {
+        final int numNodes = 10000;
+        final Integer[] nodeIds = new Integer[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            nodeIds[i] = i + 1;
+        }
+        final RTCCategory category = createCategory("Overall Service Availability", "IPADDR != '0.0.0.0'");
+        expectNodes(category, nodeIds).anyTimes();
+        EasyMock.replay(m_filterDao);
+
+        final long now = System.currentTimeMillis();
+        for (int nodeId = 1; nodeId <= numNodes; nodeId++) {
+            final String address = "10." + (nodeId >> 16) + "." + ((nodeId >> 8) & 0xff) + "." + (nodeId & 0xff);
+            gainServices(nodeId, address, "ICMP", "SNMP", "HTTP", "HTTPS", "SSH", "FTP", "SMTP", "POP3", "IMAP", "DNS");
+            if (nodeId % 10 == 0) {
+                send(outage(EventConstants.OUTAGE_CREATED_EVENT_UEI, nodeId, address, "HTTP", now - 2 * HOUR));
+                send(outage(EventConstants.OUTAGE_RESOLVED_EVENT_UEI, nodeId, address, "HTTP", now - HOUR));
+            }
+        }
+
+        final int numQueries = 100;
+        double sum = 0;
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < numQueries; i++) {
+            sum += getCategory(m_availabilityService.getEuiLevel(category)).getCatvalue();
+        }
+        final long elapsed = System.currentTimeMillis() - start;
+        System.err.printf("%d queries over %d services in %dms (%.2fms each) (%f)%n", numQueries, numNodes * 10, elapsed, (double)elapsed / numQueries, sum);
+    }
+
+    private static RTCCategory createCategory(String label, String rule, String... services) {
+        final org.opennms.netmgt.config.categories.Category category = new org.opennms.netmgt.config.categories.Category();
+        category.setLabel(label);
+        category.setRule(rule);
+        category.setNormal(99.99);
+        category.setWarning(97);
+        for (final String service : services) {
+            category.addService(service);
+        }
+        return new RTCCategory(category, COMMON_RULE);
+    }
+
+    private IExpectationSetters<SortedMap<Integer, String>> expectNodes(RTCCategory category, Integer... nodeIds) {
+        final SortedMap<Integer, String> nodes = new TreeMap<Integer, String>();
+        for (final Integer nodeId : nodeIds) {
+            nodes.put(nodeId, "node" + nodeId);
+        }
+        return EasyMock.expect(m_filterDao.getNodeMap(category.getEffectiveRule())).andReturn(nodes);
+    }
+
+    private void gainServices(int nodeId, String address, String... services) {
+        for (final String service : services) {
+            send(new EventBuilder(EventConstants.NODE_GAINED_SERVICE_EVENT_UEI, "Test")
+                .setNodeid(nodeId).setInterface(InetAddressUtils.addr(address)).setService(service).getEvent());
+        }
+    }
+
+    private static Event outage(String uei, int nodeId, String address, String service, long time) {
+        return new EventBuilder(uei, "Test")
+            .setNodeid(nodeId).setInterface(InetAddressUtils.addr(address)).setService(service).setTime(new Date(time)).getEvent();
+    }
+
+    private void send(Event event) {
+        m_availabilityService.onEvent(event);
+    }
+
+    private static Category getCategory(EuiLevel level) {
+        assertEquals(1, level.getCategoryCount());
+        return level.getCategory(0);
+    }
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opennms.core.fiber.Fiber;
+import org.opennms.core.fiber.PausableFiber;
+
+public class TimingWheelSchedulerTest {
+
+    private Scheduler m_scheduler;
+
+    @After
+    public void tearDown() {
+        if (m_scheduler != null && m_scheduler.getStatus() != Fiber.STOPPED) {
+            m_scheduler.stop();
+        }
+    }
+
+    /**
+     * Records when it was run, relative to when it was due.
+     */
+    private static class TimedRunnable implements ReadyRunnable {
+        private final long m_due;
+        private final CountDownLatch m_latch;
+        private volatile long m_lateness = Long.MIN_VALUE;
+
+        public TimedRunnable(long delay, CountDownLatch latch) {
+            m_due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            m_latch = latch;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void run() {
+            m_lateness = System.nanoTime() - m_due;
+            m_latch.countDown();
+        }
+    }
+
+    @Test
+    public void testRunsOnTime() throws Exception {
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler("test", 4, 5);
+        m_scheduler = scheduler;
+        scheduler.start();
+
+        final Random random = new Random(0);
+        final CountDownLatch latch = new CountDownLatch(500);
+        final List<TimedRunnable> runnables = new ArrayList<TimedRunnable>();
+        for (int i = 0; i < 500; i++) {
+            // long enough for some of the items to be cascaded from the second level
+            final long delay = random.nextInt(3000);
+            final TimedRunnable runnable = new TimedRunnable(delay, latch);
+            runnables.add(runnable);
+            scheduler.schedule(delay, runnable);
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (TimedRunnable runnable : runnables) {
+            // never early, and not much later than a few ticks
+            assertTrue("ran " + runnable.m_lateness + "ns early", runnable.m_lateness >= 0);
+            assertTrue("ran " + runnable.m_lateness + "ns late", runnable.m_lateness < TimeUnit.MILLISECONDS.toNanos(500));
+        }
+        assertEquals(500, scheduler.getNumTasksExecuted());
+        assertEquals(0, scheduler.getScheduled());
+        assertEquals(500, scheduler.getLagSamples());
+        assertTrue(scheduler.getLagPercentile(50) >= 0);
+    }
+
+    @Test
+    public void testWaitsUntilReady() throws Exception {
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler("test", 1, 5);
+        m_scheduler = scheduler;
+        scheduler.start();
+
+        final AtomicBoolean ready = new AtomicBoolean(false);
+        final CountDownLatch latch = new CountDownLatch(1);
+        scheduler.schedule(0, new ReadyRunnable() {
+            @Override
+            public boolean isReady() {
+                return ready.get();
+            }
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+
+        assertFalse(latch.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(1, scheduler.getScheduled());
+
+        ready.set(true);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getScheduled());
+    }
+
+    @Test
+    public void testPauseAndResume() throws Exception {
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler("test", 1, 5);
+        m_scheduler = scheduler;
+        scheduler.start();
+        scheduler.pause();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        scheduler.schedule(0, new TimedRunnable(0, latch));
+        assertFalse(latch.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(PausableFiber.PAUSED, scheduler.getStatus());
+
+        scheduler.resume();
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler("test", 1, 5);
+        scheduler.start();
+        scheduler.schedule(60000, new TimedRunnable(60000, new CountDownLatch(1)));
+        scheduler.stop();
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getStatus() != Fiber.STOPPED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Fiber.STOPPED, scheduler.getStatus());
+    }
+
+    /**
+     * Schedules a million items spread over a minute, like a large Pollerd
+     * or Collectd would, and prints the dispatch skew of both schedulers.
+     */
+    @Test
+    @Ignore
+    public void dispatchSkewPerfTest() throws Exception {
+        final int numItems = 1000000;
+        final int spreadMs = 60000;
+
+        for (Scheduler scheduler : new Scheduler[] { new TimingWheelScheduler("wheel", 8), new LegacyScheduler("legacy", 8) }) {
+            m_scheduler = scheduler;
+            scheduler.start();
+
+            final AtomicLongArray skews = new AtomicLongArray(numItems);
+            final CountDownLatch latch = new CountDownLatch(numItems);
+            final Random random = new Random(0);
+
+            final long start = System.nanoTime();
+            for (int i = 0; i < numItems; i++) {
+                final int index = i;
+                // Pollerd and Collectd reuse a handful of intervals
+                final long interval = 5000 + (random.nextInt(spreadMs / 5000) * 5000);
+                final long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+                scheduler.schedule(interval, new ReadyRunnable() {
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void run() {
+                        skews.set(index, System.nanoTime() - due);
+                        latch.countDown();
+                    }
+                });
+            }
+            final long scheduled = System.nanoTime();
+
+            latch.await();
+            scheduler.stop();
+
+            final List<Long> sorted = new ArrayList<Long>(numItems);
+            for (int i = 0; i < numItems; i++) {
+                sorted.add(TimeUnit.NANOSECONDS.toMillis(skews.get(i)));
+            }
+            Collections.sort(sorted);
+            System.err.printf("%s: scheduled %d items in %dms, skew p50=%dms p95=%dms p99=%dms max=%dms%n",
+                    scheduler.getClass().getSimpleName(), numItems, TimeUnit.NANOSECONDS.toMillis(scheduled - start),
+                    sorted.get(numItems / 2), sorted.get(numItems * 95 / 100), sorted.get(numItems * 99 / 100), sorted.get(numItems - 1));
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.syslogd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opennms.netmgt.config.syslogd.HideMatch;
+import org.opennms.netmgt.config.syslogd.HideMessage;
+import org.opennms.netmgt.config.syslogd.Match;
+import org.opennms.netmgt.config.syslogd.UeiList;
+import org.opennms.netmgt.config.syslogd.UeiMatch;
+
+public class CompiledMatchListTest {
+
+    /**
+     * Rules like the ones shipped in etc/syslog.
+     */
+    private static final String[][] RULES = {
+        { "regex", "^.*Warning: DocumentRoot \\[(.*)\\] does not exist.*$" },
+        { "regex", "^(?:(.*):\\s*)?Killed process (\\d+) \\((.*)\\).*$" },
+        { "regex", "^Killed process (\\d+) \\((.*)\\) total-vm:(\\d+)kB, anon-rss:(\\d+)kB, file-rss:(\\d+)kB.*$" },
+        { "regex", "^Failed (.*?) for invalid user (\\S+) from (.*?) port (\\d+) ssh(\\d)$" },
+        { "regex", "^Failed (.*?) for (\\S+) from (.*?) port (\\d+) ssh(\\d)$" },
+        { "regex", "^Bind to port (\\d+) on (.*?) failed: (.*)\\.$" },
+        { "regex", "^Authentication refused: (.*)$" },
+        { "substr", "Cannot bind any address." },
+        { "regex", "su:.*?:\\s+authentication failure; logname=(.*?) uid=(\\d+) euid=(\\d+) tty=(.*?) ruser=.*? rhost=.*? user=(.*?)$" },
+        { "regex", "^(?i)connection from (.*)$" },
+        { "regex", "^(warning|error): (.*)$" },
+        { "regex", "^[A-F0-9]{10,11}: to=<(.*?)>, relay=(.*?), delay=(\\d+), status=(\\w+) \\((.*)\\)$" },
+        { "regex", "^colou?r changed to (\\w+)$" },
+        { "regex", "^%LINK-3-UPDOWN: Interface (\\S+), changed state to (up|down)$" },
+        { "regex", "^%SYS-5-CONFIG_I: Configured from (\\S+) by (\\S+)$" },
+        { "substr", "load test" },
+        { "regex", "[" },
+        { "substr", "" },
+        { "regex", ".*" },
+    };
+
+    private static final String[] MESSAGES = {
+        "Warning: DocumentRoot [/var/www/html] does not exist",
+        "Out of memory: Killed process 1234 (java) total-vm:123kB, anon-rss:12kB, file-rss:1kB",
+        "Killed process 1234 (java) total-vm:123kB, anon-rss:12kB, file-rss:1kB",
+        "Failed password for invalid user admin from 10.0.0.1 port 22 ssh2",
+        "Failed password for root from 10.0.0.1 port 22 ssh2",
+        "Bind to port 22 on 0.0.0.0 failed: Address already in use.",
+        "Authentication refused: bad ownership or modes for directory /root",
+        "error: Cannot bind any address.",
+        "su: pam_unix(su:auth):  authentication failure; logname=joe uid=1000 euid=0 tty=pts/0 ruser=joe rhost=  user=root",
+        "CONNECTION FROM 10.0.0.1",
+        "warning: database is locked",
+        "3C6A2D7F01: to=<joe@example.org>, relay=mx.example.org[10.0.0.2]:25, delay=1, status=sent (250 OK)",
+        "color changed to red",
+        "%LINK-3-UPDOWN: Interface GigabitEthernet0/1, changed state to down",
+        "%SYS-5-CONFIG_I: Configured from console by vty0",
+        "foo2: 2016-06-01 load test 42 on tty1",
+        "nothing to see here",
+        "",
+    };
+
+    @Test
+    public void testRequiredLiterals() {
+        assertEquals(Arrays.asList("Warning: DocumentRoot [", "] does not exist"),
+                CompiledMatchList.getRequiredLiterals("^.*Warning: DocumentRoot \\[(.*)\\] does not exist.*$"));
+        assertEquals(Arrays.asList("Failed ", " for ", " from ", " port ", " ssh"),
+                CompiledMatchList.getRequiredLiterals("^Failed (.*?) for (\\S+) from (.*?) port (\\d+) ssh(\\d)$"));
+        assertEquals(Arrays.asList("Killed process ", " (", ")"),
+                CompiledMatchList.getRequiredLiterals("^(?:(.*):\\s*)?Killed process (\\d+) \\((.*)\\).*$"));
+        assertEquals(Arrays.asList("foo2: ", "load test ", " on "),
+                CompiledMatchList.getRequiredLiterals(".*foo2: .*load test (\\S+) on ((pts\\/\\d+)|(tty\\d+)).*"));
+
+        // quantified characters are optional
+        assertEquals(Arrays.asList("colo", "r changed to "), CompiledMatchList.getRequiredLiterals("^colou?r changed to (\\w+)$"));
+        assertEquals(Arrays.asList("a", "a", "b"), CompiledMatchList.getRequiredLiterals("ab*c{0,2}?a+b"));
+        assertEquals(Arrays.asList("x", "y"), CompiledMatchList.getRequiredLiterals("x[a-z\\]]*y"));
+        assertEquals(Arrays.asList(": "), CompiledMatchList.getRequiredLiterals("^(warning|error): (.*)$"));
+        assertEquals(Arrays.asList("a"), CompiledMatchList.getRequiredLiterals("a\ud83d\ude00?"));
+
+        // not analyzed
+        assertEquals(Collections.emptyList(), CompiledMatchList.getRequiredLiterals("foo|bar"));
+        assertEquals(Collections.emptyList(), CompiledMatchList.getRequiredLiterals("^(?i)connection from (.*)$"));
+        assertEquals(Collections.emptyList(), CompiledMatchList.getRequiredLiterals("(a)b\\1"));
+        assertEquals(Collections.emptyList(), CompiledMatchList.getRequiredLiterals("\\Qa.b\\E"));
+        assertEquals(Collections.emptyList(), CompiledMatchList.getRequiredLiterals("\\x41bc"));
+        assertEquals(Collections.emptyList(), CompiledMatchList.getRequiredLiterals(".*"));
+    }
+
+    @Test
+    public void testSubstringMatcher() {
+        final SubstringMatcher matcher = new SubstringMatcher(Arrays.asList("he", "she", "his", "hers", "", "h\u00e9", "s"));
+        final boolean[] found = new boolean[matcher.size()];
+        matcher.find("ushers", found);
+        assertArrayEquals(new boolean[] { true, true, false, true, true, false, true }, found);
+
+        Arrays.fill(found, false);
+        matcher.find("caf\u00e9 h\u00e9", found);
+        assertArrayEquals(new boolean[] { false, false, false, false, true, true, false }, found);
+
+        Arrays.fill(found, false);
+        matcher.find("", found);
+        assertArrayEquals(new boolean[] { false, false, false, false, true, false, false }, found);
+    }
+
+    @Test
+    public void testInvalidRegexNeverMatches() {
+        final CompiledMatchList compiled = CompiledMatchList.compile(ueiList(new String[][] { { "regex", "[" }, { "regex", "(" }, { "bogus", "foo" } }));
+        assertEquals(3, compiled.size());
+        assertNull(compiled.getPattern(0));
+        assertArrayEquals(new boolean[] { false, false, false }, compiled.getCandidates("[ ( foo"));
+    }
+
+    @Test
+    public void testHideMessage() {
+        final HideMessage hideMessage = new HideMessage();
+        hideMessage.addHideMatch(hideMatch("substr", "TEST"));
+        hideMessage.addHideMatch(hideMatch("regex", "password=\\S+"));
+        hideMessage.addHideMatch(hideMatch("regex", "["));
+
+        final CompiledMatchList compiled = CompiledMatchList.compile(hideMessage);
+        assertTrue(compiled.isCompiledFrom(hideMessage, 3));
+        assertFalse(compiled.isCompiledFrom(hideMessage, 4));
+        assertTrue(compiled.matchesAny("this is a TEST message"));
+        assertTrue(compiled.matchesAny("login password=secret"));
+        assertFalse(compiled.matchesAny("login password="));
+        assertFalse(compiled.matchesAny("nothing to hide ["));
+    }
+
+    /**
+     * Checks that the first matching rule is the same as with the loop that
+     * {@link ConvertToEvent} used to run, for the typical rules and messages,
+     * and for random rules and messages made of a small alphabet.
+     */
+    @Test
+    public void testMatchesLegacyLoop() {
+        final CompiledMatchList compiled = CompiledMatchList.compile(ueiList(RULES));
+        for (String message : MESSAGES) {
+            assertEquals(message, legacyFirstMatch(RULES, message), firstMatch(compiled, message));
+        }
+
+        final Random random = new Random(0);
+        final String[] atoms = { "a", "b", "ab", "c", ".", "a*", "b?", "(a|b)", "[ab]", "\\.", "\\d", "(c)", "c+", "x{2}", "\\s", ":" };
+        for (int n = 0; n < 200; n++) {
+            final String[][] rules = new String[1 + random.nextInt(20)][];
+            for (int i = 0; i < rules.length; i++) {
+                final StringBuilder expression = new StringBuilder();
+                final int numAtoms = 1 + random.nextInt(5);
+                for (int j = 0; j < numAtoms; j++) {
+                    expression.append(random.nextBoolean() ? atoms[random.nextInt(atoms.length)] : randomText(random, 3));
+                }
+                rules[i] = new String[] { random.nextInt(4) == 0 ? "substr" : "regex", expression.toString() };
+            }
+            final CompiledMatchList randomCompiled = CompiledMatchList.compile(ueiList(rules));
+            for (int k = 0; k < 50; k++) {
+                final String message = randomText(random, 12);
+                assertEquals(message + " with " + Arrays.deepToString(rules), legacyFirstMatch(rules, message), firstMatch(randomCompiled, message));
+            }
+        }
+    }
+
+    /**
+     * Compares the loop {@link ConvertToEvent} used to run with the compiled
+     * rules, for 800 rules like the ones of the shipped configuration and of
+     * the load tests.  The messages are read from the file named by the
+     * "corpus" system property, one message per line, if there is one.
+     */
+    @Test
+    @Ignore
+    public void matchingPerfTest() throws Exception {
+        final int numRules = 800;
+        final int numMessages = 200000;
+
+        final String[][] rules = new String[numRules][];
+        for (int i = 0; i < numRules; i++) {
+            if (i % 4 == 0) {
+                rules[i] = new String[] { "regex", String.format(".*foo%d: .*load test (\\S+) on ((pts\\/\\d+)|(tty\\d+)).*", i) };
+            } else if (i % 4 == 1) {
+                rules[i] = new String[] { "substr", "%LINK-3-UPDOWN" + i + ": " };
+            } else {
+                rules[i] = RULES[i % (RULES.length - 3)];
+            }
+        }
+
+        final List<String> messages = new ArrayList<String>();
+        final String corpus = System.getProperty("corpus");
+        if (corpus != null) {
+            messages.addAll(Files.readAllLines(new File(corpus).toPath(), StandardCharsets.UTF_8));
+        } else {
+            final Random random = new Random(0);
+            for (int i = 0; i < 1000; i++) {
+                messages.add(random.nextInt(10) == 0 ? MESSAGES[random.nextInt(MESSAGES.length)]
+                        : String.format("foo%d: 2016-06-01 load test %d on tty%d", random.nextInt(numRules * 2), i, i % 8));
+            }
+        }
+
+        final List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String[] rule : rules) {
+            patterns.add("regex".equals(rule[0]) ? Pattern.compile(rule[1], Pattern.MULTILINE) : null);
+        }
+        final CompiledMatchList compiled = CompiledMatchList.compile(ueiList(rules));
+
+        long sum = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < numMessages; i++) {
+            final String message = messages.get(i % messages.size());
+            for (int j = 0; j < rules.length; j++) {
+                if ("substr".equals(rules[j][0]) ? message.contains(rules[j][1]) : patterns.get(j).matcher(message).find()) {
+                    sum += j;
+                    break;
+                }
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.err.println("messages: " + numMessages + ", legacy elapsed: " + elapsed + " (" + sum + ")");
+
+        sum = 0;
+        start = System.currentTimeMillis();
+        for (int i = 0; i < numMessages; i++) {
+            sum += Math.max(0, firstMatch(compiled, messages.get(i % messages.size())));
+        }
+        elapsed = System.currentTimeMillis() - start;
+        System.err.println("messages: " + numMessages + ", compiled elapsed: " + elapsed + " (" + sum + ")");
+    }
+
+    private static String randomText(Random random, int maxLength) {
+        final String alphabet = "abcx.: 1";
+        final StringBuilder text = new StringBuilder();
+        final int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return text.toString();
+    }
+
+    private static UeiList ueiList(String[][] rules) {
+        final UeiList ueiList = new UeiList();
+        for (String[] rule : rules) {
+            final Match match = new Match();
+            match.setType(rule[0]);
+            match.setExpression(rule[1]);
+            final UeiMatch ueiMatch = new UeiMatch();
+            ueiMatch.setMatch(match);
+            ueiList.addUeiMatch(ueiMatch);
+        }
+        return ueiList;
+    }
+
+    private static HideMatch hideMatch(String type, String expression) {
+        final Match match = new Match();
+        match.setType(type);
+        match.setExpression(expression);
+        final HideMatch hideMatch = new HideMatch();
+        hideMatch.setMatch(match);
+        return hideMatch;
+    }
+
+    /**
+     * The first rule that matches the message, the way {@link ConvertToEvent#matchUeiList} looks for it.
+     */
+    private static int firstMatch(CompiledMatchList compiled, String message) {
+        final boolean[] candidates = compiled.getCandidates(message);
+        for (int i = 0; i < candidates.length; i++) {
+            if (candidates[i] && (compiled.isSubstring(i) || compiled.getPattern(i).matcher(message).find())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The first rule that matches the message, the way {@link ConvertToEvent} used to look for it.
+     */
+    private static int legacyFirstMatch(String[][] rules, String message) {
+        for (int i = 0; i < rules.length; i++) {
+            if (rules[i][0].equals("substr")) {
+                if (message.contains(rules[i][1])) {
+                    return i;
+                }
+            } else if (rules[i][0].startsWith("regex")) {
+                final Pattern pattern;
+                try {
+                    pattern = Pattern.compile(rules[i][1], Pattern.MULTILINE);
+                } catch (Exception e) {
+                    continue;
+                }
+                if (pattern.matcher(message).find()) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+}
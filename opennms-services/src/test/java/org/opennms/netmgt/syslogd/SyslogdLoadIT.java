@@ -36,9 +36,12 @@ import java.io.InputStream;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.net.BindException;
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -50,6 +53,7 @@ import org.exolab.castor.xml.MarshalException;
 import org.exolab.castor.xml.ValidationException;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.opennms.core.concurrent.WaterfallExecutor;
@@ -309,6 +313,99 @@ public class SyslogdLoadIT implements InitializingBean {
         assertEquals(1, m_eventCounter.getCount());
     }
 
+    /**
+     * Sends syslog messages over UDP as fast as possible, to the java.net
+     * receiver and then to the NIO receiver, and prints the number of events
+     * per second each of them produced.
+     */
+    @Test
+    @Ignore
+    public void receiverThroughputPerfTest() throws Exception {
+        final int messageCount = 200000;
+        final int senderCount = 2;
+
+        for (final boolean nio : new boolean[] { false, true }) {
+            loadSyslogConfiguration("/etc/syslogd-loadtest-configuration.xml");
+            ConvertToEvent.invalidate();
+            Syslogd.resetCounters();
+            m_eventCounter.reset();
+
+            final InetAddress localhost = InetAddressUtils.getLocalHostAddress();
+            final SyslogReceiver receiver;
+            final DatagramSocket socket;
+            final DatagramChannel channel;
+            if (nio) {
+                socket = null;
+                channel = DatagramChannel.open();
+                channel.socket().bind(new InetSocketAddress(localhost, 0));
+                receiver = new SyslogReceiverNioThreadPoolImpl(channel, MATCH_PATTERN, HOST_GROUP, MESSAGE_GROUP, UEI_LIST, HIDE_MESSAGE, DISCARD_UEI);
+            } else {
+                channel = null;
+                socket = new DatagramSocket(0, localhost);
+                receiver = new SyslogReceiverJavaNetImpl(socket, MATCH_PATTERN, HOST_GROUP, MESSAGE_GROUP, UEI_LIST, HIDE_MESSAGE, DISCARD_UEI);
+            }
+            final InetSocketAddress target = new InetSocketAddress(localhost, nio ? channel.socket().getLocalPort() : socket.getLocalPort());
+            final Thread receiverThread = new Thread(receiver, "receiver");
+            receiverThread.start();
+
+            // The load generator
+            final long start = System.currentTimeMillis();
+            final List<Thread> senders = new ArrayList<Thread>();
+            for (int i = 0; i < senderCount; i++) {
+                final int sender = i;
+                final Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            final DatagramChannel out = DatagramChannel.open();
+                            final ByteBuffer buffer = ByteBuffer.allocate(0xffff);
+                            for (int j = sender; j < messageCount; j += senderCount) {
+                                final int foo = j % 10000;
+                                buffer.clear();
+                                buffer.put(SyslogClient.getPacketPayload(SyslogClient.LOG_USER, null, SyslogClient.LOG_DEBUG, String.format("2010-08-19 localhost foo%d: load test %d on tty1", foo, j)));
+                                buffer.flip();
+                                out.send(buffer, target);
+                            }
+                            out.close();
+                        } catch (final IOException e) {
+                            LOG.warn("Failed to send the load", e);
+                        }
+                    }
+                };
+                senders.add(thread);
+                thread.start();
+            }
+            for (final Thread thread : senders) {
+                thread.join();
+            }
+            final long sent = System.currentTimeMillis();
+
+            // Wait until the events stop coming
+            int count = -1;
+            while (count != m_eventCounter.getCount()) {
+                count = m_eventCounter.getCount();
+                Thread.sleep(2000);
+            }
+            final long end = System.currentTimeMillis() - 2000;
+
+            receiver.stop();
+            if (socket != null) {
+                socket.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+
+            System.err.println(String.format("%s: sent %d messages in %dms, received %d events in %dms, events per second: %8.4f",
+                receiver.getClass().getSimpleName(), messageCount, sent - start, count, end - start, count * 1000.0 / (end - start)));
+            final Syslogd syslogd = Syslogd.getSingleton();
+            System.err.println(String.format("received: %d, parsed: %d, discarded: %d, dropped: %d, events sent: %d",
+                    syslogd.getMessagesReceived(), syslogd.getMessagesParsed(),
+                    syslogd.getMessagesDiscarded(), syslogd.getMessagesDropped(),
+                    syslogd.getEventsSent()));
+        }
+    }
+
     @Test
     @Transactional
     public void testEventd() throws Exception {
@@ -408,6 +505,11 @@ public class SyslogdLoadIT implements InitializingBean {
             m_expectedCount++;
         }
 
+        public void reset() {
+            m_eventCount.set(0);
+            m_expectedCount = 0;
+        }
+
         @Override
         public void onEvent(final Event e) {
             final int current = m_eventCount.incrementAndGet();
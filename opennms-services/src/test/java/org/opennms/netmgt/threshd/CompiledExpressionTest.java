@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.threshd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.jexl2.JexlEngine;
+import org.apache.commons.jexl2.MapContext;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opennms.netmgt.config.threshd.Expression;
+
+public class CompiledExpressionTest {
+
+    private static final String[] EXPRESSIONS = {
+        "ifSpeed > 0 and ifSpeed < 100000000 ? ((ifInOctets * 8 / ifSpeed) * 100) : (ifHighSpeed > 0 ? (((ifHCInOctets * 8) / (ifHighSpeed * 1000000)) * 100) : 0)",
+        "ifHCInOctets * 8 / ifHighSpeed",
+        "ifHCInOctets * 8 / (ifHighSpeed * 1000000) * 100",
+        "(ifInErrors + ifOutErrors) / (ifInUcastPkts + ifOutUcastPkts) * 100.0",
+        "jnxOperatingState == 2.0 || jnxOperatingState == 3.0 || jnxOperatingState == 7.0 ? 1.0 : 0.0",
+        "datasources['ns-dskTotal'] - datasources['ns-dskUsed']",
+        "math.max((ifInOctets*8/ifSpeed), (ifOutOctets*8/ifSpeed))",
+        "math.max(data, 5)",
+        "math.abs(a - b) % 7 + math.sqrt(math.pow(a, 2) + 1)",
+        "a >= b ? a : -b",
+        "a <= 0 ? 0 : b / a",
+        "a gt b and not (b lt 0) ? a div b : a mod 3",
+        "a != b && (a > 0 || b == 0) ? a * 2 : b - 1.5",
+        "a == 0 ? 1 : 0",
+        "-a * -(b + 2) - 3 * 4",
+        "a * b <= a - b || a == b ? a : b",
+    };
+
+    @Test
+    public void testCompilesTypicalExpressions() {
+        for (String expression : EXPRESSIONS) {
+            assertNotNull(expression, CompiledExpression.compile(expression));
+        }
+    }
+
+    @Test
+    public void testUnsupportedExpressions() {
+        // Pattern matching, functions returning a long, and method calls
+        assertNull(CompiledExpression.compile("a =~ 'foo'"));
+        assertNull(CompiledExpression.compile("math.round(a)"));
+        assertNull(CompiledExpression.compile("math.random() * a"));
+        assertNull(CompiledExpression.compile("a.intValue()"));
+        assertNull(CompiledExpression.compile("size(a)"));
+        // JEXL would divide integers when the condition is true
+        assertNull(CompiledExpression.compile("(a > 0 ? 1 : 0) / 2"));
+        // Results that aren't numbers depending on a datasource
+        assertNull(CompiledExpression.compile("a > 0"));
+        assertNull(CompiledExpression.compile("1 + 2"));
+        // Assignments
+        assertNull(CompiledExpression.compile("a = 1"));
+    }
+
+    @Test
+    public void testSlots() {
+        final CompiledExpression expression = CompiledExpression.compile("datasources['ns-dskTotal'] - datasources['ns-dskUsed'] + ns");
+        assertEquals(3, expression.getDatasources().size());
+        assertEquals("ns-dskTotal", expression.getDatasources().get(0));
+        assertEquals(55.0, expression.evaluate(new double[] { 100.0, 50.0, 5.0 }), 0.0);
+
+        final Map<String, Double> values = new HashMap<String, Double>();
+        values.put("ns-dskTotal", 100.0);
+        values.put("ns-dskUsed", 50.0);
+        assertNull(expression.bind(values));
+        values.put("ns", Double.NaN);
+        assertNull(expression.bind(values));
+        values.put("ns", 5.0);
+        assertEquals(55.0, expression.evaluate(expression.bind(values)), 0.0);
+    }
+
+    @Test
+    public void testFloatLiterals() {
+        // JEXL parses 0.1 as a Float, but converts it through its string form for arithmetic
+        assertEquals(1.0, CompiledExpression.compile("a * 0.1").evaluate(new double[] { 10.0 }), 0.0);
+        // and function arguments are widened
+        assertEquals((double)0.1f, CompiledExpression.compile("math.max(a, 0.1)").evaluate(new double[] { 0.0 }), 0.0);
+    }
+
+    @Test
+    public void testDivisionByZero() {
+        assertEquals(0.0, CompiledExpression.compile("a / b").evaluate(new double[] { 1.0, 0.0 }), 0.0);
+        assertEquals(3.0, CompiledExpression.compile("a / b + 3").evaluate(new double[] { 1.0, -0.0 }), 0.0);
+        assertEquals(0.0, CompiledExpression.compile("a mod b").evaluate(new double[] { 1.0, 0.0 }), 0.0);
+    }
+
+    /**
+     * Compares the results with the ones JEXL gives for random values,
+     * including zeros, negative zeros and infinities.
+     */
+    @Test
+    public void testMatchesJexl() {
+        final double[] interesting = { 0.0, -0.0, 1.0, -1.0, 2.0, 3.0, 7.0, 1000.0, 1e20, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        final Random random = new Random(0);
+        final JexlEngine jexl = new JexlEngine();
+
+        for (String source : EXPRESSIONS) {
+            final CompiledExpression expression = CompiledExpression.compile(source);
+            final List<String> datasources = expression.getDatasources();
+            for (int i = 0; i < 2000; i++) {
+                final Map<String, Double> values = new HashMap<String, Double>();
+                for (String datasource : datasources) {
+                    values.put(datasource, random.nextBoolean() ? interesting[random.nextInt(interesting.length)] : (random.nextInt(2001) - 1000) / 8.0);
+                }
+
+                final String expected = Double.toString(Double.parseDouble(jexl.createExpression(source).evaluate(legacyContext(values)).toString()));
+                final String actual = Double.toString(expression.evaluate(expression.bind(values)));
+                assertEquals(source + " with " + values, expected, actual);
+            }
+        }
+    }
+
+    /**
+     * Evaluates typical interface expressions with the previous implementation
+     * of {@link ExpressionConfigWrapper#evaluate(Map)}, the cached JEXL
+     * expression, and the compiled expression.
+     */
+    @Test
+    @Ignore
+    public void evaluationPerfTest() throws Exception {
+        final int numEvaluations = 2000000;
+        final String[] sources = { EXPRESSIONS[0], EXPRESSIONS[1], EXPRESSIONS[3] };
+
+        final Random random = new Random(0);
+        final Map<String, Double> values = new HashMap<String, Double>();
+        for (String name : new String[] { "ifSpeed", "ifHighSpeed", "ifInOctets", "ifHCInOctets", "ifOutOctets", "ifHCOutOctets",
+                "ifInErrors", "ifOutErrors", "ifInUcastPkts", "ifOutUcastPkts" }) {
+            values.put(name, 1.0 + random.nextInt(100000000));
+        }
+        values.put("ifSpeed", 1000000000.0);
+        values.put("ifHighSpeed", 1000.0);
+
+        for (String source : sources) {
+            final Expression definition = new Expression();
+            definition.setExpression(source);
+            final ExpressionConfigWrapper wrapper = new ExpressionConfigWrapper(definition);
+            final org.apache.commons.jexl2.Expression cached = new JexlEngine().createExpression(source);
+
+            double sum = 0;
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < numEvaluations / 10; i++) {
+                sum += Double.parseDouble(new JexlEngine().createExpression(source).evaluate(legacyContext(values)).toString());
+            }
+            long elapsed = (System.currentTimeMillis() - start) * 10;
+            System.err.println(source + "\n  legacy: " + elapsed + "ms (extrapolated) (" + sum + ")");
+
+            sum = 0;
+            start = System.currentTimeMillis();
+            for (int i = 0; i < numEvaluations; i++) {
+                sum += Double.parseDouble(cached.evaluate(legacyContext(values)).toString());
+            }
+            elapsed = System.currentTimeMillis() - start;
+            System.err.println("  cached JEXL: " + elapsed + "ms (" + sum + ")");
+
+            sum = 0;
+            start = System.currentTimeMillis();
+            for (int i = 0; i < numEvaluations; i++) {
+                sum += wrapper.evaluate(values);
+            }
+            elapsed = System.currentTimeMillis() - start;
+            System.err.println("  compiled: " + elapsed + "ms (" + sum + ")");
+        }
+    }
+
+    /**
+     * The context that {@link ExpressionConfigWrapper#evaluate(Map)} used to build.
+     */
+    private static MapContext legacyContext(Map<String, Double> values) {
+        final Map<String, Object> context = new HashMap<String, Object>();
+        context.putAll(values);
+        context.put("datasources", new HashMap<String, Double>(values));
+        context.put("math", new ExpressionConfigWrapper.MathBinding());
+        return new MapContext(context);
+    }
+}
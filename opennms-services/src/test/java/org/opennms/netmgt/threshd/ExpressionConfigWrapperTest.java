@@ -112,6 +112,32 @@ public class ExpressionConfigWrapperTest {
         Assert.assertTrue(value == 0.0);
     }
 
+    @Test
+    public void testAllDatasources() throws Exception {
+        Map<String, Double> values = new HashMap<String,Double>();
+        values.put("ifInOctets", 200000.0);
+        values.put("ifHCInOctets", 20000000.0);
+        values.put("ifSpeed", 10000000.0);
+        values.put("ifHighSpeed", 10.0);
+        Assert.assertEquals(16.0, wrapper.evaluate(values), 0.0);
+        values.put("ifSpeed", 100000000.0);
+        values.put("ifHighSpeed", 1000.0);
+        Assert.assertEquals(16.0, wrapper.evaluate(values), 0.0);
+        values.put("ifSpeed", Double.NaN);
+        Assert.assertEquals(16.0, wrapper.evaluate(values), 0.0);
+    }
+
+    @Test
+    public void testDivisionByZero() throws Exception {
+        Expression exp = new Expression();
+        exp.setExpression("ifInOctets / ifSpeed");
+        wrapper = new ExpressionConfigWrapper(exp);
+        Map<String, Double> values = new HashMap<String,Double>();
+        values.put("ifInOctets", 200000.0);
+        values.put("ifSpeed", 0.0);
+        Assert.assertEquals(0.0, wrapper.evaluate(values), 0.0);
+    }
+
     @Test
     public void testMath() throws Exception {
         Expression exp = new Expression();
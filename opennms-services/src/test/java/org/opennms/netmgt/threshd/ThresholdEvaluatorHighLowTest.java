@@ -317,6 +317,34 @@ public class ThresholdEvaluatorHighLowTest extends AbstractThresholdEvaluatorTes
         assertEquals("third threshold evaluation status", Status.TRIGGERED, status);
     }
 
+    @Test
+    public void testEvaluateHighTriggerRestoreRearm() {
+        Threshold threshold = new Threshold();
+        threshold.setType("high");
+        threshold.setDsName("ds-name");
+        threshold.setDsType("ds-type");
+        threshold.setValue(99.0);
+        threshold.setRearm(0.5);
+        threshold.setTrigger(1);
+        ThresholdConfigWrapper wrapper=new ThresholdConfigWrapper(threshold);
+
+        ThresholdEvaluatorState item = new ThresholdEvaluatorStateHighLow(wrapper);
+
+        Status status = item.evaluate(100.0);
+        assertEquals("first threshold evaluation status", Status.TRIGGERED, status);
+
+        // A restarted evaluator neither triggers again nor forgets to rearm
+        ThresholdEvaluatorState restored = item.getCleanClone();
+        restored.restoreState(item.getPersistentState());
+        assertTrue("restored state should be triggered", restored.isTriggered());
+
+        status = restored.evaluate(100.0);
+        assertEquals("second threshold evaluation status", Status.NO_CHANGE, status);
+
+        status = restored.evaluate(0.0);
+        assertEquals("third threshold evaluation status", Status.RE_ARMED, status);
+    }
+
     @Test
     public void testEvaluateLowTriggerOnce() {
         Threshold threshold = new Threshold();
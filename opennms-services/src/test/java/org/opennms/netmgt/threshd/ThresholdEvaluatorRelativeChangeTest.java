@@ -116,6 +116,26 @@ public class ThresholdEvaluatorRelativeChangeTest extends AbstractThresholdEvalu
         assertEquals("should not trigger", Status.NO_CHANGE, evaluator.evaluate(10.0));
         assertEquals("should trigger", Status.TRIGGERED, evaluator.evaluate(8.0));
     }
+
+    @Test
+    public void testEvaluateTriggerAfterRestore() {
+        Threshold threshold = new Threshold();
+        threshold.setType("relativeChange");
+        threshold.setDsName("ds-name");
+        threshold.setDsType("ds-type");
+        threshold.setValue(0.9);
+        threshold.setRearm(0.5);
+        threshold.setTrigger(3);
+        ThresholdConfigWrapper wrapper=new ThresholdConfigWrapper(threshold);
+        ThresholdEvaluatorStateRelativeChange evaluator = new ThresholdEvaluatorStateRelativeChange(wrapper);
+
+        assertEquals("should not trigger", Status.NO_CHANGE, evaluator.evaluate(10.0));
+
+        // The restored evaluator compares against the last sample instead of starting over
+        ThresholdEvaluatorState restored = evaluator.getCleanClone();
+        restored.restoreState(evaluator.getPersistentState());
+        assertEquals("should trigger", Status.TRIGGERED, restored.evaluate(8.0));
+    }
     
     @Test
     public void testEvaluateTwiceTriggerLowEqual() {
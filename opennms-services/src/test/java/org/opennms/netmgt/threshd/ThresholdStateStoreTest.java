@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.threshd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThresholdStateStoreTest {
+
+    @Rule
+    public TemporaryFolder m_tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testRestoresSavedStates() throws Exception {
+        final File file = new File(m_tempFolder.getRoot(), "states");
+        final ThresholdStateStore store = new ThresholdStateStore(true, file, 60000, 60000);
+        assertNull(store.restore("a"));
+
+        store.save("a", new double[] { 1.0, 2.0 });
+        store.save("b", new double[] { Double.NaN });
+        store.save("a", new double[] { 0.0, 3.0 });
+        // Pending states are restored before they are written
+        assertArrayEquals(new double[] { 0.0, 3.0 }, store.restore("a"), 0.0);
+        store.close();
+
+        final ThresholdStateStore restarted = new ThresholdStateStore(true, file, 60000, 60000);
+        assertArrayEquals(new double[] { 0.0, 3.0 }, restarted.restore("a"), 0.0);
+        assertArrayEquals(new double[] { Double.NaN }, restarted.restore("b"), 0.0);
+        assertNull(restarted.restore("c"));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        final File file = new File(m_tempFolder.getRoot(), "states");
+        final ThresholdStateStore store = new ThresholdStateStore(false, file, 60000, 60000);
+        store.save("a", new double[] { 1.0 });
+        store.close();
+        assertNull(store.restore("a"));
+        assertTrue(!file.exists());
+    }
+
+    @Test
+    public void testWritesOnlyChangedStates() throws Exception {
+        final File file = new File(m_tempFolder.getRoot(), "states");
+        final ThresholdStateStore store = new ThresholdStateStore(true, file, 60000, 60000);
+        store.save("a", new double[] { 1.0, 0.0 });
+        store.flush();
+        final long length = file.length();
+
+        store.save("a", new double[] { 1.0, 0.0 });
+        store.flush();
+        assertEquals(length, file.length());
+
+        store.save("a", new double[] { 1.0, 1.0 });
+        store.flush();
+        assertTrue(file.length() > length);
+        store.close();
+    }
+
+    @Test
+    public void testCompactsFile() throws Exception {
+        final File file = new File(m_tempFolder.getRoot(), "states");
+        final ThresholdStateStore store = new ThresholdStateStore(true, file, 60000, 60000);
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 1000; j++) {
+                store.save("state" + j, new double[] { i });
+            }
+            store.flush();
+        }
+        store.close();
+        // 1000 states of about 40 bytes, and up to 12000 superseded records
+        assertTrue(file.length() < 13000 * 40);
+
+        final ThresholdStateStore restarted = new ThresholdStateStore(true, file, 60000, 60000);
+        for (int j = 0; j < 1000; j++) {
+            assertArrayEquals(new double[] { 99.0 }, restarted.restore("state" + j), 0.0);
+        }
+    }
+
+    @Test
+    public void testIgnoresTruncatedRecord() throws Exception {
+        final File file = new File(m_tempFolder.getRoot(), "states");
+        final ThresholdStateStore store = new ThresholdStateStore(true, file, 60000, 60000);
+        store.save("a", new double[] { 1.0 });
+        store.flush();
+        store.save("b", new double[] { 2.0 });
+        store.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        final ThresholdStateStore restarted = new ThresholdStateStore(true, file, 60000, 60000);
+        assertArrayEquals(new double[] { 1.0 }, restarted.restore("a"), 0.0);
+        assertNull(restarted.restore("b"));
+
+        // The file is rewritten before anything is appended to it
+        restarted.save("c", new double[] { 3.0 });
+        restarted.close();
+        final ThresholdStateStore again = new ThresholdStateStore(true, file, 60000, 60000);
+        assertArrayEquals(new double[] { 1.0 }, again.restore("a"), 0.0);
+        assertArrayEquals(new double[] { 3.0 }, again.restore("c"), 0.0);
+    }
+
+    @Test
+    public void testExpiredStatesAreNotRestored() throws Exception {
+        final File file = new File(m_tempFolder.getRoot(), "states");
+        final ThresholdStateStore store = new ThresholdStateStore(true, file, 60000, 50);
+        store.save("a", new double[] { 1.0 });
+        store.close();
+        Thread.sleep(100);
+
+        final ThresholdStateStore restarted = new ThresholdStateStore(true, file, 60000, 50);
+        assertNull(restarted.restore("a"));
+    }
+}
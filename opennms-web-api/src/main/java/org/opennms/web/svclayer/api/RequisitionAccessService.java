@@ -93,7 +93,7 @@ public interface RequisitionAccessService {
 
 	void addOrReplaceNodeAssetParameter(String foreignSource, String foreignId, RequisitionAsset asset);
 
-	void importRequisition(String foreignSource, String rescanExisting);
+	void importRequisition(String foreignSource, String rescanExisting, boolean forceFullImport);
 
 	void updateRequisition(String foreignSource, MultivaluedMap<String,String> params);
 
@@ -718,7 +718,7 @@ public class DefaultRequisitionAccessService implements RequisitionAccessService
     }
 
     @Override
-    public void importRequisition(final String foreignSource, final String rescanExisting) {
+    public void importRequisition(final String foreignSource, final String rescanExisting, final boolean forceFullImport) {
         final URL activeUrl = createSnapshot(foreignSource);
 
         final String url = activeUrl.toString();
@@ -728,6 +728,9 @@ public class DefaultRequisitionAccessService implements RequisitionAccessService
         if (rescanExisting != null) {
             bldr.addParam(EventConstants.PARM_IMPORT_RESCAN_EXISTING, rescanExisting);
         }
+        if (forceFullImport) {
+            bldr.addParam(EventConstants.PARM_IMPORT_FORCE_FULL, Boolean.TRUE.toString());
+        }
 
         try {
             getEventProxy().send(bldr.getEvent());
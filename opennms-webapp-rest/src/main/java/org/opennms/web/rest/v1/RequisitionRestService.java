@@ -28,9 +28,16 @@
 
 package org.opennms.web.rest.v1;
 
+import java.lang.management.ManagementFactory;
 import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.annotation.PreDestroy;
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
@@ -47,6 +54,7 @@ import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
 import javax.xml.bind.ValidationException;
 
+import org.json.JSONObject;
 import org.opennms.netmgt.provision.persist.ForeignSourceRepositoryFactory;
 import org.opennms.netmgt.provision.persist.requisition.Requisition;
 import org.opennms.netmgt.provision.persist.requisition.RequisitionAsset;
@@ -78,6 +86,7 @@ import org.springframework.transaction.annotation.Transactional;
  *<ul>
  *<li>GET/PUT/POST pending requisitions</li>
  *<li>GET pending and deployed count</li>
+ *<li>GET the progress of the pipelined imports</li>
  *</ul>
  *</p>
  *<p>Example 1: Create a new requisition <i>Note: The foreign-source attribute typically has a 1 to 1
@@ -123,6 +132,13 @@ public class RequisitionRestService extends OnmsRestService {
 
     private static final Logger LOG = LoggerFactory.getLogger(RequisitionRestService.class);
 
+    private static final String IMPORT_STATISTICS_OBJECT_NAME = "OpenNMS:Name=Provisiond,Type=Import";
+
+    private static final String[] IMPORT_STATISTICS_ATTRIBUTES = {
+        "ImportsRunning", "ScanQueueDepth", "WriteQueueDepth", "NodesScanned", "NodesPersisted",
+        "NodesFailed", "BatchesPersisted", "BatchFailures", "NodesPerSecond"
+    };
+
     @Autowired
     private RequisitionAccessService m_accessService;
 
@@ -160,6 +176,32 @@ public class RequisitionRestService extends OnmsRestService {
         return m_foreignSourceRepositoryFactory.getRepositoryStrategy().toString();
     }
 
+    /**
+     * get the progress of the pipelined imports run by Provisiond, as a JSON object
+     * with the attributes of its OpenNMS:Name=Provisiond,Type=Import MBean
+     *
+     * @return the import statistics.
+     */
+    @GET
+    @Path("importStatistics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public String getImportStatistics() {
+        final Map<String,Object> statistics = new LinkedHashMap<String,Object>();
+        try {
+            final ObjectName objectName = new ObjectName(IMPORT_STATISTICS_OBJECT_NAME);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(objectName)) {
+                throw getException(Status.NOT_FOUND, "Provisiond is not running.");
+            }
+            for (final Attribute attribute : server.getAttributes(objectName, IMPORT_STATISTICS_ATTRIBUTES).asList()) {
+                statistics.put(attribute.getName(), attribute.getValue());
+            }
+        } catch (final JMException e) {
+            throw getException(Status.INTERNAL_SERVER_ERROR, e);
+        }
+        return new JSONObject(statistics).toString();
+    }
+
     /**
      * Get all the deployed requisitions
      *
@@ -545,9 +587,9 @@ public class RequisitionRestService extends OnmsRestService {
     @PUT
     @Path("{foreignSource}/import")
     @Transactional
-    public Response importRequisition(@Context final UriInfo uriInfo, @PathParam("foreignSource") final String foreignSource, @QueryParam("rescanExisting") final String rescanExisting) {
+    public Response importRequisition(@Context final UriInfo uriInfo, @PathParam("foreignSource") final String foreignSource, @QueryParam("rescanExisting") final String rescanExisting, @QueryParam("forceFullImport") final boolean forceFullImport) {
         debug("importRequisition: Importing requisition for foreign source %s", foreignSource);
-        m_accessService.importRequisition(foreignSource, rescanExisting);
+        m_accessService.importRequisition(foreignSource, rescanExisting, forceFullImport);
         return Response.seeOther(uriInfo.getBaseUriBuilder().path(this.getClass()).path(this.getClass(), "getRequisition").build(foreignSource)).build();
     }
 